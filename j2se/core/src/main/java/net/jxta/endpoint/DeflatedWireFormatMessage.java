@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2001-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+
+package net.jxta.endpoint;
+
+
+import net.jxta.document.MimeMediaType;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+
+/**
+ * A Wire Format Message whose serialized form is the serialized form of
+ * another Wire Format Message compressed with the "deflate" content encoding.
+ * <p/>
+ * The compressed bytes are produced once, when the instance is created, so
+ * that the length is known before the message is framed.
+ *
+ * @see WireFormatMessageFactory#encode(WireFormatMessage, MimeMediaType[])
+ */
+final class DeflatedWireFormatMessage implements WireFormatMessage {
+
+    /**
+     * The uncompressed message.
+     */
+    private final WireFormatMessage unencoded;
+
+    /**
+     * The compressed bytes.
+     */
+    private final byte[] encoded;
+
+    /**
+     * Creates a new compressed form of the provided message.
+     *
+     * @param unencoded The message to compress.
+     */
+    DeflatedWireFormatMessage(WireFormatMessage unencoded) {
+        this.unencoded = unencoded;
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(unencoded.getByteLength() / 2 + 64, Integer.MAX_VALUE));
+            byte[] chunk = new byte[4096];
+
+            for (ByteBuffer each : unencoded.getByteBuffers()) {
+                byte[] input;
+                int offset;
+                int length = each.remaining();
+
+                if (each.hasArray()) {
+                    input = each.array();
+                    offset = each.arrayOffset() + each.position();
+                } else {
+                    input = new byte[length];
+                    each.duplicate().get(input);
+                    offset = 0;
+                }
+
+                deflater.setInput(input, offset, length);
+                while (!deflater.needsInput()) {
+                    int produced = deflater.deflate(chunk);
+
+                    out.write(chunk, 0, produced);
+                }
+            }
+
+            deflater.finish();
+            while (!deflater.finished()) {
+                int produced = deflater.deflate(chunk);
+
+                out.write(chunk, 0, produced);
+            }
+
+            encoded = out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Returns the length of the message before compression.
+     *
+     * @return The length of the message before compression.
+     */
+    long getUnencodedByteLength() {
+        return unencoded.getByteLength();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public MimeMediaType getMimeType() {
+        return unencoded.getMimeType();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getFileExtension() {
+        return unencoded.getFileExtension();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public InputStream getStream() throws IOException {
+        return new ByteArrayInputStream(encoded);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void sendToStream(OutputStream stream) throws IOException {
+        stream.write(encoded);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public ByteBuffer[] getByteBuffers() {
+        return new ByteBuffer[] { ByteBuffer.wrap(encoded) };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getByteLength() {
+        return encoded.length;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public MimeMediaType getContentEncoding() {
+        return WireFormatMessageFactory.DEFLATE_ENCODING;
+    }
+}
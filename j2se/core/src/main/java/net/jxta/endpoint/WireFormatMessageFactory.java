@@ -61,12 +61,17 @@ import net.jxta.document.MimeMediaType;
 import net.jxta.logging.Logging;
 import net.jxta.util.ClassFactory;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.util.Hashtable;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -80,6 +85,12 @@ import java.util.logging.Logger;
  * various Message wire format implementations into a static hashtable. The
  * factory is called with the Mime type requested to create the corresponding
  * Wire Format type.
+ * <p/>
+ * The factory also implements the content encodings which may be applied to
+ * any wire format. Currently only {@link #DEFLATE_ENCODING} is supported.
+ * Messages are only encoded if the recipient has indicated that it accepts
+ * the encoding and the serialized message is at least
+ * {@link #CONTENT_ENCODING_THRESHOLD_SYSPROP} bytes long.
  *
  * @see net.jxta.endpoint.Message
  * @see net.jxta.endpoint.WireFormatMessage
@@ -98,6 +109,42 @@ public final class WireFormatMessageFactory extends ClassFactory<MimeMediaType,
      */
     public static final MimeMediaType DEFAULT_WIRE_MIME = new MimeMediaType("application/x-jxta-msg").intern();
 
+    /**
+     * The mime media type of the "deflate" content encoding (RFC 1950 zlib
+     * format).
+     */
+    public static final MimeMediaType DEFLATE_ENCODING = new MimeMediaType("application/deflate").intern();
+
+    /**
+     * System property which sets the minimum serialized size in bytes of
+     * messages to which a content encoding will be applied. Smaller messages
+     * are sent unencoded.
+     */
+    public static final String CONTENT_ENCODING_THRESHOLD_SYSPROP = "net.jxta.endpoint.WireFormatMessageFactory.encodingThreshold";
+
+    /**
+     * The default minimum serialized size of messages to which a content
+     * encoding will be applied.
+     */
+    public static final int DEFAULT_CONTENT_ENCODING_THRESHOLD = 512;
+
+    /**
+     * The largest message we will decode. Protects against encoded messages
+     * which expand without bound.
+     */
+    private static final int MAX_DECODED_LENGTH = 64 * 1024 * 1024;
+
+    /**
+     * The content encodings we support.
+     */
+    private static final MimeMediaType[] CONTENT_ENCODINGS = {DEFLATE_ENCODING};
+
+    /**
+     * The minimum serialized size of messages to which a content encoding will
+     * be applied.
+     */
+    private static final int encodingThreshold = Integer.getInteger(CONTENT_ENCODING_THRESHOLD_SYSPROP, DEFAULT_CONTENT_ENCODING_THRESHOLD);
+
     /**
      * Interface for instantiators of wire format messages.
      */
@@ -302,7 +349,53 @@ public final class WireFormatMessageFactory extends ClassFactory<MimeMediaType,
 
         Instantiator instantiator = factory.getInstantiator(type.getBaseMimeMediaType());
 
-        return instantiator.toWire(msg, type, preferedEncodings);
+        return encode(instantiator.toWire(msg, type, preferedEncodings), preferedEncodings);
+    }
+
+    /**
+     * Returns the content encodings which the factory can apply to and remove
+     * from serialized messages of any type.
+     *
+     * @return The supported content encodings.
+     */
+    public static MimeMediaType[] getSupportedContentEncodings() {
+        return CONTENT_ENCODINGS.clone();
+    }
+
+    /**
+     * Applies the first of the accepted content encodings which we support to
+     * a serialized message. The message is returned unchanged if it is
+     * already encoded, if none of the accepted encodings are supported, if it
+     * is smaller than the encoding threshold or if encoding would not make it
+     * smaller.
+     *
+     * @param serialized        The serialized message.
+     * @param acceptedEncodings The content encodings accepted by the recipient
+     *                          in descending order of preference. May be null.
+     * @return The encoded message or {@code serialized}.
+     */
+    public static WireFormatMessage encode(WireFormatMessage serialized, MimeMediaType[] acceptedEncodings) {
+        if ((null == acceptedEncodings) || (null != serialized.getContentEncoding())) {
+            return serialized;
+        }
+
+        if (serialized.getByteLength() < encodingThreshold) {
+            return serialized;
+        }
+
+        for (MimeMediaType accepted : acceptedEncodings) {
+            if (DEFLATE_ENCODING.equals(accepted)) {
+                WireFormatMessage encoded = new DeflatedWireFormatMessage(serialized);
+
+                if (encoded.getByteLength() < serialized.getByteLength()) {
+                    return encoded;
+                }
+
+                break;
+            }
+        }
+
+        return serialized;
     }
 
     /**
@@ -329,6 +422,10 @@ public final class WireFormatMessageFactory extends ClassFactory<MimeMediaType,
             throw new IOException("Unable to deserialize message of type: " + type);
         }
 
+        if ((null != contentEncoding) && DEFLATE_ENCODING.equals(contentEncoding)) {
+            return instantiator.fromWire(new ByteArrayInputStream(inflate(is)), type, null);
+        }
+
         return instantiator.fromWire(is, type, contentEncoding);
     }
 
@@ -356,6 +453,152 @@ public final class WireFormatMessageFactory extends ClassFactory<MimeMediaType,
             throw new IOException("Unable to deserialize message of type: " + type);
         }
 
+        if ((null != contentEncoding) && DEFLATE_ENCODING.equals(contentEncoding)) {
+            return instantiator.fromBuffer(inflate(buffer), type, null);
+        }
+
         return instantiator.fromBuffer(buffer, type, contentEncoding);
     }
+
+    /**
+     * Removes the "deflate" content encoding from a message read from a
+     * stream. The stream is left positioned immediately after the encoded
+     * message so that any following data may still be read by the caller.
+     * Streams which support mark/reset are read in blocks and rewound to
+     * the end of the message, other streams are read a byte at a time.
+     *
+     * @param is The stream containing the encoded message.
+     * @return The decoded bytes.
+     * @throws IOException If the encoded bytes are invalid, truncated or
+     *                     decode to more than the maximum message size.
+     */
+    private static byte[] inflate(InputStream is) throws IOException {
+        boolean rewindable = is.markSupported();
+        byte[] input = new byte[rewindable ? 4096 : 1];
+        int lastRead = 0;
+
+        Inflater inflater = new Inflater();
+
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+            byte[] chunk = new byte[4096];
+
+            while (!inflater.finished()) {
+                if (inflater.needsInput()) {
+                    if (rewindable) {
+                        is.mark(input.length);
+                    }
+
+                    lastRead = is.read(input);
+
+                    if (lastRead < 0) {
+                        throw new EOFException("Truncated deflate encoded message");
+                    }
+
+                    inflater.setInput(input, 0, lastRead);
+                    continue;
+                }
+
+                if (inflater.needsDictionary()) {
+                    throw new IOException("Invalid deflate encoded message");
+                }
+
+                int produced = inflater.inflate(chunk);
+
+                if (out.size() + produced > MAX_DECODED_LENGTH) {
+                    throw new IOException("Decoded message exceeds maximum length of " + MAX_DECODED_LENGTH);
+                }
+
+                out.write(chunk, 0, produced);
+            }
+
+            int unused = inflater.getRemaining();
+
+            if (rewindable && (unused > 0)) {
+                // Return the bytes following the message to the stream.
+                is.reset();
+                skipFully(is, lastRead - unused);
+            }
+
+            return out.toByteArray();
+        } catch (DataFormatException badData) {
+            IOException failure = new IOException("Invalid deflate encoded message");
+
+            failure.initCause(badData);
+            throw failure;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Skips exactly the specified number of bytes of a stream.
+     *
+     * @param is    The stream.
+     * @param count The number of bytes to skip.
+     * @throws IOException If the stream ends before the bytes are skipped.
+     */
+    private static void skipFully(InputStream is, long count) throws IOException {
+        while (count > 0) {
+            long skipped = is.skip(count);
+
+            if (skipped <= 0) {
+                if (is.read() < 0) {
+                    throw new EOFException("Stream ended while skipping");
+                }
+                skipped = 1;
+            }
+
+            count -= skipped;
+        }
+    }
+
+    /**
+     * Removes the "deflate" content encoding from the remaining bytes of a
+     * buffer.
+     *
+     * @param buffer The encoded bytes.
+     * @return The decoded bytes.
+     * @throws IOException If the encoded bytes are invalid or decode to more
+     *                     than the maximum message size.
+     */
+    private static ByteBuffer inflate(ByteBuffer buffer) throws IOException {
+        byte[] input = new byte[buffer.remaining()];
+
+        buffer.get(input);
+
+        Inflater inflater = new Inflater();
+
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(input.length * 4);
+            byte[] chunk = new byte[4096];
+
+            inflater.setInput(input);
+            while (!inflater.finished()) {
+                int produced = inflater.inflate(chunk);
+
+                if (0 == produced) {
+                    if (inflater.needsInput() || inflater.needsDictionary()) {
+                        throw new IOException("Truncated deflate encoded message");
+                    }
+                    continue;
+                }
+
+                if (out.size() + produced > MAX_DECODED_LENGTH) {
+                    throw new IOException("Decoded message exceeds maximum length of " + MAX_DECODED_LENGTH);
+                }
+
+                out.write(chunk, 0, produced);
+            }
+
+            return ByteBuffer.wrap(out.toByteArray());
+        } catch (DataFormatException badData) {
+            IOException failure = new IOException("Invalid deflate encoded message");
+
+            failure.initCause(badData);
+            throw failure;
+        } finally {
+            inflater.end();
+        }
+    }
 }
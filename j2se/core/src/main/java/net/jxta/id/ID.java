@@ -58,12 +58,8 @@ package net.jxta.id;
 
 
 import java.io.ObjectStreamException;
-import java.lang.ref.Reference;
-import java.lang.ref.WeakReference;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.Map;
-import java.util.WeakHashMap;
 
 
 /**
@@ -90,7 +86,7 @@ public abstract class ID implements java.io.Serializable {
      * Collection of interned IDs. All IDs visible within in the VM are
      * contained within this table.
      */
-    private static final Map<ID, WeakReference<ID>> interned = new WeakHashMap<ID, WeakReference<ID>>(1000);
+    private static final IDInternTable interned = new IDInternTable(1000, 16);
     
     /**
      * This defines the URI scheme that we will be using to present JXTA IDs.
@@ -221,22 +217,7 @@ public abstract class ID implements java.io.Serializable {
      * be from a pool of unique types.
      */
     protected ID intern() {
-        synchronized (ID.class) {
-            Reference<ID> common = interned.get(this);
-            
-            ID result = null;
-            
-            if (null != common) {
-                result = common.get();
-            }
-            
-            if (null == result) {
-                interned.put(this, new WeakReference<ID>(this));
-                result = this;
-            }
-            
-            return result;
-        }
+        return interned.intern(this);
     }
     
     /**
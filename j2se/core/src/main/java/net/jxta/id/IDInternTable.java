@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2001-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+
+package net.jxta.id;
+
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.jxta.logging.Logging;
+
+
+/**
+ *  A concurrent table of weakly referenced, canonical IDs.
+ *
+ *  <p/>Lookups and insertions do not take any shared lock. IDs which are no
+ *  longer referenced are removed from the table by a daemon thread which
+ *  waits on the reference queue, so lookups never pay for cleanup.
+ */
+final class IDInternTable {
+    
+    /**
+     *  Logger
+     */
+    private static final Logger LOG = Logger.getLogger(IDInternTable.class.getName());
+    
+    /**
+     *  Canonical IDs. The key and value of each entry are the same reference.
+     */
+    private final ConcurrentMap<Object, IDReference> table;
+    
+    /**
+     *  Queue of references whose IDs have been collected.
+     */
+    private final ReferenceQueue<ID> collected = new ReferenceQueue<ID>();
+    
+    /**
+     *  Creates a new intern table and starts its cleanup thread.
+     *
+     *  @param initialCapacity The initial capacity of the table.
+     *  @param concurrencyLevel The estimated number of concurrently updating
+     *  threads.
+     */
+    IDInternTable(int initialCapacity, int concurrencyLevel) {
+        table = new ConcurrentHashMap<Object, IDReference>(initialCapacity, 0.75f, concurrencyLevel);
+        
+        Thread cleaner = new Thread(new Cleaner(), "ID Intern Table Cleaner");
+        cleaner.setDaemon(true);
+        cleaner.start();
+    }
+    
+    /**
+     *  Returns the canonical instance of the ID, adding the ID to the table if
+     *  there is no canonical instance yet.
+     *
+     *  @param id The ID to intern.
+     *  @return The canonical instance equal to the ID.
+     */
+    ID intern(ID id) {
+        // Probe with a plain key; creating a reference per lookup costs GC work.
+        IDReference existing = table.get(new LookupKey(id));
+        
+        while (true) {
+            if (null != existing) {
+                ID result = existing.get();
+                
+                if (null != result) {
+                    return result;
+                }
+                
+                // Collected, but not yet cleaned up.
+                table.remove(existing, existing);
+            }
+            
+            IDReference added = new IDReference(id, collected);
+            
+            existing = table.putIfAbsent(added, added);
+            
+            if (null == existing) {
+                return id;
+            }
+        }
+    }
+    
+    /**
+     *  Returns the number of entries in the table, including entries whose IDs
+     *  have been collected but not yet cleaned up.
+     *
+     *  @return The number of entries in the table.
+     */
+    int size() {
+        return table.size();
+    }
+    
+    /**
+     *  A weak reference to an ID which compares by the value of the ID.
+     */
+    private static final class IDReference extends WeakReference<ID> {
+        
+        /**
+         *  Hash of the ID, retained so the entry can be found after the ID
+         *  has been collected.
+         */
+        private final int hash;
+        
+        IDReference(ID id, ReferenceQueue<ID> queue) {
+            super(id, queue);
+            hash = id.hashCode();
+        }
+        
+        /**
+         *  {@inheritDoc}
+         */
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+        
+        /**
+         *  {@inheritDoc}
+         *
+         *  <p/>References to collected IDs are only equal to themselves.
+         */
+        @Override
+        public boolean equals(Object target) {
+            if (this == target) {
+                return true;
+            }
+            
+            if (!(target instanceof IDReference)) {
+                return false;
+            }
+            
+            IDReference other = (IDReference) target;
+            
+            if (hash != other.hash) {
+                return false;
+            }
+            
+            ID mine = get();
+            
+            return (null != mine) && mine.equals(other.get());
+        }
+    }
+    
+    /**
+     *  A strongly referenced key used only for lookups, equal to the
+     *  reference for an equal ID.
+     */
+    private static final class LookupKey {
+        
+        private final ID id;
+        
+        LookupKey(ID id) {
+            this.id = id;
+        }
+        
+        /**
+         *  {@inheritDoc}
+         */
+        @Override
+        public int hashCode() {
+            return id.hashCode();
+        }
+        
+        /**
+         *  {@inheritDoc}
+         */
+        @Override
+        public boolean equals(Object target) {
+            if (target instanceof IDReference) {
+                return id.equals(((IDReference) target).get());
+            }
+            
+            return (target instanceof LookupKey) && id.equals(((LookupKey) target).id);
+        }
+    }
+    
+    /**
+     *  Removes the entries for collected IDs.
+     */
+    private final class Cleaner implements Runnable {
+        
+        /**
+         *  {@inheritDoc}
+         */
+        public void run() {
+            while (true) {
+                try {
+                    Reference<? extends ID> each = collected.remove();
+                    
+                    table.remove(each, each);
+                } catch (InterruptedException woken) {
+                    Thread.interrupted();
+                } catch (Throwable all) {
+                    if (Logging.SHOW_SEVERE && LOG.isLoggable(Level.SEVERE)) {
+                        LOG.log(Level.SEVERE, "Uncaught Throwable in " + Thread.currentThread().getName(), all);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -3,6 +3,7 @@ package net.jxta.impl.cm;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
+import java.util.Map;
 
 import net.jxta.discovery.DiscoveryService;
 import net.jxta.document.Advertisement;
@@ -17,6 +18,12 @@ public abstract class AbstractAdvertisementCache implements AdvertisementCache {
         save(dn, fn, adv, DiscoveryService.INFINITE_LIFETIME, DiscoveryService.NO_EXPIRATION);
     }
 
+    public void saveAll(String dn, Map<String, Advertisement> advs, long lifetime, long expiration) throws IOException {
+        for (Map.Entry<String, Advertisement> adv : advs.entrySet()) {
+            save(dn, adv.getKey(), adv.getValue(), lifetime, expiration);
+        }
+    }
+
     public List<InputStream> getRecords(String dn, int threshold, List<Long> expirations) throws IOException {
         return getRecords(dn, threshold, expirations, false);
     }
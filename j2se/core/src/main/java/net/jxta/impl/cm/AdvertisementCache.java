@@ -3,6 +3,7 @@ package net.jxta.impl.cm;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
+import java.util.Map;
 
 import net.jxta.document.Advertisement;
 import net.jxta.protocol.SrdiMessage;
@@ -99,6 +100,19 @@ public interface AdvertisementCache {
      */
     void save(String dn, String fn, Advertisement adv, long lifetime, long expiration) throws IOException;
 
+    /**
+     * Stores several advertisements in the specified dir with the same
+     * doc timeouts. Implementations may write them more efficiently than
+     * repeated calls to {@link #save(String, String, Advertisement, long, long)}.
+     *
+     * @param dn         directory name
+     * @param advs       Advertisements to save, keyed by file name
+     * @param lifetime   Document (local) lifetime in relative ms
+     * @param expiration Document (global) expiration time in relative ms
+     * @throws IOException Thrown if there is a problem saving the documents.
+     */
+    void saveAll(String dn, Map<String, Advertisement> advs, long lifetime, long expiration) throws IOException;
+
     /**
      * Store some bytes in specified dir, and file name, and
      * associated doc timeouts
@@ -127,6 +141,33 @@ public interface AdvertisementCache {
      */
     List<InputStream> search(String dn, String attribute, String value, int threshold, List<Long> expirations) throws IOException;
 
+    /**
+     * Search for documents that contain at least a matching pair of
+     * tag/value and return the file names of the matching documents rather
+     * than their contents.
+     *
+     * @param dn          contains the name of the folder on which to
+     * perform the search
+     * @param attribute   attribute to search on
+     * @param value       contains the value to search on.
+     * @param threshold   threshold
+     * @param expirations List to contain expirations
+     * @return the file names of the matching documents
+     * @throws IOException when an I/O error occurs
+     */
+    List<String> searchNames(String dn, String attribute, String value, int threshold, List<Long> expirations) throws IOException;
+
+    /**
+     * Returns the file names of the unexpired documents in the given folder.
+     *
+     * @param dn          contains the name of the folder
+     * @param threshold   the max number of results
+     * @param expirations List to contain expirations
+     * @return the file names of the documents
+     * @throws IOException when an I/O error occurs
+     */
+    List<String> getRecordNames(String dn, int threshold, List<Long> expirations) throws IOException;
+
     /**
      * Set whether or not changes to the cache should be tracked, stored and later returned by {@link #getDeltas(String)}.
      * @param trackDeltas when true, changes will be tracked.
@@ -55,18 +55,25 @@
  */
 package net.jxta.impl.cm;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Constructor;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import net.jxta.discovery.DiscoveryService;
 import net.jxta.document.Advertisement;
+import net.jxta.document.AdvertisementFactory;
+import net.jxta.document.MimeMediaType;
+import net.jxta.document.StructuredDocumentFactory;
 import net.jxta.document.StructuredTextDocument;
+import net.jxta.document.XMLDocument;
 import net.jxta.impl.util.TimeUtils;
 import net.jxta.impl.xindice.core.indexer.IndexQuery;
 import net.jxta.logging.Logging;
@@ -96,11 +103,22 @@ import net.jxta.protocol.SrdiMessage.Entry;
  * the full class name of your implementation, which must implement
  * {@link AdvertisementCache}.
  * </p>
+ * 
+ * <p>
+ * Parsed advertisements returned by {@link #searchAdvertisements} and
+ * {@link #getRecordAdvertisements} are kept in a {@link ParsedAdvertisementCache}
+ * so that frequently requested advertisements need not be re-parsed. The
+ * size of this cache may be set with the system properties
+ * {@link #PARSED_CACHE_MAX_ENTRIES_SYSPROP} and
+ * {@link #PARSED_CACHE_MAX_BYTES_SYSPROP}.
+ * </p>
  */
 public final class Cm {
 
     public static final int NO_THRESHOLD = Integer.MAX_VALUE;
 	public static final String CACHE_IMPL_SYSPROP = "net.jxta.impl.cm.cache.impl";
+	public static final String PARSED_CACHE_MAX_ENTRIES_SYSPROP = "net.jxta.impl.cm.parsedcache.maxEntries";
+	public static final String PARSED_CACHE_MAX_BYTES_SYSPROP = "net.jxta.impl.cm.parsedcache.maxBytes";
 
 	private final static Logger LOG = Logger.getLogger(Cm.class.getName());
 	
@@ -112,10 +130,29 @@ public final class Cm {
 
     private AdvertisementCache wrappedImpl;
 
+    private final ParsedAdvertisementCache parsedCache = createParsedCache();
+
     public Cm(AdvertisementCache wrappedImpl) {
         this.wrappedImpl = wrappedImpl;
     }
 
+    private static ParsedAdvertisementCache createParsedCache() {
+        int maxEntries = ParsedAdvertisementCache.DEFAULT_MAX_ENTRIES;
+        long maxBytes = ParsedAdvertisementCache.DEFAULT_MAX_BYTES;
+
+        try {
+            maxEntries = Integer.getInteger(PARSED_CACHE_MAX_ENTRIES_SYSPROP, maxEntries);
+            maxBytes = Long.getLong(PARSED_CACHE_MAX_BYTES_SYSPROP, maxBytes);
+
+            return new ParsedAdvertisementCache(maxEntries, maxBytes);
+        } catch (IllegalArgumentException badSize) {
+            if(Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
+                LOG.log(Level.WARNING, "Invalid parsed advertisement cache size, using defaults", badSize);
+            }
+            return new ParsedAdvertisementCache();
+        }
+    }
+
     /**
      * Creates a Cm which wraps a {@link XIndiceAdvertisementCache } constructed with the
      * provided parameters.
@@ -235,6 +272,7 @@ public final class Cm {
     }
 
     public void remove(String dn, String fn) throws IOException {
+        parsedCache.invalidate(dn, fn);
         wrappedImpl.remove(dn, fn);
     }
 
@@ -243,10 +281,29 @@ public final class Cm {
     }
 
     public void save(String dn, String fn, Advertisement adv, long lifetime, long expiration) throws IOException {
+        parsedCache.invalidate(dn, fn);
         wrappedImpl.save(dn, fn, adv, lifetime, expiration);
     }
 
+    /**
+     * Stores several advertisements in the specified dir with the same doc
+     * timeouts, allowing the cache implementation to write them together.
+     *
+     * @param dn         directory name
+     * @param advs       Advertisements to save, keyed by file name
+     * @param lifetime   Document (local) lifetime in relative ms
+     * @param expiration Document (global) expiration time in relative ms
+     * @throws IOException Thrown if there is a problem saving the documents.
+     */
+    public void saveAll(String dn, Map<String, Advertisement> advs, long lifetime, long expiration) throws IOException {
+        for (String fn : advs.keySet()) {
+            parsedCache.invalidate(dn, fn);
+        }
+        wrappedImpl.saveAll(dn, advs, lifetime, expiration);
+    }
+
     public void save(String dn, String fn, byte[] data, long lifetime, long expiration) throws IOException {
+        parsedCache.invalidate(dn, fn);
         wrappedImpl.save(dn, fn, data, lifetime, expiration);
     }
 
@@ -258,11 +315,142 @@ public final class Cm {
 		}
     }
 
+    /**
+     * Search for advertisements that contain at least a matching pair of
+     * tag/value. Advertisements are served from the parsed advertisement
+     * cache where possible.
+     *
+     * @param dn          contains the name of the folder on which to perform the search
+     * @param attribute   attribute to search on
+     * @param value       contains the value to search on.
+     * @param threshold   the max number of results
+     * @param expirations List to contain expirations
+     * @return the matching advertisements
+     */
+    public List<Advertisement> searchAdvertisements(String dn, String attribute, String value, int threshold, List<Long> expirations) {
+        List<Long> nameExpirations = new ArrayList<Long>();
+        List<String> names;
+
+        try {
+            names = wrappedImpl.searchNames(dn, attribute, value, threshold, nameExpirations);
+        } catch (IOException e) {
+            if(Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
+                LOG.log(Level.WARNING, "Exception occurred when searching dn=[" + dn + "]", e);
+            }
+            names = new ArrayList<String>(0);
+        }
+
+        return toAdvertisements(dn, names, nameExpirations, expirations);
+    }
+
+    /**
+     * Gets the advertisements in the given folder. Advertisements are served
+     * from the parsed advertisement cache where possible.
+     *
+     * @param dn          contains the name of the folder
+     * @param threshold   the max number of results
+     * @param expirations List to contain expirations
+     * @return the advertisements
+     */
+    public List<Advertisement> getRecordAdvertisements(String dn, int threshold, List<Long> expirations) {
+        List<Long> nameExpirations = new ArrayList<Long>();
+        List<String> names;
+
+        try {
+            names = wrappedImpl.getRecordNames(dn, threshold, nameExpirations);
+        } catch (IOException e) {
+            if(Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
+                LOG.log(Level.WARNING, "Exception occurred when to fetch records at dn=[" + dn + "]", e);
+            }
+            names = new ArrayList<String>(0);
+        }
+
+        return toAdvertisements(dn, names, nameExpirations, expirations);
+    }
+
+    /**
+     * Returns the parsed advertisement cache.
+     *
+     * @return the parsed advertisement cache.
+     */
+    public ParsedAdvertisementCache getParsedAdvertisementCache() {
+        return parsedCache;
+    }
+
+    private List<Advertisement> toAdvertisements(String dn, List<String> names, List<Long> nameExpirations, List<Long> expirations) {
+        List<Advertisement> advertisements = new ArrayList<Advertisement>(names.size());
+
+        if (null != expirations) {
+            expirations.clear();
+        }
+
+        for (int i = 0; i < names.size(); i++) {
+            String fn = names.get(i);
+            Long expiration = nameExpirations.get(i);
+            Advertisement adv = parsedCache.get(dn, fn);
+
+            if (null == adv) {
+                adv = readAdvertisement(dn, fn, expiration);
+            }
+
+            if (null == adv) {
+                continue;
+            }
+
+            advertisements.add(adv);
+            if (null != expirations) {
+                expirations.add(expiration);
+            }
+        }
+
+        return advertisements;
+    }
+
+    private Advertisement readAdvertisement(String dn, String fn, long expiration) {
+        long stamp = parsedCache.getModificationStamp();
+
+        try {
+            InputStream is = wrappedImpl.getInputStream(dn, fn);
+
+            if (null == is) {
+                return null;
+            }
+
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int read;
+
+            try {
+                while ((read = is.read(buf)) != -1) {
+                    bos.write(buf, 0, read);
+                }
+            } finally {
+                is.close();
+            }
+
+            byte[] data = bos.toByteArray();
+            XMLDocument<?> asDoc = (XMLDocument<?>) StructuredDocumentFactory.newStructuredDocument(MimeMediaType.XMLUTF8, new ByteArrayInputStream(data));
+            Advertisement adv = AdvertisementFactory.newAdvertisement(asDoc);
+
+            parsedCache.put(dn, fn, adv, data.length, expiration, stamp);
+
+            return adv;
+        } catch (Exception e) {
+            if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
+                LOG.log(Level.WARNING, "Failed building advertisement dn=[" + dn + "], fn=[" + fn + "]", e);
+            }
+
+            return null;
+        }
+    }
+
     public void setTrackDeltas(boolean trackDeltas) {
         wrappedImpl.setTrackDeltas(trackDeltas);
     }
 
     public void stop() {
+        parsedCache.invalidateAll();
+
         try {
 			wrappedImpl.stop();
 		} catch (IOException e) {
@@ -273,6 +461,12 @@ public final class Cm {
     }
 
     public void garbageCollect() {
+        parsedCache.purgeExpired();
+
+        if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+            LOG.fine(parsedCache.toString());
+        }
+
         try {
 			wrappedImpl.garbageCollect();
 		} catch (IOException e) {
@@ -0,0 +1,617 @@
+/*
+ * Copyright (c) 2001-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+package net.jxta.impl.cm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import net.jxta.impl.cm.SrdiIndex.Entry;
+import net.jxta.impl.util.TimeUtils;
+import net.jxta.logging.Logging;
+import net.jxta.peer.PeerID;
+import net.jxta.peergroup.PeerGroup;
+
+/**
+ * An in-memory SRDI index backend which may be used concurrently by many
+ * threads.
+ * <p/>
+ * Values are kept in a sorted concurrent map keyed by
+ * {@code primaryKey/attribute/value}, so queries never lock: each key maps
+ * to an immutable array of peer entries which writers replace as a whole.
+ * Writers are serialized per primary key by a fixed set of lock stripes, so
+ * SRDI pushes for different primary keys do not contend with each other.
+ * <p/>
+ * Garbage collection walks the expiry index in order and expires one entry
+ * at a time, holding only the stripe lock of the entry being expired, rather
+ * than locking the whole index for the duration of the pass.
+ * <p/>
+ * Select this backend by setting {@link SrdiIndex#SRDI_INDEX_BACKEND_SYSPROP}
+ * to {@code net.jxta.impl.cm.ConcurrentInMemorySrdiIndexBackend}.
+ */
+public class ConcurrentInMemorySrdiIndexBackend implements SrdiIndexBackend {
+
+    private final static transient Logger LOG = Logger.getLogger(ConcurrentInMemorySrdiIndexBackend.class.getName());
+
+    /**
+     * The number of write lock stripes.
+     */
+    private static final int LOCK_STRIPES = 32;
+
+    private static final String WILDCARD = "*";
+
+    /**
+     * Separates the primary key from the attribute in index keys.
+     */
+    private static final char PKEY_SEPARATOR = '\u0800';
+
+    /**
+     * Separates the attribute from the value in index keys.
+     */
+    private static final char ATTRIBUTE_SEPARATOR = '\u0801';
+
+    /**
+     * Store of back end objects in use so we can support the static clear functionality
+     */
+    private static final Hashtable<PeerGroup, List<SrdiIndexBackend>> backends = new Hashtable<PeerGroup, List<SrdiIndexBackend>>();
+
+    private static final PeerIDItem[] NO_ITEMS = new PeerIDItem[0];
+
+    /**
+     * Source of unique ids, used to order entries with the same expiry.
+     */
+    private static final AtomicLong counter = new AtomicLong();
+
+    /**
+     * Index key to the entries recorded for that key. The arrays are never
+     * modified once published.
+     */
+    private final ConcurrentSkipListMap<String, PeerIDItem[]> valueIndex = new ConcurrentSkipListMap<String, PeerIDItem[]>();
+
+    /**
+     * All live entries ordered by expiry.
+     */
+    private final ConcurrentSkipListSet<PeerIDItem> expiryIndex = new ConcurrentSkipListSet<PeerIDItem>();
+
+    /**
+     * The index keys under which each peer has entries. The key sets are
+     * guarded by their own monitors.
+     */
+    private final ConcurrentMap<PeerID, Set<String>> peerKeys = new ConcurrentHashMap<PeerID, Set<String>>();
+
+    /**
+     * Serializes writers per primary key.
+     */
+    private final ReentrantLock[] stripes = new ReentrantLock[LOCK_STRIPES];
+
+    /**
+     * Stopped indicator
+     */
+    private volatile boolean stopped = false;
+
+    /**
+     * Usage name for this index
+     */
+    private final String indexName;
+
+    public ConcurrentInMemorySrdiIndexBackend(PeerGroup group, String indexName) {
+        this.indexName = indexName;
+
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+
+        synchronized (backends) {
+            List<SrdiIndexBackend> idxs = backends.get(group);
+
+            if (null == idxs) {
+                idxs = new ArrayList<SrdiIndexBackend>(1);
+                backends.put(group, idxs);
+            }
+
+            idxs.add(this);
+        }
+
+        if (Logging.SHOW_INFO && LOG.isLoggable(Level.INFO)) {
+            LOG.info("[" + ((group == null) ? "none" : group.toString()) + "] : Initialized " + indexName);
+        }
+    }
+
+    public static void clearSrdi(PeerGroup group) {
+        if (Logging.SHOW_INFO && LOG.isLoggable(Level.INFO)) {
+            LOG.info("Clearing SRDIs for " + group);
+        }
+
+        List<SrdiIndexBackend> idxs = backends.remove(group);
+
+        if (null != idxs) {
+            for (SrdiIndexBackend idx : idxs) {
+                try {
+                    idx.clear();
+                } catch (IOException e) {
+                    if (Logging.SHOW_SEVERE && LOG.isLoggable(Level.SEVERE)) {
+                        LOG.log(Level.SEVERE, "Failed clearing index for group: " + group.getPeerGroupName(), e);
+                    }
+                }
+            }
+        }
+    }
+
+    private void stoppedCheck() throws IllegalStateException {
+        if (stopped) {
+            throw new IllegalStateException(this.getClass().getName() + " has been stopped!");
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void add(String pkey, String skey, String value, PeerID pid, long expiry) {
+        stoppedCheck();
+
+        if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+            LOG.fine("[" + indexName + "] Adding " + pkey + "/" + skey + " = \'" + value + "\' for " + pid);
+        }
+
+        String treeKey = toKey(pkey, skey, value);
+        long now = TimeUtils.timeNow();
+        PeerIDItem added = new PeerIDItem(pid, TimeUtils.toAbsoluteTimeMillis(expiry, now), treeKey, stripeFor(pkey));
+        ReentrantLock lock = stripes[added.stripe];
+
+        lock.lock();
+        try {
+            PeerIDItem[] current = valueIndex.get(treeKey);
+            List<PeerIDItem> updated = new ArrayList<PeerIDItem>((null == current) ? 1 : current.length + 1);
+
+            if (null != current) {
+                for (PeerIDItem item : current) {
+                    if (item.peerid.equals(pid) || (item.expiry < now)) {
+                        // Replaced or expired entry.
+                        expiryIndex.remove(item);
+                        if (!item.peerid.equals(pid)) {
+                            untrackKey(item.peerid, treeKey);
+                        }
+                    } else {
+                        updated.add(item);
+                    }
+                }
+            }
+
+            updated.add(added);
+            valueIndex.put(treeKey, updated.toArray(new PeerIDItem[updated.size()]));
+            expiryIndex.add(added);
+            trackKey(pid, treeKey);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<Entry> getRecord(String pkey, String skey, String value) throws IOException {
+        stoppedCheck();
+
+        List<Entry> entries = new ArrayList<Entry>();
+        long now = TimeUtils.timeNow();
+
+        for (PeerIDItem item : find(toKey(pkey, skey, value))) {
+            if (item.expiry > now) {
+                entries.add(new Entry(item.peerid, item.expiry));
+            }
+        }
+
+        return entries;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<PeerID> query(String pkey, String skey, String value, int threshold) throws IOException {
+        stoppedCheck();
+
+        Set<PeerID> results = new LinkedHashSet<PeerID>();
+        long now = TimeUtils.timeNow();
+
+        if (null == skey) {
+            // All peer IDs who have records under the primary key that have not expired
+            collect(pkey + PKEY_SEPARATOR, null, results, threshold, now);
+        } else if (value.contains(WILDCARD)) {
+            String prefix = pkey + PKEY_SEPARATOR + skey + ATTRIBUTE_SEPARATOR;
+            String literalPrefix = value.substring(0, value.indexOf(WILDCARD));
+
+            collect(prefix + literalPrefix, toPattern(prefix, value), results, threshold, now);
+        } else {
+            collect(find(toKey(pkey, skey, value)), results, threshold, now);
+        }
+
+        return new ArrayList<PeerID>(results);
+    }
+
+    /**
+     * Adds the live peers recorded under all of the index keys starting with
+     * the specified prefix and, if provided, matching the pattern.
+     */
+    private void collect(String prefix, Pattern pattern, Set<PeerID> results, int threshold, long now) {
+        for (Map.Entry<String, PeerIDItem[]> anEntry : valueIndex.tailMap(prefix).entrySet()) {
+            String key = anEntry.getKey();
+
+            if (!key.startsWith(prefix)) {
+                break;
+            }
+
+            if ((null != pattern) && !pattern.matcher(key).matches()) {
+                continue;
+            }
+
+            if (collect(anEntry.getValue(), results, threshold, now)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Adds the live peers from the entries to the results.
+     *
+     * @return {@code true} if the threshold has been reached.
+     */
+    private boolean collect(PeerIDItem[] items, Set<PeerID> results, int threshold, long now) {
+        for (PeerIDItem item : items) {
+            if ((item.expiry >= now) && results.add(item.peerid) && (results.size() == threshold)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void remove(PeerID pid) throws IOException {
+        stoppedCheck();
+
+        Set<String> keys = peerKeys.remove(pid);
+
+        if (null == keys) {
+            // Nothing to do...
+            return;
+        }
+
+        List<String> treeKeys;
+        synchronized (keys) {
+            treeKeys = new ArrayList<String>(keys);
+        }
+
+        for (String treeKey : treeKeys) {
+            ReentrantLock lock = stripes[stripeFor(treeKey.substring(0, treeKey.indexOf(PKEY_SEPARATOR)))];
+
+            lock.lock();
+            try {
+                PeerIDItem[] current = valueIndex.get(treeKey);
+
+                if (null == current) {
+                    continue;
+                }
+
+                PeerIDItem[] updated = current.clone();
+
+                for (int i = 0; i < updated.length; i++) {
+                    PeerIDItem item = updated[i];
+
+                    if (item.peerid.equals(pid) && (item.expiry != -1)) {
+                        // Expire this entry and move it to the head of the gc index.
+                        updated[i] = new PeerIDItem(pid, -1, treeKey, item.stripe);
+                        expiryIndex.remove(item);
+                        expiryIndex.add(updated[i]);
+                        valueIndex.put(treeKey, updated);
+                        break;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Entries are expired one at a time in expiry order, each while holding
+     * only the lock for the entry's primary key.
+     */
+    public void garbageCollect() throws IOException {
+        if (stopped) {
+            // Index is stopped... nothing to do
+            return;
+        }
+
+        if (Logging.SHOW_INFO && LOG.isLoggable(Level.INFO)) {
+            LOG.info("gc... ");
+        }
+
+        long now = TimeUtils.timeNow();
+        int expired = 0;
+
+        while (!stopped) {
+            PeerIDItem oldest;
+
+            try {
+                oldest = expiryIndex.first();
+            } catch (NoSuchElementException empty) {
+                break;
+            }
+
+            if (oldest.expiry > now) {
+                // We've reached the end of this gc scan
+                break;
+            }
+
+            ReentrantLock lock = stripes[oldest.stripe];
+
+            lock.lock();
+            try {
+                // Skip if replaced by a concurrent add or remove.
+                if (expiryIndex.remove(oldest)) {
+                    removeValue(oldest);
+                    untrackKey(oldest.peerid, oldest.treeKey);
+                    expired++;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+            LOG.fine("[" + indexName + "] Expired " + expired + " entries, " + valueIndex.size() + " keys remain");
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void clear() throws IOException {
+        if (!stopped) {
+            if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
+                LOG.warning("Clearing an index that has not been stopped!");
+            }
+        }
+
+        for (ReentrantLock lock : stripes) {
+            lock.lock();
+        }
+        try {
+            valueIndex.clear();
+            expiryIndex.clear();
+            peerKeys.clear();
+        } finally {
+            for (ReentrantLock lock : stripes) {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    private PeerIDItem[] find(String treeKey) {
+        PeerIDItem[] items = valueIndex.get(treeKey);
+
+        return (null == items) ? NO_ITEMS : items;
+    }
+
+    /**
+     * Removes the entry from the value index. Caller must hold the entry's
+     * stripe lock.
+     */
+    private void removeValue(PeerIDItem removed) {
+        PeerIDItem[] current = valueIndex.get(removed.treeKey);
+
+        if (null == current) {
+            return;
+        }
+
+        List<PeerIDItem> updated = new ArrayList<PeerIDItem>(current.length);
+
+        for (PeerIDItem item : current) {
+            if (item != removed) {
+                updated.add(item);
+            }
+        }
+
+        if (updated.isEmpty()) {
+            valueIndex.remove(removed.treeKey);
+        } else if (updated.size() != current.length) {
+            valueIndex.put(removed.treeKey, updated.toArray(new PeerIDItem[updated.size()]));
+        }
+    }
+
+    /**
+     * Records that the peer has an entry under the index key. Caller must hold
+     * the key's stripe lock.
+     */
+    private void trackKey(PeerID pid, String treeKey) {
+        while (true) {
+            Set<String> keys = peerKeys.get(pid);
+
+            if (null == keys) {
+                keys = new HashSet<String>();
+                Set<String> existing = peerKeys.putIfAbsent(pid, keys);
+
+                if (null != existing) {
+                    keys = existing;
+                }
+            }
+
+            synchronized (keys) {
+                // Retry if the set was retired while we were acquiring it.
+                if (keys == peerKeys.get(pid)) {
+                    keys.add(treeKey);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Records that the peer no longer has an entry under the index key. Caller
+     * must hold the key's stripe lock.
+     */
+    private void untrackKey(PeerID pid, String treeKey) {
+        Set<String> keys = peerKeys.get(pid);
+
+        if (null == keys) {
+            return;
+        }
+
+        synchronized (keys) {
+            keys.remove(treeKey);
+
+            if (keys.isEmpty()) {
+                peerKeys.remove(pid, keys);
+            }
+        }
+    }
+
+    private int stripeFor(String pkey) {
+        return (pkey.hashCode() & 0x7FFFFFFF) % LOCK_STRIPES;
+    }
+
+    private static String toKey(String pkey, String skey, String value) {
+        return pkey + PKEY_SEPARATOR + skey + ATTRIBUTE_SEPARATOR + value;
+    }
+
+    /**
+     * Converts a value containing wildcards into a pattern matching complete
+     * index keys.
+     */
+    private static Pattern toPattern(String prefix, String value) {
+        StringBuilder regex = new StringBuilder(Pattern.quote(prefix));
+        int start = 0;
+        int wildcard;
+
+        while (-1 != (wildcard = value.indexOf(WILDCARD, start))) {
+            if (wildcard > start) {
+                regex.append(Pattern.quote(value.substring(start, wildcard)));
+            }
+            regex.append(".*");
+            start = wildcard + WILDCARD.length();
+        }
+
+        if (start < value.length()) {
+            regex.append(Pattern.quote(value.substring(start)));
+        }
+
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+    /**
+     * An immutable index entry for one peer under one index key. Entries are
+     * ordered by expiry and then by creation for the expiry index.
+     */
+    private static final class PeerIDItem implements Comparable<PeerIDItem> {
+
+        final PeerID peerid;
+        final long expiry;
+        final String treeKey;
+        final int stripe;
+        final long id = counter.getAndIncrement();
+
+        PeerIDItem(PeerID peerid, long expiry, String treeKey, int stripe) {
+            this.peerid = peerid;
+            this.expiry = expiry;
+            this.treeKey = treeKey;
+            this.stripe = stripe;
+        }
+
+        public int compareTo(PeerIDItem other) {
+            if (expiry != other.expiry) {
+                return (expiry < other.expiry) ? -1 : 1;
+            }
+
+            return (id < other.id) ? -1 : ((id == other.id) ? 0 : 1);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return this == obj;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (id ^ (id >>> 32));
+        }
+    }
+}
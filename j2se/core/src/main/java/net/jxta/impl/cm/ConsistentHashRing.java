@@ -0,0 +1,463 @@
+/*
+ * Copyright (c) 2001-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+
+package net.jxta.impl.cm;
+
+import java.io.UnsupportedEncodingException;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import net.jxta.impl.util.JxtaHash;
+import net.jxta.peer.PeerID;
+
+/**
+ * A consistent hash ring of peers, used to map SRDI expressions to the
+ * rendezvous responsible for them.
+ * <p/>
+ * Each peer is placed on the ring at a number of pseudo-random points
+ * (virtual nodes) derived from its ID, and an expression belongs to the peer
+ * owning the first point at or after the hash of the expression. When a peer
+ * joins or leaves, only the expressions on the arcs ending at its points
+ * change owner, on average {@code 1/n} of them, rather than nearly all of
+ * them as with a range partition of the sorted peer view.
+ * <p/>
+ * Membership changes build a new immutable snapshot of the ring, so lookups
+ * never lock. Lookups use a per-thread digest and buffers and do not
+ * allocate for ASCII expressions.
+ */
+final class ConsistentHashRing {
+
+    /**
+     * An immutable state of the ring.
+     */
+    private static final class Snapshot {
+        final long[] points;
+        final PeerID[] owners;
+        final Set<PeerID> members;
+
+        Snapshot(long[] points, PeerID[] owners, Set<PeerID> members) {
+            this.points = points;
+            this.owners = owners;
+            this.members = members;
+        }
+    }
+
+    /**
+     * The per-thread hashing state.
+     */
+    private static final class Hasher {
+        final MessageDigest digest;
+        final byte[] result;
+        byte[] input = new byte[256];
+
+        Hasher() {
+            try {
+                digest = MessageDigest.getInstance(JxtaHash.SHA1);
+            } catch (NoSuchAlgorithmException failed) {
+                throw new IllegalStateException("SHA1 digest is not available", failed);
+            }
+            result = new byte[digest.getDigestLength()];
+        }
+
+        long hash(String expression) {
+            int length = expression.length();
+
+            if (input.length < length) {
+                input = new byte[Math.max(length, input.length * 2)];
+            }
+
+            for (int each = 0; each < length; each++) {
+                char c = expression.charAt(each);
+
+                if (c >= 0x80) {
+                    return hash(utf8(expression));
+                }
+                input[each] = (byte) c;
+            }
+
+            digest.update(input, 0, length);
+            return finish();
+        }
+
+        long hash(byte[] bytes) {
+            digest.update(bytes, 0, bytes.length);
+            return finish();
+        }
+
+        private long finish() {
+            try {
+                digest.digest(result, 0, result.length);
+            } catch (DigestException failed) {
+                throw new IllegalStateException("Digest failed", failed);
+            }
+
+            long value = 0;
+
+            for (int each = 0; each < 8; each++) {
+                value = (value << 8) | (result[each] & 0xFF);
+            }
+            return value;
+        }
+
+        private static byte[] utf8(String expression) {
+            try {
+                return expression.getBytes("UTF-8");
+            } catch (UnsupportedEncodingException never) {
+                throw new IllegalStateException("UTF-8 encoding is not supported", never);
+            }
+        }
+    }
+
+    private static final ThreadLocal<Hasher> HASHER = new ThreadLocal<Hasher>() {
+        @Override
+        protected Hasher initialValue() {
+            return new Hasher();
+        }
+    };
+
+    private static final double HASH_SPACE = Math.pow(2, 64);
+
+    private final int virtualNodes;
+
+    private volatile Snapshot current = new Snapshot(new long[0], new PeerID[0], Collections.<PeerID>emptySet());
+
+    /**
+     * The number of membership changes which have been applied. Access is
+     * synchronized on this ring.
+     */
+    private long changes = 0;
+
+    /**
+     * The fraction of the key space which changed owner in the most recent
+     * membership change. Access is synchronized on this ring.
+     */
+    private double lastMoved = 0.0;
+
+    /**
+     * The sum of the fractions of the key space which changed owner. Access
+     * is synchronized on this ring.
+     */
+    private double totalMoved = 0.0;
+
+    /**
+     * @param virtualNodes the number of points on the ring per peer.
+     */
+    ConsistentHashRing(int virtualNodes) {
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("At least one virtual node per peer is required");
+        }
+        this.virtualNodes = virtualNodes;
+    }
+
+    /**
+     * Returns the hash of an expression as used to place it on the ring.
+     *
+     * @param expression the expression.
+     * @return the position of the expression on the ring.
+     */
+    static long hash(String expression) {
+        return HASHER.get().hash(expression);
+    }
+
+    /**
+     * Returns the peer responsible for the given expression.
+     *
+     * @param expression the expression.
+     * @return the responsible peer or {@code null} if the ring is empty.
+     */
+    PeerID getPeer(String expression) {
+        Snapshot snapshot = current;
+
+        if (0 == snapshot.points.length) {
+            return null;
+        }
+
+        return snapshot.owners[successor(snapshot.points, hash(expression))];
+    }
+
+    /**
+     * @return the number of peers on the ring.
+     */
+    int size() {
+        return current.members.size();
+    }
+
+    /**
+     * @param peer a peer.
+     * @return {@code true} if the peer is on the ring.
+     */
+    boolean contains(PeerID peer) {
+        return current.members.contains(peer);
+    }
+
+    /**
+     * @return the peers on the ring.
+     */
+    Set<PeerID> getMembers() {
+        return current.members;
+    }
+
+    /**
+     * Adds a peer to the ring.
+     *
+     * @param peer the peer.
+     * @return {@code true} if the peer was not already on the ring.
+     */
+    synchronized boolean add(PeerID peer) {
+        Snapshot old = current;
+
+        if (old.members.contains(peer)) {
+            return false;
+        }
+
+        Set<PeerID> members = new HashSet<PeerID>(old.members);
+
+        members.add(peer);
+        update(old, build(members));
+        return true;
+    }
+
+    /**
+     * Removes a peer from the ring.
+     *
+     * @param peer the peer.
+     * @return {@code true} if the peer was on the ring.
+     */
+    synchronized boolean remove(PeerID peer) {
+        Snapshot old = current;
+
+        if (!old.members.contains(peer)) {
+            return false;
+        }
+
+        Set<PeerID> members = new HashSet<PeerID>(old.members);
+
+        members.remove(peer);
+        update(old, build(members));
+        return true;
+    }
+
+    /**
+     * Replaces the members of the ring.
+     *
+     * @param peers the new members.
+     * @return {@code true} if the membership changed.
+     */
+    synchronized boolean setMembers(Collection<PeerID> peers) {
+        Snapshot old = current;
+        Set<PeerID> members = new HashSet<PeerID>(peers);
+
+        if (members.equals(old.members)) {
+            return false;
+        }
+
+        update(old, build(members));
+        return true;
+    }
+
+    /**
+     * @return the number of membership changes applied to the ring.
+     */
+    synchronized long getChangeCount() {
+        return changes;
+    }
+
+    /**
+     * @return the fraction of the key space which changed owner in the most
+     *         recent membership change.
+     */
+    synchronized double getLastMovedFraction() {
+        return lastMoved;
+    }
+
+    /**
+     * @return the average fraction of the key space which changed owner per
+     *         membership change, or 0.0 if there have been none.
+     */
+    synchronized double getAverageMovedFraction() {
+        return (0 == changes) ? 0.0 : totalMoved / changes;
+    }
+
+    private void update(Snapshot old, Snapshot replacement) {
+        current = replacement;
+        changes++;
+        lastMoved = movedFraction(old, replacement);
+        totalMoved += lastMoved;
+    }
+
+    /**
+     * Builds the ring for a set of peers. The points of each peer only depend
+     * on its ID, so all peers build the same ring for the same membership.
+     */
+    private Snapshot build(Set<PeerID> members) {
+        List<VirtualNode> nodes = new ArrayList<VirtualNode>(members.size() * virtualNodes);
+
+        for (PeerID peer : members) {
+            String name = peer.toString();
+
+            for (int node = 0; node < virtualNodes; node++) {
+                nodes.add(new VirtualNode(hash(name + "#" + node), peer, name));
+            }
+        }
+
+        Collections.sort(nodes);
+
+        long[] points = new long[nodes.size()];
+        PeerID[] owners = new PeerID[nodes.size()];
+
+        for (int each = 0; each < points.length; each++) {
+            points[each] = nodes.get(each).point;
+            owners[each] = nodes.get(each).peer;
+        }
+
+        return new Snapshot(points, owners, Collections.unmodifiableSet(members));
+    }
+
+    /**
+     * A point of a peer on the ring, ordered by point and then, for the very
+     * unlikely case of collisions, by peer ID.
+     */
+    private static final class VirtualNode implements Comparable<VirtualNode> {
+        final long point;
+        final PeerID peer;
+        final String name;
+
+        VirtualNode(long point, PeerID peer, String name) {
+            this.point = point;
+            this.peer = peer;
+            this.name = name;
+        }
+
+        public int compareTo(VirtualNode other) {
+            if (point != other.point) {
+                return (point < other.point) ? -1 : 1;
+            }
+            return name.compareTo(other.name);
+        }
+    }
+
+    /**
+     * Returns the index of the first point at or after the given hash,
+     * wrapping around to the first point.
+     */
+    private static int successor(long[] points, long hash) {
+        int index = Arrays.binarySearch(points, hash);
+
+        if (index < 0) {
+            index = -index - 1;
+        } else {
+            // Several virtual nodes may share a point, take the first.
+            while ((index > 0) && (points[index - 1] == hash)) {
+                index--;
+            }
+        }
+
+        return (index == points.length) ? 0 : index;
+    }
+
+    /**
+     * Computes the fraction of the key space whose owner differs between two
+     * rings.
+     */
+    private static double movedFraction(Snapshot before, Snapshot after) {
+        if ((0 == before.points.length) || (0 == after.points.length)) {
+            return (before.points.length == after.points.length) ? 0.0 : 1.0;
+        }
+
+        // Every point of either ring bounds an arc over which the owner in
+        // each ring is constant. Walk the arcs in order.
+        long[] bounds = new long[before.points.length + after.points.length];
+
+        System.arraycopy(before.points, 0, bounds, 0, before.points.length);
+        System.arraycopy(after.points, 0, bounds, before.points.length, after.points.length);
+        Arrays.sort(bounds);
+
+        double moved = 0.0;
+        long previous = bounds[bounds.length - 1];
+
+        for (long bound : bounds) {
+            if (bound == previous) {
+                continue;
+            }
+
+            if (!before.owners[successor(before.points, bound)].equals(after.owners[successor(after.points, bound)])) {
+                // Length of the arc (previous, bound], modulo 2^64.
+                moved += unsigned(bound - previous);
+            }
+            previous = bound;
+        }
+
+        if ((bounds[0] == bounds[bounds.length - 1])
+                && !before.owners[0].equals(after.owners[0])) {
+            // A single distinct bound, the whole ring is one arc.
+            moved = HASH_SPACE;
+        }
+
+        return moved / HASH_SPACE;
+    }
+
+    private static double unsigned(long value) {
+        return (value >= 0) ? (double) value : HASH_SPACE + value;
+    }
+}
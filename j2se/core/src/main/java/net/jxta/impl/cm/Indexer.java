@@ -607,9 +607,10 @@ public final class Indexer {
                 }
             } catch (DBException ex) {
                 if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
-                    LOG.log(Level.WARNING, "Exception while reading indexed", ex);
+                    LOG.log(Level.WARNING, "Skipping unreadable indexed record", ex);
                 }
-                return false;
+                // Skip the record rather than ending the enumeration.
+                return true;
             }
             return result;
         }
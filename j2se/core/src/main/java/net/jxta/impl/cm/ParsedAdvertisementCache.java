@@ -0,0 +1,329 @@
+package net.jxta.impl.cm;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.jxta.document.Advertisement;
+import net.jxta.impl.util.TimeUtils;
+
+/**
+ * A bounded, expiry aware cache of parsed advertisements which sits in front
+ * of the {@link AdvertisementCache} used by {@link Cm}. Entries are keyed by
+ * the directory and file name of the record from which they were parsed.
+ * 
+ * <p>The cached instances are never handed out directly. Callers always
+ * receive a clone so that modifications made by the caller cannot leak into
+ * the cache. Advertisements which cannot be cloned are not cached.</p>
+ * 
+ * <p>The cache is bounded both by number of entries and by the approximate
+ * memory used, which is estimated from the size of the serialized records.
+ * The least recently used entries are evicted first.</p>
+ */
+public class ParsedAdvertisementCache {
+
+    /**
+     * Default maximum number of cached advertisements.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 1024;
+
+    /**
+     * Default maximum approximate number of bytes used by the cached
+     * advertisements.
+     */
+    public static final long DEFAULT_MAX_BYTES = 4L * 1024 * 1024;
+
+    /**
+     * Estimate of the memory required by a parsed advertisement relative to
+     * the size of its UTF-8 XML serialization.
+     */
+    private static final int PARSED_SIZE_FACTOR = 4;
+
+    private final static class CachedAdvertisement {
+
+        final Advertisement adv;
+        final long size;
+        final long expiresAt;
+
+        CachedAdvertisement(Advertisement adv, long size, long expiresAt) {
+            this.adv = adv;
+            this.size = size;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final int maxEntries;
+    private final long maxBytes;
+
+    /**
+     * The cached advertisements in least recently used order.
+     */
+    private final LinkedHashMap<String, CachedAdvertisement> entries = new LinkedHashMap<String, CachedAdvertisement>(16, 0.75f, true);
+
+    /**
+     * Incremented for every invalidation. Used to prevent the caching of
+     * advertisements which were read from the store before a concurrent
+     * modification of the store.
+     */
+    private long modCount = 0;
+
+    private long currentBytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long invalidations = 0;
+
+    /**
+     * Creates a cache with the default bounds.
+     */
+    public ParsedAdvertisementCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Creates a cache.
+     *
+     * @param maxEntries The maximum number of cached advertisements. If
+     *                   {@code 0} then nothing is cached.
+     * @param maxBytes   The maximum approximate number of bytes used by the
+     *                   cached advertisements.
+     */
+    public ParsedAdvertisementCache(int maxEntries, long maxBytes) {
+        if (maxEntries < 0) {
+            throw new IllegalArgumentException("maxEntries must be >= 0");
+        }
+
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes must be >= 0");
+        }
+
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns a copy of the cached advertisement for the given record.
+     *
+     * @param dn directory name
+     * @param fn file name
+     * @return a copy of the cached advertisement or {@code null} if the
+     *         record is not cached or has expired.
+     */
+    public Advertisement get(String dn, String fn) {
+        String key = toKey(dn, fn);
+        Advertisement cached;
+
+        synchronized (this) {
+            CachedAdvertisement entry = entries.get(key);
+
+            if (null == entry) {
+                misses++;
+                return null;
+            }
+
+            if (TimeUtils.timeNow() >= entry.expiresAt) {
+                removeEntry(key);
+                evictions++;
+                misses++;
+                return null;
+            }
+
+            hits++;
+            cached = entry.adv;
+        }
+
+        try {
+            return cached.clone();
+        } catch (CloneNotSupportedException notCloneable) {
+            // Only cloneable advertisements are cached.
+            throw new IllegalStateException("Cached advertisement could not be cloned");
+        }
+    }
+
+    /**
+     * Returns the current modification stamp. The stamp must be read before
+     * the record is read from the store and passed to
+     * {@link #put(String, String, Advertisement, long, long, long)}.
+     *
+     * @return the current modification stamp.
+     */
+    public synchronized long getModificationStamp() {
+        return modCount;
+    }
+
+    /**
+     * Caches a copy of a freshly parsed advertisement. The advertisement is
+     * not cached if it cannot be cloned, if it is too large or if the store
+     * has been modified since the stamp was taken.
+     *
+     * @param dn         directory name
+     * @param fn         file name
+     * @param adv        the advertisement.
+     * @param recordSize the size in bytes of the serialized record.
+     * @param expiration the relative expiration of the record in milliseconds.
+     * @param stamp      the modification stamp read before the record was read.
+     */
+    public void put(String dn, String fn, Advertisement adv, long recordSize, long expiration, long stamp) {
+        if ((0 == maxEntries) || (expiration <= 0)) {
+            return;
+        }
+
+        long size = recordSize * PARSED_SIZE_FACTOR;
+
+        if (size > maxBytes) {
+            return;
+        }
+
+        Advertisement copy;
+
+        try {
+            copy = adv.clone();
+        } catch (CloneNotSupportedException notCloneable) {
+            return;
+        }
+
+        String key = toKey(dn, fn);
+        CachedAdvertisement entry = new CachedAdvertisement(copy, size, TimeUtils.toAbsoluteTimeMillis(expiration));
+
+        synchronized (this) {
+            if (stamp != modCount) {
+                return;
+            }
+
+            removeEntry(key);
+
+            entries.put(key, entry);
+            currentBytes += size;
+
+            Iterator<CachedAdvertisement> eldest = entries.values().iterator();
+
+            while (((entries.size() > maxEntries) || (currentBytes > maxBytes)) && eldest.hasNext()) {
+                CachedAdvertisement evicted = eldest.next();
+
+                eldest.remove();
+                currentBytes -= evicted.size;
+                evictions++;
+            }
+        }
+    }
+
+    /**
+     * Removes the cached advertisement for the given record.
+     *
+     * @param dn directory name
+     * @param fn file name
+     */
+    public synchronized void invalidate(String dn, String fn) {
+        modCount++;
+
+        if (null != removeEntry(toKey(dn, fn))) {
+            invalidations++;
+        }
+    }
+
+    /**
+     * Removes all cached advertisements.
+     */
+    public synchronized void invalidateAll() {
+        modCount++;
+        invalidations += entries.size();
+        entries.clear();
+        currentBytes = 0;
+    }
+
+    /**
+     * Removes all expired advertisements.
+     */
+    public synchronized void purgeExpired() {
+        long now = TimeUtils.timeNow();
+        Iterator<CachedAdvertisement> eachEntry = entries.values().iterator();
+
+        while (eachEntry.hasNext()) {
+            CachedAdvertisement entry = eachEntry.next();
+
+            if (now >= entry.expiresAt) {
+                eachEntry.remove();
+                currentBytes -= entry.size;
+                evictions++;
+            }
+        }
+    }
+
+    /**
+     * @return the number of cached advertisements.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the approximate number of bytes used by the cached
+     *         advertisements.
+     */
+    public synchronized long getMemoryUsage() {
+        return currentBytes;
+    }
+
+    /**
+     * @return the number of lookups which were satisfied from the cache.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of lookups which were not satisfied from the cache.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the fraction of lookups which were satisfied from the cache.
+     */
+    public synchronized double getHitRatio() {
+        long lookups = hits + misses;
+
+        return (0 == lookups) ? 0.0 : ((double) hits / lookups);
+    }
+
+    /**
+     * @return the number of advertisements removed because of expiry or
+     *         because the cache was full.
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return the number of advertisements removed because the store record
+     *         was modified or removed.
+     */
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized String toString() {
+        return "ParsedAdvertisementCache[entries=" + entries.size() + ", bytes=" + currentBytes + ", hits=" + hits
+                + ", misses=" + misses + ", hitRatio=" + getHitRatio() + ", evictions=" + evictions + ", invalidations="
+                + invalidations + "]";
+    }
+
+    private CachedAdvertisement removeEntry(String key) {
+        CachedAdvertisement removed = entries.remove(key);
+
+        if (null != removed) {
+            currentBytes -= removed.size;
+        }
+
+        return removed;
+    }
+
+    private static String toKey(String dn, String fn) {
+        return dn + "/" + fn;
+    }
+}
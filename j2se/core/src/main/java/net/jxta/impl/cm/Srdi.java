@@ -56,15 +56,12 @@
 package net.jxta.impl.cm;
 
 import java.io.IOException;
-import java.math.BigInteger;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 import java.util.Random;
 import java.util.SortedSet;
 import java.util.TreeSet;
@@ -77,12 +74,15 @@ import net.jxta.credential.Credential;
 import net.jxta.id.ID;
 import net.jxta.id.IDFactory;
 import net.jxta.impl.protocol.ResolverSrdiMsgImpl;
-import net.jxta.impl.protocol.SrdiMessageImpl;
+import net.jxta.impl.rendezvous.RendezVousServiceImpl;
+import net.jxta.impl.resolver.InternalResolverService;
+import net.jxta.impl.rendezvous.rpv.PeerView;
+import net.jxta.impl.rendezvous.rpv.PeerViewElement;
 import net.jxta.impl.util.JxtaHash;
+import net.jxta.impl.util.threads.TaskManager;
 import net.jxta.logging.Logging;
 import net.jxta.peer.PeerID;
 import net.jxta.peergroup.PeerGroup;
-import net.jxta.protocol.RdvAdvertisement;
 import net.jxta.protocol.ResolverQueryMsg;
 import net.jxta.protocol.ResolverSrdiMsg;
 import net.jxta.protocol.SrdiMessage;
@@ -132,11 +132,16 @@ public class Srdi implements RendezvousListener {
     private SrdiIndexBackend srdiIndex;
 
     private ResolverService resolver;
-    private final JxtaHash jxtaHash = new JxtaHash();
     private Credential credential = null;
     
     private SrdiPeriodicPushTask srdiPushTask;
 
+    /**
+     * Batches the entries forwarded and replicated to other peers. Created on
+     * first use.
+     */
+    private SrdiBatcher batcher = null;
+
 
     /**
      * Random number generator used for random result selection
@@ -149,6 +154,97 @@ public class Srdi implements RendezvousListener {
      */
     public final static int RPV_REPLICATION_THRESHOLD = 3;
 
+    /**
+     * System property for the time in milliseconds that forwarded and
+     * replicated entries are held so that they can be sent with others for
+     * the same peer. Zero disables batching.
+     */
+    public final static String BATCH_WINDOW_SYSPROP = "net.jxta.impl.cm.Srdi.batchWindow";
+
+    /**
+     * System property for the maximum number of entries sent in one
+     * forwarded or replicated SRDI message.
+     */
+    public final static String BATCH_MAX_ENTRIES_SYSPROP = "net.jxta.impl.cm.Srdi.batchMaxEntries";
+
+    private final static long DEFAULT_BATCH_WINDOW = 50;
+    private final static int DEFAULT_BATCH_MAX_ENTRIES = 100;
+
+    /**
+     * System property for the number of points each rendezvous has on the
+     * consistent hash ring used by {@link #getReplicaPeer(String)}.
+     */
+    public final static String REPLICA_VIRTUAL_NODES_SYSPROP = "net.jxta.impl.cm.Srdi.replicaVirtualNodes";
+
+    /**
+     * System property which, if {@code true}, selects replica peers with a
+     * consistent hash ring of the peer view, which moves fewer replicas when
+     * the peer view changes, instead of by partitioning the sorted peer view
+     * into ranges. All rendezvous of a group must use the same replica
+     * selection, so this must only be enabled for every rendezvous of a group
+     * at once.
+     */
+    public final static String CONSISTENT_HASH_REPLICA_SELECTION_SYSPROP = "net.jxta.impl.cm.Srdi.consistentHashReplicaSelection";
+
+    private final static int DEFAULT_REPLICA_VIRTUAL_NODES = 64;
+
+    private final boolean consistentHashReplicaSelection = Boolean.getBoolean(CONSISTENT_HASH_REPLICA_SELECTION_SYSPROP);
+
+    /**
+     * The rendezvous peers, ourself included, which replicas are mapped to.
+     */
+    private final ConsistentHashRing replicaRing = new ConsistentHashRing(
+            Integer.getInteger(REPLICA_VIRTUAL_NODES_SYSPROP, DEFAULT_REPLICA_VIRTUAL_NODES));
+
+    /**
+     * Guards changes to the {@link #replicaRing} membership, {@link #ringPeerView}
+     * and {@link #ringViewVersion}.
+     */
+    private final Object replicaLock = new Object();
+
+    /**
+     * The peer view from which the {@link #replicaRing} was built.
+     */
+    private volatile PeerView ringPeerView = null;
+
+    /**
+     * The version of {@link #ringPeerView} from which the {@link #replicaRing}
+     * was built or -1 if the ring must be rebuilt.
+     */
+    private volatile long ringViewVersion = -1;
+
+    /**
+     * The sorted peer view from which replica peers are selected when the
+     * consistent hash ring is not used, or {@code null} if not yet built.
+     */
+    private volatile GlobalPeerView globalPeerView = null;
+
+    /**
+     * The sorted peer view, ourself included, and the peer view and version
+     * it was built from.
+     */
+    private static final class GlobalPeerView {
+        final PeerView peerView;
+        final long version;
+        final List<PeerID> peers;
+
+        GlobalPeerView(PeerView peerView, long version, List<PeerID> peers) {
+            this.peerView = peerView;
+            this.version = version;
+            this.peers = peers;
+        }
+    }
+
+    /**
+     * The per-thread digest used to map expressions to replica peers.
+     */
+    private static final ThreadLocal<JxtaHash> REPLICA_HASH = new ThreadLocal<JxtaHash>() {
+        @Override
+        protected JxtaHash initialValue() {
+            return new JxtaHash();
+        }
+    };
+
     /**
      * Interface for pushing entries.
      */
@@ -192,6 +288,15 @@ public class Srdi implements RendezvousListener {
     public synchronized void stop() {
         stopPush();
 
+        if (null != batcher) {
+            batcher.stop();
+        }
+
+        synchronized (replicaLock) {
+            ringPeerView = null;
+            ringViewVersion = -1;
+        }
+
         RendezVousService rendezvous = group.getRendezVousService();
 
         if (null != rendezvous) {
@@ -203,48 +308,32 @@ public class Srdi implements RendezvousListener {
      * Replicates a SRDI message to other rendezvous'
      * entries are replicated by breaking out entries out of the message
      * and sorted out into rdv distribution bins. after which smaller messages
-     * are sent to other rdv's
+     * are sent to other rdv's. Entries for the same rdv are batched with
+     * those of other recently replicated messages.
      *
      * @param srdiMsg srdi message to replicate
      */
 
     public void replicateEntries(SrdiMessage srdiMsg) {
 
-        List<PeerID> rpv = getGlobalPeerView();
-
-        if (srdiMsg.getScope() < SrdiMessage.REPLICATE || !group.isRendezvous() || rpv.size() < RPV_REPLICATION_THRESHOLD) {
+        if (srdiMsg.getScope() < SrdiMessage.REPLICATE || !group.isRendezvous() || getReplicaViewSize() < RPV_REPLICATION_THRESHOLD) {
             return;
         }
 
-        Iterator<Entry> allEntries = srdiMsg.getEntries().iterator();
-        Map<PeerID, SrdiMessageImpl> bins = new HashMap<PeerID, SrdiMessageImpl>(rpv.size());
+        SrdiBatcher batches = getBatcher();
 
-        while (allEntries.hasNext()) {
-            Entry entry = allEntries.next();
+        for (Entry entry : srdiMsg.getEntries()) {
             PeerID destPeer = getReplicaPeer(srdiMsg.getPrimaryKey() + entry.key + entry.value);
 
             if (destPeer == null || destPeer.equals(group.getPeerID())) {
                 // don't replicate message back to ourselves
                 continue;
             }
-            SrdiMessageImpl sm = bins.get(destPeer);
 
-            if (sm == null) {
-                sm = new SrdiMessageImpl();
-                sm.setPrimaryKey(srdiMsg.getPrimaryKey());
-                sm.setPeerID(srdiMsg.getPeerID());
-                bins.put(destPeer, sm);
+            if (Logging.SHOW_FINER && LOG.isLoggable(Level.FINER)) {
+                LOG.finer("[" + group.getPeerGroupName() + " / " + handlername + "] Forwarding replica Srdi to " + destPeer);
             }
-            sm.addEntry(entry);
-        }
-
-        for (PeerID destPeer : bins.keySet()) {
-            SrdiMessageImpl msg = bins.get(destPeer);
-
-            if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
-                LOG.fine("[" + group.getPeerGroupName() + " / " + handlername + "] Forwarding replica Srdi to " + destPeer);
-            }
-            pushSrdi(destPeer, msg);
+            batches.add(destPeer, srdiMsg.getPeerID(), srdiMsg.getPrimaryKey(), SrdiMessage.PERSISTONLY, entry);
         }
     }
 
@@ -315,12 +404,23 @@ public class Srdi implements RendezvousListener {
             return;
         }
 
+        List<String> destPeers = new ArrayList<String>(peers.size());
+
         for (PeerID destPeer : peers) {
             if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
                 LOG.fine(MessageFormat.format("[{0} / {1}] Forwarding Query to {2}",
                         group.getPeerGroupName(), handlername, destPeer));
             }
-            resolver.sendQuery(destPeer.toString(), query);
+            destPeers.add(destPeer.toString());
+        }
+
+        if (resolver instanceof InternalResolverService) {
+            // the query is serialized once for all of the peers.
+            ((InternalResolverService) resolver).sendQueryToPeers(destPeers, query);
+        } else {
+            for (String destPeer : destPeers) {
+                resolver.sendQuery(destPeer, query);
+            }
         }
     }
 
@@ -382,19 +482,29 @@ public class Srdi implements RendezvousListener {
      * @return The replicaPeer value
      */
     public PeerID getReplicaPeer(String expression) {
+        if (consistentHashReplicaSelection) {
+            ConsistentHashRing ring = getReplicaRing();
+
+            if (ring.size() < RPV_REPLICATION_THRESHOLD) {
+                return null;
+            }
+
+            PeerID pid = ring.getPeer(expression);
+
+            if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+                LOG.fine(MessageFormat.format("[{0} / {1}] Found a direct peer {2}", group.getPeerGroupName(), handlername, pid));
+            }
+            return pid;
+        }
+
         PeerID pid;
-        List<PeerID> rpv = getGlobalPeerView();
+        List<PeerID> rpv = getSortedPeerView();
 
         if (rpv.size() >= RPV_REPLICATION_THRESHOLD) {
-            BigInteger digest;
+            JxtaHash hash = REPLICA_HASH.get();
 
-            synchronized (jxtaHash) {
-                jxtaHash.update(expression);
-                digest = jxtaHash.getDigestInteger().abs();
-            }
-            BigInteger sizeOfSpace = java.math.BigInteger.valueOf(rpv.size());
-            BigInteger sizeOfHashSpace = BigInteger.ONE.shiftLeft(8 * digest.toByteArray().length);
-            int pos = (digest.multiply(sizeOfSpace)).divide(sizeOfHashSpace).intValue();
+            hash.update(expression);
+            int pos = getReplicaIndex(hash.getDigest(), rpv.size());
 
             pid = rpv.get(pos);
             if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
@@ -407,7 +517,144 @@ public class Srdi implements RendezvousListener {
     }
 
     /**
-     * forward srdi message to another peer
+     * Returns the fraction of the replica key space which was mapped to a
+     * different peer by the most recent change of the peer view.
+     *
+     * @return the fraction between 0.0 and 1.0.
+     */
+    public double getReplicaMovedFraction() {
+        return replicaRing.getLastMovedFraction();
+    }
+
+    /**
+     * Returns the average fraction of the replica key space which was mapped
+     * to a different peer per change of the peer view.
+     *
+     * @return the fraction between 0.0 and 1.0.
+     */
+    public double getAverageReplicaMovedFraction() {
+        return replicaRing.getAverageMovedFraction();
+    }
+
+    /**
+     * Returns the number of peer view changes applied to the replica mapping.
+     *
+     * @return the number of changes.
+     */
+    public long getReplicaViewChangeCount() {
+        return replicaRing.getChangeCount();
+    }
+
+    /**
+     * Maps a digest to a position in a peer view of the given size. The
+     * absolute value of the digest, as a signed integer, is scaled from the
+     * range of the smallest whole number of bytes holding it in two's
+     * complement to the size of the view. The result is the same as that of
+     * <code>digest * size / 2^(8 * digest.toByteArray().length)</code>
+     * computed with {@link java.math.BigInteger}, but without allocating.
+     *
+     * @param digest the digest, a big-endian signed integer. It is modified.
+     * @param size   the size of the peer view.
+     * @return the position, between 0 and <code>size - 1</code>.
+     */
+    static int getReplicaIndex(byte[] digest, int size) {
+        if (digest[0] < 0) {
+            // Negate the two's complement value to get its magnitude.
+            int carry = 1;
+
+            for (int each = digest.length - 1; each >= 0; each--) {
+                int value = (~digest[each] & 0xFF) + carry;
+
+                digest[each] = (byte) value;
+                carry = value >>> 8;
+            }
+        }
+
+        // Skip the leading zero bytes which a minimal two's complement
+        // representation omits, keeping the one before a high bit.
+        int first = 0;
+
+        while ((first < digest.length - 1) && (0 == digest[first]) && (digest[first + 1] >= 0)) {
+            first++;
+        }
+
+        // Multiply by the size, least significant byte first, keeping only
+        // the part above the digest bytes.
+        long carry = 0;
+
+        for (int each = digest.length - 1; each >= first; each--) {
+            carry = ((digest[each] & 0xFF) * (long) size + carry) >>> 8;
+        }
+
+        if (digest[first] < 0) {
+            // The minimal representation has an additional zero sign byte.
+            carry >>>= 8;
+        }
+
+        return (int) carry;
+    }
+
+    private int getReplicaViewSize() {
+        return consistentHashReplicaSelection ? getReplicaRing().size() : getSortedPeerView().size();
+    }
+
+    /**
+     * Returns the consistent hash ring of the current peer view. The ring is
+     * only rebuilt when the peer view, or its version, has changed since the
+     * ring was last built.
+     *
+     * @return the ring.
+     */
+    private ConsistentHashRing getReplicaRing() {
+        PeerView view = getPeerView();
+        // Read the version before the view so that no change is missed.
+        long version = (null == view) ? 0 : view.getViewVersion();
+
+        if ((view != ringPeerView) || (version != ringViewVersion)) {
+            synchronized (replicaLock) {
+                if ((view != ringPeerView) || (version != ringViewVersion)) {
+                    List<PeerID> members = new ArrayList<PeerID>();
+
+                    if (null != view) {
+                        for (PeerViewElement pve : view.getView()) {
+                            members.add((PeerID) pve.getPeerID());
+                        }
+                    }
+                    members.add(group.getPeerID());
+
+                    boolean changed = replicaRing.setMembers(members);
+
+                    ringPeerView = view;
+                    ringViewVersion = version;
+
+                    if (changed && Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+                        LOG.fine(MessageFormat.format("[{0} / {1}] Peer view version {2} moved {3,number,percent} of the replica key space to new peers",
+                                group.getPeerGroupName(), handlername, version, replicaRing.getLastMovedFraction()));
+                    }
+                }
+            }
+        }
+
+        return replicaRing;
+    }
+
+    /**
+     * Returns the peer view of our rendezvous service, if we are a rendezvous.
+     *
+     * @return the peer view or {@code null}.
+     */
+    private PeerView getPeerView() {
+        RendezVousService rendezvous = group.getRendezVousService();
+
+        if (rendezvous instanceof RendezVousServiceImpl) {
+            return ((RendezVousServiceImpl) rendezvous).getPeerView();
+        }
+        return null;
+    }
+
+    /**
+     * forward srdi message to another peer. The entry is batched with others
+     * forwarded to the same peer.
      *
      * @param peerid       PeerID to forward query to
      * @param srcPid       The source originator
@@ -418,22 +665,75 @@ public class Srdi implements RendezvousListener {
      */
     public void forwardSrdiMessage(PeerID peerid, PeerID srcPid, String primaryKey, String secondarykey, String value, long expiration) {
 
-        try {
-            SrdiMessageImpl srdi = new SrdiMessageImpl(srcPid, // ttl of 0, avoids additional replication
-                    0, primaryKey, secondarykey, value, expiration);
+        if (Logging.SHOW_FINER && LOG.isLoggable(Level.FINER)) {
+            LOG.finer(MessageFormat.format("[{0} / {1}] Forwarding a SRDI entry of type {2} to {3}", group.getPeerGroupName(),
+                            handlername, primaryKey, peerid));
+        }
 
-            ResolverSrdiMsgImpl resSrdi = new ResolverSrdiMsgImpl(handlername, credential, srdi.toString());
+        // ttl of 0, avoids additional replication
+        getBatcher().add(peerid, srcPid, primaryKey, SrdiMessage.PERSISTONLY, new Entry(secondarykey, value, expiration));
+    }
 
-            if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
-                LOG.fine(MessageFormat.format("[{0} / {1}] Forwarding a SRDI messsage of type {2} to {3}", group.getPeerGroupName(),
-                                handlername, primaryKey, peerid));
-            }
-            resolver.sendSrdi(peerid.toString(), resSrdi);
-        } catch (Exception e) {
-            if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
-                LOG.log(Level.WARNING, "Failed forwarding SRDI Message", e);
-            }
+    /**
+     * Sends all of the forwarded and replicated entries which are waiting to
+     * be batched.
+     */
+    public void flushForwarded() {
+        SrdiBatcher batches;
+
+        synchronized (this) {
+            batches = batcher;
         }
+
+        if (null != batches) {
+            batches.flush();
+        }
+    }
+
+    /**
+     * Returns the average number of entries per forwarded or replicated SRDI
+     * message sent.
+     *
+     * @return the average number of entries per message, or 0.0 if none have
+     *         been sent.
+     */
+    public double getForwardedEntriesPerMessage() {
+        return getBatcher().getAverageEntriesPerMessage();
+    }
+
+    /**
+     * Returns the number of forwarded or replicated SRDI messages sent.
+     *
+     * @return the number of messages.
+     */
+    public long getForwardedMessageCount() {
+        return getBatcher().getMessageCount();
+    }
+
+    /**
+     * Returns the number of entries sent in forwarded or replicated SRDI
+     * messages.
+     *
+     * @return the number of entries.
+     */
+    public long getForwardedEntryCount() {
+        return getBatcher().getEntryCount();
+    }
+
+    private synchronized SrdiBatcher getBatcher() {
+        if (null == batcher) {
+            SrdiBatcher.Sender sender = new SrdiBatcher.Sender() {
+                public void send(PeerID destination, SrdiMessage message) {
+                    pushSrdi(destination, message);
+                }
+            };
+
+            batcher = new SrdiBatcher(sender,
+                    TaskManager.getTaskManager().getScheduledExecutorService(),
+                    Long.getLong(BATCH_WINDOW_SYSPROP, DEFAULT_BATCH_WINDOW),
+                    Integer.getInteger(BATCH_MAX_ENTRIES_SYSPROP, DEFAULT_BATCH_MAX_ENTRIES));
+        }
+        return batcher;
     }
 
     /**
@@ -447,6 +747,10 @@ public class Srdi implements RendezvousListener {
             LOG.fine(MessageFormat.format("[{0} / {1}] Processing {2}", group.getPeerGroupName(), handlername, event));
         }
 
+        // The destinations of the held entries may no longer be reachable or
+        // responsible for them once the rendezvous topology changes.
+        flushForwarded();
+
         switch (theEventType) {
 
             case RendezvousEvent.RDVCONNECT:
@@ -533,16 +837,45 @@ public class Srdi implements RendezvousListener {
      * @return the sorted list
      */
     public Vector<PeerID> getGlobalPeerView() {
+        return new Vector<PeerID>(getSortedPeerView());
+    }
 
-        Vector<PeerID> global = new Vector<PeerID>();
+    /**
+     * Returns the global peerview. It is only rebuilt when the peer view, or
+     * its version, has changed since it was last built.
+     *
+     * @return the sorted, unmodifiable list
+     */
+    private List<PeerID> getSortedPeerView() {
+        PeerView rpv = getPeerView();
+        // Read the version before the view so that no change is missed.
+        long version = (null == rpv) ? 0 : rpv.getViewVersion();
+        GlobalPeerView current = globalPeerView;
+
+        if ((null == current) || (rpv != current.peerView) || (version != current.version)) {
+            current = new GlobalPeerView(rpv, version, Collections.unmodifiableList(buildGlobalPeerView(rpv)));
+            globalPeerView = current;
+        }
+
+        return current.peers;
+    }
+
+    /**
+     * Builds the global peerview from the given peer view.
+     *
+     * @param rpv the peer view or {@code null}.
+     * @return the sorted list
+     */
+    private List<PeerID> buildGlobalPeerView(PeerView rpv) {
+
+        List<PeerID> global = new ArrayList<PeerID>();
         SortedSet<String> set = new TreeSet<String>();
 
         try {
-            // get the local peerview
-            List<RdvAdvertisement> rpv = group.getRendezVousService().getLocalWalkView();
-
-            for (RdvAdvertisement padv : rpv) {
-                set.add(padv.getPeerID().toString());
+            if (null != rpv) {
+                for (PeerViewElement pve : rpv.getView()) {
+                    set.add(pve.getPeerID().toString());
+                }
             }
 
             // add myself
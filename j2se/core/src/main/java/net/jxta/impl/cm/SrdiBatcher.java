@@ -0,0 +1,410 @@
+/*
+ * Copyright (c) 2001-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+
+package net.jxta.impl.cm;
+
+import java.text.MessageFormat;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.jxta.impl.protocol.SrdiMessageImpl;
+import net.jxta.logging.Logging;
+import net.jxta.peer.PeerID;
+import net.jxta.protocol.SrdiMessage;
+import net.jxta.protocol.SrdiMessage.Entry;
+
+/**
+ * Accumulates SRDI entries which are forwarded or replicated to other peers
+ * and sends them as one {@link SrdiMessage} per destination.
+ * <p/>
+ * Entries are grouped by destination, originating peer, primary key and
+ * scope, since those are carried once per message. A group is sent when the
+ * batching window which started with its first entry expires, when it
+ * reaches the maximum number of entries, or when {@link #flush()} is called.
+ * <p/>
+ * Different destinations never contend with each other: the groups are held
+ * in a concurrent map and each group is only locked while an entry is added
+ * or while it is closed for sending.
+ * <p/>
+ * An entry for the same attribute and value as an entry already in the batch
+ * replaces it, since {@link Entry#equals(Object)} ignores the expiration. Only
+ * the most recent expiration is sent, so a removal (an expiration of zero)
+ * which follows a publication within the same window is not lost.
+ */
+final class SrdiBatcher {
+
+    /**
+     * Logger
+     */
+    private final static Logger LOG = Logger.getLogger(SrdiBatcher.class.getName());
+
+    /**
+     * Sends the batched messages.
+     */
+    interface Sender {
+
+        /**
+         * Send a SRDI message to a peer.
+         *
+         * @param destination the peer to send to.
+         * @param message     the message.
+         */
+        void send(PeerID destination, SrdiMessage message);
+    }
+
+    /**
+     * The values which must be the same for all of the entries of a message.
+     */
+    private static final class Key {
+        final PeerID destination;
+        final PeerID source;
+        final String primaryKey;
+        final int scope;
+
+        Key(PeerID destination, PeerID source, String primaryKey, int scope) {
+            this.destination = destination;
+            this.source = source;
+            this.primaryKey = primaryKey;
+            this.scope = scope;
+        }
+
+        @Override
+        public boolean equals(Object target) {
+            if (this == target) {
+                return true;
+            }
+
+            if (!(target instanceof Key)) {
+                return false;
+            }
+
+            Key other = (Key) target;
+
+            return destination.equals(other.destination) && primaryKey.equals(other.primaryKey) && (scope == other.scope)
+                    && ((null == source) ? (null == other.source) : source.equals(other.source));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = destination.hashCode();
+
+            result = 31 * result + primaryKey.hashCode();
+            result = 31 * result + ((null == source) ? 0 : source.hashCode());
+            return 31 * result + scope;
+        }
+    }
+
+    /**
+     * The entries accumulated for a key. Once closed no further entries may
+     * be added and a new batch must be started.
+     */
+    private final class Batch implements Runnable {
+        final Key key;
+        final Set<Entry> entries = new LinkedHashSet<Entry>();
+        boolean closed = false;
+        volatile ScheduledFuture<?> timer = null;
+
+        Batch(Key key) {
+            this.key = key;
+        }
+
+        /**
+         * Batching window expired.
+         */
+        public void run() {
+            try {
+                ship(this, windowFlushes);
+            } catch (Throwable all) {
+                if (Logging.SHOW_SEVERE && LOG.isLoggable(Level.SEVERE)) {
+                    LOG.log(Level.SEVERE, "Uncaught Throwable in SRDI batch flush", all);
+                }
+            }
+        }
+    }
+
+    private final Sender sender;
+    private final ScheduledExecutorService executor;
+    private final long window;
+    private final int maxEntries;
+
+    private final ConcurrentMap<Key, Batch> pending = new ConcurrentHashMap<Key, Batch>();
+
+    private volatile boolean stopped = false;
+
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong entries = new AtomicLong();
+    private final AtomicLong windowFlushes = new AtomicLong();
+    private final AtomicLong sizeFlushes = new AtomicLong();
+    private final AtomicLong eventFlushes = new AtomicLong();
+
+    /**
+     * @param sender     sends the batched messages.
+     * @param executor   runs the window expiry flushes.
+     * @param window     the maximum time in milliseconds an entry is held. If
+     *                   zero or less entries are sent immediately.
+     * @param maxEntries the maximum number of entries per message.
+     */
+    SrdiBatcher(Sender sender, ScheduledExecutorService executor, long window, int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Maximum entries per message must be at least 1");
+        }
+
+        this.sender = sender;
+        this.executor = executor;
+        this.window = window;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Add an entry to be sent to the specified peer.
+     *
+     * @param destination the peer to send to.
+     * @param source      the peer which published the entry.
+     * @param primaryKey  the primary key of the entry.
+     * @param scope       the scope of the message.
+     * @param entry       the entry.
+     */
+    void add(PeerID destination, PeerID source, String primaryKey, int scope, Entry entry) {
+        Key key = new Key(destination, source, primaryKey, scope);
+
+        if ((window <= 0) || (maxEntries == 1) || stopped) {
+            send(key, Collections.singleton(entry));
+            return;
+        }
+
+        while (true) {
+            Batch batch = pending.get(key);
+
+            if (null == batch) {
+                Batch created = new Batch(key);
+
+                batch = pending.putIfAbsent(key, created);
+                if (null == batch) {
+                    batch = created;
+                    batch.timer = executor.schedule(batch, window, TimeUnit.MILLISECONDS);
+                }
+            }
+
+            boolean full;
+
+            synchronized (batch) {
+                if (batch.closed) {
+                    // Lost a race with a flush, start again with a new batch.
+                    continue;
+                }
+
+                // Replace rather than keep any earlier delta for the same entry.
+                batch.entries.remove(entry);
+                batch.entries.add(entry);
+                full = batch.entries.size() >= maxEntries;
+                if (full) {
+                    batch.closed = true;
+                }
+            }
+
+            if (full) {
+                sendClosed(batch, sizeFlushes);
+            }
+            return;
+        }
+    }
+
+    /**
+     * Send all of the accumulated entries now.
+     */
+    void flush() {
+        for (Batch batch : pending.values()) {
+            ship(batch, eventFlushes);
+        }
+    }
+
+    /**
+     * Send all of the accumulated entries. Entries added afterwards are sent
+     * immediately.
+     */
+    void stop() {
+        stopped = true;
+        flush();
+    }
+
+    /**
+     * Close a batch and send its entries, unless it has already been sent.
+     *
+     * @param batch  the batch.
+     * @param reason the counter of the reason for sending.
+     */
+    private void ship(Batch batch, AtomicLong reason) {
+        synchronized (batch) {
+            if (batch.closed) {
+                return;
+            }
+            batch.closed = true;
+        }
+
+        sendClosed(batch, reason);
+    }
+
+    /**
+     * Send the entries of a batch which has just been closed.
+     *
+     * @param batch  the batch.
+     * @param reason the counter of the reason for sending.
+     */
+    private void sendClosed(Batch batch, AtomicLong reason) {
+        // No further entries can be added once the batch is closed.
+        Set<Entry> toSend = batch.entries;
+
+        pending.remove(batch.key, batch);
+
+        ScheduledFuture<?> timer = batch.timer;
+
+        if ((null != timer) && (reason != windowFlushes)) {
+            timer.cancel(false);
+        }
+
+        if (!toSend.isEmpty()) {
+            reason.incrementAndGet();
+            send(batch.key, toSend);
+        }
+    }
+
+    private void send(Key key, Collection<Entry> toSend) {
+        SrdiMessageImpl msg = new SrdiMessageImpl();
+
+        msg.setPeerID(key.source);
+        msg.setScope(key.scope);
+        msg.setPrimaryKey(key.primaryKey);
+        msg.setEntries(toSend);
+
+        messages.incrementAndGet();
+        entries.addAndGet(toSend.size());
+
+        if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+            LOG.fine(MessageFormat.format("Sending {0} SRDI entries of type {1} to {2}", toSend.size(), key.primaryKey, key.destination));
+        }
+
+        sender.send(key.destination, msg);
+    }
+
+    /**
+     * @return the number of messages sent.
+     */
+    long getMessageCount() {
+        return messages.get();
+    }
+
+    /**
+     * @return the number of entries sent.
+     */
+    long getEntryCount() {
+        return entries.get();
+    }
+
+    /**
+     * @return the average number of entries per message sent, or 0.0 if no
+     *         messages have been sent.
+     */
+    double getAverageEntriesPerMessage() {
+        long sent = messages.get();
+
+        return (0 == sent) ? 0.0 : ((double) entries.get()) / sent;
+    }
+
+    /**
+     * @return the number of messages sent because the batching window expired.
+     */
+    long getWindowFlushCount() {
+        return windowFlushes.get();
+    }
+
+    /**
+     * @return the number of messages sent because they were full.
+     */
+    long getSizeFlushCount() {
+        return sizeFlushes.get();
+    }
+
+    /**
+     * @return the number of messages sent by {@link #flush()}.
+     */
+    long getEventFlushCount() {
+        return eventFlushes.get();
+    }
+
+    /**
+     * @return the number of entries waiting to be sent.
+     */
+    int getPendingEntryCount() {
+        int count = 0;
+
+        for (Batch batch : pending.values()) {
+            synchronized (batch) {
+                count += batch.entries.size();
+            }
+        }
+        return count;
+    }
+}
@@ -81,6 +81,8 @@ import net.jxta.peergroup.PeerGroup;
  * Internally, this is a wrapper around an {@link net.jxta.impl.cm.SrdiIndexBackend} selected using the system property
  * {@link #SRDI_INDEX_BACKEND_SYSPROP}. If no backend is specified through this system property, the default
  * implementation specified by {@link #DEFAULT_SRDI_INDEX_BACKEND} is used.
+ * <p>
+ * Calls are passed straight through to the backend, which must be safe for concurrent use.
  */
 public class SrdiIndex implements SrdiIndexBackend {
     
@@ -177,7 +179,7 @@ public class SrdiIndex implements SrdiIndexBackend {
      * @param pid        peerid reference
      * @throws IOException if an error occurred storing the entry
      */
-    public synchronized void add(String primaryKey, String attribute, String value, PeerID pid, long expiration) {
+    public void add(String primaryKey, String attribute, String value, PeerID pid, long expiration) {
     	try {
     		backend.add(primaryKey, attribute, value, pid, expiration);
     	} catch(IOException e) {
@@ -211,7 +213,7 @@ public class SrdiIndex implements SrdiIndexBackend {
      *
      * @param pid peer id to remove
      */
-    public synchronized void remove(PeerID pid) {
+    public void remove(PeerID pid) {
     	try {
     		backend.remove(pid);
     	} catch(IOException e) {
@@ -230,7 +232,7 @@ public class SrdiIndex implements SrdiIndexBackend {
      * @param primaryKey primary key
      * @param threshold max number of results
      */
-    public synchronized List<PeerID> query(String primaryKey, String attribute, String value, int threshold) {
+    public List<PeerID> query(String primaryKey, String attribute, String value, int threshold) {
     	try {
     		return backend.query(primaryKey, attribute, value, threshold);
     	} catch(IOException e) {
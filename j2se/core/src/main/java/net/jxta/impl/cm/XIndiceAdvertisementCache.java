@@ -14,6 +14,7 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.ResourceBundle;
@@ -75,6 +76,10 @@ public class XIndiceAdvertisementCache extends AbstractAdvertisementCache implem
      * we start the GC early.
      */
     private final static int MAX_INCONVENIENCE_LEVEL = 1000;
+    /**
+     * The maximum number of directories for which record names are cached.
+     */
+    private final static int MAX_RECORD_NAME_DIRS = 32;
     private final static String DATABASE_FILE_NAME = "advertisements";
     /**
      * Shared timer for scheduling GC tasks.
@@ -133,6 +138,19 @@ public class XIndiceAdvertisementCache extends AbstractAdvertisementCache implem
      * be started early.
      */
     private AtomicInteger inconvenienceLevel = new AtomicInteger(0);
+    /**
+     * The file names of the records in each directory, keyed by record
+     * position. Record positions are all that index searches provide so this
+     * is used to resolve them to file names. Built lazily per directory and
+     * kept current as individual records are written and removed. Only the
+     * most recently used {@link #MAX_RECORD_NAME_DIRS} directories are kept.
+     */
+    private final Map<String, Map<Long, String>> recordNames = new LinkedHashMap<String, Map<Long, String>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Map<Long, String>> eldest) {
+            return size() > MAX_RECORD_NAME_DIRS;
+        }
+    };
 
     /**
      * Constructor for cm
@@ -513,6 +531,7 @@ public class XIndiceAdvertisementCache extends AbstractAdvertisementCache implem
             long removePos = cacheDB.findValue(key);
 
             cacheDB.deleteRecord(key);
+            forgetRecordName(removePos);
             if (record != null) {
                 try {
                     if (calcExpiration(record) > 0) {
@@ -667,6 +686,7 @@ public class XIndiceAdvertisementCache extends AbstractAdvertisementCache implem
             }
 
             long pos = cacheDB.writeRecord(key, value, absoluteLifetime, expiration);
+            rememberRecordName(dn, fn, pos);
             Map<String, String> indexables = CacheUtils.getIndexfields(adv.getIndexFields(), doc);
             Map<String, String> keyedIdx = addKey(dn, indexables);
 
@@ -743,7 +763,8 @@ public class XIndiceAdvertisementCache extends AbstractAdvertisementCache implem
             if (expiration > lifetime) {
                 expiration = lifetime;
             }
-            cacheDB.writeRecord(key, value, absoluteLifetime, expiration);
+            long pos = cacheDB.writeRecord(key, value, absoluteLifetime, expiration);
+            rememberRecordName(dn, fn, pos);
         } catch (DBException de) {
             if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
                 LOG.log(Level.WARNING, "Failed to write " + dn + "/" + fn + " " + lifetime + " " + expiration, de);
@@ -804,9 +825,10 @@ public class XIndiceAdvertisementCache extends AbstractAdvertisementCache implem
                 record = cacheDB.readRecord(pos);
             } catch (DBException ex) {
                 if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
-                    LOG.log(Level.WARNING, "Exception while reading indexed", ex);
+                    LOG.log(Level.WARNING, "Skipping unreadable indexed record", ex);
                 }
-                return false;
+                // Skip the record rather than ending the enumeration.
+                return true;
             }
             if (record == null) {
                 return true;
@@ -830,10 +852,12 @@ public class XIndiceAdvertisementCache extends AbstractAdvertisementCache implem
 
     private final static class SearchResult {
 
+        final long pos;
         final Value value;
         final long expiration;
 
-        SearchResult(Value value, long expiration) {
+        SearchResult(long pos, Value value, long expiration) {
+            this.pos = pos;
             this.value = value;
             this.expiration = expiration;
         }
@@ -846,18 +870,30 @@ public class XIndiceAdvertisementCache extends AbstractAdvertisementCache implem
         private final int threshold;
         private final Collection<SearchResult> results;
         private final boolean purge;
+        /**
+         * If {@code false} then only the record positions and expirations are
+         * collected. The record values are left unread for callers which
+         * resolve them elsewhere, such as through the parsed advertisement
+         * cache.
+         */
+        private final boolean readValues;
 
         SearchCallback(BTreeFiler cacheDB, Indexer indexer, int threshold) {
-            this(cacheDB, indexer, threshold, false);
+            this(cacheDB, indexer, threshold, false, true);
         }
 
         SearchCallback(BTreeFiler cacheDB, Indexer indexer, int threshold, boolean purge) {
+            this(cacheDB, indexer, threshold, purge, true);
+        }
+
+        SearchCallback(BTreeFiler cacheDB, Indexer indexer, int threshold, boolean purge, boolean readValues) {
             this.cacheDB = cacheDB;
             this.indexer = indexer;
 //            this.results = results;
             this.threshold = threshold;
             this.results = new ArrayList((threshold < 200) ? threshold : 200);
             this.purge = purge;
+            this.readValues = readValues;
         }
 
         /**
@@ -876,12 +912,13 @@ public class XIndiceAdvertisementCache extends AbstractAdvertisementCache implem
 
             Record record;
             try {
-                record = cacheDB.readRecord(pos);
+                record = cacheDB.readRecord(pos, readValues);
             } catch (DBException ex) {
                 if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
-                    LOG.log(Level.WARNING, "Exception while reading indexed", ex);
+                    LOG.log(Level.WARNING, "Skipping unreadable indexed record", ex);
                 }
-                return false;
+                // Skip the record rather than ending the enumeration.
+                return true;
             }
 
             if (record == null) {
@@ -897,6 +934,7 @@ public class XIndiceAdvertisementCache extends AbstractAdvertisementCache implem
                     try {
                         indexer.purge(pos);
                         cacheDB.deleteRecord(record.getKey());
+                        forgetRecordName(pos);
                     } catch (DBException ex) {
                         if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
                             LOG.log(Level.WARNING, "Exception while reading indexed", ex);
@@ -911,7 +949,7 @@ public class XIndiceAdvertisementCache extends AbstractAdvertisementCache implem
                 }
                 return true;
             }
-            results.add(new SearchResult(record.getValue(), exp));
+            results.add(new SearchResult(pos, record.getValue(), exp));
 
             return true;
         }
@@ -987,6 +1025,151 @@ public class XIndiceAdvertisementCache extends AbstractAdvertisementCache implem
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized List<String> searchNames(String dn, String attribute, String value, int threshold, List<Long> expirations) {
+
+        try {
+            IndexQuery iq = getIndexQuery(value);
+
+            SearchCallback callback = new SearchCallback(cacheDB, indexer, threshold, false, false);
+            indexer.search(iq, dn + attribute, callback);
+
+            return toNames(dn, callback.results, expirations);
+        } catch (Exception ex) {
+            if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
+                LOG.log(Level.WARNING, "Failure while searching in index", ex);
+            }
+
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized List<String> getRecordNames(String dn, int threshold, List<Long> expirations) {
+
+        if (dn == null) {
+            if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+                LOG.fine("null directory name");
+            }
+            return new ArrayList<String>();
+        }
+
+        IndexQuery iq = new IndexQuery(IndexQuery.SW, new Value(dn + '/'));
+
+        try {
+            SearchCallback callback = new SearchCallback(cacheDB, indexer, threshold, false, false);
+            cacheDB.query(iq, callback);
+
+            return toNames(dn, callback.results, expirations);
+        } catch (Exception ex) {
+            if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+                LOG.log(Level.FINE, "Exception during getRecordNames(): ", ex);
+            }
+
+            return new ArrayList<String>();
+        }
+    }
+
+    /**
+     * Converts search results into file names relative to the provided
+     * directory.
+     *
+     * @param dn            the directory name.
+     * @param searchResults the search results.
+     * @param expirations   List to contain expirations.
+     * @return the file names.
+     * @throws DBException if a database error occurs
+     * @throws IOException if an I/O error occurs
+     */
+    private List<String> toNames(String dn, Collection<SearchResult> searchResults, List<Long> expirations) throws DBException, IOException {
+        Map<Long, String> names = getRecordNamesByPosition(dn);
+        List<String> res = new ArrayList<String>(searchResults.size());
+
+        if (null != expirations) {
+            expirations.clear();
+        }
+
+        for (SearchResult aResult : searchResults) {
+            String fn = names.get(aResult.pos);
+
+            if (null == fn) {
+                continue;
+            }
+
+            res.add(fn);
+            if (null != expirations) {
+                expirations.add(aResult.expiration);
+            }
+        }
+
+        return res;
+    }
+
+    /**
+     * Returns the file names of the records in the given directory keyed by
+     * record position.
+     *
+     * @param dn the directory name.
+     * @return the file names keyed by record position.
+     * @throws DBException if a database error occurs
+     * @throws IOException if an I/O error occurs
+     */
+    private Map<Long, String> getRecordNamesByPosition(String dn) throws DBException, IOException {
+        Map<Long, String> names = recordNames.get(dn);
+
+        if (null == names) {
+            final Map<Long, String> found = new HashMap<Long, String>();
+            final int prefixLength = dn.length() + 1;
+
+            cacheDB.query(new IndexQuery(IndexQuery.SW, new Value(dn + '/')), new BTreeCallback() {
+                public boolean indexInfo(Value val, long pos) {
+                    found.put(pos, val.toString().substring(prefixLength));
+                    return true;
+                }
+            });
+
+            names = found;
+            recordNames.put(dn, names);
+        }
+
+        return names;
+    }
+
+    /**
+     * Records the file name of a record which has been written at the given
+     * position. Only directories whose names are already cached are
+     * updated, the others will be built when next needed.
+     *
+     * @param dn  the directory name.
+     * @param fn  the file name.
+     * @param pos the record position.
+     */
+    private void rememberRecordName(String dn, String fn, long pos) {
+        // The position may have previously belonged to a record in another directory.
+        forgetRecordName(pos);
+
+        Map<Long, String> names = recordNames.get(dn);
+
+        if (null != names) {
+            names.put(pos, fn);
+        }
+    }
+
+    /**
+     * Forgets the file name of the record at the given position.
+     *
+     * @param pos the record position.
+     */
+    private void forgetRecordName(long pos) {
+        for (Map<Long, String> names : recordNames.values()) {
+            names.remove(pos);
+        }
+    }
+
     /**
      * returns all entries that are cached
      *
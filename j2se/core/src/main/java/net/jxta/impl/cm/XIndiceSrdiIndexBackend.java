@@ -443,9 +443,10 @@ public class XIndiceSrdiIndexBackend implements SrdiIndexBackend {
                 record = cacheDB.readRecord(pos);
             } catch (DBException ex) {
                 if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
-                    LOG.log(Level.WARNING, "Exception while reading indexed", ex);
+                    LOG.log(Level.WARNING, "Skipping unreadable indexed record", ex);
                 }
-                return false;
+                // Skip the record rather than ending the enumeration.
+                return true;
             }
             
             if (record != null) {
@@ -486,9 +487,10 @@ public class XIndiceSrdiIndexBackend implements SrdiIndexBackend {
                     record = cacheDB.readRecord(pos);
                 } catch (DBException ex) {
                     if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
-                        LOG.log(Level.WARNING, "Exception while reading indexed", ex);
+                        LOG.log(Level.WARNING, "Skipping unreadable indexed record", ex);
                     }
-                    return false;
+                    // Skip the record rather than ending the enumeration.
+                    return true;
                 }
                 if (record == null) {
                     return true;
@@ -565,9 +567,10 @@ public class XIndiceSrdiIndexBackend implements SrdiIndexBackend {
                     record = cacheDB.readRecord(position);
                 } catch (DBException ex) {
                     if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
-                        LOG.log(Level.WARNING, "Exception while reading indexed", ex);
+                        LOG.log(Level.WARNING, "Skipping unreadable indexed record", ex);
                     }
-                    return false;
+                    // Skip the record rather than ending the enumeration.
+                    return true;
                 }
                 if (record == null) {
                     return true;
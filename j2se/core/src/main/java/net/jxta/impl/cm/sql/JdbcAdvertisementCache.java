@@ -29,6 +29,7 @@ import net.jxta.document.XMLDocument;
 import net.jxta.impl.cm.AbstractAdvertisementCache;
 import net.jxta.impl.cm.CacheUtils;
 import net.jxta.impl.cm.DeltaTracker;
+import net.jxta.impl.cm.sql.StatementCachingConnectionPool.CachedConnection;
 import net.jxta.impl.util.TimeUtils;
 import net.jxta.logging.Logging;
 import net.jxta.protocol.SrdiMessage.Entry;
@@ -40,15 +41,18 @@ import net.jxta.protocol.SrdiMessage.Entry;
  * <ul>
  * <li>A connection pool is used to deal with concurrent access, rather than attempting
  * to synchronize access to a single connection.</li>
- * <li>We assume JDBC 3.0 prepared statement pooling is available in the database, rather
- * than trying to hold on to PreparedStatement objects for as long as possible (impossible
- * with the connection pool strategy in use).</li>
+ * <li>Pooled connections are kept open between operations along with the
+ * PreparedStatement objects created on them (see {@link StatementCachingConnectionPool}),
+ * rather than relying on the database to pool prepared statements.</li>
+ * <li>The index fields of an advertisement are written as a single JDBC batch, and
+ * {@link #saveAll(String, Map, long, long)} writes many advertisements in one transaction.</li>
  * </ul>
  */
 public abstract class JdbcAdvertisementCache extends AbstractAdvertisementCache {
 
 	private static final Logger LOG = Logger.getLogger(JdbcAdvertisementCache.class.getName());
 	private static final int MAX_CONNECTIONS = 16;
+	private static final int MAX_STATEMENTS_PER_CONNECTION = 32;
 	
 	private static final String CREATE_RECORD_TABLE_SQL 
 		= "CREATE TABLE Record \n" + 
@@ -107,7 +111,7 @@ public abstract class JdbcAdvertisementCache extends AbstractAdvertisementCache
 		}
 	}
 	
-	private MiniConnectionPoolManager connPool;
+	private StatementCachingConnectionPool connPool;
 	protected File dbDir;
 	private DeltaTracker deltaTracker;
 	
@@ -119,7 +123,7 @@ public abstract class JdbcAdvertisementCache extends AbstractAdvertisementCache
 		File dbParentDir = new File(storeRoot);
 		dbDir = new File(dbParentDir, areaName);
 		ConnectionPoolDataSource dataSource = createDataSource();
-		connPool = new MiniConnectionPoolManager(dataSource,MAX_CONNECTIONS);
+		connPool = new StatementCachingConnectionPool(dataSource, MAX_CONNECTIONS, MAX_STATEMENTS_PER_CONNECTION);
 		deltaTracker = new DeltaTracker();
 		deltaTracker.setTrackingDeltas(trackDeltas);
 		
@@ -142,18 +146,18 @@ public abstract class JdbcAdvertisementCache extends AbstractAdvertisementCache
 	protected abstract ConnectionPoolDataSource createDataSource();
 
 	private void configureDatabase() throws SQLException {
-		Connection conn = null;
+		CachedConnection conn = null;
 		boolean successful = false;
 		try {
 			conn = getConnection();
 			
-			if(testDatabaseSetUp(conn)) {
+			if(testDatabaseSetUp(conn.getConnection())) {
 				successful = true;
 			}
 			
-			executeCreate(conn, CREATE_RECORD_TABLE_SQL);
-			executeCreate(conn, CREATE_INDEXFIELD_TABLE_SQL);
-			executeCreate(conn, CREATE_DELTA_EXPIRY_INDEX_SQL);
+			executeCreate(conn.getConnection(), CREATE_RECORD_TABLE_SQL);
+			executeCreate(conn.getConnection(), CREATE_INDEXFIELD_TABLE_SQL);
+			executeCreate(conn.getConnection(), CREATE_DELTA_EXPIRY_INDEX_SQL);
 			
 			conn.commit();
 			successful = true;
@@ -167,35 +171,14 @@ public abstract class JdbcAdvertisementCache extends AbstractAdvertisementCache
 	}
 	
 	/**
-	 * Attempts to close the common resources used in most DB accesses. If any
-	 * exceptions occur, they are logged and ignored. 
-	 * @param st if true, an attempt will be made to roll back the connection.
+	 * Returns the connection used in most DB accesses to the pool. The prepared
+	 * statements of the connection remain open for reuse. If any exceptions occur,
+	 * they are logged and ignored. 
+	 * @param rollBack if true, an attempt will be made to roll back the connection.
 	 */
-	private void closeResources(Connection conn, boolean rollBack, Statement... statements) {
-		if(statements != null) {
-			for(Statement st : statements) {
-				closeStatement(st);
-			}
-		}
-		
+	private void closeResources(CachedConnection conn, boolean rollBack) {
 		if(conn != null) {
-			if(rollBack) {
-				try {
-					conn.rollback();
-				} catch(SQLException e) {
-					if(Logging.SHOW_SEVERE && LOG.isLoggable(Level.SEVERE)) {
-						LOG.log(Level.SEVERE, "Failed to roll back connection", e);
-					}
-				}
-			}
-			
-			try {
-				conn.close();
-			} catch(SQLException e) {
-				if(Logging.SHOW_SEVERE && LOG.isLoggable(Level.SEVERE)) {
-					LOG.log(Level.SEVERE, "Failed to close connection", e);
-				}
-			}
+			connPool.release(conn, rollBack);
 		}
 	}
 	
@@ -231,11 +214,8 @@ public abstract class JdbcAdvertisementCache extends AbstractAdvertisementCache
 		return conn.getMetaData().getTables(null, null, "Record", null).next();
 	}
 	
-	private Connection getConnection() throws SQLException {
-		Connection connection = connPool.getConnection();
-		connection.setAutoCommit(false);
-		
-		return connection;
+	private CachedConnection getConnection() throws SQLException {
+		return connPool.getConnection();
 	}
 	
 	private void executeCreate(Connection conn, String sql) throws SQLException {
@@ -250,7 +230,7 @@ public abstract class JdbcAdvertisementCache extends AbstractAdvertisementCache
 	
 	private static final String REMOVE_EXPIRED_RECORDS = "DELETE FROM Record WHERE lifetime < ?";
 	public void garbageCollect() throws IOException {
-		Connection conn = null;
+		CachedConnection conn = null;
 		PreparedStatement st = null;
 		boolean rollback = true;
 		try {
@@ -265,7 +245,7 @@ public abstract class JdbcAdvertisementCache extends AbstractAdvertisementCache
 		} catch(SQLException e) {
 			throw createWrapper("Error occurred while garbage collecting", e);
 		} finally {
-			closeResources(conn, rollback, st);
+			closeResources(conn, rollback);
 		}
 	}
 
@@ -281,7 +261,7 @@ public abstract class JdbcAdvertisementCache extends AbstractAdvertisementCache
 		  "  AND Record.fn = IndexField.fn";
 	public List<Entry> getEntries(String dn, boolean clearDeltas) throws IOException {
 		LinkedList<Entry> entries = new LinkedList<Entry>();
-		Connection conn = null;
+		CachedConnection conn = null;
 		PreparedStatement st = null;
 		ResultSet rs = null;
 		boolean rollback = true;
@@ -311,14 +291,14 @@ public abstract class JdbcAdvertisementCache extends AbstractAdvertisementCache
 			throw createWrapper("Unable to get entries for dn=[" + dn + "]", e);
 		} finally {
 			closeResultSet(rs);
-			closeResources(conn, rollback, st);
+			closeResources(conn, rollback);
 		}
 	}
 
 	private static final String GET_EXPIRATION_SQL = "SELECT lifetime, expiry FROM Record WHERE dn = ? AND fn = ?";
 	
 	public long getExpirationtime(String dn, String fn) throws IOException {
-		Connection conn = null;
+		CachedConnection conn = null;
 		PreparedStatement st = null;
 		ResultSet rs = null;
 		boolean rollback = true;
@@ -344,14 +324,14 @@ public abstract class JdbcAdvertisementCache extends AbstractAdvertisementCache
 			throw createWrapper("Unable to get expiration for dn=[" + dn + "], fn=[" + fn + "]", e);
 		} finally {
 			closeResultSet(rs);
-			closeResources(conn, rollback, st);
+			closeResources(conn, rollback);
 		}
 	}
 
 	private static final String GET_INPUT_STREAM_SQL = "SELECT data FROM Record WHERE dn = ? AND fn = ?";
 	
 	public InputStream getInputStream(String dn, String fn) throws IOException {
-		Connection conn = null;
+		CachedConnection conn = null;
 		PreparedStatement st = null;
 		ResultSet rs = null;
 		boolean rollback = true;
@@ -375,14 +355,14 @@ public abstract class JdbcAdvertisementCache extends AbstractAdvertisementCache
 			throw createWrapper("Unable to get input stream for dn=[" + dn + "], fn=[" + fn + "]", e);
 		} finally {
 			closeResultSet(rs);
-			closeResources(conn, rollback, st);
+			closeResources(conn, rollback);
 		}
 	}
 
 	private static final String GET_LIFETIME_SQL = "SELECT lifetime FROM Record WHERE dn = ? AND fn = ?";
 	
 	public long getLifetime(String dn, String fn) throws IOException {
-		Connection conn = null;
+		CachedConnection conn = null;
 		PreparedStatement st = null;
 		ResultSet rs = null;
 		boolean rollback = true;
@@ -406,7 +386,7 @@ public abstract class JdbcAdvertisementCache extends AbstractAdvertisementCache
 			throw createWrapper("Unable to get lifetime for dn=[" + dn + "], fn=[" + fn + "]", e);
 		} finally {
 			closeResultSet(rs);
-			closeResources(conn, rollback, st);
+			closeResources(conn, rollback);
 		}
 	}
 	
@@ -418,7 +398,7 @@ public abstract class JdbcAdvertisementCache extends AbstractAdvertisementCache
 			return results;
 		}
 		
-		Connection conn = null;
+		CachedConnection conn = null;
 		PreparedStatement st = null;
 		ResultSet rs = null;
 		boolean rollback = true;
@@ -454,7 +434,7 @@ public abstract class JdbcAdvertisementCache extends AbstractAdvertisementCache
 			throw createWrapper("Error occurred while fetching records for dn=[" + dn + "]", e);
 		} finally {
 			closeResultSet(rs);
-			closeResources(conn, rollback, st);
+			closeResources(conn, rollback);
 		}
 		
 		return results;
@@ -468,7 +448,7 @@ public abstract class JdbcAdvertisementCache extends AbstractAdvertisementCache
 		  "  AND isAdvertisement = 1";
 	private static final String REMOVE_RECORD_SQL = "DELETE FROM Record WHERE dn = ? AND fn = ?";
 	public void remove(String dn, String fn) throws IOException {
-		Connection conn = null;
+		CachedConnection conn = null;
 		PreparedStatement fetchSt = null;
 		PreparedStatement st = null;
 		ResultSet rs = null;
@@ -505,7 +485,7 @@ public abstract class JdbcAdvertisementCache extends AbstractAdvertisementCache
 			throw createWrapper("Unable to remove record for dn=[" + dn + "], fn=[" + fn + "]", e);
 		} finally {
 			closeResultSet(rs);
-			closeResources(conn, rollback, fetchSt, st);
+			closeResources(conn, rollback);
 		}
 	}
 
@@ -515,23 +495,14 @@ public abstract class JdbcAdvertisementCache extends AbstractAdvertisementCache
 			throw new IllegalArgumentException("Bad expiration or lifetime.");
 		}
 		
-		Connection conn = null;
-		Statement st = null;
+		CachedConnection conn = null;
 		boolean rollback = true;
 		try {
 			conn = getConnection();
-			boolean wasNew = putRecord(conn, dn, fn, true, getBytesForAdvert(adv), lifetime, expiration);
-			
-			if(!wasNew) {
-				deleteIndexables(conn, dn, fn);
-			}
-			
-			StructuredDocument<?> doc = (StructuredDocument<?>)adv.getDocument(MimeMediaType.XMLUTF8);
-			Map<String, String> indexFields = CacheUtils.getIndexfields(adv.getIndexFields(), doc);
-			for(String indexField : indexFields.keySet()) {
-				if(!putIndexable(conn, dn, fn, indexField, indexFields.get(indexField))) {
-					return;
-				}
+			PreparedStatement indexSt = conn.prepareStatement(PUT_INDEXABLE_SQL);
+			putAdvertisement(conn, indexSt, dn, fn, adv, lifetime, expiration);
+			if(!executeIndexables(indexSt)) {
+				return;
 			}
 			
 			deltaTracker.generateDeltas(dn, adv, null, expiration);
@@ -541,40 +512,99 @@ public abstract class JdbcAdvertisementCache extends AbstractAdvertisementCache
 		} catch(SQLException e) {
 			throw createWrapper("Failed to write advertisement to cache", e);
 		} finally {
-			closeResources(conn, rollback, st);
+			closeResources(conn, rollback);
 		}
 	}
 	
-	private static final String DELETE_INDEXABLES_SQL = "DELETE FROM IndexField WHERE dn = ? AND fn = ?";
-	private void deleteIndexables(Connection conn, String dn, String fn) throws SQLException {
-		PreparedStatement st = null;
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * All of the advertisements are written in a single transaction, and the
+	 * index fields of all of them are inserted as a single JDBC batch.
+	 */
+	@Override
+	public void saveAll(String dn, Map<String, Advertisement> advs, long lifetime, long expiration) throws IOException {
+		
+		if(lifetime < 0 || expiration < 0) {
+			throw new IllegalArgumentException("Bad expiration or lifetime.");
+		}
+		
+		if(advs.isEmpty()) {
+			return;
+		}
+		
+		CachedConnection conn = null;
+		boolean rollback = true;
 		try {
-			st = conn.prepareStatement(DELETE_INDEXABLES_SQL);
-			st.setString(1, dn);
-			st.setString(2, fn);
+			conn = getConnection();
+			PreparedStatement indexSt = conn.prepareStatement(PUT_INDEXABLE_SQL);
+			for(Map.Entry<String, Advertisement> adv : advs.entrySet()) {
+				putAdvertisement(conn, indexSt, dn, adv.getKey(), adv.getValue(), lifetime, expiration);
+			}
 			
-			st.execute();
+			if(!executeIndexables(indexSt)) {
+				return;
+			}
+			
+			conn.commit();
+			rollback = false;
+		} catch(SQLException e) {
+			throw createWrapper("Failed to write " + advs.size() + " advertisements to cache", e);
 		} finally {
-			closeStatement(st);
+			closeResources(conn, rollback);
+		}
+		
+		for(Advertisement adv : advs.values()) {
+			deltaTracker.generateDeltas(dn, adv, null, expiration);
+		}
+	}
+	
+	/**
+	 * Writes the record for an advertisement, and adds its index fields to the
+	 * batch of the given index field insert statement.
+	 */
+	private void putAdvertisement(CachedConnection conn, PreparedStatement indexSt, String dn, String fn, Advertisement adv, long lifetime, long expiration) throws SQLException, IOException {
+		boolean wasNew = putRecord(conn, dn, fn, true, getBytesForAdvert(adv), lifetime, expiration);
+		
+		if(!wasNew) {
+			deleteIndexables(conn, dn, fn);
 		}
+		
+		StructuredDocument<?> doc = (StructuredDocument<?>)adv.getDocument(MimeMediaType.XMLUTF8);
+		Map<String, String> indexFields = CacheUtils.getIndexfields(adv.getIndexFields(), doc);
+		for(Map.Entry<String, String> indexField : indexFields.entrySet()) {
+			indexSt.setString(1, dn);
+			indexSt.setString(2, fn);
+			indexSt.setString(3, indexField.getKey());
+			indexSt.setString(4, indexField.getValue());
+			indexSt.addBatch();
+		}
+	}
+	
+	private static final String DELETE_INDEXABLES_SQL = "DELETE FROM IndexField WHERE dn = ? AND fn = ?";
+	private void deleteIndexables(CachedConnection conn, String dn, String fn) throws SQLException {
+		PreparedStatement st = conn.prepareStatement(DELETE_INDEXABLES_SQL);
+		st.setString(1, dn);
+		st.setString(2, fn);
+		
+		st.execute();
 	}
 
 	private static final String PUT_INDEXABLE_SQL = "INSERT INTO IndexField VALUES (?,?,?,?)";
-	private boolean putIndexable(Connection conn, String dn, String fn, String field, String value) throws SQLException {
-		PreparedStatement st = null;
-		try {
-			st = conn.prepareStatement(PUT_INDEXABLE_SQL);
-			st.setString(1, dn);
-			st.setString(2, fn);
-			st.setString(3, field);
-			st.setString(4, value);
-			
-			st.executeUpdate();
-			
-			return st.getUpdateCount() == 1;
-		} finally {
-			closeStatement(st);
+	
+	/**
+	 * Executes the batch of index field inserts accumulated on the statement.
+	 * @return true if every insert added exactly one row.
+	 */
+	private boolean executeIndexables(PreparedStatement st) throws SQLException {
+		int[] counts = st.executeBatch();
+		for(int count : counts) {
+			if(count != 1 && count != Statement.SUCCESS_NO_INFO) {
+				return false;
+			}
 		}
+		
+		return true;
 	}
 
 	private IOException createWrapper(String message, SQLException e) {
@@ -596,7 +626,7 @@ public abstract class JdbcAdvertisementCache extends AbstractAdvertisementCache
 		if(lifetime < 0 || expiration < 0) {
 			throw new IllegalArgumentException("Bad expiration or lifetime.");
 		}
-		Connection conn = null;
+		CachedConnection conn = null;
 		boolean rollback = true;
 		try {
 			conn = getConnection();
@@ -617,7 +647,7 @@ public abstract class JdbcAdvertisementCache extends AbstractAdvertisementCache
 	 * @return true if the record was new, false otherwise.
 	 * @throws SQLException if an error occurred, or writing the record failed
 	 */
-	private boolean putRecord(Connection conn, String dn, String fn, boolean isAdvertisement, byte[] data, long lifetime, long expiration) throws SQLException {
+	private boolean putRecord(CachedConnection conn, String dn, String fn, boolean isAdvertisement, byte[] data, long lifetime, long expiration) throws SQLException {
 		
 		long newLifetime = TimeUtils.toAbsoluteTimeMillis(lifetime);
 		Long oldLifetime = getOldLifetime(conn, dn, fn);
@@ -639,11 +669,10 @@ public abstract class JdbcAdvertisementCache extends AbstractAdvertisementCache
 	}
 
 	private static final String GET_OLD_LIFETIME_SQL = "SELECT lifetime FROM Record WHERE dn = ? AND fn = ?";
-	private Long getOldLifetime(Connection conn, String dn, String fn) throws SQLException {
-		PreparedStatement st = null;
+	private Long getOldLifetime(CachedConnection conn, String dn, String fn) throws SQLException {
+		PreparedStatement st = conn.prepareStatement(GET_OLD_LIFETIME_SQL);
 		ResultSet rs = null;
 		try {
-			st = conn.prepareStatement(GET_OLD_LIFETIME_SQL);
 			st.setString(1, dn);
 			st.setString(2, fn);
 			
@@ -657,55 +686,52 @@ public abstract class JdbcAdvertisementCache extends AbstractAdvertisementCache
 			}
 		} finally {
 			closeResultSet(rs);
-			closeStatement(st);
 		}
 	}
 	
 	private static final String INSERT_RECORD_SQL = "INSERT INTO Record VALUES (?,?,?,?,?,?)";
-	private void insertRecord(Connection conn, String dn, String fn, boolean isAdvertisment, byte[] data, long newLifetime, long boundedExpiration) throws SQLException {
-		PreparedStatement st = null;
-		try {
-			st = conn.prepareStatement(INSERT_RECORD_SQL);
-			st.setString(1, dn);
-			st.setString(2, fn);
-			st.setInt(3, isAdvertisment ? 1 : 0);
-			st.setLong(4, newLifetime);
-			st.setLong(5, boundedExpiration);
-			st.setBytes(6, data);
-			st.execute();
-			
-			if(st.getUpdateCount() != 1) {
-				throw new SQLException("Incorrect number of rows updated");
-			}
-		} finally {
-			closeStatement(st);
+	private void insertRecord(CachedConnection conn, String dn, String fn, boolean isAdvertisment, byte[] data, long newLifetime, long boundedExpiration) throws SQLException {
+		PreparedStatement st = conn.prepareStatement(INSERT_RECORD_SQL);
+		st.setString(1, dn);
+		st.setString(2, fn);
+		st.setInt(3, isAdvertisment ? 1 : 0);
+		st.setLong(4, newLifetime);
+		st.setLong(5, boundedExpiration);
+		st.setBytes(6, data);
+		st.execute();
+		
+		if(st.getUpdateCount() != 1) {
+			throw new SQLException("Incorrect number of rows updated");
 		}
 	}
 
 	private static final String UPDATE_RECORD_SQL = "UPDATE Record SET lifetime = ?, expiry = ?, data = ?, isAdvertisement = ? WHERE dn = ? AND fn = ?";
-	private void updateRecord(Connection conn, String dn, String fn, boolean isAdvertisement, byte[] data, long newLifetime, long expiration) throws SQLException {
-		PreparedStatement st = null;
-		try {
-			st = conn.prepareStatement(UPDATE_RECORD_SQL);
-			st.setLong(1, newLifetime);
-			st.setLong(2, expiration);
-			st.setBytes(3, data);
-			st.setInt(4, isAdvertisement ? 1 : 0);
-			st.setString(5, dn);
-			st.setString(6, fn);
-			
-			st.execute();
-			
-			if(st.getUpdateCount() != 1) {
-				throw new SQLException("Incorrect number of rows updated");
-			}
-		} finally {
-			closeStatement(st);
+	private void updateRecord(CachedConnection conn, String dn, String fn, boolean isAdvertisement, byte[] data, long newLifetime, long expiration) throws SQLException {
+		PreparedStatement st = conn.prepareStatement(UPDATE_RECORD_SQL);
+		st.setLong(1, newLifetime);
+		st.setLong(2, expiration);
+		st.setBytes(3, data);
+		st.setInt(4, isAdvertisement ? 1 : 0);
+		st.setString(5, dn);
+		st.setString(6, fn);
+		
+		st.execute();
+		
+		if(st.getUpdateCount() != 1) {
+			throw new SQLException("Incorrect number of rows updated");
 		}
 	}
 
 	static String SEARCH_RECORDS_SQL(boolean withValueMatch) {
-		return "SELECT Record.data, Record.lifetime, Record.expiry\n" +
+		return SEARCH_SQL("Record.data", withValueMatch);
+	}
+	
+	static String SEARCH_NAMES_SQL(boolean withValueMatch) {
+		return SEARCH_SQL("Record.fn", withValueMatch);
+	}
+	
+	private static String SEARCH_SQL(String column, boolean withValueMatch) {
+		return "SELECT " + column + ", Record.lifetime, Record.expiry\n" +
 		  "FROM Record, IndexField\n" +
 		  "WHERE Record.isAdvertisement = 1" +
 		  "  AND IndexField.name = ?\n" +
@@ -723,8 +749,9 @@ public abstract class JdbcAdvertisementCache extends AbstractAdvertisementCache
 		boolean withValueMatch = !("*".equals(value));
 		boolean returnExpiry = (expirations != null);
 		
-		Connection conn = null;
+		CachedConnection conn = null;
 		PreparedStatement st = null;
+		ResultSet resultSet = null;
 		boolean rollback = true;
 		try {
 			conn = getConnection();
@@ -740,7 +767,7 @@ public abstract class JdbcAdvertisementCache extends AbstractAdvertisementCache
 			st.setMaxRows(threshold);
 			
 			st.execute();
-			ResultSet resultSet = st.getResultSet();
+			resultSet = st.getResultSet();
 			
 			while(resultSet.next()) {
 				byte[] bytes = resultSet.getBytes(1);
@@ -761,8 +788,108 @@ public abstract class JdbcAdvertisementCache extends AbstractAdvertisementCache
 		} catch(SQLException e) {
 			throw createWrapper("SQLException occurred while searching. dn=[" + dn + "], attribute=[" + attribute + "], value=[" + value + "]", e);
 		} finally {
-			closeResources(conn, rollback, st);
+			closeResultSet(resultSet);
+			closeResources(conn, rollback);
+		}
+	}
+
+	public List<String> searchNames(String dn, String attribute, String value,
+			int threshold, List<Long> expirations) throws IOException {
+		
+		LinkedList<String> results = new LinkedList<String>();
+		
+		boolean withValueMatch = !("*".equals(value));
+		boolean returnExpiry = (expirations != null);
+		
+		CachedConnection conn = null;
+		PreparedStatement st = null;
+		ResultSet resultSet = null;
+		boolean rollback = true;
+		try {
+			conn = getConnection();
+			st = conn.prepareStatement(SEARCH_NAMES_SQL(withValueMatch));
+			
+			int attrIndex = 1;
+			st.setString(attrIndex++, attribute);
+			if(withValueMatch) {
+				st.setString(attrIndex++, value.replace('*', '%'));
+			}
+			
+			st.setString(attrIndex++, dn);
+			st.setMaxRows(threshold);
+			
+			st.execute();
+			resultSet = st.getResultSet();
+			
+			while(resultSet.next()) {
+				String fn = resultSet.getString(1);
+				long lifetime = resultSet.getLong(2);
+				long expiry = resultSet.getLong(3);
+				long relativeExp = CacheUtils.getRelativeExpiration(lifetime, expiry); 
+				if(relativeExp > 0) {
+					results.add(fn);
+					if(returnExpiry) {
+						expirations.add(relativeExp);
+					}
+				}
+			}
+			
+			conn.commit();
+			rollback = false;
+			return results;
+		} catch(SQLException e) {
+			throw createWrapper("SQLException occurred while searching names. dn=[" + dn + "], attribute=[" + attribute + "], value=[" + value + "]", e);
+		} finally {
+			closeResultSet(resultSet);
+			closeResources(conn, rollback);
+		}
+	}
+	
+	private static final String GET_RECORD_NAMES_SQL = "SELECT fn,lifetime,expiry FROM Record WHERE dn = ? AND lifetime > ?";
+	
+	public List<String> getRecordNames(String dn, int threshold, List<Long> expirations) throws IOException {
+		LinkedList<String> results = new LinkedList<String>();
+		if(dn == null) {
+			return results;
 		}
+		
+		CachedConnection conn = null;
+		PreparedStatement st = null;
+		ResultSet rs = null;
+		boolean rollback = true;
+		try {
+			conn = getConnection();
+			st = conn.prepareStatement(GET_RECORD_NAMES_SQL);
+			st.setString(1, dn);
+			st.setLong(2, TimeUtils.timeNow());
+			st.setMaxRows(threshold);
+			st.execute();
+			
+			rs = st.getResultSet();
+			while(rs.next()) {
+				long lifetime = rs.getLong(2);
+				long expiry = rs.getLong(3);
+				long relativeExpiry = CacheUtils.getRelativeExpiration(lifetime, expiry);
+				
+				if(relativeExpiry > 0) {
+					results.add(rs.getString(1));
+					
+					if(expirations != null) {
+						expirations.add(relativeExpiry);
+					}
+				}
+			}
+			
+			conn.commit();
+			rollback = false;
+		} catch(SQLException e) {
+			throw createWrapper("Error occurred while fetching record names for dn=[" + dn + "]", e);
+		} finally {
+			closeResultSet(rs);
+			closeResources(conn, rollback);
+		}
+		
+		return results;
 	}
 
 	public void setTrackDeltas(boolean trackDeltas) {
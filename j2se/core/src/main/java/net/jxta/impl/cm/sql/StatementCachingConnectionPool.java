@@ -0,0 +1,257 @@
+package net.jxta.impl.cm.sql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.sql.ConnectionPoolDataSource;
+
+import net.jxta.logging.Logging;
+
+/**
+ * Keeps the logical connections handed out by a {@link MiniConnectionPoolManager} open
+ * between uses so that the prepared statements created on each of them can be reused.
+ *
+ * <p>Closing a logical connection returned by the pool invalidates every statement
+ * prepared through it, so statements could previously only live as long as a single
+ * cache operation. Here a connection is instead returned to an idle queue along with
+ * its statements, and is only closed (returning it to the underlying pool) when it
+ * fails to roll back or when this pool is disposed.</p>
+ *
+ * <p>A {@link CachedConnection} must only be used by one thread at a time, between
+ * {@link #getConnection()} and {@link #release(CachedConnection, boolean)}.</p>
+ */
+final class StatementCachingConnectionPool {
+
+	private static final Logger LOG = Logger.getLogger(StatementCachingConnectionPool.class.getName());
+
+	/**
+	 * The maximum number of seconds to wait for a free connection.
+	 */
+	private static final int TIMEOUT = 60;
+
+	private final MiniConnectionPoolManager connPool;
+	private final Semaphore permits;
+	private final ConcurrentLinkedQueue<CachedConnection> idle = new ConcurrentLinkedQueue<CachedConnection>();
+	private final int maxStatements;
+	private volatile boolean disposed = false;
+
+	private final AtomicLong statementsPrepared = new AtomicLong();
+	private final AtomicLong statementsReused = new AtomicLong();
+
+	/**
+	 * @param dataSource the data source for the connections.
+	 * @param maxConnections the maximum number of connections.
+	 * @param maxStatements the maximum number of prepared statements kept open per connection.
+	 */
+	StatementCachingConnectionPool(ConnectionPoolDataSource dataSource, int maxConnections, int maxStatements) {
+		this.connPool = new MiniConnectionPoolManager(dataSource, maxConnections, TIMEOUT);
+		this.permits = new Semaphore(maxConnections, true);
+		this.maxStatements = maxStatements;
+	}
+
+	/**
+	 * Retrieves a connection, preferring one which has already been used and
+	 * therefore has prepared statements available. The connection is not in
+	 * auto-commit mode.
+	 *
+	 * @throws MiniConnectionPoolManager.TimeoutException when no connection becomes available in time.
+	 */
+	CachedConnection getConnection() throws SQLException {
+		if(disposed) {
+			throw new IllegalStateException("Connection pool has been disposed.");
+		}
+
+		try {
+			if(!permits.tryAcquire(TIMEOUT, TimeUnit.SECONDS)) {
+				throw new MiniConnectionPoolManager.TimeoutException();
+			}
+		} catch(InterruptedException e) {
+			throw new RuntimeException("Interrupted while waiting for a database connection.", e);
+		}
+
+		boolean ok = false;
+		try {
+			CachedConnection conn = idle.poll();
+			if(conn == null) {
+				Connection raw = connPool.getConnection();
+				try {
+					raw.setAutoCommit(false);
+				} catch(SQLException e) {
+					raw.close();
+					throw e;
+				}
+				conn = new CachedConnection(raw);
+			}
+
+			ok = true;
+			return conn;
+		} finally {
+			if(!ok) {
+				permits.release();
+			}
+		}
+	}
+
+	/**
+	 * Returns a connection retrieved from {@link #getConnection()} for reuse.
+	 *
+	 * @param conn the connection.
+	 * @param rollBack if true the current transaction is rolled back first.
+	 */
+	void release(CachedConnection conn, boolean rollBack) {
+		try {
+			boolean reusable = true;
+			if(rollBack) {
+				try {
+					conn.connection.rollback();
+				} catch(SQLException e) {
+					if(Logging.SHOW_SEVERE && LOG.isLoggable(Level.SEVERE)) {
+						LOG.log(Level.SEVERE, "Failed to roll back connection", e);
+					}
+					reusable = false;
+				}
+			}
+
+			if(reusable && !disposed) {
+				idle.offer(conn);
+
+				// dispose() may have drained the queue before the offer.
+				if(disposed && idle.remove(conn)) {
+					conn.close();
+				}
+			} else {
+				conn.close();
+			}
+		} finally {
+			permits.release();
+		}
+	}
+
+	/**
+	 * Closes all idle connections and the underlying pool. Connections in use
+	 * are closed as they are released.
+	 */
+	void dispose() throws SQLException {
+		disposed = true;
+
+		CachedConnection conn;
+		while((conn = idle.poll()) != null) {
+			conn.close();
+		}
+
+		connPool.dispose();
+	}
+
+	/**
+	 * @return the number of statements which have been prepared.
+	 */
+	long getStatementsPrepared() {
+		return statementsPrepared.get();
+	}
+
+	/**
+	 * @return the number of times a previously prepared statement was reused.
+	 */
+	long getStatementsReused() {
+		return statementsReused.get();
+	}
+
+	/**
+	 * A logical connection together with the statements prepared on it, keyed
+	 * by their SQL and evicted in least recently used order.
+	 */
+	final class CachedConnection {
+
+		private final Connection connection;
+
+		private final Map<String, PreparedStatement> statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+				if(size() <= maxStatements) {
+					return false;
+				}
+
+				closeStatement(eldest.getValue());
+				return true;
+			}
+		};
+
+		CachedConnection(Connection connection) {
+			this.connection = connection;
+		}
+
+		/**
+		 * Returns a prepared statement for the given SQL, reusing the one prepared
+		 * by an earlier call if it is still cached. The parameters and batch of a
+		 * reused statement are cleared. The statement must not be closed by the caller.
+		 */
+		PreparedStatement prepareStatement(String sql) throws SQLException {
+			PreparedStatement st = statements.get(sql);
+
+			if(st != null) {
+				st.clearParameters();
+				st.clearBatch();
+				statementsReused.incrementAndGet();
+				return st;
+			}
+
+			st = connection.prepareStatement(sql);
+			statementsPrepared.incrementAndGet();
+			statements.put(sql, st);
+			return st;
+		}
+
+		/**
+		 * @return the underlying connection, for operations other than prepared statements.
+		 */
+		Connection getConnection() {
+			return connection;
+		}
+
+		void commit() throws SQLException {
+			connection.commit();
+		}
+
+		/**
+		 * Closes the cached statements and returns the underlying connection to the pool.
+		 */
+		private void close() {
+			Iterator<PreparedStatement> each = statements.values().iterator();
+			while(each.hasNext()) {
+				closeStatement(each.next());
+				each.remove();
+			}
+
+			try {
+				connection.close();
+			} catch(SQLException e) {
+				if(Logging.SHOW_SEVERE && LOG.isLoggable(Level.SEVERE)) {
+					LOG.log(Level.SEVERE, "Failed to close connection", e);
+				}
+			}
+		}
+	}
+
+	private static void closeStatement(Statement st) {
+		try {
+			st.close();
+		} catch(SQLException e) {
+			if(Logging.SHOW_SEVERE && LOG.isLoggable(Level.SEVERE)) {
+				LOG.log(Level.SEVERE, "Failed to close statement", e);
+			}
+		}
+	}
+}
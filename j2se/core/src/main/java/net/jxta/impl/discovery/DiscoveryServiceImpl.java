@@ -70,6 +70,7 @@ import net.jxta.id.ID;
 import net.jxta.impl.cm.Cm;
 import net.jxta.impl.cm.Srdi;
 import net.jxta.impl.cm.SrdiIndex;
+import net.jxta.impl.peergroup.DependentModule;
 import net.jxta.impl.peergroup.StdPeerGroup;
 import net.jxta.impl.protocol.DiscoveryConfigAdv;
 import net.jxta.impl.protocol.DiscoveryQuery;
@@ -85,6 +86,7 @@ import net.jxta.membership.MembershipService;
 import net.jxta.peer.PeerID;
 import net.jxta.peergroup.PeerGroup;
 import net.jxta.platform.Module;
+import net.jxta.platform.ModuleClassID;
 import net.jxta.protocol.*;
 import net.jxta.rendezvous.RendezVousService;
 import net.jxta.rendezvous.RendezvousEvent;
@@ -125,7 +127,7 @@ import java.util.logging.Logger;
  * @see net.jxta.resolver.ResolverService
  * @see <a href="https://jxta-spec.dev.java.net/nonav/JXTAProtocols.html#proto-pdp" target="_blank">JXTA Protocols Specification : Peer Discovery Protocol</a>
  */
-public class DiscoveryServiceImpl implements DiscoveryService, InternalQueryHandler, RendezvousListener, SrdiHandler, Srdi.SrdiInterface {
+public class DiscoveryServiceImpl implements DiscoveryService, InternalQueryHandler, RendezvousListener, SrdiHandler, Srdi.SrdiInterface, DependentModule {
 
     /**
      * Logger
@@ -467,6 +469,21 @@ public class DiscoveryServiceImpl implements DiscoveryService, InternalQueryHand
         }
     }
 
+    /**
+     * The services which must be started before this service.
+     */
+    private static final Collection<ModuleClassID> START_DEPENDENCIES = Collections.unmodifiableList(Arrays.asList(
+            PeerGroup.resolverClassID,
+            PeerGroup.membershipClassID,
+            PeerGroup.rendezvousClassID));
+
+    /**
+     * {@inheritDoc}
+     */
+    public Collection<ModuleClassID> getStartDependencies() {
+        return START_DEPENDENCIES;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -1223,28 +1240,32 @@ public class DiscoveryServiceImpl implements DiscoveryService, InternalQueryHand
      * @return list of results either as docs, or Strings
      */
     private List<Advertisement> search(int type, String attr, String value, int threshold, List<Long> expirations) {
-        List<InputStream> results = rawSearch(type, attr, value, threshold, expirations);
 
-        // Convert the input streams returned by the cm into Advertisements.
-        List<Advertisement> advertisements = new ArrayList<Advertisement>();
+        if (stopped) {
+            return new ArrayList<Advertisement>();
+        }
 
-        for (int i = 0; (i < results.size()) && (advertisements.size() < threshold); i++) {
-            try {
-                InputStream bis = results.get(i);
-                XMLDocument asDoc = (XMLDocument) StructuredDocumentFactory.newStructuredDocument(MimeMediaType.XMLUTF8, bis);
-                Advertisement adv = AdvertisementFactory.newAdvertisement(asDoc);
+        if (type == PEER) {
+            checkUpdatePeerAdv();
+        }
 
-                advertisements.add(adv);
-            } catch (Exception e) {
-                if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
-                    LOG.log(Level.WARNING, "Failed building advertisment", e);
-                }
+        if (threshold <= 0) {
+            throw new IllegalArgumentException("threshold must be greater than zero");
+        }
 
-                // we won't be including this advertisement so remove it's expiration.
-                if (null != expirations) {
-                    expirations.remove(i);
-                }
+        List<Advertisement> advertisements;
+
+        // The cm serves the parsed advertisements from its cache where it can.
+        if (attr != null) {
+            if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+                LOG.fine("Searching for " + threshold + " advertisements of type : " + dirname[type]);
+            }
+            advertisements = cm.searchAdvertisements(dirname[type], attr, value, threshold, expirations);
+        } else {
+            if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+                LOG.fine("Getting " + threshold + " advertisements of type : " + dirname[type]);
             }
+            advertisements = cm.getRecordAdvertisements(dirname[type], threshold, expirations);
         }
 
         if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
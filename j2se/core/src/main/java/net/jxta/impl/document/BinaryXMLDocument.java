@@ -0,0 +1,848 @@
+/*
+ * Copyright (c) 2001-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+
+package net.jxta.impl.document;
+
+
+import net.jxta.document.MimeMediaType;
+import net.jxta.document.StructuredDocumentFactory;
+import net.jxta.document.XMLDocument;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/**
+ * A compact binary encoding of XML structured documents. Documents behave as
+ * {@link XMLDocument}s so that any advertisement or protocol message may be
+ * generated in or read from this encoding, but are sent as bytes rather than
+ * as XML text.
+ * <p/>
+ * The encoding is :
+ * <pre>
+ * document  := 'J' 'X' 'B' version(1) flags length [deflatedLength] body
+ * body      := element
+ * element   := name attrCount (name value)* value childCount element*
+ * name      := 0 string | index + 1
+ * value     := 0 | 1 string | 2 idLength idBytes
+ * string    := length utf8Bytes
+ * </pre>
+ * All counts, lengths and indexes are unsigned variable length integers of
+ * seven bits per byte, least significant first. {@code length} is the length
+ * of the body. If bit 0 of {@code flags} is set the body is deflated and
+ * occupies {@code deflatedLength} bytes.
+ * <p/>
+ * Each element or attribute name is written in full only the first time it
+ * is used and as the index of that first use afterwards. Values which are
+ * JXTA UUID URNs, {@code urn:jxta:uuid-} followed by upper case hex digits,
+ * are written as the raw ID bytes. Values are trimmed of leading and
+ * trailing white space and empty values are not written, as for elements
+ * read from XML.
+ */
+public class BinaryXMLDocument extends BinaryXMLElement implements XMLDocument<BinaryXMLElement> {
+
+    /**
+     * The MIME Media Type of binary documents.
+     */
+    public final static MimeMediaType MIME_TYPE = new MimeMediaType("application", "x-jxta-bxml").intern();
+
+    private final static class Instantiator implements StructuredDocumentFactory.Instantiator {
+
+        /**
+         * The MIME Media Types which this <CODE>StructuredDocument</CODE> is
+         * capable of emitting.
+         */
+        private static final MimeMediaType[] myTypes = {
+            MIME_TYPE
+        };
+
+        // these are the file extensions which are likely to contain files of
+        // the type i like.
+        private static final ExtensionMapping[] myExtensions = {
+            new ExtensionMapping("bxml", myTypes[0]), 
+            new ExtensionMapping("bxml", (MimeMediaType) null)
+        };
+
+        /**
+         * Creates new BinaryXMLDocument Instantiator
+         */
+        public Instantiator() {}
+
+        /**
+         * {@inheritDoc}
+         */
+        public MimeMediaType[] getSupportedMimeTypes() {
+            return (myTypes);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public ExtensionMapping[] getSupportedFileExtensions() {
+            return (myExtensions);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public BinaryXMLDocument newInstance(MimeMediaType mimeType, String doctype) {
+            return new BinaryXMLDocument(mimeType, doctype, null);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public BinaryXMLDocument newInstance(MimeMediaType mimeType, String doctype, String value) {
+            return new BinaryXMLDocument(mimeType, doctype, value);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public BinaryXMLDocument newInstance(MimeMediaType mimeType, InputStream source) throws IOException {
+            return read(mimeType, source);
+        }
+    }
+
+    /**
+     * The instantiator for instances of our documents.
+     */
+    public static final StructuredDocumentFactory.Instantiator INSTANTIATOR = new Instantiator();
+
+    /**
+     * The largest body which will be read.
+     */
+    private final static int MAX_LENGTH = 16 * 1024 * 1024;
+
+    /**
+     * The deepest nesting of elements which will be read.
+     */
+    private final static int MAX_DEPTH = 256;
+
+    private final static byte VERSION = 1;
+
+    private final static int FLAG_DEFLATED = 1;
+
+    private final static int VALUE_NONE = 0;
+    private final static int VALUE_STRING = 1;
+    private final static int VALUE_ID = 2;
+
+    private final static String UUID_PREFIX = "urn:jxta:uuid-";
+
+    private final static char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The mimetype of this document.
+     */
+    private final MimeMediaType mimeType;
+
+    /**
+     * Creates new BinaryXMLDocument
+     *
+     * @param mimeType The mime type of the document.
+     * @param type     The name of the root element.
+     * @param value    The text value of the root element or {@code null}.
+     */
+    BinaryXMLDocument(MimeMediaType mimeType, String type, String value) {
+        super(null, type, value);
+
+        for (int eachChar = type.length() - 1; eachChar >= 0; eachChar--) {
+            if (Character.isWhitespace(type.charAt(eachChar))) {
+                throw new IllegalArgumentException("Root tag may not contain spaces");
+            }
+        }
+
+        doc = this;
+        parent = this;
+
+        this.mimeType = mimeType;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Returns the document as XML.
+     */
+    @Override
+    public String toString() {
+        return toXML().toString();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public MimeMediaType getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getFileExtension() {
+        return TextDocumentCommon.Utils.getExtensionForMime(INSTANTIATOR.getSupportedFileExtensions(), getMimeType());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public BinaryXMLElement createElement(Object key) {
+        return createElement(key, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public BinaryXMLElement createElement(Object key, Object val) {
+        if (!(key instanceof String)) {
+            throw new ClassCastException(key.getClass().getName() + " not supported by createElement as key.");
+        }
+
+        if ((null != val) && !(val instanceof String)) {
+            throw new ClassCastException(val.getClass().getName() + " not supported by createElement as value.");
+        }
+
+        return createElement((String) key, (String) val);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public BinaryXMLElement createElement(String name) {
+        return createElement(name, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public BinaryXMLElement createElement(String name, String val) {
+        return new BinaryXMLElement(this, name, val);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public InputStream getStream() throws IOException {
+        return new ByteArrayInputStream(toByteArray(false));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void sendToStream(OutputStream stream) throws IOException {
+        stream.write(toByteArray(false));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Returns the document as XML.
+     */
+    public Reader getReader() {
+        return new StringReader(toString());
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Writes the document as XML.
+     */
+    public void sendToWriter(Writer stream) throws IOException {
+        toXML().sendToWriter(stream);
+    }
+
+    /**
+     * Returns a copy of this document as XML.
+     *
+     * @return The XML document.
+     */
+    private LiteXMLDocument toXML() {
+        LiteXMLDocument xml = new LiteXMLDocument(MimeMediaType.XMLUTF8, getName(), getTextValue());
+
+        copyInto(xml, xml, this);
+
+        return xml;
+    }
+
+    /**
+     * Copies the attributes and children of an element into an XML element.
+     * LiteXML adds each attribute before those already present so they are
+     * added in reverse to keep their order.
+     *
+     * @param xml  The XML document.
+     * @param into The XML element.
+     * @param from The element to copy.
+     */
+    private static void copyInto(LiteXMLDocument xml, LiteXMLElement into, BinaryXMLElement from) {
+        List<Map.Entry<String, String>> attrs = new ArrayList<Map.Entry<String, String>>(from.getAttributeMap().entrySet());
+
+        for (int eachAttr = attrs.size() - 1; eachAttr >= 0; eachAttr--) {
+            into.addAttribute(attrs.get(eachAttr).getKey(), attrs.get(eachAttr).getValue());
+        }
+
+        for (BinaryXMLElement aChild : from.getChildList()) {
+            LiteXMLElement child = xml.createElement(aChild.getName(), aChild.getTextValue());
+
+            into.appendChild(child);
+            copyInto(xml, child, aChild);
+        }
+    }
+
+    /**
+     * Returns the encoded form of this document.
+     *
+     * @param deflate If {@code true} then the body is compressed.
+     * @return The encoded document.
+     */
+    public byte[] toByteArray(boolean deflate) {
+        Encoder body = new Encoder();
+
+        body.writeElement(this);
+
+        Encoder encoded = new Encoder();
+
+        encoded.writeByte('J');
+        encoded.writeByte('X');
+        encoded.writeByte('B');
+        encoded.writeByte(VERSION);
+        encoded.writeByte(deflate ? FLAG_DEFLATED : 0);
+        encoded.writeVarint(body.count);
+
+        if (deflate) {
+            Deflater deflater = new Deflater();
+            byte[] deflated = new byte[body.count + 64];
+            int deflatedLength = 0;
+
+            try {
+                deflater.setInput(body.buf, 0, body.count);
+                deflater.finish();
+                while (!deflater.finished()) {
+                    if (deflatedLength == deflated.length) {
+                        byte[] bigger = new byte[deflated.length * 2];
+
+                        System.arraycopy(deflated, 0, bigger, 0, deflatedLength);
+                        deflated = bigger;
+                    }
+                    deflatedLength += deflater.deflate(deflated, deflatedLength, deflated.length - deflatedLength);
+                }
+            } finally {
+                deflater.end();
+            }
+
+            encoded.writeVarint(deflatedLength);
+            encoded.writeBytes(deflated, 0, deflatedLength);
+        } else {
+            encoded.writeBytes(body.buf, 0, body.count);
+        }
+
+        byte[] result = new byte[encoded.count];
+
+        System.arraycopy(encoded.buf, 0, result, 0, encoded.count);
+
+        return result;
+    }
+
+    /**
+     * Reads an encoded document.
+     *
+     * @param mimeType The mime type for the document.
+     * @param source   The encoded document.
+     * @return The document.
+     * @throws IOException If the encoding is not valid or there is a problem
+     *                     reading it.
+     */
+    static BinaryXMLDocument read(MimeMediaType mimeType, InputStream source) throws IOException {
+        if (('J' != readByte(source)) || ('X' != readByte(source)) || ('B' != readByte(source))) {
+            throw new IOException("Not a binary document");
+        }
+
+        int version = readByte(source);
+
+        if (VERSION != version) {
+            throw new IOException("Unsupported binary document version : " + version);
+        }
+
+        int flags = readByte(source);
+        int length = readLength(source);
+        byte[] body = new byte[length];
+
+        if (0 != (flags & FLAG_DEFLATED)) {
+            byte[] deflated = new byte[readLength(source)];
+
+            readFully(source, deflated);
+
+            Inflater inflater = new Inflater();
+
+            try {
+                inflater.setInput(deflated);
+                if ((length != inflater.inflate(body)) || !inflater.finished()) {
+                    throw new IOException("Deflated body does not have the declared length");
+                }
+            } catch (DataFormatException bad) {
+                IOException failure = new IOException("Corrupt deflated body");
+
+                failure.initCause(bad);
+                throw failure;
+            } finally {
+                inflater.end();
+            }
+        } else {
+            readFully(source, body);
+        }
+
+        return new Decoder(mimeType, body).readDocument();
+    }
+
+    private static int readByte(InputStream source) throws IOException {
+        int b = source.read();
+
+        if (b < 0) {
+            throw new EOFException("Truncated binary document");
+        }
+
+        return b;
+    }
+
+    private static int readLength(InputStream source) throws IOException {
+        int value = 0;
+
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = readByte(source);
+
+            value |= (b & 0x7F) << shift;
+
+            if (0 == (b & 0x80)) {
+                if ((value < 0) || (value > MAX_LENGTH)) {
+                    throw new IOException("Illegal binary document length : " + value);
+                }
+
+                return value;
+            }
+        }
+
+        throw new IOException("Illegal binary document length");
+    }
+
+    private static void readFully(InputStream source, byte[] into) throws IOException {
+        int offset = 0;
+
+        while (offset < into.length) {
+            int read = source.read(into, offset, into.length - offset);
+
+            if (read < 0) {
+                throw new EOFException("Truncated binary document");
+            }
+
+            offset += read;
+        }
+    }
+
+    /**
+     * Returns the raw bytes of a JXTA UUID URN.
+     *
+     * @param value The value.
+     * @return The ID bytes or {@code null} if the value is not a UUID URN
+     *         which can be reproduced exactly from its bytes.
+     */
+    private static byte[] getIDBytes(String value) {
+        int hexLength = value.length() - UUID_PREFIX.length();
+
+        if ((hexLength <= 0) || (0 != (hexLength & 1)) || !value.startsWith(UUID_PREFIX)) {
+            return null;
+        }
+
+        byte[] bytes = new byte[hexLength / 2];
+
+        for (int eachByte = 0; eachByte < bytes.length; eachByte++) {
+            int high = hexDigit(value.charAt(UUID_PREFIX.length() + eachByte * 2));
+            int low = hexDigit(value.charAt(UUID_PREFIX.length() + eachByte * 2 + 1));
+
+            if ((high < 0) || (low < 0)) {
+                return null;
+            }
+
+            bytes[eachByte] = (byte) ((high << 4) | low);
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Returns the value of an upper case hex digit or -1.
+     */
+    private static int hexDigit(char c) {
+        if ((c >= '0') && (c <= '9')) {
+            return c - '0';
+        }
+
+        if ((c >= 'A') && (c <= 'F')) {
+            return c - 'A' + 10;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Writes elements to a growable byte array.
+     */
+    private final static class Encoder {
+
+        byte[] buf = new byte[256];
+
+        int count = 0;
+
+        /**
+         * The index of each name which has been written.
+         */
+        private final Map<String, Integer> names = new HashMap<String, Integer>();
+
+        void writeByte(int b) {
+            if (count == buf.length) {
+                grow(1);
+            }
+
+            buf[count++] = (byte) b;
+        }
+
+        void writeBytes(byte[] bytes, int offset, int length) {
+            if (count + length > buf.length) {
+                grow(length);
+            }
+
+            System.arraycopy(bytes, offset, buf, count, length);
+            count += length;
+        }
+
+        void writeVarint(int value) {
+            while (0 != (value & ~0x7F)) {
+                writeByte((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+
+            writeByte(value);
+        }
+
+        void writeString(String value) {
+            byte[] bytes = value.getBytes(UTF8);
+
+            writeVarint(bytes.length);
+            writeBytes(bytes, 0, bytes.length);
+        }
+
+        void writeName(String name) {
+            Integer index = names.get(name);
+
+            if (null != index) {
+                writeVarint(index + 1);
+            } else {
+                names.put(name, names.size());
+                writeVarint(0);
+                writeString(name);
+            }
+        }
+
+        void writeValue(String value) {
+            if (null == value) {
+                writeByte(VALUE_NONE);
+                return;
+            }
+
+            byte[] id = getIDBytes(value);
+
+            if (null != id) {
+                writeByte(VALUE_ID);
+                writeVarint(id.length);
+                writeBytes(id, 0, id.length);
+            } else {
+                writeByte(VALUE_STRING);
+                writeString(value);
+            }
+        }
+
+        void writeElement(BinaryXMLElement element) {
+            writeName(element.getName());
+
+            Map<String, String> attributes = element.getAttributeMap();
+
+            writeVarint(attributes.size());
+            for (Map.Entry<String, String> anAttr : attributes.entrySet()) {
+                writeName(anAttr.getKey());
+                writeValue(anAttr.getValue());
+            }
+
+            writeValue(element.getTextValue());
+
+            List<BinaryXMLElement> children = element.getChildList();
+
+            writeVarint(children.size());
+            for (BinaryXMLElement aChild : children) {
+                writeElement(aChild);
+            }
+        }
+
+        private void grow(int needed) {
+            byte[] bigger = new byte[Math.max(buf.length * 2, count + needed)];
+
+            System.arraycopy(buf, 0, bigger, 0, count);
+            buf = bigger;
+        }
+    }
+
+    /**
+     * Reads elements from a document body.
+     */
+    private final static class Decoder {
+
+        private final MimeMediaType mimeType;
+
+        private final byte[] buf;
+
+        private int pos = 0;
+
+        /**
+         * The names read so far, by index.
+         */
+        private final List<String> names = new ArrayList<String>();
+
+        Decoder(MimeMediaType mimeType, byte[] buf) {
+            this.mimeType = mimeType;
+            this.buf = buf;
+        }
+
+        BinaryXMLDocument readDocument() throws IOException {
+            String name = readName();
+            int attrCount = readCount();
+            List<String> attrs = new ArrayList<String>(attrCount * 2);
+
+            for (int eachAttr = 0; eachAttr < attrCount; eachAttr++) {
+                attrs.add(readName());
+                attrs.add(readValue());
+            }
+
+            BinaryXMLDocument result;
+
+            try {
+                result = new BinaryXMLDocument(mimeType, name, readValue());
+            } catch (IllegalArgumentException badName) {
+                IOException failure = new IOException("Illegal root element name");
+
+                failure.initCause(badName);
+                throw failure;
+            }
+
+            for (int eachAttr = 0; eachAttr < attrs.size(); eachAttr += 2) {
+                result.addAttribute(attrs.get(eachAttr), attrs.get(eachAttr + 1));
+            }
+
+            readChildren(result, result, 1);
+
+            if (pos != buf.length) {
+                throw new IOException("Unexpected data after document");
+            }
+
+            return result;
+        }
+
+        private void readChildren(BinaryXMLDocument doc, BinaryXMLElement parent, int depth) throws IOException {
+            int childCount = readCount();
+
+            if ((childCount > 0) && (depth >= MAX_DEPTH)) {
+                throw new IOException("Elements nested too deeply");
+            }
+
+            for (int eachChild = 0; eachChild < childCount; eachChild++) {
+                String name = readName();
+                int attrCount = readCount();
+                List<String> attrs = null;
+
+                if (attrCount > 0) {
+                    attrs = new ArrayList<String>(attrCount * 2);
+                    for (int eachAttr = 0; eachAttr < attrCount; eachAttr++) {
+                        attrs.add(readName());
+                        attrs.add(readValue());
+                    }
+                }
+
+                BinaryXMLElement child = doc.createElement(name, readValue());
+
+                if (null != attrs) {
+                    for (int eachAttr = 0; eachAttr < attrs.size(); eachAttr += 2) {
+                        child.addAttribute(attrs.get(eachAttr), attrs.get(eachAttr + 1));
+                    }
+                }
+
+                parent.appendChild(child);
+                readChildren(doc, child, depth + 1);
+            }
+        }
+
+        private int readByte() throws IOException {
+            if (pos >= buf.length) {
+                throw new EOFException("Truncated binary document");
+            }
+
+            return buf[pos++] & 0xFF;
+        }
+
+        private int readVarint() throws IOException {
+            int value = 0;
+
+            for (int shift = 0; shift < 32; shift += 7) {
+                int b = readByte();
+
+                value |= (b & 0x7F) << shift;
+
+                if (0 == (b & 0x80)) {
+                    if (value < 0) {
+                        break;
+                    }
+
+                    return value;
+                }
+            }
+
+            throw new IOException("Illegal integer in binary document");
+        }
+
+        /**
+         * Reads a count of items, each of which occupies at least one byte.
+         */
+        private int readCount() throws IOException {
+            int count = readVarint();
+
+            if (count > buf.length - pos) {
+                throw new IOException("Illegal count in binary document : " + count);
+            }
+
+            return count;
+        }
+
+        private String readString() throws IOException {
+            int length = readCount();
+            String result = new String(buf, pos, length, UTF8);
+
+            pos += length;
+
+            return result;
+        }
+
+        private String readName() throws IOException {
+            int index = readVarint();
+
+            if (0 == index) {
+                String name = readString();
+
+                if (0 == name.length()) {
+                    throw new IOException("Empty name in binary document");
+                }
+
+                names.add(name);
+
+                return name;
+            }
+
+            if (index > names.size()) {
+                throw new IOException("Illegal name reference in binary document : " + index);
+            }
+
+            return names.get(index - 1);
+        }
+
+        private String readValue() throws IOException {
+            int kind = readByte();
+
+            switch (kind) {
+                case VALUE_NONE:
+                    return null;
+
+                case VALUE_STRING:
+                    return readString();
+
+                case VALUE_ID:
+                    int length = readCount();
+                    char[] chars = new char[UUID_PREFIX.length() + length * 2];
+
+                    UUID_PREFIX.getChars(0, UUID_PREFIX.length(), chars, 0);
+                    for (int eachByte = 0; eachByte < length; eachByte++) {
+                        int b = buf[pos++] & 0xFF;
+
+                        chars[UUID_PREFIX.length() + eachByte * 2] = HEX[b >>> 4];
+                        chars[UUID_PREFIX.length() + eachByte * 2 + 1] = HEX[b & 0x0F];
+                    }
+
+                    return new String(chars);
+
+                default:
+                    throw new IOException("Illegal value kind in binary document : " + kind);
+            }
+        }
+    }
+}
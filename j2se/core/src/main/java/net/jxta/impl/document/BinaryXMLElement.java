@@ -0,0 +1,319 @@
+/*
+ * Copyright (c) 2001-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+
+package net.jxta.impl.document;
+
+
+import net.jxta.document.Attribute;
+import net.jxta.document.XMLElement;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * An element of a {@link BinaryXMLDocument}. Elements are held as a simple
+ * tree of names, values, attributes and children. Text values are presented
+ * as they would be by an XML document, with surrounding white space trimmed
+ * and empty values as {@code null}.
+ */
+public class BinaryXMLElement implements XMLElement<BinaryXMLElement> {
+
+    protected BinaryXMLDocument doc;
+
+    protected BinaryXMLElement parent;
+
+    protected final String name;
+
+    protected final String val;
+
+    /**
+     * The children of this element, created when the first is added.
+     */
+    private List<BinaryXMLElement> children = null;
+
+    /**
+     * The attributes of this element in the order they were added, created
+     * when the first is added.
+     */
+    private Map<String, String> attributes = null;
+
+    /**
+     * Creates new BinaryXMLElement
+     *
+     * @param doc  The document which will contain this element.
+     * @param name The name of the element.
+     * @param val  The text value of the element or {@code null}.
+     */
+    protected BinaryXMLElement(BinaryXMLDocument doc, String name, String val) {
+        this.doc = doc;
+        this.name = name;
+        this.val = trim(val);
+    }
+
+    /**
+     * Returns the value with leading and trailing white space removed or
+     * {@code null} if there is nothing else. The same as the values of
+     * elements read from XML.
+     *
+     * @param value The value to trim.
+     * @return The trimmed value or {@code null}.
+     */
+    static String trim(String value) {
+        if (null == value) {
+            return null;
+        }
+
+        int first = 0;
+        int last = value.length() - 1;
+
+        while ((first <= last) && Character.isWhitespace(value.charAt(first))) {
+            first++;
+        }
+
+        if (first > last) {
+            return null;
+        }
+
+        while (Character.isWhitespace(value.charAt(last))) {
+            last--;
+        }
+
+        return ((0 == first) && (value.length() - 1 == last)) ? value : value.substring(first, last + 1);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public BinaryXMLDocument getRoot() {
+        return doc;
+    }
+
+    /**
+     * Get the name associated with an element.
+     *
+     * @return A string containing the key of this element.
+     */
+    public String getKey() {
+        return getName();
+    }
+
+    /**
+     * Get the value (if any) associated with an element.
+     *
+     * @return A string containing the value of this element, if any, otherwise null.
+     */
+    public String getValue() {
+        return getTextValue();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public BinaryXMLElement getParent() {
+        return parent;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Enumeration<BinaryXMLElement> getChildren() {
+        if (null == children) {
+            return Collections.enumeration(Collections.<BinaryXMLElement>emptyList());
+        }
+
+        return Collections.enumeration(children);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getTextValue() {
+        return val;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void appendChild(BinaryXMLElement element) {
+        if (element.doc != this.doc) {
+            throw new IllegalArgumentException("Wrong Document");
+        }
+
+        if (null != element.parent) {
+            throw new IllegalArgumentException("New element is already in document");
+        }
+
+        element.parent = this;
+
+        if (null == children) {
+            children = new ArrayList<BinaryXMLElement>();
+        }
+
+        children.add(element);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Enumeration<BinaryXMLElement> getChildren(Object key) {
+        if (key instanceof String)
+            return getChildren((String) key);
+        else
+            throw new ClassCastException(key.getClass().getName() + " not supported by getChildren.");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Enumeration<BinaryXMLElement> getChildren(String name) {
+        List<BinaryXMLElement> result = new ArrayList<BinaryXMLElement>();
+
+        if (null != children) {
+            for (BinaryXMLElement aChild : children) {
+                if (name.equals(aChild.getName())) {
+                    result.add(aChild);
+                }
+            }
+        }
+
+        return Collections.enumeration(result);
+    }
+
+    /**
+     * Returns the children of this element.
+     *
+     * @return The children, possibly empty. Must not be modified.
+     */
+    List<BinaryXMLElement> getChildList() {
+        if (null == children) {
+            return Collections.emptyList();
+        }
+
+        return children;
+    }
+
+    /**
+     * Returns the attributes of this element.
+     *
+     * @return The attributes by name in the order they were added, possibly
+     *         empty. Must not be modified.
+     */
+    Map<String, String> getAttributeMap() {
+        if (null == attributes) {
+            return Collections.emptyMap();
+        }
+
+        return attributes;
+    }
+
+    // Attributable methods
+
+    /**
+     * {@inheritDoc}
+     */
+    public String addAttribute(String name, String value) {
+        if (null == attributes) {
+            attributes = new LinkedHashMap<String, String>(4);
+        }
+
+        return attributes.put(name, value);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String addAttribute(Attribute newAttrib) {
+        return addAttribute(newAttrib.getName(), newAttrib.getValue());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Enumeration<Attribute> getAttributes() {
+        List<Attribute> attrs = new ArrayList<Attribute>();
+
+        for (Map.Entry<String, String> anAttr : getAttributeMap().entrySet()) {
+            attrs.add(new Attribute(this, anAttr.getKey(), anAttr.getValue()));
+        }
+
+        return Collections.enumeration(attrs);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Attribute getAttribute(String name) {
+        String value = getAttributeMap().get(name);
+
+        if (null == value) {
+            return null;
+        }
+
+        return new Attribute(this, name, value);
+    }
+}
@@ -64,6 +64,11 @@ import net.jxta.document.XMLDocument;
 
 import java.io.*;
 import java.lang.reflect.UndeclaredThrowableException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 
 
 /**
@@ -146,6 +151,24 @@ public class LiteXMLDocument extends LiteXMLElement implements XMLDocument<LiteX
      */
     public static final StructuredDocumentFactory.TextInstantiator INSTANTIATOR = new Instantiator();
 
+    /**
+     * If {@code true} then documents are parsed using only the tag search
+     * parser of {@link LiteXMLElement} rather than the single pass parser.
+     */
+    public final static String LEGACY_PARSER_SYSPROP = "net.jxta.impl.document.LiteXMLDocument.legacyParser";
+
+    /**
+     * If {@code true} then the single pass parser is not used. Package
+     * visible so that the parsers can be compared.
+     */
+    static boolean legacyParsing = Boolean.getBoolean(LEGACY_PARSER_SYSPROP);
+
+    /**
+     * The charset used for byte buffer sources when the mime type does not
+     * specify one.
+     */
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+
     /**
      * The actual document contents.
      */
@@ -255,6 +278,91 @@ public class LiteXMLDocument extends LiteXMLElement implements XMLDocument<LiteX
         init(in);
     }
 
+    /**
+     * Creates new LiteXMLDocument from the bytes remaining in the buffer,
+     * decoding them directly into the document content. The buffer position
+     * is advanced to its limit.
+     */
+    LiteXMLDocument(MimeMediaType mimeType, ByteBuffer in) throws IOException {
+        super(null, (LiteXMLElement.tagRange) null);
+
+        parent = this;
+
+        this.mimeType = mimeType;
+
+        String charsetName = mimeType.getParameter("charset");
+        Charset charset = (null == charsetName) ? UTF8 : Charset.forName(charsetName);
+        char[] ascii = new char[in.remaining()];
+        int asciiLength = 0;
+
+        // Most documents are entirely ASCII which needs no decoding in UTF-8.
+        if (UTF8.equals(charset)) {
+            if (in.hasArray()) {
+                byte[] bytes = in.array();
+                int offset = in.arrayOffset() + in.position();
+
+                while ((asciiLength < ascii.length) && (bytes[offset + asciiLength] >= 0)) {
+                    ascii[asciiLength] = (char) bytes[offset + asciiLength];
+                    asciiLength++;
+                }
+            } else {
+                int offset = in.position();
+
+                while ((asciiLength < ascii.length) && (in.get(offset + asciiLength) >= 0)) {
+                    ascii[asciiLength] = (char) in.get(offset + asciiLength);
+                    asciiLength++;
+                }
+            }
+
+            in.position(in.position() + asciiLength);
+        }
+
+        if (!in.hasRemaining()) {
+            docContent = new StringBuilder(asciiLength);
+            docContent.append(ascii, 0, asciiLength);
+            loc = new tagRange();
+
+            parse((asciiLength == ascii.length) ? ascii : null);
+            return;
+        }
+
+        CharsetDecoder decoder = charset.newDecoder();
+
+        // same treatment of bad input as InputStreamReader
+        decoder.onMalformedInput(CodingErrorAction.REPLACE);
+        decoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        CharBuffer chars = decoder.decode(in);
+
+        docContent = new StringBuilder(asciiLength + chars.remaining());
+        docContent.append(ascii, 0, asciiLength);
+        if (chars.hasArray()) {
+            docContent.append(chars.array(), chars.arrayOffset() + chars.position(), chars.remaining());
+        } else {
+            docContent.append(chars);
+        }
+
+        loc = new tagRange();
+
+        parse(null);
+    }
+
+    /**
+     * Creates a new document from the encoded bytes remaining in the provided
+     * buffer without an intermediate {@code Reader}. The bytes are decoded
+     * using the charset parameter of the mime type or as UTF-8 if there is no
+     * charset parameter.
+     *
+     * @param mimeType The mime type of the document.
+     * @param source   The document bytes. The position is advanced to the
+     *                 limit.
+     * @return The new document.
+     * @throws IOException If the charset is not supported.
+     */
+    public static LiteXMLDocument newInstance(MimeMediaType mimeType, ByteBuffer source) throws IOException {
+        return new LiteXMLDocument(mimeType, source);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -425,6 +533,33 @@ public class LiteXMLDocument extends LiteXMLElement implements XMLDocument<LiteX
 
         } while (true);
 
+        parse(null);
+    }
+
+    /**
+     * Discovers the structure of the document content, using the single pass
+     * parser if possible and the tag search parser otherwise.
+     *
+     * @param content The document content if already available as an array
+     *                of exactly its length otherwise {@code null}.
+     */
+    private void parse(char[] content) {
+        if (legacyParsing || !parseSinglePass((null != content) ? content : toChars(docContent))) {
+            children = null;
+            loc = new tagRange();
+            parseTagSearch();
+        }
+
+        if (paranoidConsistencyChecking) {
+            checkConsistency();
+        }
+    }
+
+    /**
+     * Discovers the document structure by searching for each element and its
+     * matching end tag using {@link #getTagRanges(StringBuilder, String, charRange)}.
+     */
+    private void parseTagSearch() {
         // startTag will contain the xml declaration
         loc.startTag.start = 0;
         loc.startTag.end = docContent.indexOf(">");
@@ -454,10 +589,303 @@ public class LiteXMLDocument extends LiteXMLElement implements XMLDocument<LiteX
         if (!loc.startTag.equals(loc.endTag)) {
             addChildTags(loc.body, this); // now add the subtags
         }
+    }
 
-        if (paranoidConsistencyChecking) {
-            checkConsistency();
+    /**
+     * Discovers the document structure in a single scan of the document
+     * content, building the elements as their tags are found. The ranges
+     * recorded are the same as those found by the tag search parser.
+     * <p/>
+     * Only documents made of an XML declaration, an optional document type
+     * declaration naming the root element and properly nested elements are
+     * accepted. Anything else, comments, processing instructions, CDATA,
+     * mismatched tags, is left to the tag search parser so that the handling
+     * of such documents, including parse errors, is unchanged.
+     *
+     * @param source The document content.
+     * @return {@code true} if the document was parsed otherwise {@code false}
+     *         in which case the document may have some children.
+     */
+    private boolean parseSinglePass(final char[] source) {
+        final int length = source.length;
+
+        // the xml declaration must start the document.
+        if (!regionMatches(source, 0, "<?xml")) {
+            return false;
+        }
+
+        int current = scanTagEnd(source, 5);
+
+        if (current < 0) {
+            return false;
+        }
+
+        current = skipWhitespace(source, current + 1);
+
+        // optional doctype
+        int rootNameStart = -1;
+        int rootNameEnd = -1;
+
+        if (regionMatches(source, current, "<!DOCTYPE") && (current + 9 < length) && Character.isWhitespace(source[current + 9])) {
+            rootNameStart = skipWhitespace(source, current + 9);
+            rootNameEnd = scanName(source, rootNameStart);
+
+            if ((rootNameEnd < 0) || (rootNameEnd == rootNameStart)) {
+                return false;
+            }
+
+            current = scanTagEnd(source, rootNameEnd);
+
+            if ((current < 0) || ('/' == source[current - 1])) {
+                return false;
+            }
+
+            current = skipWhitespace(source, current + 1);
         }
+
+        // the elements. The document itself is the root element.
+        LiteXMLElement[] open = new LiteXMLElement[16];
+        int[] nameStarts = new int[16];
+        int[] nameEnds = new int[16];
+        int depth = 0;
+
+        while (current < length) {
+            if ('<' != source[current]) {
+                if (0 == depth) {
+                    // only whitespace before or after the root
+                    return false;
+                }
+
+                // skip the text
+                do {
+                    current++;
+                } while ((current < length) && ('<' != source[current]));
+
+                continue;
+            }
+
+            if (current + 1 >= length) {
+                return false;
+            }
+
+            char afterOpen = source[current + 1];
+
+            if ('/' == afterOpen) {
+                if (0 == depth) {
+                    return false;
+                }
+
+                // must be exactly the end tag of the innermost open element.
+                int nameStart = nameStarts[depth - 1];
+                int nameLength = nameEnds[depth - 1] - nameStart;
+                int terminator = current + 2 + nameLength;
+
+                if ((terminator >= length) || ('>' != source[terminator])) {
+                    return false;
+                }
+
+                for (int eachChar = 0; eachChar < nameLength; eachChar++) {
+                    if (source[current + 2 + eachChar] != source[nameStart + eachChar]) {
+                        return false;
+                    }
+                }
+
+                depth--;
+
+                tagRange closed = open[depth].loc;
+
+                closed.endTag.start = current;
+                closed.endTag.end = terminator;
+                closed.body.start = closed.startTag.end + 1;
+                closed.body.end = current - 1;
+                open[depth] = null;
+
+                current = terminator + 1;
+
+                if (0 == depth) {
+                    return (skipWhitespace(source, current) == length);
+                }
+
+                continue;
+            }
+
+            if (('!' == afterOpen) || ('?' == afterOpen)) {
+                return false;
+            }
+
+            int tagStart = current;
+            int nameEnd = scanName(source, tagStart + 1);
+
+            if ((nameEnd < 0) || (nameEnd == tagStart + 1)) {
+                return false;
+            }
+
+            int terminator = scanTagEnd(source, nameEnd);
+
+            if (terminator < 0) {
+                return false;
+            }
+
+            boolean empty = ('/' == source[terminator - 1]);
+            tagRange range;
+
+            if (empty) {
+                range = new tagRange(new charRange(tagStart, terminator), new charRange(tagStart, terminator), new charRange(tagStart, terminator));
+            } else {
+                range = new tagRange(new charRange(tagStart, terminator), new charRange(), new charRange());
+            }
+
+            LiteXMLElement element;
+
+            if (0 == depth) {
+                // the root must be the element named by the doctype
+                if (-1 != rootNameStart) {
+                    int nameLength = rootNameEnd - rootNameStart;
+
+                    if ((nameEnd - tagStart - 1) != nameLength) {
+                        return false;
+                    }
+
+                    for (int eachChar = 0; eachChar < nameLength; eachChar++) {
+                        if (source[tagStart + 1 + eachChar] != source[rootNameStart + eachChar]) {
+                            return false;
+                        }
+                    }
+                }
+
+                loc = range;
+                element = this;
+            } else {
+                element = createElement(range);
+                open[depth - 1].appendChild(element);
+            }
+
+            current = terminator + 1;
+
+            if (empty) {
+                if (0 == depth) {
+                    return (skipWhitespace(source, current) == length);
+                }
+
+                continue;
+            }
+
+            if (depth == open.length) {
+                LiteXMLElement[] newOpen = new LiteXMLElement[depth * 2];
+                int[] newStarts = new int[depth * 2];
+                int[] newEnds = new int[depth * 2];
+
+                System.arraycopy(open, 0, newOpen, 0, depth);
+                System.arraycopy(nameStarts, 0, newStarts, 0, depth);
+                System.arraycopy(nameEnds, 0, newEnds, 0, depth);
+                open = newOpen;
+                nameStarts = newStarts;
+                nameEnds = newEnds;
+            }
+
+            open[depth] = element;
+            nameStarts[depth] = tagStart + 1;
+            nameEnds[depth] = nameEnd;
+            depth++;
+        }
+
+        // ran out of document with open elements or without a root.
+        return false;
+    }
+
+    /**
+     * Returns a copy of the content as an array of exactly its length.
+     */
+    private static char[] toChars(StringBuilder content) {
+        char[] chars = new char[content.length()];
+
+        content.getChars(0, chars.length, chars, 0);
+
+        return chars;
+    }
+
+    /**
+     * Returns {@code true} if the characters at the specified location match
+     * the provided string.
+     */
+    private static boolean regionMatches(char[] source, int from, String match) {
+        int matchLength = match.length();
+
+        if (from + matchLength > source.length) {
+            return false;
+        }
+
+        for (int eachChar = 0; eachChar < matchLength; eachChar++) {
+            if (source[from + eachChar] != match.charAt(eachChar)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the location of the first non-whitespace character at or after
+     * the specified location.
+     */
+    private static int skipWhitespace(char[] source, int from) {
+        while ((from < source.length) && Character.isWhitespace(source[from])) {
+            from++;
+        }
+
+        return from;
+    }
+
+    /**
+     * Returns the location of the delimiter following the tag name starting
+     * at the specified location. Tag names are delimited in the same way as
+     * by {@link #getTagRanges(StringBuilder, String, charRange)}.
+     *
+     * @return The location of the delimiter or -1 if there is none or the
+     *         name contains a {@code '<'}.
+     */
+    private static int scanName(char[] source, int from) {
+        while (from < source.length) {
+            char c = source[from];
+
+            if (('/' == c) || ('>' == c) || Character.isWhitespace(c)) {
+                return from;
+            }
+
+            if ('<' == c) {
+                return -1;
+            }
+
+            from++;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns the location of the {@code '>'} which terminates the tag. As
+     * with {@link #getTagRanges(StringBuilder, String, charRange)} this is the
+     * first {@code '>'}, even within a quoted attribute value.
+     *
+     * @return The location of the terminator or -1 if there is none or a
+     *         {@code '<'} comes first.
+     */
+    private static int scanTagEnd(char[] source, int from) {
+        while (from < source.length) {
+            char c = source[from];
+
+            if ('>' == c) {
+                return from;
+            }
+
+            if ('<' == c) {
+                return -1;
+            }
+
+            from++;
+        }
+
+        return -1;
     }
 
     protected tagRange getDocType(final StringBuilder source, boolean wholeElement) {
@@ -381,7 +381,7 @@ public class LiteXMLElement implements XMLElement<LiteXMLElement> {
     /**
      * The child elements associated with this element
      */
-    private transient List<LiteXMLElement> children;
+    protected transient List<LiteXMLElement> children;
 
     /**
      * Creates new LiteXMLElement
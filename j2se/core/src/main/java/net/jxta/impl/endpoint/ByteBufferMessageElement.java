@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2001-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+
+package net.jxta.impl.endpoint;
+
+
+import net.jxta.document.MimeMediaType;
+import net.jxta.endpoint.MessageElement;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+
+/**
+ * A Message Element whose data is a region of a {@link ByteBuffer}, typically
+ * the buffer a message was received into. The data is not copied; the buffer
+ * is referenced for as long as the element is and is reclaimed by the garbage
+ * collector along with it. The contents of the buffer must not be modified
+ * while the element is in use.
+ */
+public class ByteBufferMessageElement extends MessageElement {
+
+    /**
+     * Size of the chunks used when copying data out of a buffer without an
+     * accessible array.
+     */
+    private static final int COPY_CHUNK = 8192;
+
+    /**
+     * The element data. Never moved or modified.
+     */
+    private final ByteBuffer data;
+
+    /**
+     * Create a new Message Element backed by a region of a buffer.
+     *
+     * @param name   Name of the MessageElement. May be the empty string ("") if
+     *               the MessageElement is not named.
+     * @param type   Type of the MessageElement. null is the same as specifying
+     *               the type "Application/Octet-stream".
+     * @param data   The element data, between its position and limit.
+     * @param sig    optional message digest/digital signature element or null if
+     *               no signature is desired.
+     */
+    public ByteBufferMessageElement(String name, MimeMediaType type, ByteBuffer data, MessageElement sig) {
+        super(name, type, sig);
+
+        if (null == data) {
+            throw new IllegalArgumentException("data must not be null");
+        }
+
+        this.data = data.slice();
+    }
+
+    /**
+     * Returns a read-only view of the element data.
+     *
+     * @return A read-only view of the element data.
+     */
+    public ByteBuffer getByteBuffer() {
+        return view().asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns a private view of the element data which shares the backing
+     * array, if any.
+     *
+     * @return A private view of the element data.
+     */
+    private ByteBuffer view() {
+        return data.duplicate();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean equals(Object target) {
+        if (this == target) {
+            return true;
+        }
+
+        if (!(target instanceof MessageElement) || !super.equals(target)) {
+            return false;
+        }
+
+        ByteBuffer theirs;
+
+        if (target instanceof ByteBufferMessageElement) {
+            theirs = ((ByteBufferMessageElement) target).view();
+        } else {
+            theirs = ByteBuffer.wrap(((MessageElement) target).getBytes(false));
+        }
+
+        return view().equals(theirs);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Matches the hash code of a {@link net.jxta.endpoint.ByteArrayMessageElement}
+     * with the same name, type, signature and data.
+     */
+    @Override
+    public int hashCode() {
+        Checksum crc = new CRC32();
+        ByteBuffer view = view();
+
+        if (view.hasArray()) {
+            crc.update(view.array(), view.arrayOffset() + view.position(), view.remaining());
+        } else {
+            byte[] chunk = new byte[Math.min(COPY_CHUNK, view.remaining())];
+
+            while (view.hasRemaining()) {
+                int len = Math.min(chunk.length, view.remaining());
+
+                view.get(chunk, 0, len);
+                crc.update(chunk, 0, len);
+            }
+        }
+
+        int dataHash = (int) crc.getValue();
+
+        int result = super.hashCode() * 6037 + // a prime
+                dataHash;
+
+        return (0 != result) ? result : 1;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getByteLength() {
+        return data.remaining();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized byte[] getBytes(boolean copy) {
+        byte[] result;
+
+        if (null != cachedGetBytes) {
+            result = cachedGetBytes.get();
+
+            if (null != result) {
+                return copy ? result.clone() : result;
+            }
+        }
+
+        ByteBuffer view = view();
+
+        result = new byte[view.remaining()];
+        view.get(result);
+
+        // if this is supposed to be a shared buffer then we can cache it.
+        if (!copy) {
+            cachedGetBytes = new SoftReference<byte[]>(result);
+        }
+
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public InputStream getStream() {
+        final ByteBuffer view = view();
+
+        return new InputStream() {
+
+            @Override
+            public int read() {
+                return view.hasRemaining() ? (view.get() & 0xFF) : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (0 == len) {
+                    return 0;
+                }
+
+                if (!view.hasRemaining()) {
+                    return -1;
+                }
+
+                int reading = Math.min(len, view.remaining());
+
+                view.get(b, off, reading);
+                return reading;
+            }
+
+            @Override
+            public long skip(long n) {
+                int skipping = (int) Math.max(0, Math.min(n, view.remaining()));
+
+                view.position(view.position() + skipping);
+                return skipping;
+            }
+
+            @Override
+            public int available() {
+                return view.remaining();
+            }
+        };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void sendToStream(OutputStream sendTo) throws IOException {
+        ByteBuffer view = view();
+
+        if (view.hasArray()) {
+            sendTo.write(view.array(), view.arrayOffset() + view.position(), view.remaining());
+            return;
+        }
+
+        byte[] chunk = new byte[Math.min(COPY_CHUNK, view.remaining())];
+
+        while (view.hasRemaining()) {
+            int len = Math.min(chunk.length, view.remaining());
+
+            view.get(chunk, 0, len);
+            sendTo.write(chunk, 0, len);
+        }
+    }
+}
@@ -81,6 +81,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -129,11 +130,44 @@ public class WireFormatMessageBinary implements WireFormatMessage {
         null
     };
 
+    /**
+     * Elements smaller than this are copied out of shared buffers rather than
+     * referencing them. Small elements are cheap to copy and would otherwise
+     * keep the whole buffer alive.
+     */
+    static final int SHARED_ELEMENT_MIN_LENGTH = 256;
+
     /**
      * Our instantiator for the factory.
      */
     public static final WireFormatMessageFactory.Instantiator INSTANTIATOR = new Instantiator();
 
+    /**
+     * The message property which may hold a serialization, made by
+     * {@link #toSharedWire(Message)}, of the message from which the message
+     * was cloned. The elements which the two messages have in common are not
+     * encoded again when the message is serialized.
+     */
+    public static final String SHARED_WIRE_PROPERTY = WireFormatMessageBinary.class.getName() + ".shared";
+
+    /**
+     * Constructs a message from the content of a buffer without copying the
+     * data of its larger elements. Those elements are
+     * {@link ByteBufferMessageElement}s which reference the buffer for as
+     * long as they are themselves referenced.
+     * <p/>
+     * Unlike {@link WireFormatMessageFactory#fromBuffer(ByteBuffer, MimeMediaType, MimeMediaType)}
+     * the contents of the buffer must not be modified while the message is in
+     * use.
+     *
+     * @param buffer The buffer containing the serialized message.
+     * @return the new message.
+     * @throws IOException if the message could not be read.
+     */
+    public static Message fromSharedBuffer(ByteBuffer buffer) throws IOException {
+        return ((Instantiator) INSTANTIATOR).fromBuffer(buffer, true);
+    }
+
     /**
      * Our instantiator.
      */
@@ -235,6 +269,19 @@ public class WireFormatMessageBinary implements WireFormatMessage {
 
         public Message fromBuffer(ByteBuffer buffer, MimeMediaType type, MimeMediaType contentEncoding) throws IOException {
             // FIXME 20020504 bondolo@jxta.org  Ignores type and contentEncoding completely.
+            return fromBuffer(buffer, false);
+        }
+
+        /**
+         * Read a message from a buffer.
+         *
+         * @param buffer the data buffer to read from
+         * @param shared if {@code true} then large elements reference
+         *               <code>buffer</code> rather than copy it.
+         * @return the message
+         * @throws IOException if the message could not be read.
+         */
+        Message fromBuffer(ByteBuffer buffer, boolean shared) throws IOException {
             Message msg = new Message();
 
             if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
@@ -259,7 +306,7 @@ public class WireFormatMessageBinary implements WireFormatMessage {
                 Object[] anElement;
 
                 try {
-                    anElement = readMessageElement(buffer);
+                    anElement = readMessageElement(buffer, shared);
 
                     if (Logging.SHOW_FINER && LOG.isLoggable(Level.FINER)) {
                         LOG.finer(MessageFormat.format("Read element of size {0}, [{1}] {2}", anElement.length, anElement.toString(),
@@ -604,6 +651,8 @@ public class WireFormatMessageBinary implements WireFormatMessage {
          * Read in a message element from the provided data stream.
          *
          * @param buffer the data buffer to read from
+         * @param shared if {@code true} then large elements reference
+         *               <code>buffer</code> rather than copy it.
          * @return object array containing two objects, index[0] contains an
          *         Integer which identifies the namespace to which this element belongs
          *         and index[1] contains a MessageElement. If null is returned then
@@ -612,12 +661,16 @@ public class WireFormatMessageBinary implements WireFormatMessage {
          * @throws IOException if EOF or other IOException is encountered
          *                     during the reading of the element.
          */
-        private Object[] readMessageElement(ByteBuffer buffer) throws IOException {
+        private Object[] readMessageElement(ByteBuffer buffer, boolean shared) throws IOException {
             // Read message signature
             char[] elsig = new char[4];
 
             // if we EOF before the first byte, return null. EOF anywhere else
             // and its an error.
+            if (!buffer.hasRemaining()) {
+                return null;
+            }
+
             elsig[0] = (char) buffer.get();
             elsig[1] = (char) buffer.get();
             elsig[2] = (char) buffer.get();
@@ -671,14 +724,24 @@ public class WireFormatMessageBinary implements WireFormatMessage {
             res[0] = nsid & 0x000000FF;
 
             byte[] value = null;
+            ByteBuffer sharedValue = null;
             Message submsg = null;
 
+            if ((dataLen < 0) || (dataLen > buffer.remaining())) {
+                throw new IOException("Bad element length in message : " + dataLen);
+            }
+
             // Value
             if (type.equalsIngoringParams(myTypes[0])) {
-                InputStream subis = new ByteArrayInputStream(buffer.array(), buffer.position(), dataLen);
-
-                submsg = WireFormatMessageFactory.fromWire(subis, type, null);
-                // buffer.position(buffer.position() + dataLen);
+                ByteBuffer subBuffer = buffer.slice();
+
+                subBuffer.limit(dataLen);
+                submsg = fromBuffer(subBuffer, shared);
+                buffer.position(buffer.position() + dataLen);
+            } else if (shared && (dataLen >= SHARED_ELEMENT_MIN_LENGTH)) {
+                sharedValue = buffer.slice();
+                sharedValue.limit(dataLen);
+                buffer.position(buffer.position() + dataLen);
             } else {
                 value = new byte[dataLen];
 
@@ -691,13 +754,15 @@ public class WireFormatMessageBinary implements WireFormatMessage {
             MessageElement sig = null;
 
             if ((flags & HAS_SIGNATURE) != 0) {
-                Object[] sigRes = readMessageElement(buffer);
+                Object[] sigRes = readMessageElement(buffer, shared);
 
                 sig = (MessageElement) sigRes[1];
             }
 
             if (null != value) {
                 res[1] = new ByteArrayMessageElement(name, type, value, sig);
+            } else if (null != sharedValue) {
+                res[1] = new ByteBufferMessageElement(name, type, sharedValue, sig);
             } else {
                 res[1] = new JxtaMessageMessageElement(name, type, submsg, sig);
             }
@@ -749,6 +814,53 @@ public class WireFormatMessageBinary implements WireFormatMessage {
     }
 
 
+    /**
+     * Serializes a message which is about to be sent to several destinations.
+     * The content of every element is encoded immediately and the result is
+     * immutable so that it, and the buffers it returns, may be shared by all
+     * of the destinations. The result should be set as the
+     * {@link #SHARED_WIRE_PROPERTY} of the clone of the message sent to each
+     * destination. The clones may have elements added to them for each
+     * destination; only those are encoded when a clone is serialized.
+     * <p/>
+     * The usual modification check applies to the shared serialization. It
+     * is no longer used for clones once the message itself has been modified.
+     *
+     * @param msg the message to serialize.
+     * @return the serialization of the message.
+     * @throws IOException if the message cannot be serialized.
+     */
+    public static WireFormatMessage toSharedWire(Message msg) throws IOException {
+        return new WireFormatMessageBinary(msg, WireFormatMessageFactory.DEFAULT_WIRE_MIME, null, true);
+    }
+
+    /**
+     * Returns the encoded element proxies of the shared serialization held
+     * by the message, if any, indexed by element.
+     *
+     * @param msg the message being serialized.
+     * @return the encoded element proxies or {@code null} if there is no
+     *         usable shared serialization.
+     */
+    private static Map<MessageElement, binaryElementProxy> getSharedElements(Message msg) {
+        Object shared = msg.getMessageProperty(SHARED_WIRE_PROPERTY);
+
+        if (!(shared instanceof WireFormatMessageBinary)) {
+            return null;
+        }
+
+        WireFormatMessageBinary sharedWire = (WireFormatMessageBinary) shared;
+
+        if (sharedWire.msg.getMessageModCount() != sharedWire.msgModCount) {
+            if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+                LOG.fine("Ignoring shared serialization of modified " + sharedWire.msg);
+            }
+            return null;
+        }
+
+        return sharedWire.sharedElements;
+    }
+
     /**
      * Internal representation for a binary format wire message. Implemented
      * as an inner class to allow content encodings to be easily mapped on
@@ -774,14 +886,22 @@ public class WireFormatMessageBinary implements WireFormatMessage {
 
             assignNamespaceIds();
 
+            Map<MessageElement, binaryElementProxy> shared = getSharedElements(msg);
+
             // build the element proxies
             Message.ElementIterator eachElement = message.getMessageElements();
 
             while (eachElement.hasNext()) {
                 MessageElement anElement = eachElement.next();
                 byte namespaceid = namespaceIDs.get(eachElement.getNamespace()).byteValue();
+                binaryElementProxy proxy = (null != shared) ? shared.get(anElement) : null;
+
+                // The namespace ids depend upon all of the namespaces used by the message.
+                if ((null == proxy) || (proxy.namespaceid != namespaceid)) {
+                    proxy = new binaryElementProxy(namespaceid, anElement);
+                }
 
-                elements.add(new binaryElementProxy(namespaceid, anElement));
+                elements.add(proxy);
             }
 
             buildHeader();
@@ -966,6 +1086,12 @@ public class WireFormatMessageBinary implements WireFormatMessage {
 
         byte[] header;
 
+        /**
+         * The encoded content of the element or {@code null} if the content is
+         * retrieved from the element each time it is serialized.
+         */
+        byte[] content;
+
         binaryElementProxy(byte namespaceid, MessageElement element) throws IOException {
             this.namespaceid = namespaceid;
 
@@ -980,6 +1106,17 @@ public class WireFormatMessageBinary implements WireFormatMessage {
             buildHeader();
         }
 
+        /**
+         * Encodes the content of the element, and its signature, so that it is
+         * not retrieved from the element again.
+         */
+        void encode() {
+            content = element.getBytes(false);
+            if (null != sig) {
+                sig.encode();
+            }
+        }
+
         void buildHeader() throws IOException {
             byte[] elementName = element.getElementName().getBytes("UTF8");
             byte[] elementType = null;
@@ -1027,7 +1164,7 @@ public class WireFormatMessageBinary implements WireFormatMessage {
             long size = 0;
 
             size += header.length;
-            size += element.getByteLength();
+            size += (null != content) ? content.length : element.getByteLength();
             if (null != sig) {
                 size += sig.getByteLength();
             }
@@ -1040,7 +1177,7 @@ public class WireFormatMessageBinary implements WireFormatMessage {
 
             partBuffers.add(ByteBuffer.wrap(header));
             
-            partBuffers.add(ByteBuffer.wrap(element.getBytes(false)));
+            partBuffers.add(ByteBuffer.wrap((null != content) ? content : element.getBytes(false)));
 
             if (null != sig) {
                 partBuffers.addAll(Arrays.asList(sig.getByteBuffers()));
@@ -1054,7 +1191,7 @@ public class WireFormatMessageBinary implements WireFormatMessage {
 
             streamParts.add(new ByteArrayInputStream(header));
 
-            streamParts.add(element.getStream());
+            streamParts.add((null != content) ? new ByteArrayInputStream(content) : element.getStream());
 
             if (null != sig) {
                 streamParts.add(sig.getStream());
@@ -1066,7 +1203,11 @@ public class WireFormatMessageBinary implements WireFormatMessage {
         public void sendToStream(OutputStream sendTo) throws IOException {
 
             sendTo.write(header);
-            element.sendToStream(sendTo);
+            if (null != content) {
+                sendTo.write(content);
+            } else {
+                element.sendToStream(sendTo);
+            }
             if (null != sig) {
                 sig.sendToStream(sendTo);
             }
@@ -1099,6 +1240,12 @@ public class WireFormatMessageBinary implements WireFormatMessage {
      */
     private final binaryMessageProxy msgProxy;
 
+    /**
+     * For a shared serialization, the encoded element proxies indexed by
+     * element, otherwise {@code null}.
+     */
+    private final Map<MessageElement, binaryElementProxy> sharedElements;
+
     /**
      * Creates a new instance of WireFormatMessageBinary. Called only by the
      * Instantiator.
@@ -1109,6 +1256,19 @@ public class WireFormatMessageBinary implements WireFormatMessage {
      * @throws java.io.IOException if an io error occurs
      */
     WireFormatMessageBinary(Message msg, MimeMediaType type, MimeMediaType[] preferedContentEncodings) throws IOException {
+        this(msg, type, preferedContentEncodings, false);
+    }
+
+    /**
+     * Creates a new instance of WireFormatMessageBinary.
+     *
+     * @param msg                      the message being serialized
+     * @param type                     the mime mediatype being requested.
+     * @param preferedContentEncodings The ranked content encodings preferred by the recipient.
+     * @param shared                   if {@code true} then encode the element content now so that it may be shared.
+     * @throws java.io.IOException if an io error occurs
+     */
+    private WireFormatMessageBinary(Message msg, MimeMediaType type, MimeMediaType[] preferedContentEncodings, boolean shared) throws IOException {
         if (null == msg) {
             throw new IllegalArgumentException("Null message!");
         }
@@ -1142,6 +1302,18 @@ public class WireFormatMessageBinary implements WireFormatMessage {
         this.contentEncoding = myContentEncodings[0];
 
         msgProxy = new binaryMessageProxy(msg, type);
+
+        if (shared) {
+            Map<MessageElement, binaryElementProxy> encoded = new IdentityHashMap<MessageElement, binaryElementProxy>();
+
+            for (binaryElementProxy anElement : msgProxy.elements) {
+                anElement.encode();
+                encoded.put(anElement.element, anElement);
+            }
+            sharedElements = encoded;
+        } else {
+            sharedElements = null;
+        }
     }
 
     /**
@@ -68,6 +68,8 @@ import net.jxta.impl.endpoint.JxtaMessageMessageElement;
 import net.jxta.impl.membership.pse.PSECredential;
 import net.jxta.impl.membership.pse.PSEMembershipService;
 import net.jxta.impl.membership.pse.PSEUtils;
+import net.jxta.impl.util.LRUCache;
+import net.jxta.impl.util.threads.TaskManager;
 import net.jxta.logging.Logging;
 import net.jxta.membership.MembershipService;
 import net.jxta.peer.PeerID;
@@ -77,9 +79,14 @@ import net.jxta.protocol.ModuleImplAdvertisement;
 
 import java.io.IOException;
 import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
 import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -89,6 +96,18 @@ import java.util.logging.Logger;
  * which provides message verification by examining message signatures. A
  * virtual transport, the messages are transfered between peers using some
  * other message transport.
+ * <p/>
+ * The binding between a peer id and its certificate (the certificate is self
+ * signed and the peer id is the CBID of its public key) is remembered for a
+ * bounded number of peers, keyed by a fingerprint of the certificate, so that
+ * only the message signatures need to be checked for subsequent messages.
+ * <p/>
+ * If the {@value #VERIFY_CONCURRENCY_SYSPROP} system property is set to a
+ * positive value, messages received by the transport listener are verified
+ * and delivered by up to that many threads from the shared executor rather
+ * than by the receiving thread. Verification falls back to the receiving
+ * thread whenever all of those threads are busy. Messages from one source may
+ * then be delivered out of order.
  */
 public class CbJxTransport implements Module, MessageSender, MessageReceiver, EndpointListener {
 
@@ -117,6 +136,29 @@ public class CbJxTransport implements Module, MessageSender, MessageReceiver, En
      */
     static final String CBJX_MSG_SIG = "Signature";
 
+    /**
+     * System property which sets the number of peer certificates whose
+     * validity is remembered.
+     */
+    public static final String IDENTITY_CACHE_SIZE_SYSPROP = "net.jxta.impl.endpoint.cbjx.CbJxTransport.identityCacheSize";
+
+    /**
+     * System property which sets the number of messages which may be verified
+     * concurrently off the receiving thread. Zero, the default, verifies
+     * messages on the receiving thread.
+     */
+    public static final String VERIFY_CONCURRENCY_SYSPROP = "net.jxta.impl.endpoint.cbjx.CbJxTransport.verifyConcurrency";
+
+    /**
+     * Default number of peer certificates whose validity is remembered.
+     */
+    private static final int DEFAULT_IDENTITY_CACHE_SIZE = 256;
+
+    /**
+     * Digest algorithm used for certificate fingerprints.
+     */
+    private static final String FINGERPRINT_ALGORITHM = "SHA-256";
+
     /**
      * the cbjx protocol name
      */
@@ -152,6 +194,29 @@ public class CbJxTransport implements Module, MessageSender, MessageReceiver, En
      */
     PSEMembershipService membership = null;
 
+    /**
+     * Fingerprints of the certificates which have been verified to be self
+     * signed and to match the CBID of the peer.
+     */
+    private final LRUCache<ID, byte[]> verifiedIdentities = new LRUCache<ID, byte[]>(Math.max(1,
+            Integer.getInteger(IDENTITY_CACHE_SIZE_SYSPROP, DEFAULT_IDENTITY_CACHE_SIZE)));
+
+    private final AtomicLong identityCacheHits = new AtomicLong();
+
+    private final AtomicLong identityCacheMisses = new AtomicLong();
+
+    /**
+     * The maximum number of messages verified concurrently off the receiving
+     * thread.
+     */
+    private final int verifyConcurrency = Math.max(0, Integer.getInteger(VERIFY_CONCURRENCY_SYSPROP, 0));
+
+    /**
+     * The number of messages currently being verified off the receiving
+     * thread.
+     */
+    private final AtomicInteger verifying = new AtomicInteger();
+
     /**
      * Default constructor
      */
@@ -188,6 +253,8 @@ public class CbJxTransport implements Module, MessageSender, MessageReceiver, En
 
             configInfo.append("\n\tConfiguration :");
             configInfo.append("\n\t\tPublic Address : ").append(CbJxTransport.localPeerAddr);
+            configInfo.append("\n\t\tIdentity Cache Size : ").append(Integer.getInteger(IDENTITY_CACHE_SIZE_SYSPROP, DEFAULT_IDENTITY_CACHE_SIZE));
+            configInfo.append("\n\t\tVerify Concurrency : ").append(verifyConcurrency);
 
             LOG.config(configInfo.toString());
         }
@@ -258,6 +325,8 @@ public class CbJxTransport implements Module, MessageSender, MessageReceiver, En
             endpoint = null;
         }
 
+        verifiedIdentities.clear();
+
         if (Logging.SHOW_INFO && LOG.isLoggable(Level.INFO)) {
             LOG.info("CbJxTransport stopped");
         }
@@ -362,6 +431,31 @@ public class CbJxTransport implements Module, MessageSender, MessageReceiver, En
             return;
         }
 
+        if (verifyConcurrency > 0) {
+            if (verifying.incrementAndGet() <= verifyConcurrency) {
+                try {
+                    TaskManager.getTaskManager().getExecutorService().execute(
+                            new VerifyTask(message, cryptoElement, cryptoInfo, srcAddr));
+                    return;
+                } catch (RejectedExecutionException shutdown) {
+                    // verify it here.
+                }
+            }
+            verifying.decrementAndGet();
+        }
+
+        verifyAndDeliver(message, cryptoElement, cryptoInfo, srcAddr);
+    }
+
+    /**
+     * Verifies a received message and delivers its contents to the endpoint.
+     *
+     * @param message       the received message without its crypto info element.
+     * @param cryptoElement the crypto info element.
+     * @param cryptoInfo    the crypto info.
+     * @param srcAddr       the address from which the message was received.
+     */
+    private void verifyAndDeliver(Message message, MessageElement cryptoElement, CbJxMessageInfo cryptoInfo, EndpointAddress srcAddr) {
         Message submessage = checkCryptoInfo(message, cryptoElement, cryptoInfo);
 
         if (null == submessage) {
@@ -480,21 +574,93 @@ public class CbJxTransport implements Module, MessageSender, MessageReceiver, En
         return message;
     }
 
-    public Message checkCryptoInfo(Message message, MessageElement cryptoElement, CbJxMessageInfo cryptoInfo) {
+    /**
+     * Verifies a message received on a separate thread.
+     */
+    private class VerifyTask implements Runnable {
+        private final Message message;
+        private final MessageElement cryptoElement;
+        private final CbJxMessageInfo cryptoInfo;
+        private final EndpointAddress srcAddr;
+
+        VerifyTask(Message message, MessageElement cryptoElement, CbJxMessageInfo cryptoInfo, EndpointAddress srcAddr) {
+            this.message = message;
+            this.cryptoElement = cryptoElement;
+            this.cryptoInfo = cryptoInfo;
+            this.srcAddr = srcAddr;
+        }
 
-        // extract the body element  from the message
-        JxtaMessageMessageElement bodyElement = (JxtaMessageMessageElement) message.getMessageElement(CBJX_MSG_NS, CBJX_MSG_BODY);
+        /**
+         * {@inheritDoc}
+         */
+        public void run() {
+            try {
+                verifyAndDeliver(message, cryptoElement, cryptoInfo, srcAddr);
+            } finally {
+                verifying.decrementAndGet();
+            }
+        }
+    }
 
-        if (null == bodyElement) {
+    /**
+     * Returns the number of received messages whose sender certificate was
+     * found in the cache of verified certificates.
+     *
+     * @return the number of cache hits.
+     */
+    public long getIdentityCacheHits() {
+        return identityCacheHits.get();
+    }
+
+    /**
+     * Returns the number of received messages whose sender certificate had to
+     * be verified.
+     *
+     * @return the number of cache misses.
+     */
+    public long getIdentityCacheMisses() {
+        return identityCacheMisses.get();
+    }
+
+    /**
+     * Checks that the certificate is self signed and that the source peer id
+     * is the CBID of the certificate's public key. Successful checks are
+     * remembered.
+     *
+     * @param message  the message being checked.
+     * @param sourceID the claimed source peer id.
+     * @param peerCert the certificate of the source peer.
+     * @return {@code true} if the certificate and peer id are valid.
+     */
+    boolean checkIdentity(Message message, ID sourceID, Certificate peerCert) {
+        if (null == peerCert) {
             if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
-                LOG.warning("No \'" + CBJX_MSG_BODY + "\' in " + message);
+                LOG.warning("No peer cert in " + message);
             }
-            return null;
+            return false;
         }
-        message.removeMessageElement(bodyElement);
 
-        // extract the peer certificate
-        Certificate peerCert = cryptoInfo.getPeerCert();
+        byte[] fingerprint = null;
+
+        try {
+            fingerprint = PSEUtils.hash(FINGERPRINT_ALGORITHM, peerCert.getEncoded());
+        } catch (CertificateEncodingException e) {
+            if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
+                LOG.log(Level.WARNING, "Invalid peer cert", e);
+            }
+            return false;
+        }
+
+        if ((null != fingerprint) && (null != sourceID)) {
+            byte[] verified = verifiedIdentities.get(sourceID);
+
+            if ((null != verified) && Arrays.equals(verified, fingerprint)) {
+                identityCacheHits.incrementAndGet();
+                return true;
+            }
+        }
+
+        identityCacheMisses.incrementAndGet();
 
         // and from it the public key
         // the public key from the message
@@ -507,12 +673,12 @@ public class CbJxTransport implements Module, MessageSender, MessageReceiver, En
             if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
                 LOG.log(Level.WARNING, "Invalid peer cert", e);
             }
-            return null;
+            return false;
         }
 
         // check the cbid
         try {
-            net.jxta.impl.id.CBID.PeerID srcPeerID = (net.jxta.impl.id.CBID.PeerID) cryptoInfo.getSourceID();
+            net.jxta.impl.id.CBID.PeerID srcPeerID = (net.jxta.impl.id.CBID.PeerID) sourceID;
 
             byte[] pub_der = peerCert.getPublicKey().getEncoded();
             net.jxta.impl.id.CBID.PeerID genID = (net.jxta.impl.id.CBID.PeerID) IDFactory.newPeerID(group.getPeerGroupID()
@@ -524,7 +690,7 @@ public class CbJxTransport implements Module, MessageSender, MessageReceiver, En
                 if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
                     LOG.warning("CBID of " + message + " is not valid : " + srcPeerID + " != " + genID);
                 }
-                return null;
+                return false;
             }
 
             if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
@@ -534,6 +700,34 @@ public class CbJxTransport implements Module, MessageSender, MessageReceiver, En
             if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
                 LOG.log(Level.WARNING, "failed to verify cbid", e);
             }
+            return false;
+        }
+
+        if (null != fingerprint) {
+            verifiedIdentities.put(sourceID, fingerprint);
+        }
+
+        return true;
+    }
+
+    public Message checkCryptoInfo(Message message, MessageElement cryptoElement, CbJxMessageInfo cryptoInfo) {
+
+        // extract the body element  from the message
+        JxtaMessageMessageElement bodyElement = (JxtaMessageMessageElement) message.getMessageElement(CBJX_MSG_NS, CBJX_MSG_BODY);
+
+        if (null == bodyElement) {
+            if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
+                LOG.warning("No \'" + CBJX_MSG_BODY + "\' in " + message);
+            }
+            return null;
+        }
+        message.removeMessageElement(bodyElement);
+
+        // extract the peer certificate
+        Certificate peerCert = cryptoInfo.getPeerCert();
+
+        // check the cert validity and the cbid
+        if (!checkIdentity(message, cryptoInfo.getSourceID(), peerCert)) {
             return null;
         }
 
@@ -557,8 +751,8 @@ public class CbJxTransport implements Module, MessageSender, MessageReceiver, En
         }
 
         // then verify the signature
-        if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
-            LOG.warning("verifying signature");
+        if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+            LOG.fine("verifying signature");
         }
 
         // verify the signature of the message
@@ -0,0 +1,432 @@
+/*
+ * Copyright (c) 2001-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+
+package net.jxta.impl.endpoint.mcast;
+
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Reassembles messages which were too large for a single multicast datagram
+ * and were sent as a series of fragments.
+ * <p/>
+ * Each fragment is a datagram which begins with a {@link #HEADER_SIZE} byte
+ * header :
+ * <pre>
+ * 'J' 'X' 'T' 'F'    signature
+ * int                message id, chosen by the sender
+ * unsigned short     fragment index, from 0
+ * unsigned short     fragment count
+ * int                total length of the message
+ * </pre>
+ * followed by the next portion of the message. Every fragment but the last is
+ * the same size. The reassembled message has the same form as a message sent
+ * in a single datagram.
+ * <p/>
+ * Partially received messages are held, keyed by the source of the
+ * datagrams and the message id, until all of their fragments arrive, until
+ * they are older than the reassembly timeout or until they are evicted, the
+ * oldest first, to stay within the limit on the number of bytes held.
+ * <p/>
+ * This class is thread safe.
+ */
+final class DatagramReassembler {
+
+    /**
+     * The size of the header which begins each fragment.
+     */
+    static final int HEADER_SIZE = 16;
+
+    /**
+     * The largest number of fragments in a message.
+     */
+    static final int MAX_FRAGMENTS = 0xFFFF;
+
+    /**
+     * Tells whether a datagram is a fragment.
+     *
+     * @param datagram The datagram.
+     * @param offset   The offset of the datagram in the array.
+     * @param length   The length of the datagram.
+     * @return {@code true} if the datagram begins with the fragment
+     *         signature.
+     */
+    static boolean isFragment(byte[] datagram, int offset, int length) {
+        return (length >= 4) && ('J' == datagram[offset]) && ('X' == datagram[offset + 1]) && ('T' == datagram[offset + 2])
+                && ('F' == datagram[offset + 3]);
+    }
+
+    /**
+     * Writes a fragment header.
+     *
+     * @param into      The array into which the header is written.
+     * @param messageId The message id.
+     * @param index     The index of the fragment.
+     * @param count     The number of fragments in the message.
+     * @param length    The total length of the message.
+     */
+    static void writeHeader(byte[] into, int messageId, int index, int count, int length) {
+        ByteBuffer header = ByteBuffer.wrap(into, 0, HEADER_SIZE);
+
+        header.put((byte) 'J');
+        header.put((byte) 'X');
+        header.put((byte) 'T');
+        header.put((byte) 'F');
+        header.putInt(messageId);
+        header.putShort((short) index);
+        header.putShort((short) count);
+        header.putInt(length);
+    }
+
+    /**
+     * Returns the number of fragments needed to send a message.
+     *
+     * @param length       The length of the message.
+     * @param datagramSize The size of each datagram.
+     * @return The number of fragments.
+     */
+    static int fragmentCount(int length, int datagramSize) {
+        int payload = datagramSize - HEADER_SIZE;
+
+        return (length + payload - 1) / payload;
+    }
+
+    /**
+     * Identifies a message being reassembled.
+     */
+    private static final class Key {
+
+        final SocketAddress source;
+
+        final int messageId;
+
+        Key(SocketAddress source, int messageId) {
+            this.source = source;
+            this.messageId = messageId;
+        }
+
+        @Override
+        public boolean equals(Object target) {
+            if (!(target instanceof Key)) {
+                return false;
+            }
+
+            Key likeMe = (Key) target;
+
+            return (messageId == likeMe.messageId) && source.equals(likeMe.source);
+        }
+
+        @Override
+        public int hashCode() {
+            return source.hashCode() * 31 + messageId;
+        }
+    }
+
+    /**
+     * A message being reassembled.
+     */
+    private static final class Partial {
+
+        final byte[] message;
+
+        final boolean[] received;
+
+        /**
+         * The size of the portion of the message carried by each fragment
+         * but the last.
+         */
+        final int fragmentPayload;
+
+        final long created;
+
+        int remaining;
+
+        Partial(int length, int count, int fragmentPayload, long created) {
+            this.message = new byte[length];
+            this.received = new boolean[count];
+            this.fragmentPayload = fragmentPayload;
+            this.created = created;
+            this.remaining = count;
+        }
+    }
+
+    /**
+     * The largest message which will be reassembled.
+     */
+    private final int maxMessageSize;
+
+    /**
+     * The most bytes of partial messages which will be held.
+     */
+    private final int maxPendingBytes;
+
+    /**
+     * The time in milliseconds after which partial messages are discarded.
+     */
+    private final long timeout;
+
+    /**
+     * The partial messages, oldest first.
+     */
+    private final Map<Key, Partial> pending = new LinkedHashMap<Key, Partial>();
+
+    private int pendingBytes = 0;
+
+    private long reassembled = 0;
+
+    private long expired = 0;
+
+    private long evicted = 0;
+
+    /**
+     * Creates a new reassembler.
+     *
+     * @param maxMessageSize  The largest message which will be reassembled.
+     * @param maxPendingBytes The most bytes of partial messages which will be
+     *                        held.
+     * @param timeout         The time in milliseconds after which partial
+     *                        messages are discarded.
+     */
+    DatagramReassembler(int maxMessageSize, int maxPendingBytes, long timeout) {
+        this.maxMessageSize = maxMessageSize;
+        this.maxPendingBytes = Math.max(maxPendingBytes, maxMessageSize);
+        this.timeout = timeout;
+    }
+
+    /**
+     * Adds a fragment.
+     *
+     * @param source   The source of the fragment.
+     * @param datagram The fragment, between its position and its limit.
+     * @param now      The current time in milliseconds.
+     * @return The complete message if this was its last missing fragment
+     *         otherwise {@code null}.
+     * @throws IOException If the fragment is malformed or describes a message
+     *                     which is too large.
+     */
+    synchronized byte[] add(SocketAddress source, ByteBuffer datagram, long now) throws IOException {
+        expire(now);
+
+        if (datagram.remaining() <= HEADER_SIZE) {
+            throw new IOException("Fragment too short : " + datagram.remaining());
+        }
+
+        if (('J' != datagram.get()) || ('X' != datagram.get()) || ('T' != datagram.get()) || ('F' != datagram.get())) {
+            throw new IOException("Incorrect fragment signature");
+        }
+
+        int messageId = datagram.getInt();
+        int index = datagram.getShort() & 0xFFFF;
+        int count = datagram.getShort() & 0xFFFF;
+        int length = datagram.getInt();
+
+        if ((length <= 0) || (length > maxMessageSize)) {
+            throw new IOException("Illegal fragmented message length : " + length);
+        }
+
+        if ((count < 2) || (index >= count)) {
+            throw new IOException("Illegal fragment " + index + " of " + count);
+        }
+
+        Key key = new Key(source, messageId);
+        Partial partial = pending.get(key);
+
+        if (null == partial) {
+            // the last fragment may be the first to arrive, every other fragment is full size.
+            int fragmentPayload;
+
+            if (index < count - 1) {
+                fragmentPayload = datagram.remaining();
+            } else {
+                fragmentPayload = (length - datagram.remaining()) / (count - 1);
+
+                if (0 != (length - datagram.remaining()) % (count - 1)) {
+                    fragmentPayload = 0;
+                }
+            }
+
+            if ((fragmentPayload <= 0) || (fragmentCount(length, fragmentPayload + HEADER_SIZE) != count)) {
+                throw new IOException("Fragment " + index + " of " + count + " inconsistent with length " + length);
+            }
+
+            while (!pending.isEmpty() && (pendingBytes + length > maxPendingBytes)) {
+                Iterator<Partial> eldest = pending.values().iterator();
+
+                pendingBytes -= eldest.next().message.length;
+                eldest.remove();
+                evicted++;
+            }
+
+            partial = new Partial(length, count, fragmentPayload, now);
+            pending.put(key, partial);
+            pendingBytes += length;
+        } else if ((partial.message.length != length) || (partial.received.length != count)) {
+            discard(key, partial);
+            throw new IOException("Fragment " + index + " of " + count + " inconsistent with earlier fragments");
+        }
+
+        int offset = index * partial.fragmentPayload;
+        int expected = (index < count - 1) ? partial.fragmentPayload : length - offset;
+
+        if (datagram.remaining() != expected) {
+            discard(key, partial);
+            throw new IOException("Fragment " + index + " of " + count + " has length " + datagram.remaining() + " expected " + expected);
+        }
+
+        if (partial.received[index]) {
+            // duplicate
+            return null;
+        }
+
+        datagram.get(partial.message, offset, expected);
+        partial.received[index] = true;
+        partial.remaining--;
+
+        if (0 != partial.remaining) {
+            return null;
+        }
+
+        pending.remove(key);
+        pendingBytes -= length;
+        reassembled++;
+
+        return partial.message;
+    }
+
+    /**
+     * Discards a partial message.
+     */
+    private void discard(Key key, Partial partial) {
+        pending.remove(key);
+        pendingBytes -= partial.message.length;
+    }
+
+    /**
+     * Discards the partial messages which have been waiting longer than the
+     * timeout.
+     *
+     * @param now The current time in milliseconds.
+     */
+    synchronized void expire(long now) {
+        Iterator<Partial> eachPartial = pending.values().iterator();
+
+        while (eachPartial.hasNext()) {
+            Partial partial = eachPartial.next();
+
+            if (now - partial.created < timeout) {
+                // the remainder are younger.
+                break;
+            }
+
+            eachPartial.remove();
+            pendingBytes -= partial.message.length;
+            expired++;
+        }
+    }
+
+    /**
+     * Returns the number of messages which have been reassembled.
+     *
+     * @return The number of messages which have been reassembled.
+     */
+    synchronized long getReassembledCount() {
+        return reassembled;
+    }
+
+    /**
+     * Returns the number of partial messages which were discarded because
+     * their remaining fragments did not arrive in time.
+     *
+     * @return The number of partial messages which expired.
+     */
+    synchronized long getExpiredCount() {
+        return expired;
+    }
+
+    /**
+     * Returns the number of partial messages which were discarded to make
+     * room for newer messages.
+     *
+     * @return The number of partial messages which were evicted.
+     */
+    synchronized long getEvictedCount() {
+        return evicted;
+    }
+
+    /**
+     * Returns the number of partial messages held.
+     *
+     * @return The number of partial messages held.
+     */
+    synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Returns the number of bytes of partial messages held.
+     *
+     * @return The number of bytes held.
+     */
+    synchronized int getPendingBytes() {
+        return pendingBytes;
+    }
+}
@@ -92,7 +92,6 @@ import net.jxta.protocol.ConfigParams;
 import net.jxta.protocol.ModuleImplAdvertisement;
 import net.jxta.protocol.TransportAdvertisement;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.net.DatagramPacket;
@@ -104,9 +103,12 @@ import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.util.Enumeration;
 import java.util.NoSuchElementException;
+import java.util.Random;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -116,6 +118,13 @@ import java.util.logging.Logger;
  * <b>Important Note:</b> This implementation was formerly a portion of the TCP
  * Message Transport and currently uses the TCP Transport's configuration
  * advertisement.
+ * <p/>
+ * Messages which fit within the configured multicast size are sent as a
+ * single datagram. Larger messages, up to {@link #MAX_MESSAGE_SIZE_SYSPROP}
+ * bytes, are sent as a series of fragments which receivers reassemble, see
+ * {@link DatagramReassembler}. Peers which predate fragmentation discard the
+ * fragments. The datagram buffers used for sending and receiving are pooled
+ * and reused.
  *
  * @see net.jxta.endpoint.MessageTransport
  * @see net.jxta.endpoint.MessagePropagater
@@ -141,6 +150,28 @@ public class McastTransport implements Runnable, Module, MessagePropagater {
     public final static ModuleSpecID MCAST_TRANSPORT_SPECID =
             ModuleSpecID.create(URI.create("urn:jxta:uuid-0C801F65D38F421C9884D706B337B8110106"));
 
+    /**
+     * System property for the largest message in bytes which will be sent as
+     * fragments or reassembled from fragments.
+     */
+    public final static String MAX_MESSAGE_SIZE_SYSPROP = "net.jxta.impl.endpoint.mcast.McastTransport.maxMessageSize";
+
+    /**
+     * System property for the time in milliseconds that the fragments of a
+     * partially received message are kept.
+     */
+    public final static String REASSEMBLY_TIMEOUT_SYSPROP = "net.jxta.impl.endpoint.mcast.McastTransport.reassemblyTimeout";
+
+    /**
+     * System property for the most bytes of partially received messages which
+     * will be kept.
+     */
+    public final static String REASSEMBLY_MAX_BYTES_SYSPROP = "net.jxta.impl.endpoint.mcast.McastTransport.reassemblyMaxBytes";
+
+    private final static int DEFAULT_MAX_MESSAGE_SIZE = 1024 * 1024;
+    private final static long DEFAULT_REASSEMBLY_TIMEOUT = 5 * TimeUtils.ASECOND;
+    private final static int DEFAULT_REASSEMBLY_MAX_BYTES = 4 * 1024 * 1024;
+
     /**
      * The Protocol name we will use for our endpoint addresses.
      */
@@ -236,6 +267,33 @@ public class McastTransport implements Runnable, Module, MessagePropagater {
      */
     private EndpointService endpoint = null;
 
+    /**
+     * The largest message we will send or reassemble.
+     */
+    private int maxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
+
+    /**
+     * Reassembles fragmented messages.
+     */
+    private DatagramReassembler reassembler = null;
+
+    /**
+     * Datagram packets, each with a buffer of {@code multicastPacketSize}
+     * bytes, which are available for reuse.
+     */
+    private BlockingQueue<DatagramPacket> packetPool = null;
+
+    /**
+     * The id of the next fragmented message we send.
+     */
+    private final AtomicInteger nextMessageId = new AtomicInteger(new Random().nextInt());
+
+    private final AtomicLong datagramsReceived = new AtomicLong();
+    private final AtomicLong datagramsDropped = new AtomicLong();
+    private final AtomicLong fragmentsReceived = new AtomicLong();
+    private final AtomicLong messagesFragmented = new AtomicLong();
+    private final AtomicLong oversizeMessagesDropped = new AtomicLong();
+
     private TransportMeter multicastTransportMeter;
     private TransportBindingMeter multicastTransportBindingMeter;
     private transient boolean disabled = false;
@@ -401,6 +459,20 @@ public class McastTransport implements Runnable, Module, MessagePropagater {
         publicAddress = new EndpointAddress(protocolName, multicastAddress + ":" + Integer.toString(multicastPort), null, null);
         multicastPacketSize = adv.getMulticastSize();
 
+        maxMessageSize = Integer.getInteger(MAX_MESSAGE_SIZE_SYSPROP, DEFAULT_MAX_MESSAGE_SIZE);
+        if (multicastPacketSize > DatagramReassembler.HEADER_SIZE) {
+            // the fragment count must fit the fragment header.
+            long maxFragmented = (long) DatagramReassembler.MAX_FRAGMENTS * (multicastPacketSize - DatagramReassembler.HEADER_SIZE);
+
+            maxMessageSize = (int) Math.min(maxMessageSize, maxFragmented);
+        } else {
+            maxMessageSize = multicastPacketSize;
+        }
+
+        reassembler = new DatagramReassembler(maxMessageSize,
+                Integer.getInteger(REASSEMBLY_MAX_BYTES_SYSPROP, DEFAULT_REASSEMBLY_MAX_BYTES),
+                Long.getLong(REASSEMBLY_TIMEOUT_SYSPROP, DEFAULT_REASSEMBLY_TIMEOUT));
+
         // Create the multicast input socket
         try {
             multicastSocket = new MulticastSocket(multicastPort);
@@ -443,6 +515,7 @@ public class McastTransport implements Runnable, Module, MessagePropagater {
             configInfo.append("\n\t\tMulticast Port: ").append(multicastPort);
             configInfo.append("\n\t\tMulticast Thread Pool Size: ").append(poolSize);
             configInfo.append("\n\t\tMulticast Packet Size: ").append(multicastPacketSize);
+            configInfo.append("\n\t\tMax Message Size: ").append(maxMessageSize);
 
             configInfo.append("\n\tBound To :");
             configInfo.append("\n\t\tUsing Interface: ").append(usingInterface.getHostAddress());
@@ -505,6 +578,9 @@ public class McastTransport implements Runnable, Module, MessagePropagater {
             return -1;
         }
 
+        // Enough packets for the receiver, the queued and processing datagrams and a few senders.
+        packetPool = new ArrayBlockingQueue<DatagramPacket>(2 * poolSize + 8);
+
         // Cannot start before registration
         multicastProcessor = new DatagramProcessor(((StdPeerGroup) group).getExecutor(), poolSize);
         multicastThread = new Thread(group.getHomeThreadGroup(), this, "IP Multicast Listener for " + publicAddress);
@@ -547,6 +623,14 @@ public class McastTransport implements Runnable, Module, MessagePropagater {
             multicastProcessor = null;
         }
 
+        if (Logging.SHOW_INFO && LOG.isLoggable(Level.INFO)) {
+            LOG.info("IP Multicast Message Transport stopped. Datagrams received : " + getDatagramsReceived()
+                    + " dropped : " + getDatagramsDropped() + " fragments received : " + getFragmentsReceived()
+                    + " messages reassembled : " + reassembler.getReassembledCount() + " reassemblies dropped : "
+                    + getReassembliesDropped() + " messages fragmented : " + getMessagesFragmented()
+                    + " oversize messages dropped : " + getOversizeMessagesDropped());
+        }
+
         endpoint.removeMessageTransport(this);
 
         if (TransportMeterBuildSettings.TRANSPORT_METERING && (multicastTransportBindingMeter != null)) {
@@ -594,8 +678,7 @@ public class McastTransport implements Runnable, Module, MessagePropagater {
 
         try {
             while (!isClosed) {
-                byte[] buffer = new byte[multicastPacketSize];
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                DatagramPacket packet = obtainPacket();
 
                 try {
                     multicastSocket.receive(packet);
@@ -604,6 +687,8 @@ public class McastTransport implements Runnable, Module, MessagePropagater {
                         return;
                     }
 
+                    datagramsReceived.incrementAndGet();
+
                     if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
                         LOG.fine("multicast message received from :" + packet.getAddress().getHostAddress());
                     }
@@ -664,27 +749,29 @@ public class McastTransport implements Runnable, Module, MessagePropagater {
             header.setContentTypeHeader(serialed.getMimeType());
             header.setContentLengthHeader(serialed.getByteLength());
 
-            ByteArrayOutputStream buffer = new ByteArrayOutputStream(multicastPacketSize);
+            ByteBuffer[] messageParts = serialed.getByteBuffers();
+            ByteBuffer[] parts = new ByteBuffer[messageParts.length + 2];
 
-            buffer.write('J');
-            buffer.write('X');
-            buffer.write('T');
-            buffer.write('A');
-            header.sendToStream(buffer);
-            serialed.sendToStream(buffer);
-            buffer.flush();
-            buffer.close();
-            numBytesInPacket = buffer.size();
+            parts[0] = ByteBuffer.wrap(new byte[] {'J', 'X', 'T', 'A'});
+            parts[1] = header.getByteBuffer();
+            System.arraycopy(messageParts, 0, parts, 2, messageParts.length);
 
-            if ((buffer.size() > multicastPacketSize) && Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
-                LOG.warning("Multicast datagram exceeds multicast size.");
+            long length = 0;
+            for (ByteBuffer aPart : parts) {
+                length += aPart.remaining();
+            }
+            numBytesInPacket = (int) Math.min(length, Integer.MAX_VALUE);
+
+            if (length > Math.max(maxMessageSize, multicastPacketSize)) {
+                oversizeMessagesDropped.incrementAndGet();
+                throw new IOException("Message of " + length + " bytes exceeds maximum multicast message size of " + maxMessageSize);
             }
 
-            DatagramPacket packet = new DatagramPacket(buffer.toByteArray(), numBytesInPacket, multicastInetAddress, multicastPort);
             if (isClosed || multicastSocket == null) {
                 return false;
             }
-            multicastSocket.send(packet);
+
+            sendDatagrams(parts, (int) length);
 
             if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
                 LOG.fine("Sent Multicast message to :" + pName + "/" + pParams);
@@ -708,14 +795,168 @@ public class McastTransport implements Runnable, Module, MessagePropagater {
     }
 
     /**
-     * Handle a byte buffer from a multi-cast.
+     * Sends a message as one datagram or, if it is too large, as a series of
+     * fragments.
+     *
+     * @param parts  The content of the message.
+     * @param length The total length of the content.
+     * @throws IOException If the datagrams could not be sent.
+     */
+    private void sendDatagrams(ByteBuffer[] parts, int length) throws IOException {
+        DatagramPacket packet = obtainPacket();
+
+        try {
+            byte[] buffer = packet.getData();
+            int part = 0;
+
+            if (length <= buffer.length) {
+                fill(parts, part, buffer, 0, length);
+                packet.setData(buffer, 0, length);
+                sendDatagram(packet);
+                return;
+            }
+
+            int count = DatagramReassembler.fragmentCount(length, buffer.length);
+            int payload = buffer.length - DatagramReassembler.HEADER_SIZE;
+            int messageId = nextMessageId.getAndIncrement();
+
+            if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+                LOG.fine("Sending " + length + " byte message as " + count + " fragments");
+            }
+
+            messagesFragmented.incrementAndGet();
+
+            for (int index = 0; index < count; index++) {
+                int fragmentLength = Math.min(payload, length - index * payload);
+
+                DatagramReassembler.writeHeader(buffer, messageId, index, count, length);
+                part = fill(parts, part, buffer, DatagramReassembler.HEADER_SIZE, fragmentLength);
+                packet.setData(buffer, 0, DatagramReassembler.HEADER_SIZE + fragmentLength);
+                sendDatagram(packet);
+            }
+        } finally {
+            recyclePacket(packet);
+        }
+    }
+
+    /**
+     * Copies the next bytes of the message content into a datagram buffer.
+     *
+     * @param parts  The content of the message. Their positions are advanced.
+     * @param part   The index of the first part which has content remaining.
+     * @param into   The datagram buffer.
+     * @param offset The offset in the datagram buffer.
+     * @param length The number of bytes to copy.
+     * @return The index of the first part which has content remaining.
+     */
+    private static int fill(ByteBuffer[] parts, int part, byte[] into, int offset, int length) {
+        while (length > 0) {
+            ByteBuffer aPart = parts[part];
+            int copy = Math.min(length, aPart.remaining());
+
+            aPart.get(into, offset, copy);
+            offset += copy;
+            length -= copy;
+
+            if (!aPart.hasRemaining()) {
+                part++;
+            }
+        }
+
+        return part;
+    }
+
+    private void sendDatagram(DatagramPacket packet) throws IOException {
+        MulticastSocket socket = multicastSocket;
+
+        if (null == socket) {
+            throw new IOException("Multicast socket closed");
+        }
+
+        packet.setAddress(multicastInetAddress);
+        packet.setPort(multicastPort);
+        socket.send(packet);
+    }
+
+    /**
+     * Returns a datagram packet from the pool or a new one if the pool is
+     * empty.
+     *
+     * @return A datagram packet with a buffer of the multicast size.
+     */
+    private DatagramPacket obtainPacket() {
+        BlockingQueue<DatagramPacket> pool = packetPool;
+        DatagramPacket packet = (null != pool) ? pool.poll() : null;
+
+        if (null == packet) {
+            packet = new DatagramPacket(new byte[multicastPacketSize], multicastPacketSize);
+        }
+
+        return packet;
+    }
+
+    /**
+     * Returns a datagram packet to the pool. Packets in excess of the pool
+     * size are left to the garbage collector.
+     *
+     * @param packet The datagram packet.
+     */
+    private void recyclePacket(DatagramPacket packet) {
+        BlockingQueue<DatagramPacket> pool = packetPool;
+        byte[] buffer = packet.getData();
+
+        if ((null != pool) && (buffer.length == multicastPacketSize)) {
+            packet.setData(buffer, 0, buffer.length);
+            pool.offer(packet);
+        }
+    }
+
+    /**
+     * Handle a datagram from a multi-cast, reassembling fragmented messages.
+     * The packet is recycled once it has been handled.
      *
      * @param packet the message packet.
      */
     void processMulticast(DatagramPacket packet) {
-        int size = packet.getLength();
-        byte[] buffer = packet.getData();
+        try {
+            int size = packet.getLength();
+            byte[] buffer = packet.getData();
 
+            if (DatagramReassembler.isFragment(buffer, packet.getOffset(), size)) {
+                fragmentsReceived.incrementAndGet();
+
+                byte[] message;
+                try {
+                    message = reassembler.add(packet.getSocketAddress(), ByteBuffer.wrap(buffer, packet.getOffset(), size), TimeUtils.timeNow());
+                } catch (IOException damaged) {
+                    datagramsDropped.incrementAndGet();
+
+                    if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+                        LOG.log(Level.FINE, "Discard damaged multicast fragment", damaged);
+                    }
+                    return;
+                }
+
+                if (null != message) {
+                    processMessage(message, 0, message.length);
+                }
+            } else {
+                processMessage(buffer, packet.getOffset(), size);
+            }
+        } finally {
+            recyclePacket(packet);
+        }
+    }
+
+    /**
+     * Handle a message received in one datagram or reassembled from
+     * fragments.
+     *
+     * @param buffer the buffer containing the message.
+     * @param offset the offset of the message in the buffer.
+     * @param size   the size of the message.
+     */
+    private void processMessage(byte[] buffer, int offset, int size) {
         long messageReceiveBeginTime = TimeUtils.timeNow();
 
         try {
@@ -726,14 +967,15 @@ public class McastTransport implements Runnable, Module, MessagePropagater {
                 throw new IOException("damaged multicast discarded : too short");
             }
 
-            if (('J' != buffer[0]) || ('X' != buffer[1]) || ('T' != buffer[2]) || ('A' != buffer[3])) {
+            if (('J' != buffer[offset]) || ('X' != buffer[offset + 1]) || ('T' != buffer[offset + 2]) || ('A' != buffer[offset + 3])) {
                 if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
                     LOG.fine("damaged multicast discarded");
                 }
                 throw new IOException("damaged multicast discarded : incorrect signature");
             }
 
-            ByteBuffer bbuffer = ByteBuffer.wrap(buffer, 4, size - 4);
+            // The message is decoded without referencing the buffer, which may then be reused.
+            ByteBuffer bbuffer = ByteBuffer.wrap(buffer, offset + 4, size - 4);
             MessagePackageHeader header = new MessagePackageHeader();
 
             if (!header.readHeader(bbuffer)) {
@@ -741,10 +983,9 @@ public class McastTransport implements Runnable, Module, MessagePropagater {
             }
 
             MimeMediaType msgMime = header.getContentTypeHeader();
-            // TODO 20020730 bondolo@jxta.org Do something with content-coding here.
 
             // read the message!
-            Message msg = WireFormatMessageFactory.fromBuffer(bbuffer, msgMime, null);
+            Message msg = WireFormatMessageFactory.fromBuffer(bbuffer, msgMime, header.getContentCodingHeader());
 
             // Extract the source and destination
             MessageElement srcAddrElem = msg.getMessageElement(EndpointServiceImpl.MESSAGE_SOURCE_NS, EndpointServiceImpl.MESSAGE_SOURCE_NAME);
@@ -779,6 +1020,8 @@ public class McastTransport implements Runnable, Module, MessagePropagater {
                 multicastTransportBindingMeter.messageReceived(false, msg, messageReceiveBeginTime - TimeUtils.timeNow(), size);
             }
         } catch (Exception e) {
+            datagramsDropped.incrementAndGet();
+
             if (TransportMeterBuildSettings.TRANSPORT_METERING && (multicastTransportBindingMeter != null)) {
                 multicastTransportBindingMeter.receiveFailure(false, messageReceiveBeginTime - TimeUtils.timeNow(), size);
             }
@@ -789,6 +1032,66 @@ public class McastTransport implements Runnable, Module, MessagePropagater {
         }
     }
 
+    /**
+     * Returns the number of datagrams received.
+     *
+     * @return The number of datagrams received.
+     */
+    public long getDatagramsReceived() {
+        return datagramsReceived.get();
+    }
+
+    /**
+     * Returns the number of datagrams which were discarded because they were
+     * damaged or their message could not be read.
+     *
+     * @return The number of datagrams discarded.
+     */
+    public long getDatagramsDropped() {
+        return datagramsDropped.get();
+    }
+
+    /**
+     * Returns the number of message fragments received.
+     *
+     * @return The number of fragments received.
+     */
+    public long getFragmentsReceived() {
+        return fragmentsReceived.get();
+    }
+
+    /**
+     * Returns the number of partially received messages which were discarded
+     * because their remaining fragments did not arrive in time or to make room
+     * for newer messages.
+     *
+     * @return The number of partially received messages discarded.
+     */
+    public long getReassembliesDropped() {
+        DatagramReassembler current = reassembler;
+
+        return (null == current) ? 0 : current.getExpiredCount() + current.getEvictedCount();
+    }
+
+    /**
+     * Returns the number of messages which were sent as fragments.
+     *
+     * @return The number of messages sent as fragments.
+     */
+    public long getMessagesFragmented() {
+        return messagesFragmented.get();
+    }
+
+    /**
+     * Returns the number of messages which were not sent because they were
+     * larger than the maximum message size.
+     *
+     * @return The number of messages which were too large to send.
+     */
+    public long getOversizeMessagesDropped() {
+        return oversizeMessagesDropped.get();
+    }
+
     TransportBindingMeter getMulticastTransportBindingMeter(EndpointAddress destinationAddress) {
         if (multicastTransportMeter != null) {
             return multicastTransportMeter.getTransportBindingMeter(group.getPeerID(), destinationAddress);
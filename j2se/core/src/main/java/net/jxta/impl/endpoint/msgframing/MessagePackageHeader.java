@@ -98,6 +98,11 @@ public class MessagePackageHeader {
      */
     private final static String CONTENT_TYPE = "content-type";
     
+    /**
+     * Standard header name for content-coding
+     */
+    private final static String CONTENT_CODING = "content-coding";
+    
     /**
      * The maximum size of Header data buffers we will emit.
      */
@@ -601,4 +606,30 @@ public class MessagePackageHeader {
         
         return MimeMediaType.valueOf(header.getValueString());
     }
+    
+    /**
+     * Convenience method for setting the "{@code content-coding}" header.
+     *
+     * @param coding content encoding applied to the message.
+     */
+    public void setContentCodingHeader(MimeMediaType coding) {
+        replaceHeader(CONTENT_CODING, coding.toString());
+    }
+    
+    /**
+     * Convenience method for getting the "{@code content-coding}" header.
+     *
+     * @return content encoding from the header or {@code null} if there was
+     * no {@code content-coding} header, i.e. the message is not encoded.
+     */
+    public MimeMediaType getContentCodingHeader() {
+        Iterator<Header> it = getHeader(CONTENT_CODING);
+
+        if (!it.hasNext()) {
+            return null;
+        }
+        Header header = it.next();
+        
+        return MimeMediaType.valueOf(header.getValueString());
+    }
 }
@@ -57,6 +57,7 @@
 package net.jxta.impl.endpoint.msgframing;
 
 
+import net.jxta.document.MimeMediaType;
 import net.jxta.endpoint.EndpointAddress;
 import net.jxta.id.ID;
 import net.jxta.id.IDFactory;
@@ -72,6 +73,7 @@ import java.net.URISyntaxException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.text.MessageFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Level;
@@ -88,7 +90,13 @@ import java.util.logging.Logger;
  * <li>The local peer's return address, the source address.</li>
  * <li>The local peer's peer id.</li>
  * <li>A flag which controls propagation behaviour for this conneciton.</li>
+ * <li>Optionally, the message content encodings accepted by the local peer.</li>
  * </ul>
+ * <p/>
+ * Welcome Messages which list accepted content encodings use version 3.1.
+ * Peers which do not recognize this version treat it as an unknown version
+ * and continue with default values, so they simply never receive encoded
+ * messages.
  *
  * @see <a href="https://jxta-spec.dev.java.net/nonav/JXTAProtocols.html#trans-tcpipt"
  *      target="_blank">JXTA Protocols Specification : TCP/IP Message Transport</a>
@@ -120,6 +128,17 @@ public class WelcomeMessage {
      */
     private final static String WELCOME_VERSION_3_0 = "3.0";
 
+    /**
+     * The Welcome Message Signature/Preamble for version 3.1 which adds
+     * the accepted content encodings.
+     */
+    private final static String WELCOME_VERSION_3_1 = "3.1";
+
+    /**
+     * Separates the accepted content encodings within their token.
+     */
+    private final static String ENCODING_SEPARATOR = ",";
+
     /**
      * The current welcome message version. This is the only version we will emit.
      */
@@ -150,6 +169,11 @@ public class WelcomeMessage {
      */
     private int preferredMessageVersion;
 
+    /**
+     * The message content encodings accepted by the peer.
+     */
+    private MimeMediaType[] contentEncodings = new MimeMediaType[0];
+
     /**
      * The welcome message version we are supporting
      */
@@ -193,15 +217,47 @@ public class WelcomeMessage {
      * @param preferredMsgVersion Binary Wire Messsage format we prefer.
      */
     public WelcomeMessage(EndpointAddress destAddr, EndpointAddress publicaddress, ID peerid, boolean dontPropagate, int preferredMsgVersion) {
+        this(destAddr, publicaddress, peerid, dontPropagate, preferredMsgVersion, null);
+    }
+
+    /**
+     * Creates a new instance of WelcomeMessage for our Welcome Message.
+     *
+     * @param destAddr            The destination address that we believe we are connecting to.
+     * @param publicaddress       Our return address, the purported source address of this connection.
+     * @param peerid              Our peerid, the logical return address.
+     * @param dontPropagate       If <tt>true</tt> this connection does not wish to receive any propagation/broadcast/notifications.
+     * @param preferredMsgVersion Binary Wire Messsage format we prefer.
+     * @param acceptedEncodings   The message content encodings we accept, in descending order of preference. May be null.
+     */
+    public WelcomeMessage(EndpointAddress destAddr, EndpointAddress publicaddress, ID peerid, boolean dontPropagate, int preferredMsgVersion, MimeMediaType[] acceptedEncodings) {
         destinationAddress = destAddr;
         publicAddress = publicaddress;
         peerID = peerid;
         noPropagate = dontPropagate;
-        versionString = CURRENTVERSION;
         preferredMessageVersion = preferredMsgVersion;
 
-        welcomeString = GREETING + SPACE + destAddr.toString() + SPACE + publicAddress.toString() + SPACE + peerID.toString()
-                + SPACE + (noPropagate ? "1" : "0") + SPACE + versionString;
+        if ((null == acceptedEncodings) || (0 == acceptedEncodings.length)) {
+            versionString = CURRENTVERSION;
+
+            welcomeString = GREETING + SPACE + destAddr.toString() + SPACE + publicAddress.toString() + SPACE + peerID.toString()
+                    + SPACE + (noPropagate ? "1" : "0") + SPACE + versionString;
+        } else {
+            versionString = WELCOME_VERSION_3_1;
+            contentEncodings = acceptedEncodings.clone();
+
+            StringBuilder encodings = new StringBuilder();
+
+            for (MimeMediaType each : contentEncodings) {
+                if (encodings.length() > 0) {
+                    encodings.append(ENCODING_SEPARATOR);
+                }
+                encodings.append(each.toString());
+            }
+
+            welcomeString = GREETING + SPACE + destAddr.toString() + SPACE + publicAddress.toString() + SPACE + peerID.toString()
+                    + SPACE + (noPropagate ? "1" : "0") + SPACE + preferredMessageVersion + SPACE + encodings + SPACE + versionString;
+        }
 
         try {
             welcomeBytes = welcomeString.getBytes("UTF-8");
@@ -420,6 +476,47 @@ public class WelcomeMessage {
 
                 throw failure;
             }
+        } else if (WELCOME_VERSION_3_1.equals(versionString)) {
+            if (8 != thePieces.size()) {
+                throw new IOException("Invalid welcome message, incorrect number of tokens.");
+            }
+
+            String noPropagateStr = thePieces.get(4);
+
+            if (noPropagateStr.equals("1")) {
+                noPropagate = true;
+            } else if (noPropagateStr.equals("0")) {
+                noPropagate = false;
+            } else {
+                throw new IOException("Invalid welcome message, illegal value for propagate flag");
+            }
+
+            String preferredVersionStr = thePieces.get(5);
+
+            try {
+                preferredMessageVersion = Integer.valueOf(preferredVersionStr);
+            } catch (IllegalArgumentException failed) {
+                IOException failure = new IOException("Invalid welcome message, illegal value for preferred message version");
+
+                failure.initCause(failed);
+
+                throw failure;
+            }
+
+            List<MimeMediaType> encodings = new ArrayList<MimeMediaType>();
+
+            for (String encoding : thePieces.get(6).split(ENCODING_SEPARATOR)) {
+                try {
+                    encodings.add(MimeMediaType.valueOf(encoding));
+                } catch (IllegalArgumentException unknown) {
+                    // Skip encodings we can't parse, we won't support them anyway.
+                    if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+                        LOG.fine("Ignoring unparseable content encoding : " + encoding);
+                    }
+                }
+            }
+
+            contentEncodings = encodings.toArray(new MimeMediaType[encodings.size()]);
         } else {
             // Unrecognized Welcome message version. Use default values.
             noPropagate = false;
@@ -508,6 +605,17 @@ public class WelcomeMessage {
         return preferredMessageVersion;
     }
 
+    /**
+     * Return the message content encodings accepted by the peer which sent
+     * the Welcome Message.
+     *
+     * @return The accepted content encodings in descending order of
+     *         preference. Empty if the peer did not list any.
+     */
+    public MimeMediaType[] getContentEncodings() {
+        return contentEncodings.clone();
+    }
+
     /**
      * Return the version associated with the Welcome Message.
      *
@@ -4,6 +4,7 @@ import java.nio.ByteBuffer;
 
 import net.jxta.document.MimeMediaType;
 import net.jxta.endpoint.WireFormatMessageFactory;
+import net.jxta.impl.endpoint.WireFormatMessageBinary;
 
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
@@ -13,6 +14,12 @@ import org.jboss.netty.handler.codec.oneone.OneToOneDecoder;
 /**
  * Decodes JXTA message frames from their network form into logical Message objects,
  * and passes them upstream.
+ * <p>
+ * Unencoded binary messages are decoded without copying: the larger message elements
+ * are backed directly by the frame's buffer, the heap buffer which {@link JxtaProtocolHandler}
+ * copied the frame into. Each frame has its own buffer, so the elements remain valid for
+ * as long as the message is referenced. Setting the system property
+ * {@value #ZERO_COPY_SYSPROP} to <code>false</code> makes every element copy its data instead.
  * 
  * @author iain.mcginniss@onedrum.com
  */
@@ -21,6 +28,12 @@ public class JxtaMessageDecoder extends OneToOneDecoder {
 
     public static final String NAME = "jxtaMessageDecoder";
 
+    public static final String ZERO_COPY_SYSPROP = "net.jxta.impl.endpoint.netty.zeroCopyDecode";
+
+    private static final boolean zeroCopy = Boolean.valueOf(System.getProperty(ZERO_COPY_SYSPROP, "true"));
+
+    private static final MimeMediaType BINARY_MESSAGE_TYPE = WireFormatMessageFactory.DEFAULT_WIRE_MIME;
+
 	@Override
     protected Object decode(ChannelHandlerContext ctx, Channel channel, Object msg) throws Exception {
         if(!(msg instanceof SerializedMessage)) {
@@ -29,11 +42,14 @@ public class JxtaMessageDecoder extends OneToOneDecoder {
         
         SerializedMessage message = (SerializedMessage) msg;
         MimeMediaType contentType = message.getMessageHeader().getContentTypeHeader();
+        MimeMediaType contentCoding = message.getMessageHeader().getContentCodingHeader();
         ByteBuffer messageContents = message.getMessageContents().toByteBuffer();
         
-        // TODO: we should pull the "content-coding" header out and do something with it, presumably
-        // pass it to the factory. However, this is not done by TCPMessenger or MCastTransport either
-        return WireFormatMessageFactory.fromBuffer(messageContents, contentType, null);
+        if(zeroCopy && contentCoding == null && BINARY_MESSAGE_TYPE.equalsIngoringParams(contentType)) {
+            return WireFormatMessageBinary.fromSharedBuffer(messageContents);
+        }
+        
+        return WireFormatMessageFactory.fromBuffer(messageContents, contentType, contentCoding);
     }
 
 }
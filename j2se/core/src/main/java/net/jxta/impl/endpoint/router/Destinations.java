@@ -61,12 +61,11 @@ import java.lang.ref.Reference;
 import java.lang.ref.SoftReference;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 import java.util.Timer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
@@ -105,6 +104,12 @@ import net.jxta.logging.Logging;
  * about messengers being resolved or having failed to. This primitive interface
  * is temporary; it is only meant to replace messengerPool without having to
  * change the router too much.
+ *
+ * <p/>Every message routed by the local peer asks for the current messenger
+ * of its next hop, so lookups do not lock the table: the wisdoms are kept in a
+ * concurrent map and a wisdom which already has a usable messenger returns it
+ * without synchronization. Only changes to a wisdom, and lookups which have to
+ * renew or discard a messenger, lock that one wisdom.
  */
 
 class Destinations {
@@ -119,7 +124,7 @@ class Destinations {
      */
     private final static transient Timer cleanup = new Timer("Endpoint Destinations GC", true);
 
-    private final Map<EndpointAddress, Wisdom> wisdoms = new HashMap<EndpointAddress, Wisdom>(64);
+    private final ConcurrentMap<EndpointAddress, Wisdom> wisdoms = new ConcurrentHashMap<EndpointAddress, Wisdom>(64);
 
     /**
      * If {@code true} then we are shutting down.
@@ -139,7 +144,9 @@ class Destinations {
     /**
      * Stores knowledge about one particular destination.
      * 
-     * <p/>It does not provide any synchronization. This is provided by the Destinations class.
+     * <p/>The state is published through volatile fields so that
+     * {@link #getCurrentMessenger()} can return a working messenger without
+     * locking. Everything which changes the state is synchronized on the wisdom.
      */
     final class Wisdom {
 
@@ -154,19 +161,19 @@ class Destinations {
          * canonical, but, as long as the canonical is around, they can be 
          * obtained at a near-zero cost.
          */
-        private Reference<Messenger> outgoingMessenger;
+        private volatile Reference<Messenger> outgoingMessenger;
 
         /**
          * The channel we last used if it happens to be an incoming messenger. We keep
          * a strong reference to it.
          */
-        private Messenger incomingMessenger;
+        private volatile Messenger incomingMessenger;
 
         /**
          * The transport destination address of the messenger we're caching (if 
          * not incoming).
          */
-        private EndpointAddress xportDest;
+        private volatile EndpointAddress xportDest;
 
         /**
          * This tells when the outgoing messenger information expires. Incoming
@@ -175,7 +182,7 @@ class Destinations {
          * expired (and may thus be removed) when its outgoing messenger
          * information is expired AND it has no incoming messenger.
          */
-        private long expiresAt = 0;
+        private volatile long expiresAt = 0;
 
         /**
          * When a new destination is added, we're supposed to send our welcome 
@@ -184,6 +191,12 @@ class Destinations {
          */
         private boolean welcomeNeeded = true;
 
+        /**
+         * Set once the wisdom has been removed from the map by the GC. A
+         * messenger must not be added to a removed wisdom.
+         */
+        private boolean removed = false;
+
         /**
          * @param messenger The messenger to cache information about.
          * @param incoming  If true, this is an incoming messenger, which means 
@@ -214,7 +227,7 @@ class Destinations {
             return res;
         }
 
-        boolean addIncomingMessenger(Messenger m) {
+        synchronized boolean addIncomingMessenger(Messenger m) {
 
             // If we have no other incoming, we take it. No questions asked.
             Messenger currentIncoming = getIncoming();
@@ -259,7 +272,7 @@ class Destinations {
             return true;
         }
 
-        boolean addOutgoingMessenger(Messenger m) {
+        synchronized boolean addOutgoingMessenger(Messenger m) {
             if (getOutgoing() != null) {
                 return false;
             }
@@ -273,18 +286,43 @@ class Destinations {
             return true;
         }
 
-        void noOutgoingMessenger() {
+        synchronized void noOutgoingMessenger() {
             outgoingMessenger = null;
             xportDest = null;
             expiresAt = 0;
         }
 
+        /**
+         * Returns the outgoing messenger without locking if it works and its
+         * expiration does not need to be refreshed yet. The expiration is
+         * only ever refreshed while synchronized so that it cannot be revived
+         * by a lookup racing with {@link #noOutgoingMessenger()}.
+         *
+         * @return an outgoing messenger, null if there's none or the caller
+         * must use {@link #getOutgoing()}.
+         */
+        private Messenger peekOutgoing() {
+            Reference<Messenger> ref = outgoingMessenger;
+            Messenger messenger = (ref != null) ? ref.get() : null;
+
+            if ((messenger == null) || (TimeUtils.toRelativeTimeMillis(expiresAt) < (EXPIRATION / 2))) {
+                return null;
+            }
+
+            int state = messenger.getState();
+
+            if (((state & Messenger.USABLE) == 0) || ((state & (Messenger.USABLE & Messenger.RESOLVED)) == 0)) {
+                return null;
+            }
+            return messenger;
+        }
+
         /**
          * Returns an incoming messenger is there is a working one available.
          *
          * @return an incoming messenger, null if there's none
          */
-        private Messenger getIncoming() {
+        private synchronized Messenger getIncoming() {
             if (incomingMessenger != null) {
                 if ((incomingMessenger.getState() & Messenger.USABLE) != 0) {
                     return incomingMessenger;
@@ -302,7 +340,7 @@ class Destinations {
          *
          * @return an outgoing messenger, null if there's none
          */
-        private Messenger getOutgoing() {
+        private synchronized Messenger getOutgoing() {
 
             if (outgoingMessenger == null) {
                 return null;
@@ -358,7 +396,19 @@ class Destinations {
          * @return a channel for this destination
          */
         Messenger getCurrentMessenger() {
-            Messenger res = getIncoming();
+            Messenger res = incomingMessenger;
+
+            if ((res != null) && ((res.getState() & Messenger.USABLE) != 0)) {
+                return res;
+            }
+
+            res = peekOutgoing();
+            if (res != null) {
+                return res;
+            }
+
+            // Forget or renew the messengers we have.
+            res = getIncoming();
 
             if (res != null) {
                 return res;
@@ -371,7 +421,7 @@ class Destinations {
          * @return true if we do have an outgoing messenger or, failing that, we had one not too long ago.
          */
         boolean isNormallyReachable() {
-            return ((getOutgoing() != null) || (TimeUtils.toRelativeTimeMillis(expiresAt) >= 0));
+            return ((peekOutgoing() != null) || (getOutgoing() != null) || (TimeUtils.toRelativeTimeMillis(expiresAt) >= 0));
         }
 
         /**
@@ -380,7 +430,7 @@ class Destinations {
          * @return true if we have any kind of messenger or, failing that, we had an outgoing one not too long ago.
          */
         boolean isCurrentlyReachable() {
-            return ((getIncoming() != null) || (getOutgoing() != null) || (TimeUtils.toRelativeTimeMillis(expiresAt) >= 0));
+            return ((getCurrentMessenger() != null) || (TimeUtils.toRelativeTimeMillis(expiresAt) >= 0));
         }
 
         /**
@@ -415,10 +465,12 @@ class Destinations {
      *
      *  @param destination The address of the Wisdom that is being added.
      *  @param wisdom The Wisdom for this address to be added to the map.
+     *  @return The Wisdom which was already present for this address, in which
+     *  case {@code wisdom} was not added, or {@code null}.
      */
-    private void addWisdom(EndpointAddress destination, Wisdom wisdom) {
+    private Wisdom addWisdom(EndpointAddress destination, Wisdom wisdom) {
         destination = new EndpointAddress(destination, null, null);
-        wisdoms.put(destination, wisdom);
+        return wisdoms.putIfAbsent(destination, wisdom);
     }
 
     /*
@@ -436,7 +488,7 @@ class Destinations {
     /**
      * Shutdown this cache. (stop the gc)
      */
-    public synchronized void close() {
+    public void close() {
         stopped = true;
 
         // forget everything.
@@ -461,14 +513,16 @@ class Destinations {
          */
         public void run() {
             try {
-                synchronized (Destinations.this) {
-                    Iterator<Wisdom> eachWisdom = wisdoms.values().iterator();
+                Iterator<Wisdom> eachWisdom = wisdoms.values().iterator();
 
-                    while (eachWisdom.hasNext()) {
-                        Wisdom w = eachWisdom.next();
+                while (eachWisdom.hasNext()) {
+                    Wisdom w = eachWisdom.next();
 
+                    // A messenger may be added to the wisdom while we check it.
+                    synchronized (w) {
                         if (w.isExpired()) {
                             eachWisdom.remove();
+                            w.removed = true;
                         }
                     }
                 }
@@ -480,10 +534,9 @@ class Destinations {
         }
     }
 
-    public synchronized Collection<EndpointAddress> allDestinations() {
+    public Collection<EndpointAddress> allDestinations() {
 
-        Set<EndpointAddress> allKeys = wisdoms.keySet();
-        List<EndpointAddress> res = new ArrayList<EndpointAddress>(allKeys);
+        List<EndpointAddress> res = new ArrayList<EndpointAddress>(wisdoms.keySet());
 
         return res;
     }
@@ -498,7 +551,7 @@ class Destinations {
      * @param destination The destination as an endpoint address (is automatically normalized to protocol and address only).
      * @return A messenger to that destination if a resolved and usable one is available or can be made instantly. null otherwise.
      */
-    public synchronized Messenger getCurrentMessenger(EndpointAddress destination) {
+    public Messenger getCurrentMessenger(EndpointAddress destination) {
         Wisdom wisdom = getWisdom(destination);
 
         if (wisdom == null) {
@@ -516,7 +569,7 @@ class Destinations {
      * @param destination The destination as an endpoint address (is automatically normalized to protocol and address only).
      * @return true if it is likely that we can get a messenger to that destination in the future.
      */
-    public synchronized boolean isNormallyReachable(EndpointAddress destination) {
+    public boolean isNormallyReachable(EndpointAddress destination) {
         Wisdom wisdom = getWisdom(destination);
 
         return ((wisdom != null) && wisdom.isNormallyReachable());
@@ -537,7 +590,7 @@ class Destinations {
      * @return true is we are confident that we can obtain a messenger, either because we can get one instantly, or because
      *         this destination is normally reachable. (So, it is ok to try and route to that destination, now).
      */
-    public synchronized boolean isCurrentlyReachable(EndpointAddress destination) {
+    public boolean isCurrentlyReachable(EndpointAddress destination) {
         Wisdom wisdom = getWisdom(destination);
 
         return ((wisdom != null) && wisdom.isCurrentlyReachable());
@@ -550,7 +603,7 @@ class Destinations {
      * @param destination The destination as an endpoint address (is automatically normalized to protocol and address only).
      * @return true if this a destination to whish we can't remember sending a welcome message.
      */
-    public synchronized boolean isWelcomeNeeded(EndpointAddress destination) {
+    public boolean isWelcomeNeeded(EndpointAddress destination) {
         Wisdom wisdom = getWisdom(destination);
 
         return ((wisdom != null) && wisdom.isWelcomeNeeded());
@@ -567,14 +620,24 @@ class Destinations {
      * @param messenger   The incoming messenger for that destination.
      * @return true if this messenger was added (keep it open). false otherwise (do what you want with it).
      */
-    public synchronized boolean addOutgoingMessenger(EndpointAddress destination, Messenger messenger) {
-        Wisdom wisdom = getWisdom(destination);
+    public boolean addOutgoingMessenger(EndpointAddress destination, Messenger messenger) {
+        while (true) {
+            Wisdom wisdom = getWisdom(destination);
+
+            if (wisdom == null) {
+                wisdom = addWisdom(destination, new Wisdom(messenger, false));
+                if (wisdom == null) {
+                    return true;
+                }
+            }
 
-        if (wisdom != null) {
-            return wisdom.addOutgoingMessenger(messenger);
+            synchronized (wisdom) {
+                if (!wisdom.removed) {
+                    return wisdom.addOutgoingMessenger(messenger);
+                }
+            }
+            // The GC removed it meanwhile; start over with a new wisdom.
         }
-        addWisdom(destination, new Wisdom(messenger, false));
-        return true;
     }
 
     /**
@@ -584,14 +647,24 @@ class Destinations {
      * @param messenger   The incoming messenger for that destination.
      * @return true if this messenger was added (keep it open). false otherwise (do what you want with it).
      */
-    public synchronized boolean addIncomingMessenger(EndpointAddress destination, Messenger messenger) {
-        Wisdom wisdom = getWisdom(destination);
+    public boolean addIncomingMessenger(EndpointAddress destination, Messenger messenger) {
+        while (true) {
+            Wisdom wisdom = getWisdom(destination);
+
+            if (wisdom == null) {
+                wisdom = addWisdom(destination, new Wisdom(messenger, true));
+                if (wisdom == null) {
+                    return true;
+                }
+            }
 
-        if (wisdom != null) {
-            return wisdom.addIncomingMessenger(messenger);
+            synchronized (wisdom) {
+                if (!wisdom.removed) {
+                    return wisdom.addIncomingMessenger(messenger);
+                }
+            }
+            // The GC removed it meanwhile; start over with a new wisdom.
         }
-        addWisdom(destination, new Wisdom(messenger, true));
-        return true;
     }
 
     /**
@@ -601,7 +674,7 @@ class Destinations {
      *
      * @param destination The destination as an endpoint address (is automatically normalized to protocol and address only).
      */
-    public synchronized void noOutgoingMessenger(EndpointAddress destination) {
+    public void noOutgoingMessenger(EndpointAddress destination) {
         Wisdom wisdom = getWisdom(destination);
 
         if (wisdom != null) {
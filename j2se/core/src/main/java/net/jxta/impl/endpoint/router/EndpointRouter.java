@@ -63,12 +63,13 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
@@ -154,16 +155,22 @@ public class EndpointRouter implements EndpointListener, MessageReceiver, Messag
 
     /**
      * These are peers which we know multi-hop routes for.
+     * <p/>
+     * Lookups are made without locking by every message we send. Routes are
+     * added while synchronized on the router so that waiting threads can be
+     * notified, but are removed without locking, so changes must use the
+     * atomic operations of the map.
      */
-    private final Map<ID, RouteAdvertisement> routedRoutes = new HashMap<ID, RouteAdvertisement>(16);
+    private final ConcurrentMap<ID, RouteAdvertisement> routedRoutes = new ConcurrentHashMap<ID, RouteAdvertisement>(16);
 
     /**
      * A record of failures.
      * <p/>
      * Values are the time of failure as {@link java.lang.Long}. If
      * {@code Long.MAX_VALUE} then a connect attempt is current in progress.
+     * Entries are only ever changed with atomic compare and set operations.
      */
-    private final Map<PeerID, Long> triedAndFailed = new HashMap<PeerID, Long>();
+    private final ConcurrentMap<PeerID, Long> triedAndFailed = new ConcurrentHashMap<PeerID, Long>();
 
     /**
      * local peer ID as an endpointAddress.
@@ -199,7 +206,7 @@ public class EndpointRouter implements EndpointListener, MessageReceiver, Messag
      * be. The route adv is actually sent piggy-backed on the first message
      * that goes there.
      */
-    private final Set<EndpointAddress> newDestinations = Collections.synchronizedSet(new HashSet<EndpointAddress>());
+    private final Set<EndpointAddress> newDestinations = Collections.newSetFromMap(new ConcurrentHashMap<EndpointAddress, Boolean>());
 
     /**
      * A pool of messengers categorized by logical address.
@@ -210,7 +217,12 @@ public class EndpointRouter implements EndpointListener, MessageReceiver, Messag
     /**
      * A record of expiration time of known bad routes we received a NACK route
      */
-    private final Map<EndpointAddress, BadRoute> badRoutes = new HashMap<EndpointAddress, BadRoute>();
+    private final ConcurrentMap<EndpointAddress, BadRoute> badRoutes = new ConcurrentHashMap<EndpointAddress, BadRoute>();
+
+    /**
+     * Latency of the next hop lookups made for the messages we send.
+     */
+    private final RouteLookupMetrics lookupMetrics = new RouteLookupMetrics();
 
     /**
      * We record queries when first started and keep them pending for
@@ -900,6 +912,22 @@ public class EndpointRouter implements EndpointListener, MessageReceiver, Messag
      * @return an EndpointAddress at which that peer should be reachable.
      */
     EndpointAddress getGatewayAddress(EndpointAddress peerAddress, boolean seekRoute, RouteAdvertisement hint) {
+        long start = System.nanoTime();
+        EndpointAddress gateway = findGatewayAddress(peerAddress, seekRoute, hint);
+
+        lookupMetrics.record(peerAddress, gateway, System.nanoTime() - start);
+        return gateway;
+    }
+
+    /**
+     * Does the work of {@link #getGatewayAddress}.
+     *
+     * @param peerAddress the peer we are trying to reach.
+     * @param seekRoute   whether to go as far as issuing a route query, or just fish in our cache.
+     * @param hint        whether we are passed a route hint to be used.
+     * @return an EndpointAddress at which that peer should be reachable.
+     */
+    private EndpointAddress findGatewayAddress(EndpointAddress peerAddress, boolean seekRoute, RouteAdvertisement hint) {
         PeerID peerID = addr2pid(peerAddress);
 
         try {
@@ -1154,13 +1182,10 @@ public class EndpointRouter implements EndpointListener, MessageReceiver, Messag
         // than doing a redundant put.
 
         PeerID peerID = addr2pid(logDest);
+        Long curr = triedAndFailed.get(peerID);
 
-        synchronized (this) {
-            Long curr = triedAndFailed.get(peerID);
-
-            if (curr != null && curr > TimeUtils.toAbsoluteTimeMillis(MAX_ASYNC_GETMESSENGER_RETRY)) {
-                triedAndFailed.put(peerID, TimeUtils.toAbsoluteTimeMillis(MAX_ASYNC_GETMESSENGER_RETRY));
-            }
+        if (curr != null && curr > TimeUtils.toAbsoluteTimeMillis(MAX_ASYNC_GETMESSENGER_RETRY)) {
+            triedAndFailed.replace(peerID, curr, TimeUtils.toAbsoluteTimeMillis(MAX_ASYNC_GETMESSENGER_RETRY));
         }
     }
 
@@ -1200,11 +1225,8 @@ public class EndpointRouter implements EndpointListener, MessageReceiver, Messag
         ID peerID = addr2pid(peerAddress);
 
         // check if we have a valid route
-        RouteAdvertisement route;
+        RouteAdvertisement route = routedRoutes.get(peerID);
 
-        synchronized (this) {
-            route = routedRoutes.get(peerID);
-        }
         if (route != null || !seekRoute) { // done
             return route;
         }
@@ -1390,7 +1412,7 @@ public class EndpointRouter implements EndpointListener, MessageReceiver, Messag
                             }
                         } else {
                             // expired info, just flush NACK route cache
-                            badRoutes.remove(peerAddress);
+                            badRoutes.remove(peerAddress, badRoute);
                         }
                     }
                 } else {
@@ -1427,35 +1449,55 @@ public class EndpointRouter implements EndpointListener, MessageReceiver, Messag
 
             // add the new route
             try {
-                // push the route to SRDI only if it is a new route. the intent is
-                // to minimize SRDI traffic. The SRDIinformation is more of the order
-                // this peer has a route to this destination, it does not need to be
-                // updated verey time the route is updated. Information about knowing
-                // that this peer has a route is more important that the precise
-                // route information
-
-                // SRDI is run only if the peer is acting as a rendezvous
-                if (group.isRendezvous()) {
-                    if (!routedRoutes.containsKey(peerID)) {
-                        if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
-                            LOG.fine("push new SRDI route " + peerID);
-                        }
-                        pushNeeded = true;
+                // Remove any endpoint addresses from the route
+                // as part of the cloning. We just keep track
+                // of PIDs in our route table
+                RouteAdvertisement newRoute = route.cloneOnlyPIDs();
+                boolean isNew;
+
+                // removeRoute() is not synchronized, so the route may be
+                // removed at any time. Only the thread which adds the route
+                // treats it as new.
+                while (true) {
+                    RouteAdvertisement previous = routedRoutes.putIfAbsent(peerID, newRoute);
+
+                    if (null == previous) {
+                        isNew = true;
+                        break;
+                    }
+
+                    if (routedRoutes.replace(peerID, previous, newRoute)) {
+                        isNew = false;
+                        break;
                     }
                 }
 
-                // new route so publish the known route in our cache
-                if (!routedRoutes.containsKey(peerID)) {
-                    routeCM.createRoute(route);
+                if (isNew) {
+                    // new route so publish the known route in our cache
+                    try {
+                        routeCM.createRoute(route);
+                    } catch (RuntimeException failed) {
+                        // Leave alone any route which replaced ours meanwhile.
+                        routedRoutes.remove(peerID, newRoute);
+                        throw failed;
+                    }
                     newDestinations.add(peerAddress);
-                }
 
-                // Remove any endpoint addresses from the route
-                // as part of the cloning. We just keep track
-                // of PIDs in our route table
-                RouteAdvertisement newRoute = route.cloneOnlyPIDs();
+                    // push the route to SRDI only if it is a new route. the intent is
+                    // to minimize SRDI traffic. The SRDIinformation is more of the order
+                    // this peer has a route to this destination, it does not need to be
+                    // updated verey time the route is updated. Information about knowing
+                    // that this peer has a route is more important that the precise
+                    // route information
 
-                routedRoutes.put(peerID, newRoute);
+                    // SRDI is run only if the peer is acting as a rendezvous
+                    if (group.isRendezvous()) {
+                        if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+                            LOG.fine("push new SRDI route " + peerID);
+                        }
+                        pushNeeded = true;
+                    }
+                }
 
                 // We can get rid of any negative info we had. We have
                 // a new and different route.
@@ -1487,19 +1529,13 @@ public class EndpointRouter implements EndpointListener, MessageReceiver, Messag
      * @param peerID route to peerid to be removed
      */
     void removeRoute(PeerID peerID) {
-        boolean needRemove;
+        boolean needRemove = false;
 
-        synchronized (this) {
-            needRemove = false;
-            if (routedRoutes.containsKey(peerID)) {
-                if (group.isRendezvous()) {
-                    // Remove the SRDI cache entry from the SRDI cache
-                    needRemove = true;
-                    if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
-                        LOG.fine("remove SRDI route " + peerID);
-                    }
-                }
-                routedRoutes.remove(peerID);
+        if ((routedRoutes.remove(peerID) != null) && group.isRendezvous()) {
+            // Remove the SRDI cache entry from the SRDI cache
+            needRemove = true;
+            if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+                LOG.fine("remove SRDI route " + peerID);
             }
         }
 
@@ -2087,9 +2123,7 @@ public class EndpointRouter implements EndpointListener, MessageReceiver, Messag
                     // failed as it currently holds an infinite timeout to permit
                     // another thread to retry that destination. We only retry
                     // every MAX_ASYNC_GETMESSENGER_RETRY seconds
-                    synchronized (this) {
-                        triedAndFailed.put(addr2pid(dest), TimeUtils.toAbsoluteTimeMillis(MAX_ASYNC_GETMESSENGER_RETRY));
-                    }
+                    triedAndFailed.put(addr2pid(dest), TimeUtils.toAbsoluteTimeMillis(MAX_ASYNC_GETMESSENGER_RETRY));
                     continue;
                 }
 
@@ -2115,8 +2149,8 @@ public class EndpointRouter implements EndpointListener, MessageReceiver, Messag
                     }
                     // Success we got a messenger synchronously. Remove
                     // the negative cache entry.
+                    triedAndFailed.remove(addr2pid(dest));
                     synchronized (this) {
-                        triedAndFailed.remove(addr2pid(dest));
                         notifyAll();
                     }
                     return messenger;
@@ -2149,26 +2183,30 @@ public class EndpointRouter implements EndpointListener, MessageReceiver, Messag
         // findReachableEndpoint is really lazy because what it does is expensive.
         // When needed, the negative info that prevents its from working
         // too much is removed. (see calls to ensureLocalRoute).
-        synchronized (this) {
+        // We must be the first thread trying this destination. Let's preclude
+        // any other threads from attempting to do anything while we are
+        // trying that destination. Other threads will have a chance if they
+        // are still waiting when this thread is done. We will update
+        // triedAndFailed when we get the async notification that we got or
+        // we failed to get a messenger.
+        Long attempting = TimeUtils.toAbsoluteTimeMillis(Long.MAX_VALUE);
+
+        while (true) {
             Long nextTry = triedAndFailed.get(destPeerID);
 
-            if (nextTry != null) {
-                if (nextTry > TimeUtils.timeNow()) {
-                    return null;
+            if (nextTry == null) {
+                if (null == triedAndFailed.putIfAbsent(destPeerID, attempting)) {
+                    break;
                 }
+            } else if (nextTry > TimeUtils.timeNow()) {
+                return null;
+            } else if (triedAndFailed.replace(destPeerID, nextTry, attempting)) {
+                break;
             }
+        }
 
-            // We are the first thread trying this destination. Let's preclude
-            // any other threads from attempting to do anything while we are
-            // trying that destination. Other threads will have a chance if they
-            // are still waiting when this thread is done. We will update
-            // triedAndFailed when we get the async notification that we got or
-            // we failed to get a messenger.
-
-            if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
-                LOG.fine("Temporarly adding " + destPeerAddress.toString() + " to triedAndFailed, while attempting connection");
-            }
-            triedAndFailed.put(destPeerID, TimeUtils.toAbsoluteTimeMillis(Long.MAX_VALUE));
+        if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+            LOG.fine("Temporarly added " + destPeerAddress.toString() + " to triedAndFailed, while attempting connection");
         }
 
         // Never tried or it was a long time ago.
@@ -2234,9 +2272,7 @@ public class EndpointRouter implements EndpointListener, MessageReceiver, Messag
         // There is a small chance that another thread did find
         // something in parallel, but that's very unlikely and
         // if it is rare enough then the damage is small.
-        synchronized (this) {
-            triedAndFailed.put(destPeerID, TimeUtils.toAbsoluteTimeMillis(MAX_ASYNC_GETMESSENGER_RETRY));
-        }
+        triedAndFailed.put(destPeerID, TimeUtils.toAbsoluteTimeMillis(MAX_ASYNC_GETMESSENGER_RETRY));
         if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
             LOG.fine("did not find a direct route to :" + destPeerAddress);
         }
@@ -2547,38 +2583,14 @@ public class EndpointRouter implements EndpointListener, MessageReceiver, Messag
             if (routeCM.updateRoute(route)) {
                 // We just dumped an adv for that dest, so we want to do a real check
                 // on its new addresses. Remove the entry from the negative cache.
-                synchronized (this) {
-                    Long nextTry = triedAndFailed.get(pID);
-
-                    if (nextTry != null) {
-                        // only remove if we do not have a pending request (infinite retry)
-                        // we take the conservative approach to avoid creating multiple
-                        // async thread blocked on the same destination
-                        if (nextTry <= TimeUtils.toAbsoluteTimeMillis(MAX_ASYNC_GETMESSENGER_RETRY)) {
-                            triedAndFailed.remove(pID);
-                            notifyAll();
-                        }
-                    }
-                }
+                clearTriedAndFailed(pID);
             } else {
                 if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
                     LOG.fine("Route for " + pID + " is same as existing route, not publishing it");
                 }
 
                 if (force) {
-                    synchronized (this) {
-                        Long nextTry = triedAndFailed.get(pID);
-
-                        if (nextTry != null) {
-                            // only remove if we do not have a pending request (infinite retry)
-                            // we take the conservative approach to avoid creating multiple
-                            // async thread blocked on the same destination
-                            if (nextTry <= TimeUtils.toAbsoluteTimeMillis(MAX_ASYNC_GETMESSENGER_RETRY)) {
-                                triedAndFailed.remove(pID);
-                                notifyAll();
-                            }
-                        }
-                    }
+                    clearTriedAndFailed(pID);
                 }
             }
         } catch (Exception e) {
@@ -2588,6 +2600,27 @@ public class EndpointRouter implements EndpointListener, MessageReceiver, Messag
         }
     }
 
+    /**
+     * Removes the negative cache information about a destination unless a
+     * connection attempt is in progress, and wakes up the threads waiting for
+     * a route.
+     *
+     * @param pID the destination.
+     */
+    private void clearTriedAndFailed(PeerID pID) {
+        Long nextTry = triedAndFailed.get(pID);
+
+        // only remove if we do not have a pending request (infinite retry)
+        // we take the conservative approach to avoid creating multiple
+        // async thread blocked on the same destination
+        if ((nextTry != null) && (nextTry <= TimeUtils.toAbsoluteTimeMillis(MAX_ASYNC_GETMESSENGER_RETRY))
+                && triedAndFailed.remove(pID, nextTry)) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
     /**
      * is there a pending route query for that destination
      *
@@ -2671,6 +2704,15 @@ public class EndpointRouter implements EndpointListener, MessageReceiver, Messag
         return copy;
     }
 
+    /**
+     * Get the next hop lookup latency metrics
+     *
+     * @return the lookup metrics
+     */
+    RouteLookupMetrics getRouteLookupMetrics() {
+        return lookupMetrics;
+    }
+
     /**
      * Get the route CM cache Manager
      *
@@ -2695,7 +2737,7 @@ public class EndpointRouter implements EndpointListener, MessageReceiver, Messag
      * @param addr     of the bad route
      * @param badRoute bad route info
      */
-    synchronized void setBadRoute(EndpointAddress addr, BadRoute badRoute) {
+    void setBadRoute(EndpointAddress addr, BadRoute badRoute) {
         badRoutes.put(addr, badRoute);
     }
 
@@ -2705,7 +2747,7 @@ public class EndpointRouter implements EndpointListener, MessageReceiver, Messag
      * @param addr of the bad route
      * @return BadRoute bad route info
      */
-    synchronized BadRoute getBadRoute(EndpointAddress addr) {
+    BadRoute getBadRoute(EndpointAddress addr) {
         return badRoutes.get(addr);
     }
 }
@@ -133,6 +133,16 @@ public class RouteControl {
         return router.getMyLocalRoute();
     }
 
+    /**
+     * get the latency and outcome counters of the next hop lookups made
+     * when sending messages through the router
+     *
+     * @return the lookup metrics
+     */
+    public RouteLookupMetrics getRouteLookupMetrics() {
+        return router.getRouteLookupMetrics();
+    }
+
     /**
      * add a new route. For the route to be useful, we actively verify
      * the route by trying it
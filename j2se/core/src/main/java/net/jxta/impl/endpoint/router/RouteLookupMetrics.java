@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2001-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+
+package net.jxta.impl.endpoint.router;
+
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Latency and outcome counters for the route lookups made by the router when
+ * it sends a message, that is the time taken to find the address of the next
+ * hop towards a destination.
+ *
+ * <p/>Latencies are kept in power of two buckets of nanoseconds, so the
+ * percentiles reported are upper bounds which are at most twice the real
+ * value. Recording is lock-free and may be done by any number of threads.
+ */
+public final class RouteLookupMetrics {
+
+    /**
+     * Bucket {@code i} counts the lookups which took less than {@code 2^i}
+     * nanoseconds and at least {@code 2^(i-1)}.
+     */
+    private static final int BUCKETS = 64;
+
+    private final AtomicLong directLookups = new AtomicLong();
+    private final AtomicLong routedLookups = new AtomicLong();
+    private final AtomicLong failedLookups = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+    RouteLookupMetrics() {
+    }
+
+    /**
+     * Records the outcome of one lookup.
+     *
+     * @param destination The destination which was looked up.
+     * @param gateway     The address of the next hop which was found or {@code null} if none was.
+     * @param nanos       How long the lookup took.
+     */
+    void record(Object destination, Object gateway, long nanos) {
+        if (gateway == null) {
+            failedLookups.incrementAndGet();
+        } else if (gateway.equals(destination)) {
+            directLookups.incrementAndGet();
+        } else {
+            routedLookups.incrementAndGet();
+        }
+
+        if (nanos < 0) {
+            nanos = 0;
+        }
+
+        totalNanos.addAndGet(nanos);
+        histogram.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos)));
+
+        long max = maxNanos.get();
+
+        while ((nanos > max) && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+    }
+
+    /**
+     * @return The number of lookups recorded.
+     */
+    public long getLookupCount() {
+        return directLookups.get() + routedLookups.get() + failedLookups.get();
+    }
+
+    /**
+     * @return The number of lookups which found a direct messenger to the destination.
+     */
+    public long getDirectCount() {
+        return directLookups.get();
+    }
+
+    /**
+     * @return The number of lookups which found a route through other peers.
+     */
+    public long getRoutedCount() {
+        return routedLookups.get();
+    }
+
+    /**
+     * @return The number of lookups which found no way to reach the destination.
+     */
+    public long getFailedCount() {
+        return failedLookups.get();
+    }
+
+    /**
+     * @return The mean lookup latency in nanoseconds, 0 if no lookups were recorded.
+     */
+    public long getAverageNanos() {
+        long count = getLookupCount();
+
+        return (count == 0) ? 0 : totalNanos.get() / count;
+    }
+
+    /**
+     * @return The longest lookup latency in nanoseconds.
+     */
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    /**
+     * Returns an upper bound of the latency under which the given fraction of
+     * the lookups completed.
+     *
+     * @param fraction The fraction of lookups, between 0 and 1. eg. 0.99 for the 99th percentile.
+     * @return The latency in nanoseconds, 0 if no lookups were recorded.
+     */
+    public long getPercentileNanos(double fraction) {
+        if ((fraction < 0) || (fraction > 1)) {
+            throw new IllegalArgumentException("fraction must be between 0 and 1");
+        }
+
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = histogram.get(i);
+            total += counts[i];
+        }
+
+        if (total == 0) {
+            return 0;
+        }
+
+        long wanted = (long) Math.ceil(fraction * total);
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if ((seen >= wanted) && (seen > 0)) {
+                return (i == (BUCKETS - 1)) ? Long.MAX_VALUE : (1L << i) - 1;
+            }
+        }
+
+        return maxNanos.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "lookups=" + getLookupCount() + " direct=" + getDirectCount() + " routed=" + getRoutedCount() + " failed="
+                + getFailedCount() + " avg=" + getAverageNanos() + "ns p99<=" + getPercentileNanos(0.99) + "ns max="
+                + getMaxNanos() + "ns";
+    }
+}
@@ -65,9 +65,11 @@ import net.jxta.endpoint.WireFormatMessage;
 import net.jxta.endpoint.WireFormatMessageFactory;
 import net.jxta.impl.endpoint.BlockingMessenger;
 import net.jxta.impl.endpoint.EndpointServiceImpl;
+import net.jxta.impl.endpoint.msgframing.MessagePackageHeader;
 import net.jxta.impl.endpoint.transportMeter.TransportBindingMeter;
 import net.jxta.impl.endpoint.transportMeter.TransportMeterBuildSettings;
 import net.jxta.impl.util.TimeUtils;
+import net.jxta.impl.util.threads.TaskManager;
 import net.jxta.logging.Logging;
 
 import java.io.EOFException;
@@ -80,6 +82,13 @@ import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -88,6 +97,16 @@ import java.util.logging.Logger;
  *
  *  <p/>URL/HttpURLConnection is used, so (depending on your JDK) you will get
  *  reasonably good persistent connection management.
+ *
+ *  <p/>In streaming mode, if the server supports it, messages are sent on a
+ *  chunked request which remains open between messages and the poller asks
+ *  for a back channel which remains open while messages flow. Streamed
+ *  messages are numbered; the server discards those it has already received
+ *  and acknowledges them cumulatively on the back channel. Messages which
+ *  remain unacknowledged are sent again on a new request and if they still
+ *  are not acknowledged the messenger fails and is closed. The request is
+ *  ended once no message has been written to it for
+ *  {@link #UPSTREAM_IDLE_TIMEOUT}.
  */
 final class HttpClientMessenger extends BlockingMessenger {
     
@@ -131,6 +150,36 @@ final class HttpClientMessenger extends BlockingMessenger {
      *  Number of attempts we will attempt to make connections.
      */
     private final static int CONNECT_RETRIES = 2;
+
+    /**
+     *  The largest number of streamed messages which the server may have yet
+     *  to acknowledge. Senders wait for acknowledgements beyond this.
+     */
+    final static int MAX_UNACKNOWLEDGED = 64;
+
+    /**
+     *  Amount of time our streaming upstream connection may remain unused
+     *  before we end it, counted from the last message written to it. This
+     *  is less than the time the server keeps idle connections.
+     */
+    private final static long UPSTREAM_IDLE_TIMEOUT = TimeUtils.AMINUTE;
+
+    /**
+     *  How often we check our streaming upstream connection for idleness and
+     *  for messages whose acknowledgement is overdue.
+     */
+    private final static long UPSTREAM_CHECK_INTERVAL = TimeUtils.ASECOND;
+
+    /**
+     *  Amount of time we wait for the server to acknowledge streamed messages
+     *  before sending them again. Not final so that tests may shorten it.
+     */
+    static long ackTimeout = 15 * TimeUtils.ASECOND;
+
+    /**
+     *  The chunk size of our streaming upstream connection.
+     */
+    private final static int STREAM_CHUNK_SIZE = 32 * 1024;
     
     /**
      *  Warn only once about obsolete proxies.
@@ -168,6 +217,84 @@ final class HttpClientMessenger extends BlockingMessenger {
      *  Poller that we use to get our messages.
      */
     private MessagePoller poller = null;
+
+    /**
+     *  If {@code true} the server identified itself as supporting streaming
+     *  connections.
+     */
+    private boolean serverStreams = false;
+
+    /**
+     *  If {@code true} we use streaming connections with the server.
+     */
+    private final boolean streaming;
+
+    /**
+     *  Serializes use of the streaming upstream connection.
+     */
+    private final Object upstreamLock = new Object();
+
+    /**
+     *  The streaming upstream connection, if open.
+     */
+    private volatile HttpURLConnection upstreamConn = null;
+
+    /**
+     *  The body of the streaming upstream connection, if open.
+     */
+    private OutputStream upstream = null;
+
+    /**
+     *  Identifies our message stream to the server.
+     */
+    private final String streamId = UUID.randomUUID().toString();
+
+    /**
+     *  The messages we have streamed which the server has not acknowledged,
+     *  in the order they were sent. Guarded by the upstream lock.
+     */
+    private final List<StreamedMessage> unacknowledged = new ArrayList<StreamedMessage>();
+
+    /**
+     *  The sequence number of the next message we stream. Guarded by the
+     *  upstream lock.
+     */
+    private long nextSequence = 1;
+
+    /**
+     *  The number of unacknowledged messages which have been written to the
+     *  current upstream request. Guarded by the upstream lock.
+     */
+    private int upstreamSent = 0;
+
+    /**
+     *  The last time at which a message was written to the upstream request.
+     *  Guarded by the upstream lock.
+     */
+    private long upstreamLastUsed = 0;
+
+    /**
+     *  The last time at which the server acknowledged messages or we sent
+     *  them again. Guarded by the upstream lock.
+     */
+    private long lastAckProgress = 0;
+
+    /**
+     *  The number of times we have sent the unacknowledged messages again
+     *  without the server acknowledging any. Guarded by the upstream lock.
+     */
+    private int retransmits = 0;
+
+    /**
+     *  If {@code true} the server failed to acknowledge our messages and the
+     *  messenger is closing. Guarded by the upstream lock.
+     */
+    private boolean streamFailed = false;
+
+    /**
+     *  The periodic check of our streaming upstream connection, if streaming.
+     */
+    private ScheduledFuture<?> upstreamCheck = null;
     
     /**
      *  Constructs the messenger.
@@ -204,9 +331,16 @@ final class HttpClientMessenger extends BlockingMessenger {
         senderURL = new URL("http", host, port, "/");
         
         logicalDest = retreiveLogicalDestinationAddress();
+
+        streaming = servletHttpTransport.streaming && serverStreams;
         
         // Start receiving messages from the other peer
         poller = new MessagePoller(srcAddr.getProtocolAddress(), destAddr);
+
+        if (streaming) {
+            upstreamCheck = TaskManager.getTaskManager().getScheduledExecutorService().scheduleAtFixedRate(
+                    new UpstreamChecker(), UPSTREAM_CHECK_INTERVAL, UPSTREAM_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+        }
                 
         if (Logging.SHOW_INFO && LOG.isLoggable(Level.INFO)) {
             LOG.info("New messenger : " + this );
@@ -267,6 +401,26 @@ final class HttpClientMessenger extends BlockingMessenger {
         if (null != stopPoller) {
             stopPoller.stop();
         }
+
+        if (null != upstreamCheck) {
+            upstreamCheck.cancel(false);
+        }
+
+        // Breaks the upstream connection, even if a send is in progress.
+        HttpURLConnection stopUpstream = upstreamConn;
+
+        if (null != stopUpstream) {
+            stopUpstream.disconnect();
+        }
+
+        synchronized (upstreamLock) {
+            // Wake senders waiting for acknowledgements.
+            upstreamLock.notifyAll();
+
+            if (!streamFailed && !unacknowledged.isEmpty() && Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
+                LOG.warning("Closed with " + unacknowledged.size() + " unacknowledged messages to " + senderURL);
+            }
+        }
     }
     
     /**
@@ -372,6 +526,8 @@ final class HttpClientMessenger extends BlockingMessenger {
             if (msglength <= 0) {
                 throw new IOException("Ping response was empty.");
             }
+
+            serverStreams = (null != urlConn.getHeaderField(ServletHttpTransport.STREAM_HEADER));
             
             InputStream inputStream = urlConn.getInputStream();
             
@@ -443,6 +599,11 @@ final class HttpClientMessenger extends BlockingMessenger {
         long beginConnectTime = 0;
         long connectTime = 0;
         
+        if (streaming) {
+            doStreamSend(msg);
+            return;
+        }
+
         if (TransportMeterBuildSettings.TRANSPORT_METERING) {
             beginConnectTime = TimeUtils.timeNow();
         }
@@ -543,6 +704,296 @@ final class HttpClientMessenger extends BlockingMessenger {
         
         throw new IOException("Failed sending " + msg + " to " + senderURL);
     }
+
+    /**
+     *  Sends the message on our streaming upstream connection, preceded by a
+     *  message package header which carries its sequence number. The message
+     *  is kept until the server acknowledges it. If the server has yet to
+     *  acknowledge {@link #MAX_UNACKNOWLEDGED} messages we first wait for it
+     *  to do so.
+     */
+    private void doStreamSend(Message msg) throws IOException {
+        WireFormatMessage serialed = WireFormatMessageFactory.toWire(msg, EndpointServiceImpl.DEFAULT_MESSAGE_TYPE, null);
+        boolean written;
+
+        synchronized (upstreamLock) {
+            while (!streamFailed && !isClosed() && (unacknowledged.size() >= MAX_UNACKNOWLEDGED)) {
+                try {
+                    upstreamLock.wait(UPSTREAM_CHECK_INTERVAL);
+                } catch (InterruptedException woken) {
+                    Thread.interrupted();
+                    throw new InterruptedIOException("Interrupted waiting for acknowledgement from " + senderURL);
+                }
+            }
+
+            if (streamFailed || isClosed()) {
+                throw new IOException("Failed sending " + msg + " to " + senderURL);
+            }
+
+            if (unacknowledged.isEmpty()) {
+                lastAckProgress = TimeUtils.timeNow();
+            }
+
+            unacknowledged.add(new StreamedMessage(nextSequence++, serialed));
+
+            written = writeUnacknowledged();
+
+            if (written) {
+                // note that we successfully sent a message
+                lastUsed = TimeUtils.timeNow();
+            }
+        }
+
+        if (!written) {
+            failStream();
+            throw new IOException("Failed sending " + msg + " to " + senderURL);
+        }
+    }
+
+    /**
+     *  Writes the unacknowledged messages which have not yet been written to
+     *  our upstream request. If writing fails, all of the unacknowledged
+     *  messages are written again on a new request. Must be called holding
+     *  the upstream lock.
+     *
+     *  @return {@code true} if the messages were written otherwise
+     *  {@code false}.
+     */
+    private boolean writeUnacknowledged() {
+        for (int connectAttempt = 1; connectAttempt <= CONNECT_RETRIES; connectAttempt++) {
+            if (isClosed()) {
+                break;
+            }
+
+            try {
+                OutputStream out = getUpstream();
+
+                while (upstreamSent < unacknowledged.size()) {
+                    StreamedMessage streamed = unacknowledged.get(upstreamSent);
+                    MessagePackageHeader header = new MessagePackageHeader();
+
+                    header.setContentTypeHeader(streamed.serialed.getMimeType());
+                    header.setContentLengthHeader(streamed.serialed.getByteLength());
+                    header.addHeader(ServletHttpTransport.STREAM_SEQUENCE_HEADER, Long.toString(streamed.sequence));
+                    header.sendToStream(out);
+                    streamed.serialed.sendToStream(out);
+                    upstreamSent++;
+
+                    if (TransportMeterBuildSettings.TRANSPORT_METERING && (transportBindingMeter != null)) {
+                        transportBindingMeter.dataSent(true, streamed.serialed.getByteLength());
+                    }
+                }
+                out.flush();
+
+                upstreamLastUsed = TimeUtils.timeNow();
+                return true;
+            } catch (IOException failed) {
+                if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+                    LOG.log(Level.FINE, "Failed streaming to " + senderURL, failed);
+                }
+
+                closeUpstream();
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     *  Forgets the streamed messages which the server has acknowledged.
+     *
+     *  @param sequence The sequence number up to which the server has received
+     *  our messages.
+     */
+    private void acknowledged(long sequence) {
+        synchronized (upstreamLock) {
+            int acknowledged = 0;
+
+            while ((acknowledged < unacknowledged.size()) && (unacknowledged.get(acknowledged).sequence <= sequence)) {
+                acknowledged++;
+            }
+
+            if (0 == acknowledged) {
+                return;
+            }
+
+            unacknowledged.subList(0, acknowledged).clear();
+            upstreamSent = Math.max(0, upstreamSent - acknowledged);
+            lastAckProgress = TimeUtils.timeNow();
+            retransmits = 0;
+
+            upstreamLock.notifyAll();
+        }
+    }
+
+    /**
+     *  Sends the unacknowledged messages again if the server has not
+     *  acknowledged any for {@link #ackTimeout} and fails the messenger if
+     *  this has not helped. Otherwise ends our upstream request if it has
+     *  been unused for {@link #UPSTREAM_IDLE_TIMEOUT}. The server's response
+     *  is awaited without holding the upstream lock.
+     */
+    private void checkUpstream() {
+        boolean failed = false;
+        HttpURLConnection idleConn = null;
+        OutputStream idleUpstream = null;
+
+        synchronized (upstreamLock) {
+            if (streamFailed || isClosed()) {
+                return;
+            }
+
+            long now = TimeUtils.timeNow();
+
+            if (!unacknowledged.isEmpty()) {
+                if (TimeUtils.toRelativeTimeMillis(now, lastAckProgress) >= ackTimeout) {
+                    if (retransmits >= CONNECT_RETRIES) {
+                        failed = true;
+                    } else {
+                        if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+                            LOG.fine("Resending " + unacknowledged.size() + " unacknowledged messages to " + senderURL);
+                        }
+
+                        retransmits++;
+                        lastAckProgress = now;
+                        closeUpstream();
+                        failed = !writeUnacknowledged();
+                    }
+                }
+            } else if ((null != upstream) && (TimeUtils.toRelativeTimeMillis(now, upstreamLastUsed) >= UPSTREAM_IDLE_TIMEOUT)) {
+                if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+                    LOG.fine("Ending idle upstream connection to " + senderURL);
+                }
+
+                idleConn = upstreamConn;
+                idleUpstream = upstream;
+                upstream = null;
+                upstreamConn = null;
+                upstreamSent = 0;
+            }
+        }
+
+        if (failed) {
+            failStream();
+        } else if (null != idleConn) {
+            endUpstream(idleConn, idleUpstream);
+        }
+    }
+
+    /**
+     *  Fails the messenger because our streamed messages could not be sent or
+     *  were not acknowledged. The unacknowledged messages are reported lost
+     *  and the messenger is closed. Must not be called holding the upstream
+     *  lock.
+     */
+    private void failStream() {
+        int lost;
+
+        synchronized (upstreamLock) {
+            if (streamFailed) {
+                return;
+            }
+
+            streamFailed = true;
+            lost = unacknowledged.size();
+            closeUpstream();
+            upstreamLock.notifyAll();
+        }
+
+        if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
+            LOG.warning("Failed sending " + lost + " messages to " + senderURL + ". Closing messenger.");
+        }
+
+        close();
+    }
+
+    /**
+     *  Returns the body of our streaming upstream connection, opening a new
+     *  connection if there is none. Must be called holding the upstream lock.
+     */
+    private OutputStream getUpstream() throws IOException {
+        if (null == upstream) {
+            if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+                LOG.fine("Opening upstream connection to " + senderURL);
+            }
+
+            HttpURLConnection urlConn = (HttpURLConnection) senderURL.openConnection();
+
+            urlConn.setRequestMethod("POST");
+            urlConn.setDoOutput(true);
+            urlConn.setDoInput(true);
+            urlConn.setAllowUserInteraction(false);
+            urlConn.setUseCaches(false);
+            urlConn.setConnectTimeout(CONNECT_TIMEOUT);
+            urlConn.setReadTimeout(CONNECT_TIMEOUT);
+            urlConn.setChunkedStreamingMode(STREAM_CHUNK_SIZE);
+            urlConn.setRequestProperty("content-type", ServletHttpTransport.STREAM_MIME_TYPE.toString());
+            urlConn.setRequestProperty(ServletHttpTransport.STREAM_HEADER, streamId);
+
+            upstreamConn = urlConn;
+            upstream = urlConn.getOutputStream();
+            upstreamSent = 0;
+        }
+
+        return upstream;
+    }
+
+    /**
+     *  Ends an upstream request which is no longer used and reads the
+     *  server's response so that the connection may be reused. Must not be
+     *  called holding the upstream lock.
+     *
+     *  @param urlConn The upstream connection.
+     *  @param out The body of the upstream connection.
+     */
+    private void endUpstream(HttpURLConnection urlConn, OutputStream out) {
+        try {
+            out.close();
+
+            int responseCode = urlConn.getResponseCode();
+
+            if (HttpURLConnection.HTTP_OK != responseCode) {
+                throw new IOException("Message stream refused with " + responseCode + " by " + senderURL);
+            }
+
+            urlConn.getInputStream().close();
+        } catch (IOException failed) {
+            if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+                LOG.log(Level.FINE, "Failed ending upstream connection to " + senderURL, failed);
+            }
+
+            urlConn.disconnect();
+        }
+    }
+
+    /**
+     *  Abandons our streaming upstream connection. The messages written to it
+     *  remain unacknowledged. Must be called holding the upstream lock.
+     */
+    private void closeUpstream() {
+        HttpURLConnection urlConn = upstreamConn;
+
+        upstream = null;
+        upstreamConn = null;
+        upstreamSent = 0;
+
+        // Not closing the body, which would end the request normally.
+        if (null != urlConn) {
+            urlConn.disconnect();
+        }
+    }
+
+    /**
+     *  Returns the number of streamed messages which the server has not yet
+     *  acknowledged.
+     *
+     *  @return the number of unacknowledged messages.
+     */
+    int getUnacknowledgedCount() {
+        synchronized (upstreamLock) {
+            return unacknowledged.size();
+        }
+    }
     
     /**
      *  Polls for messages sent to us.
@@ -668,6 +1119,13 @@ final class HttpClientMessenger extends BlockingMessenger {
                         conn.setUseCaches(false);
                         conn.setConnectTimeout(CONNECT_TIMEOUT);
                         conn.setReadTimeout(RESPONSE_TIMEOUT);
+
+                        if (streaming) {
+                            // The server ends the back channel once it has
+                            // been idle for the response timeout.
+                            conn.setRequestProperty(ServletHttpTransport.STREAM_HEADER, streamId);
+                            conn.setReadTimeout(RESPONSE_TIMEOUT + CONNECT_TIMEOUT);
+                        }
                         
                         if (TransportMeterBuildSettings.TRANSPORT_METERING) {
                             beginConnectTime = TimeUtils.timeNow();
@@ -808,7 +1266,7 @@ final class HttpClientMessenger extends BlockingMessenger {
                     // start receiving messages
                     try {
                         while (!isStopped()
-                                && (TimeUtils.toRelativeTimeMillis(TimeUtils.timeNow(), connectTime) < RESPONSE_TIMEOUT)) {
+                                && (streaming || (TimeUtils.toRelativeTimeMillis(TimeUtils.timeNow(), connectTime) < RESPONSE_TIMEOUT))) {
                             // read a message!
                             long messageReceiveStart = TimeUtils.timeNow();
                             Message incomingMsg;
@@ -823,6 +1281,21 @@ final class HttpClientMessenger extends BlockingMessenger {
                             if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
                                 LOG.fine("Received " + incomingMsg + " from " + senderURL);
                             }
+
+                            if (streaming) {
+                                MessageElement ack = incomingMsg.getMessageElement(ServletHttpTransport.STREAM_ACK_ELEMENT_NAME);
+
+                                if (null != ack) {
+                                    try {
+                                        acknowledged(Long.parseLong(ack.toString()));
+                                    } catch (NumberFormatException badAck) {
+                                        if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
+                                            LOG.warning("Bad acknowledgement from " + senderURL + " : " + ack);
+                                        }
+                                    }
+                                    continue;
+                                }
+                            }
                             
                             servletHttpTransport.executor.execute(new MessageProcessor(incomingMsg));
                             
@@ -888,6 +1361,54 @@ final class HttpClientMessenger extends BlockingMessenger {
         }
     }
 
+    /**
+     *  A streamed message awaiting acknowledgement.
+     */
+    private static class StreamedMessage {
+
+        final long sequence;
+
+        final WireFormatMessage serialed;
+
+        StreamedMessage(long sequence, WireFormatMessage serialed) {
+            this.sequence = sequence;
+            this.serialed = serialed;
+        }
+    }
+
+    /**
+     *  Checks our streaming upstream connection. Checking may write to the
+     *  connection, so it is done by the transport's executor rather than by
+     *  the scheduler.
+     */
+    private class UpstreamChecker implements Runnable {
+
+        /**
+         *  If {@code true} a check is queued or running.
+         */
+        private final AtomicBoolean pending = new AtomicBoolean(false);
+
+        public void run() {
+            if (!pending.compareAndSet(false, true)) {
+                return;
+            }
+
+            try {
+                servletHttpTransport.executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            checkUpstream();
+                        } finally {
+                            pending.set(false);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException rejected) {
+                pending.set(false);
+            }
+        }
+    }
+
     /**
      * A small class for processing individual messages. 
      */ 
@@ -0,0 +1,442 @@
+/*
+ * Copyright (c) 2001-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+
+package net.jxta.impl.endpoint.servlethttp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Incrementally decodes HTTP/1.x requests read from a non-blocking channel.
+ * The request head is decoded first and then the request body, de-chunking it
+ * if it is sent with the chunked transfer coding. Input may be supplied in
+ * pieces of any size; the decoder consumes what it can and keeps its state
+ * between calls.
+ * <p/>
+ * This class is not synchronized.
+ */
+final class HttpRequestDecoder {
+
+    /**
+     * The largest request head we accept.
+     */
+    static final int MAX_HEAD_SIZE = 8 * 1024;
+
+    /**
+     * The longest chunk size line we accept.
+     */
+    private static final int MAX_CHUNK_LINE = 1024;
+
+    private static final int HEAD = 0;
+    private static final int BODY = 1;
+    private static final int COMPLETE = 2;
+
+    private static final int CHUNK_SIZE = 0;
+    private static final int CHUNK_DATA = 1;
+    private static final int CHUNK_DATA_END = 2;
+    private static final int CHUNK_TRAILER = 3;
+
+    private int state = HEAD;
+    private int chunkState = CHUNK_SIZE;
+
+    /**
+     * The line being accumulated.
+     */
+    private final StringBuilder line = new StringBuilder();
+
+    /**
+     * The number of bytes of the request head consumed so far.
+     */
+    private int headSize = 0;
+
+    private String method = null;
+    private String path = null;
+    private String query = null;
+    private boolean http11 = false;
+
+    /**
+     * The request headers keyed by lower case name.
+     */
+    private final Map<String, String> headers = new HashMap<String, String>();
+
+    private long contentLength = 0;
+    private boolean chunked = false;
+
+    /**
+     * The number of bytes remaining in the body or in the current chunk.
+     */
+    private long remaining = 0;
+
+    /**
+     * Decodes as much of the request head as is available.
+     *
+     * @param in The input. Consumed up to the end of the head.
+     * @return {@code true} if the head is complete otherwise {@code false} if
+     *         more input is needed.
+     * @throws IOException If the head is malformed or too large.
+     */
+    boolean decodeHead(ByteBuffer in) throws IOException {
+        while ((HEAD == state) && in.hasRemaining()) {
+            if (++headSize > MAX_HEAD_SIZE) {
+                throw new IOException("Request head too large");
+            }
+
+            char c = (char) (in.get() & 0xFF);
+
+            if ('\n' != c) {
+                if ('\r' != c) {
+                    line.append(c);
+                }
+                continue;
+            }
+
+            String aLine = line.toString();
+
+            line.setLength(0);
+
+            if (null == method) {
+                if (0 != aLine.length()) {
+                    // Empty lines before the request line are allowed.
+                    parseRequestLine(aLine);
+                }
+            } else if (0 == aLine.length()) {
+                beginBody();
+            } else {
+                int colon = aLine.indexOf(':');
+
+                if (colon <= 0) {
+                    throw new IOException("Malformed header : " + aLine);
+                }
+                headers.put(aLine.substring(0, colon).trim().toLowerCase(), aLine.substring(colon + 1).trim());
+            }
+        }
+
+        return HEAD != state;
+    }
+
+    private void parseRequestLine(String requestLine) throws IOException {
+        int firstSpace = requestLine.indexOf(' ');
+        int lastSpace = requestLine.lastIndexOf(' ');
+
+        if ((firstSpace <= 0) || (lastSpace == firstSpace)) {
+            throw new IOException("Malformed request line : " + requestLine);
+        }
+
+        method = requestLine.substring(0, firstSpace);
+
+        String uri = requestLine.substring(firstSpace + 1, lastSpace).trim();
+        String version = requestLine.substring(lastSpace + 1);
+
+        if (!version.startsWith("HTTP/1.")) {
+            throw new IOException("Unsupported protocol version : " + version);
+        }
+        http11 = !"HTTP/1.0".equals(version);
+
+        // Absolute URIs are sent through proxies.
+        if (uri.startsWith("http://")) {
+            int pathStart = uri.indexOf('/', 7);
+
+            uri = (-1 == pathStart) ? "/" : uri.substring(pathStart);
+        }
+
+        int queryStart = uri.indexOf('?');
+
+        if (-1 == queryStart) {
+            path = uri;
+        } else {
+            path = uri.substring(0, queryStart);
+            query = uri.substring(queryStart + 1);
+        }
+    }
+
+    private void beginBody() throws IOException {
+        String transferEncoding = headers.get("transfer-encoding");
+
+        if ((null != transferEncoding) && !"identity".equalsIgnoreCase(transferEncoding)) {
+            if (!"chunked".equalsIgnoreCase(transferEncoding)) {
+                throw new IOException("Unsupported transfer encoding : " + transferEncoding);
+            }
+            chunked = true;
+            contentLength = -1;
+            chunkState = CHUNK_SIZE;
+            state = BODY;
+            return;
+        }
+
+        String length = headers.get("content-length");
+
+        if (null != length) {
+            try {
+                contentLength = Long.parseLong(length);
+            } catch (NumberFormatException notNumber) {
+                throw new IOException("Malformed content length : " + length);
+            }
+
+            if (contentLength < 0) {
+                throw new IOException("Malformed content length : " + length);
+            }
+        }
+
+        remaining = contentLength;
+        state = (0 == contentLength) ? COMPLETE : BODY;
+    }
+
+    /**
+     * Decodes as much of the request body as is available and fits in the
+     * output.
+     *
+     * @param in  The input.
+     * @param out The buffer to which the body content is copied.
+     * @return The number of body bytes copied to the output.
+     * @throws IOException If the chunk framing is malformed.
+     */
+    int decodeBody(ByteBuffer in, ByteBuffer out) throws IOException {
+        int copied = 0;
+
+        while ((BODY == state) && in.hasRemaining()) {
+            if (!chunked || (CHUNK_DATA == chunkState)) {
+                int count = (int) Math.min(remaining, Math.min(in.remaining(), out.remaining()));
+
+                if (0 == count) {
+                    break;
+                }
+
+                ByteBuffer slice = in.duplicate();
+
+                slice.limit(slice.position() + count);
+                out.put(slice);
+                in.position(in.position() + count);
+                copied += count;
+                remaining -= count;
+
+                if (0 == remaining) {
+                    if (chunked) {
+                        chunkState = CHUNK_DATA_END;
+                    } else {
+                        state = COMPLETE;
+                    }
+                }
+                continue;
+            }
+
+            char c = (char) (in.get() & 0xFF);
+
+            if ('\n' != c) {
+                if ('\r' != c) {
+                    if (line.length() >= MAX_CHUNK_LINE) {
+                        throw new IOException("Chunk line too long");
+                    }
+                    line.append(c);
+                }
+                continue;
+            }
+
+            String aLine = line.toString();
+
+            line.setLength(0);
+
+            switch (chunkState) {
+                case CHUNK_SIZE:
+                    remaining = parseChunkSize(aLine);
+                    chunkState = (0 == remaining) ? CHUNK_TRAILER : CHUNK_DATA;
+                    break;
+
+                case CHUNK_DATA_END:
+                    if (0 != aLine.length()) {
+                        throw new IOException("Missing chunk terminator");
+                    }
+                    chunkState = CHUNK_SIZE;
+                    break;
+
+                case CHUNK_TRAILER:
+                    if (0 == aLine.length()) {
+                        state = COMPLETE;
+                    }
+                    break;
+
+                default:
+                    throw new IllegalStateException("Unknown chunk state " + chunkState);
+            }
+        }
+
+        return copied;
+    }
+
+    private static long parseChunkSize(String sizeLine) throws IOException {
+        int extension = sizeLine.indexOf(';');
+        String size = ((-1 == extension) ? sizeLine : sizeLine.substring(0, extension)).trim();
+
+        try {
+            long result = Long.parseLong(size, 16);
+
+            if (result < 0) {
+                throw new IOException("Malformed chunk size : " + sizeLine);
+            }
+
+            return result;
+        } catch (NumberFormatException notNumber) {
+            throw new IOException("Malformed chunk size : " + sizeLine);
+        }
+    }
+
+    /**
+     * Prepares the decoder for the next request on the same connection.
+     */
+    void reset() {
+        state = HEAD;
+        chunkState = CHUNK_SIZE;
+        line.setLength(0);
+        headSize = 0;
+        method = null;
+        path = null;
+        query = null;
+        http11 = false;
+        headers.clear();
+        contentLength = 0;
+        chunked = false;
+        remaining = 0;
+    }
+
+    boolean isHeadComplete() {
+        return HEAD != state;
+    }
+
+    /**
+     * Tells whether the request, including its body, has been completely
+     * decoded.
+     *
+     * @return {@code true} if the request is complete.
+     */
+    boolean isComplete() {
+        return COMPLETE == state;
+    }
+
+    String getMethod() {
+        return method;
+    }
+
+    /**
+     * Returns the path of the request URI, without the query.
+     *
+     * @return The path of the request URI.
+     */
+    String getPath() {
+        return path;
+    }
+
+    /**
+     * Returns the query of the request URI.
+     *
+     * @return The query or {@code null} if the URI had none.
+     */
+    String getQuery() {
+        return query;
+    }
+
+    /**
+     * Returns the value of a request header.
+     *
+     * @param name The header name, in any case.
+     * @return The header value or {@code null} if the header was not present.
+     */
+    String getHeader(String name) {
+        return headers.get(name.toLowerCase());
+    }
+
+    /**
+     * Tells whether the connection may carry further requests once this
+     * request has been answered.
+     *
+     * @return {@code true} if the connection is persistent.
+     */
+    boolean isKeepAlive() {
+        String connection = headers.get("connection");
+
+        if (http11) {
+            return !"close".equalsIgnoreCase(connection);
+        } else {
+            return "keep-alive".equalsIgnoreCase(connection);
+        }
+    }
+
+    boolean isHttp11() {
+        return http11;
+    }
+
+    /**
+     * Returns the declared length of the request body.
+     *
+     * @return The length of the body or {@code -1} if it is chunked.
+     */
+    long getContentLength() {
+        return contentLength;
+    }
+
+    boolean isChunked() {
+        return chunked;
+    }
+
+    /**
+     * Tells whether the request has a body.
+     *
+     * @return {@code true} if the request has a body.
+     */
+    boolean hasBody() {
+        return chunked || (contentLength > 0);
+    }
+}
@@ -0,0 +1,1084 @@
+/*
+ * Copyright (c) 2001-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+
+package net.jxta.impl.endpoint.servlethttp;
+
+import net.jxta.document.MimeMediaType;
+import net.jxta.endpoint.EndpointAddress;
+import net.jxta.endpoint.Message;
+import net.jxta.endpoint.WireFormatMessage;
+import net.jxta.endpoint.WireFormatMessageFactory;
+import net.jxta.impl.endpoint.EndpointServiceImpl;
+import net.jxta.impl.endpoint.msgframing.MessagePackageHeader;
+import net.jxta.impl.util.TimeUtils;
+import net.jxta.logging.Logging;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A client connection to the {@link HttpStreamReceiver}. Requests are decoded
+ * and answered by the receiver's selector thread; the only other threads
+ * which touch a connection are those sending messages on its back channel.
+ * <p/>
+ * The requests accepted are those of {@link HttpMessageServlet} :<ul>
+ * <li>PING : no message and no requestor. The response is our peer id.</li>
+ * <li>SEND : a message as the request body.</li>
+ * <li>POLL : a requestor, a response timeout and a destination address. The
+ * response is the back channel on which messages for the requestor are
+ * sent.</li>
+ * </ul>
+ * and two streaming variants of them :<ul>
+ * <li>A chunked SEND whose content type is
+ * {@link ServletHttpTransport#STREAM_MIME_TYPE}. The body is a sequence of
+ * messages, each preceded by a {@link MessagePackageHeader}, which are
+ * processed as they arrive. The request ends when the client ends the
+ * body. If the request has the {@link ServletHttpTransport#STREAM_HEADER}
+ * header, messages carry a {@link ServletHttpTransport#STREAM_SEQUENCE_HEADER}
+ * and are acknowledged on the back channel of the client message stream.</li>
+ * <li>A POLL with the {@link ServletHttpTransport#STREAM_HEADER} header. The
+ * response begins immediately and remains open until no message has been
+ * sent for the response timeout, rather than ending at a fixed time after
+ * the request began. It is the back channel of the client message stream
+ * named by the header.</li>
+ * </ul>
+ */
+final class HttpStreamConnection {
+
+    /**
+     * Logger
+     */
+    private final static transient Logger LOG = Logger.getLogger(HttpStreamConnection.class.getName());
+
+    /**
+     * The size of the buffer into which requests are read.
+     */
+    private final static int READ_BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * The initial size of the buffer in which chunked request bodies are
+     * accumulated.
+     */
+    private final static int INITIAL_BODY_SIZE = 16 * 1024;
+
+    /**
+     * The largest request body or streamed message we accept.
+     */
+    final static int MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * The number of bytes queued on the back channel beyond which senders
+     * wait for the client to catch up.
+     */
+    private final static int MAX_QUEUED_BYTES = 256 * 1024;
+
+    /**
+     * How long a sender will wait for room on a congested back channel.
+     */
+    private final static long MAX_SENDING_WAIT = 3 * TimeUtils.ASECOND;
+
+    /**
+     * The maximum duration in milliseconds we will wait for a back channel
+     * message.
+     */
+    private final static long MAXIMUM_RESPONSE_DURATION = 2 * TimeUtils.AMINUTE;
+
+    /**
+     * How long a connection may remain idle between requests.
+     */
+    private final static long IDLE_TIMEOUT = 5 * TimeUtils.AMINUTE;
+
+    private final static int READING = 0;
+    private final static int RESPONDING = 1;
+    private final static int CLOSED = 2;
+
+    /**
+     * The back channel response is a single message with a content length.
+     */
+    private final static int RESPONSE_SINGLE = 0;
+
+    /**
+     * The back channel response is chunked.
+     */
+    private final static int RESPONSE_CHUNKED = 1;
+
+    /**
+     * The back channel response is ended by closing the connection.
+     */
+    private final static int RESPONSE_UNTIL_CLOSE = 2;
+
+    private final static byte[] CRLF = {'\r', '\n'};
+    private final static byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+
+    private final HttpStreamReceiver receiver;
+    private final SocketChannel channel;
+    private SelectionKey key = null;
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final HttpRequestDecoder decoder = new HttpRequestDecoder();
+
+    // The current request. Only accessed by the selector thread.
+
+    private long requestStart;
+    private EndpointAddress requestorAddr;
+    private EndpointAddress destAddr;
+    private long responseTimeout;
+    private long extraResponsesTimeout;
+    private boolean streamRequested;
+    private String streamId;
+    private MimeMediaType bodyType;
+    private boolean messageStream;
+    private ByteBuffer body;
+    private MessagePackageHeader frameHeader;
+    private long lastActivity = TimeUtils.timeNow();
+
+    // The response. Guarded by this object.
+
+    private volatile int state = READING;
+    private final LinkedList<ByteBuffer> writeQueue = new LinkedList<ByteBuffer>();
+    private long queuedBytes = 0;
+    private boolean closeAfterFlush = false;
+
+    /**
+     * If {@code true} the back channel has ended and the connection returns
+     * to reading requests once the response has been written.
+     */
+    private boolean responseEnding = false;
+
+    private HttpStreamMessenger messenger = null;
+    private String backChannelStream = null;
+    private boolean backChannelOpen = false;
+    private boolean endBackChannel = false;
+    private boolean headersSent = false;
+    private boolean keepAlive = false;
+    private int responseMode;
+    private long deadline = Long.MAX_VALUE;
+
+    HttpStreamConnection(HttpStreamReceiver receiver, SocketChannel channel) {
+        this.receiver = receiver;
+        this.channel = channel;
+    }
+
+    /**
+     * Registers this connection with the receiver's selector.
+     *
+     * @param selector the selector.
+     * @throws ClosedChannelException if the channel was closed.
+     */
+    void register(Selector selector) throws ClosedChannelException {
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+    }
+
+    /**
+     * Reads and processes whatever is available from the client.
+     */
+    void readable() {
+        int read;
+
+        try {
+            read = channel.read(readBuffer);
+        } catch (IOException failed) {
+            if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+                LOG.log(Level.FINE, "Read failed for " + this, failed);
+            }
+            close();
+            return;
+        }
+
+        if (read < 0) {
+            close();
+            return;
+        }
+
+        lastActivity = TimeUtils.timeNow();
+        processInput();
+    }
+
+    /**
+     * Writes as much of the queued response as the channel accepts.
+     */
+    void writable() {
+        boolean failed = false;
+        boolean shutdown = false;
+        boolean resume = false;
+
+        synchronized (this) {
+            try {
+                while (!writeQueue.isEmpty()) {
+                    ByteBuffer[] buffers = writeQueue.toArray(new ByteBuffer[writeQueue.size()]);
+                    long written = channel.write(buffers);
+
+                    queuedBytes -= written;
+                    while (!writeQueue.isEmpty() && !writeQueue.getFirst().hasRemaining()) {
+                        writeQueue.removeFirst();
+                    }
+
+                    if (0 == written) {
+                        break;
+                    }
+                }
+            } catch (IOException ioe) {
+                if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+                    LOG.log(Level.FINE, "Write failed for " + this, ioe);
+                }
+                failed = true;
+            }
+
+            // There may be room for waiting senders.
+            notifyAll();
+
+            if (writeQueue.isEmpty()) {
+                if (closeAfterFlush) {
+                    shutdown = true;
+                } else if (responseEnding) {
+                    responseEnding = false;
+                    state = READING;
+                    resume = true;
+                }
+            }
+        }
+
+        lastActivity = TimeUtils.timeNow();
+
+        if (failed || shutdown) {
+            close();
+            return;
+        }
+
+        if (resume) {
+            decoder.reset();
+            // process any requests which arrived while we were responding.
+            processInput();
+        } else {
+            updateInterest();
+        }
+    }
+
+    /**
+     * Ends the back channel if it is done or has expired and closes the
+     * connection if it has been idle for too long.
+     *
+     * @param now the current time.
+     */
+    void update(long now) {
+        HttpStreamMessenger ended = null;
+        boolean idle = false;
+
+        synchronized (this) {
+            if (CLOSED == state) {
+                return;
+            }
+
+            if (backChannelOpen && (endBackChannel || (now >= deadline))) {
+                ended = messenger;
+                endResponse();
+            } else if ((READING == state) && writeQueue.isEmpty()
+                    && (TimeUtils.toRelativeTimeMillis(now, lastActivity) > IDLE_TIMEOUT)) {
+                idle = true;
+            }
+        }
+
+        if (null != ended) {
+            ended.close();
+        }
+
+        if (idle) {
+            if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+                LOG.fine("Closing idle " + this);
+            }
+            close();
+            return;
+        }
+
+        updateInterest();
+    }
+
+    /**
+     * Closes the connection and its back channel messenger.
+     */
+    void close() {
+        HttpStreamMessenger closing;
+
+        synchronized (this) {
+            if (CLOSED == state) {
+                return;
+            }
+
+            state = CLOSED;
+            closing = messenger;
+            messenger = null;
+            backChannelOpen = false;
+            streamBackChannelClosed();
+            writeQueue.clear();
+            queuedBytes = 0;
+            notifyAll();
+        }
+
+        if (null != key) {
+            key.cancel();
+        }
+
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // ignored
+        }
+
+        if (null != closing) {
+            closing.close();
+        }
+
+        if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+            LOG.fine("Closed " + this);
+        }
+    }
+
+    /**
+     * Queues a message on the back channel. Called by the messenger's sending
+     * thread.
+     *
+     * @param sender   the messenger sending the message.
+     * @param serialed the serialized message.
+     * @throws IOException if the back channel has been closed or remains
+     *                     congested.
+     */
+    void sendMessage(HttpStreamMessenger sender, WireFormatMessage serialed) throws IOException {
+        long length = serialed.getByteLength();
+        ByteBuffer[] parts = serialed.getByteBuffers();
+
+        synchronized (this) {
+            long waitUntil = TimeUtils.toAbsoluteTimeMillis(MAX_SENDING_WAIT);
+
+            while (isBackChannel(sender) && (queuedBytes > MAX_QUEUED_BYTES)) {
+                long waitFor = TimeUtils.toRelativeTimeMillis(waitUntil);
+
+                if (waitFor <= 0) {
+                    throw new IOException("Back channel congested");
+                }
+
+                try {
+                    wait(waitFor);
+                } catch (InterruptedException woken) {
+                    Thread.interrupted();
+                    throw new InterruptedIOException("Interrupted waiting for back channel");
+                }
+            }
+
+            if (!isBackChannel(sender)) {
+                throw new IOException("Back channel closed");
+            }
+
+            enqueueMessage(length, parts);
+        }
+
+        receiver.messageSent();
+        receiver.wantUpdate(this);
+    }
+
+    /**
+     * Queues an acknowledgement of the client message stream on the back
+     * channel. Unlike messages, acknowledgements do not wait for a congested
+     * back channel. Called by the selector thread.
+     *
+     * @param ack the serialized acknowledgement message.
+     */
+    void sendAck(WireFormatMessage ack) {
+        synchronized (this) {
+            if (!backChannelOpen || endBackChannel) {
+                return;
+            }
+
+            enqueueMessage(ack.getByteLength(), ack.getByteBuffers());
+        }
+
+        receiver.wantUpdate(this);
+    }
+
+    /**
+     * Queues a message on the back channel and extends the response deadline.
+     * Must be called while synchronized.
+     *
+     * @param length the length of the serialized message.
+     * @param parts  the serialized message.
+     */
+    private void enqueueMessage(long length, ByteBuffer[] parts) {
+        if (!headersSent) {
+            enqueue(responseHead("200 OK", EndpointServiceImpl.DEFAULT_MESSAGE_TYPE.toString(),
+                    (RESPONSE_SINGLE == responseMode) ? length : -1));
+            headersSent = true;
+        }
+
+        if (RESPONSE_CHUNKED == responseMode) {
+            enqueue(ByteBuffer.wrap(ascii(Long.toHexString(length) + "\r\n")));
+            enqueue(parts);
+            enqueue(ByteBuffer.wrap(CRLF));
+        } else {
+            enqueue(parts);
+        }
+
+        if (RESPONSE_SINGLE == responseMode) {
+            endBackChannel = true;
+        } else if (streamRequested) {
+            deadline = TimeUtils.toAbsoluteTimeMillis(responseTimeout);
+        } else {
+            // Adjust the quit time based upon the extra response time available.
+            deadline = TimeUtils.toAbsoluteTimeMillis(extraResponsesTimeout, requestStart);
+        }
+    }
+
+    /**
+     * Notification that the back channel messenger has been closed.
+     *
+     * @param closed the messenger.
+     */
+    void messengerClosed(HttpStreamMessenger closed) {
+        synchronized (this) {
+            if (!isBackChannel(closed)) {
+                return;
+            }
+
+            endBackChannel = true;
+            notifyAll();
+        }
+
+        receiver.wantUpdate(this);
+    }
+
+    /**
+     * Returns {@code true} if messages may be sent by the specified messenger.
+     * Must be called while synchronized.
+     *
+     * @param sender the messenger.
+     * @return {@code true} if the back channel is open for the messenger.
+     */
+    private boolean isBackChannel(HttpStreamMessenger sender) {
+        return backChannelOpen && !endBackChannel && (messenger == sender);
+    }
+
+    /**
+     * Completes the back channel response. Must be called while synchronized.
+     */
+    private void endResponse() {
+        backChannelOpen = false;
+        endBackChannel = false;
+        messenger = null;
+        deadline = Long.MAX_VALUE;
+        streamBackChannelClosed();
+
+        if (!headersSent) {
+            // We know we did not respond anything.
+            enqueue(responseHead("200 OK", null, 0));
+        } else if (RESPONSE_CHUNKED == responseMode) {
+            enqueue(ByteBuffer.wrap(LAST_CHUNK));
+        } else if (RESPONSE_UNTIL_CLOSE == responseMode) {
+            keepAlive = false;
+        }
+
+        if (keepAlive) {
+            responseEnding = true;
+        } else {
+            closeAfterFlush = true;
+        }
+
+        notifyAll();
+    }
+
+    /**
+     * Tells the receiver that this connection no longer carries the back
+     * channel of a client message stream. Must be called while synchronized.
+     */
+    private void streamBackChannelClosed() {
+        if (null != backChannelStream) {
+            receiver.streamBackChannelClosed(backChannelStream, this);
+            backChannelStream = null;
+        }
+    }
+
+    private void processInput() {
+        readBuffer.flip();
+        try {
+            decodeRequests();
+        } catch (IOException bad) {
+            if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
+                LOG.log(Level.WARNING, "Bad request from " + this, bad);
+            }
+
+            synchronized (this) {
+                if (READING == state) {
+                    keepAlive = false;
+                    enqueue(responseHead("400 Bad Request", null, 0));
+                    closeAfterFlush = true;
+                    state = RESPONDING;
+                }
+            }
+        } finally {
+            readBuffer.compact();
+        }
+
+        updateInterest();
+    }
+
+    private void decodeRequests() throws IOException {
+        while (READING == state) {
+            if (!decoder.isHeadComplete()) {
+                if (!decoder.decodeHead(readBuffer)) {
+                    return;
+                }
+                beginRequest();
+            }
+
+            if (!decoder.isComplete()) {
+                decodeBody();
+                if (!decoder.isComplete()) {
+                    return;
+                }
+            }
+
+            completeRequest();
+        }
+    }
+
+    private void beginRequest() throws IOException {
+        requestStart = TimeUtils.timeNow();
+        receiver.requestReceived();
+
+        requestorAddr = getRequestorAddress(decoder.getPath());
+        parseQuery(decoder.getQuery());
+        streamId = decoder.getHeader(ServletHttpTransport.STREAM_HEADER);
+        streamRequested = (null != streamId);
+
+        String contentType = decoder.getHeader("Content-Type");
+
+        bodyType = (null == contentType) ? EndpointServiceImpl.DEFAULT_MESSAGE_TYPE : MimeMediaType.valueOf(contentType);
+        messageStream = decoder.isChunked() && ServletHttpTransport.STREAM_MIME_TYPE.equalsIngoringParams(bodyType);
+        frameHeader = null;
+        body = null;
+
+        if (decoder.hasBody()) {
+            if (decoder.getContentLength() > MAX_MESSAGE_SIZE) {
+                throw new IOException("Request body too large : " + decoder.getContentLength());
+            }
+
+            body = ByteBuffer.allocate(decoder.isChunked() ? INITIAL_BODY_SIZE : (int) decoder.getContentLength());
+        }
+
+        if ("100-continue".equalsIgnoreCase(decoder.getHeader("Expect"))) {
+            synchronized (this) {
+                enqueue(ByteBuffer.wrap(ascii("HTTP/1.1 100 Continue\r\n\r\n")));
+            }
+        }
+
+        if (Logging.SHOW_FINER && LOG.isLoggable(Level.FINER)) {
+            LOG.finer("New JXTA Request for Requestor=" + requestorAddr + "\n\tResponse Timeout=" + responseTimeout
+                    + "\tAdditional Response Timeout=" + extraResponsesTimeout + "\tRequest Destination Address=" + destAddr
+                    + "\tHas Message Content=" + decoder.hasBody() + "\tStream=" + (messageStream || streamRequested));
+        }
+    }
+
+    private void decodeBody() throws IOException {
+        while (readBuffer.hasRemaining() && !decoder.isComplete()) {
+            if (!body.hasRemaining()) {
+                growBody();
+            }
+
+            decoder.decodeBody(readBuffer, body);
+
+            if (messageStream) {
+                processFrames();
+            }
+        }
+    }
+
+    private void growBody() throws IOException {
+        if (body.capacity() >= MAX_MESSAGE_SIZE) {
+            throw new IOException("Request body too large");
+        }
+
+        ByteBuffer larger = ByteBuffer.allocate(Math.min(body.capacity() * 2, MAX_MESSAGE_SIZE));
+
+        body.flip();
+        larger.put(body);
+        body = larger;
+    }
+
+    /**
+     * Processes the complete messages accumulated from a message stream.
+     * Numbered messages are handed to the endpoint only if the receiver has
+     * not seen them and are then acknowledged.
+     *
+     * @throws IOException if the stream framing is broken.
+     */
+    private void processFrames() throws IOException {
+        boolean sequenced = false;
+
+        body.flip();
+        try {
+            while (true) {
+                if (null == frameHeader) {
+                    MessagePackageHeader header = new MessagePackageHeader();
+
+                    if (!header.readHeader(body)) {
+                        break;
+                    }
+
+                    long length = header.getContentLengthHeader();
+
+                    if ((length < 0) || (length > MAX_MESSAGE_SIZE)) {
+                        throw new IOException("Bad message length in stream : " + length);
+                    }
+
+                    frameHeader = header;
+                }
+
+                int length = (int) frameHeader.getContentLengthHeader();
+
+                if (body.remaining() < length) {
+                    break;
+                }
+
+                ByteBuffer content = body.slice();
+
+                content.limit(length);
+                body.position(body.position() + length);
+
+                long sequence = getSequence(frameHeader);
+
+                if (-1 == sequence) {
+                    processMessage(content, frameHeader.getContentTypeHeader(), frameHeader.getContentCodingHeader());
+                } else {
+                    sequenced = true;
+
+                    if (receiver.frameReceived(streamId, sequence)) {
+                        processMessage(content, frameHeader.getContentTypeHeader(), frameHeader.getContentCodingHeader());
+                    } else if (Logging.SHOW_FINER && LOG.isLoggable(Level.FINER)) {
+                        LOG.finer("Discarding message " + sequence + " of stream " + streamId + " from " + this);
+                    }
+                }
+                frameHeader = null;
+            }
+        } finally {
+            body.compact();
+        }
+
+        if (sequenced) {
+            // Duplicates are acknowledged too, the client may have missed our acknowledgement.
+            receiver.acknowledge(streamId);
+        }
+    }
+
+    /**
+     * Returns the sequence number of a message of a client message stream.
+     *
+     * @param header the message package header of the message.
+     * @return the sequence number or {@code -1} if the message is not numbered.
+     * @throws IOException if the sequence number is malformed.
+     */
+    private long getSequence(MessagePackageHeader header) throws IOException {
+        if (null == streamId) {
+            return -1;
+        }
+
+        Iterator<MessagePackageHeader.Header> sequenceHeader = header.getHeader(ServletHttpTransport.STREAM_SEQUENCE_HEADER);
+
+        if (!sequenceHeader.hasNext()) {
+            return -1;
+        }
+
+        String sequence = sequenceHeader.next().getValueString();
+
+        try {
+            long result = Long.parseLong(sequence);
+
+            if (result <= 0) {
+                throw new IOException("Bad message sequence number in stream : " + sequence);
+            }
+
+            return result;
+        } catch (NumberFormatException notNumber) {
+            throw new IOException("Bad message sequence number in stream : " + sequence);
+        }
+    }
+
+    private void completeRequest() throws IOException {
+        if (decoder.hasBody() && !messageStream) {
+            body.flip();
+            if (!processMessage(body, bodyType, null)) {
+                throw new IOException("Message was not a valid JXTA message");
+            }
+        } else if (messageStream && (null != frameHeader)) {
+            throw new IOException("Message stream ended within a message");
+        }
+
+        body = null;
+        frameHeader = null;
+        keepAlive = decoder.isKeepAlive();
+
+        if ((null == requestorAddr) && !decoder.hasBody()) {
+            pingResponse();
+        } else if ((null != requestorAddr) && (responseTimeout >= 0) && (null != destAddr)) {
+            openBackChannel();
+            return;
+        } else {
+            synchronized (this) {
+                // No response was desired.
+                enqueue(responseHead("200 OK", null, 0));
+            }
+        }
+
+        finishRequest();
+    }
+
+    /**
+     * Prepares for the next request once a response has been queued.
+     */
+    private void finishRequest() {
+        synchronized (this) {
+            if (!keepAlive) {
+                closeAfterFlush = true;
+                state = RESPONDING;
+            }
+        }
+
+        decoder.reset();
+    }
+
+    private void pingResponse() {
+        if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+            LOG.fine("Responding to \'ping\' request with 200 and peerID");
+        }
+
+        byte[] pingResponseBytes = receiver.getPingResponseBytes();
+
+        synchronized (this) {
+            enqueue(responseHead("200 OK", MimeMediaType.TEXTUTF8.toString(), pingResponseBytes.length));
+            enqueue(ByteBuffer.wrap(pingResponseBytes));
+        }
+    }
+
+    private void openBackChannel() {
+        if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+            LOG.fine("Creating back channel messenger for " + requestorAddr + " (" + destAddr + ")");
+        }
+
+        HttpStreamMessenger newMessenger = new HttpStreamMessenger(receiver.servletHttpTransport.group.getPeerGroupID(),
+                receiver.getLocalAddress(), requestorAddr, this);
+
+        synchronized (this) {
+            state = RESPONDING;
+            messenger = newMessenger;
+            backChannelOpen = true;
+            endBackChannel = false;
+            headersSent = false;
+
+            if (streamRequested || (extraResponsesTimeout >= 0)) {
+                responseMode = decoder.isHttp11() ? RESPONSE_CHUNKED : RESPONSE_UNTIL_CLOSE;
+            } else {
+                responseMode = RESPONSE_SINGLE;
+            }
+
+            if (streamRequested) {
+                // Begin the stream now so that the client knows it is open.
+                enqueue(responseHead("200 OK", EndpointServiceImpl.DEFAULT_MESSAGE_TYPE.toString(), -1));
+                headersSent = true;
+                deadline = TimeUtils.toAbsoluteTimeMillis(responseTimeout);
+                backChannelStream = streamId;
+            } else {
+                deadline = TimeUtils.toAbsoluteTimeMillis(responseTimeout, requestStart);
+            }
+        }
+
+        if (streamRequested) {
+            receiver.streamBackChannelOpened(streamId, this);
+        }
+
+        receiver.backChannelOpened(newMessenger, destAddr);
+    }
+
+    /**
+     * Decodes and dispatches a message.
+     *
+     * @param content the message content.
+     * @param type    the message MIME type.
+     * @param coding  the content coding or {@code null}.
+     * @return {@code true} if the message was valid.
+     */
+    private boolean processMessage(ByteBuffer content, MimeMediaType type, MimeMediaType coding) {
+        Message msg;
+
+        try {
+            msg = WireFormatMessageFactory.fromBuffer(content, type, coding);
+        } catch (NoSuchElementException noValidWireFormat) {
+            if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
+                LOG.warning("Unrecognized content type MIME type : " + type);
+            }
+            return false;
+        } catch (IOException malformed) {
+            if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
+                LOG.log(Level.WARNING, "Malformed JXTA message from " + this, malformed);
+            }
+            return false;
+        }
+
+        receiver.messageReceived(msg);
+        return true;
+    }
+
+    /**
+     * Sets the interest operations for the current state. Only called by the
+     * selector thread.
+     */
+    private void updateInterest() {
+        int ops = 0;
+
+        synchronized (this) {
+            if (CLOSED == state) {
+                return;
+            }
+
+            if (!writeQueue.isEmpty()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+        }
+
+        // Keep reading while there is room so that we notice the client
+        // closing its connection.
+        if (readBuffer.hasRemaining()) {
+            ops |= SelectionKey.OP_READ;
+        }
+
+        try {
+            key.interestOps(ops);
+        } catch (CancelledKeyException cancelled) {
+            close();
+        }
+    }
+
+    /**
+     * Must be called while synchronized.
+     *
+     * @param buffers the buffers to add to the response.
+     */
+    private void enqueue(ByteBuffer... buffers) {
+        if (CLOSED == state) {
+            return;
+        }
+
+        for (ByteBuffer buffer : buffers) {
+            queuedBytes += buffer.remaining();
+        }
+        writeQueue.addAll(Arrays.asList(buffers));
+    }
+
+    /**
+     * Builds a response head.
+     *
+     * @param status        the status code and reason.
+     * @param contentType   the content type or {@code null}.
+     * @param contentLength the content length or {@code -1} if the response
+     *                      is chunked or ends when the connection closes.
+     * @return the response head.
+     */
+    private ByteBuffer responseHead(String status, String contentType, long contentLength) {
+        StringBuilder head = new StringBuilder(128);
+
+        head.append("HTTP/1.1 ").append(status).append("\r\n");
+        if (null != contentType) {
+            head.append("Content-Type: ").append(contentType).append("\r\n");
+        }
+
+        if (contentLength >= 0) {
+            head.append("Content-Length: ").append(contentLength).append("\r\n");
+        } else if (RESPONSE_CHUNKED == responseMode) {
+            head.append("Transfer-Encoding: chunked\r\n");
+        }
+
+        if (!keepAlive || ((contentLength < 0) && (RESPONSE_UNTIL_CLOSE == responseMode))) {
+            head.append("Connection: close\r\n");
+        }
+
+        head.append(ServletHttpTransport.STREAM_HEADER).append(": 1\r\n");
+        head.append("\r\n");
+
+        return ByteBuffer.wrap(ascii(head.toString()));
+    }
+
+    /**
+     * Parses the query string. The query string is of the format
+     * {@code responseTimeout,extraResponsesTimeout,destAddr}; the times are
+     * in milliseconds.
+     *
+     * @param query the query string or {@code null}.
+     * @throws IOException if the destination address is malformed.
+     */
+    private void parseQuery(String query) throws IOException {
+        responseTimeout = 0;
+        extraResponsesTimeout = -1;
+        destAddr = null;
+
+        if (null == query) {
+            return;
+        }
+
+        int commaIndex = query.indexOf(',');
+
+        if (-1 == commaIndex) {
+            responseTimeout = getTimeout(query);
+            return;
+        }
+
+        responseTimeout = getTimeout(query.substring(0, commaIndex));
+
+        String moreQueryParams = query.substring(commaIndex + 1);
+
+        commaIndex = moreQueryParams.indexOf(',');
+        if (-1 == commaIndex) {
+            extraResponsesTimeout = getTimeout(moreQueryParams);
+            return;
+        }
+
+        extraResponsesTimeout = getTimeout(moreQueryParams.substring(0, commaIndex));
+
+        try {
+            destAddr = new EndpointAddress(moreQueryParams.substring(commaIndex + 1));
+        } catch (IllegalArgumentException badAddr) {
+            IOException failure = new IOException("Bad destination address");
+
+            failure.initCause(badAddr);
+            throw failure;
+        }
+    }
+
+    /**
+     * Returns a timeout from the query string or -1 if it is not a number.
+     * Like {@link HttpMessageServlet} we limit how long clients may keep
+     * a response open.
+     *
+     * @param timeoutString the timeout.
+     * @return the timeout in milliseconds.
+     */
+    private static long getTimeout(String timeoutString) {
+        try {
+            long timeout = Long.parseLong(timeoutString);
+
+            if ((timeout > MAXIMUM_RESPONSE_DURATION) || (0 == timeout)) {
+                timeout = MAXIMUM_RESPONSE_DURATION;
+            }
+
+            return timeout;
+        } catch (NumberFormatException notNumber) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the address of the peer making the request from the request
+     * path, if given.
+     *
+     * @param path the request path.
+     * @return the requestor address or {@code null}.
+     */
+    private static EndpointAddress getRequestorAddress(String path) {
+        if (null == path) {
+            return null;
+        }
+
+        int begin = 0;
+        int end = path.length();
+
+        while ((begin < end) && ('/' == path.charAt(begin))) {
+            begin++;
+        }
+
+        while ((end > begin) && ('/' == path.charAt(end - 1))) {
+            end--;
+        }
+
+        if (begin == end) {
+            return null;
+        }
+
+        return new EndpointAddress("jxta", path.substring(begin, end), null, null);
+    }
+
+    private static byte[] ascii(String text) {
+        try {
+            return text.getBytes("ISO-8859-1");
+        } catch (UnsupportedEncodingException never) {
+            throw new Error("Required ISO-8859-1 encoding not available.");
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "HttpStreamConnection " + channel.socket().getRemoteSocketAddress();
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2001-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+
+package net.jxta.impl.endpoint.servlethttp;
+
+import net.jxta.endpoint.EndpointAddress;
+import net.jxta.endpoint.Message;
+import net.jxta.endpoint.MessageElement;
+import net.jxta.endpoint.StringMessageElement;
+import net.jxta.endpoint.WireFormatMessage;
+import net.jxta.endpoint.WireFormatMessageFactory;
+import net.jxta.impl.endpoint.BlockingMessenger;
+import net.jxta.impl.endpoint.EndpointServiceImpl;
+import net.jxta.logging.Logging;
+import net.jxta.peergroup.PeerGroupID;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The back channel messenger of a polling or streaming client connected to
+ * the {@link HttpStreamReceiver}. Messages are serialized by the sending
+ * thread and queued on the client's connection; the receiver's selector
+ * thread writes them out. Unlike {@link HttpServletMessenger} no thread is
+ * held waiting for messages while the back channel is open.
+ */
+final class HttpStreamMessenger extends BlockingMessenger {
+
+    /**
+     * Logger
+     */
+    private final static transient Logger LOG = Logger.getLogger(HttpStreamMessenger.class.getName());
+
+    private final static EndpointAddress nullEndpointAddr = new EndpointAddress("http", "0.0.0.0:0", null, null);
+
+    private final EndpointAddress logicalAddress;
+    private final MessageElement srcAddressElement;
+
+    /**
+     * The connection on which messages are sent.
+     */
+    private final HttpStreamConnection connection;
+
+    /**
+     * Constructs the messenger.
+     *
+     * @param peerGroupID    the peer group id
+     * @param srcAddress     source address
+     * @param logicalAddress logical address of the client
+     * @param connection     the connection of the client
+     */
+    HttpStreamMessenger(PeerGroupID peerGroupID, EndpointAddress srcAddress, EndpointAddress logicalAddress, HttpStreamConnection connection) {
+
+        // We do not use self destruction.
+        super(peerGroupID, nullEndpointAddr, false);
+
+        this.logicalAddress = logicalAddress;
+        this.connection = connection;
+        this.srcAddressElement = new StringMessageElement(EndpointServiceImpl.MESSAGE_SOURCE_NAME, srcAddress.toString(), null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void closeImpl() {
+        if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+            LOG.fine("close\n\t" + toString());
+        }
+
+        super.close();
+
+        connection.messengerClosed(this);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public EndpointAddress getLogicalDestinationImpl() {
+        return logicalAddress;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isIdleImpl() {
+        // We do not use self destruction.
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void sendMessageBImpl(Message message, String service, String serviceParam) throws IOException {
+        if (isClosed()) {
+            IOException failure = new IOException("Messenger was closed, it cannot be used to send messages.");
+
+            if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+                LOG.log(Level.FINE, failure.getMessage(), failure);
+            }
+
+            throw failure;
+        }
+
+        // Set the message with the appropriate src and dest address
+        message.replaceMessageElement(EndpointServiceImpl.MESSAGE_SOURCE_NS, srcAddressElement);
+
+        EndpointAddress destAddressToUse = getDestAddressToUse(service, serviceParam);
+
+        MessageElement dstAddressElement = new StringMessageElement(EndpointServiceImpl.MESSAGE_DESTINATION_NAME,
+                destAddressToUse.toString(), null);
+
+        message.replaceMessageElement(EndpointServiceImpl.MESSAGE_DESTINATION_NS, dstAddressElement);
+
+        WireFormatMessage serialed = WireFormatMessageFactory.toWire(message, EndpointServiceImpl.DEFAULT_MESSAGE_TYPE, null);
+
+        try {
+            connection.sendMessage(this, serialed);
+        } catch (IOException failed) {
+            if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+                LOG.log(Level.FINE, "Failed sending " + message + " on back channel to " + logicalAddress, failed);
+            }
+
+            throw failed;
+        }
+
+        if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+            LOG.fine("Queued " + message + " on back channel to " + logicalAddress);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p/>An implementation for debugging. Do not depend on the format.
+     */
+    @Override
+    public String toString() {
+        return "[" + super.toString() + "] isClosed=" + isClosed() + " connection=" + connection;
+    }
+}
@@ -0,0 +1,682 @@
+/*
+ * Copyright (c) 2001-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+
+package net.jxta.impl.endpoint.servlethttp;
+
+import net.jxta.endpoint.EndpointAddress;
+import net.jxta.endpoint.EndpointService;
+import net.jxta.endpoint.Message;
+import net.jxta.endpoint.MessageReceiver;
+import net.jxta.endpoint.Messenger;
+import net.jxta.endpoint.MessengerEvent;
+import net.jxta.endpoint.MessengerEventListener;
+import net.jxta.endpoint.StringMessageElement;
+import net.jxta.endpoint.WireFormatMessage;
+import net.jxta.endpoint.WireFormatMessageFactory;
+import net.jxta.exception.PeerGroupException;
+import net.jxta.impl.endpoint.EndpointServiceImpl;
+import net.jxta.impl.util.TimeUtils;
+import net.jxta.logging.Logging;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Message Receiver for the server side which serves HTTP from a single
+ * selector thread rather than from the embedded Jetty server.
+ * <p/>
+ * Requests are answered as {@link HttpMessageServlet} answers them so that
+ * existing clients are unaffected. Additionally, clients may keep one
+ * persistent streaming connection open in each direction; see
+ * {@link HttpStreamConnection}. Waiting clients hold no thread, only a
+ * connection.
+ * <p/>
+ * The messages of each client message stream are numbered. We hand each to
+ * the endpoint once, in order, discarding those sent again, and acknowledge
+ * them cumulatively on the client's streaming back channel.
+ */
+class HttpStreamReceiver implements MessageReceiver, Runnable {
+
+    /**
+     * Logger
+     */
+    private final static transient Logger LOG = Logger.getLogger(HttpStreamReceiver.class.getName());
+
+    /**
+     * How often we check connections for expired back channels and idleness.
+     */
+    private final static long SWEEP_INTERVAL = TimeUtils.ASECOND;
+
+    /**
+     * How long we remember a client message stream which has no back channel
+     * and is not used.
+     */
+    private final static long STREAM_STATE_TIMEOUT = 30 * TimeUtils.AMINUTE;
+
+    /**
+     * The ServletHttpTransport that created this MessageReceiver.
+     */
+    final ServletHttpTransport servletHttpTransport;
+
+    /**
+     * The public addresses for the this transport.
+     */
+    private final List<EndpointAddress> publicAddresses;
+
+    /**
+     * Our address, the source of messages sent on back channels.
+     */
+    private final EndpointAddress localAddress;
+
+    private final byte[] pingResponseBytes;
+
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+
+    /**
+     * Connections whose back channel or interest operations must be updated
+     * by the selector thread.
+     */
+    private final Queue<HttpStreamConnection> updates = new ConcurrentLinkedQueue<HttpStreamConnection>();
+
+    /**
+     * The client message streams we know of, by stream identifier.
+     */
+    private final Map<String, ClientStream> streams = new HashMap<String, ClientStream>();
+
+    private Thread selectorThread = null;
+    private volatile boolean stopped = false;
+
+    /**
+     * The listener to invoke when making an incoming messenger.
+     */
+    private MessengerEventListener messengerEventListener;
+
+    private final AtomicLong connectionsAccepted = new AtomicLong();
+    private final AtomicLong requestsReceived = new AtomicLong();
+    private final AtomicLong messagesReceived = new AtomicLong();
+    private final AtomicLong messagesSent = new AtomicLong();
+    private final AtomicLong backChannelsOpened = new AtomicLong();
+
+    HttpStreamReceiver(ServletHttpTransport servletHttpTransport, List<EndpointAddress> publicAddresses, InetAddress useInterface, int port) throws PeerGroupException {
+        this.servletHttpTransport = servletHttpTransport;
+        this.publicAddresses = publicAddresses;
+
+        String peerId = servletHttpTransport.group.getPeerID().getUniqueValue().toString();
+
+        localAddress = new EndpointAddress("jxta", peerId, null, null);
+
+        try {
+            pingResponseBytes = peerId.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException never) {
+            throw new Error("Required UTF-8 encoding not available.");
+        }
+
+        try {
+            selector = SelectorProvider.provider().openSelector();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(new InetSocketAddress(useInterface, port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException failed) {
+            PeerGroupException failure = new PeerGroupException("Could not open server socket on " + useInterface + ":" + port);
+
+            failure.initCause(failed);
+            throw failure;
+        }
+
+        if (Logging.SHOW_CONFIG && LOG.isLoggable(Level.CONFIG)) {
+            StringBuilder configInfo = new StringBuilder("Configuring HTTP Stream Message Transport : " + servletHttpTransport.assignedID);
+
+            configInfo.append("\n\tBound to=").append(serverChannel.socket().getLocalSocketAddress());
+            configInfo.append("\n\tMax message size=").append(HttpStreamConnection.MAX_MESSAGE_SIZE);
+
+            LOG.config(configInfo.toString());
+        }
+    }
+
+    synchronized void start() throws PeerGroupException {
+        selectorThread = new Thread(servletHttpTransport.group.getHomeThreadGroup(), this,
+                "HTTP stream receiver for " + serverChannel.socket().getLocalSocketAddress());
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+
+        messengerEventListener = servletHttpTransport.getEndpointService().addMessageTransport(this);
+        if (messengerEventListener == null) {
+            throw new PeerGroupException("Transport registration refused");
+        }
+
+        if (Logging.SHOW_INFO && LOG.isLoggable(Level.INFO)) {
+            LOG.info("HTTP Stream Transport started.");
+        }
+    }
+
+    synchronized void stop() {
+        servletHttpTransport.getEndpointService().removeMessageTransport(this);
+        messengerEventListener = null;
+
+        stopped = true;
+        selector.wakeup();
+
+        try {
+            serverChannel.close();
+        } catch (IOException ignored) {
+            // ignored
+        }
+
+        if (Logging.SHOW_INFO && LOG.isLoggable(Level.INFO)) {
+            LOG.info("HTTP Stream Transport stopped. connections=" + connectionsAccepted.get() + " requests=" + requestsReceived.get()
+                    + " received=" + messagesReceived.get() + " sent=" + messagesSent.get() + " back channels=" + backChannelsOpened.get());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p/>Accepts connections and services them until stopped.
+     */
+    public void run() {
+        try {
+            long nextSweep = TimeUtils.toAbsoluteTimeMillis(SWEEP_INTERVAL);
+
+            while (!stopped) {
+                HttpStreamConnection updated;
+
+                while (null != (updated = updates.poll())) {
+                    updated.update(TimeUtils.timeNow());
+                }
+
+                long untilSweep = TimeUtils.toRelativeTimeMillis(nextSweep);
+
+                if (untilSweep > 0) {
+                    selector.select(untilSweep);
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+
+                    it.remove();
+
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+
+                        HttpStreamConnection connection = (HttpStreamConnection) key.attachment();
+
+                        if (key.isReadable()) {
+                            connection.readable();
+                        }
+
+                        if (key.isValid() && key.isWritable()) {
+                            connection.writable();
+                        }
+                    } catch (CancelledKeyException cancelled) {
+                        // the connection was closed.
+                    }
+                }
+
+                if (TimeUtils.toRelativeTimeMillis(nextSweep) <= 0) {
+                    long now = TimeUtils.timeNow();
+
+                    for (SelectionKey key : new ArrayList<SelectionKey>(selector.keys())) {
+                        Object attachment = key.attachment();
+
+                        if (attachment instanceof HttpStreamConnection) {
+                            ((HttpStreamConnection) attachment).update(now);
+                        }
+                    }
+
+                    expireStreams(now);
+                    nextSweep = TimeUtils.toAbsoluteTimeMillis(SWEEP_INTERVAL);
+                }
+            }
+        } catch (ClosedSelectorException closed) {
+            // stopping
+        } catch (Throwable all) {
+            if (Logging.SHOW_SEVERE && LOG.isLoggable(Level.SEVERE)) {
+                LOG.log(Level.SEVERE, "Uncaught Throwable in thread :" + Thread.currentThread().getName(), all);
+            }
+        } finally {
+            closeAll();
+            selectorThread = null;
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel accepted = serverChannel.accept();
+
+        if (null == accepted) {
+            return;
+        }
+
+        accepted.configureBlocking(false);
+        accepted.socket().setTcpNoDelay(true);
+
+        HttpStreamConnection connection = new HttpStreamConnection(this, accepted);
+
+        connection.register(selector);
+        connectionsAccepted.incrementAndGet();
+
+        if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+            LOG.fine("Accepted " + connection);
+        }
+    }
+
+    private void closeAll() {
+        try {
+            for (SelectionKey key : new ArrayList<SelectionKey>(selector.keys())) {
+                Object attachment = key.attachment();
+
+                if (attachment instanceof HttpStreamConnection) {
+                    ((HttpStreamConnection) attachment).close();
+                }
+            }
+        } catch (ClosedSelectorException ignored) {
+            // already closed
+        }
+
+        try {
+            serverChannel.close();
+            selector.close();
+        } catch (IOException ignored) {
+            // ignored
+        }
+    }
+
+    /**
+     * Asks the selector thread to update a connection.
+     *
+     * @param connection the connection.
+     */
+    void wantUpdate(HttpStreamConnection connection) {
+        updates.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Hands an incoming message to the endpoint.
+     *
+     * @param msg the message.
+     */
+    void messageReceived(final Message msg) {
+        messagesReceived.incrementAndGet();
+
+        final EndpointService endpoint = getEndpointService();
+
+        if (null == endpoint) {
+            return;
+        }
+
+        if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+            LOG.fine("Handing " + msg + " to the endpoint.");
+        }
+
+        try {
+            servletHttpTransport.executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        endpoint.processIncomingMessage(msg);
+                    } catch (Throwable e) {
+                        if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
+                            LOG.log(Level.WARNING, "Failure demuxing an incoming message", e);
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException rejected) {
+            if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
+                LOG.log(Level.WARNING, "Executor rejected " + msg, rejected);
+            }
+        }
+    }
+
+    /**
+     * Offers a new back channel messenger to the endpoint. The offer is made
+     * from the executor since the listener may immediately send messages.
+     *
+     * @param messenger the back channel messenger.
+     * @param connAddr  the destination address of the poll request.
+     */
+    void backChannelOpened(final HttpStreamMessenger messenger, final EndpointAddress connAddr) {
+        backChannelsOpened.incrementAndGet();
+
+        try {
+            servletHttpTransport.executor.execute(new Runnable() {
+                public void run() {
+                    boolean taken = messengerReadyEvent(messenger, connAddr);
+
+                    if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+                        LOG.fine("Incoming messenger to: " + messenger.getLogicalDestinationAddress() + " taken=" + taken);
+                    }
+
+                    if (!taken) {
+                        // nobody cares. Just destroy it.
+                        messenger.close();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException rejected) {
+            messenger.close();
+        }
+    }
+
+    /**
+     * Notify messenger listener that we are ready.
+     *
+     * @param newMessenger new messenger
+     * @param connAddr conenction endpoint address
+     * @return {@code true} if the listener claimed the messenger, {@code false}
+     *  otherwise
+     */
+    boolean messengerReadyEvent(Messenger newMessenger, EndpointAddress connAddr) {
+        MessengerEventListener temp = messengerEventListener;
+
+        return null != temp && temp.messengerReady(new MessengerEvent(this, newMessenger, connAddr));
+    }
+
+    /**
+     * Notification that a numbered message of a client message stream was
+     * received. Only the message following those already received is
+     * accepted; the others were sent again or follow a lost message.
+     *
+     * @param streamId the stream identifier.
+     * @param sequence the sequence number of the message.
+     * @return {@code true} if the message should be handed to the endpoint,
+     *         {@code false} if it should be discarded.
+     */
+    boolean frameReceived(String streamId, long sequence) {
+        synchronized (streams) {
+            ClientStream stream = getStream(streamId);
+
+            if (stream.received < 0) {
+                // We don't know this stream, or forgot it. Begin where it is.
+                stream.received = sequence - 1;
+            }
+
+            if (sequence != (stream.received + 1)) {
+                return false;
+            }
+
+            stream.received = sequence;
+            return true;
+        }
+    }
+
+    /**
+     * Tells the client which messages of its message stream we have received
+     * by sending an acknowledgement on its back channel, if it has one open.
+     *
+     * @param streamId the stream identifier.
+     */
+    void acknowledge(String streamId) {
+        HttpStreamConnection backChannel;
+        long received;
+
+        synchronized (streams) {
+            ClientStream stream = streams.get(streamId);
+
+            if ((null == stream) || (null == stream.backChannel) || (stream.received <= 0)) {
+                return;
+            }
+
+            backChannel = stream.backChannel;
+            received = stream.received;
+        }
+
+        Message ack = new Message();
+
+        ack.addMessageElement(new StringMessageElement(ServletHttpTransport.STREAM_ACK_ELEMENT_NAME, Long.toString(received), null));
+        backChannel.sendAck(WireFormatMessageFactory.toWire(ack, EndpointServiceImpl.DEFAULT_MESSAGE_TYPE, null));
+    }
+
+    /**
+     * Notification that the streaming back channel of a client message stream
+     * has opened. The client is told again what we have received, in case
+     * acknowledgements were lost with a previous back channel.
+     *
+     * @param streamId   the stream identifier.
+     * @param connection the connection on which the back channel is open.
+     */
+    void streamBackChannelOpened(String streamId, HttpStreamConnection connection) {
+        synchronized (streams) {
+            getStream(streamId).backChannel = connection;
+        }
+
+        acknowledge(streamId);
+    }
+
+    /**
+     * Notification that the streaming back channel of a client message stream
+     * has ended.
+     *
+     * @param streamId   the stream identifier.
+     * @param connection the connection on which the back channel was open.
+     */
+    void streamBackChannelClosed(String streamId, HttpStreamConnection connection) {
+        synchronized (streams) {
+            ClientStream stream = streams.get(streamId);
+
+            if ((null != stream) && (stream.backChannel == connection)) {
+                stream.backChannel = null;
+                stream.lastUsed = TimeUtils.timeNow();
+            }
+        }
+    }
+
+    /**
+     * Returns the state of a client message stream, creating it if needed.
+     * Must be called while synchronized on the streams.
+     *
+     * @param streamId the stream identifier.
+     * @return the stream state.
+     */
+    private ClientStream getStream(String streamId) {
+        ClientStream stream = streams.get(streamId);
+
+        if (null == stream) {
+            stream = new ClientStream();
+            streams.put(streamId, stream);
+        }
+
+        stream.lastUsed = TimeUtils.timeNow();
+        return stream;
+    }
+
+    /**
+     * Forgets the client message streams which have been unused for too long.
+     *
+     * @param now the current time.
+     */
+    private void expireStreams(long now) {
+        synchronized (streams) {
+            Iterator<ClientStream> eachStream = streams.values().iterator();
+
+            while (eachStream.hasNext()) {
+                ClientStream stream = eachStream.next();
+
+                if ((null == stream.backChannel) && (TimeUtils.toRelativeTimeMillis(now, stream.lastUsed) > STREAM_STATE_TIMEOUT)) {
+                    eachStream.remove();
+                }
+            }
+        }
+    }
+
+    void requestReceived() {
+        requestsReceived.incrementAndGet();
+    }
+
+    void messageSent() {
+        messagesSent.incrementAndGet();
+    }
+
+    EndpointAddress getLocalAddress() {
+        return localAddress;
+    }
+
+    byte[] getPingResponseBytes() {
+        return pingResponseBytes;
+    }
+
+    /**
+     * Returns the local address to which the server is bound.
+     *
+     * @return the local socket address.
+     */
+    InetSocketAddress getLocalSocketAddress() {
+        return (InetSocketAddress) serverChannel.socket().getLocalSocketAddress();
+    }
+
+    public long getConnectionsAccepted() {
+        return connectionsAccepted.get();
+    }
+
+    public long getRequestsReceived() {
+        return requestsReceived.get();
+    }
+
+    public long getMessagesReceived() {
+        return messagesReceived.get();
+    }
+
+    public long getMessagesSent() {
+        return messagesSent.get();
+    }
+
+    public long getBackChannelsOpened() {
+        return backChannelsOpened.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Iterator<EndpointAddress> getPublicAddresses() {
+        return Collections.unmodifiableList(publicAddresses).iterator();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getProtocolName() {
+        return servletHttpTransport.HTTP_PROTOCOL_NAME;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public EndpointService getEndpointService() {
+        return servletHttpTransport.getEndpointService();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Object transportControl(Object operation, Object value) {
+        return null;
+    }
+
+    /**
+     * What we know of a client message stream. Guarded by the streams map.
+     */
+    private static class ClientStream {
+
+        /**
+         * The sequence number up to which we have received the stream's
+         * messages or {@code -1} if we have received none.
+         */
+        long received = -1;
+
+        /**
+         * The connection on which the client's streaming back channel is
+         * open or {@code null}.
+         */
+        HttpStreamConnection backChannel = null;
+
+        /**
+         * The last time at which the stream was used.
+         */
+        long lastUsed;
+    }
+}
@@ -58,6 +58,7 @@ package net.jxta.impl.endpoint.servlethttp;
 import net.jxta.document.Advertisement;
 import net.jxta.document.AdvertisementFactory;
 import net.jxta.document.Attribute;
+import net.jxta.document.MimeMediaType;
 import net.jxta.document.XMLElement;
 import net.jxta.endpoint.EndpointAddress;
 import net.jxta.endpoint.EndpointService;
@@ -97,6 +98,12 @@ import java.util.logging.Logger;
  * <li>An HTTP client message sender</li>
  * <li>An HTTP-server-based message receiver</li>
  * </ul>
+ *
+ * <p/>In streaming mode, enabled with {@link #STREAMING_SYSPROP}, the message
+ * receiver is a non-blocking HTTP server instead of the embedded Jetty
+ * server and clients keep one persistent streaming connection open in each
+ * direction with servers which support it. Streaming servers continue to
+ * answer the requests of clients which do not stream.
  */
 public final class ServletHttpTransport implements Module {
 
@@ -110,6 +117,38 @@ public final class ServletHttpTransport implements Module {
      */
     private final static String DEFAULT_HTTP_PROTOCOL_NAME = "http";
 
+    /**
+     * System property which enables streaming mode if {@code true}.
+     */
+    public final static String STREAMING_SYSPROP = "net.jxta.impl.endpoint.servlethttp.ServletHttpTransport.streaming";
+
+    /**
+     * The HTTP header with which streaming servers identify themselves in
+     * their responses. Clients send it with the identifier of their message
+     * stream to request a streaming back channel and on their streamed
+     * requests.
+     */
+    final static String STREAM_HEADER = "X-JXTA-Stream";
+
+    /**
+     * The content type of a streamed request body; a sequence of messages
+     * each preceded by a message package header.
+     */
+    final static MimeMediaType STREAM_MIME_TYPE = new MimeMediaType("application", "x-jxta-msg-stream").intern();
+
+    /**
+     * The message package header which carries the sequence number of each
+     * message of a streamed request body. Sequence numbers begin at 1.
+     */
+    final static String STREAM_SEQUENCE_HEADER = "sequence";
+
+    /**
+     * The name of the message element with which streaming servers tell the
+     * client, on its back channel, the highest sequence number up to which
+     * they have received its streamed messages.
+     */
+    final static String STREAM_ACK_ELEMENT_NAME = "HttpStreamAck";
+
     String HTTP_PROTOCOL_NAME = DEFAULT_HTTP_PROTOCOL_NAME;
 
     /**
@@ -141,6 +180,11 @@ public final class ServletHttpTransport implements Module {
      */
     private boolean configServer = false;
 
+    /**
+     * If {@code true} then we serve and use persistent streaming connections.
+     */
+    boolean streaming = false;
+
     /**
      * The HttpMessageSender instance
      */
@@ -151,6 +195,12 @@ public final class ServletHttpTransport implements Module {
      */
     private HttpMessageReceiver receiver = null;
 
+    /**
+     * The HttpStreamReceiver instance used instead of the HttpMessageReceiver
+     * in streaming mode.
+     */
+    private HttpStreamReceiver streamReceiver = null;
+
     /**
      * The TransportMeter for this httpTransport
      */
@@ -262,6 +312,8 @@ public final class ServletHttpTransport implements Module {
 
         configServer = httpAdv.isServerEnabled();
 
+        streaming = Boolean.getBoolean(STREAMING_SYSPROP);
+
         publicAddresses = getPublicAddresses(configServer, httpAdv.getServer(), usingInterface, usingPort, publicAddressOnly);
 
         if (!configClient && !configServer) {
@@ -289,6 +341,7 @@ public final class ServletHttpTransport implements Module {
             configInfo.append("\n\t\tProtocol: ").append(httpAdv.getProtocol());
             configInfo.append("\n\t\tClient Enabled: ").append(configClient);
             configInfo.append("\n\t\tServer Enabled: ").append(configServer);
+            configInfo.append("\n\t\tStreaming: ").append(streaming);
             configInfo.append("\n\t\tPublic address: ").append(httpAdv.getServer() == null ? "(unspecified)" : httpAdv.getServer());
             configInfo.append("\n\t\tInterface address: ").append(interfaceAddressStr == null ? "(unspecified)" : interfaceAddressStr);
             configInfo.append("\n\t\tUnicast Server Bind Addr: ").append(IPUtils.getHostAddress(usingInterface)).append(":").append(usingPort);
@@ -330,8 +383,13 @@ public final class ServletHttpTransport implements Module {
             // Start the http server that runs the receiver.
 
             try {
-                receiver = new HttpMessageReceiver(this, publicAddresses, usingInterface, usingPort);
-                receiver.start();
+                if (streaming) {
+                    streamReceiver = new HttpStreamReceiver(this, publicAddresses, usingInterface, usingPort);
+                    streamReceiver.start();
+                } else {
+                    receiver = new HttpMessageReceiver(this, publicAddresses, usingInterface, usingPort);
+                    receiver.start();
+                }
             } catch (PeerGroupException e) {
                 if (Logging.SHOW_SEVERE && LOG.isLoggable(Level.SEVERE)) {
                     LOG.log(Level.SEVERE, "Could not start http message receiver", e);
@@ -366,6 +424,10 @@ public final class ServletHttpTransport implements Module {
             receiver.stop();
         }
 
+        if (streamReceiver != null) {
+            streamReceiver.stop();
+        }
+
         if (sender != null) {
             sender.stop();
         }
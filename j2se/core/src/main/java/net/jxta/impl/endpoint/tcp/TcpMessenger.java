@@ -90,6 +90,8 @@ import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantLock;
@@ -206,6 +208,45 @@ public class TcpMessenger extends BlockingMessenger implements Runnable {
      */
     private final ReentrantLock writeLock = new ReentrantLock();
 
+    /**
+     * Small messages waiting to be packed into the next coalesced write. Only
+     * used if {@link TcpTransport#coalesceWrites} is enabled.
+     */
+    private final Queue<PendingWrite> pendingWrites = new ConcurrentLinkedQueue<PendingWrite>();
+
+    /**
+     * A serialized message waiting to be written as part of a coalesced
+     * write. All fields are only accessed while holding {@code writeLock}.
+     */
+    private static class PendingWrite {
+
+        /**
+         * The package header followed by the message body buffers.
+         */
+        final ByteBuffer[] buffers;
+
+        /**
+         * The total number of bytes in {@code buffers}.
+         */
+        final long size;
+
+        /**
+         * If {@code true} then the buffers have been written (or the write
+         * has failed).
+         */
+        boolean done = false;
+
+        /**
+         * The failure which occurred while writing, if any.
+         */
+        IOException failure = null;
+
+        PendingWrite(ByteBuffer[] buffers, long size) {
+            this.buffers = buffers;
+            this.size = size;
+        }
+    }
+
     /**
      * Create a new TcpMessenger for the specified address.
      *
@@ -574,8 +615,9 @@ public class TcpMessenger extends BlockingMessenger implements Runnable {
         // Send the welcome message
         WelcomeMessage myWelcome = new WelcomeMessage(fullDstAddress,
                                                       tcpTransport.getPublicAddress(),
-                                                      tcpTransport.group.getPeerID(), false);
-        long written = write(new ByteBuffer[]{myWelcome.getByteBuffer()});
+                                                      tcpTransport.group.getPeerID(), false, 0,
+                                                      TcpTransport.contentEncoding ? WireFormatMessageFactory.getSupportedContentEncodings() : null);
+        long written = write(new ByteBuffer[]{myWelcome.getByteBuffer()}, 0);
         tcpTransport.incrementBytesSent(written);
 
         if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
@@ -613,14 +655,27 @@ public class TcpMessenger extends BlockingMessenger implements Runnable {
         long size = 0;
 
         try {
-            // todo 20020730 bondolo@jxta.org Do something with content-coding here
             // serialize the message.
             WireFormatMessage serialed = WireFormatMessageFactory.toWire(msg, WireFormatMessageFactory.DEFAULT_WIRE_MIME, null);
 
+            // Apply a content encoding if the remote peer accepts one.
+            if (TcpTransport.contentEncoding && (null != itsWelcome)) {
+                long unencodedSize = serialed.getByteLength();
+
+                serialed = WireFormatMessageFactory.encode(serialed, itsWelcome.getContentEncodings());
+
+                if (TransportMeterBuildSettings.TRANSPORT_METERING && (transportBindingMeter != null) && (null != serialed.getContentEncoding())) {
+                    transportBindingMeter.messageEncoded(unencodedSize, serialed.getByteLength());
+                }
+            }
+
             // Build the package header
             MessagePackageHeader header = new MessagePackageHeader();
 
             header.setContentTypeHeader(serialed.getMimeType());
+            if (null != serialed.getContentEncoding()) {
+                header.setContentCodingHeader(serialed.getContentEncoding());
+            }
             size = serialed.getByteLength();
             header.setContentLengthHeader(size);
 
@@ -632,13 +687,18 @@ public class TcpMessenger extends BlockingMessenger implements Runnable {
 
             partBuffers.add(header.getByteBuffer());
             partBuffers.addAll(Arrays.asList(serialed.getByteBuffers()));
+            ByteBuffer[] buffers = partBuffers.toArray(new ByteBuffer[partBuffers.size()]);
 
             long written;
-            writeLock.lock();
-            try {
-                written = write(partBuffers.toArray(new ByteBuffer[partBuffers.size()]));
-            } finally {
-                writeLock.unlock();
+            if (TcpTransport.coalesceWrites && (size <= TcpTransport.CoalesceMessageThreshold)) {
+                written = coalescedWrite(buffers);
+            } else {
+                writeLock.lock();
+                try {
+                    written = write(buffers, 1);
+                } finally {
+                    writeLock.unlock();
+                }
             }
 
             if (TransportMeterBuildSettings.TRANSPORT_METERING && (transportBindingMeter != null)) {
@@ -674,27 +734,92 @@ public class TcpMessenger extends BlockingMessenger implements Runnable {
     }
 
     /**
-     * Blocking write of byte buffers to the socket channel.
+     * Queues a small message and writes it, together with any other small
+     * messages queued by concurrent senders, using as few vectored writes as
+     * possible. Whichever sender holds the write lock writes on behalf of the
+     * others; the senders whose messages were written by another thread
+     * return as soon as they acquire the lock.
      *
-     * @param byteBuffers The bytes to write.
-     * @return The number of bytes written.
+     * @param byteBuffers The package header and message buffers.
+     * @return The number of bytes written for this message.
      * @throws IOException Thrown for errors while writing message.
      */
-    private long write(final ByteBuffer[] byteBuffers) throws IOException {
-        long nBytes = 0;
-        for (ByteBuffer byteBuffer : byteBuffers) nBytes += write(byteBuffer);
-        return nBytes;
+    private long coalescedWrite(final ByteBuffer[] byteBuffers) throws IOException {
+        long size = 0;
+        for (ByteBuffer byteBuffer : byteBuffers) {
+            size += byteBuffer.remaining();
+        }
+
+        PendingWrite pending = new PendingWrite(byteBuffers, size);
+        pendingWrites.offer(pending);
+
+        writeLock.lock();
+        try {
+            while (!pending.done) {
+                List<PendingWrite> batch = new ArrayList<PendingWrite>();
+                List<ByteBuffer> batchBuffers = new ArrayList<ByteBuffer>();
+                long batchBytes = 0;
+                PendingWrite each;
+
+                while ((batchBytes < TcpTransport.CoalesceMaxBytes) && (null != (each = pendingWrites.poll()))) {
+                    batch.add(each);
+                    batchBuffers.addAll(Arrays.asList(each.buffers));
+                    batchBytes += each.size;
+                }
+
+                if (batch.isEmpty()) {
+                    // Can't happen. Our own entry is either queued or done.
+                    break;
+                }
+
+                IOException failure = null;
+                try {
+                    write(batchBuffers.toArray(new ByteBuffer[batchBuffers.size()]), batch.size());
+                } catch (IOException failed) {
+                    failure = failed;
+                }
+
+                for (PendingWrite written : batch) {
+                    written.failure = failure;
+                    written.done = true;
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+
+        if (null != pending.failure) {
+            IOException failure = new IOException("Coalesced write failed");
+            failure.initCause(pending.failure);
+            throw failure;
+        }
+
+        return size;
     }
 
-    private long write(final ByteBuffer byteBuffer) throws IOException {
+    /**
+     * Blocking gathering write of byte buffers to the socket channel.
+     *
+     * @param byteBuffers The bytes to write.
+     * @param messages    The number of messages contained in the buffers,
+     *                    used for metering.
+     * @return The number of bytes written.
+     * @throws IOException Thrown for errors while writing message.
+     */
+    private long write(final ByteBuffer[] byteBuffers, int messages) throws IOException {
         // Determine how many bytes there are to be written in the buffers.
-        long bytesToWrite = byteBuffer.remaining();
+        long bytesToWrite = 0;
+        for (ByteBuffer byteBuffer : byteBuffers) {
+            bytesToWrite += byteBuffer.remaining();
+        }
 
         if (bytesToWrite == 0L) {
             return 0L;
         }
 
         long bytesWritten = 0;
+        int syscalls = 0;
+        int offset = 0;
         Selector writeSelector = null;
         SelectionKey wKey = null;
         int attempts = 1;
@@ -703,7 +828,16 @@ public class TcpMessenger extends BlockingMessenger implements Runnable {
                 long wroteBytes;
                 // Write from the buffers until we write nothing.
                 do {
-                    wroteBytes = socketChannel.write(byteBuffer);
+                    // Skip the buffers which have been completely written.
+                    while ((offset < byteBuffers.length) && !byteBuffers[offset].hasRemaining()) {
+                        offset++;
+                    }
+                    if (offset == byteBuffers.length) {
+                        break;
+                    }
+
+                    wroteBytes = socketChannel.write(byteBuffers, offset, byteBuffers.length - offset);
+                    syscalls++;
                     bytesWritten += wroteBytes;
                     if (wroteBytes < 0) {
                         throw new EOFException();
@@ -761,6 +895,10 @@ public class TcpMessenger extends BlockingMessenger implements Runnable {
                 writeSelector.selectNow();
                 tcpTransport.returnSelector(writeSelector);
             }
+
+            if (TransportMeterBuildSettings.TRANSPORT_METERING && (transportBindingMeter != null) && (syscalls > 0)) {
+                transportBindingMeter.writeSyscalls(syscalls, bytesWritten, messages);
+            }
         }
         return bytesWritten;
     }
@@ -862,10 +1000,9 @@ public class TcpMessenger extends BlockingMessenger implements Runnable {
     }
 
     private Message processMessage(ByteBuffer buffer, MessagePackageHeader header) throws IOException {
-        // TODO 20020730 bondolo@jxta.org Do something with content-coding here.
         MimeMediaType msgMime = header.getContentTypeHeader();
 
-        return WireFormatMessageFactory.fromBuffer(buffer, msgMime, null);
+        return WireFormatMessageFactory.fromBuffer(buffer, msgMime, header.getContentCodingHeader());
     }
 
     /**
@@ -147,6 +147,43 @@ public class TcpTransport implements Module, MessageSender, MessageReceiver {
     // Java's default is 50
     static final int MaxAcceptCnxBacklog = 50;
 
+    /**
+     * System property which enables coalescing of small outgoing messages
+     * into a single vectored write.
+     */
+    public static final String COALESCE_WRITES_SYSPROP = "net.jxta.impl.endpoint.tcp.coalesceWrites";
+
+    /**
+     * If {@code true} then messengers pack small messages queued by
+     * concurrent senders into a single vectored write.
+     */
+    static boolean coalesceWrites = false;
+
+    /**
+     * Messages whose serialized size is at most this many bytes are eligible
+     * for write coalescing.
+     */
+    static final int CoalesceMessageThreshold = 4 * 1024; // 4 KBytes
+
+    /**
+     * The maximum number of bytes packed into a single coalesced write.
+     */
+    static final int CoalesceMaxBytes = SendBufferSize;
+
+    /**
+     * System property which controls whether messengers offer to receive
+     * messages with a content encoding (compression). Defaults to
+     * {@code true}. Encodings are only ever applied to messages sent to peers
+     * which offered them in their welcome message.
+     */
+    public static final String CONTENT_ENCODING_SYSPROP = "net.jxta.impl.endpoint.tcp.contentEncoding";
+
+    /**
+     * If {@code true} then our welcome message offers to accept the content
+     * encodings supported by the {@link net.jxta.endpoint.WireFormatMessageFactory}.
+     */
+    static boolean contentEncoding = true;
+
     private String serverName = null;
     private final List<EndpointAddress> publicAddresses = new ArrayList<EndpointAddress>();
     private EndpointAddress publicAddress = null;
@@ -231,6 +268,9 @@ public class TcpTransport implements Module, MessageSender, MessageReceiver {
                 LOG.warning("Could not parse system property: sun.net.client.defaultConnectTimeout");
             }
         }
+
+        coalesceWrites = Boolean.getBoolean(COALESCE_WRITES_SYSPROP);
+        contentEncoding = Boolean.valueOf(System.getProperty(CONTENT_ENCODING_SYSPROP, "true"));
     }
 
     /**
@@ -76,5 +76,6 @@ public class JTlsDefs {
 
     static final MimeMediaType MTYPE = new MimeMediaType("application/x-jxta-msg");
     static final MimeMediaType BLOCKS = new MimeMediaType("application/x-jxta-tls-block");
+    static final MimeMediaType ENGINE_BLOCKS = new MimeMediaType("application/x-jxta-tls-engine-block");
     static final MimeMediaType ACKS = new MimeMediaType("application/x-jxta-tls-ack");
 }
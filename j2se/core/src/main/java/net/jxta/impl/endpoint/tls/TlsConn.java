@@ -118,7 +118,7 @@ class TlsConn {
     /**
      * Are we client or server?
      */
-    private boolean client;
+    final boolean client;
     /**
      * State of the connection
      */
@@ -141,7 +141,7 @@ class TlsConn {
      * Our synthetic socket which sends and receives the ciphertext.
      */
     final TlsSocket tlsSocket;
-    private final SSLContext context;
+    final SSLContext context;
     /**
      * For interfacing with TLS
      */
@@ -197,16 +197,66 @@ class TlsConn {
      * Create a new connection
      */
     TlsConn(TlsTransport tp, EndpointAddress destAddr, boolean client) throws Exception {
+        this(tp, destAddr, client, newContext(tp), true);
+    }
+
+    /**
+     * Create a new connection.
+     *
+     * @param tp       the transport this connection is working for.
+     * @param destAddr the address of the remote peer.
+     * @param client   if {@code true} we are the client side.
+     * @param context  the context for the TLS session.
+     * @param socket   if {@code true} the TLS session is run over a {@link TlsSocket}. Subclasses which drive the
+     *                 session some other way pass {@code false} and override {@link #finishHandshake()},
+     *                 {@link #closeSession()}, {@link #sendMessage(Message)},
+     *                 {@link #queueIncomingMessage(Message)} and {@link #ackReceived(int, int[])}.
+     * @throws Exception if the connection cannot be created.
+     */
+    TlsConn(TlsTransport tp, EndpointAddress destAddr, boolean client, SSLContext context, boolean socket) throws Exception {
         this.transport = tp;
         this.destAddr = destAddr;
         this.client = client;
         this.currentState = client ? HandshakeState.CLIENTSTART : HandshakeState.SERVERSTART;
         this.lastAccessed = TimeUtils.timeNow();
+        this.context = context;
 
         if (Logging.SHOW_INFO && LOG.isLoggable(Level.INFO)) {
             LOG.info((client ? "Initiating" : "Accepting") + " new connection for : " + destAddr.getProtocolAddress());
         }
 
+        if (!socket) {
+            tlsSocket = null;
+            return;
+        }
+
+        javax.net.ssl.SSLSocketFactory factory = context.getSocketFactory();
+
+        // endpoint interface
+        TlsSocket newConnect = new TlsSocket(new JTlsInputStream(this, tp.MIN_IDLE_RECONNECT), new JTlsOutputStream(transport, this));
+
+        // open SSL socket and do the handshake
+        ssls = (SSLSocket) factory.createSocket(newConnect, destAddr.getProtocolAddress(), JTlsDefs.FAKEPORT, true);
+        ssls.setEnabledProtocols(new String[]{"TLSv1"});
+        ssls.setUseClientMode(client);
+        if (!client) {
+            ssls.setNeedClientAuth(true);
+        }
+
+        // We have to delay initialization of this until we have set the
+        // handshake mode.
+        tlsSocket = newConnect;
+    }
+
+    /**
+     * Creates the TLS context for a connection, using the transport's current
+     * credential and the trusted certificates of its PSE keystore.
+     *
+     * @param transport the transport the connection will be working for.
+     * @return the initialized context.
+     * @throws Exception if the context cannot be created.
+     */
+    static SSLContext newContext(TlsTransport transport) throws Exception {
         boolean choseTMF = false;
         javax.net.ssl.TrustManagerFactory tmf = null;
         String overrideTMF = System.getProperty("net.jxta.impl.endpoint.tls.TMFAlgorithm");
@@ -248,25 +298,10 @@ class TlsConn {
 
         javax.net.ssl.KeyManager[] kms = new javax.net.ssl.KeyManager[]{new PSECredentialKeyManager(transport.credential, trusted)};
 
-        context = SSLContext.getInstance("TLS");
+        SSLContext context = SSLContext.getInstance("TLS");
         context.init(kms, tms, null);
 
-        javax.net.ssl.SSLSocketFactory factory = context.getSocketFactory();
-
-        // endpoint interface
-        TlsSocket newConnect = new TlsSocket(new JTlsInputStream(this, tp.MIN_IDLE_RECONNECT), new JTlsOutputStream(transport, this));
-
-        // open SSL socket and do the handshake
-        ssls = (SSLSocket) factory.createSocket(newConnect, destAddr.getProtocolAddress(), JTlsDefs.FAKEPORT, true);
-        ssls.setEnabledProtocols(new String[]{"TLSv1"});
-        ssls.setUseClientMode(client);
-        if (!client) {
-            ssls.setNeedClientAuth(true);
-        }
-
-        // We have to delay initialization of this until we have set the
-        // handshake mode.
-        tlsSocket = newConnect;
+        return context;
     }
 
     /**
@@ -362,22 +397,7 @@ class TlsConn {
             setHandshakeState(HandshakeState.CONNECTIONCLOSING);
 
             try {
-                if (null != tlsSocket) {
-                    try {
-                        tlsSocket.close();
-                    } catch (IOException ignored) {
-                        ;
-                    }
-                }
-
-                if (null != ssls) {
-                    try {
-                        ssls.close();
-                    } catch (IOException ignored) {
-                        ;
-                    }
-                    ssls = null;
-                }
+                closeSession();
 
                 if (null != outBoundMessenger) {
                     outBoundMessenger.close();
@@ -400,6 +420,29 @@ class TlsConn {
         }
     }
 
+    /**
+     * Ends the TLS session as part of {@link #close(HandshakeState)}, before
+     * the messenger to the remote peer is closed.
+     */
+    void closeSession() {
+        if (null != tlsSocket) {
+            try {
+                tlsSocket.close();
+            } catch (IOException ignored) {
+                ;
+            }
+        }
+
+        if (null != ssls) {
+            try {
+                ssls.close();
+            } catch (IOException ignored) {
+                ;
+            }
+            ssls = null;
+        }
+    }
+
     /**
      * Used by the TlsManager and the TlsConn in order to send a message,
      * either a TLS connection establishment, or TLS fragments to the remote TLS.
@@ -468,6 +511,31 @@ class TlsConn {
         }
     }
 
+    /**
+     * Called by the TlsManager with each ciphertext message received from the
+     * remote peer for this connection, in the order they were received.
+     *
+     * @param msg the message containing TLS records.
+     */
+    void queueIncomingMessage(Message msg) {
+        TlsSocket bound = tlsSocket;
+
+        if (null != bound) {
+            bound.input.queueIncomingMessage(msg);
+        }
+    }
+
+    /**
+     * Called by the TlsManager with each acknowledgement received from the
+     * remote peer for this connection.
+     *
+     * @param seqack the highest sequence number received in order.
+     * @param sacs   the sorted sequence numbers received out of order.
+     */
+    void ackReceived(int seqack, int[] sacs) {
+        tlsSocket.output.ackReceived(seqack, sacs);
+    }
+
     /**
      * This is our message reader thread. This reads from the plaintext input
      * stream and dispatches messages received to the endpoint.
@@ -543,7 +611,7 @@ class TlsConn {
      * active PSECredentials. Currently the alias "theone" is used to refer to
      * the
      */
-    private static class PSECredentialKeyManager implements javax.net.ssl.X509KeyManager {
+    private static class PSECredentialKeyManager extends javax.net.ssl.X509ExtendedKeyManager {
 
         PSECredential cred;
         KeyStore trusted;
@@ -558,7 +626,7 @@ class TlsConn {
          */
         public String chooseClientAlias(String[] keyType, java.security.Principal[] issuers, java.net.Socket socket) {
             for (String aKeyType : Arrays.asList(keyType)) {
-                String result = checkTheOne(aKeyType, Arrays.asList(issuers));
+                String result = checkTheOne(aKeyType, (null == issuers) ? null : Arrays.asList(issuers));
 
                 if (null != result) {
                     return result;
@@ -573,7 +641,7 @@ class TlsConn {
          * special alias THE_ONE, returning it if so, and null otherwise.
          *
          * @param keyType    the type of key a Certificate must use to be considered
-         * @param allIssuers the issuers trusted by the other peer
+         * @param allIssuers the issuers trusted by the other peer or {@code null} if any issuer is acceptable
          * @return "theone" if one of the Certificates in this peer's PSECredential's
          *         Certificate chain matches the given keyType and one of the issuers,
          *         or <code>null</code>
@@ -590,7 +658,7 @@ class TlsConn {
                     LOG.fine("CHECKING: " + certificate.getIssuerX500Principal() + " in " + allIssuers);
                 }
 
-                if (allIssuers.contains(certificate.getIssuerX500Principal())) {
+                if ((null == allIssuers) || allIssuers.contains(certificate.getIssuerX500Principal())) {
                     return "theone";
                 }
             }
@@ -610,6 +678,25 @@ class TlsConn {
             }
         }
 
+        /**
+         * {@inheritDoc}
+         *
+         * <p/>The JSSE only asks an {@code X509ExtendedKeyManager} for
+         * aliases when the session is driven by an {@code SSLEngine}.
+         */
+        @Override
+        public String chooseEngineClientAlias(String[] keyType, java.security.Principal[] issuers, javax.net.ssl.SSLEngine engine) {
+            return chooseClientAlias(keyType, issuers, null);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String chooseEngineServerAlias(String keyType, java.security.Principal[] issuers, javax.net.ssl.SSLEngine engine) {
+            return chooseServerAlias(keyType, issuers, null);
+        }
+
         /**
          * {@inheritDoc}
          */
@@ -0,0 +1,1195 @@
+/*
+ * Copyright (c) 2001-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+
+package net.jxta.impl.endpoint.tls;
+
+import net.jxta.endpoint.ByteArrayMessageElement;
+import net.jxta.endpoint.EndpointAddress;
+import net.jxta.endpoint.Message;
+import net.jxta.endpoint.MessageElement;
+import net.jxta.endpoint.WireFormatMessage;
+import net.jxta.endpoint.WireFormatMessageFactory;
+import net.jxta.impl.endpoint.ByteBufferMessageElement;
+import net.jxta.impl.util.TimeUtils;
+import net.jxta.impl.util.threads.TaskManager;
+import net.jxta.logging.Logging;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A TLS connection which drives an {@link SSLEngine} directly rather than
+ * running an {@code SSLSocket} over a {@link TlsSocket}.
+ *
+ * <p/>The legacy connection dedicates a plaintext reader thread to each
+ * connection and retransmits each TLS record in its own message. Here the
+ * handshake and the decryption of received records run on whichever thread
+ * delivers the ciphertext, delegated handshake tasks run on the shared
+ * executor and no thread waits for the handshake to finish. Each plaintext
+ * message is encrypted by gathering its serialized buffers straight into the
+ * engine and the records produced are sent together in one ciphertext
+ * message.
+ *
+ * <p/>Ciphertext messages are numbered. The receiver restores their order and
+ * acknowledges them with the same sequential and selective acknowledgements
+ * as {@link JTlsInputStream}. The sender retransmits any message which is not
+ * acknowledged within a retransmission timeout estimated from the measured
+ * round trip times, or sooner if a later message has been acknowledged. The
+ * retransmissions are driven by a timer on the shared scheduled executor. If
+ * a message remains unacknowledged for {@link TlsTransport#RETRMAXAGE} the
+ * connection is closed as dead and the next message to the remote peer starts
+ * a new session.
+ *
+ * <p/>The wire format is not compatible with {@link TlsConn}. Both peers must
+ * enable {@link TlsTransport#ENGINE_MODE_SYSPROP}; the server side follows
+ * the mode of the client.
+ *
+ * <p/>Properties:
+ *
+ * <p/>net.jxta.impl.endpoint.tls.TlsEngineConn.protocols - if defined, the
+ * comma separated list of TLS protocol versions to enable.
+ */
+class TlsEngineConn extends TlsConn {
+
+    /**
+     * Logger
+     */
+    private static final transient Logger LOG = Logger.getLogger(TlsEngineConn.class.getName());
+
+    /**
+     * The system property which may define the enabled protocol versions.
+     */
+    public static final String PROTOCOLS_SYSPROP = "net.jxta.impl.endpoint.tls.TlsEngineConn.protocols";
+
+    /**
+     * The maximum number of ciphertext bytes sent in a single message. Larger
+     * plaintext messages are sent as several consecutive ciphertext messages.
+     */
+    static final int MAX_CIPHERTEXT_MESSAGE = 4 * 16 * 1024;
+
+    /**
+     * The maximum number of ciphertext messages held while waiting for a
+     * missing earlier message. Messages further ahead are discarded without
+     * being acknowledged and so will be retransmitted.
+     */
+    static final int MAX_REORDER = 128;
+
+    /**
+     * The maximum number of ciphertext messages sent but not yet
+     * acknowledged. Less than {@link #MAX_REORDER} so that the receiver can
+     * hold everything sent after a lost message.
+     */
+    static final int MAX_UNACKED = MAX_REORDER / 2;
+
+    /**
+     * The retransmission timeout used until a round trip time is measured.
+     */
+    static final long INITIAL_RTO = TimeUtils.ASECOND;
+
+    /**
+     * The lower bound of the retransmission timeout.
+     */
+    static final long MIN_RTO = 200;
+
+    /**
+     * The upper bound of the retransmission timeout.
+     */
+    static final long MAX_RTO = TimeUtils.AMINUTE;
+
+    private static final ByteBuffer[] EMPTY = {ByteBuffer.allocate(0)};
+
+    /**
+     * The TLS session.
+     */
+    final SSLEngine engine;
+
+    /**
+     * Protects {@link #engine} wrapping, {@link #netOut} and {@link #sequenceNumber}.
+     * May be acquired while holding {@link #unwrapLock} but not the reverse.
+     */
+    private final Object wrapLock = new String("wrapLock");
+
+    /**
+     * Protects {@link #engine} unwrapping, the received ciphertext and plaintext buffers and {@link #reorder}.
+     */
+    private final Object unwrapLock = new String("unwrapLock");
+
+    /**
+     * Ciphertext produced by the engine, reused between messages.
+     */
+    private ByteBuffer netOut;
+
+    /**
+     * Sequence number of the last ciphertext message we sent.
+     */
+    private int sequenceNumber = 0;
+
+    /**
+     * Ciphertext received but not yet unwrapped, ready for reading. Normally
+     * a view of the received message element rather than a copy.
+     */
+    private ByteBuffer netIn = ByteBuffer.allocate(0);
+
+    /**
+     * Plaintext received but not yet decoded into messages, ready for writing.
+     */
+    private ByteBuffer appIn;
+
+    /**
+     * The sequence number of the next ciphertext message to unwrap.
+     */
+    private int nextSequence = 1;
+
+    /**
+     * Ciphertext messages received ahead of {@link #nextSequence}.
+     */
+    private final SortedMap<Integer, MessageElement> reorder = new TreeMap<Integer, MessageElement>();
+
+    /**
+     * If {@code true} then delegated handshake tasks are running and the
+     * engine must not be used until they complete.
+     */
+    private boolean taskRunning = false;
+
+    /**
+     * Fails the handshake if it does not complete in time.
+     */
+    private ScheduledFuture<?> handshakeTimeout = null;
+
+    /**
+     * When the handshake started.
+     */
+    private long handshakeStarted = 0;
+
+    /**
+     * A ciphertext message which has been sent but not acknowledged.
+     */
+    private static class Unacked {
+        final Message msg;
+        final long firstSent;
+        long lastSent;
+        int sends = 1;
+
+        Unacked(Message msg, long sent) {
+            this.msg = msg;
+            this.firstSent = sent;
+            this.lastSent = sent;
+        }
+
+        /**
+         * Records a retransmission.
+         *
+         * @param now the time of the retransmission.
+         * @return a copy of the message to send.
+         */
+        Message resend(long now) {
+            lastSent = now;
+            sends++;
+            return msg.clone();
+        }
+    }
+
+    /**
+     * The ciphertext messages sent and not yet acknowledged, by sequence
+     * number. Also protects the round trip time estimates,
+     * {@link #retransmitTimer} and {@link #retransmitStopped}. May be acquired
+     * while holding {@link #wrapLock}.
+     */
+    private final SortedMap<Integer, Unacked> unacked = new TreeMap<Integer, Unacked>();
+
+    /**
+     * The smoothed round trip time or zero if none has been measured yet.
+     */
+    private long smoothedRTT = 0;
+
+    /**
+     * The variation of the round trip time.
+     */
+    private long rttVariation = 0;
+
+    /**
+     * The current retransmission timeout.
+     */
+    private long rto = INITIAL_RTO;
+
+    /**
+     * Retransmits the messages whose retransmission timeout has expired.
+     */
+    private ScheduledFuture<?> retransmitTimer = null;
+
+    /**
+     * If {@code true} then the session has been closed and nothing more is
+     * retransmitted.
+     */
+    private boolean retransmitStopped = false;
+
+    private final Runnable retransmitTask = new Runnable() {
+        public void run() {
+            try {
+                retransmitExpired();
+            } catch (Throwable all) {
+                if (Logging.SHOW_SEVERE && LOG.isLoggable(Level.SEVERE)) {
+                    LOG.log(Level.SEVERE, "Uncaught Throwable in TLS retransmission for " + TlsEngineConn.this, all);
+                }
+            }
+        }
+    };
+
+    /**
+     * Create a new connection.
+     *
+     * @param tp       the transport this connection is working for.
+     * @param destAddr the address of the remote peer.
+     * @param client   if {@code true} we are the client side.
+     * @throws Exception if the connection cannot be created.
+     */
+    TlsEngineConn(TlsTransport tp, EndpointAddress destAddr, boolean client) throws Exception {
+        this(tp, destAddr, client, newContext(tp));
+    }
+
+    /**
+     * Create a new connection using the provided context.
+     *
+     * @param tp       the transport this connection is working for.
+     * @param destAddr the address of the remote peer.
+     * @param client   if {@code true} we are the client side.
+     * @param context  the context for the TLS session.
+     * @throws Exception if the connection cannot be created.
+     */
+    TlsEngineConn(TlsTransport tp, EndpointAddress destAddr, boolean client, SSLContext context) throws Exception {
+        super(tp, destAddr, client, context, false);
+
+        engine = context.createSSLEngine(destAddr.getProtocolAddress(), JTlsDefs.FAKEPORT);
+
+        String protocols = System.getProperty(PROTOCOLS_SYSPROP);
+
+        if (null != protocols) {
+            engine.setEnabledProtocols(protocols.split("\\s*,\\s*"));
+        }
+
+        engine.setUseClientMode(client);
+        if (!client) {
+            engine.setNeedClientAuth(true);
+        }
+
+        netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p/>Starts the handshake and returns without waiting for it to
+     * complete. The state of the connection changes to
+     * {@link HandshakeState#HANDSHAKEFINISHED} or
+     * {@link HandshakeState#HANDSHAKEFAILED} once it does.
+     */
+    @Override
+    void finishHandshake() throws IOException {
+        if (Logging.SHOW_INFO && LOG.isLoggable(Level.INFO)) {
+            LOG.info((client ? "Client:" : "Server:") + " Handshake START");
+        }
+
+        handshakeStarted = TimeUtils.timeNow();
+        setHandshakeState(HandshakeState.HANDSHAKESTARTED);
+
+        synchronized (unwrapLock) {
+            handshakeTimeout = TaskManager.getTaskManager().getScheduledExecutorService().schedule(new Runnable() {
+                public void run() {
+                    if (HandshakeState.HANDSHAKESTARTED == getHandshakeState()) {
+                        if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
+                            LOG.warning("Handshake timed out for " + TlsEngineConn.this);
+                        }
+
+                        closeQuietly(HandshakeState.HANDSHAKEFAILED);
+                    }
+                }
+            }, transport.MIN_IDLE_RECONNECT, TimeUnit.MILLISECONDS);
+        }
+
+        try {
+            engine.beginHandshake();
+        } catch (SSLException failed) {
+            closeQuietly(HandshakeState.HANDSHAKEFAILED);
+            throw failed;
+        }
+
+        pump();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p/>Sends our close_notify to the remote peer.
+     */
+    @Override
+    void closeSession() {
+        ScheduledFuture<?> timeout;
+
+        synchronized (unwrapLock) {
+            timeout = handshakeTimeout;
+            handshakeTimeout = null;
+        }
+
+        if (null != timeout) {
+            timeout.cancel(false);
+        }
+
+        try {
+            engine.closeOutbound();
+            send(wrap(EMPTY));
+        } catch (IOException ignored) {
+            // the remote peer will find out eventually.
+        }
+
+        synchronized (unacked) {
+            retransmitStopped = true;
+            timeout = retransmitTimer;
+            retransmitTimer = null;
+            unacked.clear();
+            unacked.notifyAll();
+        }
+
+        if (null != timeout) {
+            timeout.cancel(false);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    void sendMessage(Message msg) throws IOException {
+        try {
+            if (HandshakeState.HANDSHAKEFINISHED != getHandshakeState()) {
+                throw new IOException("Connection not open : " + this);
+            }
+
+            WireFormatMessage serialed = WireFormatMessageFactory.toWire(msg, JTlsDefs.MTYPE, null);
+            ByteBuffer[] parts = serialed.getByteBuffers();
+            ByteBuffer[] srcs = new ByteBuffer[parts.length + 1];
+            int length = 0;
+
+            for (ByteBuffer part : parts) {
+                length += part.remaining();
+            }
+
+            srcs[0] = ByteBuffer.allocate(4);
+            srcs[0].putInt(length).flip();
+            System.arraycopy(parts, 0, srcs, 1, parts.length);
+
+            awaitAcknowledgements();
+            send(wrap(srcs));
+        } catch (IOException failed) {
+            if (Logging.SHOW_INFO && LOG.isLoggable(Level.INFO)) {
+                LOG.log(Level.INFO, "Closing " + this + " due to exception ", failed);
+            }
+
+            closeQuietly(HandshakeState.CONNECTIONDEAD);
+            throw failed;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    void queueIncomingMessage(Message msg) {
+        boolean ciphertext = false;
+        int seqack = 0;
+        List<Integer> sacks = new ArrayList<Integer>();
+
+        synchronized (unwrapLock) {
+            Iterator<MessageElement> eachElement = msg.getMessageElements(JTlsDefs.TLSNameSpace, JTlsDefs.ENGINE_BLOCKS);
+
+            while (eachElement.hasNext()) {
+                MessageElement elt = eachElement.next();
+                int seq;
+
+                try {
+                    seq = Integer.parseInt(elt.getElementName());
+                } catch (NumberFormatException badName) {
+                    if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
+                        LOG.warning("Discarding element with bad sequence number : " + elt.getElementName());
+                    }
+                    continue;
+                }
+
+                ciphertext = true;
+
+                if (seq < nextSequence) {
+                    if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+                        LOG.fine("Discarding duplicate ciphertext #" + seq);
+                    }
+                    continue;
+                }
+
+                if (seq - nextSequence >= MAX_REORDER) {
+                    if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+                        LOG.fine("Discarding ciphertext #" + seq + " too far ahead of #" + nextSequence);
+                    }
+                    continue;
+                }
+
+                reorder.put(seq, elt);
+            }
+
+            if (ciphertext) {
+                // Acknowledge what we hold, even if it was a duplicate, in
+                // case our previous acknowledgement was lost.
+                seqack = nextSequence - 1;
+
+                for (Integer held : reorder.keySet()) {
+                    if (held == seqack + 1) {
+                        seqack = held;
+                    } else {
+                        sacks.add(held);
+                    }
+                }
+            }
+        }
+
+        if (ciphertext) {
+            sendAck(seqack, sacks);
+        }
+
+        HandshakeState state = getHandshakeState();
+
+        // The server queues the first message before starting the handshake.
+        if ((HandshakeState.CLIENTSTART != state) && (HandshakeState.SERVERSTART != state)) {
+            pump();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p/>Acknowledged messages are forgotten. Unacknowledged messages sent
+     * before an acknowledged message are retransmitted unless they were sent
+     * within the last round trip time.
+     */
+    @Override
+    void ackReceived(int seqack, int[] sacs) {
+        List<Message> resend = new ArrayList<Message>();
+        long now = TimeUtils.timeNow();
+        int acked = 0;
+
+        synchronized (unacked) {
+            int highest = (sacs.length > 0) ? Math.max(seqack, sacs[sacs.length - 1]) : seqack;
+            Iterator<Map.Entry<Integer, Unacked>> eachUnacked = unacked.entrySet().iterator();
+
+            while (eachUnacked.hasNext()) {
+                Map.Entry<Integer, Unacked> anEntry = eachUnacked.next();
+                int seq = anEntry.getKey();
+                Unacked sent = anEntry.getValue();
+
+                if (seq > highest) {
+                    break;
+                }
+
+                if ((seq <= seqack) || (Arrays.binarySearch(sacs, seq) >= 0)) {
+                    // Only messages sent once give an unambiguous round trip time.
+                    if (1 == sent.sends) {
+                        sampleRTT(TimeUtils.toRelativeTimeMillis(now, sent.firstSent));
+                    }
+
+                    eachUnacked.remove();
+                    acked++;
+                } else if (TimeUtils.toRelativeTimeMillis(now, sent.lastSent) >= smoothedRTT) {
+                    if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+                        LOG.fine("Retransmitting ciphertext #" + seq + " missing before #" + highest);
+                    }
+
+                    resend.add(sent.resend(now));
+                }
+            }
+
+            if (acked > 0) {
+                unacked.notifyAll();
+            }
+        }
+
+        if (acked > 0) {
+            synchronized (lastAccessedLock) {
+                lastAccessed = now;
+            }
+        }
+
+        retransmit(resend);
+    }
+
+    /**
+     * Returns the number of ciphertext messages sent but not yet acknowledged.
+     *
+     * @return the number of unacknowledged messages.
+     */
+    int getUnackedCount() {
+        synchronized (unacked) {
+            return unacked.size();
+        }
+    }
+
+    /**
+     * Updates the round trip time estimates and the retransmission timeout.
+     * Must be called holding {@link #unacked}.
+     *
+     * @param rtt the measured round trip time.
+     */
+    private void sampleRTT(long rtt) {
+        if (0 == smoothedRTT) {
+            smoothedRTT = Math.max(rtt, 1);
+            rttVariation = rtt / 2;
+        } else {
+            rttVariation = (3 * rttVariation + Math.abs(smoothedRTT - rtt)) / 4;
+            smoothedRTT = Math.max((7 * smoothedRTT + rtt) / 8, 1);
+        }
+
+        rto = Math.min(Math.max(smoothedRTT + 4 * rttVariation, MIN_RTO), MAX_RTO);
+    }
+
+    /**
+     * Waits until fewer than {@link #MAX_UNACKED} ciphertext messages are
+     * unacknowledged.
+     *
+     * @throws IOException if the remote peer does not acknowledge our
+     *                     messages in time or the connection is closed.
+     */
+    private void awaitAcknowledgements() throws IOException {
+        synchronized (unacked) {
+            long giveUp = TimeUtils.toAbsoluteTimeMillis(transport.RETRMAXAGE);
+
+            while (!retransmitStopped && (unacked.size() >= MAX_UNACKED)) {
+                long wait = TimeUtils.toRelativeTimeMillis(giveUp);
+
+                if (wait <= 0) {
+                    throw new IOException("Ciphertext not acknowledged by " + destAddr);
+                }
+
+                try {
+                    unacked.wait(wait);
+                } catch (InterruptedException woken) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for acknowledgements from " + destAddr);
+                }
+            }
+
+            if (retransmitStopped) {
+                throw new IOException("Connection closed : " + this);
+            }
+        }
+    }
+
+    /**
+     * Schedules the retransmission of the unacknowledged messages for when
+     * the earliest retransmission timeout expires, unless already scheduled.
+     * Must be called holding {@link #unacked}.
+     */
+    private void scheduleRetransmit() {
+        if ((null != retransmitTimer) || retransmitStopped || unacked.isEmpty()) {
+            return;
+        }
+
+        long earliest = Long.MAX_VALUE;
+
+        for (Unacked sent : unacked.values()) {
+            earliest = Math.min(earliest, sent.lastSent);
+        }
+
+        long delay = Math.max(TimeUtils.toRelativeTimeMillis(TimeUtils.toAbsoluteTimeMillis(rto, earliest)), 1);
+
+        retransmitTimer = TaskManager.getTaskManager().getScheduledExecutorService().schedule(retransmitTask, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Retransmits the messages whose retransmission timeout has expired, or
+     * closes the connection if the oldest has not been acknowledged for
+     * {@link TlsTransport#RETRMAXAGE}.
+     */
+    private void retransmitExpired() {
+        List<Message> resend = new ArrayList<Message>();
+        boolean dead = false;
+
+        synchronized (unacked) {
+            retransmitTimer = null;
+
+            if (retransmitStopped || unacked.isEmpty()) {
+                return;
+            }
+
+            long now = TimeUtils.timeNow();
+            Unacked oldest = unacked.get(unacked.firstKey());
+
+            if (TimeUtils.toRelativeTimeMillis(now, oldest.firstSent) >= transport.RETRMAXAGE) {
+                dead = true;
+            } else {
+                for (Unacked sent : unacked.values()) {
+                    if (TimeUtils.toRelativeTimeMillis(now, sent.lastSent) >= rto) {
+                        resend.add(sent.resend(now));
+                    }
+                }
+
+                if (!resend.isEmpty()) {
+                    // Back off until an acknowledgement gives a new estimate.
+                    rto = Math.min(rto * 2, MAX_RTO);
+                }
+
+                scheduleRetransmit();
+            }
+        }
+
+        if (dead) {
+            if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
+                LOG.warning("Ciphertext not acknowledged within " + transport.RETRMAXAGE + "ms, closing " + this);
+            }
+
+            closeQuietly((HandshakeState.HANDSHAKEFINISHED == getHandshakeState())
+                    ? HandshakeState.CONNECTIONDEAD
+                    : HandshakeState.HANDSHAKEFAILED);
+            return;
+        }
+
+        retransmit(resend);
+    }
+
+    /**
+     * Sends retransmissions. Failures are left for the next retransmission.
+     *
+     * @param resend the ciphertext messages to send again.
+     */
+    private void retransmit(List<Message> resend) {
+        for (Message msg : resend) {
+            try {
+                if (!sendToRemoteTls(msg)) {
+                    break;
+                }
+            } catch (IOException failed) {
+                if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+                    LOG.log(Level.FINE, "Failed retransmitting to " + destAddr, failed);
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Acknowledges the ciphertext messages we have received.
+     *
+     * @param seqack the highest sequence number up to which every message has
+     *               been received.
+     * @param sacks  the sequence numbers of the other messages received, in
+     *               increasing order.
+     */
+    private void sendAck(int seqack, List<Integer> sacks) {
+        ByteBuffer acks = ByteBuffer.allocate((1 + sacks.size()) * 4);
+
+        acks.putInt(seqack);
+        for (Integer aSack : sacks) {
+            acks.putInt(aSack);
+        }
+
+        Message msg = new Message();
+
+        msg.addMessageElement(JTlsDefs.TLSNameSpace, new ByteArrayMessageElement(JTlsDefs.ACKKEY, JTlsDefs.ACKS, acks.array(), null));
+
+        try {
+            sendToRemoteTls(msg);
+        } catch (IOException failed) {
+            if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+                LOG.log(Level.FINE, "Failed acknowledging to " + destAddr, failed);
+            }
+        }
+    }
+
+    /**
+     * Delivers a decrypted message. Called without holding any connection locks.
+     *
+     * @param msg the plaintext message received from the remote peer.
+     */
+    void deliver(Message msg) {
+        if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+            LOG.fine("Dispatching " + msg + " to TlsTransport");
+        }
+
+        transport.processReceivedMessage(msg);
+    }
+
+    /**
+     * Advances the engine as far as the ciphertext received so far allows:
+     * handshake records are answered, delegated tasks are started and
+     * complete plaintext messages are delivered.
+     */
+    private void pump() {
+        List<Message> received = new ArrayList<Message>();
+        List<Message> replies = new ArrayList<Message>();
+        boolean finished = false;
+        boolean closed = false;
+        HandshakeState failed = null;
+
+        synchronized (unwrapLock) {
+            try {
+                while (!taskRunning) {
+                    SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+
+                    if (SSLEngineResult.HandshakeStatus.NEED_TASK == status) {
+                        runDelegatedTasks();
+                        break;
+                    }
+
+                    if (SSLEngineResult.HandshakeStatus.NEED_WRAP == status) {
+                        Wrapped wrapped = wrap(EMPTY);
+
+                        replies.addAll(wrapped.messages);
+                        finished |= wrapped.finished;
+                        if (engine.isOutboundDone()) {
+                            break;
+                        }
+                        continue;
+                    }
+
+                    if (!netIn.hasRemaining() && !nextCiphertext()) {
+                        break;
+                    }
+
+                    SSLEngineResult result = engine.unwrap(netIn, appIn);
+
+                    if (SSLEngineResult.HandshakeStatus.FINISHED == result.getHandshakeStatus()) {
+                        finished = true;
+                    }
+
+                    if (SSLEngineResult.Status.BUFFER_OVERFLOW == result.getStatus()) {
+                        decode(received);
+                        ensureAppInCapacity();
+                    } else if (SSLEngineResult.Status.BUFFER_UNDERFLOW == result.getStatus()) {
+                        if (!nextCiphertext()) {
+                            break;
+                        }
+                    } else if (SSLEngineResult.Status.CLOSED == result.getStatus()) {
+                        closed = true;
+                        break;
+                    } else {
+                        decode(received);
+                    }
+                }
+            } catch (IOException failure) {
+                if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
+                    LOG.log(Level.WARNING, "TLS failure for " + this, failure);
+                }
+
+                failed = (HandshakeState.HANDSHAKEFINISHED == getHandshakeState())
+                        ? HandshakeState.CONNECTIONDEAD
+                        : HandshakeState.HANDSHAKEFAILED;
+            }
+
+            if (!finished && (null == failed) && !taskRunning && (HandshakeState.HANDSHAKESTARTED == getHandshakeState())
+                    && (SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING == engine.getHandshakeStatus())) {
+                finished = true;
+            }
+        }
+
+        try {
+            send(replies);
+        } catch (IOException failure) {
+            if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
+                LOG.log(Level.WARNING, "Failed sending to " + destAddr, failure);
+            }
+
+            if (null == failed) {
+                failed = (HandshakeState.HANDSHAKEFINISHED == getHandshakeState())
+                        ? HandshakeState.CONNECTIONDEAD
+                        : HandshakeState.HANDSHAKEFAILED;
+            }
+        }
+
+        if (finished && (null == failed)) {
+            handshakeFinished();
+        }
+
+        for (Message msg : received) {
+            synchronized (lastAccessedLock) {
+                lastAccessed = TimeUtils.timeNow(); // update idle timer
+            }
+
+            deliver(msg);
+        }
+
+        if (null != failed) {
+            closeQuietly(failed);
+        } else if (closed) {
+            if (Logging.SHOW_INFO && LOG.isLoggable(Level.INFO)) {
+                LOG.info("Remote peer closed " + this);
+            }
+
+            closeQuietly(HandshakeState.CONNECTIONDEAD);
+        }
+    }
+
+    /**
+     * Makes the next ciphertext message in sequence available to unwrap. The
+     * element data is used in place unless a partial record remains from the
+     * previous message. Must be called holding {@link #unwrapLock}.
+     *
+     * @return {@code true} if more ciphertext was made available.
+     */
+    private boolean nextCiphertext() {
+        MessageElement elt = reorder.remove(nextSequence);
+
+        if (null == elt) {
+            return false;
+        }
+
+        nextSequence++;
+
+        ByteBuffer data;
+
+        if (elt instanceof ByteBufferMessageElement) {
+            data = ((ByteBufferMessageElement) elt).getByteBuffer();
+        } else {
+            data = ByteBuffer.wrap(elt.getBytes(false));
+        }
+
+        if (netIn.hasRemaining()) {
+            ByteBuffer joined = ByteBuffer.allocate(netIn.remaining() + data.remaining());
+
+            joined.put(netIn);
+            joined.put(data);
+            joined.flip();
+            netIn = joined;
+        } else {
+            netIn = data;
+        }
+
+        return true;
+    }
+
+    /**
+     * Decodes the complete messages in the received plaintext. Each message
+     * is preceded by its length. Must be called holding {@link #unwrapLock}.
+     *
+     * @param received the list to which decoded messages are added.
+     * @throws IOException if a message cannot be decoded.
+     */
+    private void decode(List<Message> received) throws IOException {
+        appIn.flip();
+
+        try {
+            while (appIn.remaining() >= 4) {
+                int length = appIn.getInt(appIn.position());
+
+                if (length < 0) {
+                    throw new IOException("Bad plaintext message length : " + length);
+                }
+
+                if (appIn.remaining() - 4 < length) {
+                    break;
+                }
+
+                ByteBuffer serialed = appIn.duplicate();
+
+                serialed.position(appIn.position() + 4);
+                serialed.limit(serialed.position() + length);
+                appIn.position(serialed.limit());
+
+                received.add(WireFormatMessageFactory.fromBuffer(serialed, JTlsDefs.MTYPE, null));
+            }
+        } finally {
+            appIn.compact();
+        }
+    }
+
+    /**
+     * Grows the received plaintext buffer so that the engine can unwrap
+     * another record into it. Must be called holding {@link #unwrapLock}.
+     */
+    private void ensureAppInCapacity() {
+        int needed = engine.getSession().getApplicationBufferSize();
+
+        if (appIn.remaining() < needed) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(appIn.capacity() * 2, appIn.position() + needed));
+
+            appIn.flip();
+            larger.put(appIn);
+            appIn = larger;
+        }
+    }
+
+    /**
+     * Runs the delegated handshake tasks on the shared executor and resumes
+     * the engine when they are done. Must be called holding {@link #unwrapLock}.
+     */
+    private void runDelegatedTasks() {
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        Runnable task;
+
+        while (null != (task = engine.getDelegatedTask())) {
+            tasks.add(task);
+        }
+
+        taskRunning = true;
+
+        TaskManager.getTaskManager().getExecutorService().execute(new Runnable() {
+            public void run() {
+                try {
+                    for (Runnable each : tasks) {
+                        each.run();
+                    }
+                } catch (Throwable all) {
+                    if (Logging.SHOW_SEVERE && LOG.isLoggable(Level.SEVERE)) {
+                        LOG.log(Level.SEVERE, "Uncaught Throwable in delegated TLS task for " + TlsEngineConn.this, all);
+                    }
+                } finally {
+                    synchronized (unwrapLock) {
+                        taskRunning = false;
+                    }
+                }
+
+                pump();
+            }
+        });
+    }
+
+    /**
+     * Marks the handshake as complete. Called without holding the engine locks.
+     */
+    private void handshakeFinished() {
+        ScheduledFuture<?> timeout;
+
+        synchronized (unwrapLock) {
+            timeout = handshakeTimeout;
+            handshakeTimeout = null;
+        }
+
+        if (null != timeout) {
+            timeout.cancel(false);
+        }
+
+        if (HandshakeState.HANDSHAKESTARTED != getHandshakeState()) {
+            return;
+        }
+
+        if ("SSL_NULL_WITH_NULL_NULL".equals(engine.getSession().getCipherSuite())) {
+            closeQuietly(HandshakeState.HANDSHAKEFAILED);
+            return;
+        }
+
+        synchronized (lastAccessedLock) {
+            lastAccessed = TimeUtils.timeNow();
+        }
+
+        setHandshakeState(HandshakeState.HANDSHAKEFINISHED);
+
+        if (Logging.SHOW_INFO && LOG.isLoggable(Level.INFO)) {
+            LOG.info((client ? "Client:" : "Server:") + " Handshake DONE in "
+                    + TimeUtils.toRelativeTimeMillis(TimeUtils.timeNow(), handshakeStarted) + " ms using "
+                    + engine.getSession().getProtocol() + " " + engine.getSession().getCipherSuite());
+        }
+    }
+
+    /**
+     * The ciphertext messages produced by a single {@link #wrap(ByteBuffer[])}.
+     */
+    private static class Wrapped {
+        final List<Message> messages = new ArrayList<Message>();
+        boolean finished = false;
+    }
+
+    /**
+     * Encrypts the provided plaintext, or produces the handshake or closure
+     * records the engine needs to send, and packages the ciphertext as
+     * numbered messages ready to send.
+     *
+     * @param srcs the plaintext.
+     * @return the ciphertext messages.
+     * @throws IOException if the engine fails.
+     */
+    private Wrapped wrap(ByteBuffer[] srcs) throws IOException {
+        Wrapped wrapped = new Wrapped();
+
+        synchronized (wrapLock) {
+            netOut.clear();
+
+            while (true) {
+                SSLEngineResult result = engine.wrap(srcs, netOut);
+
+                if (SSLEngineResult.HandshakeStatus.FINISHED == result.getHandshakeStatus()) {
+                    wrapped.finished = true;
+                }
+
+                if (SSLEngineResult.Status.BUFFER_OVERFLOW == result.getStatus()) {
+                    if (netOut.position() >= MAX_CIPHERTEXT_MESSAGE) {
+                        wrapped.messages.add(ciphertextMessage());
+                    } else {
+                        ByteBuffer larger = ByteBuffer.allocate(netOut.capacity() + engine.getSession().getPacketBufferSize());
+
+                        netOut.flip();
+                        larger.put(netOut);
+                        netOut = larger;
+                    }
+                    continue;
+                }
+
+                if (SSLEngineResult.Status.CLOSED == result.getStatus()) {
+                    break;
+                }
+
+                boolean progress = (result.bytesConsumed() > 0) || (result.bytesProduced() > 0);
+
+                if (progress && remaining(srcs)) {
+                    continue;
+                }
+
+                if (progress && (SSLEngineResult.HandshakeStatus.NEED_WRAP == result.getHandshakeStatus())) {
+                    continue;
+                }
+
+                break;
+            }
+
+            if (netOut.position() > 0) {
+                wrapped.messages.add(ciphertextMessage());
+            }
+        }
+
+        return wrapped;
+    }
+
+    /**
+     * Packages the ciphertext in {@link #netOut} as the next message in
+     * sequence, to be retransmitted until acknowledged, and clears the
+     * buffer. Must be called holding {@link #wrapLock}.
+     *
+     * @return the ciphertext message.
+     */
+    private Message ciphertextMessage() {
+        byte[] ciphertext = new byte[netOut.position()];
+
+        netOut.flip();
+        netOut.get(ciphertext);
+        netOut.clear();
+
+        Message msg = new Message();
+
+        msg.addMessageElement(JTlsDefs.TLSNameSpace,
+                new ByteArrayMessageElement(Integer.toString(++sequenceNumber), JTlsDefs.ENGINE_BLOCKS, ciphertext, null));
+
+        synchronized (unacked) {
+            if (!retransmitStopped) {
+                unacked.put(sequenceNumber, new Unacked(msg, TimeUtils.timeNow()));
+                scheduleRetransmit();
+            }
+        }
+
+        return msg;
+    }
+
+    private static boolean remaining(ByteBuffer[] srcs) {
+        for (ByteBuffer src : srcs) {
+            if (src.hasRemaining()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Sends the ciphertext messages in order.
+     *
+     * @param wrapped the ciphertext messages.
+     * @throws IOException if a message could not be sent.
+     */
+    private void send(Wrapped wrapped) throws IOException {
+        send(wrapped.messages);
+    }
+
+    private void send(List<Message> messages) throws IOException {
+        for (Message msg : messages) {
+            if (!sendToRemoteTls(msg)) {
+                throw new IOException("Could not send ciphertext to " + destAddr);
+            }
+        }
+    }
+
+    /**
+     * Closes the connection, logging rather than throwing failures.
+     *
+     * @param finalstate state that the connection will be in after close.
+     */
+    private void closeQuietly(HandshakeState finalstate) {
+        try {
+            close(finalstate);
+        } catch (IOException ignored) {
+            if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+                LOG.log(Level.FINE, "Failure closing " + this, ignored);
+            }
+        }
+    }
+}
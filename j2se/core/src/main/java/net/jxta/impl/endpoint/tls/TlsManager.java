@@ -185,7 +185,8 @@ class TlsManager implements EndpointListener {
             // create the connection info entry as needed
             if (null == conn) {
                 try {
-                    conn = new TlsConn(transport, dstAddr, true); // true means client
+                    // true means client
+                    conn = transport.ENGINE_MODE ? new TlsEngineConn(transport, dstAddr, true) : new TlsConn(transport, dstAddr, true);
                 } catch (Exception failed) {
                     if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
                         LOG.log(Level.WARNING, "Failed making connection to " + paddr, failed);
@@ -393,7 +394,8 @@ class TlsManager implements EndpointListener {
             if (null == conn) {
                 if (TlsTransport.ACT_AS_SERVER && (1 == seqN)) {
                     try {
-                        conn = new TlsConn(transport, srcAddr, false); // false means Server
+                        // false means Server. The client chose the mode.
+                        conn = isEngineMessage(msg) ? new TlsEngineConn(transport, srcAddr, false) : new TlsConn(transport, srcAddr, false);
                     } catch (Exception failed) {
                         if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
                             LOG.log(Level.WARNING, "Failed making connection for" + paddr, failed);
@@ -427,7 +429,7 @@ class TlsManager implements EndpointListener {
                 }
                 
                 // Queue message up for TlsInputStream on that connection
-                conn.tlsSocket.input.queueIncomingMessage(msg);
+                conn.queueIncomingMessage(msg);
                 
                 // Start the TLS Server and complete the handshake
                 conn.finishHandshake(); // open the TLS connection
@@ -543,7 +545,7 @@ class TlsManager implements EndpointListener {
                         Arrays.sort(sacs);
                         
                         // take care of the ACK here;
-                        conn.tlsSocket.output.ackReceived(seqack, sacs);
+                        conn.ackReceived(seqack, sacs);
                     } catch (IOException failed) {
                         if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
                             LOG.log(Level.WARNING, "Failure processing ACK", failed);
@@ -560,11 +562,7 @@ class TlsManager implements EndpointListener {
                 }
                 
                 // Queue message up for TlsInputStream on that connection
-                TlsSocket bound = conn.tlsSocket;
-                
-                if (null != bound) {
-                    bound.input.queueIncomingMessage(msg);
-                }
+                conn.queueIncomingMessage(msg);
                 
                 return;
             }
@@ -581,11 +579,15 @@ class TlsManager implements EndpointListener {
         
         int seqN = 0;
         
-        Iterator<MessageElement> eachElement = msg.getMessageElements(JTlsDefs.TLSNameSpace, JTlsDefs.BLOCKS);
+        Iterator<MessageElement> eachElement = msg.getMessageElementsOfNamespace(JTlsDefs.TLSNameSpace);
         
         while (eachElement.hasNext()) {
             MessageElement elt = eachElement.next();
             
+            if (!JTlsDefs.BLOCKS.equals(elt.getMimeType()) && !JTlsDefs.ENGINE_BLOCKS.equals(elt.getMimeType())) {
+                continue;
+            }
+            
             try {
                 seqN = Integer.parseInt(elt.getElementName());
             } catch (NumberFormatException e) {
@@ -603,4 +605,15 @@ class TlsManager implements EndpointListener {
         
         return seqN;
     }
+    
+    /**
+     * Returns {@code true} if the message carries TLS records of a
+     * {@link TlsEngineConn} rather than those of a socket based connection.
+     *
+     * @param msg  Input message
+     * @return {@code true} if the message was sent by an engine connection.
+     **/
+    private static boolean isEngineMessage(Message msg) {
+        return msg.getMessageElements(JTlsDefs.TLSNameSpace, JTlsDefs.ENGINE_BLOCKS).hasNext();
+    }
 }
@@ -115,6 +115,21 @@ public class TlsTransport implements Module, MessageSender, MessageReceiver {
      */
     static final boolean ACT_AS_SERVER = true;
     
+    /**
+     *  System property which, if {@code true}, makes the connections we
+     *  initiate use an {@link javax.net.ssl.SSLEngine} driven on shared
+     *  executors ({@link TlsEngineConn}) rather than a TLS socket with reader
+     *  and retransmitter threads of its own. Incoming connections always use
+     *  the mode chosen by the remote peer.
+     */
+    public static final String ENGINE_MODE_SYSPROP = "net.jxta.impl.endpoint.tls.TlsTransport.engineMode";
+    
+    /**
+     *  If true then the connections we initiate are {@link TlsEngineConn}s.
+     *  Both peers must support them.
+     */
+    final boolean ENGINE_MODE = Boolean.getBoolean(ENGINE_MODE_SYSPROP);
+    
     private PeerGroup group = null;
     ID assignedID = null;
     ModuleImplAdvertisement implAdvertisement = null;
@@ -338,6 +353,7 @@ public class TlsTransport implements Module, MessageSender, MessageReceiver {
             configInfo.append("\n\t\tMinimum idle for reconnect : ").append(MIN_IDLE_RECONNECT).append("ms");
             configInfo.append("\n\t\tConnection idle timeout : ").append(CONNECTION_IDLE_TIMEOUT).append("ms");
             configInfo.append("\n\t\tRetry queue maximum age : ").append(RETRMAXAGE).append("ms");
+            configInfo.append("\n\t\tSSLEngine connections : ").append(ENGINE_MODE);
             configInfo.append("\n\t\tPeerID : ").append(localPeerId);
             configInfo.append("\n\t\tRoute through : ").append(localPeerAddr);
             configInfo.append("\n\t\tPublic Address : ").append(localTlsPeerAddr);
@@ -240,4 +240,35 @@ public class TransportBindingMeter {
         deltaMetrics.messageSent(initator, message, time, size);
         cumulativeMetrics.messageSent(initator, message, time, size);
     }		
+
+    /**
+     * Records a message sent with a content encoding.
+     *
+     * @param unencodedSize the size of the message before encoding.
+     * @param encodedSize   the size of the message after encoding.
+     */
+    public synchronized void messageEncoded(long unencodedSize, long encodedSize) {
+        if (deltaMetrics == null) {	
+            createDeltaMetric();
+        }
+			
+        deltaMetrics.messageEncoded(unencodedSize, encodedSize);
+        cumulativeMetrics.messageEncoded(unencodedSize, encodedSize);
+    }
+
+    /**
+     * Records socket write calls made to send data.
+     *
+     * @param syscalls the number of socket write calls issued.
+     * @param size     the number of bytes written by those calls.
+     * @param messages the number of messages written by those calls.
+     */
+    public synchronized void writeSyscalls(int syscalls, long size, int messages) {
+        if (deltaMetrics == null) {	
+            createDeltaMetric();
+        }
+			
+        deltaMetrics.writeSyscalls(syscalls, size, messages);
+        cumulativeMetrics.writeSyscalls(syscalls, size, messages);
+    }
 }
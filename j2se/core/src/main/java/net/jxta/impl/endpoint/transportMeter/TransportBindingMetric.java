@@ -125,6 +125,14 @@ public class TransportBindingMetric implements DocumentSerializable {
     private long pingFailedTime;
     private int numPingsReceived;
 
+    private int numWriteSyscalls;
+    private long writeSyscallBytes;
+    private int writeSyscallMessages;
+
+    private int numMessagesEncoded;
+    private long unencodedBytes;
+    private long encodedBytes;
+
     public TransportBindingMetric(TransportBindingMeter transportBindingMeter, boolean initiatorConnected, boolean acceptorConnected) {
         this.peerID = transportBindingMeter.getPeerID();
         this.endpointAddress = transportBindingMeter.getEndpointAddress();
@@ -371,6 +379,69 @@ public class TransportBindingMetric implements DocumentSerializable {
         return numPingsReceived;
     }
 
+    /**
+     * The number of socket write calls issued to send data.
+     *
+     * @return the number of socket write calls.
+     */
+    public int getNumWriteSyscalls() {
+        return numWriteSyscalls;
+    }
+
+    /**
+     * The number of bytes sent by the socket write calls.
+     *
+     * @return the number of bytes sent by socket write calls.
+     */
+    public long getWriteSyscallBytes() {
+        return writeSyscallBytes;
+    }
+
+    /**
+     * The number of messages sent by the socket write calls.
+     *
+     * @return the number of messages sent by socket write calls.
+     */
+    public int getWriteSyscallMessages() {
+        return writeSyscallMessages;
+    }
+
+    /**
+     * The number of messages sent with a content encoding.
+     *
+     * @return the number of messages sent with a content encoding.
+     */
+    public int getNumMessagesEncoded() {
+        return numMessagesEncoded;
+    }
+
+    /**
+     * The size of the encoded messages before encoding.
+     *
+     * @return the size in bytes of the encoded messages before encoding.
+     */
+    public long getUnencodedBytes() {
+        return unencodedBytes;
+    }
+
+    /**
+     * The size of the encoded messages after encoding.
+     *
+     * @return the size in bytes of the encoded messages after encoding.
+     */
+    public long getEncodedBytes() {
+        return encodedBytes;
+    }
+
+    /**
+     * The number of bytes saved by content encoding.
+     *
+     * @return the number of bytes saved by content encoding.
+     */
+    public long getEncodingBytesSaved() {
+        return unencodedBytes - encodedBytes;
+    }
+
     public int getBytesReceived() {
         return acceptorBytesReceived + initiatorBytesReceived;
     }
@@ -447,6 +518,14 @@ public class TransportBindingMetric implements DocumentSerializable {
         return (int) ((numFailedPings != 0) ? (pingFailedTime / numFailedPings) : 0);
     }
 
+    public double getBytesPerWriteSyscall() {
+        return (numWriteSyscalls != 0) ? ((double) writeSyscallBytes / numWriteSyscalls) : 0.0;
+    }
+
+    public double getMessagesPerWriteSyscall() {
+        return (numWriteSyscalls != 0) ? ((double) writeSyscallMessages / numWriteSyscalls) : 0.0;
+    }
+
     public int getAverageAcceptorReceiveFailureProcessingTime() {
         return (int) ((acceptorReceiveFailures != 0) ? (acceptorReceiveFailureProcessingTime / acceptorReceiveFailures) : 0);
     }
@@ -729,6 +808,18 @@ public class TransportBindingMetric implements DocumentSerializable {
         pingFailedTime += time;
     }
 
+    void messageEncoded(long unencodedSize, long encodedSize) {
+        numMessagesEncoded++;
+        unencodedBytes += unencodedSize;
+        encodedBytes += encodedSize;
+    }
+
+    void writeSyscalls(int syscalls, long bytes, int messages) {
+        numWriteSyscalls += syscalls;
+        writeSyscallBytes += bytes;
+        writeSyscallMessages += messages;
+    }
+
     void dataReceived(boolean initiator, int size) {
         if (initiator) {
             initiatorBytesReceived += size;
@@ -851,6 +942,12 @@ public class TransportBindingMetric implements DocumentSerializable {
         pingTime += other.pingTime;
         pingFailedTime += other.pingFailedTime;
         numPingsReceived += other.numPingsReceived;
+        numWriteSyscalls += other.numWriteSyscalls;
+        writeSyscallBytes += other.writeSyscallBytes;
+        writeSyscallMessages += other.writeSyscallMessages;
+        numMessagesEncoded += other.numMessagesEncoded;
+        unencodedBytes += other.unencodedBytes;
+        encodedBytes += other.encodedBytes;
 
     }
 
@@ -1035,6 +1132,30 @@ public class TransportBindingMetric implements DocumentSerializable {
             DocumentSerializableUtilities.addInt(element, "numPingsReceived", numPingsReceived);
         }
 
+        if (numWriteSyscalls != 0) {
+            DocumentSerializableUtilities.addInt(element, "numWriteSyscalls", numWriteSyscalls);
+        }
+
+        if (writeSyscallBytes != 0) {
+            DocumentSerializableUtilities.addLong(element, "writeSyscallBytes", writeSyscallBytes);
+        }
+
+        if (writeSyscallMessages != 0) {
+            DocumentSerializableUtilities.addInt(element, "writeSyscallMessages", writeSyscallMessages);
+        }
+
+        if (numMessagesEncoded != 0) {
+            DocumentSerializableUtilities.addInt(element, "numMessagesEncoded", numMessagesEncoded);
+        }
+
+        if (unencodedBytes != 0) {
+            DocumentSerializableUtilities.addLong(element, "unencodedBytes", unencodedBytes);
+        }
+
+        if (encodedBytes != 0) {
+            DocumentSerializableUtilities.addLong(element, "encodedBytes", encodedBytes);
+        }
+
     }
 
     public void initializeFrom(Element element) throws DocumentSerializationException {
@@ -1129,6 +1250,18 @@ public class TransportBindingMetric implements DocumentSerializable {
                 pingTime = DocumentSerializableUtilities.getLong(childElement);
             } else if (tagName.equals("pingFailedTime")) {
                 pingFailedTime = DocumentSerializableUtilities.getLong(childElement);
+            } else if (tagName.equals("numWriteSyscalls")) {
+                numWriteSyscalls = DocumentSerializableUtilities.getInt(childElement);
+            } else if (tagName.equals("writeSyscallBytes")) {
+                writeSyscallBytes = DocumentSerializableUtilities.getLong(childElement);
+            } else if (tagName.equals("writeSyscallMessages")) {
+                writeSyscallMessages = DocumentSerializableUtilities.getInt(childElement);
+            } else if (tagName.equals("numMessagesEncoded")) {
+                numMessagesEncoded = DocumentSerializableUtilities.getInt(childElement);
+            } else if (tagName.equals("unencodedBytes")) {
+                unencodedBytes = DocumentSerializableUtilities.getLong(childElement);
+            } else if (tagName.equals("encodedBytes")) {
+                encodedBytes = DocumentSerializableUtilities.getLong(childElement);
             }
         }
     }
@@ -89,7 +89,9 @@ import java.security.spec.InvalidKeySpecException;
 import java.security.spec.KeySpec;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -114,6 +116,28 @@ public final class PSEUtils {
      */
     final transient SecureRandom srng = new SecureRandom();
 
+    /**
+     * Signature engines of the current thread, keyed by algorithm. Engines
+     * are re-initialized for every use so a single instance per thread and
+     * algorithm can be shared by all signing and verification operations.
+     */
+    private static final ThreadLocal<Map<String, Signature>> SIGNATURES = new ThreadLocal<Map<String, Signature>>() {
+        @Override
+        protected Map<String, Signature> initialValue() {
+            return new HashMap<String, Signature>();
+        }
+    };
+
+    /**
+     * Key factories of the current thread, keyed by algorithm.
+     */
+    private static final ThreadLocal<Map<String, KeyFactory>> KEY_FACTORIES = new ThreadLocal<Map<String, KeyFactory>>() {
+        @Override
+        protected Map<String, KeyFactory> initialValue() {
+            return new HashMap<String, KeyFactory>();
+        }
+    };
+
     /**
      * Singleton utility class
      */
@@ -403,6 +427,47 @@ public final class PSEUtils {
         return null;
     }
 
+    /**
+     * Returns the signature engine of the current thread for the specified
+     * algorithm. The engine must be initialized before each use and must not
+     * be passed to other threads.
+     *
+     * @param algorithm The signature algorithm.
+     * @return The signature engine.
+     * @throws NoSuchAlgorithmException if the algorithm is not available.
+     */
+    private static Signature getSignature(String algorithm) throws NoSuchAlgorithmException {
+        Map<String, Signature> signatures = SIGNATURES.get();
+        Signature sign = signatures.get(algorithm);
+
+        if (null == sign) {
+            sign = Signature.getInstance(algorithm);
+            signatures.put(algorithm, sign);
+        }
+
+        return sign;
+    }
+
+    /**
+     * Returns the key factory of the current thread for the specified
+     * algorithm.
+     *
+     * @param algorithm The key algorithm.
+     * @return The key factory.
+     * @throws NoSuchAlgorithmException if the algorithm is not available.
+     */
+    private static KeyFactory getKeyFactory(String algorithm) throws NoSuchAlgorithmException {
+        Map<String, KeyFactory> factories = KEY_FACTORIES.get();
+        KeyFactory factory = factories.get(algorithm);
+
+        if (null == factory) {
+            factory = KeyFactory.getInstance(algorithm);
+            factories.put(algorithm, factory);
+        }
+
+        return factory;
+    }
+
     /**
      * Compute the signature of a stream.
      *
@@ -414,7 +479,7 @@ public final class PSEUtils {
         Signature sign;
 
         try {
-            sign = Signature.getInstance(algorithm);
+            sign = getSignature(algorithm);
         } catch (NoSuchAlgorithmException badsigner) {
             throw new IOException("Could not initialize signer with algorithm " + algorithm);
         }
@@ -448,7 +513,7 @@ public final class PSEUtils {
         Signature sign;
 
         try {
-            sign = Signature.getInstance(algorithm);
+            sign = getSignature(algorithm);
         } catch (NoSuchAlgorithmException badsigner) {
             throw new IOException("Could not initialize signer with algorithm " + algorithm);
         }
@@ -584,7 +649,7 @@ public final class PSEUtils {
 
                 key_spec = encryptedPrivKey.getKeySpec(pbeCipher);
 
-                KeyFactory kf = KeyFactory.getInstance(algorithm);
+                KeyFactory kf = getKeyFactory(algorithm);
 
                 return kf.generatePrivate(key_spec);
             } catch (InvalidKeySpecException failed) {
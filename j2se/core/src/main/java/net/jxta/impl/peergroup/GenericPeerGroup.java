@@ -72,6 +72,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.RejectedExecutionException;
@@ -217,9 +218,12 @@ public abstract class GenericPeerGroup implements PeerGroup {
     protected URI jxtaHome = null;
 
     /**
-     * The services that do the real work of the Peer Group.
+     * The services that do the real work of the Peer Group. Updates are
+     * synchronized on the group, lookups are not so that services may look up
+     * their peers while the group is starting them in parallel
+     * (see {@link StdPeerGroup#PARALLEL_START_SYSPROP}).
      */
-    private final Map<ModuleClassID, Service> services = new HashMap<ModuleClassID, Service>();
+    private final Map<ModuleClassID, Service> services = new ConcurrentHashMap<ModuleClassID, Service>();
 
     /**
      * {@code true} when we have decided to stop this group.
@@ -586,11 +590,11 @@ public abstract class GenericPeerGroup implements PeerGroup {
     /**
      * {@inheritDoc}
      */
-    synchronized public Service lookupService(ID mcid) throws ServiceNotFoundException {
-        Service p = services.get(mcid);
+    public Service lookupService(ID mcid) throws ServiceNotFoundException {
+        Service p = (null == mcid) ? null : services.get(mcid);
 
         if (p == null) {
-            throw new ServiceNotFoundException("Not found: " + mcid.toString());
+            throw new ServiceNotFoundException("Not found: " + mcid);
         }
 
         return p.getInterface();
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2001-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+
+package net.jxta.impl.peergroup;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import net.jxta.platform.Module;
+import net.jxta.platform.ModuleClassID;
+
+/**
+ * Records the time a peer group module spent in each phase of its startup.
+ * <p/>
+ * The load phase covers finding, instantiating and initializing the module.
+ * The start phase covers all of the invocations of
+ * {@link Module#startApp(String[])} made until the module completed its start,
+ * declined to start or failed.
+ *
+ * @see StdPeerGroup#getStartProfile()
+ */
+public final class ModuleStartProfile {
+
+    private final ModuleClassID classID;
+    private String description;
+    private long loadNanos = 0;
+    private long startNanos = 0;
+    private long completedAtNanos = -1;
+    private int attempts = 0;
+    private int stalls = 0;
+    private int result = Module.START_AGAIN_STALLED;
+    private final Set<ModuleClassID> dependencies = new LinkedHashSet<ModuleClassID>();
+
+    ModuleStartProfile(ModuleClassID classID) {
+        this.classID = classID;
+        this.description = classID.toString();
+    }
+
+    /**
+     * Returns the class ID of the module.
+     *
+     * @return The class ID of the module.
+     */
+    public ModuleClassID getClassID() {
+        return classID;
+    }
+
+    /**
+     * Returns the time spent loading and initializing the module.
+     *
+     * @return The load time in nanoseconds.
+     */
+    public synchronized long getLoadNanos() {
+        return loadNanos;
+    }
+
+    /**
+     * Returns the total time spent in the module's {@code startApp()}.
+     *
+     * @return The start time in nanoseconds.
+     */
+    public synchronized long getStartNanos() {
+        return startNanos;
+    }
+
+    /**
+     * Returns the time at which the module completed its start, relative to
+     * the beginning of the start of the group's modules.
+     *
+     * @return The completion time in nanoseconds or {@code -1} if the module
+     *         has not completed its start.
+     */
+    public synchronized long getCompletedAtNanos() {
+        return completedAtNanos;
+    }
+
+    /**
+     * Returns the number of times {@code startApp()} was invoked.
+     *
+     * @return The number of times {@code startApp()} was invoked.
+     */
+    public synchronized int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Returns the number of times {@code startApp()} returned
+     * {@link Module#START_AGAIN_STALLED}.
+     *
+     * @return The number of stalls.
+     */
+    public synchronized int getStalls() {
+        return stalls;
+    }
+
+    /**
+     * Returns the last result of {@code startApp()}.
+     *
+     * @return The last result of {@code startApp()}.
+     */
+    public synchronized int getResult() {
+        return result;
+    }
+
+    /**
+     * Returns the modules this module depends upon. These are the declared
+     * dependencies of the module, if any, and the modules which completed their
+     * start between the module's last stall and its own successful start.
+     *
+     * @return The class IDs of the modules this module depends upon.
+     */
+    public synchronized Set<ModuleClassID> getDependencies() {
+        return Collections.unmodifiableSet(new LinkedHashSet<ModuleClassID>(dependencies));
+    }
+
+    synchronized void loaded(Module module, long nanos) {
+        description = module.toString();
+        loadNanos += nanos;
+    }
+
+    synchronized void attempted(int result, long nanos) {
+        this.result = result;
+        attempts++;
+        startNanos += nanos;
+        if (Module.START_AGAIN_STALLED == result) {
+            stalls++;
+        }
+    }
+
+    synchronized void completed(long atNanos) {
+        completedAtNanos = atNanos;
+    }
+
+    synchronized void addDependencies(Iterable<ModuleClassID> classIDs) {
+        for (ModuleClassID each : classIDs) {
+            if (!classID.equals(each)) {
+                dependencies.add(each);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized String toString() {
+        return String.format("%s : load %.3fms, start %.3fms in %d attempt(s) (%d stalled), result %d, completed at %.3fms, depends on %s",
+                description, loadNanos / 1000000.0, startNanos / 1000000.0, attempts, stalls, result,
+                completedAtNanos / 1000000.0, dependencies);
+    }
+}
@@ -57,11 +57,18 @@ package net.jxta.impl.peergroup;
 
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -79,6 +86,7 @@ import net.jxta.impl.cm.Cm;
 import net.jxta.impl.cm.SrdiIndex;
 import net.jxta.impl.content.ContentServiceImpl;
 import net.jxta.impl.membership.pse.PSEMembershipService;
+import net.jxta.impl.util.threads.TaskManager;
 import net.jxta.logging.Logging;
 import net.jxta.peergroup.PeerGroup;
 import net.jxta.platform.JxtaLoader;
@@ -144,6 +152,16 @@ public class StdPeerGroup extends GenericPeerGroup {
         getJxtaLoader().defineClass(getDefaultModuleImplAdvertisement());
     }
     
+    /**
+     * If {@code true} then the modules of peer groups which are ready to start
+     * are started in parallel on the shared executor rather than one at a
+     * time on the thread initializing the group. Off by default: service
+     * modules are started while the group is locked by its initialization, so
+     * a module which calls a synchronized group method from its
+     * {@code startApp()} would block until the group is initialized.
+     */
+    public static final String PARALLEL_START_SYSPROP = "net.jxta.impl.peergroup.StdPeerGroup.parallelStart";
+    
     /**
      * If {@code true} then the PeerGroup has been started.
      */
@@ -154,6 +172,18 @@ public class StdPeerGroup extends GenericPeerGroup {
      */
     private final List<ModuleClassID> moduleStartOrder = new ArrayList<ModuleClassID>();
     
+    /**
+     * The load and start timings of our modules in the order in which they
+     * completed their start.
+     */
+    private final Map<ModuleClassID, ModuleStartProfile> startProfiles = new LinkedHashMap<ModuleClassID, ModuleStartProfile>();
+    
+    /**
+     * The {@code System.nanoTime()} at which the group began loading its
+     * modules. Module completion times are relative to this.
+     */
+    private long startEpoch = System.nanoTime();
+    
     /**
      * A map of the Message Transports for this group.
      * <p/>
@@ -274,6 +304,7 @@ public class StdPeerGroup extends GenericPeerGroup {
             // Try and load it.
             try {
                 Module theModule = null;
+                long loadStart = System.nanoTime();
                 
                 if (value instanceof ModuleImplAdvertisement) {
                     // Load module will republish locally but not in the
@@ -296,6 +327,7 @@ public class StdPeerGroup extends GenericPeerGroup {
                 }
                 
                 anEntry.setValue(theModule);
+                getStartProfile(classID).loaded(theModule, System.nanoTime() - loadStart);
             } catch (Exception e) {
                 if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
                     LOG.log(Level.WARNING, "Could not load module for class ID : " + classID, e);
@@ -347,7 +379,7 @@ public class StdPeerGroup extends GenericPeerGroup {
         
         loadAllModules(applications, false); // Apps are non-privileged;
         
-        res = startModules((Map) applications);
+        res = startModules((Map) applications, Boolean.getBoolean(PARALLEL_START_SYSPROP));
         
         return res;
     }
@@ -392,6 +424,40 @@ public class StdPeerGroup extends GenericPeerGroup {
         }
     }
     
+    /**
+     * The result of one invocation of a module's {@code startApp()}.
+     */
+    private static class StartAttempt implements Callable<StartAttempt> {
+        final ModuleClassID mcid;
+        final Module module;
+        int result;
+        long nanos;
+        
+        StartAttempt(ModuleClassID mcid, Module module) {
+            this.mcid = mcid;
+            this.module = module;
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        public StartAttempt call() {
+            long begin = System.nanoTime();
+            
+            try {
+                result = module.startApp(null);
+            } catch (Throwable all) {
+                if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
+                    LOG.log(Level.WARNING, "Exception in startApp() : " + module, all);
+                }
+                result = -1;
+            }
+            
+            nanos = System.nanoTime() - begin;
+            return this;
+        }
+    }
+    
     /**
      * Given a list of all the modules we need to start attempt to start them.
      * There is an a-priori order, but we'll iterate over the list until all
@@ -402,40 +468,51 @@ public class StdPeerGroup extends GenericPeerGroup {
      * of modules still in the list. This should cover the worst case scenario
      * and still allow the process to eventually fail if it has no chance of
      * success.
+     * <p/>
+     * During each iteration only the modules which are ready are started,
+     * in parallel using the shared executor if {@code parallel} is
+     * {@code true}. A module is not ready if one of the
+     * dependencies it declares through {@link DependentModule} is still in
+     * the list, or if it stalled during an earlier iteration and no module has
+     * completed its start since. If no module is ready then all of the modules
+     * are attempted, as they would be without dependency information.
      *
      * @param services The services to start.
+     * @param parallel If {@code true} then the modules which are ready are
+     *                 started in parallel.
+     * @return {@link Module#START_OK} if all of the modules completed their
+     *         start, otherwise -1.
      */
-    private int startModules(Map<ModuleClassID,Module> services) {
+    int startModules(Map<ModuleClassID,Module> services, boolean parallel) {
         int iterations = 0;
         int maxIterations = services.size() * services.size() + iterations + 1;
         
+        // The number of modules which had completed their start when each
+        // stalled module last stalled.
+        Map<ModuleClassID, Integer> stalledAt = new HashMap<ModuleClassID, Integer>();
+        
         boolean progress = true;
         
         while (!services.isEmpty() && (progress || (iterations < maxIterations))) {
             progress = false;
             iterations++;
             
+            List<StartAttempt> round = selectReadyModules(services, stalledAt);
+            
             if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
-                LOG.fine(MessageFormat.format("Service startApp() round {0} of {1}(max)", iterations, maxIterations));
+                LOG.fine(MessageFormat.format("Service startApp() round {0} of {1}(max) : {2} of {3} modules ready", 
+                        iterations, maxIterations, round.size(), services.size()));
             }
             
-            Iterator<Map.Entry<ModuleClassID, Module>> eachService = services.entrySet().iterator();
+            runStartAttempts(round, parallel);
             
-            while (eachService.hasNext()) {
-                Map.Entry<ModuleClassID, Module> anEntry = eachService.next();
-                ModuleClassID mcid = anEntry.getKey();
-                Module aModule = anEntry.getValue();
-                
-                int res;
+            for (StartAttempt attempt : round) {
+                ModuleClassID mcid = attempt.mcid;
+                Module aModule = attempt.module;
+                int res = attempt.result;
+                ModuleStartProfile profile = getStartProfile(mcid);
                 
-                try {
-                    res = aModule.startApp(null);
-                } catch (Throwable all) {
-                    if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
-                        LOG.log(Level.WARNING, "Exception in startApp() : " + aModule, all);
-                    }
-                    res = -1;
-                }
+                profile.attempted(res, attempt.nanos);
                 
                 switch (res) {
                     case Module.START_OK:
@@ -448,8 +525,15 @@ public class StdPeerGroup extends GenericPeerGroup {
                             messageTransports.put(mcid, aModule);
                         }
                         
+                        Integer stalled = stalledAt.remove(mcid);
+                        
+                        if (null != stalled) {
+                            profile.addDependencies(moduleStartOrder.subList(stalled, moduleStartOrder.size()));
+                        }
+                        profile.completed(System.nanoTime() - startEpoch);
+                        
                         moduleStartOrder.add(mcid);
-                        eachService.remove();
+                        services.remove(mcid);
                         progress = true;
                         break;
                         
@@ -464,13 +548,15 @@ public class StdPeerGroup extends GenericPeerGroup {
                         if (Logging.SHOW_FINER && LOG.isLoggable(Level.FINER)) {
                             LOG.finer("Service stalled during start : " + aModule);
                         }
+                        stalledAt.put(mcid, moduleStartOrder.size());
                         break;
                         
                     case Module.START_DISABLED:
                         if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
                             LOG.fine("Service declined to start : " + aModule);
                         }
-                        eachService.remove();
+                        stalledAt.remove(mcid);
+                        services.remove(mcid);
                         progress = true;
                         break;
                         
@@ -478,7 +564,8 @@ public class StdPeerGroup extends GenericPeerGroup {
                         if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
                             LOG.warning("Service failed to start (" + res + ") : " + aModule);
                         }
-                        eachService.remove();
+                        stalledAt.remove(mcid);
+                        services.remove(mcid);
                         progress = true;
                         break;
                 }
@@ -489,6 +576,17 @@ public class StdPeerGroup extends GenericPeerGroup {
             }
         }
         
+        if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+            StringBuilder timings = new StringBuilder("Module start timings after " + iterations + " iterations : ");
+            
+            for (ModuleStartProfile aProfile : getStartProfile()) {
+                timings.append("\n\t");
+                timings.append(aProfile);
+            }
+            
+            LOG.fine(timings.toString());
+        }
+        
         // Uh-oh. Services co-dependency prevented them from starting.
         if (!services.isEmpty()) {
             if (Logging.SHOW_SEVERE && LOG.isLoggable(Level.SEVERE)) {
@@ -513,6 +611,119 @@ public class StdPeerGroup extends GenericPeerGroup {
         return Module.START_OK;
     }
     
+    /**
+     * Selects the modules which should be attempted during the next start
+     * iteration.
+     *
+     * @param services  The modules which remain to be started.
+     * @param stalledAt The number of started modules at the time each stalled
+     *                  module last stalled.
+     * @return The start attempts to make, in the a-priori order.
+     */
+    private List<StartAttempt> selectReadyModules(Map<ModuleClassID, Module> services, Map<ModuleClassID, Integer> stalledAt) {
+        List<StartAttempt> unblocked = new ArrayList<StartAttempt>();
+        List<StartAttempt> ready = new ArrayList<StartAttempt>();
+        
+        for (Map.Entry<ModuleClassID, Module> anEntry : services.entrySet()) {
+            ModuleClassID mcid = anEntry.getKey();
+            Module aModule = anEntry.getValue();
+            
+            if (aModule instanceof DependentModule) {
+                Collection<ModuleClassID> dependencies = ((DependentModule) aModule).getStartDependencies();
+                boolean blocked = false;
+                
+                if (null != dependencies) {
+                    getStartProfile(mcid).addDependencies(dependencies);
+                    
+                    for (ModuleClassID aDependency : dependencies) {
+                        if (!mcid.equals(aDependency) && services.containsKey(aDependency)) {
+                            blocked = true;
+                            break;
+                        }
+                    }
+                }
+                
+                if (blocked) {
+                    continue;
+                }
+            }
+            
+            StartAttempt attempt = new StartAttempt(mcid, aModule);
+            
+            unblocked.add(attempt);
+            
+            Integer stalled = stalledAt.get(mcid);
+            
+            if ((null == stalled) || (stalled < moduleStartOrder.size())) {
+                ready.add(attempt);
+            }
+        }
+        
+        if (!ready.isEmpty()) {
+            return ready;
+        }
+        
+        if (!unblocked.isEmpty()) {
+            return unblocked;
+        }
+        
+        // The declared dependencies are circular. Try everything.
+        List<StartAttempt> all = new ArrayList<StartAttempt>(services.size());
+        
+        for (Map.Entry<ModuleClassID, Module> anEntry : services.entrySet()) {
+            all.add(new StartAttempt(anEntry.getKey(), anEntry.getValue()));
+        }
+        
+        return all;
+    }
+    
+    /**
+     * Invokes {@code startApp()} for each of the provided modules. The
+     * modules are started one at a time on the calling thread unless
+     * {@code parallel} is {@code true}, in which case the first module is
+     * started on the calling thread and the remainder on the shared executor.
+     *
+     * @param round    The start attempts to make.
+     * @param parallel If {@code true} then start the modules in parallel.
+     */
+    private void runStartAttempts(List<StartAttempt> round, boolean parallel) {
+        if (!parallel || (round.size() < 2)) {
+            for (StartAttempt attempt : round) {
+                attempt.call();
+            }
+            return;
+        }
+        
+        ExecutorService executor = TaskManager.getTaskManager().getExecutorService();
+        List<Future<StartAttempt>> pending = new ArrayList<Future<StartAttempt>>(round.size() - 1);
+        
+        for (StartAttempt attempt : round.subList(1, round.size())) {
+            pending.add(executor.submit(attempt));
+        }
+        
+        round.get(0).call();
+        
+        boolean interrupted = false;
+        
+        for (Future<StartAttempt> aFuture : pending) {
+            while (true) {
+                try {
+                    aFuture.get();
+                    break;
+                } catch (InterruptedException woken) {
+                    interrupted = true;
+                } catch (ExecutionException failed) {
+                    // StartAttempt.call() does not throw.
+                    throw new IllegalStateException(failed.getCause());
+                }
+            }
+        }
+        
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
     /**
      * {@inheritDoc}
      * <p/>
@@ -569,6 +780,8 @@ public class StdPeerGroup extends GenericPeerGroup {
             return;
         }
         
+        startEpoch = System.nanoTime();
+        
         // Set-up the minimal GenericPeerGroup
         super.initFirst(parent, assignedID, impl);
         
@@ -637,7 +850,7 @@ public class StdPeerGroup extends GenericPeerGroup {
         
         loadAllModules(initServices, true);
         
-        int res = startModules((Map) initServices);
+        int res = startModules((Map) initServices, Boolean.getBoolean(PARALLEL_START_SYSPROP));
         
         if(Module.START_OK != res) {
             throw new PeerGroupException("Failed to start peer group services. res : " + res);
@@ -765,6 +978,60 @@ public class StdPeerGroup extends GenericPeerGroup {
         return cm;
     }
     
+    /**
+     * Returns the load and start timings of the modules of this group. Modules
+     * which completed their start are listed first, in the order in which they
+     * completed.
+     *
+     * @return the load and start timings of the modules of this group.
+     */
+    public List<ModuleStartProfile> getStartProfile() {
+        List<ModuleStartProfile> result;
+        
+        synchronized (startProfiles) {
+            result = new ArrayList<ModuleStartProfile>(startProfiles.values());
+        }
+        
+        Collections.sort(result, new Comparator<ModuleStartProfile>() {
+            public int compare(ModuleStartProfile one, ModuleStartProfile two) {
+                long oneAt = one.getCompletedAtNanos();
+                long twoAt = two.getCompletedAtNanos();
+                
+                if (oneAt == twoAt) {
+                    return 0;
+                } else if (-1 == oneAt) {
+                    return 1;
+                } else if (-1 == twoAt) {
+                    return -1;
+                }
+                
+                return (oneAt < twoAt) ? -1 : 1;
+            }
+        });
+        
+        return result;
+    }
+    
+    /**
+     * Returns the timings record for the specified module, creating it if
+     * necessary.
+     *
+     * @param classID The module class ID.
+     * @return The timings record for the module.
+     */
+    private ModuleStartProfile getStartProfile(ModuleClassID classID) {
+        synchronized (startProfiles) {
+            ModuleStartProfile profile = startProfiles.get(classID);
+            
+            if (null == profile) {
+                profile = new ModuleStartProfile(classID);
+                startProfiles.put(classID, profile);
+            }
+            
+            return profile;
+        }
+    }
+    
     /**
      * Return a map of the applications for this group.
      * <p/>
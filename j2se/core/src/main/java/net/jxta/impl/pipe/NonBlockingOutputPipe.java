@@ -59,6 +59,8 @@ import net.jxta.endpoint.EndpointAddress;
 import net.jxta.endpoint.EndpointService;
 import net.jxta.endpoint.Message;
 import net.jxta.endpoint.Messenger;
+import net.jxta.endpoint.MessengerStateListener;
+import net.jxta.endpoint.OutgoingMessageEvent;
 import net.jxta.id.ID;
 import net.jxta.impl.util.TimeUtils;
 import net.jxta.logging.Logging;
@@ -73,7 +75,9 @@ import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -81,19 +85,22 @@ import java.util.logging.Logger;
  * An implementation of Ouput Pipe which sends messages on the pipe
  * asynchronously. The <code>send()</code> method for this implementation will
  * never block.
+ * <p/>
+ * Pipes do not have threads of their own. Messages are sent by the workers of
+ * the shared {@link OutputPipeScheduler} which give each pipe with queued
+ * messages a turn in round-robin order. A turn never blocks: messengers are
+ * obtained with {@link EndpointService#getMessengerImmediate} and resolve in
+ * the background, messages are sent with {@link Messenger#sendMessageN}, and
+ * a pipe whose messenger is still resolving or is saturated ends its turn
+ * until the messenger reports a change of state.
  */
-class NonBlockingOutputPipe implements PipeResolver.Listener, OutputPipe, Runnable {
+class NonBlockingOutputPipe implements PipeResolver.Listener, OutputPipe {
 
     /**
      * Logger
      */
     private static final Logger LOG = Logger.getLogger(NonBlockingOutputPipe.class.getName());
 
-    /**
-     * Amount of time an idle worker thread will linger
-     */
-    private static final long IDLEWORKERLINGER = 10 * TimeUtils.ASECOND;
-
     /**
      * Minimum Query interval. Queries will not be sent more frequently than
      * this interval.
@@ -154,9 +161,38 @@ class NonBlockingOutputPipe implements PipeResolver.Listener, OutputPipe, Runnab
     private Messenger destMessenger = null;
 
     /**
-     * The worker thread which actually sends messages on the pipe
+     * Watches {@link #destMessenger} and gives the pipe a turn when the
+     * messenger's state changes.
+     */
+    private MessengerWatcher destMessengerWatcher = null;
+
+    /**
+     * The scheduler which gives this pipe turns to send messages.
+     */
+    private final OutputPipeScheduler scheduler = OutputPipeScheduler.getScheduler();
+
+    /**
+     * If true then the pipe is waiting for or having a turn. Managed by the
+     * scheduler.
      */
-    private volatile Thread serviceThread = null;
+    final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    /**
+     * If true then the pipe was scheduled since its current turn started.
+     * Managed by the scheduler.
+     */
+    volatile boolean wakeRequested = false;
+
+    /**
+     * The pending delayed turn, if any. Managed by the scheduler.
+     */
+    ScheduledFuture<?> wakeup = null;
+
+    /**
+     * If true then the pipe has reached the CLOSED state and been unregistered
+     * from the scheduler.
+     */
+    private boolean retired = false;
 
     /**
      * Absolute time in milliseconds at which we will send the next verify
@@ -219,6 +255,18 @@ class NonBlockingOutputPipe implements PipeResolver.Listener, OutputPipe, Runnab
      */
     private int queryID = -1;
 
+    /**
+     * Absolute time in milliseconds at which the current verify or migrate
+     * attempt will be abandoned.
+     */
+    private long absoluteTimeoutAt = -1;
+
+    /**
+     * Absolute time in milliseconds at which we will send the next query for
+     * the current verify or migrate attempt.
+     */
+    private long nextQueryAt = -1;
+
     /**
      * Create a new output pipe
      *
@@ -242,7 +290,8 @@ class NonBlockingOutputPipe implements PipeResolver.Listener, OutputPipe, Runnab
             LOG.info("Constructing for " + getPipeID());
         }
         workerstate = WorkerState.ACQUIREMESSENGER;
-        startServiceThread();
+        scheduler.pipeOpened(this);
+        scheduler.schedule(this);
     }
 
     /**
@@ -271,6 +320,9 @@ class NonBlockingOutputPipe implements PipeResolver.Listener, OutputPipe, Runnab
             }
         }
         closed = true;
+
+        // Give the pipe a turn so that it can finish up.
+        scheduler.schedule(this);
     }
 
     /**
@@ -333,14 +385,14 @@ class NonBlockingOutputPipe implements PipeResolver.Listener, OutputPipe, Runnab
             }
             throw failed;
         }
-        startServiceThread();
+        scheduler.schedule(this);
         return pushed;
     }
 
     /**
-     * {@inheritDoc}
-     * <p/>
-     * Sends the messages.
+     * Gives the pipe one turn to send messages. Called only by the
+     * {@link OutputPipeScheduler}, which ensures that a pipe is never given
+     * two turns at once.
      * <p/>
      * This method does a lot of things. It has several distinct states:
      * <p/>
@@ -355,19 +407,23 @@ class NonBlockingOutputPipe implements PipeResolver.Listener, OutputPipe, Runnab
      * <tbody>
      * <tr>
      * <th>ACQUIREMESSENGER</th
-     * <td>Acquire a messenger to the specified destination peer. If a
-     * messenger is acquired, then go to <b>SENDMESSAGES</b> state
-     * otherwise go to <b>STARTMIGRATE</b>.</td>
+     * <td>Acquire a messenger to the specified destination peer without
+     * waiting for it to resolve. If a messenger is acquired, then go to
+     * <b>SENDMESSAGES</b> state otherwise go to <b>STARTMIGRATE</b>.</td>
      * </tr>
      * <p/>
      * <tr>
      * <th>SENDMESSAGES</th>
      * <td>Send messages until queue is closed and all messages have
      * been sent. Go to state <b>CLOSED</b> when done. If the messenger
-     * becomes closed then go to <b>ACQUIREMESSENGER</b>. <emphasis>If
-     * there are no messages to send for <code>IDLEWORKERLINGER</code>
-     * milliseconds then the worker thread will exit. It will only be
-     * restarted if another message is eventually enqueued.</emphasis>
+     * cannot be resolved then go to <b>STARTMIGRATE</b> and if it becomes
+     * closed then go to <b>ACQUIREMESSENGER</b>. While the messenger is
+     * resolving or saturated the turn ends until the messenger changes
+     * state. <emphasis>At most
+     * <code>OutputPipeScheduler.MESSAGES_PER_TURN</code> messages are sent
+     * per turn. If there are no messages to send then the turn ends and the
+     * pipe will only be given another turn if another message is eventually
+     * enqueued.</emphasis>
      * </td>
      * </tr>
      * <p/>
@@ -395,7 +451,7 @@ class NonBlockingOutputPipe implements PipeResolver.Listener, OutputPipe, Runnab
      * is received, go to state <b>ACQUIREMESSENGER</b>. If no response
      * is received within <b>QUERYTIMEOUT</b> milliseconds or a
      * negative response is received then go to state
-     * <b>STARTMIGRATE</b>.</td>
+     * <b>STARTMIGRATE</b>. The turn ends while waiting for responses.</td>
      * </tr>
      * <p/>
      * <tr>
@@ -405,278 +461,323 @@ class NonBlockingOutputPipe implements PipeResolver.Listener, OutputPipe, Runnab
      * If a positive response is received, go to state
      * <b>ACQUIREMESSENGER</b>. If no positive response from an
      * eligible peer is received within <b>QUERYTIMEOUT</b>
-     * milliseconds go to state <b>CLOSED</b>.</td>
+     * milliseconds go to state <b>CLOSED</b>. The turn ends while waiting
+     * for responses.</td>
      * </tr>
      * <p/>
      * <tr>
      * <th>CLOSED</th>
-     * <td>Exit the worker thread.</td>
+     * <td>Release the messenger and stop taking turns.</td>
      * </tr>
      * </tbody>
      * </table>
+     *
+     * @return {@link OutputPipeScheduler#YIELD} if the pipe has more work to
+     *         do now, {@link OutputPipeScheduler#IDLE} if it has nothing to do
+     *         until it is next scheduled, otherwise the number of milliseconds
+     *         after which it wants another turn.
      */
-    public void run() {
-        long absoluteTimeoutAt = -1;
-        long nextQueryAt = -1;
+    long serviceTurn() {
+        int sent = 0;
 
-        try {
-            // state loop
-            while (WorkerState.CLOSED != workerstate) {
-                synchronized (this) {
+        // state loop
+        while (true) {
+            Messenger messenger;
+
+            synchronized (this) {
+                if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
                     LOG.fine("NON-BLOCKING WORKER AT STATE : " + workerstate
                             + ((WorkerState.SENDMESSAGES == workerstate)
                                     ? "\n\t" + TimeUtils.toRelativeTimeMillis(nextVerifyAt, TimeUtils.timeNow())
                                     + " until verify."
                                     : ""));
+                }
 
-                    // switch() emulation
-                    if ((WorkerState.STARTVERIFY == workerstate) || (WorkerState.STARTMIGRATE == workerstate)) {
-                        if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
-                            if (null == destPeer) {
-                                LOG.fine("Starting re-resolve for \'" + getPipeID());
-                            } else {
-                                LOG.fine("Starting verify for \'" + getPipeID() + "\' to : " + destPeer);
-                            }
-                        }
-
-                        queryID = PipeResolver.getNextQueryID();
-                        pipeResolver.addListener(getPipeID(), this, queryID);
-                        absoluteTimeoutAt = TimeUtils.toAbsoluteTimeMillis(
-                                Math.max(QUERYTIMEOUTMIN, (PipeServiceImpl.VERIFYINTERVAL / 20)));
-                        nextQueryAt = TimeUtils.timeNow();
-
-                        if (WorkerState.STARTVERIFY == workerstate) {
-                            workerstate = WorkerState.PENDINGVERIFY;
-                        } else if (WorkerState.STARTMIGRATE == workerstate) {
-                            workerstate = WorkerState.PENDINGMIGRATE;
+                // switch() emulation
+                if ((WorkerState.STARTVERIFY == workerstate) || (WorkerState.STARTMIGRATE == workerstate)) {
+                    if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+                        if (null == destPeer) {
+                            LOG.fine("Starting re-resolve for \'" + getPipeID());
+                        } else {
+                            LOG.fine("Starting verify for \'" + getPipeID() + "\' to : " + destPeer);
                         }
+                    }
 
-                        // move on to the next state.
-                    } else if ((WorkerState.PENDINGVERIFY == workerstate) || (WorkerState.PENDINGMIGRATE == workerstate)) {
-                        if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
-                            LOG.fine(
-                                    "Pipe " + ((WorkerState.PENDINGVERIFY == workerstate) ? "verify" : "migrate")
-                                    + "in progress. Continues for "
-                                    + TimeUtils.toRelativeTimeMillis(absoluteTimeoutAt, TimeUtils.timeNow())
-                                    + "ms. Next query in " + TimeUtils.toRelativeTimeMillis(nextQueryAt, TimeUtils.timeNow())
-                                    + "ms.");
-                        }
+                    queryID = PipeResolver.getNextQueryID();
+                    pipeResolver.addListener(getPipeID(), this, queryID);
+                    absoluteTimeoutAt = TimeUtils.toAbsoluteTimeMillis(
+                            Math.max(QUERYTIMEOUTMIN, (PipeServiceImpl.VERIFYINTERVAL / 20)));
+                    nextQueryAt = TimeUtils.timeNow();
 
-                        // check to see if we are completely done.
-                        if (TimeUtils.toRelativeTimeMillis(absoluteTimeoutAt, TimeUtils.timeNow()) <= 0) {
-                            pipeResolver.removeListener(getPipeID(), queryID);
-
-                            if (WorkerState.PENDINGVERIFY == workerstate) {
-                                if (Logging.SHOW_INFO && LOG.isLoggable(Level.INFO)) {
-                                    LOG.info("Pipe \'" + getPipeID() + "\' has migrated from " + destPeer);
-                                }
-                                workerstate = WorkerState.STARTMIGRATE;
-                                // move on to the next state.
-                                continue;
-                            } else {
-                                if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
-                                    LOG.warning("Pipe \'" + getPipeID() + "\' cannot be migrated and is being closed");
-                                }
-                                workerstate = WorkerState.CLOSED;
-                                close();
-                                // move on to the next state.
-                                continue;
-                            }
-                        }
+                    if (WorkerState.STARTVERIFY == workerstate) {
+                        workerstate = WorkerState.PENDINGVERIFY;
+                    } else if (WorkerState.STARTMIGRATE == workerstate) {
+                        workerstate = WorkerState.PENDINGMIGRATE;
+                    }
 
-                        // check if its time ot send another copy of the query.
-                        if (TimeUtils.toRelativeTimeMillis(nextQueryAt, TimeUtils.timeNow()) <= 0) {
-                            if (null != destPeer) {
-                                if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
-                                    LOG.fine(
-                                            "Sending out verify query (" + queryID + ") for \'" + getPipeID() + "\' to : "
-                                            + destPeer);
-                                }
-                                pipeResolver.sendPipeQuery(pAdv, Collections.singleton(destPeer), queryID);
-                            } else {
-                                if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
-                                    LOG.fine("Sending out resolve query (" + queryID + ") for " + getPipeID());
-                                }
-                                pipeResolver.sendPipeQuery(pAdv, resolvablePeers, queryID);
-                            }
-                            nextQueryAt = TimeUtils.toAbsoluteTimeMillis(
-                                    Math.max(QUERYINTERVALMIN, (PipeServiceImpl.VERIFYINTERVAL / 50)));
-                        }
+                    // move on to the next state.
+                    continue;
+                } else if ((WorkerState.PENDINGVERIFY == workerstate) || (WorkerState.PENDINGMIGRATE == workerstate)) {
+                    if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+                        LOG.fine(
+                                "Pipe " + ((WorkerState.PENDINGVERIFY == workerstate) ? "verify" : "migrate")
+                                + "in progress. Continues for "
+                                + TimeUtils.toRelativeTimeMillis(absoluteTimeoutAt, TimeUtils.timeNow())
+                                + "ms. Next query in " + TimeUtils.toRelativeTimeMillis(nextQueryAt, TimeUtils.timeNow())
+                                + "ms.");
+                    }
 
-                        long sleep = TimeUtils.toRelativeTimeMillis(Math.min(nextQueryAt, absoluteTimeoutAt), TimeUtils.timeNow());
+                    // check to see if we are completely done.
+                    if (TimeUtils.toRelativeTimeMillis(absoluteTimeoutAt, TimeUtils.timeNow()) <= 0) {
+                        pipeResolver.removeListener(getPipeID(), queryID);
 
-                        if (sleep >= 0) {
-                            if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
-                                LOG.fine("Waiting " + sleep + "ms for response for (" + queryID + ") for " + getPipeID());
+                        if (WorkerState.PENDINGVERIFY == workerstate) {
+                            if (Logging.SHOW_INFO && LOG.isLoggable(Level.INFO)) {
+                                LOG.info("Pipe \'" + getPipeID() + "\' has migrated from " + destPeer);
                             }
-                            try {
-                                wait(sleep);
-                            } catch (InterruptedException woken) {
-                                Thread.interrupted();
+                            workerstate = WorkerState.STARTMIGRATE;
+                        } else {
+                            if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
+                                LOG.warning("Pipe \'" + getPipeID() + "\' cannot be migrated and is being closed");
                             }
+                            workerstate = WorkerState.CLOSED;
+                            close();
                         }
 
                         // move on to the next state.
-                    } else if (WorkerState.ACQUIREMESSENGER == workerstate) {
-                        if ((null == destMessenger) || destMessenger.isClosed()) {
-                            destMessenger = null;
-                            if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
-                                LOG.fine("Getting messenger to \'" + destPeer + "\' for pipe " + getPipeID());
-                            }
+                        continue;
+                    }
 
-                            destAddress = mkAddress(destPeer, getPipeID());
-                            // todo 20031011 bondolo@jxta.org This should not be done under sync
-                            destMessenger = endpoint.getMessenger(destAddress);
-                            if (destMessenger == null) {
-                                // We could not get a messenger to the peer, forget it and try again.
-                                if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
-                                    LOG.warning("Could not get messenger to : " + destPeer + ". ");
-                                }
-
-                                if (migrated) {
-                                    // we can't migrate again, we never finished.
-                                    // the last migrate!
-                                    workerstate = WorkerState.CLOSED;
-                                    close();
-                                } else {
-                                    workerstate = WorkerState.STARTMIGRATE;
-                                }
-                                pipeResolver.removeListener((PipeID) getPipeID(), queryID);
-                                queryID = -1;
-                                destPeer = null;
-                                destAddress = null;
-
-                                // move on to the next state.
-                                continue;
-                            } else {
-                                // migration completed.
-                                migrated = false;
+                    // check if its time ot send another copy of the query.
+                    if (TimeUtils.toRelativeTimeMillis(nextQueryAt, TimeUtils.timeNow()) <= 0) {
+                        if (null != destPeer) {
+                            if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+                                LOG.fine(
+                                        "Sending out verify query (" + queryID + ") for \'" + getPipeID() + "\' to : "
+                                        + destPeer);
                             }
+                            pipeResolver.sendPipeQuery(pAdv, Collections.singleton(destPeer), queryID);
                         } else {
                             if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
-                                LOG.fine("Using existing messenger to : " + destPeer);
+                                LOG.fine("Sending out resolve query (" + queryID + ") for " + getPipeID());
                             }
+                            pipeResolver.sendPipeQuery(pAdv, resolvablePeers, queryID);
                         }
+                        nextQueryAt = TimeUtils.toAbsoluteTimeMillis(
+                                Math.max(QUERYINTERVALMIN, (PipeServiceImpl.VERIFYINTERVAL / 50)));
+                    }
 
-                        workerstate = WorkerState.SENDMESSAGES;
-                        nextVerifyAt = TimeUtils.toAbsoluteTimeMillis(PipeServiceImpl.VERIFYINTERVAL);
+                    long sleep = TimeUtils.toRelativeTimeMillis(Math.min(nextQueryAt, absoluteTimeoutAt), TimeUtils.timeNow());
 
-                        // move on to the next state.
-                        continue; // can't just fall through because we would start sending messages immediately.
-                    } else if (WorkerState.SENDMESSAGES == workerstate) {
-                        // is it time to do verification again?
-                        if (TimeUtils.toRelativeTimeMillis(nextVerifyAt, TimeUtils.timeNow()) <= 0) {
-                            workerstate = WorkerState.STARTVERIFY;
-                            pipeResolver.removeListener(getPipeID(), queryID);
-                            queryID = -1;
+                    if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+                        LOG.fine("Waiting " + sleep + "ms for response for (" + queryID + ") for " + getPipeID());
+                    }
+
+                    // End the turn. A response or the timer will start the next one.
+                    return Math.max(1, sleep);
+                } else if (WorkerState.ACQUIREMESSENGER == workerstate) {
+                    if ((null == destMessenger) || destMessenger.isClosed()) {
+                        releaseMessenger();
+                        if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+                            LOG.fine("Getting messenger to \'" + destPeer + "\' for pipe " + getPipeID());
                         }
-                        // move on to the next state.
-                    } else if (WorkerState.CLOSED == workerstate) {
-                        queue.clear(); // they aren't going to be sent
-                        if (null != destMessenger) {
-                            destMessenger.close();
-                            destMessenger = null;
+
+                        destAddress = mkAddress(destPeer, getPipeID());
+
+                        // Does not block. The messenger resolves in the background.
+                        Messenger acquired = endpoint.getMessengerImmediate(destAddress, null);
+
+                        if (acquired == null) {
+                            messengerFailed();
+
+                            // move on to the next state.
+                            continue;
                         }
-                        serviceThread = null;
-                        break;
+
+                        destMessenger = acquired;
+                        destMessengerWatcher = new MessengerWatcher();
+                        destMessenger.addStateListener(destMessengerWatcher);
+                        destMessenger.resolve();
                     } else {
-                        LOG.warning("Unrecognized state in worker thread : " + workerstate);
+                        if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+                            LOG.fine("Using existing messenger to : " + destPeer);
+                        }
+                    }
+
+                    workerstate = WorkerState.SENDMESSAGES;
+                    nextVerifyAt = TimeUtils.toAbsoluteTimeMillis(PipeServiceImpl.VERIFYINTERVAL);
+
+                    // move on to the next state.
+                    continue; // can't just fall through because we would start sending messages immediately.
+                } else if (WorkerState.SENDMESSAGES == workerstate) {
+                    // is it time to do verification again?
+                    if (TimeUtils.toRelativeTimeMillis(nextVerifyAt, TimeUtils.timeNow()) <= 0) {
+                        workerstate = WorkerState.STARTVERIFY;
+                        pipeResolver.removeListener(getPipeID(), queryID);
+                        queryID = -1;
+                        continue;
                     }
-                }
 
-                // now actually send messages. We don't do this under the global sync.
-                if (WorkerState.SENDMESSAGES == workerstate) {
-                    Message msg = null;
+                    int state = destMessenger.getState();
 
-                    try {
-                        msg = queue.poll(IDLEWORKERLINGER, TimeUnit.MILLISECONDS);
-                    } catch (InterruptedException woken) {
-                        Thread.interrupted();
+                    if (Messenger.UNRESOLVABLE == state) {
+                        messengerFailed();
                         continue;
                     }
 
-                    if (null == msg) {
-                        synchronized (this) {
-                            // before deciding to die, we need to make sure that
-                            // nobody snuck something into the queue. If there
-                            // is, then we have to be the one to service the
-                            // queue.
-                            if (null == queue.peek()) {
-                                if (closed) {
-                                    workerstate = WorkerState.CLOSED;
-                                    continue;
-                                } else {
-                                    serviceThread = null;
-                                    break;
-                                }
-                            } else {
-                                continue;
-                            }
-                        }
+                    if ((state & Messenger.USABLE) == 0) {
+                        // The messenger broke or was closed. Get another.
+                        workerstate = WorkerState.ACQUIREMESSENGER;
+                        continue;
                     }
 
-                    if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
-                        LOG.fine("Sending " + msg + " on " + getPipeID());
+                    if ((state & Messenger.RESOLVED) != 0) {
+                        // migration completed.
+                        migrated = false;
                     }
 
-                    if (!destMessenger.isClosed()) {
-                        try {
-                            destMessenger.sendMessageB(msg, null, null);
-                        } catch (IOException failed) {
-                            if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
-                                LOG.log(Level.WARNING, "Failure sending " + msg + " on " + getPipeID(), failed);
-                            }
-                        }
+                    // Have we had our share of this turn?
+                    if (sent >= OutputPipeScheduler.MESSAGES_PER_TURN) {
+                        return OutputPipeScheduler.YIELD;
+                    }
+
+                    messenger = destMessenger;
+
+                    // move on to the next state.
+                } else if (WorkerState.CLOSED == workerstate) {
+                    queue.clear(); // they aren't going to be sent
+                    if (null != destMessenger) {
+                        destMessenger.close();
+                        releaseMessenger();
                     }
+                    if (!retired) {
+                        retired = true;
+                        scheduler.pipeClosed(this);
+                    }
+                    return OutputPipeScheduler.IDLE;
+                } else {
+                    LOG.warning("Unrecognized state in worker thread : " + workerstate);
+                    return OutputPipeScheduler.IDLE;
+                }
+            }
+
+            // now actually send messages. We don't do this under the global sync.
+            Message msg = queue.peek();
 
-                    // May be now closed due to failing to send.
-                    if (destMessenger.isClosed()) {
-                        synchronized (this) {
-                            workerstate = WorkerState.ACQUIREMESSENGER;
-                            destMessenger = null;
+            if (null == msg) {
+                synchronized (this) {
+                    // before deciding to end the turn, we need to make sure
+                    // that nobody snuck something into the queue. If there
+                    // is, then we have to service the queue.
+                    if (null == queue.peek()) {
+                        if (closed) {
+                            workerstate = WorkerState.CLOSED;
+                            continue;
+                        } else {
+                            return OutputPipeScheduler.IDLE;
                         }
+                    } else {
+                        continue;
                     }
                 }
             }
-        } catch (Throwable all) {
-            if (Logging.SHOW_SEVERE && LOG.isLoggable(Level.SEVERE)) {
-                LOG.log(Level.SEVERE, "Uncaught Throwable in thread :" + Thread.currentThread().getName(), all);
+
+            if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+                LOG.fine("Sending " + msg + " on " + getPipeID());
             }
 
-            // give another thread the chance to start unless one already has.
-            // If the exception was caused by damaged state on this object then
-            // starting a new Thread may just cause the same exception again.
-            // Unfortunate tradeoff.
-            synchronized (this) {
-                if (serviceThread == Thread.currentThread()) {
-                    serviceThread = null;
+            if (messenger.sendMessageN(msg, null, null)) {
+                queue.poll();
+                sent++;
+                continue;
+            }
+
+            if (OutgoingMessageEvent.OVERFLOW == msg.getMessageProperty(Messenger.class)) {
+                // The messenger is saturated or still resolving. Keep the
+                // message and end the turn unless it has already drained.
+                // The messenger watcher will give us another turn.
+                if ((messenger.getState() & Messenger.SATURATED) != 0) {
+                    return OutputPipeScheduler.IDLE;
                 }
+                continue;
             }
-        } finally {
-            if (Logging.SHOW_INFO && LOG.isLoggable(Level.INFO)) {
-                LOG.info(
-                        "Thread exit : " + Thread.currentThread().getName() + "\n\tworker state : " + workerstate
-                        );
+
+            if ((messenger.getState() & Messenger.USABLE) != 0) {
+                // The messenger is fine, so the message itself was refused.
+                queue.poll();
+                sent++;
+
+                if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
+                    LOG.warning("Failure sending " + msg + " on " + getPipeID() + " : " + msg.getMessageProperty(Messenger.class));
+                }
             }
+
+            // Otherwise the messenger failed. The message is kept and the
+            // state loop will get another messenger.
         }
     }
 
     /**
-     * Starts the worker thread if it is not already running.
+     * Handles the failure to obtain a messenger to the destination peer by
+     * starting a migration or, if we already failed to complete one, closing
+     * the pipe.
      */
-    private synchronized void startServiceThread() {
-        // if there is no service thread, start one.
-        if ((null == serviceThread) && !closed) {
-            serviceThread = new Thread(peerGroup.getHomeThreadGroup(), this
-                    ,
-                    "Worker Thread for NonBlockingOutputPipe : " + getPipeID());
-            serviceThread.setDaemon(true);
-            serviceThread.start();
-            if (Logging.SHOW_INFO && LOG.isLoggable(Level.INFO)) {
-                LOG.info(
-                        "Thread start : " + serviceThread.getName() + "\n\tworker state : " + workerstate 
-                        );
+    private void messengerFailed() {
+        // We could not get a messenger to the peer, forget it and try again.
+        if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
+            LOG.warning("Could not get messenger to : " + destPeer + ". ");
+        }
+
+        releaseMessenger();
+
+        if (migrated) {
+            // we can't migrate again, we never finished.
+            // the last migrate!
+            workerstate = WorkerState.CLOSED;
+            close();
+        } else {
+            workerstate = WorkerState.STARTMIGRATE;
+        }
+        pipeResolver.removeListener((PipeID) getPipeID(), queryID);
+        queryID = -1;
+        destPeer = null;
+        destAddress = null;
+    }
+
+    /**
+     * Stops watching and forgets the current messenger.
+     */
+    private void releaseMessenger() {
+        if (null != destMessengerWatcher) {
+            destMessengerWatcher.active = false;
+            if (null != destMessenger) {
+                destMessenger.removeStateListener(destMessengerWatcher);
+            }
+            destMessengerWatcher = null;
+        }
+        destMessenger = null;
+    }
+
+    /**
+     * Gives the pipe a turn when the state of its messenger changes while
+     * it has messages waiting, or when the messenger becomes unusable.
+     */
+    private class MessengerWatcher implements MessengerStateListener {
+
+        /**
+         * If false then the pipe no longer uses the messenger.
+         */
+        volatile boolean active = true;
+
+        /**
+         * {@inheritDoc}
+         */
+        public boolean messengerStateChanged(int newState) {
+            if (active && (!queue.isEmpty() || ((newState & Messenger.USABLE) == 0))) {
+                scheduler.schedule(NonBlockingOutputPipe.this);
             }
+
+            return active;
         }
     }
 
@@ -713,9 +814,9 @@ class NonBlockingOutputPipe implements PipeResolver.Listener, OutputPipe, Runnab
             destAddress = null;
             if (null != destMessenger) {
                 destMessenger.close();
-                destMessenger = null;
+                releaseMessenger();
             }
-            notify();
+            scheduler.schedule(this);
             return true;
         }
 
@@ -754,7 +855,7 @@ class NonBlockingOutputPipe implements PipeResolver.Listener, OutputPipe, Runnab
             if ((workerstate == WorkerState.PENDINGMIGRATE) && Logging.SHOW_INFO && LOG.isLoggable(Level.INFO)) {
                 LOG.info("Pipe \'" + getPipeID() + "\' has migrated to " + destPeer);
             }
-            notify();
+            scheduler.schedule(this);
             return true;
         }
 
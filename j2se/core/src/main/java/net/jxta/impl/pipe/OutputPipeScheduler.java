@@ -0,0 +1,370 @@
+/*
+ * Copyright (c) 2001-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+package net.jxta.impl.pipe;
+
+import net.jxta.impl.util.TimeUtils;
+import net.jxta.impl.util.threads.TaskManager;
+import net.jxta.logging.Logging;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Multiplexes the sending work of all {@link NonBlockingOutputPipe}s onto a
+ * small number of worker tasks run by the shared {@link TaskManager}
+ * executor.
+ * <p/>
+ * Pipes with work to do are placed on a FIFO ready queue. Each time a worker
+ * takes a pipe from the queue the pipe is given one turn in which it may
+ * advance its state machine and send at most {@link #MESSAGES_PER_TURN}
+ * messages. A pipe with more work remaining is returned to the back of the
+ * queue so that busy pipes are serviced round-robin and cannot starve quiet
+ * ones. Pipes which are waiting for a pipe resolver response are woken by a
+ * timer on the shared scheduled executor or by the response itself. Idle
+ * pipes consume no threads at all.
+ * <p/>
+ * Backpressure remains per pipe: each pipe's queue is bounded and
+ * {@link NonBlockingOutputPipe#send(net.jxta.endpoint.Message)} refuses
+ * messages once it is full.
+ */
+final class OutputPipeScheduler {
+
+    /**
+     * Logger
+     */
+    private static final Logger LOG = Logger.getLogger(OutputPipeScheduler.class.getName());
+
+    /**
+     * System property which sets the maximum number of concurrent workers.
+     */
+    static final String WORKERS_SYSPROP = "net.jxta.impl.pipe.OutputPipeScheduler.workers";
+
+    /**
+     * Default maximum number of concurrent workers.
+     */
+    static final int DEFAULT_WORKERS = 4;
+
+    /**
+     * The maximum number of messages a pipe may send during one turn.
+     */
+    static final int MESSAGES_PER_TURN = 8;
+
+    /**
+     * The value returned from a pipe turn if the pipe has more work to do
+     * immediately.
+     */
+    static final long YIELD = 0;
+
+    /**
+     * The value returned from a pipe turn if the pipe has nothing to do until
+     * it is next scheduled.
+     */
+    static final long IDLE = -1;
+
+    /**
+     * Maximum time a single worker task will run pipe turns before returning
+     * its thread to the executor.
+     */
+    private static final long WORKER_SLICE = 100 * TimeUtils.AMILLISECOND;
+
+    /**
+     * The scheduler shared by all output pipes.
+     */
+    private static final OutputPipeScheduler SCHEDULER = new OutputPipeScheduler(Math.max(1, Integer.getInteger(WORKERS_SYSPROP, DEFAULT_WORKERS)));
+
+    /**
+     * Pipes waiting for a turn.
+     */
+    private final Queue<NonBlockingOutputPipe> ready = new ConcurrentLinkedQueue<NonBlockingOutputPipe>();
+
+    /**
+     * The maximum number of concurrent workers.
+     */
+    private final int maxWorkers;
+
+    /**
+     * The number of workers currently submitted to the executor.
+     */
+    private final AtomicInteger activeWorkers = new AtomicInteger(0);
+
+    /**
+     * The number of open pipes using this scheduler.
+     */
+    private final AtomicInteger activePipes = new AtomicInteger(0);
+
+    /**
+     * Returns the scheduler shared by all output pipes.
+     *
+     * @return the scheduler shared by all output pipes.
+     */
+    static OutputPipeScheduler getScheduler() {
+        return SCHEDULER;
+    }
+
+    /**
+     * Create a new scheduler.
+     *
+     * @param maxWorkers The maximum number of concurrent workers.
+     */
+    OutputPipeScheduler(int maxWorkers) {
+        this.maxWorkers = maxWorkers;
+    }
+
+    /**
+     * Returns the maximum number of concurrent workers.
+     *
+     * @return the maximum number of concurrent workers.
+     */
+    int getMaxWorkers() {
+        return maxWorkers;
+    }
+
+    /**
+     * Returns the number of workers currently running or waiting to run.
+     *
+     * @return the number of active workers.
+     */
+    int getActiveWorkers() {
+        return activeWorkers.get();
+    }
+
+    /**
+     * Returns the number of open pipes which are using this scheduler.
+     *
+     * @return the number of open pipes.
+     */
+    int getActivePipes() {
+        return activePipes.get();
+    }
+
+    /**
+     * Returns the number of pipes waiting for a turn.
+     *
+     * @return the number of pipes waiting for a turn.
+     */
+    int getReadyPipes() {
+        return ready.size();
+    }
+
+    /**
+     * Registers a newly opened pipe.
+     *
+     * @param pipe The pipe.
+     */
+    void pipeOpened(NonBlockingOutputPipe pipe) {
+        int pipes = activePipes.incrementAndGet();
+
+        if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+            LOG.fine("Opened " + pipe.getPipeID() + ". " + pipes + " active pipes / " + activeWorkers.get() + " of " + maxWorkers + " workers");
+        }
+    }
+
+    /**
+     * Unregisters a pipe which has finished closing.
+     *
+     * @param pipe The pipe.
+     */
+    void pipeClosed(NonBlockingOutputPipe pipe) {
+        int pipes = activePipes.decrementAndGet();
+
+        if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+            LOG.fine("Closed " + pipe.getPipeID() + ". " + pipes + " active pipes / " + activeWorkers.get() + " of " + maxWorkers + " workers");
+        }
+    }
+
+    /**
+     * Gives the pipe a turn as soon as possible. If the pipe is currently
+     * having a turn it will be given another turn once the current one
+     * completes.
+     *
+     * @param pipe The pipe.
+     */
+    void schedule(NonBlockingOutputPipe pipe) {
+        pipe.wakeRequested = true;
+
+        if (pipe.scheduled.compareAndSet(false, true)) {
+            ready.offer(pipe);
+            startWorker();
+        }
+    }
+
+    /**
+     * Starts another worker unless the maximum number are already active.
+     */
+    private void startWorker() {
+        while (true) {
+            int workers = activeWorkers.get();
+
+            if (workers >= maxWorkers) {
+                return;
+            }
+
+            if (activeWorkers.compareAndSet(workers, workers + 1)) {
+                break;
+            }
+        }
+
+        try {
+            TaskManager.getTaskManager().getExecutorService().execute(new Worker());
+        } catch (RejectedExecutionException rejected) {
+            activeWorkers.decrementAndGet();
+
+            if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
+                LOG.log(Level.WARNING, "Could not start output pipe worker", rejected);
+            }
+        }
+    }
+
+    /**
+     * Gives a pipe one turn and then schedules its next turn according to the
+     * result.
+     *
+     * @param pipe The pipe.
+     */
+    private void runTurn(NonBlockingOutputPipe pipe) {
+        long next;
+
+        pipe.wakeRequested = false;
+
+        try {
+            next = pipe.serviceTurn();
+        } catch (Throwable all) {
+            if (Logging.SHOW_SEVERE && LOG.isLoggable(Level.SEVERE)) {
+                LOG.log(Level.SEVERE, "Uncaught Throwable servicing " + pipe.getPipeID(), all);
+            }
+
+            // The next send will give the pipe another chance.
+            next = IDLE;
+        }
+
+        pipe.scheduled.set(false);
+
+        if ((YIELD == next) || pipe.wakeRequested) {
+            schedule(pipe);
+        } else if (next > 0) {
+            wakeAfter(pipe, next);
+        }
+    }
+
+    /**
+     * Gives the pipe a turn after the specified delay unless it is woken
+     * sooner. Replaces any previously requested delayed turn.
+     *
+     * @param pipe  The pipe.
+     * @param delay The delay in milliseconds.
+     */
+    private void wakeAfter(final NonBlockingOutputPipe pipe, long delay) {
+        ScheduledFuture<?> previous = pipe.wakeup;
+
+        if (null != previous) {
+            previous.cancel(false);
+        }
+
+        try {
+            pipe.wakeup = TaskManager.getTaskManager().getScheduledExecutorService().schedule(new Runnable() {
+                public void run() {
+                    schedule(pipe);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException rejected) {
+            pipe.wakeup = null;
+
+            if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
+                LOG.log(Level.WARNING, "Could not schedule wakeup for " + pipe.getPipeID(), rejected);
+            }
+        }
+    }
+
+    /**
+     * Runs pipe turns until there are no ready pipes or its time slice is
+     * used up.
+     */
+    private class Worker implements Runnable {
+
+        /**
+         * {@inheritDoc}
+         */
+        public void run() {
+            long sliceEndsAt = TimeUtils.toAbsoluteTimeMillis(WORKER_SLICE);
+
+            try {
+                NonBlockingOutputPipe pipe;
+
+                while (null != (pipe = ready.poll())) {
+                    runTurn(pipe);
+
+                    if (TimeUtils.toRelativeTimeMillis(sliceEndsAt) <= 0) {
+                        break;
+                    }
+                }
+            } finally {
+                activeWorkers.decrementAndGet();
+            }
+
+            // A pipe may have been readied after we last looked but before we
+            // were counted out.
+            if (!ready.isEmpty()) {
+                startWorker();
+            }
+        }
+    }
+}
@@ -59,6 +59,7 @@ package net.jxta.impl.pipe;
 import net.jxta.document.Advertisement;
 import net.jxta.id.ID;
 import net.jxta.id.IDFactory;
+import net.jxta.impl.peergroup.DependentModule;
 import net.jxta.impl.util.TimeUtils;
 import net.jxta.logging.Logging;
 import net.jxta.peer.PeerID;
@@ -71,6 +72,7 @@ import net.jxta.pipe.PipeID;
 import net.jxta.pipe.PipeMsgListener;
 import net.jxta.pipe.PipeService;
 import net.jxta.platform.Module;
+import net.jxta.platform.ModuleClassID;
 import net.jxta.protocol.ModuleImplAdvertisement;
 import net.jxta.protocol.PipeAdvertisement;
 import net.jxta.service.Service;
@@ -79,6 +81,7 @@ import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.text.MessageFormat;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -104,7 +107,7 @@ import java.util.logging.Logger;
  *      href="https://jxta-spec.dev.java.net/nonav/JXTAProtocols.html#proto-pbp"
  *      target="_blank">JXTA Protocols Specification : Pipe Binding Protocol</a>
  */
-public class PipeServiceImpl implements PipeService, PipeResolver.Listener {
+public class PipeServiceImpl implements PipeService, PipeResolver.Listener, DependentModule {
 
 	/**
 	 * The Logger
@@ -268,10 +271,30 @@ public class PipeServiceImpl implements PipeService, PipeResolver.Listener {
 			configInfo.append("\n\tConfiguration :");
 			configInfo.append("\n\t\tVerify Interval : " + VERIFYINTERVAL
 					+ "ms");
+			configInfo.append("\n\t\tOutput Pipe Workers : "
+					+ OutputPipeScheduler.getScheduler().getMaxWorkers());
+			configInfo.append("\n\t\tActive Output Pipes : "
+					+ OutputPipeScheduler.getScheduler().getActivePipes());
 			LOG.config(configInfo.toString());
 		}
 	}
 
+	/**
+	 * The services which must be started before this service.
+	 */
+	private static final Collection<ModuleClassID> START_DEPENDENCIES = Collections.unmodifiableList(Arrays.asList(
+			PeerGroup.endpointClassID,
+			PeerGroup.resolverClassID,
+			PeerGroup.membershipClassID,
+			PeerGroup.rendezvousClassID));
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Collection<ModuleClassID> getStartDependencies() {
+		return START_DEPENDENCIES;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 * <p/>
@@ -102,6 +102,8 @@ import java.util.logging.Logger;
  *   &lt;xs:attribute name="leaseDuration" type="xs:unsignedLong"/>
  *   &lt;xs:attribute name="leaseMargin" type="xs:unsignedLong"/>
  *   &lt;xs:attribute name="minHappyPeerView" type="xs:unsignedInt"/>
+ *   &lt;xs:attribute name="maxMsgIds" type="xs:unsignedInt"/>
+ *   &lt;xs:attribute name="msgIdExpiration" type="xs:unsignedLong"/>
  * &lt;/xs:complexType>
  * </code></pre>
  *
@@ -158,6 +160,8 @@ public final class RdvConfigAdv extends ExtendableAdvertisement implements Clone
     private static final String LEASE_DURATION_ATTR = "leaseDuration";
     private static final String LEASE_MARGIN_ATTR = "leaseMargin";
     private static final String MIN_HAPPY_PEERVIEW_ATTR = "minHappyPeerView";
+    private static final String MAX_MSGIDS_ATTR = "maxMsgIds";
+    private static final String MSGID_EXPIRATION_ATTR = "msgIdExpiration";
 
     private static final String SEEDS_RDV_ELEMENT = "seeds";
     private static final String USE_ONLY_SEEDS_ATTR = "useOnlySeeds";
@@ -214,6 +218,18 @@ public final class RdvConfigAdv extends ExtendableAdvertisement implements Clone
      */
     private int minHappyPeerView = -1;
 
+    /**
+     * Maximum number of propagated message ids remembered for duplicate
+     * detection.
+     */
+    private int maxMsgIds = -1;
+
+    /**
+     * Duration in relative milliseconds for which propagated message ids are
+     * remembered for duplicate detection.
+     */
+    private long msgIdExpiration = 0L;
+
     /**
      * If true then this peer will use only seed rendezvous when configured as
      * an edge peer.
@@ -340,6 +356,10 @@ public final class RdvConfigAdv extends ExtendableAdvertisement implements Clone
                 leaseMargin = Long.parseLong(aRdvAttr.getValue().trim());
             } else if (MIN_HAPPY_PEERVIEW_ATTR.equals(aRdvAttr.getName())) {
                 minHappyPeerView = Integer.parseInt(aRdvAttr.getValue().trim());
+            } else if (MAX_MSGIDS_ATTR.equals(aRdvAttr.getName())) {
+                maxMsgIds = Integer.parseInt(aRdvAttr.getValue().trim());
+            } else if (MSGID_EXPIRATION_ATTR.equals(aRdvAttr.getName())) {
+                msgIdExpiration = Long.parseLong(aRdvAttr.getValue().trim());
             } else if (PROPAGATE_RESPOND_ATTR.equals(aRdvAttr.getName())) {// Ignored; deprecated.
             } else if ("Flags".equals(aRdvAttr.getName())) { // deprecated
                 boolean onlySeeds = (aRdvAttr.getValue().indexOf("UseOnlySeeds") != -1);
@@ -382,6 +402,14 @@ public final class RdvConfigAdv extends ExtendableAdvertisement implements Clone
             throw new IllegalArgumentException("Min Happy Peer View must be > 0");
         }
 
+        if ((-1 != maxMsgIds) && (maxMsgIds <= 0)) {
+            throw new IllegalArgumentException("Max Message IDs must be > 0");
+        }
+
+        if (msgIdExpiration < 0) {
+            throw new IllegalArgumentException("Message ID Expiration must be >= 0");
+        }
+
         if ((seedingURIs.isEmpty() && seedRendezvous.isEmpty() && useOnlySeeds) && (configuration == RendezVousConfiguration.EDGE)) {
             throw new IllegalArgumentException("Must specify rendezvous if 'useOnlySeeds' is enabled and configured as client");
         }
@@ -558,6 +586,22 @@ public final class RdvConfigAdv extends ExtendableAdvertisement implements Clone
             attrDoc.addAttribute(MIN_HAPPY_PEERVIEW_ATTR, Integer.toString(minHappyPeerView));
         }
 
+        if (-1 != maxMsgIds) {
+            if (maxMsgIds <= 0) {
+                throw new IllegalStateException("Max Message IDs must be > 0");
+            }
+
+            attrDoc.addAttribute(MAX_MSGIDS_ATTR, Integer.toString(maxMsgIds));
+        }
+
+        if (0 != msgIdExpiration) {
+            if (msgIdExpiration < 0) {
+                throw new IllegalStateException("Message ID Expiration must be >= 0");
+            }
+
+            attrDoc.addAttribute(MSGID_EXPIRATION_ATTR, Long.toString(msgIdExpiration));
+        }
+
         if (!seedRendezvous.isEmpty() || !seedingURIs.isEmpty()) {
             Element seedsElem = adv.createElement(SEEDS_RDV_ELEMENT);
 
@@ -919,6 +963,60 @@ public final class RdvConfigAdv extends ExtendableAdvertisement implements Clone
         minHappyPeerView = newvalue;
     }
 
+    /**
+     * Returns the maximum number of propagated message ids which will be
+     * remembered for duplicate detection or -1 for the default value.
+     *
+     * @return the maximum number of propagated message ids remembered or
+     *         -1 for the default value.
+     */
+    public int getMaxMsgIds() {
+        return maxMsgIds;
+    }
+
+    /**
+     * Sets the maximum number of propagated message ids which will be
+     * remembered for duplicate detection.
+     *
+     * @param newvalue the maximum number of message ids, which must be > 0 or
+     *                 <code>-1</code> for the default value.
+     */
+    public void setMaxMsgIds(int newvalue) {
+        if ((-1 != newvalue) && (newvalue <= 0)) {
+            throw new IllegalArgumentException("Max Message IDs must be > 0");
+        }
+
+        maxMsgIds = newvalue;
+    }
+
+    /**
+     * The interval in relative milliseconds for which propagated message ids
+     * are remembered for duplicate detection. If <code>0</code> (zero), the
+     * default, then the default expiration is used.
+     *
+     * @return The interval in relative milliseconds for which propagated
+     *         message ids are remembered.
+     */
+    public long getMsgIdExpiration() {
+        return msgIdExpiration;
+    }
+
+    /**
+     * Sets the interval in relative milliseconds for which propagated message
+     * ids are remembered for duplicate detection.
+     *
+     * @param newvalue The interval in relative milliseconds for which
+     *                 propagated message ids are remembered or <code>0</code>
+     *                 for the default value.
+     */
+    public void setMsgIdExpiration(long newvalue) {
+        if (newvalue < 0) {
+            throw new IllegalArgumentException("Message ID Expiration must be >= 0");
+        }
+
+        msgIdExpiration = newvalue;
+    }
+
     /**
      * Return ACL URI if set
      *
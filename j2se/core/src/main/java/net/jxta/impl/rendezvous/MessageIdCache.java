@@ -0,0 +1,368 @@
+/*
+ * Copyright (c) 2001-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+package net.jxta.impl.rendezvous;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.jxta.impl.id.UUID.UUID;
+import net.jxta.impl.rendezvous.rendezvousMeter.RendezvousMeter;
+import net.jxta.impl.rendezvous.rendezvousMeter.RendezvousMeterBuildSettings;
+import net.jxta.impl.util.TimeUtils;
+
+/**
+ * Records the ids of recently seen propagated messages so that duplicates can
+ * be discarded.
+ * <p/>
+ * The ids are spread across a fixed number of independently locked stripes.
+ * Each stripe keeps its ids in arrival order which allows both the age based
+ * expiry and the enforcement of the memory bound to be done by removing
+ * entries from the head of the stripe. All operations are constant time.
+ * <p/>
+ * An id is remembered until it is older than the configured expiration or
+ * until it is displaced by newer ids once the stripe is full, whichever
+ * happens first.
+ */
+public class MessageIdCache {
+
+    /**
+     * Default maximum number of message ids remembered.
+     */
+    public static final int DEFAULT_MAX_MSGIDS = 16 * 1024;
+
+    /**
+     * Default duration in relative milliseconds for which message ids are
+     * remembered.
+     */
+    public static final long DEFAULT_MSGID_EXPIRATION = 5 * TimeUtils.AMINUTE;
+
+    /**
+     * Maximum number of stripes. Must be a power of two.
+     */
+    private static final int MAX_STRIPES = 16;
+
+    /**
+     * The stripes.
+     */
+    private final Stripe[] stripes;
+
+    /**
+     * Mask used to select a stripe from the id hash.
+     */
+    private final int stripeMask;
+
+    /**
+     * Maximum number of ids in all stripes.
+     */
+    private final int maxMsgIds;
+
+    /**
+     * Duration in relative milliseconds for which message ids are remembered.
+     */
+    private final long expiration;
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+
+    /**
+     * The meter which will be notified of cache activity or {@code null}.
+     */
+    private volatile RendezvousMeter rendezvousMeter = null;
+
+    /**
+     * A single stripe of the cache. The map is in insertion order and maps
+     * each id to the time at which it was first seen.
+     */
+    private static class Stripe {
+        final LinkedHashMap<UUID, Long> ids = new LinkedHashMap<UUID, Long>();
+        final int capacity;
+
+        Stripe(int capacity) {
+            this.capacity = capacity;
+        }
+    }
+
+    /**
+     * Creates a cache with the default size and expiration.
+     */
+    public MessageIdCache() {
+        this(DEFAULT_MAX_MSGIDS, DEFAULT_MSGID_EXPIRATION);
+    }
+
+    /**
+     * Creates a cache.
+     *
+     * @param maxMsgIds  The maximum number of message ids to remember.
+     * @param expiration The duration in relative milliseconds for which
+     *                   message ids are remembered.
+     */
+    public MessageIdCache(int maxMsgIds, long expiration) {
+        if (maxMsgIds <= 0) {
+            throw new IllegalArgumentException("Max message ids must be > 0");
+        }
+
+        if (expiration <= 0) {
+            throw new IllegalArgumentException("Message id expiration must be > 0");
+        }
+
+        this.maxMsgIds = maxMsgIds;
+        this.expiration = expiration;
+
+        int stripeCount = 1;
+
+        while ((stripeCount < MAX_STRIPES) && ((stripeCount * 2) <= maxMsgIds)) {
+            stripeCount *= 2;
+        }
+
+        stripes = new Stripe[stripeCount];
+        stripeMask = stripeCount - 1;
+
+        int perStripe = (maxMsgIds + stripeCount - 1) / stripeCount;
+
+        for (int eachStripe = 0; eachStripe < stripeCount; eachStripe++) {
+            stripes[eachStripe] = new Stripe(perStripe);
+        }
+    }
+
+    /**
+     * Sets the meter which will be notified of cache hits, misses and
+     * evictions.
+     *
+     * @param rendezvousMeter The meter or {@code null} to stop metering.
+     */
+    public void setRendezvousMeter(RendezvousMeter rendezvousMeter) {
+        this.rendezvousMeter = rendezvousMeter;
+    }
+
+    /**
+     * Records a message id.
+     *
+     * @param id The message id.
+     * @return {@code true} if the id was not previously known and has been
+     *         recorded otherwise {@code false} (duplicate).
+     */
+    public boolean add(UUID id) {
+        Stripe stripe = stripeFor(id);
+        long now = TimeUtils.timeNow();
+        boolean added;
+        int evicted;
+
+        synchronized (stripe) {
+            evicted = expire(stripe, now);
+
+            added = !stripe.ids.containsKey(id);
+
+            if (added) {
+                if (stripe.ids.size() >= stripe.capacity) {
+                    Iterator<UUID> eldest = stripe.ids.keySet().iterator();
+
+                    eldest.next();
+                    eldest.remove();
+                    evicted++;
+                }
+
+                stripe.ids.put(id, now);
+            }
+        }
+
+        if (added) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+
+        if (evicted > 0) {
+            evictions.addAndGet(evicted);
+        }
+
+        RendezvousMeter meter = rendezvousMeter;
+
+        if (RendezvousMeterBuildSettings.RENDEZVOUS_METERING && (meter != null)) {
+            if (added) {
+                meter.msgIdCacheMiss();
+            } else {
+                meter.msgIdCacheHit();
+            }
+
+            if (evicted > 0) {
+                meter.msgIdCacheEvictions(evicted);
+            }
+        }
+
+        return added;
+    }
+
+    /**
+     * Returns {@code true} if the message id is currently known.
+     *
+     * @param id The message id.
+     * @return {@code true} if the message id is currently known.
+     */
+    public boolean contains(UUID id) {
+        Stripe stripe = stripeFor(id);
+
+        synchronized (stripe) {
+            Long seen = stripe.ids.get(id);
+
+            return (null != seen) && (TimeUtils.toRelativeTimeMillis(TimeUtils.timeNow(), seen) < expiration);
+        }
+    }
+
+    /**
+     * Forgets all message ids.
+     */
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.ids.clear();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of message ids currently remembered. Expired ids
+     * which have not yet been removed are included.
+     *
+     * @return The number of message ids currently remembered.
+     */
+    public int size() {
+        int size = 0;
+
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.ids.size();
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * @return The maximum number of message ids which will be remembered.
+     */
+    public int getMaxMsgIds() {
+        return maxMsgIds;
+    }
+
+    /**
+     * @return The duration in relative milliseconds for which message ids are
+     *         remembered.
+     */
+    public long getExpiration() {
+        return expiration;
+    }
+
+    /**
+     * @return The number of duplicate message ids detected.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return The number of new message ids recorded.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return The number of message ids removed because they expired or
+     *         because the cache was full.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Removes the expired ids from the head of the stripe. The caller must
+     * hold the stripe lock.
+     *
+     * @param stripe The stripe.
+     * @param now    The current time.
+     * @return The number of ids removed.
+     */
+    private int expire(Stripe stripe, long now) {
+        int expired = 0;
+        Iterator<Map.Entry<UUID, Long>> eachId = stripe.ids.entrySet().iterator();
+
+        while (eachId.hasNext()) {
+            Map.Entry<UUID, Long> anId = eachId.next();
+
+            if (TimeUtils.toRelativeTimeMillis(now, anId.getValue()) < expiration) {
+                break;
+            }
+
+            eachId.remove();
+            expired++;
+        }
+
+        return expired;
+    }
+
+    private Stripe stripeFor(UUID id) {
+        int hash = id.hashCode();
+
+        // spread the high bits into the low bits used for stripe selection.
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+
+        return stripes[hash & stripeMask];
+    }
+}
@@ -63,7 +63,6 @@ import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Random;
 import java.util.Set;
@@ -87,6 +86,7 @@ import net.jxta.impl.endpoint.EndpointUtils;
 import net.jxta.impl.id.UUID.UUID;
 import net.jxta.impl.id.UUID.UUIDFactory;
 import net.jxta.impl.meter.MonitorManager;
+import net.jxta.impl.peergroup.DependentModule;
 import net.jxta.impl.protocol.RdvConfigAdv;
 import net.jxta.impl.rendezvous.adhoc.AdhocPeerRdvService;
 import net.jxta.impl.rendezvous.edge.EdgePeerRdvService;
@@ -102,6 +102,7 @@ import net.jxta.meter.MonitorResources;
 import net.jxta.peergroup.PeerGroup;
 import net.jxta.peergroup.PeerGroupID;
 import net.jxta.platform.Module;
+import net.jxta.platform.ModuleClassID;
 import net.jxta.protocol.ConfigParams;
 import net.jxta.protocol.ModuleImplAdvertisement;
 import net.jxta.protocol.PeerAdvertisement;
@@ -120,7 +121,7 @@ import net.jxta.service.Service;
  * @see net.jxta.rendezvous.RendezVousService
  * @see <a href="https://jxta-spec.dev.java.net/nonav/JXTAProtocols.html#proto-rvp" target="_blank">JXTA Protocols Specification : Rendezvous Protocol</a>
  */
-public final class RendezVousServiceImpl implements RendezVousService {
+public final class RendezVousServiceImpl implements RendezVousService, DependentModule {
 
     /**
      * Logger
@@ -132,7 +133,6 @@ public final class RendezVousServiceImpl implements RendezVousService {
     private static final double DEMOTION_FACTOR = 0.05;
     private static final long DEMOTION_MIN_PEERVIEW_COUNT = 5;
     private static final long DEMOTION_MIN_CLIENT_COUNT = 3;
-    protected static final int MAX_MSGIDS = 1000;
 
     private final static Random random = new Random();
 
@@ -154,12 +154,7 @@ public final class RendezVousServiceImpl implements RendezVousService {
     /**
      * The message IDs we have seen. Used for duplicate removal.
      */
-    private final List<UUID> msgIds = new ArrayList<UUID>(MAX_MSGIDS);
-
-    /**
-     * Total number of messages which have been received.
-     */
-    private int messagesReceived;
+    private MessageIdCache msgIds = new MessageIdCache();
 
     private RdvConfigAdv.RendezVousConfiguration config = RdvConfigAdv.RendezVousConfiguration.EDGE;
     private boolean autoRendezvous = false;
@@ -258,6 +253,20 @@ public final class RendezVousServiceImpl implements RendezVousService {
 
         rdv_watchdog_interval = rdvConfigAdv.getAutoRendezvousCheckInterval();
 
+        int maxMsgIds = rdvConfigAdv.getMaxMsgIds();
+
+        if (-1 == maxMsgIds) {
+            maxMsgIds = MessageIdCache.DEFAULT_MAX_MSGIDS;
+        }
+
+        long msgIdExpiration = rdvConfigAdv.getMsgIdExpiration();
+
+        if (0 == msgIdExpiration) {
+            msgIdExpiration = MessageIdCache.DEFAULT_MSGID_EXPIRATION;
+        }
+
+        msgIds = new MessageIdCache(maxMsgIds, msgIdExpiration);
+
         // force AD-HOC config for World Peer Group.
         if (PeerGroupID.worldPeerGroupID.equals(group.getPeerGroupID())) {
             config = RdvConfigAdv.RendezVousConfiguration.AD_HOC;
@@ -282,6 +291,8 @@ public final class RendezVousServiceImpl implements RendezVousService {
             configInfo.append("\n\t\tRendezVous : ").append(config);
             configInfo.append("\n\t\tAuto RendezVous : ").append(autoRendezvous);
             configInfo.append("\n\t\tAuto-RendezVous Reconfig Interval : ").append(rdv_watchdog_interval);
+            configInfo.append("\n\t\tMax Message IDs : ").append(maxMsgIds);
+            configInfo.append("\n\t\tMessage ID Expiration : ").append(msgIdExpiration);
 
             LOG.config(configInfo.toString());
         }
@@ -290,6 +301,20 @@ public final class RendezVousServiceImpl implements RendezVousService {
         rdvProviderSwitchStatus.set(true);
     }
 
+    /**
+     * The services which must be started before this service.
+     */
+    private static final Collection<ModuleClassID> START_DEPENDENCIES = Collections.unmodifiableList(Arrays.asList(
+            PeerGroup.endpointClassID,
+            PeerGroup.membershipClassID));
+
+    /**
+     * {@inheritDoc}
+     */
+    public Collection<ModuleClassID> getStartDependencies() {
+        return START_DEPENDENCIES;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -352,6 +377,10 @@ public final class RendezVousServiceImpl implements RendezVousService {
                     ,
                     MonitorResources.rendezvousServiceMonitorClassID);
             provider.setRendezvousServiceMonitor(rendezvousServiceMonitor);
+
+            if (null != rendezvousServiceMonitor) {
+                msgIds.setRendezvousMeter(rendezvousServiceMonitor.getRendezvousMeter());
+            }
         }
 
         provider.startApp(null);
@@ -889,11 +918,7 @@ public final class RendezVousServiceImpl implements RendezVousService {
 
     public boolean isMsgIdRecorded(UUID id) {
 
-        boolean found;
-
-        synchronized (msgIds) {
-            found = msgIds.contains(id);
-        }
+        boolean found = msgIds.contains(id);
 
         if (Logging.SHOW_FINER && LOG.isLoggable(Level.FINER)) {
             LOG.finer(id + " = " + found);
@@ -903,7 +928,7 @@ public final class RendezVousServiceImpl implements RendezVousService {
     }
 
     /**
-     * Checks if a message id has been recorded.
+     * Records a message id if it has not already been recorded.
      *
      * @param id message to record.
      * @return {@code true} If message was added otherwise (duplicate)
@@ -911,19 +936,9 @@ public final class RendezVousServiceImpl implements RendezVousService {
      */
     public boolean addMsgId(UUID id) {
 
-        synchronized (msgIds) {
-            if (isMsgIdRecorded(id)) {
-                // Already there. Nothing to do
-                return false;
-            }
-
-            if (msgIds.size() < MAX_MSGIDS) {
-                msgIds.add(id);
-            } else {
-                msgIds.set((messagesReceived % MAX_MSGIDS), id);
-            }
-
-            messagesReceived++;
+        if (!msgIds.add(id)) {
+            // Already there. Nothing to do
+            return false;
         }
 
         if (Logging.SHOW_FINER && LOG.isLoggable(Level.FINER)) {
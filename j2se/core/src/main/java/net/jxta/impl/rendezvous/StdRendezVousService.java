@@ -60,9 +60,11 @@ import net.jxta.endpoint.EndpointListener;
 import net.jxta.endpoint.Message;
 import net.jxta.endpoint.Messenger;
 import net.jxta.endpoint.TextDocumentMessageElement;
+import net.jxta.endpoint.WireFormatMessage;
 import net.jxta.id.ID;
 import net.jxta.id.IDFactory;
 import net.jxta.impl.endpoint.EndpointUtils;
+import net.jxta.impl.endpoint.WireFormatMessageBinary;
 import net.jxta.impl.rendezvous.rdv.RdvPeerRdvService;
 import net.jxta.impl.rendezvous.rendezvousMeter.RendezvousMeterBuildSettings;
 import net.jxta.impl.rendezvous.rpv.PeerViewElement;
@@ -258,6 +260,7 @@ public abstract class StdRendezVousService extends RendezVousServiceProvider {
 
         if (null != propHdr) {
             int numPeers = 0;
+            WireFormatMessage shared = null;
 
             try {
                 while (destPeerIDs.hasMoreElements()) {
@@ -291,7 +294,10 @@ public abstract class StdRendezVousService extends RendezVousServiceProvider {
                             }
 
                             if (pConn.isConnected()) {
-                                pConn.sendMessage(msg.clone(), PropSName, PropPName);
+                                if (null == shared) {
+                                    shared = toSharedWire(msg);
+                                }
+                                pConn.sendMessage(sharedClone(msg, shared), PropSName, PropPName);
                             } else {
                                 continue;
                             }
@@ -420,6 +426,9 @@ public abstract class StdRendezVousService extends RendezVousServiceProvider {
         List<PeerConnection> peers = Arrays.asList(getPeerConnections());
         int sentToPeers = 0;
 
+        // Serialize the message once rather than once for each peer.
+        WireFormatMessage shared = (peers.size() > 1) ? toSharedWire(msg) : null;
+
         if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
             LOG.fine("Sending " + msg + "(" + propHdr.getMsgId() + ") to " + peers.size() + " peers.");
         }
@@ -446,7 +455,7 @@ public abstract class StdRendezVousService extends RendezVousServiceProvider {
                 LOG.fine("Sending " + msg + "(" + propHdr.getMsgId() + ") to " + pConn);
             }
 
-            if (pConn.sendMessage(msg.clone(), PropSName, PropPName)) {
+            if (pConn.sendMessage(sharedClone(msg, shared), PropSName, PropPName)) {
                 sentToPeers++;
             }
         }
@@ -458,6 +467,45 @@ public abstract class StdRendezVousService extends RendezVousServiceProvider {
         return sentToPeers;
     }
 
+    /**
+     * Serializes a message which is to be sent to several peers.
+     *
+     * @param msg The message to be sent.
+     * @return The serialization to be shared by the copies of the message sent
+     *         to each peer or {@code null} if the message could not be
+     *         serialized.
+     * @see WireFormatMessageBinary#toSharedWire(Message)
+     */
+    private static WireFormatMessage toSharedWire(Message msg) {
+        try {
+            return WireFormatMessageBinary.toSharedWire(msg);
+        } catch (IOException failed) {
+            if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
+                LOG.log(Level.WARNING, "Could not serialize " + msg, failed);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Returns a copy of a message to be sent to one of several peers. The
+     * copy reuses the shared serialization of the message.
+     *
+     * @param msg    The message to be sent.
+     * @param shared The shared serialization of the message, may be
+     *               {@code null}.
+     * @return The copy of the message.
+     */
+    private static Message sharedClone(Message msg, WireFormatMessage shared) {
+        Message copy = msg.clone();
+
+        if (null != shared) {
+            copy.setMessageProperty(WireFormatMessageBinary.SHARED_WIRE_PROPERTY, shared);
+        }
+
+        return copy;
+    }
+
     /**
      * Sends a disconnect message to the specified peer.
      *
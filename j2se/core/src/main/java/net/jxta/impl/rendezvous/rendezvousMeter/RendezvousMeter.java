@@ -268,4 +268,31 @@ public class RendezvousMeter {
         deltaMetrics.walkToPeersFailed();
         cumulativeMetrics.walkToPeersFailed();
     }
+
+    public void msgIdCacheHit() {
+        if (deltaMetrics == null) {	
+            createDeltaMetric();
+        }
+
+        deltaMetrics.msgIdCacheHit();
+        cumulativeMetrics.msgIdCacheHit();
+    }
+
+    public void msgIdCacheMiss() {
+        if (deltaMetrics == null) {	
+            createDeltaMetric();
+        }
+
+        deltaMetrics.msgIdCacheMiss();
+        cumulativeMetrics.msgIdCacheMiss();
+    }
+
+    public void msgIdCacheEvictions(int numEvicted) {
+        if (deltaMetrics == null) {	
+            createDeltaMetric();
+        }
+
+        deltaMetrics.msgIdCacheEvictions(numEvicted);
+        cumulativeMetrics.msgIdCacheEvictions(numEvicted);
+    }
 }
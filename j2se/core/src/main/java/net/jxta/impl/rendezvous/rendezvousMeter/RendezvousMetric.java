@@ -112,6 +112,10 @@ public class RendezvousMetric implements DocumentSerializable {
     private int numFailedWalkToPeers;
     private int numPeersWalkedTo;
 
+    private int numMsgIdCacheHits;
+    private int numMsgIdCacheMisses;
+    private int numMsgIdCacheEvictions;
+
     public RendezvousMetric() {}
 	
     public RendezvousMetric(RendezvousMetric prototype) {
@@ -340,6 +344,21 @@ public class RendezvousMetric implements DocumentSerializable {
         return numPeersWalkedTo;
     }
 
+    /** The number of propagated message ids found in the duplicate detection cache **/
+    public int getNumMsgIdCacheHits() {
+        return numMsgIdCacheHits;
+    }
+
+    /** The number of propagated message ids not found in the duplicate detection cache **/
+    public int getNumMsgIdCacheMisses() {
+        return numMsgIdCacheMisses;
+    }
+
+    /** The number of message ids expired or displaced from the duplicate detection cache **/
+    public int getNumMsgIdCacheEvictions() {
+        return numMsgIdCacheEvictions;
+    }
+
     /** Get the duration of current transition to an edge
      * <BR><BR>
      * <B>Note:</B> This assumes the clocks are in sync with the reporting peer 
@@ -468,6 +487,18 @@ public class RendezvousMetric implements DocumentSerializable {
         numFailedWalkToPeers++;
     } 
 
+    void msgIdCacheHit() {
+        numMsgIdCacheHits++;
+    } 
+
+    void msgIdCacheMiss() {
+        numMsgIdCacheMisses++;
+    } 
+
+    void msgIdCacheEvictions(int numEvicted) {
+        numMsgIdCacheEvictions += numEvicted;
+    } 
+
     public void mergeMetrics(RendezvousMetric otherRendezvousMetric) {	
         if (otherRendezvousMetric == null) {
             return;  
@@ -516,6 +547,10 @@ public class RendezvousMetric implements DocumentSerializable {
         this.numWalkedToPeers += otherRendezvousMetric.numWalkedToPeers;
         this.numFailedWalkToPeers += otherRendezvousMetric.numFailedWalkToPeers;
         this.numPeersWalkedTo += otherRendezvousMetric.numPeersWalkedTo;
+
+        this.numMsgIdCacheHits += otherRendezvousMetric.numMsgIdCacheHits;
+        this.numMsgIdCacheMisses += otherRendezvousMetric.numMsgIdCacheMisses;
+        this.numMsgIdCacheEvictions += otherRendezvousMetric.numMsgIdCacheEvictions;
     }
 	
     public void serializeTo(Element element) throws DocumentSerializationException {
@@ -600,6 +635,15 @@ public class RendezvousMetric implements DocumentSerializable {
         if (numPeersWalkedTo != 0) {
             DocumentSerializableUtilities.addInt(element, "numPeersWalkedTo", numPeersWalkedTo);
         }
+        if (numMsgIdCacheHits != 0) {
+            DocumentSerializableUtilities.addInt(element, "numMsgIdCacheHits", numMsgIdCacheHits);
+        }
+        if (numMsgIdCacheMisses != 0) {
+            DocumentSerializableUtilities.addInt(element, "numMsgIdCacheMisses", numMsgIdCacheMisses);
+        }
+        if (numMsgIdCacheEvictions != 0) {
+            DocumentSerializableUtilities.addInt(element, "numMsgIdCacheEvictions", numMsgIdCacheEvictions);
+        }
     }
 
     public void initializeFrom(Element element) throws DocumentSerializationException {
@@ -661,6 +705,12 @@ public class RendezvousMetric implements DocumentSerializable {
                 numFailedWalkToPeers = DocumentSerializableUtilities.getInt(childElement);
             } else if (tagName.equals("numPeersWalkedTo")) { 
                 numPeersWalkedTo = DocumentSerializableUtilities.getInt(childElement);
+            } else if (tagName.equals("numMsgIdCacheHits")) { 
+                numMsgIdCacheHits = DocumentSerializableUtilities.getInt(childElement);
+            } else if (tagName.equals("numMsgIdCacheMisses")) { 
+                numMsgIdCacheMisses = DocumentSerializableUtilities.getInt(childElement);
+            } else if (tagName.equals("numMsgIdCacheEvictions")) { 
+                numMsgIdCacheEvictions = DocumentSerializableUtilities.getInt(childElement);
             }
         }
     }
@@ -75,6 +75,7 @@ import java.util.Vector;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -367,6 +368,11 @@ public final class PeerView implements EndpointListener, RendezvousListener {
      */
     private final SortedSet<PeerViewDestination> localView = Collections.synchronizedSortedSet(new TreeSet<PeerViewDestination>());
 
+    /**
+     * Incremented whenever the membership of {@link #localView} changes.
+     */
+    private final AtomicLong viewVersion = new AtomicLong();
+
     /**
      * PVE for ourself.
      * <p/>
@@ -901,6 +907,7 @@ public final class PeerView implements EndpointListener, RendezvousListener {
             downPeer = null;
             upPeer = null;
             localView.clear();
+            viewVersion.incrementAndGet();
 
             rpvListeners.clear();
             
@@ -1777,6 +1784,17 @@ public final class PeerView implements EndpointListener, RendezvousListener {
         }
     }
 
+    /**
+     * Returns the version of the PeerView for this group. The version changes
+     * whenever a peer is added to or removed from the view, so callers may
+     * cache what they derive from {@link #getView()} until it changes.
+     *
+     * @return The current version of the local view of the peerview.
+     */
+    public long getViewVersion() {
+        return viewVersion.get();
+    }
+
     /**
      * Add the provided element to the local peerview.
      *
@@ -1795,6 +1813,8 @@ public final class PeerView implements EndpointListener, RendezvousListener {
             added = localView.add(pve);
 
             if (added) {
+                viewVersion.incrementAndGet();
+
                 // Refresh, if necessary, our up and down peers.
                 updateUpAndDownPeers();
             }
@@ -1821,6 +1841,8 @@ public final class PeerView implements EndpointListener, RendezvousListener {
             removed = localView.remove(pve);
 
             if (removed) {
+                viewVersion.incrementAndGet();
+
                 // Refresh, if necessary, our up and down peers.
                 updateUpAndDownPeers();
             }
@@ -0,0 +1,398 @@
+/*
+ * Copyright (c) 2001-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+
+package net.jxta.impl.resolver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.jxta.endpoint.MessageElement;
+import net.jxta.id.ID;
+import net.jxta.logging.Logging;
+import net.jxta.protocol.RouteAdvertisement;
+
+/**
+ * Packs small resolver queries and responses bound for the same peer and
+ * listener into a single endpoint message.
+ * <p/>
+ * Each query or response is a message element. Elements are grouped by
+ * destination peer and service parameter (the query or response listener).
+ * A group is sent when the packing window which started with its first
+ * element expires, when it reaches the maximum number of elements or bytes,
+ * or when {@link #flush()} is called. Elements larger than the maximum
+ * element size are sent immediately in a message of their own.
+ * <p/>
+ * Different destinations never contend with each other: the groups are held
+ * in a concurrent map and each group is only locked while an element is
+ * added or while it is closed for sending.
+ */
+final class ResolverMessagePacker {
+
+    /**
+     * Logger
+     */
+    private final static Logger LOG = Logger.getLogger(ResolverMessagePacker.class.getName());
+
+    /**
+     * Sends the packed messages.
+     */
+    interface Sender {
+
+        /**
+         * Send the elements to a peer in a single message.
+         *
+         * @param destination  the peer to send to.
+         * @param route        a route to the peer or {@code null}.
+         * @param serviceParam the service parameter of the destination listener.
+         * @param elements     the elements, in the order they were added.
+         */
+        void send(ID destination, RouteAdvertisement route, String serviceParam, List<MessageElement> elements);
+    }
+
+    /**
+     * The destination of a packed message.
+     */
+    private static final class Key {
+        final ID destination;
+        final String serviceParam;
+
+        Key(ID destination, String serviceParam) {
+            this.destination = destination;
+            this.serviceParam = serviceParam;
+        }
+
+        @Override
+        public boolean equals(Object target) {
+            if (this == target) {
+                return true;
+            }
+
+            if (!(target instanceof Key)) {
+                return false;
+            }
+
+            Key other = (Key) target;
+
+            return destination.equals(other.destination) && serviceParam.equals(other.serviceParam);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * destination.hashCode() + serviceParam.hashCode();
+        }
+    }
+
+    /**
+     * The elements accumulated for a key. Once closed no further elements may
+     * be added and a new pack must be started.
+     */
+    private final class Pack implements Runnable {
+        final Key key;
+        final List<MessageElement> elements = new ArrayList<MessageElement>();
+        long bytes = 0;
+        RouteAdvertisement route = null;
+        boolean closed = false;
+        volatile ScheduledFuture<?> timer = null;
+
+        Pack(Key key) {
+            this.key = key;
+        }
+
+        /**
+         * Packing window expired.
+         */
+        public void run() {
+            try {
+                ship(this, windowFlushes);
+            } catch (Throwable all) {
+                if (Logging.SHOW_SEVERE && LOG.isLoggable(Level.SEVERE)) {
+                    LOG.log(Level.SEVERE, "Uncaught Throwable in resolver pack flush", all);
+                }
+            }
+        }
+    }
+
+    private final Sender sender;
+    private final ScheduledExecutorService executor;
+    private final long window;
+    private final int maxElements;
+    private final long maxBytes;
+    private final long maxElementSize;
+
+    private final ConcurrentMap<Key, Pack> pending = new ConcurrentHashMap<Key, Pack>();
+
+    private volatile boolean stopped = false;
+
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong elements = new AtomicLong();
+    private final AtomicLong windowFlushes = new AtomicLong();
+    private final AtomicLong sizeFlushes = new AtomicLong();
+    private final AtomicLong eventFlushes = new AtomicLong();
+
+    /**
+     * @param sender         sends the packed messages.
+     * @param executor       runs the window expiry flushes.
+     * @param window         the maximum time in milliseconds an element is
+     *                       held. If zero or less elements are sent immediately.
+     * @param maxElements    the maximum number of elements per message.
+     * @param maxBytes       the maximum total size of the elements of a message.
+     * @param maxElementSize the largest element which will be packed.
+     */
+    ResolverMessagePacker(Sender sender, ScheduledExecutorService executor, long window, int maxElements, long maxBytes, long maxElementSize) {
+        if (maxElements < 1) {
+            throw new IllegalArgumentException("Maximum elements per message must be at least 1");
+        }
+
+        this.sender = sender;
+        this.executor = executor;
+        this.window = window;
+        this.maxElements = maxElements;
+        this.maxBytes = maxBytes;
+        this.maxElementSize = maxElementSize;
+    }
+
+    /**
+     * Add an element to be sent to the specified peer.
+     *
+     * @param destination  the peer to send to.
+     * @param route        a route to the peer or {@code null}.
+     * @param serviceParam the service parameter of the destination listener.
+     * @param element      the query or response element.
+     */
+    void add(ID destination, RouteAdvertisement route, String serviceParam, MessageElement element) {
+        Key key = new Key(destination, serviceParam);
+        long size = element.getByteLength();
+
+        if ((window <= 0) || (maxElements == 1) || (size > maxElementSize) || stopped) {
+            send(key, route, Collections.singletonList(element));
+            return;
+        }
+
+        while (true) {
+            Pack pack = pending.get(key);
+
+            if (null == pack) {
+                Pack created = new Pack(key);
+
+                pack = pending.putIfAbsent(key, created);
+                if (null == pack) {
+                    pack = created;
+                    pack.timer = executor.schedule(pack, window, TimeUnit.MILLISECONDS);
+                }
+            }
+
+            boolean full;
+
+            synchronized (pack) {
+                if (pack.closed) {
+                    // Lost a race with a flush, start again with a new pack.
+                    continue;
+                }
+
+                pack.elements.add(element);
+                pack.bytes += size;
+                if (null != route) {
+                    pack.route = route;
+                }
+                full = (pack.elements.size() >= maxElements) || (pack.bytes >= maxBytes);
+                if (full) {
+                    pack.closed = true;
+                }
+            }
+
+            if (full) {
+                sendClosed(pack, sizeFlushes);
+            }
+            return;
+        }
+    }
+
+    /**
+     * Send all of the accumulated elements now.
+     */
+    void flush() {
+        for (Pack pack : pending.values()) {
+            ship(pack, eventFlushes);
+        }
+    }
+
+    /**
+     * Send all of the accumulated elements. Elements added afterwards are
+     * sent immediately.
+     */
+    void stop() {
+        stopped = true;
+        flush();
+    }
+
+    /**
+     * Close a pack and send its elements, unless it has already been sent.
+     *
+     * @param pack   the pack.
+     * @param reason the counter of the reason for sending.
+     */
+    private void ship(Pack pack, AtomicLong reason) {
+        synchronized (pack) {
+            if (pack.closed) {
+                return;
+            }
+            pack.closed = true;
+        }
+
+        sendClosed(pack, reason);
+    }
+
+    /**
+     * Send the elements of a pack which has just been closed.
+     *
+     * @param pack   the pack.
+     * @param reason the counter of the reason for sending.
+     */
+    private void sendClosed(Pack pack, AtomicLong reason) {
+        pending.remove(pack.key, pack);
+
+        ScheduledFuture<?> timer = pack.timer;
+
+        if ((null != timer) && (reason != windowFlushes)) {
+            timer.cancel(false);
+        }
+
+        if (!pack.elements.isEmpty()) {
+            reason.incrementAndGet();
+            send(pack.key, pack.route, pack.elements);
+        }
+    }
+
+    private void send(Key key, RouteAdvertisement route, List<MessageElement> toSend) {
+        messages.incrementAndGet();
+        elements.addAndGet(toSend.size());
+
+        if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+            LOG.fine("Sending " + toSend.size() + " resolver elements to " + key.destination + " / " + key.serviceParam);
+        }
+
+        sender.send(key.destination, route, key.serviceParam, toSend);
+    }
+
+    /**
+     * @return the number of messages sent.
+     */
+    long getMessageCount() {
+        return messages.get();
+    }
+
+    /**
+     * @return the number of elements sent.
+     */
+    long getElementCount() {
+        return elements.get();
+    }
+
+    /**
+     * @return the average number of elements per message sent, or 0.0 if no
+     *         messages have been sent.
+     */
+    double getAverageElementsPerMessage() {
+        long sent = messages.get();
+
+        return (0 == sent) ? 0.0 : ((double) elements.get()) / sent;
+    }
+
+    /**
+     * @return the number of messages sent because the packing window expired.
+     */
+    long getWindowFlushCount() {
+        return windowFlushes.get();
+    }
+
+    /**
+     * @return the number of messages sent because they were full.
+     */
+    long getSizeFlushCount() {
+        return sizeFlushes.get();
+    }
+
+    /**
+     * @return the number of messages sent by {@link #flush()}.
+     */
+    long getEventFlushCount() {
+        return eventFlushes.get();
+    }
+
+    /**
+     * @return the number of elements waiting to be sent.
+     */
+    int getPendingElementCount() {
+        int count = 0;
+
+        for (Pack pack : pending.values()) {
+            synchronized (pack) {
+                count += pack.elements.size();
+            }
+        }
+
+        return count;
+    }
+}
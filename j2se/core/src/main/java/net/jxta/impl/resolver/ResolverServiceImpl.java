@@ -65,9 +65,11 @@ import net.jxta.document.XMLDocument;
 import net.jxta.endpoint.*;
 import net.jxta.id.ID;
 import net.jxta.id.IDFactory;
+import net.jxta.impl.document.BinaryXMLDocument;
 import net.jxta.impl.endpoint.router.EndpointRouter;
 import net.jxta.impl.endpoint.router.RouteControl;
 import net.jxta.impl.meter.MonitorManager;
+import net.jxta.impl.peergroup.DependentModule;
 import net.jxta.impl.protocol.ResolverQuery;
 import net.jxta.impl.protocol.ResolverResponse;
 import net.jxta.impl.protocol.ResolverSrdiMsgImpl;
@@ -76,12 +78,15 @@ import net.jxta.impl.resolver.resolverMeter.ResolverMeter;
 import net.jxta.impl.resolver.resolverMeter.ResolverMeterBuildSettings;
 import net.jxta.impl.resolver.resolverMeter.ResolverServiceMonitor;
 import net.jxta.impl.resolver.resolverMeter.SrdiHandlerMeter;
+import net.jxta.impl.util.TimeUtils;
+import net.jxta.impl.util.threads.TaskManager;
 import net.jxta.logging.Logging;
 import net.jxta.membership.MembershipService;
 import net.jxta.meter.MonitorResources;
 import net.jxta.peer.PeerID;
 import net.jxta.peergroup.PeerGroup;
 import net.jxta.platform.Module;
+import net.jxta.platform.ModuleClassID;
 import net.jxta.protocol.ModuleImplAdvertisement;
 import net.jxta.protocol.ResolverQueryMsg;
 import net.jxta.protocol.ResolverResponseMsg;
@@ -100,9 +105,14 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -116,7 +126,7 @@ import java.util.zip.GZIPOutputStream;
  * @see net.jxta.resolver.ResolverService
  * @see <a href="http://spec.jxta.org/v1.0/docbook/JXTAProtocols.html#proto-erp">JXTA Protocols Specification : Endpoint Resolver Protocol</a>
  */
-public class ResolverServiceImpl implements ResolverService {
+public class ResolverServiceImpl implements InternalResolverService, DependentModule {
 
     /**
      * Logger
@@ -138,14 +148,66 @@ public class ResolverServiceImpl implements ResolverService {
      */
     public final static String srdiQueNameShort = "Srdi";
 
+    /**
+     * Resolver binary document capability postfix
+     */
+    public final static String binaryCapabilityNameShort = "BDoc";
+
     /**
      * MIME Type for gzipped SRDI messages.
      */
     private final static MimeMediaType GZIP_MEDIA_TYPE = new MimeMediaType("application/gzip").intern();
 
+    /**
+     * System property for the time in milliseconds that small queries and
+     * responses are held so that they can be sent in one message with others
+     * for the same peer. Zero, the default, disables packing. Only peers
+     * which read every query and response element of a message, as this
+     * implementation does, should be sent packed messages.
+     */
+    public final static String PACK_WINDOW_SYSPROP = "net.jxta.impl.resolver.ResolverServiceImpl.packWindow";
+
+    /**
+     * System property for the maximum number of queries or responses sent in
+     * one packed message.
+     */
+    public final static String PACK_MAX_ELEMENTS_SYSPROP = "net.jxta.impl.resolver.ResolverServiceImpl.packMaxElements";
+
+    /**
+     * System property for the maximum total size in bytes of the queries or
+     * responses sent in one packed message. Larger queries and responses are
+     * never packed.
+     */
+    public final static String PACK_MAX_BYTES_SYSPROP = "net.jxta.impl.resolver.ResolverServiceImpl.packMaxBytes";
+
+    /**
+     * System property which, if {@code false}, disables the sending of
+     * queries, responses and SRDI messages as {@link BinaryXMLDocument}s.
+     * Binary documents are only sent to peers which have announced that they
+     * can read them. Received binary documents are always accepted.
+     */
+    public final static String BINARY_DOCUMENTS_SYSPROP = "net.jxta.impl.resolver.ResolverServiceImpl.binaryDocuments";
+
+    /**
+     * The maximum number of peers whose ability to read binary documents is
+     * remembered.
+     */
+    private final static int MAX_BINARY_PEERS = 1024;
+
+    /**
+     * How long the ability of a peer to read binary documents is remembered
+     * after its last announcement.
+     */
+    private final static long BINARY_PEER_EXPIRATION = 10 * TimeUtils.AMINUTE;
+
+    private final static long DEFAULT_PACK_WINDOW = 0;
+    private final static int DEFAULT_PACK_MAX_ELEMENTS = 16;
+    private final static int DEFAULT_PACK_MAX_BYTES = 16 * 1024;
+
     private String outQueName = outQueNameShort;
     private String inQueName = inQueNameShort;
     private String srdiQueName = srdiQueNameShort;
+    private String binaryCapabilityName = binaryCapabilityNameShort;
 
     private String handlerName = null;
     private PeerGroup group = null;
@@ -165,6 +227,36 @@ public class ResolverServiceImpl implements ResolverService {
     private ResolverServiceMonitor resolverServiceMonitor;
     private ResolverMeter resolverMeter;
 
+    /**
+     * Packs unicast queries and responses or {@code null} if packing is disabled.
+     */
+    private ResolverMessagePacker packer = null;
+
+    /**
+     * If {@code true} then binary documents are sent to peers which can read
+     * them and our messages announce that we can read them.
+     */
+    private boolean binaryDocuments = true;
+
+    /**
+     * The announcement that we can read binary documents or {@code null} if
+     * binary documents are disabled.
+     */
+    private MessageElement binaryCapability = null;
+
+    /**
+     * The peers which have announced that they can read binary documents and
+     * the time of their last announcement, in least recently used order.
+     */
+    private final Map<String, Long> binaryPeers = Collections.synchronizedMap(new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_BINARY_PEERS;
+        }
+    });
+
     /**
      * the resolver interface object
      */
@@ -265,6 +357,12 @@ public class ResolverServiceImpl implements ResolverService {
         outQueName = uniqueStr + outQueNameShort;
         inQueName = uniqueStr + inQueNameShort;
         srdiQueName = uniqueStr + srdiQueNameShort;
+        binaryCapabilityName = uniqueStr + binaryCapabilityNameShort;
+
+        binaryDocuments = Boolean.valueOf(System.getProperty(BINARY_DOCUMENTS_SYSPROP, "true"));
+        if (binaryDocuments) {
+            binaryCapability = new StringMessageElement(binaryCapabilityName, group.getPeerID().toString(), null);
+        }
 
         if (ResolverMeterBuildSettings.RESOLVER_METERING) { // Fix-Me: This needs to be moved to startApp() when the load order issue is resolved
             resolverServiceMonitor = (ResolverServiceMonitor) MonitorManager.getServiceMonitor(group,
@@ -299,6 +397,20 @@ public class ResolverServiceImpl implements ResolverService {
         }
     }
 
+    /**
+     * The services which must be started before this service.
+     */
+    private static final Collection<ModuleClassID> START_DEPENDENCIES = Collections.unmodifiableList(Arrays.asList(
+            PeerGroup.endpointClassID,
+            PeerGroup.membershipClassID));
+
+    /**
+     * {@inheritDoc}
+     */
+    public Collection<ModuleClassID> getStartDependencies() {
+        return START_DEPENDENCIES;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -353,6 +465,19 @@ public class ResolverServiceImpl implements ResolverService {
             return -1;
         }
 
+        long packWindow = Long.getLong(PACK_WINDOW_SYSPROP, DEFAULT_PACK_WINDOW);
+
+        if (packWindow > 0) {
+            int packMaxBytes = Integer.getInteger(PACK_MAX_BYTES_SYSPROP, DEFAULT_PACK_MAX_BYTES);
+
+            packer = new ResolverMessagePacker(new ResolverMessagePacker.Sender() {
+                public void send(ID destination, RouteAdvertisement route, String serviceParam, List<MessageElement> elements) {
+                    sendElements(destination, route, handlerName, serviceParam, elements);
+                }
+            }, TaskManager.getTaskManager().getScheduledExecutorService(), packWindow,
+                    Integer.getInteger(PACK_MAX_ELEMENTS_SYSPROP, DEFAULT_PACK_MAX_ELEMENTS), packMaxBytes, packMaxBytes / 2);
+        }
+
         synchronized (this) {
             // register our credential listener.
             membership.addPropertyChangeListener(MembershipService.DEFAULT_CREDENTIAL_PROPERTY, membershipCredListener);
@@ -378,6 +503,11 @@ public class ResolverServiceImpl implements ResolverService {
      * {@inheritDoc}
      */
     public void stopApp() {
+        if (null != packer) {
+            packer.stop();
+            packer = null;
+        }
+
         endpoint.removeIncomingMessageListener(handlerName, outQueName);
         endpoint.removeIncomingMessageListener(handlerName, inQueName);
 
@@ -483,51 +613,15 @@ public class ResolverServiceImpl implements ResolverService {
             LOG.fine("sending query to resolver handler: " + query.getHandlerName());
         }
 
-        // NOTE: Add route information about the issuing peer, so the
-        // resolver query responding peer can respond to the issuer without
-        // requiring any route discovery. In most case the responding peer
-        // is unlikely to know the route to the query issuer. This is a good
-        // optimization for edge peers. This optimzation is much less
-        // important for RDV peers as they are more likely to have a route
-        // to peers. Also, there is the concern that adding route info
-        // in resolver query exchanged between RDV will increase overhead due
-        // to the larger amount of information exchanged between RDV.
-        // Only update query if the query does not already contain any route
-        // information. We are mostly interested in the original src
-        // route information.
-        if (query.getSrcPeerRoute() == null) {
-            if (getRouteControl() != null) {
-                // FIXME tra 20031102 Until the new subscription service
-                // is implemented, we use the Router Control IOCTL
-                RouteAdvertisement route = routeControl.getMyLocalRoute();
+        addSrcPeerRoute(query, destPeer);
 
-                if (route != null) {
-                    query.setSrcPeerRoute(route.clone());
-                }
-
-                if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
-                    LOG.fine("Sending query with route info to " + destPeer);
-                }
-            } else {
-                if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
-                    LOG.fine("No route control--could not set local route on query");
-                }
-            }
-        }
-
-        String queryHandlerName = query.getHandlerName();
-        QueryHandlerMeter queryHandlerMeter = null;
-
-        if (ResolverMeterBuildSettings.RESOLVER_METERING && (resolverServiceMonitor != null)) {
-            queryHandlerMeter = resolverServiceMonitor.getQueryHandlerMeter(queryHandlerName);
-        }
+        QueryHandlerMeter queryHandlerMeter = getQueryHandlerMeter(query.getHandlerName());
 
         if (destPeer == null) {
             try {
                 Message queryMsg = new Message();
-                XMLDocument asDoc = (XMLDocument) query.getDocument(MimeMediaType.XMLUTF8);
-                MessageElement docElem = new TextDocumentMessageElement(outQueName, asDoc, null);
-                queryMsg.addMessageElement("jxta", docElem);
+                queryMsg.addMessageElement("jxta", newQueryElement(query, false));
+                addBinaryCapability(queryMsg);
                 RendezVousService rendezvous = group.getRendezVousService();
 
                 if (null != rendezvous) {
@@ -554,14 +648,141 @@ public class ResolverServiceImpl implements ResolverService {
             }
         } else {
             // unicast instead
-            boolean success = sendMessage(destPeer, null, handlerName, outQueName, outQueName,
-                    (XMLDocument) query.getDocument(MimeMediaType.XMLUTF8), false);
+            sendQuery(destPeer, query, newQueryElement(query, isBinaryPeer(destPeer)), queryHandlerMeter);
+        }
+    }
 
-            if (ResolverMeterBuildSettings.RESOLVER_METERING && (queryHandlerMeter != null)) {
-                if (success) {
-                    queryHandlerMeter.querySentViaUnicast(destPeer, query);
-                } else {
-                    queryHandlerMeter.querySendError();
+    /**
+     * {@inheritDoc}
+     *
+     * <p/>The query document is generated and serialized once for each
+     * encoding and the resulting message element is shared by the messages
+     * to all of the peers which read that encoding.
+     */
+    public void sendQueryToPeers(Collection<String> destPeers, ResolverQueryMsg query) {
+        if (destPeers.isEmpty()) {
+            return;
+        }
+
+        if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+            LOG.fine("sending query to resolver handler: " + query.getHandlerName() + " for " + destPeers.size() + " peers");
+        }
+
+        addSrcPeerRoute(query, null);
+
+        QueryHandlerMeter queryHandlerMeter = getQueryHandlerMeter(query.getHandlerName());
+        MessageElement xmlElement = null;
+        MessageElement binaryElement = null;
+
+        for (String destPeer : destPeers) {
+            MessageElement queryElement;
+
+            if (isBinaryPeer(destPeer)) {
+                if (null == binaryElement) {
+                    binaryElement = newQueryElement(query, true);
+                }
+                queryElement = binaryElement;
+            } else {
+                if (null == xmlElement) {
+                    xmlElement = newQueryElement(query, false);
+                }
+                queryElement = xmlElement;
+            }
+
+            sendQuery(destPeer, query, queryElement, queryHandlerMeter);
+        }
+    }
+
+    /**
+     * Sends a query which has already been serialized to a peer.
+     *
+     * @param destPeer          the destination peer.
+     * @param query             the query.
+     * @param queryElement      the serialized query.
+     * @param queryHandlerMeter the meter for the query handler or {@code null}.
+     */
+    private void sendQuery(String destPeer, ResolverQueryMsg query, MessageElement queryElement, QueryHandlerMeter queryHandlerMeter) {
+        boolean success = sendMessage(destPeer, null, handlerName, outQueName, queryElement, true);
+
+        if (ResolverMeterBuildSettings.RESOLVER_METERING && (queryHandlerMeter != null)) {
+            if (success) {
+                queryHandlerMeter.querySentViaUnicast(destPeer, query);
+            } else {
+                queryHandlerMeter.querySendError();
+            }
+        }
+    }
+
+    /**
+     * Returns the meter for a query handler.
+     *
+     * @param queryHandlerName the name of the query handler.
+     * @return the meter or {@code null} if metering is disabled.
+     */
+    private QueryHandlerMeter getQueryHandlerMeter(String queryHandlerName) {
+        if (ResolverMeterBuildSettings.RESOLVER_METERING && (resolverServiceMonitor != null)) {
+            return resolverServiceMonitor.getQueryHandlerMeter(queryHandlerName);
+        }
+
+        return null;
+    }
+
+    /**
+     * Creates the message element for a query. The element is immutable and
+     * caches its serialized form, so it may be shared by any number of
+     * messages.
+     *
+     * @param query  the query.
+     * @param binary if {@code true} then the query is encoded as a binary
+     *               document otherwise as XML.
+     * @return the query message element.
+     */
+    private MessageElement newQueryElement(ResolverQueryMsg query, boolean binary) {
+        if (binary) {
+            return newBinaryElement(outQueName, (BinaryXMLDocument) query.getDocument(BinaryXMLDocument.MIME_TYPE), false);
+        }
+
+        XMLDocument asDoc = (XMLDocument) query.getDocument(MimeMediaType.XMLUTF8);
+
+        return new TextDocumentMessageElement(outQueName, asDoc, null);
+    }
+
+    /**
+     * Adds our route to a query which does not already carry the route of
+     * its source.
+     *
+     * @param query    the query.
+     * @param destPeer the destination peer or {@code null}, for logging.
+     */
+    private void addSrcPeerRoute(ResolverQueryMsg query, String destPeer) {
+        // NOTE: Add route information about the issuing peer, so the
+        // resolver query responding peer can respond to the issuer without
+        // requiring any route discovery. In most case the responding peer
+        // is unlikely to know the route to the query issuer. This is a good
+        // optimization for edge peers. This optimzation is much less
+        // important for RDV peers as they are more likely to have a route
+        // to peers. Also, there is the concern that adding route info
+        // in resolver query exchanged between RDV will increase overhead due
+        // to the larger amount of information exchanged between RDV.
+        // Only update query if the query does not already contain any route
+        // information. We are mostly interested in the original src
+        // route information.
+        if (query.getSrcPeerRoute() == null) {
+            if (getRouteControl() != null) {
+                // FIXME tra 20031102 Until the new subscription service
+                // is implemented, we use the Router Control IOCTL
+                RouteAdvertisement route = routeControl.getMyLocalRoute();
+
+                if (route != null) {
+                    query.setSrcPeerRoute(route.clone());
+                }
+
+                if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+                    LOG.fine("Sending query with route info to " + destPeer);
+                }
+            } else {
+                if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+                    LOG.fine("No route control--could not set local route on query");
                 }
             }
         }
@@ -583,8 +804,16 @@ public class ResolverServiceImpl implements ResolverService {
 
                 // Check if an optional route information is available to send the response
                 RouteAdvertisement route = response.getSrcPeerRoute();
-                boolean success = sendMessage(destPeer, route, handlerName, inQueName, inQueName,
-                        (XMLDocument) response.getDocument(MimeMediaType.XMLUTF8), false);
+                MessageElement responseElement;
+
+                if (isBinaryPeer(destPeer)) {
+                    responseElement = newBinaryElement(inQueName,
+                            (BinaryXMLDocument) response.getDocument(BinaryXMLDocument.MIME_TYPE), false);
+                } else {
+                    responseElement = new TextDocumentMessageElement(inQueName,
+                            (XMLDocument) response.getDocument(MimeMediaType.XMLUTF8), null);
+                }
+                boolean success = sendMessage(destPeer, route, handlerName, inQueName, responseElement, true);
 
                 if (ResolverMeterBuildSettings.RESOLVER_METERING && (queryHandlerMeter != null)) {
                     if (success) {
@@ -626,17 +855,10 @@ public class ResolverServiceImpl implements ResolverService {
             Message propagateMsg = new Message();
 
             try {
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                GZIPOutputStream gos = new GZIPOutputStream(baos);
-
-                srdi.getDocument(MimeMediaType.XMLUTF8).sendToStream(gos);
-                gos.finish();
-                gos.close();
-                byte gzipBytes[] = baos.toByteArray();
-
-                MessageElement zipElem = new ByteArrayMessageElement(srdiQueName, GZIP_MEDIA_TYPE, gzipBytes, null);
+                MessageElement zipElem = newGzipElement(srdiQueName, (XMLDocument) srdi.getDocument(MimeMediaType.XMLUTF8));
 
                 propagateMsg.addMessageElement("jxta", zipElem);
+                addBinaryCapability(propagateMsg);
 
                 if (rendezvous.getRendezVousStatus() != RendezVousStatus.ADHOC) {
                     rendezvous.walk(propagateMsg, handlerName, srdiQueName, RendezVousService.DEFAULT_TTL);
@@ -659,10 +881,14 @@ public class ResolverServiceImpl implements ResolverService {
             }
         } else {
             try {
-                boolean success = sendMessage(destPeer, null, handlerName, srdiQueName, srdiQueName,
-                        (XMLDocument) srdi.getDocument(MimeMediaType.XMLUTF8),
-                        // compression
-                        true);
+                MessageElement srdiElement;
+
+                if (isBinaryPeer(destPeer)) {
+                    srdiElement = newBinaryElement(srdiQueName, (BinaryXMLDocument) srdi.getDocument(BinaryXMLDocument.MIME_TYPE), true);
+                } else {
+                    srdiElement = newGzipElement(srdiQueName, (XMLDocument) srdi.getDocument(MimeMediaType.XMLUTF8));
+                }
+                boolean success = sendMessage(destPeer, null, handlerName, srdiQueName, srdiElement, false);
 
                 if (ResolverMeterBuildSettings.RESOLVER_METERING && (srdiHandlerMeter != null)) {
                     if (success) {
@@ -898,6 +1124,7 @@ public class ResolverServiceImpl implements ResolverService {
             XMLDocument responseDoc = (XMLDocument) response.getDocument(MimeMediaType.XMLUTF8);
             MessageElement elemDoc = new TextDocumentMessageElement(inQueName, responseDoc, null);
             propagateMsg.addMessageElement("jxta", elemDoc);
+            addBinaryCapability(propagateMsg);
             RendezVousService rendezvous = group.getRendezVousService();
 
             if (null != rendezvous) {
@@ -990,13 +1217,12 @@ public class ResolverServiceImpl implements ResolverService {
      * @param route    destination route advertisement
      * @param pName    service name on the destination
      * @param pParam   service param on the destination
-     * @param tagName  tag name of the message element
-     * @param body     the body of the message element
-     * @param gzip     If <code>true</code> then encode the message body using gzip.
+     * @param element  the query, response or SRDI message element
+     * @param packable If <code>true</code> then the element may be packed with
+     *                 others for the same destination.
      * @return {@code true} if successful
      */
-    private boolean sendMessage(String destPeer, RouteAdvertisement route, String pName, String pParam, String tagName, XMLDocument body, boolean gzip) {
-        // Get the messenger ready
+    private boolean sendMessage(String destPeer, RouteAdvertisement route, String pName, String pParam, MessageElement element, boolean packable) {
         ID dest;
         try {
             dest = IDFactory.fromURI(new URI(destPeer));
@@ -1008,13 +1234,34 @@ public class ResolverServiceImpl implements ResolverService {
             return false;
         }
 
+        ResolverMessagePacker currentPacker = packer;
+
+        if (packable && (null != currentPacker)) {
+            currentPacker.add(dest, route, pParam, element);
+            return true;
+        }
+
+        return sendElements(dest, route, pName, pParam, Collections.singletonList(element));
+    }
+
+    /**
+     * Send resolver message elements to a peer in a single message.
+     *
+     * @param dest     destination peer
+     * @param route    destination route advertisement
+     * @param pName    service name on the destination
+     * @param pParam   service param on the destination
+     * @param elements the message elements
+     * @return {@code true} if successful
+     */
+    private boolean sendElements(ID dest, RouteAdvertisement route, String pName, String pParam, List<MessageElement> elements) {
         EndpointAddress destAddress = mkAddress(dest, pName, pParam);
 
         // FIXME add route to responses as well
         Messenger messenger = null;
         if (route == null) {
             if (Logging.SHOW_FINER && LOG.isLoggable(Level.FINER)) {
-                LOG.finer("No route info available for " + destPeer);
+                LOG.finer("No route info available for " + dest);
             }
         } else {
             // ok we have a route let's pass it to the router
@@ -1042,33 +1289,14 @@ public class ResolverServiceImpl implements ResolverService {
         }
 
         Message msg = new Message();
-        try {
-            MessageElement msgEl;
-            if (gzip) {
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                GZIPOutputStream gos = new GZIPOutputStream(baos);
-
-                body.sendToStream(gos);
-                gos.finish();
-                gos.close();
-                byte gzipBytes[] = baos.toByteArray();
-
-                msgEl = new ByteArrayMessageElement(tagName, GZIP_MEDIA_TYPE, gzipBytes, null);
-            } else {
-                msgEl = new TextDocumentMessageElement(tagName, body, null);
-            }
-            msg.addMessageElement("jxta", msgEl);
-        } catch (Exception ez1) {
-            // Not much we can do
-            if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
-                LOG.log(Level.WARNING, "Failed building message", ez1);
-            }
-            return false;
+        for (MessageElement element : elements) {
+            msg.addMessageElement("jxta", element);
         }
+        addBinaryCapability(msg);
 
         // Send the message
         if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
-            LOG.fine("Sending " + msg + " to " + destAddress + " " + tagName);
+            LOG.fine("Sending " + msg + " to " + destAddress + " " + pParam);
         }
 
         // XXX 20040924 bondolo Convert this to ListenerAdaptor
@@ -1077,6 +1305,115 @@ public class ResolverServiceImpl implements ResolverService {
         return true;
     }
 
+    /**
+     * Creates a message element containing a document compressed with gzip.
+     *
+     * @param tagName the name of the message element
+     * @param body    the document
+     * @return the message element
+     * @throws IOException if the document cannot be compressed
+     */
+    private static MessageElement newGzipElement(String tagName, XMLDocument body) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        GZIPOutputStream gos = new GZIPOutputStream(baos);
+
+        body.sendToStream(gos);
+        gos.finish();
+        gos.close();
+        byte gzipBytes[] = baos.toByteArray();
+
+        return new ByteArrayMessageElement(tagName, GZIP_MEDIA_TYPE, gzipBytes, null);
+    }
+
+    /**
+     * Creates a message element containing a binary document.
+     *
+     * @param tagName  the name of the message element
+     * @param body     the document
+     * @param compress if {@code true} then the document is compressed
+     * @return the message element
+     */
+    private static MessageElement newBinaryElement(String tagName, BinaryXMLDocument body, boolean compress) {
+        return new ByteArrayMessageElement(tagName, BinaryXMLDocument.MIME_TYPE, body.toByteArray(compress), null);
+    }
+
+    /**
+     * Adds the announcement that we can read binary documents to a message,
+     * unless binary documents are disabled.
+     *
+     * @param msg the message
+     */
+    private void addBinaryCapability(Message msg) {
+        MessageElement capability = binaryCapability;
+
+        if (null != capability) {
+            msg.replaceMessageElement("jxta", capability);
+        }
+    }
+
+    /**
+     * Remembers the peer which sent a message as being able to read binary
+     * documents if the message says so. Propagated messages carry the
+     * announcement of the peer which originated them. A message without the
+     * announcement means that the peer it came from, for example after a
+     * restart with an older version, can no longer be assumed to read binary
+     * documents.
+     *
+     * @param msg     the message
+     * @param srcAddr the peer which sent the message to us
+     */
+    void learnBinaryCapability(Message msg, EndpointAddress srcAddr) {
+        if (!binaryDocuments) {
+            return;
+        }
+
+        MessageElement capability = msg.getMessageElement("jxta", binaryCapabilityName);
+
+        if (null != capability) {
+            String peer = capability.toString();
+
+            if (!binaryPeers.containsKey(peer)) {
+                if (Logging.SHOW_FINER && LOG.isLoggable(Level.FINER)) {
+                    LOG.finer("Peer reads binary documents : " + peer);
+                }
+            }
+
+            binaryPeers.put(peer, TimeUtils.timeNow());
+        } else if ((null != srcAddr) && "jxta".equals(srcAddr.getProtocolName())) {
+            String peer = ID.URIEncodingName + ":" + ID.URNNamespace + ":" + srcAddr.getProtocolAddress();
+
+            if ((null != binaryPeers.remove(peer)) && Logging.SHOW_FINER && LOG.isLoggable(Level.FINER)) {
+                LOG.finer("Peer no longer reads binary documents : " + peer);
+            }
+        }
+    }
+
+    /**
+     * Tells whether binary documents may be sent to a peer.
+     *
+     * @param destPeer the peer
+     * @return {@code true} if the peer has recently announced that it can read
+     *         binary documents and binary documents are enabled.
+     */
+    boolean isBinaryPeer(String destPeer) {
+        if (!binaryDocuments || (null == destPeer)) {
+            return false;
+        }
+
+        Long announced = binaryPeers.get(destPeer);
+
+        if (null == announced) {
+            return false;
+        }
+
+        if (TimeUtils.toRelativeTimeMillis(TimeUtils.timeNow(), announced) > BINARY_PEER_EXPIRATION) {
+            binaryPeers.remove(destPeer);
+            return false;
+        }
+
+        return true;
+    }
+
     private RouteControl getRouteControl() {
         // Obtain the route control object to manipulate route information when sending and receiving resolver queries.
         if (routeControl == null) {
@@ -1093,6 +1430,37 @@ public class ResolverServiceImpl implements ResolverService {
         return routeControl;
     }
 
+    /**
+     * Returns all of the resolver elements of the given name in a message.
+     * Messages carry several when queries or responses have been packed.
+     *
+     * @param message the message.
+     * @param name    the element name.
+     * @return the elements, in message order.
+     */
+    static List<MessageElement> getElements(Message message, String name) {
+        Iterator<MessageElement> eachElement = message.getMessageElements("jxta", name);
+
+        if (!eachElement.hasNext()) {
+            return Collections.emptyList();
+        }
+
+        MessageElement first = eachElement.next();
+
+        if (!eachElement.hasNext()) {
+            return Collections.singletonList(first);
+        }
+
+        List<MessageElement> elements = new ArrayList<MessageElement>();
+
+        elements.add(first);
+        while (eachElement.hasNext()) {
+            elements.add(eachElement.next());
+        }
+
+        return elements;
+    }
+
     /**
      * Inner class to handle incoming queries
      */
@@ -1107,8 +1475,10 @@ public class ResolverServiceImpl implements ResolverService {
                 LOG.fine("Demuxing a query message from " + srcAddr);
             }
 
-            MessageElement element = message.getMessageElement("jxta", outQueName);
-            if (element == null) {
+            learnBinaryCapability(message, srcAddr);
+
+            List<MessageElement> elements = getElements(message, outQueName);
+            if (elements.isEmpty()) {
                 if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
                     LOG.warning("Message does not contain a query. Discarding message");
                 }
@@ -1119,6 +1489,15 @@ public class ResolverServiceImpl implements ResolverService {
                 return;
             }
 
+            // A packed message carries several queries, each is repropagated in a message of its own.
+            boolean packed = elements.size() > 1;
+
+            for (MessageElement element : elements) {
+                processQueryElement(packed ? new Message() : message, element, srcAddr);
+            }
+        }
+
+        private void processQueryElement(Message message, MessageElement element, EndpointAddress srcAddr) {
             ResolverQueryMsg query;
             try {
                 StructuredDocument asDoc = StructuredDocumentFactory.newStructuredDocument(element);
@@ -1165,8 +1544,10 @@ public class ResolverServiceImpl implements ResolverService {
                 LOG.fine("Demuxing a response from " + srcAddr);
             }
 
-            MessageElement element = message.getMessageElement("jxta", inQueName);
-            if (null == element) {
+            learnBinaryCapability(message, srcAddr);
+
+            List<MessageElement> elements = getElements(message, inQueName);
+            if (elements.isEmpty()) {
                 if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
                     LOG.fine("Message does not contain a response. Discarding message");
                 }
@@ -1177,6 +1558,12 @@ public class ResolverServiceImpl implements ResolverService {
                 return;
             }
 
+            for (MessageElement element : elements) {
+                processResponseElement(element, srcAddr);
+            }
+        }
+
+        private void processResponseElement(MessageElement element, EndpointAddress srcAddr) {
             ResolverResponse resolverResponse;
             try {
                 StructuredDocument asDoc = StructuredDocumentFactory.newStructuredDocument(element);
@@ -1216,6 +1603,8 @@ public class ResolverServiceImpl implements ResolverService {
                 LOG.fine("Demuxing an SRDI message from : " + srcAddr);
             }
 
+            learnBinaryCapability(message, srcAddr);
+
             MessageElement element = message.getMessageElement("jxta", srdiQueName);
             if (element == null) {
                 if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
@@ -57,6 +57,8 @@
 package net.jxta.impl.resolver;
 
 
+import java.util.Collection;
+
 import net.jxta.document.Advertisement;
 import net.jxta.id.ID;
 import net.jxta.peergroup.PeerGroup;
@@ -78,7 +80,7 @@ import net.jxta.resolver.SrdiHandler;
  *
  **/
 @Deprecated
-public class ResolverServiceInterface implements ResolverService {
+public class ResolverServiceInterface implements InternalResolverService {
     
     private final ResolverServiceImpl impl;
     
@@ -173,6 +175,13 @@ public class ResolverServiceInterface implements ResolverService {
         impl.sendQuery(rdvPeer, query);
     }
     
+    /**
+     *  {@inheritDoc}
+     */
+    public void sendQueryToPeers(Collection<String> destPeers, ResolverQueryMsg query) {
+        impl.sendQueryToPeers(destPeers, query);
+    }
+    
     /**
      *  {@inheritDoc}
      */
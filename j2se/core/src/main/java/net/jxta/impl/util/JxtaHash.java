@@ -148,6 +148,15 @@ public class JxtaHash {
         }
     }
 
+    /**
+     *  Gets the digest of the expressions supplied since the last digest
+     *
+     * @return    The digest value
+     */
+    public byte[] getDigest() {
+        return dig.digest();
+    }
+
     /**
      *  Gets the digest as digestInteger
      *
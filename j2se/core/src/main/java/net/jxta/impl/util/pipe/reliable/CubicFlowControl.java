@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2001-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+
+package net.jxta.impl.util.pipe.reliable;
+
+
+import net.jxta.impl.util.TimeUtils;
+
+
+/**
+ * A flow control module which grows rwindow following the CUBIC congestion
+ * control function and paces transmissions over the round trip time.
+ * <p/>
+ * The window begins in slow start, growing by one for every message
+ * acknowledged. The first loss ends slow start. After each loss the window is
+ * reduced by {@link #BETA} and then regrows along a cubic curve which is
+ * centered on the window size at which the loss occurred, probing slowly
+ * around it and faster once past it. Losses reported within one round trip
+ * of a reduction are treated as part of the same congestion event.
+ * <p/>
+ * Transmissions are paced so that one window is spread across one average
+ * round trip time rather than being sent as a burst.
+ */
+public class CubicFlowControl extends FlowControl {
+
+    static final int DEFAULT_RWINDOW = 20;
+
+    /**
+     * The smallest window we will ever recommend.
+     */
+    static final int MIN_RWINDOW = 2;
+
+    /**
+     * The multiplicative decrease factor applied on loss.
+     */
+    static final double BETA = 0.7;
+
+    /**
+     * The cubic scaling constant, in messages per second cubed.
+     */
+    static final double C = 0.4;
+
+    /**
+     * Pacing gain used while in slow start, allowing the rate to double from
+     * one round trip to the next.
+     */
+    static final double SLOW_START_PACING_GAIN = 2.0;
+
+    /**
+     * Pacing gain used once past slow start.
+     */
+    static final double PACING_GAIN = 1.25;
+
+    /**
+     * Upper bound for the window.
+     */
+    private final int maxRwindow;
+
+    /**
+     * Current congestion window, in messages.
+     */
+    private double cwnd = MIN_RWINDOW;
+
+    /**
+     * Slow start threshold.
+     */
+    private double ssthresh;
+
+    /**
+     * Window at which the last loss occurred.
+     */
+    private double wMax = 0;
+
+    /**
+     * Window estimate of a Reno style flow, used to remain at least as
+     * aggressive as one.
+     */
+    private double wEst = 0;
+
+    /**
+     * Time for the cubic function to reach {@code wMax}, in seconds.
+     */
+    private double k = 0;
+
+    /**
+     * Absolute time in milliseconds at which the current epoch of growth
+     * began or zero if no epoch is in progress.
+     */
+    private long epochStart = 0;
+
+    /**
+     * Absolute time in milliseconds of the last window reduction.
+     */
+    private long lastReduction = 0;
+
+    /**
+     * Current recommended rwindow.
+     */
+    private volatile int rwindow;
+
+    /**
+     * Current pacing interval in nanoseconds.
+     */
+    private volatile long pacingDelay = 0;
+
+    /**
+     * state of the current ack being processed.
+     */
+    private int numberACKed = 0;
+    private int numberMissing = 0;
+
+    /**
+     * Constructs a CUBIC flow control module with a maximum rwindow of
+     * DEFAULT_RWINDOW.
+     */
+    public CubicFlowControl() {
+        this(DEFAULT_RWINDOW);
+    }
+
+    /**
+     * @param maxRwindow The largest rwindow which will be recommended.
+     */
+    public CubicFlowControl(int maxRwindow) {
+        this.maxRwindow = Math.max(MIN_RWINDOW, maxRwindow);
+        this.ssthresh = this.maxRwindow;
+        this.rwindow = MIN_RWINDOW;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getRwindow() {
+        return rwindow;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getPacingDelay() {
+        return pacingDelay;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void ackEventBegin() {
+        numberACKed = 0;
+        numberMissing = 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void packetACKed(int seqnum) {
+        numberACKed++;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void packetMissing(int seqnum) {
+        numberMissing++;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int ackEventEnd(int rQSize, long aveRTT, long lastRTT) {
+        return ackEventEnd(TimeUtils.timeNow(), aveRTT);
+    }
+
+    /**
+     * Updates the window as of the specified time.
+     *
+     * @param now    the current absolute time in milliseconds.
+     * @param aveRTT the latest estimate of the average RTT in milliseconds.
+     * @return the new recommended value for rwindow.
+     */
+    int ackEventEnd(long now, long aveRTT) {
+        long rtt = Math.max(1, aveRTT);
+
+        if ((numberMissing > 0) && ((0 == lastReduction) || (now - lastReduction >= rtt))) {
+            // A new congestion event.
+            if (cwnd < wMax) {
+                // Release bandwidth to flows which have recently started.
+                wMax = cwnd * (1.0 + BETA) / 2.0;
+            } else {
+                wMax = cwnd;
+            }
+            cwnd = Math.max(MIN_RWINDOW, cwnd * BETA);
+            ssthresh = cwnd;
+            epochStart = 0;
+            lastReduction = now;
+        } else if (numberACKed > 0) {
+            if (cwnd < ssthresh) {
+                cwnd += numberACKed;
+            } else {
+                if (0 == epochStart) {
+                    epochStart = now;
+                    if (cwnd < wMax) {
+                        k = Math.cbrt((wMax - cwnd) / C);
+                    } else {
+                        k = 0;
+                        wMax = cwnd;
+                    }
+                    wEst = cwnd;
+                }
+
+                double t = (now - epochStart + rtt) / 1000.0;
+                double target = wMax + C * Math.pow(t - k, 3);
+
+                wEst += numberACKed * (3.0 * (1.0 - BETA) / (1.0 + BETA)) / cwnd;
+                target = Math.max(target, wEst);
+
+                if (target > cwnd) {
+                    // Grow by at most half the window per ack event.
+                    cwnd += Math.min(cwnd / 2.0, numberACKed * (target - cwnd) / cwnd);
+                }
+            }
+        }
+
+        cwnd = Math.min(cwnd, maxRwindow);
+        rwindow = Math.max(MIN_RWINDOW, (int) cwnd);
+
+        double gain = (cwnd < ssthresh) ? SLOW_START_PACING_GAIN : PACING_GAIN;
+
+        pacingDelay = (long) ((rtt * 1000000.0) / (cwnd * gain));
+
+        return rwindow;
+    }
+}
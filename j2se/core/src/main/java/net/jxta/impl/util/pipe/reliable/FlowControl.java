@@ -57,16 +57,107 @@
 package net.jxta.impl.util.pipe.reliable;
 
 
+import net.jxta.logging.Logging;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
 /**
  * A basis for any flow control module to be plugged into
  * ReliableOutputStream.  Synchronization can is assumed to be
  * provided externaly. However all implementations are required to
- * allow the getRwindow() method to be called at any time without
- * synchronization.
+ * allow the getRwindow() and getPacingDelay() methods to be called at any
+ * time without synchronization.
+ * <p/>
+ * Flow control modules may be selected by name using
+ * {@link #newFlowControl(String, int)}. The name used when none is specified
+ * may be set with the {@link #DEFAULT_SYSPROP} system property.
  */
 
 public abstract class FlowControl {
 
+    /**
+     * Logger
+     */
+    private final static Logger LOG = Logger.getLogger(FlowControl.class.getName());
+
+    /**
+     * Name of the fixed window flow control module.
+     */
+    public final static String FIXED = "fixed";
+
+    /**
+     * Name of the adaptive flow control module.
+     */
+    public final static String ADAPTIVE = "adaptive";
+
+    /**
+     * Name of the CUBIC congestion control module.
+     */
+    public final static String CUBIC = "cubic";
+
+    /**
+     * System property naming the flow control module used by reliable
+     * connections which do not specify one.
+     */
+    public final static String DEFAULT_SYSPROP = "net.jxta.impl.util.pipe.reliable.FlowControl.default";
+
+    /**
+     * Returns the name of the flow control module used by reliable connections
+     * which do not specify one.
+     *
+     * @return the name of the default flow control module.
+     */
+    public static String getDefaultName() {
+        String name = System.getProperty(DEFAULT_SYSPROP, FIXED).trim().toLowerCase();
+
+        if (!isKnown(name)) {
+            if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
+                LOG.warning("Unknown flow control \"" + name + "\", using \"" + FIXED + "\"");
+            }
+            name = FIXED;
+        }
+
+        return name;
+    }
+
+    /**
+     * Returns {@code true} if the named flow control module is known.
+     *
+     * @param name the flow control module name.
+     * @return {@code true} if the named flow control module is known.
+     */
+    public static boolean isKnown(String name) {
+        return FIXED.equalsIgnoreCase(name) || ADAPTIVE.equalsIgnoreCase(name) || CUBIC.equalsIgnoreCase(name);
+    }
+
+    /**
+     * Creates a new flow control module.
+     *
+     * @param name    the flow control module name, one of {@link #FIXED},
+     *                {@link #ADAPTIVE} or {@link #CUBIC}. If {@code null} then the
+     *                default module is created.
+     * @param rwindow the maximum rwindow for the fixed and cubic modules.
+     * @return the new flow control module.
+     * @throws IllegalArgumentException if the name is not known.
+     */
+    public static FlowControl newFlowControl(String name, int rwindow) {
+        if (null == name) {
+            name = getDefaultName();
+        }
+
+        if (FIXED.equalsIgnoreCase(name)) {
+            return new FixedFlowControl(rwindow);
+        } else if (ADAPTIVE.equalsIgnoreCase(name)) {
+            return new AdaptiveFlowControl();
+        } else if (CUBIC.equalsIgnoreCase(name)) {
+            return new CubicFlowControl(rwindow);
+        }
+
+        throw new IllegalArgumentException("Unknown flow control : " + name);
+    }
+
     /**
      * Returns the rwindow size that this flow control module suggests to use
      * at this point in time.
@@ -107,4 +198,14 @@ public abstract class FlowControl {
      */
 
     public abstract int ackEventEnd(int rQSize, long aveRTT, long lastRTT);
+
+    /**
+     * Returns the minimum interval which should separate the transmission of
+     * new messages. Modules which do not pace transmissions return zero.
+     *
+     * @return the pacing interval in nanoseconds.
+     */
+    public long getPacingDelay() {
+        return 0;
+    }
 }
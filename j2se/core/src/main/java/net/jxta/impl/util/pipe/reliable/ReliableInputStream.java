@@ -98,6 +98,11 @@ public class ReliableInputStream extends InputStream implements Incoming {
     
     private MsgListener listener = null;
     
+    /**
+     *  Notified when data becomes readable or the stream is closed.
+     */
+    private volatile ReadinessListener readinessListener = null;
+    
     /**
      *  The amount of time that read() operation will block. > 0
      */
@@ -109,9 +114,9 @@ public class ReliableInputStream extends InputStream implements Incoming {
     private volatile int sequenceNumber = 0;
     
     /**
-     *  Queue of incoming messages.
+     *  Queue of incoming messages, indexed by sequence number.
      */
-    private final List<IQElt> inputQueue = new ArrayList<IQElt>();
+    private final ReorderQueue<MessageElement> inputQueue = new ReorderQueue<MessageElement>(Defs.MAXQUEUESIZE, 0);
     
     /**
      *  The I/O record for the message we are currently using for stream data.
@@ -149,48 +154,6 @@ public class ReliableInputStream extends InputStream implements Incoming {
     }
     
 
-    /**
-     *  An input queue element which breaks out a received message in 
-     *  enqueueMessage().
-     */
-    private static class IQElt implements Comparable {
-        final int seqnum;
-        final MessageElement elt;
-        boolean ackd = false;
-        
-        IQElt(int sequence, MessageElement element) {
-            seqnum = sequence;
-            elt = element;
-        }
-        
-        /**
-         * {@inheritDoc}
-         */
-        @Override
-        public boolean equals(Object obj) {
-            if (this == obj) {
-                return true;
-            }
-            if (obj instanceof IQElt) {
-                IQElt targ = (IQElt) obj;
-
-                return (this.seqnum == targ.seqnum);
-            }
-            return false;
-        }
-        
-        public int compareTo(IQElt el) {
-            return this.seqnum < el.seqnum ? -1 : this.seqnum == el.seqnum ? 0 : 1;
-        }
-        
-        /**
-         * {@inheritDoc}
-         */
-        public int compareTo(Object o) {
-            return compareTo((IQElt) o);
-        }
-    }
-    
     public ReliableInputStream(Outgoing outgoing, int timeout) {
         this(outgoing, timeout, null);
     }
@@ -225,6 +188,7 @@ public class ReliableInputStream extends InputStream implements Incoming {
             inputQueue.clear();
             inputQueue.notifyAll();
         }
+        fireReadinessChanged();
     }
     
     /**
@@ -248,6 +212,7 @@ public class ReliableInputStream extends InputStream implements Incoming {
             closing = true;
             inputQueue.notifyAll();
         }
+        fireReadinessChanged();
     }
     
     /**
@@ -275,7 +240,7 @@ public class ReliableInputStream extends InputStream implements Incoming {
         byte[] a = new byte[1];
         
         while (true) {
-            int len = local_read(a, 0, 1);
+            int len = local_read(a, 0, 1, true);
             
             if (len < 0) {
                 break;
@@ -308,7 +273,7 @@ public class ReliableInputStream extends InputStream implements Incoming {
             return 0;
         }
         
-        int i = local_read(a, offset, length);
+        int i = local_read(a, offset, length, true);
         
         if (Logging.SHOW_FINER && LOG.isLoggable(Level.FINER)) {
             LOG.finer("Read(byte[], int, " + length + "), bytes read = " + i);
@@ -321,6 +286,83 @@ public class ReliableInputStream extends InputStream implements Incoming {
         return i;
     }
     
+    /**
+     * Reads data which has already been received in sequence without
+     * blocking. At most the remainder of one received message is returned.
+     *
+     * @param a the buffer into which the data is read.
+     * @param offset the start offset in the buffer.
+     * @param length the maximum number of bytes to read.
+     * @return the number of bytes read, {@code 0} if no data is available yet
+     * or {@code -1} if the end of the stream has been reached.
+     * @throws IOException if an I/O error occurs.
+     */
+    public int readNonBlocking(byte[] a, int offset, int length) throws IOException {
+        if (closed) {
+            return -1;
+        }
+        
+        if (0 == length) {
+            return 0;
+        }
+        
+        int i = local_read(a, offset, length, false);
+        
+        if (Logging.SHOW_FINER && LOG.isLoggable(Level.FINER)) {
+            LOG.finer("readNonBlocking(byte[], int, " + length + "), bytes read = " + i);
+        }
+        
+        if (i == -1) {
+            close();
+        }
+        return i;
+    }
+    
+    /**
+     * Tells whether {@link #readNonBlocking(byte[], int, int)} would return
+     * data or the end of stream.
+     *
+     * @return {@code true} if a non-blocking read would return data or
+     * {@code -1}, {@code false} if it would return {@code 0}.
+     */
+    public boolean isReadable() {
+        if (closed) {
+            return true;
+        }
+        synchronized (record) {
+            if ((null != record.inputStream) && (record.nextByte < record.size)) {
+                return true;
+            }
+        }
+        synchronized (inputQueue) {
+            return inputQueue.hasNext() || (closing && inputQueue.isEmpty());
+        }
+    }
+    
+    /**
+     * Sets the listener notified when data becomes readable or the stream is
+     * closed.
+     *
+     * @param readinessListener the listener or {@code null} for none.
+     */
+    public void setReadinessListener(ReadinessListener readinessListener) {
+        this.readinessListener = readinessListener;
+    }
+    
+    private void fireReadinessChanged() {
+        ReadinessListener notify = readinessListener;
+        
+        if (null != notify) {
+            try {
+                notify.readinessChanged();
+            } catch (Throwable all) {
+                if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
+                    LOG.log(Level.WARNING, "Uncaught Throwable calling readiness listener", all);
+                }
+            }
+        }
+    }
+    
     /**
      *  Send a sequential ACK and selective ACKs for all of
      *  the queued messages.
@@ -328,25 +370,10 @@ public class ReliableInputStream extends InputStream implements Incoming {
      *  @param seqnAck the sequence number being sequential ACKed
      */
     private void sendACK(int seqnAck) {
-        // No need to sync on inputQueue, acking as many as we can is want we want
         List<Integer> selectedAckList = new ArrayList<Integer>();
-        List<IQElt> queue;
         
         synchronized (inputQueue) {
-            queue = new ArrayList<IQElt>(inputQueue);
-        }
-        
-        Iterator<IQElt> eachInQueue = queue.iterator();
-
-        while (eachInQueue.hasNext() && (selectedAckList.size() < Defs.MAXQUEUESIZE)) {
-            IQElt anIQElt = eachInQueue.next();
-
-            if (anIQElt.seqnum > seqnAck) {
-                if (!anIQElt.ackd) {
-                    selectedAckList.add(anIQElt.seqnum);
-                    anIQElt.ackd = true;
-                }
-            }
+            inputQueue.selectUnacked(seqnAck, selectedAckList, Defs.MAXQUEUESIZE);
         }
         
         // PERMIT DUPLICATE ACKS. Just a list and one small message.
@@ -439,6 +466,7 @@ public class ReliableInputStream extends InputStream implements Incoming {
         }
         
         long startEnqueue = TimeUtils.timeNow();
+        boolean enqueued = false;
         
         Iterator<MessageElement> eachElement = msg.getMessageElements(Defs.NAMESPACE, Defs.MIME_TYPE_BLOCK);
         
@@ -459,8 +487,6 @@ public class ReliableInputStream extends InputStream implements Incoming {
                 continue;
             }
             
-            IQElt newElt = new IQElt(msgSeqn, elt);
-            
             // OK we must enqueue
             
             // We rely on the sender to not to send more than the window size
@@ -468,9 +494,9 @@ public class ReliableInputStream extends InputStream implements Incoming {
             // enqueued.
             
             // see if this is a duplicate
-            if (newElt.seqnum <= sequenceNumber) {
+            if (msgSeqn <= sequenceNumber) {
                 if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
-                    LOG.fine("RCVD OLD MESSAGE : Discard seqn#" + newElt.seqnum + " now at seqn#" + sequenceNumber);
+                    LOG.fine("RCVD OLD MESSAGE : Discard seqn#" + msgSeqn + " now at seqn#" + sequenceNumber);
                 }
                 break;
             }
@@ -482,41 +508,28 @@ public class ReliableInputStream extends InputStream implements Incoming {
                     return;
                 }
                 
-                // Insert this message into the input queue.
-                // 1. Do not add duplicate messages
-                // 2. Store in increasing sequence nos.
-                int insertIndex = inputQueue.size();
-                boolean duplicate = false;
-                
-                for (int j = 0; j < inputQueue.size(); j++) {
-                    IQElt iq = inputQueue.get(j);
-
-                    if (newElt.seqnum < iq.seqnum) {
-                        insertIndex = j;
-                        break;
-                    } else if (newElt.seqnum == iq.seqnum) {
-                        duplicate = true;
-                        break;
-                    }
-                }
-                
-                if (duplicate) {
+                // Insert this message into the input queue. Messages which
+                // were already delivered or are already queued are refused.
+                if (!inputQueue.offer(msgSeqn, elt)) {
                     if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
-                        LOG.fine("RCVD OLD MESSAGE :  Discard duplicate msg, seqn#" + newElt.seqnum);
+                        LOG.fine("RCVD OLD MESSAGE :  Discard duplicate msg, seqn#" + msgSeqn);
                     }
                     break;
                 }
                 
-                inputQueue.add(insertIndex, newElt);
-                
                 if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
-                    LOG.fine("Enqueued msg with seqn#" + newElt.seqnum + " at index " + insertIndex);
+                    LOG.fine("Enqueued msg with seqn#" + msgSeqn + " (" + inputQueue.size() + " queued)");
                 }
                 
+                enqueued = true;
                 inputQueue.notifyAll();
             }
         }
         
+        if (enqueued) {
+            fireReadinessChanged();
+        }
+        
         if (listener != null) {
             Message newmsg = null;
 
@@ -561,7 +574,7 @@ public class ReliableInputStream extends InputStream implements Incoming {
      *  the queue has been closed.
      */
     private MessageElement dequeueMessage(int desiredSeqn, boolean blocking) throws IOException {
-        IQElt iQ = null;
+        MessageElement elt = null;
         
         // Wait for incoming message here
         long startDequeue = TimeUtils.timeNow();
@@ -593,22 +606,12 @@ public class ReliableInputStream extends InputStream implements Incoming {
                     continue;
                 }
                 
-                iQ = inputQueue.get(0); // FIFO
+                elt = inputQueue.poll();
                 
-                if (iQ.seqnum < desiredSeqn) {
-                    // Ooops a DUPE slipped in the head of the queue undetected
-                    // (seqnum consistency issue).
-                    // Just drop it.
-                    inputQueue.remove(0);
-                    // if such is the case then notify the other end so that
-                    // the message does not remain in the retry queue eventually
-                    // triggering a broken pipe exception
-                    sendACK(iQ.seqnum);
-                    continue;
-                } else if (iQ.seqnum != desiredSeqn) {
+                if (null == elt) {
                     if (TimeUtils.toRelativeTimeMillis(nextRetransRequest) < 0) {
                         if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
-                            LOG.fine("Trigger retransmission. Wanted seqn#" + desiredSeqn + " found seqn#" + iQ.seqnum);
+                            LOG.fine("Trigger retransmission. Wanted seqn#" + desiredSeqn + " found seqn#" + inputQueue.firstSeqnum());
                         }
                         sendACK(desiredSeqn - 1);
                         nextRetransRequest = TimeUtils.toAbsoluteTimeMillis(TimeUtils.ASECOND);
@@ -631,13 +634,12 @@ public class ReliableInputStream extends InputStream implements Incoming {
                     }
                     continue;
                 }
-                inputQueue.remove(0);
                 break;
             }
         }
         nextRetransRequest = 0;
         // if we are closed then we return null
-        if (null == iQ) {
+        if (null == elt) {
             return null;
         }
         
@@ -646,12 +648,12 @@ public class ReliableInputStream extends InputStream implements Incoming {
         if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
             long waited = TimeUtils.toRelativeTimeMillis(TimeUtils.timeNow(), startDequeue);
 
-            LOG.fine("DEQUEUED seqn#" + iQ.seqnum + " in " + waited + " msec on input queue");
+            LOG.fine("DEQUEUED seqn#" + desiredSeqn + " in " + waited + " msec on input queue");
             if (wct > 0) {
                 LOG.fine("DEQUEUE waited " + wct + " times on input queue");
             }
         }
-        return iQ.elt;
+        return elt;
     }
     
     /**
@@ -666,33 +668,38 @@ public class ReliableInputStream extends InputStream implements Incoming {
             throw new IOException("Stream closed");
         }
         synchronized (record) {
-            if (record.inputStream != null) {
-                if ((record.size == 0) || (record.nextByte == record.size)) {
-                    if (inputQueue.isEmpty()) {
-                        return 0;
-                    }
-                    // reset the record
-                    record.resetRecord(); // GC as necessary(inputStream byte[])
-                    if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
-                        LOG.fine("Getting next data block at seqn#" + (sequenceNumber + 1));
-                    }
-                    MessageElement elt = dequeueMessage(sequenceNumber + 1, false);
+            if ((record.inputStream == null) || (record.size == 0) || (record.nextByte == record.size)) {
+                if (inputQueue.isEmpty()) {
+                    return 0;
+                }
+                // reset the record
+                record.resetRecord(); // GC as necessary(inputStream byte[])
+                if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+                    LOG.fine("Getting next data block at seqn#" + (sequenceNumber + 1));
+                }
+                MessageElement elt = dequeueMessage(sequenceNumber + 1, false);
 
-                    if (null == elt) {
-                        return 0;
-                    }
-                    sequenceNumber += 1; // next msg sequence number
-                    // Get the length of the Record
-                    record.size = elt.getByteLength();
-                    record.inputStream = elt.getStream();
+                if (null == elt) {
+                    return 0;
                 }
-                return record.inputStream.available();
+                sequenceNumber += 1; // next msg sequence number
+                // Get the length of the Record
+                record.size = elt.getByteLength();
+                record.inputStream = elt.getStream();
             }
+            return record.inputStream.available();
         }
-        return 0;
     }
     
-    private int local_read(byte[] buf, int offset, int length) throws IOException {
+    /**
+     *  Reads from the current record, moving to the next record if the
+     *  current one has been consumed.
+     *
+     *  @param blocking If {@code true} then wait for the next record,
+     *  otherwise return {@code 0} if it has not yet been received.
+     *  @return the number of bytes read or {@code -1} at the end of stream.
+     */
+    private int local_read(byte[] buf, int offset, int length, boolean blocking) throws IOException {
         
         if (listener != null) {
             throw new IOException("read() not supported in async mode");
@@ -708,9 +715,16 @@ public class ReliableInputStream extends InputStream implements Incoming {
                     LOG.fine("Getting next data block at seqn#" + (sequenceNumber + 1));
                 }
                 
-                MessageElement elt = dequeueMessage(sequenceNumber + 1, true);
+                MessageElement elt = dequeueMessage(sequenceNumber + 1, blocking);
                 
                 if (null == elt) {
+                    if (!blocking) {
+                        synchronized (inputQueue) {
+                            if (!closed && !(closing && inputQueue.isEmpty())) {
+                                return 0;
+                            }
+                        }
+                    }
                     return -1;
                 }
                 
@@ -64,6 +64,7 @@ import net.jxta.endpoint.StringMessageElement;
 import net.jxta.endpoint.WireFormatMessage;
 import net.jxta.endpoint.WireFormatMessageFactory;
 import net.jxta.impl.util.TimeUtils;
+import net.jxta.impl.util.threads.TaskManager;
 import net.jxta.logging.Logging;
 
 import java.io.ByteArrayOutputStream;
@@ -74,7 +75,10 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -239,6 +243,19 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
      */
     private volatile int rwindow = 0;
     
+    /**
+     * The {@code System.nanoTime()} before which the next new message should
+     * not be sent if the flow control module is pacing transmissions. Changes
+     * are synchronized on {@code writeLock}.
+     */
+    private volatile long nextSendAt = 0;
+    
+    /**
+     * If {@code true} then the readiness listener will be notified when the
+     * pacing interval which prevented a non-blocking write has elapsed.
+     */
+    private final AtomicBoolean pacingWakeupScheduled = new AtomicBoolean(false);
+    
     /**
      * Number of acknowledged sends (round trips) before the connection is regarded as 'stable'
      * Once stabilisation is established, downward tracking of RTO is suspended
@@ -246,6 +263,11 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
      */
     private volatile int stabalizationAckCount = 0;
     
+    /**
+     * Notified when the send window opens or the stream is closed.
+     */
+    private volatile ReadinessListener readinessListener = null;
+    
     /**
      * retrans queue element
      */
@@ -358,6 +380,7 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
         synchronized (retrQ) {
             retrQ.notifyAll();
         }
+        fireReadinessChanged();
         
         if (Logging.SHOW_INFO && LOG.isLoggable(Level.INFO)) {
             LOG.info("Closed.");
@@ -426,6 +449,7 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
             writeCount = 0;
             writeBuffer = null;
         }
+        fireReadinessChanged();
         
         if (Logging.SHOW_INFO && LOG.isLoggable(Level.INFO)) {
             LOG.info("Hard closed.");
@@ -502,6 +526,117 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
         }
     }
     
+    /**
+     * Writes as much of the data as the send window and the pacing of the
+     * flow control module currently allow without waiting. Any data buffered
+     * by previous calls to
+     * {@link #write(byte[], int, int)} is sent first. The accepted data is
+     * sent immediately in messages of at most the send buffer size rather
+     * than being buffered, so no {@link #flush()} is needed.
+     *
+     * @param b    the data.
+     * @param off  the start offset in the data.
+     * @param len  the number of bytes to write.
+     * @return the number of bytes accepted, {@code 0} if the send window is
+     *         full or the next message may not be sent yet. The readiness
+     *         listener is notified once a write may make progress.
+     * @throws IOException if an I/O error occurs. In particular, an IOException is thrown if the output stream is closed.
+     */
+    public int writeNonBlocking(byte b[], int off, int len) throws IOException {
+        synchronized (writeLock) {
+            if (isClosed()) {
+                throw new IOException("stream is closed");
+            }
+            
+            if ((off < 0) || (off > b.length) || (len < 0) || ((off + len) > b.length) || ((off + len) < 0)) {
+                throw new IndexOutOfBoundsException();
+            }
+            
+            if (writeCount > 0) {
+                if (!writeBuffer(writeBuffer, 0, writeCount, false)) {
+                    return 0;
+                }
+                writeCount = 0;
+                writeBuffer = null;
+            }
+            
+            int written = 0;
+            
+            while (written < len) {
+                int chunk = Math.min(len - written, writeBufferSize);
+                
+                // The message element keeps a reference to the array.
+                byte[] copy = new byte[chunk];
+                
+                System.arraycopy(b, off + written, copy, 0, chunk);
+                if (!writeBuffer(copy, 0, chunk, false)) {
+                    break;
+                }
+                written += chunk;
+            }
+            
+            return written;
+        }
+    }
+    
+    /**
+     * Tells whether {@link #writeNonBlocking(byte[], int, int)} would accept
+     * data or fail because the stream is closed.
+     *
+     * @return {@code true} if the send window is open and pacing permits a
+     *         new message, or the stream is closed.
+     */
+    public boolean isWritable() {
+        if (isClosed()) {
+            return true;
+        }
+        
+        long wait = getPacingWait();
+        
+        if (wait > 0) {
+            schedulePacingWakeup(wait);
+            return false;
+        }
+        
+        synchronized (retrQ) {
+            return !isWindowFull();
+        }
+    }
+    
+    /**
+     * Sets the listener notified when the send window opens or the stream is
+     * closed.
+     *
+     * @param readinessListener the listener or {@code null} for none.
+     */
+    public void setReadinessListener(ReadinessListener readinessListener) {
+        this.readinessListener = readinessListener;
+    }
+    
+    private void fireReadinessChanged() {
+        ReadinessListener notify = readinessListener;
+        
+        if (null != notify) {
+            try {
+                notify.readinessChanged();
+            } catch (Throwable all) {
+                if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
+                    LOG.log(Level.WARNING, "Uncaught Throwable calling readiness listener", all);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Tells whether no further messages may be sent until acknowledgements
+     * arrive. {@code retrQ} must have been previously acquired.
+     *
+     * @return {@code true} if the send window is full.
+     */
+    private boolean isWindowFull() {
+        return retrQ.size() > Math.min(rwindow, mrrIQFreeSpace * 2);
+    }
+    
     /**
      * Flush the internal buffer. {@code writeLock} must have been previously
      * acquired.
@@ -511,7 +646,7 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
         if (writeCount > 0) {
             // send the message
             try {
-                writeBuffer(writeBuffer, 0, writeCount);
+                writeBuffer(writeBuffer, 0, writeCount, true);
             } finally {
                 writeCount = 0;
                 writeBuffer = null;
@@ -526,15 +661,18 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
      * @param b data
      * @param off  the start offset in the data.
      * @param len     the number of bytes to write.
+     * @param blocking If {@code true} then wait for the send window to open,
+     *                 otherwise return without sending if it is full.
+     * @return {@code true} if the data was sent.
      * @throws IOException if an I/O error occurs. In particular, an IOException is thrown if the output stream is closed.
      */
-    private void writeBuffer(byte[] b, int off, int len) throws IOException {
+    private boolean writeBuffer(byte[] b, int off, int len, boolean blocking) throws IOException {
         if ((off < 0) || (off > b.length) || (len < 0) || ((off + len) > b.length) || ((off + len) < 0)) {
             throw new IndexOutOfBoundsException();
         }
         
         if (len == 0) {
-            return;
+            return true;
         }
         
         if (null == retrThread) {
@@ -543,6 +681,15 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
             retrThread.start();
         }
         
+        if (!blocking) {
+            long wait = getPacingWait();
+            
+            if (wait > 0) {
+                schedulePacingWakeup(wait);
+                return false;
+            }
+        }
+        
         // allocate new message
         Message jmsg = new Message();
 
@@ -551,7 +698,10 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
                 if (isClosed()) {
                     throw new IOException("Connection is " + (localClosed ? "closing" : "closed"));
                 }
-                if (retrQ.size() > Math.min(rwindow, mrrIQFreeSpace * 2)) {
+                if (isWindowFull()) {
+                    if (!blocking) {
+                        return false;
+                    }
                     try {
                         retrQ.wait(1000);
                     } catch (InterruptedException ignored) {// ignored
@@ -580,12 +730,95 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
             }
         }
         
+        if (blocking) {
+            pace();
+        } else {
+            // We only got here if the pacing interval had already elapsed.
+            nextSendAt = Math.max(nextSendAt, System.nanoTime()) + fc.getPacingDelay();
+        }
         outgoing.send(jmsg);
         mrrIQFreeSpace--;
         // assume we have now taken a slot
         if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
             LOG.fine("SENT : seqn#" + sequenceNumber + " length=" + len);
         }
+        return true;
+    }
+    
+    /**
+     * Delays the caller until the pacing interval recommended by the flow
+     * control module has elapsed since the previous new message was sent.
+     * {@code writeLock} must have been previously acquired.
+     */
+    private void pace() {
+        long delay = fc.getPacingDelay();
+        long now = System.nanoTime();
+        
+        if (delay <= 0) {
+            nextSendAt = now;
+            return;
+        }
+        
+        long wait = nextSendAt - now;
+        
+        // Never wait longer than one pacing interval, even if the interval
+        // has shrunk since the previous send.
+        while ((wait > 0) && !isClosed()) {
+            LockSupport.parkNanos(Math.min(wait, delay));
+            wait = nextSendAt - System.nanoTime();
+            if (wait > delay) {
+                nextSendAt = System.nanoTime() + delay;
+                wait = delay;
+            }
+        }
+        
+        nextSendAt = Math.max(nextSendAt, System.nanoTime()) + delay;
+    }
+    
+    /**
+     * Returns how long until the pacing recommended by the flow control
+     * module permits the next new message.
+     *
+     * @return the delay in nanoseconds, zero or less if a message may be sent
+     *         now.
+     */
+    private long getPacingWait() {
+        long delay = fc.getPacingDelay();
+        
+        if (delay <= 0) {
+            return 0;
+        }
+        
+        // Never longer than one pacing interval, as in pace().
+        return Math.min(nextSendAt - System.nanoTime(), delay);
+    }
+    
+    /**
+     * Notifies the readiness listener once the provided delay has elapsed,
+     * unless a notification is already scheduled.
+     *
+     * @param wait the delay in nanoseconds.
+     */
+    private void schedulePacingWakeup(long wait) {
+        if (!pacingWakeupScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        
+        TaskManager.getTaskManager().getScheduledExecutorService().schedule(new Runnable() {
+            public void run() {
+                pacingWakeupScheduled.set(false);
+                fireReadinessChanged();
+            }
+        }, wait, TimeUnit.NANOSECONDS);
+    }
+    
+    /**
+     * Returns the flow control module used by this stream.
+     *
+     * @return the flow control module.
+     */
+    public FlowControl getFlowControl() {
+        return fc;
     }
     
     /**
@@ -607,7 +840,7 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
         
         synchronized (writeLock) {
             flushBuffer();
-            writeBuffer(bytes, 0, bytes.length);
+            writeBuffer(bytes, 0, bytes.length, true);
             return sequenceNumber.get();
         }
     }
@@ -1029,6 +1262,7 @@ public class ReliableOutputStream extends OutputStream implements Incoming {
             }
             retrQ.notifyAll();
         }
+        fireReadinessChanged();
     }
     
     /**
@@ -0,0 +1,329 @@
+/*
+ * Copyright (c) 2001-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+
+package net.jxta.impl.util.pipe.reliable;
+
+import java.util.List;
+
+/**
+ * Holds received elements until they can be delivered in sequence order.
+ * Elements are stored in a ring indexed by sequence number so that insertion,
+ * duplicate detection and in-order removal take constant time regardless of
+ * how many out of order elements are waiting.
+ * <p/>
+ * Only sequence numbers greater than the last delivered sequence number are
+ * accepted. The ring grows as needed to hold all of the sequence numbers
+ * between the next expected one and the highest one received, up to
+ * {@link #MAX_CAPACITY}.
+ * <p/>
+ * This class is not synchronized.
+ *
+ * @param <E> The type of the queued elements.
+ */
+final class ReorderQueue<E> {
+
+    /**
+     * The maximum distance between the next expected sequence number and the
+     * highest sequence number which will be accepted. Elements further ahead
+     * than this are refused and will be retransmitted by the sender.
+     */
+    static final int MAX_CAPACITY = 1 << 16;
+
+    /**
+     * The elements, indexed by {@code seqnum & mask}.
+     */
+    private Object[] elements;
+
+    /**
+     * Whether the element in the corresponding slot has been selectively
+     * acknowledged.
+     */
+    private boolean[] acked;
+
+    private int mask;
+
+    /**
+     * The sequence number of the last element removed.
+     */
+    private int base;
+
+    /**
+     * The highest sequence number currently held or {@code base} if empty.
+     */
+    private int highest;
+
+    /**
+     * The number of elements held. Volatile so that it may be sampled without
+     * synchronization.
+     */
+    private volatile int count = 0;
+
+    /**
+     * Creates a new queue.
+     *
+     * @param initialCapacity The initial number of sequence numbers the ring
+     *                        can span. Rounded up to a power of two.
+     * @param base            The sequence number preceding the first one which
+     *                        will be delivered.
+     */
+    ReorderQueue(int initialCapacity, int base) {
+        int capacity = 1;
+
+        while (capacity < initialCapacity) {
+            capacity <<= 1;
+        }
+
+        elements = new Object[capacity];
+        acked = new boolean[capacity];
+        mask = capacity - 1;
+        this.base = base;
+        this.highest = base;
+    }
+
+    /**
+     * Adds an element to the queue.
+     *
+     * @param seqnum  The sequence number of the element.
+     * @param element The element.
+     * @return {@code true} if the element was added, {@code false} if it was
+     *         already delivered, is already queued or is too far ahead of the
+     *         next expected sequence number.
+     */
+    boolean offer(int seqnum, E element) {
+        int distance = seqnum - base;
+
+        if ((distance <= 0) || (distance > MAX_CAPACITY)) {
+            return false;
+        }
+
+        if (distance > elements.length) {
+            grow(distance);
+        }
+
+        int index = seqnum & mask;
+
+        if (null != elements[index]) {
+            return false;
+        }
+
+        elements[index] = element;
+        acked[index] = false;
+        if (seqnum > highest) {
+            highest = seqnum;
+        }
+        count++;
+        return true;
+    }
+
+    /**
+     * Removes and returns the element which follows the last delivered
+     * element, if it has been received.
+     *
+     * @return The next element in sequence or {@code null} if it has not been
+     *         received.
+     */
+    @SuppressWarnings("unchecked")
+    E poll() {
+        int index = (base + 1) & mask;
+        E element = (E) elements[index];
+
+        if (null == element) {
+            return null;
+        }
+
+        elements[index] = null;
+        acked[index] = false;
+        base++;
+        count--;
+        if (0 == count) {
+            highest = base;
+        }
+        return element;
+    }
+
+    /**
+     * Tells whether the element which follows the last delivered element has
+     * been received, ie. whether {@link #poll()} would return an element.
+     *
+     * @return {@code true} if the next element in sequence is held.
+     */
+    boolean hasNext() {
+        return (0 != count) && (null != elements[(base + 1) & mask]);
+    }
+
+    /**
+     * Returns the lowest sequence number held.
+     *
+     * @return The lowest sequence number held or {@code -1} if the queue is
+     *         empty.
+     */
+    int firstSeqnum() {
+        if (0 == count) {
+            return -1;
+        }
+
+        for (int seqnum = base + 1; seqnum <= highest; seqnum++) {
+            if (null != elements[seqnum & mask]) {
+                return seqnum;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns the sequence number of the last element removed.
+     *
+     * @return The sequence number of the last element removed.
+     */
+    int getBase() {
+        return base;
+    }
+
+    /**
+     * Collects the sequence numbers of queued elements above the specified
+     * sequence number which have not yet been selectively acknowledged and
+     * marks them as acknowledged.
+     *
+     * @param seqnAck The sequence number being sequentially acknowledged.
+     * @param sacks   The list to which the sequence numbers are added in
+     *                increasing order.
+     * @param max     The maximum number of sequence numbers to add.
+     * @return The number of sequence numbers added.
+     */
+    int selectUnacked(int seqnAck, List<Integer> sacks, int max) {
+        int added = 0;
+
+        for (int seqnum = Math.max(seqnAck, base) + 1; (seqnum <= highest) && (added < max); seqnum++) {
+            int index = seqnum & mask;
+
+            if ((null != elements[index]) && !acked[index]) {
+                acked[index] = true;
+                sacks.add(seqnum);
+                added++;
+            }
+        }
+
+        return added;
+    }
+
+    /**
+     * Returns the number of elements held.
+     *
+     * @return The number of elements held.
+     */
+    int size() {
+        return count;
+    }
+
+    boolean isEmpty() {
+        return 0 == count;
+    }
+
+    /**
+     * Discards all of the queued elements. The last delivered sequence number
+     * is unchanged.
+     */
+    void clear() {
+        for (int seqnum = base + 1; (count > 0) && (seqnum <= highest); seqnum++) {
+            int index = seqnum & mask;
+
+            if (null != elements[index]) {
+                elements[index] = null;
+                acked[index] = false;
+                count--;
+            }
+        }
+        count = 0;
+        highest = base;
+    }
+
+    /**
+     * Returns the number of sequence numbers the ring currently spans.
+     *
+     * @return The capacity of the ring.
+     */
+    int capacity() {
+        return elements.length;
+    }
+
+    /**
+     * Enlarges the ring so that it spans at least the specified number of
+     * sequence numbers.
+     *
+     * @param span The number of sequence numbers which must fit.
+     */
+    private void grow(int span) {
+        int capacity = elements.length;
+
+        while (capacity < span) {
+            capacity <<= 1;
+        }
+
+        Object[] newElements = new Object[capacity];
+        boolean[] newAcked = new boolean[capacity];
+        int newMask = capacity - 1;
+
+        for (int seqnum = base + 1; seqnum <= highest; seqnum++) {
+            newElements[seqnum & newMask] = elements[seqnum & mask];
+            newAcked[seqnum & newMask] = acked[seqnum & mask];
+        }
+
+        elements = newElements;
+        acked = newAcked;
+        mask = newMask;
+    }
+}
@@ -72,9 +72,13 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -103,6 +107,13 @@ import java.util.logging.Logger;
  * This implementation supports the notion of nested roots.  This means
  * that you can create a btree where the pointers actually point to the
  * root of a separate btree being managed in the same file.
+ * <br><br>
+ * Concurrent access is controlled by a single read/write latch per file.
+ * Lookups and queries share the latch and may run in parallel while
+ * insertions and removals hold it exclusively. A query collects its matches
+ * while holding the latch and reports them to its callback only after the
+ * latch has been released, so a callback may freely modify the tree. The
+ * matches reported are those present when the query ran.
  */
 
 public class BTree extends Paged {
@@ -111,17 +122,60 @@ public class BTree extends Paged {
     protected static final byte BRANCH = 2;
     protected static final byte STREAM = 3;
 
+    /**
+     * System property which sets the number of tree nodes held in memory by
+     * each BTree.
+     */
+    public static final String NODE_CACHE_SIZE_SYSPROP = "net.jxta.impl.xindice.core.filer.BTree.nodeCacheSize";
+
+    /**
+     * The default number of tree nodes held in memory by each BTree.
+     */
+    private static final int DEFAULT_NODE_CACHE_SIZE = 256;
+
     /**
      * Cache of the recently used tree nodes.
-     *
-     * Cache contains weak references to the BTreeNode objects, keys are page numbers (Long objects).
+     */
+    private final ClockCache<BTreeNode> nodeCache = new ClockCache<BTreeNode>(Math.max(0, Integer.getInteger(NODE_CACHE_SIZE_SYSPROP, DEFAULT_NODE_CACHE_SIZE)));
+
+    /**
+     * Weak references to every tree node in memory, keys are page numbers
+     * (Long objects). Assures that at most one instance of a node exists in
+     * memory, including nodes evicted from the {@link #nodeCache}.
+     * <p/>
      * Access synchronized by this map itself.
      */
     private final Map<Long, WeakReference<BTreeNode>> cache = new WeakHashMap<Long, WeakReference<BTreeNode>>();
 
+    /**
+     * Latch which is held shared by lookups and queries and exclusively by
+     * modifications of the tree.
+     */
+    private final ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
+
+    /**
+     * Cumulative time spent waiting to acquire the latch in shared mode.
+     */
+    private final AtomicLong readLockWaitNanos = new AtomicLong();
+
+    /**
+     * Cumulative time spent waiting to acquire the latch in exclusive mode.
+     */
+    private final AtomicLong writeLockWaitNanos = new AtomicLong();
+
+    /**
+     * Number of shared acquisitions of the latch.
+     */
+    private final AtomicLong readLocks = new AtomicLong();
+
+    /**
+     * Number of exclusive acquisitions of the latch.
+     */
+    private final AtomicLong writeLocks = new AtomicLong();
+
     private BTreeFileHeader fileHeader;
     private BTreeRootInfo rootInfo;
-    private BTreeNode rootNode;
+    private volatile BTreeNode rootNode;
 
     public BTree() {
         super();
@@ -177,6 +231,7 @@ public class BTree extends Paged {
                 synchronized (cache) {
                     cache.put(rootNode.page.getPageNum(), new WeakReference<BTreeNode>(rootNode));
                 }
+                nodeCache.put(rootNode.page.getPageNum(), rootNode);
                 close();
                 return true;
             } catch (Exception e) {
@@ -188,6 +243,116 @@ public class BTree extends Paged {
         return false;
     }
 
+    @Override
+    public boolean close() throws DBException {
+        boolean closed = super.close();
+
+        nodeCache.clear();
+
+        if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+            LOG.fine("Closed " + getFile().getName() + " node cache hit ratio : " + nodeCache.getHitRatio() + " read latch wait : "
+                    + readLockWaitNanos.get() / 1000000L + "ms write latch wait : " + writeLockWaitNanos.get() / 1000000L + "ms");
+        }
+        return closed;
+    }
+
+    /**
+     * Sets the maximum number of tree nodes held in memory by the node cache.
+     * The cache is emptied.
+     *
+     * @param size The number of nodes. Zero disables the cache.
+     */
+    public void setNodeCacheSize(int size) {
+        nodeCache.setCapacity(size);
+    }
+
+    /**
+     * Returns the fraction of tree node lookups which were satisfied by the
+     * node cache.
+     *
+     * @return The hit ratio between 0.0 and 1.0.
+     */
+    public double getNodeCacheHitRatio() {
+        return nodeCache.getHitRatio();
+    }
+
+    /**
+     * Returns the cumulative time threads have spent waiting to acquire the
+     * tree latch for lookups and queries.
+     *
+     * @return The wait time in nanoseconds.
+     */
+    public long getReadLockWaitNanos() {
+        return readLockWaitNanos.get();
+    }
+
+    /**
+     * Returns the cumulative time threads have spent waiting to acquire the
+     * tree latch for insertions and removals.
+     *
+     * @return The wait time in nanoseconds.
+     */
+    public long getWriteLockWaitNanos() {
+        return writeLockWaitNanos.get();
+    }
+
+    /**
+     * Returns the number of times the tree latch has been acquired for
+     * lookups and queries.
+     *
+     * @return The number of shared acquisitions.
+     */
+    public long getReadLockCount() {
+        return readLocks.get();
+    }
+
+    /**
+     * Returns the number of times the tree latch has been acquired for
+     * insertions and removals.
+     *
+     * @return The number of exclusive acquisitions.
+     */
+    public long getWriteLockCount() {
+        return writeLocks.get();
+    }
+
+    /**
+     * Acquires the tree latch in shared mode.
+     */
+    private void lockRead() {
+        long start = System.nanoTime();
+
+        latch.readLock().lock();
+        readLockWaitNanos.addAndGet(System.nanoTime() - start);
+        readLocks.incrementAndGet();
+    }
+
+    private void unlockRead() {
+        latch.readLock().unlock();
+    }
+
+    /**
+     * Acquires the tree latch in exclusive mode.
+     *
+     * @throws IllegalStateException if the current thread holds the latch in
+     *                               shared mode, which can not be upgraded.
+     */
+    private void lockWrite() {
+        if (latch.getReadHoldCount() > 0) {
+            throw new IllegalStateException("BTree modified while the latch is held shared");
+        }
+
+        long start = System.nanoTime();
+
+        latch.writeLock().lock();
+        writeLockWaitNanos.addAndGet(System.nanoTime() - start);
+        writeLocks.incrementAndGet();
+    }
+
+    private void unlockWrite() {
+        latch.writeLock().unlock();
+    }
+
     /**
      * addValue adds a Value to the BTree and associates a pointer with
      * it.  The pointer can be used for referencing any type of data, it
@@ -201,7 +366,13 @@ public class BTree extends Paged {
      * @throws BTreeException if a DB exception occurs
      */
     public long addValue(Value value, long pointer) throws IOException, BTreeException {
-        return getRootNode().addValue(value, pointer);
+        lockWrite();
+
+        try {
+            return getRootNode().addValue(value, pointer);
+        } finally {
+            unlockWrite();
+        }
     }
 
     /**
@@ -218,7 +389,13 @@ public class BTree extends Paged {
      * @throws BTreeException if a DB exception occurs
      */
     public long addValue(BTreeRootInfo root, Value value, long pointer) throws IOException, BTreeException {
-        return getRootNode(root).addValue(value, pointer);
+        lockWrite();
+
+        try {
+            return getRootNode(root).addValue(value, pointer);
+        } finally {
+            unlockWrite();
+        }
     }
 
     /**
@@ -231,7 +408,13 @@ public class BTree extends Paged {
      * @throws BTreeException if a DB exception occurs
      */
     public long removeValue(Value value) throws IOException, BTreeException {
-        return getRootNode().removeValue(value);
+        lockWrite();
+
+        try {
+            return getRootNode().removeValue(value);
+        } finally {
+            unlockWrite();
+        }
     }
 
     /**
@@ -245,7 +428,13 @@ public class BTree extends Paged {
      * @throws BTreeException if a DB exception occurs
      */
     public long removeValue(BTreeRootInfo root, Value value) throws IOException, BTreeException {
-        return getRootNode(root).removeValue(value);
+        lockWrite();
+
+        try {
+            return getRootNode(root).removeValue(value);
+        } finally {
+            unlockWrite();
+        }
     }
 
     /**
@@ -258,7 +447,12 @@ public class BTree extends Paged {
      * @throws BTreeException if a DB exception occurs
      */
     public long findValue(Value value) throws IOException, BTreeException {
-        return getRootNode().findValue(value);
+        lockRead();
+        try {
+            return getRootNode().findValue(value);
+        } finally {
+            unlockRead();
+        }
     }
 
     /**
@@ -272,7 +466,12 @@ public class BTree extends Paged {
      * @throws BTreeException if a DB exception occurs
      */
     public long findValue(BTreeRootInfo root, Value value) throws IOException, BTreeException {
-        return getRootNode(root).findValue(value);
+        lockRead();
+        try {
+            return getRootNode(root).findValue(value);
+        } finally {
+            unlockRead();
+        }
     }
 
     /**
@@ -285,7 +484,15 @@ public class BTree extends Paged {
      * @throws BTreeException if a DB exception occurs
      */
     public void query(IndexQuery query, BTreeCallback callback) throws IOException, BTreeException {
-        getRootNode().query(query, callback);
+        QueryResults results = new QueryResults();
+
+        lockRead();
+        try {
+            getRootNode().query(query, results);
+        } finally {
+            unlockRead();
+        }
+        results.report(callback);
     }
 
     /**
@@ -299,7 +506,55 @@ public class BTree extends Paged {
      * @throws BTreeException if a DB exception occurs
      */
     public void query(BTreeRootInfo root, IndexQuery query, BTreeCallback callback) throws IOException, BTreeException {
-        getRootNode(root).query(query, callback);
+        QueryResults results = new QueryResults();
+
+        lockRead();
+        try {
+            getRootNode(root).query(query, results);
+        } finally {
+            unlockRead();
+        }
+        results.report(callback);
+    }
+
+    /**
+     * Collects the matches of a query so that they can be reported after the
+     * tree latch has been released.
+     */
+    private static final class QueryResults implements BTreeCallback {
+
+        private final List<Value> values = new ArrayList<Value>();
+        private long[] pointers = new long[16];
+
+        /**
+         * {@inheritDoc}
+         */
+        public boolean indexInfo(Value value, long pointer) {
+            int count = values.size();
+
+            if (count == pointers.length) {
+                pointers = Arrays.copyOf(pointers, count * 2);
+            }
+            pointers[count] = pointer;
+            values.add(value);
+            return true;
+        }
+
+        /**
+         * Reports the collected matches in order until the callback cancels
+         * the enumeration.
+         *
+         * @param callback The callback to report to.
+         */
+        void report(BTreeCallback callback) {
+            int count = values.size();
+
+            for (int each = 0; each < count; each++) {
+                if (!callback.indexInfo(values.get(each), pointers[each])) {
+                    break;
+                }
+            }
+        }
     }
 
     /**
@@ -312,12 +567,19 @@ public class BTree extends Paged {
      * @throws BTreeException if a DB exception occurs
      */
     protected final BTreeRootInfo createBTreeRoot(Value v) throws IOException, BTreeException {
-        BTreeNode n = createBTreeNode(BTree.LEAF, null);
-        n.write();
-        long position = n.page.getPageNum();
+        lockWrite();
 
-        addValue(v, position);
-        return new BTreeRootInfo(v, position);
+        try {
+            BTreeNode n = createBTreeNode(BTree.LEAF, null);
+
+            n.write();
+            long position = n.page.getPageNum();
+
+            addValue(v, position);
+            return new BTreeRootInfo(v, position);
+        } finally {
+            unlockWrite();
+        }
     }
 
     /**
@@ -331,14 +593,20 @@ public class BTree extends Paged {
      * @throws BTreeException if a DB exception occurs
      */
     protected final BTreeRootInfo createBTreeRoot(BTreeRootInfo root, Value v) throws IOException, BTreeException {
-        BTreeNode n = createBTreeNode(BTree.LEAF, null);
+        lockWrite();
 
-        n.write();
+        try {
+            BTreeNode n = createBTreeNode(BTree.LEAF, null);
 
-        long position = n.page.getPageNum();
+            n.write();
 
-        addValue(v, position);
-        return new BTreeRootInfo(root, v, position);
+            long position = n.page.getPageNum();
+
+            addValue(v, position);
+            return new BTreeRootInfo(root, v, position);
+        } finally {
+            unlockWrite();
+        }
     }
 
     /**
@@ -377,7 +645,7 @@ public class BTree extends Paged {
      * setRootNode resets the root for the specified root object to the
      * provided BTreeNode's page number.
      *
-     * This method is not thread safe.
+     * Must be called with the tree latch held exclusively.
      *
      * @param root The root to reset
      * @param newRoot the new root node to use
@@ -405,7 +673,7 @@ public class BTree extends Paged {
      * setRootNode resets the file's root to the provided
      * BTreeNode's page number.
      *
-     * This method is not thread safe.
+     * Must be called with the tree latch held exclusively.
      *
      * @param rootNode the new root node to use
      * @throws java.io.IOException if an io error occurs
@@ -441,24 +709,30 @@ public class BTree extends Paged {
 
     private BTreeNode getBTreeNode(long page, BTreeNode parent) {
         try {
-            BTreeNode node = null;
+            final Long lp = page;
+            BTreeNode node = nodeCache.get(lp);
 
-            synchronized (cache) {
-                WeakReference<BTreeNode> ref = cache.get(page);
+            if (node == null) {
+                synchronized (cache) {
+                    WeakReference<BTreeNode> ref = cache.get(lp);
 
-                if (ref != null) {
-                    node = ref.get();
-                }
+                    if (ref != null) {
+                        node = ref.get();
+                    }
 
-                if (node == null) {
-                    node = new BTreeNode(getPage(page), parent);
-                } else {
-                    node.parent = parent;
+                    if (node == null) {
+                        node = new BTreeNode(getPage(page), parent);
+                        cache.put(node.page.getPageNum(), new WeakReference<BTreeNode>(node));
+                    }
                 }
-
-                cache.put(node.page.getPageNum(), new WeakReference<BTreeNode>(node));
+                nodeCache.put(lp, node);
             }
 
+            // Parents are only followed when splitting nodes, which is done
+            // with the latch held exclusively.
+            if (latch.isWriteLockedByCurrentThread()) {
+                node.parent = parent;
+            }
             node.read();
             return node;
         } catch (Exception e) {
@@ -477,6 +751,7 @@ public class BTree extends Paged {
         synchronized (cache) {
             cache.put(p.getPageNum(), new WeakReference<BTreeNode>(node));
         }
+        nodeCache.put(p.getPageNum(), node);
         return node;
     }
 
@@ -538,6 +813,9 @@ public class BTree extends Paged {
 
     /**
      * BTreeNode
+     * <p/>
+     * Nodes are not synchronized, except for loading, and rely upon the
+     * tree latch for exclusion of modifications.
      */
     private final class BTreeNode {
         private final Page page;
@@ -545,7 +823,7 @@ public class BTree extends Paged {
         private Value[] values;
         private long[] ptrs;
         private BTreeNode parent;
-        private boolean loaded;
+        private volatile boolean loaded;
 
         public BTreeNode(Page page) {
             this(page, null);
@@ -579,8 +857,16 @@ public class BTree extends Paged {
          * Reads node only if it is not loaded yet
          * @throws java.io.IOException if an io error occurs
          */
-        public synchronized void read() throws IOException {
-            if (!this.loaded) {
+        public void read() throws IOException {
+            if (this.loaded) {
+                return;
+            }
+
+            synchronized (this) {
+                if (this.loaded) {
+                    return;
+                }
+
                 Value v = readValue(page);
                 DataInputStream is = new DataInputStream(v.getInputStream());
 
@@ -604,7 +890,7 @@ public class BTree extends Paged {
             }
         }
 
-        public synchronized void write() throws IOException {
+        public void write() throws IOException {
             ByteArrayOutputStream bos = new ByteArrayOutputStream(fileHeader.getWorkSize());
             DataOutputStream os = new DataOutputStream(bos);
 
@@ -646,7 +932,7 @@ public class BTree extends Paged {
          }
          */
 
-        public synchronized long removeValue(Value value) throws IOException, BTreeException {
+        public long removeValue(Value value) throws IOException, BTreeException {
             int idx = Arrays.binarySearch(values, value);
 
             switch (ph.getStatus()) {
@@ -671,7 +957,7 @@ public class BTree extends Paged {
             }
         }
 
-        public synchronized long addValue(Value value, long pointer) throws IOException, BTreeException {
+        public long addValue(Value value, long pointer) throws IOException, BTreeException {
             if (value == null) {
                 throw new BTreeException(FaultCodes.DBE_CANNOT_CREATE, "Can't add a null Value");
             }
@@ -716,7 +1002,7 @@ public class BTree extends Paged {
             }
         }
 
-        private synchronized void promoteValue(Value value, long rightPointer) throws IOException, BTreeException {
+        private void promoteValue(Value value, long rightPointer) throws IOException, BTreeException {
             // Check to see if we've exhausted the block
             boolean split = needSplit(value);
 
@@ -835,7 +1121,7 @@ public class BTree extends Paged {
 
         // ///////////////////////////////////////////////////////////////
 
-        public synchronized long findValue(Value value) throws IOException, BTreeException {
+        public long findValue(Value value) throws IOException, BTreeException {
             if (value == null) {
                 throw new BTreeNotFoundException("Can't search on null Value");
             }
@@ -860,7 +1146,7 @@ public class BTree extends Paged {
         }
 
         // query is a BEAST of a method
-        public synchronized void query(IndexQuery query, BTreeCallback callback) throws IOException, BTreeException {
+        public void query(IndexQuery query, BTreeCallback callback) throws IOException, BTreeException {
             if (query != null && query.getOperator() != IndexQuery.ANY) {
                 Value[] qvals = query.getValues();
                 int leftIdx = Arrays.binarySearch(values, qvals[0]);
@@ -140,10 +140,25 @@ public final class BTreeFiler extends BTree implements Filer {
     }
 
     public Record readRecord(long pos) throws DBException {
+        return readRecord(pos, true);
+    }
+
+    /**
+     * Reads the record at the specified position, optionally skipping the
+     * record value. Only the first page of the record is read when the
+     * value is not requested.
+     *
+     * @param pos       the page number of the record.
+     * @param readValue if {@code true} then the record value is read,
+     *                  otherwise the returned record has a {@code null} value.
+     * @return the record.
+     * @throws DBException if the record cannot be read.
+     */
+    public Record readRecord(long pos, boolean readValue) throws DBException {
         checkOpened();
         try {
             Page startPage = getPage(pos);
-            Value v = readValue(startPage);
+            Value v = readValue ? readValue(startPage) : null;
             BTreeFilerPageHeader sph = (BTreeFilerPageHeader) startPage.getPageHeader();
 
             HashMap<String, Long> meta = new HashMap<String, Long>(4);
@@ -0,0 +1,293 @@
+/*
+ * Copyright (c) 2001-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+
+package net.jxta.impl.xindice.core.filer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of strongly referenced objects keyed by page number which
+ * uses the CLOCK (second chance) replacement policy.
+ * <p/>
+ * Lookups are lock free and only set the reference bit of the entry. The
+ * clock hand is only moved when a new entry is admitted to a full cache, at
+ * which point the first entry found with a clear reference bit is evicted.
+ * <p/>
+ * Eviction only drops the strong reference held by the cache. Callers which
+ * need at most one instance per page in memory must still track the objects
+ * which remain reachable from elsewhere (for example dirty pages awaiting
+ * write-back).
+ *
+ * @param <V> The type of the cached objects.
+ */
+final class ClockCache<V> {
+
+    /**
+     * An entry in the clock.
+     */
+    private static final class Slot<V> {
+        final Long key;
+        final V value;
+        volatile boolean referenced = true;
+
+        Slot(Long key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    /**
+     * The resident entries, keyed by page number.
+     */
+    private final ConcurrentMap<Long, Slot<V>> resident = new ConcurrentHashMap<Long, Slot<V>>();
+
+    /**
+     * The clock. Access is synchronized on this cache.
+     */
+    private Slot<V>[] clock;
+
+    /**
+     * The position of the clock hand. Access is synchronized on this cache.
+     */
+    private int hand = 0;
+
+    /**
+     * The number of occupied positions in the clock. Access is synchronized
+     * on this cache.
+     */
+    private int used = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Creates a new cache.
+     *
+     * @param capacity The maximum number of objects which will be held. Zero
+     *                 disables the cache.
+     */
+    ClockCache(int capacity) {
+        clock = newClock(capacity);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> Slot<V>[] newClock(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Negative cache capacity : " + capacity);
+        }
+        return (Slot<V>[]) new Slot<?>[capacity];
+    }
+
+    /**
+     * Returns the cached object for the specified page and marks it as
+     * recently used.
+     *
+     * @param key The page number.
+     * @return The cached object or {@code null} if the page is not resident.
+     */
+    V get(Long key) {
+        Slot<V> slot = resident.get(key);
+
+        if (null == slot) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        slot.referenced = true;
+        hits.incrementAndGet();
+        return slot.value;
+    }
+
+    /**
+     * Admits an object to the cache, evicting the least recently referenced
+     * entry if the cache is full.
+     *
+     * @param key   The page number.
+     * @param value The object.
+     */
+    synchronized void put(Long key, V value) {
+        if (0 == clock.length) {
+            return;
+        }
+
+        Slot<V> existing = resident.get(key);
+
+        if ((null != existing) && (existing.value == value)) {
+            existing.referenced = true;
+            return;
+        }
+
+        Slot<V> slot = new Slot<V>(key, value);
+
+        if (null != existing) {
+            // Replace in place.
+            for (int each = 0; each < used; each++) {
+                if (clock[each] == existing) {
+                    clock[each] = slot;
+                    resident.put(key, slot);
+                    return;
+                }
+            }
+        }
+
+        if (used < clock.length) {
+            clock[used++] = slot;
+            resident.put(key, slot);
+            return;
+        }
+
+        // Sweep for a victim. Terminates within two turns of the clock.
+        while (true) {
+            Slot<V> candidate = clock[hand];
+
+            if (candidate.referenced) {
+                candidate.referenced = false;
+                hand = (hand + 1) % clock.length;
+                continue;
+            }
+
+            resident.remove(candidate.key, candidate);
+            evictions.incrementAndGet();
+            clock[hand] = slot;
+            resident.put(key, slot);
+            hand = (hand + 1) % clock.length;
+            return;
+        }
+    }
+
+    /**
+     * Removes the specified page from the cache.
+     *
+     * @param key The page number.
+     */
+    synchronized void remove(Long key) {
+        Slot<V> slot = resident.remove(key);
+
+        if (null == slot) {
+            return;
+        }
+
+        for (int each = 0; each < used; each++) {
+            if (clock[each] == slot) {
+                clock[each] = clock[--used];
+                clock[used] = null;
+                if (hand >= used) {
+                    hand = 0;
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes all entries from the cache. Statistics are retained.
+     */
+    synchronized void clear() {
+        resident.clear();
+        clock = newClock(clock.length);
+        used = 0;
+        hand = 0;
+    }
+
+    /**
+     * Changes the maximum number of objects held by the cache. The cache is
+     * emptied.
+     *
+     * @param capacity The new capacity. Zero disables the cache.
+     */
+    synchronized void setCapacity(int capacity) {
+        clock = newClock(capacity);
+        resident.clear();
+        used = 0;
+        hand = 0;
+    }
+
+    synchronized int getCapacity() {
+        return clock.length;
+    }
+
+    int size() {
+        return resident.size();
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Returns the fraction of lookups which found the page resident.
+     *
+     * @return The hit ratio between 0.0 and 1.0, or 0.0 if there have been no
+     *         lookups.
+     */
+    double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+
+        return (0 == total) ? 0.0 : ((double) h) / total;
+    }
+}
@@ -60,6 +60,7 @@ import net.jxta.impl.xindice.core.DBException;
 import net.jxta.impl.xindice.core.FaultCodes;
 import net.jxta.impl.xindice.core.data.Key;
 import net.jxta.impl.xindice.core.data.Value;
+import net.jxta.logging.Logging;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -71,6 +72,9 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Collection;
 import java.util.EmptyStackException;
 import java.util.HashMap;
@@ -101,6 +105,25 @@ import java.util.logging.Logger;
  * (DEFAULT_DESCRIPTORS_MAX).</li>
  * </ul>
  * <p/>
+ * Recently used pages are held in a bounded CLOCK cache whose size is set by
+ * the {@value #CACHE_SIZE_SYSPROP} system property or
+ * {@link #setPageCacheSize(int)}. Modified pages are additionally pinned in
+ * the dirty set until they are written back by {@link #flush()}.
+ * <p/>
+ * Page I/O is normally performed through a pool of random access files. When
+ * the {@value #MAPPED_SYSPROP} system property is set, or
+ * {@link #setMemoryMapped(boolean)} is called, pages are instead copied to
+ * and from a read-write memory mapped region of the file which is grown as
+ * the file grows. Durability of the mapped region is controlled by the
+ * {@link #sync} flag:
+ * <ul>
+ * <li>If sync is set, every {@link #flush()} forces the mapped region to the
+ * storage device once all of the dirty pages have been copied into it.</li>
+ * <li>If sync is not set, modified pages are written back by the operating
+ * system at its discretion and the region is forced when the file is
+ * closed.</li>
+ * </ul>
+ * <p/>
  * <br>FIXME: Currently it seems that maxkeysize is not used anywhere.
  * <br>TODO: Introduce Paged interface, implementations.
  */
@@ -117,6 +140,23 @@ public abstract class Paged {
      */
     private static final int MAX_DIRTY_SIZE = 128;
 
+    /**
+     * System property which sets the number of pages held in memory by each
+     * paged file.
+     */
+    public static final String CACHE_SIZE_SYSPROP = "net.jxta.impl.xindice.core.filer.Paged.cacheSize";
+
+    /**
+     * The default number of pages held in memory by each paged file.
+     */
+    private static final int DEFAULT_CACHE_SIZE = 256;
+
+    /**
+     * System property which, if set to {@code true}, enables memory mapped
+     * page I/O for all paged files.
+     */
+    public static final String MAPPED_SYSPROP = "net.jxta.impl.xindice.core.filer.Paged.mapped";
+
     // The maximum number of open random access files we can have
     private static final int DEFAULT_DESCRIPTORS_MAX = 16;
 
@@ -145,12 +185,18 @@ public abstract class Paged {
      */
     protected boolean sync = true;
 
-    // TODO: This is not a cache right now, but a way to assure that only one page instance at most exists in memory at all times.
     /**
      * Cache of recently read pages.
+     */
+    private final ClockCache<Page> cache = new ClockCache<Page>(Math.max(0, Integer.getInteger(CACHE_SIZE_SYSPROP, DEFAULT_CACHE_SIZE)));
+
+    /**
+     * Weak references to every Page object in memory, keys are page numbers
+     * (Long objects). Assures that at most one instance of a page exists in
+     * memory at all times, including pages which have been evicted from the
+     * {@link #cache} but are still referenced.
      * <p/>
-     * Cache contains weak references to the Page objects, keys are page numbers (Long objects).
-     * Access synchronized by this map itself.
+     * Access synchronized by this Paged object.
      */
     private final Map<Long, WeakReference<Page>> pages = new WeakHashMap<Long, WeakReference<Page>>();
 
@@ -165,6 +211,28 @@ public abstract class Paged {
      */
     private final Object dirtyLock = new Object();
 
+    /**
+     * If {@code true} then pages are read and written through {@link #region}.
+     */
+    private volatile boolean mapped = Boolean.getBoolean(MAPPED_SYSPROP);
+
+    /**
+     * The memory mapped region of the file, starting at offset zero. Null if
+     * not yet mapped. Replaced by a larger mapping as the file grows.
+     */
+    private volatile MappedByteBuffer region;
+
+    /**
+     * The file from which {@link #region} is mapped.
+     */
+    private RandomAccessFile regionFile;
+
+    /**
+     * Lock for synchronizing changes to {@link #region} and
+     * {@link #regionFile}.
+     */
+    private final Object regionLock = new Object();
+
     /**
      * Random access file descriptors cache.
      * Access to it and to {@link #descriptorsCount} is synchronized by itself.
@@ -299,14 +367,19 @@ public abstract class Paged {
      */
     protected final Page getPage(long pageNum) throws IOException {
         final Long lp = pageNum;
-        Page page;
+        Page page = cache.get(lp);
+
+        if (page != null) {
+            page.read();
+            return page;
+        }
 
         synchronized (this) {
             // Check if it's in the dirty cache
             // No need to synchronize on dirtyLock thanks to atomic assignment
             page = dirty.get(lp);
 
-            // if not check if it's already loaded in the page cache
+            // if not check if it is still in memory, evicted from the page cache
             if (page == null) {
                 WeakReference<Page> ref = pages.get(lp);
 
@@ -321,12 +394,181 @@ public abstract class Paged {
                 pages.put(page.pageNum, new WeakReference<Page>(page));
             }
         }
+        cache.put(lp, page);
 
         // Load the page from disk if necessary
         page.read();
         return page;
     }
 
+    /**
+     * Enables or disables memory mapped page I/O. Dirty pages are flushed
+     * before the mode is changed.
+     *
+     * @param mapped If {@code true} then pages will be read and written
+     *               through a memory mapped region of the file.
+     * @throws DBException if the dirty pages could not be flushed.
+     */
+    public void setMemoryMapped(boolean mapped) throws DBException {
+        if (this.mapped == mapped) {
+            return;
+        }
+
+        flush();
+        this.mapped = mapped;
+        if (!mapped) {
+            releaseRegion();
+        }
+    }
+
+    /**
+     * Returns {@code true} if pages are read and written through a memory
+     * mapped region of the file.
+     *
+     * @return {@code true} if memory mapped page I/O is enabled.
+     */
+    public boolean isMemoryMapped() {
+        return mapped;
+    }
+
+    /**
+     * Returns a view of the memory mapped region which covers at least the
+     * specified length of the file, mapping or growing the region as needed.
+     * A region is grown to at least one and a half times its previous size.
+     *
+     * @param length The required length of the region.
+     * @return A view of the region, or {@code null} if the file can not be
+     *         mapped at the required length.
+     * @throws IOException if the file could not be mapped.
+     */
+    private ByteBuffer getRegion(long length) throws IOException {
+        MappedByteBuffer current = region;
+
+        if ((null != current) && (length <= current.capacity())) {
+            return current.duplicate();
+        }
+
+        synchronized (regionLock) {
+            current = region;
+            if ((null == current) || (length > current.capacity())) {
+                if (null == regionFile) {
+                    regionFile = new RandomAccessFile(file, "rw");
+                }
+
+                long size = Math.max(length, regionFile.length());
+
+                if (null != current) {
+                    size = Math.max(size, current.capacity() + (current.capacity() / 2));
+                }
+                if (size > Integer.MAX_VALUE) {
+                    size = length;
+                }
+                if (size > Integer.MAX_VALUE) {
+                    if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
+                        LOG.warning(file.getName() + " is too large to be memory mapped, using file I/O");
+                    }
+                    return null;
+                }
+
+                if (null != current) {
+                    // Changes made through the old mapping must not be lost
+                    // if the new mapping is not forced.
+                    current.force();
+                }
+
+                current = regionFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+                region = current;
+
+                if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+                    LOG.fine("Mapped " + size + " bytes of " + file.getName());
+                }
+            }
+
+            return current.duplicate();
+        }
+    }
+
+    /**
+     * Forces any changes made through the memory mapped region to the storage
+     * device.
+     */
+    private void forceRegion() {
+        MappedByteBuffer current = region;
+
+        if (null != current) {
+            current.force();
+        }
+    }
+
+    /**
+     * Forces and releases the memory mapped region, if any.
+     */
+    private void releaseRegion() {
+        synchronized (regionLock) {
+            if (null != region) {
+                region.force();
+                region = null;
+            }
+
+            if (null != regionFile) {
+                try {
+                    regionFile.close();
+                } catch (IOException ignored) {// Ignore close exception
+                }
+                regionFile = null;
+            }
+        }
+    }
+
+    /**
+     * Sets the maximum number of pages held in memory by the page cache. The
+     * cache is emptied.
+     *
+     * @param size The number of pages. Zero disables the cache.
+     */
+    public void setPageCacheSize(int size) {
+        cache.setCapacity(size);
+    }
+
+    /**
+     * Returns the maximum number of pages held in memory by the page cache.
+     *
+     * @return The number of pages.
+     */
+    public int getPageCacheSize() {
+        return cache.getCapacity();
+    }
+
+    /**
+     * Returns the number of page lookups which were satisfied by the page
+     * cache.
+     *
+     * @return The number of cache hits.
+     */
+    public long getPageCacheHits() {
+        return cache.getHits();
+    }
+
+    /**
+     * Returns the number of page lookups which were not satisfied by the page
+     * cache.
+     *
+     * @return The number of cache misses.
+     */
+    public long getPageCacheMisses() {
+        return cache.getMisses();
+    }
+
+    /**
+     * Returns the fraction of page lookups which were satisfied by the page
+     * cache.
+     *
+     * @return The hit ratio between 0.0 and 1.0.
+     */
+    public double getPageCacheHitRatio() {
+        return cache.getHitRatio();
+    }
+
     /**
      * readValue reads the multi-Paged Value starting at the specified
      * Page.
@@ -616,6 +858,13 @@ public abstract class Paged {
                 // First of all, mark as closed to prevent operations
                 opened = false;
                 flush();
+                releaseRegion();
+                cache.clear();
+
+                if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+                    LOG.fine("Closing " + file.getName() + " page cache hits : " + cache.getHits() + " misses : " + cache.getMisses()
+                            + " evictions : " + cache.getEvictions());
+                }
 
                 synchronized (descriptors) {
                     final int total = descriptorsCount;
@@ -716,6 +965,16 @@ public abstract class Paged {
             }
         }
 
+        // Force the pages copied into the mapped region
+        if (sync && mapped) {
+            try {
+                forceRegion();
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, "Exception while forcing mapped region", e);
+                error++;
+            }
+        }
+
         if (error != 0) {
             throw new FilerException(FaultCodes.GEN_CRITICAL_ERROR, "Error performing flush! Failed to flush " + error + " pages!");
         }
@@ -1351,7 +1610,7 @@ public abstract class Paged {
         /**
          * The data for this page. Null if page is not loaded.
          */
-        private byte[] data;
+        private volatile byte[] data;
 
         /**
          * The position (relative) of the Key in the data array
@@ -1373,29 +1632,41 @@ public abstract class Paged {
          * Reads a page into the memory, once. Subsequent calls are ignored.
          * @throws java.io.IOException if an io error occurs
          */
-        public synchronized void read() throws IOException {
-            if (data == null) {
-                RandomAccessFile raf = null;
+        public void read() throws IOException {
+            if (data != null) {
+                return;
+            }
 
-                try {
-                    byte[] data = new byte[fileHeader.pageSize];
+            synchronized (this) {
+                if (data == null) {
+                    RandomAccessFile raf = null;
 
-                    raf = getDescriptor();
-                    raf.seek(this.offset);
-                    raf.read(data);
+                    try {
+                        byte[] data = new byte[fileHeader.pageSize];
+                        ByteBuffer view = mapped ? getRegion(this.offset + data.length) : null;
 
-                    // Read in the header
-                    ByteArrayInputStream bis = new ByteArrayInputStream(data);
+                        if (null != view) {
+                            view.position((int) this.offset);
+                            view.get(data);
+                        } else {
+                            raf = getDescriptor();
+                            raf.seek(this.offset);
+                            raf.read(data);
+                        }
 
-                    this.header.read(new DataInputStream(bis));
+                        // Read in the header
+                        ByteArrayInputStream bis = new ByteArrayInputStream(data);
 
-                    this.keyPos = fileHeader.pageHeaderSize;
-                    this.dataPos = this.keyPos + this.header.keyLen;
+                        this.header.read(new DataInputStream(bis));
 
-                    // Successfully read all the data
-                    this.data = data;
-                } finally {
-                    putDescriptor(raf);
+                        this.keyPos = fileHeader.pageHeaderSize;
+                        this.dataPos = this.keyPos + this.header.keyLen;
+
+                        // Successfully read all the data
+                        this.data = data;
+                    } finally {
+                        putDescriptor(raf);
+                    }
                 }
             }
         }
@@ -1425,6 +1696,15 @@ public abstract class Paged {
          * @throws java.io.IOException if an io error occurs
          */
         public synchronized void flush() throws IOException {
+            ByteBuffer view = mapped ? getRegion(this.offset + this.data.length) : null;
+
+            if (null != view) {
+                // Durability is handled by Paged.flush()
+                view.position((int) this.offset);
+                view.put(this.data);
+                return;
+            }
+
             RandomAccessFile raf = null;
 
             try {
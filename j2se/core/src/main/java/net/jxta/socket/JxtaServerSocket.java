@@ -62,6 +62,8 @@ import net.jxta.document.StructuredDocumentFactory;
 import net.jxta.document.XMLDocument;
 import net.jxta.endpoint.Message;
 import net.jxta.endpoint.MessageElement;
+import net.jxta.impl.util.pipe.reliable.ReadinessListener;
+import net.jxta.impl.util.threads.TaskManager;
 import net.jxta.logging.Logging;
 import net.jxta.peergroup.PeerGroup;
 import net.jxta.pipe.InputPipe;
@@ -79,6 +81,7 @@ import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -169,6 +172,18 @@ public class JxtaServerSocket extends ServerSocket implements PipeMsgListener {
     protected volatile boolean closed = false;
     private CredentialValidator credValidator = null;
     
+    /**
+     * Notified when a connection is established or the socket is closed.
+     */
+    private volatile ReadinessListener readinessListener = null;
+
+    /**
+     * Connections which have been established for {@link #acceptNonBlocking()}
+     * by handshakes run on the executor. Only used once a readiness listener
+     * has been set.
+     */
+    private final BlockingQueue<JxtaSocket> established = new LinkedBlockingQueue<JxtaSocket>();
+    
     private volatile Throwable creatorTrace =
             new Throwable("Instance construction stack trace");
 
@@ -340,6 +355,137 @@ public class JxtaServerSocket extends ServerSocket implements PipeMsgListener {
         }
     }
 
+    /**
+     * Returns a connection which has already been established without
+     * waiting for one. The handshake of each connect request is run on the
+     * executor once a readiness listener has been set, so this method never
+     * blocks on the remote peer.
+     *
+     * @return the new socket or {@code null} if no connection has been
+     *         established.
+     * @throws IOException if the socket is not bound or has been closed.
+     */
+    JxtaSocket acceptNonBlocking() throws IOException {
+        if (!isBound()) {
+            throw new SocketException("Socket is not bound yet");
+        }
+
+        if (isClosed()) {
+            throw new SocketException("Socket is closed");
+        }
+
+        JxtaSocket socket = established.poll();
+
+        if (socket != null) {
+            if (Logging.SHOW_FINE && LOG.isLoggable(Level.FINE)) {
+                LOG.fine("New socket connection " + socket);
+            }
+
+            // Handshakes are held back while the backlog is established.
+            if (!queue.isEmpty()) {
+                scheduleHandshake();
+            }
+        }
+        return socket;
+    }
+
+    /**
+     * Tells whether {@link #acceptNonBlocking()} would return a connection
+     * or fail because the socket is closed.
+     *
+     * @return {@code true} if a connection has been established or the
+     *         socket is closed.
+     */
+    boolean isAcceptable() {
+        return isClosed() || !established.isEmpty();
+    }
+
+    /**
+     * Sets the listener notified when a connection is established or the
+     * socket is closed. Once set, connect requests are handled on the executor
+     * for {@link #acceptNonBlocking()} rather than by {@link #accept()}.
+     *
+     * @param readinessListener the listener.
+     */
+    void setReadinessListener(ReadinessListener readinessListener) {
+        this.readinessListener = readinessListener;
+
+        // Handle any connect requests which arrived before the listener.
+        if (null != queue) {
+            for (int each = queue.size(); each > 0; each--) {
+                scheduleHandshake();
+            }
+        }
+    }
+
+    /**
+     * Runs the handshake for the next queued connect request on the executor
+     * and makes the resulting connection available to
+     * {@link #acceptNonBlocking()}.
+     */
+    private void scheduleHandshake() {
+        TaskManager.getTaskManager().getExecutorService().execute(new Runnable() {
+            public void run() {
+                if (established.size() >= backlog) {
+                    // acceptNonBlocking() will schedule us again.
+                    return;
+                }
+
+                Message msg = queue.poll();
+
+                if ((null == msg) || (QUEUE_END_MESSAGE == msg)) {
+                    return;
+                }
+
+                JxtaSocket socket = processMessage(msg);
+
+                if (null == socket) {
+                    if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
+                        LOG.warning("No connection.");
+                    }
+                    return;
+                }
+
+                established.add(socket);
+
+                if (isClosed()) {
+                    // close() may have missed this socket.
+                    closeEstablished();
+                } else {
+                    fireReadinessChanged();
+                }
+            }
+        });
+    }
+
+    /**
+     * Closes the established connections which have not been accepted.
+     */
+    private void closeEstablished() {
+        JxtaSocket socket;
+
+        while (null != (socket = established.poll())) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {// ignored
+            }
+        }
+    }
+
+    private void fireReadinessChanged() {
+        ReadinessListener notify = readinessListener;
+
+        if (null != notify) {
+            try {
+                notify.readinessChanged();
+            } catch (Throwable all) {
+                if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
+                    LOG.log(Level.WARNING, "Uncaught Throwable calling readiness listener", all);
+                }
+            }
+        }
+    }
+
     /**
      * Binds the <code>JxtaServerSocket</code> to a specific pipe advertisement
      *
@@ -441,6 +587,15 @@ public class JxtaServerSocket extends ServerSocket implements PipeMsgListener {
                 Thread.interrupted();
             }
         }
+        if (null != readinessListener) {
+            // Closing waits for the remote peers, don't hold up the caller.
+            TaskManager.getTaskManager().getExecutorService().execute(new Runnable() {
+                public void run() {
+                    closeEstablished();
+                }
+            });
+        }
+        fireReadinessChanged();
         if (Logging.SHOW_INFO && LOG.isLoggable(Level.INFO)) {
             LOG.info("Closed : " + this);
         }
@@ -557,7 +712,11 @@ public class JxtaServerSocket extends ServerSocket implements PipeMsgListener {
             }
         }
 
-        if (!pushed && Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
+        if (pushed) {
+            if (null != readinessListener) {
+                scheduleHandshake();
+            }
+        } else if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
             LOG.warning("backlog queue full, connect request dropped");
         }
     }
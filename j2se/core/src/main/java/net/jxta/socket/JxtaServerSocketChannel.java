@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2001-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+
+package net.jxta.socket;
+
+import net.jxta.impl.util.pipe.reliable.ReadinessListener;
+import net.jxta.impl.util.threads.TaskManager;
+import net.jxta.logging.Logging;
+import net.jxta.peergroup.PeerGroup;
+import net.jxta.protocol.PipeAdvertisement;
+import net.jxta.util.AbstractSimpleSelectable;
+import net.jxta.util.SimpleSelectable;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A non-blocking, selectable view of a bound {@link JxtaServerSocket}.
+ * <p/>
+ * The handshake for each connect request is run on the executor. The channel
+ * is reported as changed to its registered
+ * {@link net.jxta.util.SimpleSelector}s whenever a connection has been
+ * established and when the server socket is closed. {@link #accept()} then
+ * returns a {@link JxtaSocketChannel} for each established connection without
+ * blocking.
+ * <p/>
+ * Only reliable connections may be accepted through a channel. Connect
+ * requests for unreliable streams are closed.
+ *
+ * @see JxtaSocketChannel
+ */
+public class JxtaServerSocketChannel extends AbstractSimpleSelectable {
+
+    private static final Logger LOG = Logger.getLogger(JxtaServerSocketChannel.class.getName());
+
+    private final JxtaServerSocket serverSocket;
+
+    /**
+     * Creates a channel for a bound server socket. The server socket's
+     * {@code accept()} must not be used at the same time.
+     *
+     * @param serverSocket a bound server socket.
+     */
+    public JxtaServerSocketChannel(JxtaServerSocket serverSocket) {
+        this.serverSocket = serverSocket;
+
+        serverSocket.setReadinessListener(new ReadinessListener() {
+            public void readinessChanged() {
+                notifyChange();
+            }
+        });
+    }
+
+    /**
+     * Binds a server socket to the specified pipe and returns a channel for
+     * it.
+     *
+     * @param group   the group of the pipe.
+     * @param pipeAdv the pipe on which to accept connect requests.
+     * @param backlog the maximum number of queued connect requests.
+     * @return the channel.
+     * @throws IOException if the server socket could not be bound.
+     */
+    public static JxtaServerSocketChannel open(PeerGroup group, PipeAdvertisement pipeAdv, int backlog) throws IOException {
+        return new JxtaServerSocketChannel(new JxtaServerSocket(group, pipeAdv, backlog));
+    }
+
+    /**
+     * Accepts an established connection without blocking.
+     *
+     * @return a channel for the new connection or {@code null} if no
+     *         connection has been established.
+     * @throws IOException if the server socket is closed or an I/O error
+     *                     occurs.
+     */
+    public JxtaSocketChannel accept() throws IOException {
+        while (true) {
+            final JxtaSocket socket = serverSocket.acceptNonBlocking();
+
+            if (null == socket) {
+                return null;
+            }
+
+            if (socket.isReliable) {
+                return new JxtaSocketChannel(socket);
+            }
+
+            if (Logging.SHOW_WARNING && LOG.isLoggable(Level.WARNING)) {
+                LOG.warning("Closing unreliable connection " + socket);
+            }
+
+            // Closing waits for the remote peer, don't hold up the caller.
+            TaskManager.getTaskManager().getExecutorService().execute(new Runnable() {
+                public void run() {
+                    try {
+                        socket.close();
+                    } catch (IOException ignored) {// ignored
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Tells whether {@link #accept()} would return a channel or fail because
+     * the server socket is closed.
+     *
+     * @return {@code true} if an accept would make progress.
+     */
+    public boolean isAcceptable() {
+        return serverSocket.isAcceptable();
+    }
+
+    /**
+     * Tells whether the channel is open.
+     *
+     * @return {@code true} if the server socket has not been closed.
+     */
+    public boolean isOpen() {
+        return !serverSocket.isClosed();
+    }
+
+    /**
+     * Closes the channel and its server socket.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    /**
+     * Returns the server socket this channel accepts connections from.
+     *
+     * @return the server socket.
+     */
+    public JxtaServerSocket socket() {
+        return serverSocket;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void itemChanged(SimpleSelectable changedObject) {// Channels are not themselves registered with anything.
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "JxtaServerSocketChannel[" + serverSocket + "]";
+    }
+}
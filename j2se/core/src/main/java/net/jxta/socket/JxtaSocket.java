@@ -71,7 +71,7 @@ import net.jxta.endpoint.StringMessageElement;
 import net.jxta.endpoint.TextDocumentMessageElement;
 import net.jxta.id.ID;
 import net.jxta.id.IDFactory;
-import net.jxta.impl.util.pipe.reliable.FixedFlowControl;
+import net.jxta.impl.util.pipe.reliable.FlowControl;
 import net.jxta.impl.util.pipe.reliable.Outgoing;
 import net.jxta.impl.util.pipe.reliable.OutgoingMsgrAdaptor;
 import net.jxta.impl.util.pipe.reliable.ReliableInputStream;
@@ -205,6 +205,11 @@ public class JxtaSocket extends Socket implements PipeMsgListener, OutputPipeLis
      */
     protected int windowSize = 20;
 
+    /**
+     * Name of the reliable library flow control module.
+     */
+    protected String congestionControl = FlowControl.getDefaultName();
+
     /**
      * Lock for output pipe resolution.
      */
@@ -891,7 +896,7 @@ public class JxtaSocket extends Socket implements PipeMsgListener, OutputPipeLis
         if (isReliable) {
             outgoing = makeOutgoing(remoteEphemeralPipeMsgr, retryTimeout);
             ris = new ReliableInputStream(outgoing, soTimeout);
-            ros = new ReliableOutputStream(outgoing, new FixedFlowControl(windowSize));
+            ros = new ReliableOutputStream(outgoing, FlowControl.newFlowControl(congestionControl, windowSize));
             try {
                 ros.setSendBufferSize(outputBufferSize);
             } catch (IOException ignored) {// it's only a preference...
@@ -1503,6 +1508,34 @@ public class JxtaSocket extends Socket implements PipeMsgListener, OutputPipeLis
         this.windowSize = windowSize;
     }
 
+    /**
+     * When in reliable mode, gets the name of the Reliable library flow
+     * control module.
+     *
+     * @return The congestion control module name
+     */
+    public String getCongestionControl() {
+        return congestionControl;
+    }
+
+    /**
+     * When in reliable mode, sets the Reliable library flow control module.
+     *
+     * @param congestionControl The congestion control module name, one of
+     *                          {@code "fixed"}, {@code "adaptive"} or
+     *                          {@code "cubic"}.
+     * @throws SocketException if the name is not known or the socket is already bound
+     */
+    public void setCongestionControl(String congestionControl) throws SocketException {
+        if (isBound()) {
+            throw new SocketException("Socket bound. Can not change the congestion control");
+        }
+        if (!FlowControl.isKnown(congestionControl)) {
+            throw new SocketException("Unknown congestion control : " + congestionControl);
+        }
+        this.congestionControl = congestionControl;
+    }
+
     /**
      * Returns the closed state of the JxtaSocket.
      *
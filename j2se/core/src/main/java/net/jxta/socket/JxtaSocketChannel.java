@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2001-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+
+package net.jxta.socket;
+
+import net.jxta.impl.util.pipe.reliable.ReadinessListener;
+import net.jxta.impl.util.pipe.reliable.ReliableInputStream;
+import net.jxta.impl.util.pipe.reliable.ReliableOutputStream;
+import net.jxta.peer.PeerID;
+import net.jxta.peergroup.PeerGroup;
+import net.jxta.protocol.PipeAdvertisement;
+import net.jxta.util.AbstractSimpleSelectable;
+import net.jxta.util.SimpleSelectable;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+
+/**
+ * A non-blocking, selectable view of a connected reliable {@link JxtaSocket}.
+ * <p/>
+ * Rather than dedicating a reader thread to each connection, register the
+ * channels with a {@link net.jxta.util.SimpleSelector} and service the ones
+ * returned by {@link net.jxta.util.SimpleSelector#select()}. A channel is
+ * reported as changed when data arrives, when acknowledgements open the
+ * send window and when the connection is closed. {@link #isReadable()} and
+ * {@link #isWritable()} tell which operations will make progress.
+ * <p/>
+ * The channel reads and writes the socket's reliable streams directly. The
+ * socket's own input and output streams must not be used at the same time.
+ *
+ * @see JxtaServerSocketChannel
+ */
+public class JxtaSocketChannel extends AbstractSimpleSelectable {
+
+    /**
+     * The largest temporary array used to transfer data to or from a direct
+     * buffer.
+     */
+    private final static int TRANSFER_CHUNK_SIZE = 64 * 1024;
+
+    private final JxtaSocket socket;
+    private final ReliableInputStream input;
+    private final ReliableOutputStream output;
+
+    /**
+     * Creates a channel for a connected socket.
+     *
+     * @param socket a connected reliable socket.
+     * @throws IOException if the socket is not connected or is not reliable.
+     */
+    public JxtaSocketChannel(JxtaSocket socket) throws IOException {
+        if (socket.isClosed() || !socket.isConnected()) {
+            throw new SocketException("Socket not connected.");
+        }
+        if (!socket.isReliable || (null == socket.ris) || (null == socket.ros)) {
+            throw new SocketException("Channels require a reliable socket.");
+        }
+
+        this.socket = socket;
+        this.input = socket.ris;
+        this.output = socket.ros;
+
+        ReadinessListener listener = new ReadinessListener() {
+            public void readinessChanged() {
+                notifyChange();
+            }
+        };
+
+        input.setReadinessListener(listener);
+        output.setReadinessListener(listener);
+    }
+
+    /**
+     * Connects a reliable socket to the specified pipe and returns a channel
+     * for it. This method blocks until the connection is established.
+     *
+     * @param group   the group of the pipe.
+     * @param peerid  the peer to connect to or {@code null} for any peer
+     *                listening on the pipe.
+     * @param pipeAdv the pipe on which the remote {@link JxtaServerSocket} is
+     *                listening.
+     * @param timeout the connect timeout in milliseconds.
+     * @return the channel.
+     * @throws IOException if the connection could not be established.
+     */
+    public static JxtaSocketChannel open(PeerGroup group, PeerID peerid, PipeAdvertisement pipeAdv, int timeout) throws IOException {
+        return new JxtaSocketChannel(new JxtaSocket(group, peerid, pipeAdv, timeout, true));
+    }
+
+    /**
+     * Reads the data which has already been received into the buffer
+     * without blocking.
+     *
+     * @param dst the buffer into which data is read.
+     * @return the number of bytes read, possibly {@code 0}, or {@code -1} if
+     *         the remote peer has closed the connection.
+     * @throws IOException if the channel is closed or an I/O error occurs.
+     */
+    public int read(ByteBuffer dst) throws IOException {
+        checkOpen();
+
+        int total = 0;
+
+        while (dst.hasRemaining()) {
+            int count;
+
+            if (dst.hasArray()) {
+                count = input.readNonBlocking(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+                if (count > 0) {
+                    dst.position(dst.position() + count);
+                }
+            } else {
+                byte[] buf = new byte[Math.min(dst.remaining(), TRANSFER_CHUNK_SIZE)];
+
+                count = input.readNonBlocking(buf, 0, buf.length);
+                if (count > 0) {
+                    dst.put(buf, 0, count);
+                }
+            }
+
+            if (count < 0) {
+                return (total > 0) ? total : -1;
+            }
+            if (0 == count) {
+                break;
+            }
+            total += count;
+        }
+
+        return total;
+    }
+
+    /**
+     * Writes as much of the buffer as the send window currently allows
+     * without blocking. Accepted data is sent immediately.
+     *
+     * @param src the buffer from which data is written.
+     * @return the number of bytes written, possibly {@code 0}.
+     * @throws IOException if the channel is closed or an I/O error occurs.
+     */
+    public int write(ByteBuffer src) throws IOException {
+        checkOpen();
+
+        if (!src.hasRemaining()) {
+            return 0;
+        }
+
+        int count;
+
+        if (src.hasArray()) {
+            count = output.writeNonBlocking(src.array(), src.arrayOffset() + src.position(), src.remaining());
+        } else {
+            byte[] buf = new byte[src.remaining()];
+
+            src.duplicate().get(buf);
+            count = output.writeNonBlocking(buf, 0, buf.length);
+        }
+        src.position(src.position() + count);
+
+        return count;
+    }
+
+    /**
+     * Tells whether {@link #read(ByteBuffer)} would return data or the end of
+     * stream.
+     *
+     * @return {@code true} if a read would make progress.
+     */
+    public boolean isReadable() {
+        return input.isReadable();
+    }
+
+    /**
+     * Tells whether {@link #write(ByteBuffer)} would accept data or fail
+     * because the connection has been closed.
+     *
+     * @return {@code true} if a write would make progress.
+     */
+    public boolean isWritable() {
+        return output.isWritable();
+    }
+
+    /**
+     * Tells whether the channel is open.
+     *
+     * @return {@code true} if the channel has not been closed.
+     */
+    public boolean isOpen() {
+        return !socket.isClosed();
+    }
+
+    /**
+     * Closes the channel and its socket. As with {@link JxtaSocket#close()}
+     * this waits for data which has already been written to be acknowledged.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    public void close() throws IOException {
+        try {
+            socket.close();
+        } finally {
+            notifyChange();
+        }
+    }
+
+    /**
+     * Returns the socket this channel reads and writes.
+     *
+     * @return the socket.
+     */
+    public JxtaSocket socket() {
+        return socket;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void itemChanged(SimpleSelectable changedObject) {// Channels are not themselves registered with anything.
+    }
+
+    /**
+     * @throws ClosedChannelException if the channel has been closed.
+     */
+    private void checkOpen() throws ClosedChannelException {
+        if (socket.isClosed()) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "JxtaSocketChannel[" + socket + "]";
+    }
+}
@@ -72,7 +72,7 @@ import net.jxta.endpoint.TextDocumentMessageElement;
 import net.jxta.id.ID;
 import net.jxta.impl.endpoint.tcp.TcpMessenger;
 import net.jxta.impl.util.pipe.reliable.Defs;
-import net.jxta.impl.util.pipe.reliable.FixedFlowControl;
+import net.jxta.impl.util.pipe.reliable.FlowControl;
 import net.jxta.impl.util.pipe.reliable.OutgoingMsgrAdaptor;
 import net.jxta.impl.util.pipe.reliable.ReliableInputStream;
 import net.jxta.impl.util.pipe.reliable.ReliableOutputStream;
@@ -134,6 +134,7 @@ public class JxtaBiDiPipe implements PipeMsgListener, OutputPipeListener, Reliab
     protected int retryTimeout = 60 * 1000;
     protected int maxRetryTimeout = MAXRETRYTIMEOUT;
     protected int windowSize = 50;
+    protected String congestionControl = FlowControl.getDefaultName();
     private BlockingQueue<PipeMsgEvent> queue = null;
     protected PeerGroup group;
     protected PipeAdvertisement pipeAdv;
@@ -433,7 +434,7 @@ public class JxtaBiDiPipe implements PipeMsgListener, OutputPipeListener, Reliab
                 outgoing = new OutgoingMsgrAdaptor(msgr, retryTimeout);
             }
             if (ros == null) {
-                ros = new ReliableOutputStream(outgoing, new FixedFlowControl(windowSize));
+                ros = new ReliableOutputStream(outgoing, FlowControl.newFlowControl(congestionControl, windowSize));
             }
             if (ris == null) {
                 ris = new ReliableInputStream(outgoing, retryTimeout, this);
@@ -982,6 +983,34 @@ public class JxtaBiDiPipe implements PipeMsgListener, OutputPipeListener, Reliab
         this.windowSize = windowSize;
     }
 
+    /**
+     * When in reliable mode, gets the name of the Reliable library flow
+     * control module.
+     *
+     * @return The congestion control module name
+     */
+    public synchronized String getCongestionControl() {
+        return congestionControl;
+    }
+
+    /**
+     * When in reliable mode, sets the Reliable library flow control module.
+     *
+     * @param congestionControl The congestion control module name, one of
+     *                          {@code "fixed"}, {@code "adaptive"} or
+     *                          {@code "cubic"}.
+     * @throws IOException if the name is not known or the pipe is already bound
+     */
+    public synchronized void setCongestionControl(String congestionControl) throws IOException {
+        if (isBound()) {
+            throw new IOException("Socket bound. Can not change the congestion control");
+        }
+        if (!FlowControl.isKnown(congestionControl)) {
+            throw new IOException("Unknown congestion control : " + congestionControl);
+        }
+        this.congestionControl = congestionControl;
+    }
+
     /**
      * This method is invoked by the Reliability library for each incoming data message
      *
@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2002-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+
+package net.jxta.endpoint;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import junit.framework.*;
+
+import net.jxta.document.MimeMediaType;
+
+
+public class WireFormatMessageFactoryTest extends TestCase {
+    
+    private static final MimeMediaType[] DEFLATE_ONLY = {WireFormatMessageFactory.DEFLATE_ENCODING};
+    
+    public WireFormatMessageFactoryTest(java.lang.String testName) {
+        super(testName);
+    }
+    
+    private static Message newMessage(int size) {
+        Message msg = new Message();
+        StringBuilder text = new StringBuilder(size);
+        
+        while (text.length() < size) {
+            text.append("the quick brown fox jumps over the lazy dog ");
+        }
+        
+        msg.addMessageElement("test", new StringMessageElement("text", text.toString(), null));
+        msg.addMessageElement("test", new StringMessageElement("small", "hello", null));
+        
+        return msg;
+    }
+    
+    private static byte[] toBytes(WireFormatMessage serialized) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        
+        serialized.sendToStream(out);
+        
+        return out.toByteArray();
+    }
+    
+    private static void assertSameContent(Message expected, Message actual) {
+        assertEquals(expected.getMessageElement("test", "text").toString(), actual.getMessageElement("test", "text").toString());
+        assertEquals(expected.getMessageElement("test", "small").toString(), actual.getMessageElement("test", "small").toString());
+    }
+    
+    public void testSupportedEncodings() {
+        MimeMediaType[] supported = WireFormatMessageFactory.getSupportedContentEncodings();
+        
+        assertEquals(1, supported.length);
+        assertEquals(WireFormatMessageFactory.DEFLATE_ENCODING, supported[0]);
+        
+        supported[0] = null;
+        assertNotNull(WireFormatMessageFactory.getSupportedContentEncodings()[0]);
+    }
+    
+    public void testDeflateBufferRoundTrip() throws IOException {
+        Message msg = newMessage(16 * 1024);
+        WireFormatMessage plain = WireFormatMessageFactory.toWire(msg, WireFormatMessageFactory.DEFAULT_WIRE_MIME, null);
+        WireFormatMessage encoded = WireFormatMessageFactory.toWire(msg, WireFormatMessageFactory.DEFAULT_WIRE_MIME, DEFLATE_ONLY);
+        
+        assertNull(plain.getContentEncoding());
+        assertEquals(WireFormatMessageFactory.DEFLATE_ENCODING, encoded.getContentEncoding());
+        assertTrue(encoded.getByteLength() < plain.getByteLength());
+        
+        byte[] bytes = toBytes(encoded);
+        
+        assertEquals(encoded.getByteLength(), bytes.length);
+        
+        Message decoded = WireFormatMessageFactory.fromBuffer(ByteBuffer.wrap(bytes), WireFormatMessageFactory.DEFAULT_WIRE_MIME, encoded.getContentEncoding());
+        
+        assertSameContent(msg, decoded);
+    }
+    
+    public void testDeflateStreamRoundTrip() throws IOException {
+        Message msg = newMessage(16 * 1024);
+        WireFormatMessage encoded = WireFormatMessageFactory.toWire(msg, WireFormatMessageFactory.DEFAULT_WIRE_MIME, DEFLATE_ONLY);
+        
+        Message decoded = WireFormatMessageFactory.fromWire(new ByteArrayInputStream(toBytes(encoded)), WireFormatMessageFactory.DEFAULT_WIRE_MIME, encoded.getContentEncoding());
+        
+        assertSameContent(msg, decoded);
+    }
+    
+    public void testDeflateStreamLeavesFollowingBytes() throws IOException {
+        Message msg = newMessage(16 * 1024);
+        WireFormatMessage encoded = WireFormatMessageFactory.toWire(msg, WireFormatMessageFactory.DEFAULT_WIRE_MIME, DEFLATE_ONLY);
+        byte[] bytes = toBytes(encoded);
+        byte[] trailer = "next".getBytes("UTF-8");
+        byte[] stream = new byte[bytes.length + trailer.length];
+        
+        System.arraycopy(bytes, 0, stream, 0, bytes.length);
+        System.arraycopy(trailer, 0, stream, bytes.length, trailer.length);
+        
+        // Both a rewindable and a plain stream must stop at the end of the message.
+        InputStream[] sources = {
+            new ByteArrayInputStream(stream),
+            new FilterInputStream(new ByteArrayInputStream(stream)) {
+                @Override
+                public boolean markSupported() {
+                    return false;
+                }
+            }
+        };
+        
+        for (InputStream source : sources) {
+            Message decoded = WireFormatMessageFactory.fromWire(source, WireFormatMessageFactory.DEFAULT_WIRE_MIME, encoded.getContentEncoding());
+            
+            assertSameContent(msg, decoded);
+            
+            byte[] rest = new byte[trailer.length];
+            
+            assertEquals(trailer.length, source.read(rest));
+            assertEquals("next", new String(rest, "UTF-8"));
+            assertEquals(-1, source.read());
+        }
+    }
+    
+    public void testSmallMessageNotEncoded() {
+        Message msg = new Message();
+        
+        msg.addMessageElement("test", new StringMessageElement("small", "hello", null));
+        
+        WireFormatMessage serialized = WireFormatMessageFactory.toWire(msg, WireFormatMessageFactory.DEFAULT_WIRE_MIME, DEFLATE_ONLY);
+        
+        assertNull(serialized.getContentEncoding());
+    }
+    
+    public void testUnacceptedEncodingNotApplied() {
+        Message msg = newMessage(16 * 1024);
+        MimeMediaType[] other = {new MimeMediaType("application/x-unknown")};
+        
+        WireFormatMessage serialized = WireFormatMessageFactory.toWire(msg, WireFormatMessageFactory.DEFAULT_WIRE_MIME, other);
+        
+        assertNull(serialized.getContentEncoding());
+    }
+    
+    public void testCorruptEncodingRejected() {
+        byte[] garbage = new byte[256];
+        
+        for (int each = 0; each < garbage.length; each++) {
+            garbage[each] = (byte) (each * 31);
+        }
+        
+        try {
+            WireFormatMessageFactory.fromBuffer(ByteBuffer.wrap(garbage), WireFormatMessageFactory.DEFAULT_WIRE_MIME, WireFormatMessageFactory.DEFLATE_ENCODING);
+            fail("Corrupt encoded message should have been rejected");
+        } catch (IOException expected) {
+            ;
+        }
+    }
+    
+    public static Test suite() {
+        TestSuite suite = new TestSuite(WireFormatMessageFactoryTest.class);
+        
+        return suite;
+    }
+    
+    public static void main(java.lang.String[] args) {
+        junit.textui.TestRunner.run(suite());
+        
+        System.out.flush();
+        System.err.flush();
+    }
+}
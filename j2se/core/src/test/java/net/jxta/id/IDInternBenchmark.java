@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2002-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+
+package net.jxta.id;
+
+
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import net.jxta.peergroup.PeerGroupID;
+
+
+/**
+ *  Microbenchmark of ID interning throughput with 1, 4 and 16 threads,
+ *  comparing {@link IDInternTable} against the previous synchronized
+ *  {@code WeakHashMap} implementation.
+ *
+ *  <p/>Each thread repeatedly interns IDs drawn from a shared working set, so
+ *  most operations are hits on existing entries, as they are when IDs are
+ *  parsed from advertisements and messages. Each configuration is run for a
+ *  number of warmup rounds before the measured rounds.
+ *
+ *  <p/>Run with : {@code java net.jxta.id.IDInternBenchmark [opsPerThread]}
+ */
+public final class IDInternBenchmark {
+    
+    private static final int[] THREADS = {1, 4, 16};
+    private static final int WORKING_SET = 10000;
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int MEASURED_ROUNDS = 5;
+    
+    /**
+     *  The operation being measured.
+     */
+    interface Interner {
+        ID intern(ID id);
+    }
+    
+    /**
+     *  The previous implementation of {@code ID.intern()}.
+     */
+    static final class SynchronizedWeakHashMapInterner implements Interner {
+        
+        private final Map<ID, WeakReference<ID>> interned = new WeakHashMap<ID, WeakReference<ID>>(1000);
+        
+        public ID intern(ID id) {
+            synchronized (this) {
+                Reference<ID> common = interned.get(id);
+                
+                ID result = null;
+                
+                if (null != common) {
+                    result = common.get();
+                }
+                
+                if (null == result) {
+                    interned.put(id, new WeakReference<ID>(id));
+                    result = id;
+                }
+                
+                return result;
+            }
+        }
+    }
+    
+    /**
+     *  The concurrent intern table.
+     */
+    static final class InternTableInterner implements Interner {
+        
+        private final IDInternTable table = new IDInternTable(1000, 16);
+        
+        public ID intern(ID id) {
+            return table.intern(id);
+        }
+    }
+    
+    private IDInternBenchmark() {}
+    
+    public static void main(String[] args) throws Exception {
+        int opsPerThread = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+        
+        ID[] ids = new ID[WORKING_SET];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = IDFactory.newPeerID(PeerGroupID.defaultNetPeerGroupID);
+        }
+        
+        System.out.println("threads\timplementation\tops/sec");
+        for (int threads : THREADS) {
+            report(threads, "WeakHashMap", measure(new SynchronizedWeakHashMapInterner(), ids, threads, opsPerThread));
+            report(threads, "IDInternTable", measure(new InternTableInterner(), ids, threads, opsPerThread));
+        }
+    }
+    
+    private static void report(int threads, String name, double opsPerSecond) {
+        System.out.println(threads + "\t" + name + "\t" + Math.round(opsPerSecond));
+    }
+    
+    /**
+     *  Returns the mean throughput of the measured rounds in operations per
+     *  second.
+     */
+    static double measure(Interner interner, ID[] ids, int threads, int opsPerThread) throws InterruptedException {
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            run(interner, ids, threads, opsPerThread);
+        }
+        
+        long totalNanos = 0;
+        for (int round = 0; round < MEASURED_ROUNDS; round++) {
+            totalNanos += run(interner, ids, threads, opsPerThread);
+        }
+        
+        return ((double) threads * opsPerThread * MEASURED_ROUNDS) / (totalNanos / 1.0E9);
+    }
+    
+    /**
+     *  Runs one round and returns its elapsed time in nanoseconds.
+     */
+    private static long run(final Interner interner, final ID[] ids, int threads, final int opsPerThread) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        
+        for (int t = 0; t < threads; t++) {
+            final int offset = (t * 7919) % ids.length;
+            
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                        int index = offset;
+                        for (int op = 0; op < opsPerThread; op++) {
+                            if (null == interner.intern(ids[index])) {
+                                throw new IllegalStateException("null result");
+                            }
+                            index = (index + 1) % ids.length;
+                        }
+                    } catch (InterruptedException woken) {
+                        Thread.interrupted();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "IDInternBenchmark-" + t).start();
+        }
+        
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        return System.nanoTime() - begin;
+    }
+}
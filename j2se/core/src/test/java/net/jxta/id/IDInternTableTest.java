@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2002-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+
+package net.jxta.id;
+
+
+import java.lang.ref.WeakReference;
+import java.net.URI;
+
+import junit.framework.TestCase;
+
+import net.jxta.peergroup.PeerGroupID;
+
+
+public final class IDInternTableTest extends TestCase {
+    
+    public void testIntern_returnsCanonicalInstance() throws Exception {
+        IDInternTable table = new IDInternTable(16, 1);
+        ID first = IDFactory.newPeerID(PeerGroupID.defaultNetPeerGroupID);
+        
+        assertSame(first, table.intern(first));
+        assertSame(first, table.intern(first));
+        assertEquals(1, table.size());
+        
+        ID other = IDFactory.newPeerID(PeerGroupID.defaultNetPeerGroupID);
+        
+        assertSame(other, table.intern(other));
+        assertEquals(2, table.size());
+    }
+    
+    public void testFromURI_returnsInternedInstance() throws Exception {
+        ID original = IDFactory.newPipeID(PeerGroupID.defaultNetPeerGroupID);
+        URI asURI = original.toURI();
+        
+        assertSame(original, IDFactory.fromURI(asURI));
+    }
+    
+    public void testIntern_collectedIdsAreRemoved() throws Exception {
+        IDInternTable table = new IDInternTable(16, 1);
+        ID id = IDFactory.newPeerID(PeerGroupID.defaultNetPeerGroupID);
+        WeakReference<ID> ref = new WeakReference<ID>(id);
+        
+        table.intern(id);
+        assertEquals(1, table.size());
+        
+        id = null;
+        
+        for (int attempt = 0; (attempt < 50) && ((null != ref.get()) || (0 != table.size())); attempt++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        
+        assertNull(ref.get());
+        assertEquals(0, table.size());
+    }
+}
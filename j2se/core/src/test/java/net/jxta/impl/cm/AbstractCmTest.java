@@ -63,9 +63,12 @@ import java.util.Collection;
 import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
+import net.jxta.document.Advertisement;
 import net.jxta.document.AdvertisementFactory;
 import net.jxta.document.Element;
 import net.jxta.document.MimeMediaType;
@@ -332,6 +335,34 @@ public abstract class AbstractCmTest extends FileSystemTest {
     	return (String)((Element<?>)children.nextElement()).getValue();
 	}
     
+    public void testSaveAll() throws IOException {
+    	Map<String, Advertisement> advs = new LinkedHashMap<String, Advertisement>();
+    	for(int i=1; i <= 5; i++) {
+    		advs.put("b" + i, createPeerAdvert(groupId, "Peer" + i));
+    	}
+    	cm.saveAll("a", advs, 100000, 200000);
+    	
+    	assertEquals(5, cm.getRecords("a", NO_THRESHOLD, null).size());
+    	assertEquals(100000L, cm.getLifetime("a", "b3"));
+    	List<InputStream> results = cm.search("a", "Name", "Peer3", 5, null);
+    	assertEquals(1, results.size());
+    	assertEquals("Peer3", getNameFromResult(results.get(0)));
+    }
+    
+    public void testSaveAll_overwritesExisting() throws IOException {
+    	cm.save("a", "b", createPeerAdvert(groupId, "OldName"), 100000, 100000);
+    	
+    	Map<String, Advertisement> advs = new LinkedHashMap<String, Advertisement>();
+    	advs.put("b", createPeerAdvert(groupId, "NewName"));
+    	advs.put("c", createPeerAdvert(groupId, "Other"));
+    	cm.saveAll("a", advs, 100000, 100000);
+    	
+    	assertEquals(2, cm.getRecords("a", NO_THRESHOLD, null).size());
+    	assertEquals("NewName", getNameFromResult(cm.getInputStream("a", "b")));
+    	assertEquals(1, cm.search("a", "Name", "NewName", 5, null).size());
+    	assertEquals(1, cm.search("a", "Name", "Other", 5, null).size());
+    }
+    
     public void testSearch_endsWith() throws IOException {
     	createTestData();
     	
@@ -415,6 +446,84 @@ public abstract class AbstractCmTest extends FileSystemTest {
     	}
     }
     
+    public void testSearchAdvertisements_servedFromParsedCache() throws IOException {
+    	createTestData();
+    	
+    	List<Advertisement> results = cm.searchAdvertisements("a", "Name", "Peer*", 10, null);
+    	assertEquals(4, results.size());
+    	assertEquals(0, cm.getParsedAdvertisementCache().getHits());
+    	assertEquals(4, cm.getParsedAdvertisementCache().size());
+    	
+    	results = cm.searchAdvertisements("a", "Name", "Peer*", 10, null);
+    	assertEquals(4, results.size());
+    	assertEquals(4, cm.getParsedAdvertisementCache().getHits());
+    	checkContains(extractAdvNames(results), "Peer1", "Peer2", "Peer3", "Peer4");
+    }
+    
+    public void testSearchAdvertisements_returnsCopies() throws IOException {
+    	cm.save("a", "b", adv, 100000, 200000);
+    	
+    	PeerAdvertisement first = (PeerAdvertisement) cm.searchAdvertisements("a", "Name", "MyPeer100", 5, null).get(0);
+    	first.setName("Modified");
+    	
+    	PeerAdvertisement second = (PeerAdvertisement) cm.searchAdvertisements("a", "Name", "MyPeer100", 5, null).get(0);
+    	assertEquals("MyPeer100", second.getName());
+    }
+    
+    public void testSearchAdvertisements_invalidatedBySave() throws IOException {
+    	cm.save("a", "b", createPeerAdvert(groupId, "Peer1"), 100000, 200000);
+    	assertEquals(1, cm.getRecordAdvertisements("a", 10, null).size());
+    	
+    	cm.save("a", "b", createPeerAdvert(groupId, "Peer2"), 100000, 200000);
+    	List<Advertisement> results = cm.getRecordAdvertisements("a", 10, null);
+    	assertEquals(1, results.size());
+    	assertEquals("Peer2", ((PeerAdvertisement) results.get(0)).getName());
+    	
+    	cm.remove("a", "b");
+    	assertEquals(0, cm.getRecordAdvertisements("a", 10, null).size());
+    }
+    
+    public void testGetRecordAdvertisements_expiredEntriesNotReturned() throws IOException {
+    	createTestData();
+    	assertEquals(6, cm.getRecordAdvertisements("a", 10, null).size());
+    	
+    	fakeTimer.currentTime = 150000;
+    	List<Long> expirations = new ArrayList<Long>();
+    	List<Advertisement> results = cm.getRecordAdvertisements("a", 10, expirations);
+    	assertEquals(2, results.size());
+    	assertEquals(2, expirations.size());
+    	checkContains(extractAdvNames(results), "Peer3", "Peer4");
+    }
+    
+    public void testGetRecordAdvertisements_tracksSavesAndRemovesAcrossDirectories() throws IOException {
+    	cm.save("a", "x", createPeerAdvert(groupId, "Peer1"), 100000, 200000);
+    	cm.save("a", "y", createPeerAdvert(groupId, "Peer2"), 100000, 200000);
+    	assertEquals(2, cm.getRecordAdvertisements("a", 10, null).size());
+    	
+    	cm.remove("a", "x");
+    	cm.save("b", "z", createPeerAdvert(groupId, "Peer3"), 100000, 200000);
+    	cm.save("a", "w", createPeerAdvert(groupId, "Peer4"), 100000, 200000);
+    	
+    	List<Advertisement> inA = cm.getRecordAdvertisements("a", 10, null);
+    	assertEquals(2, inA.size());
+    	checkContains(extractAdvNames(inA), "Peer2", "Peer4");
+    	
+    	List<Advertisement> inB = cm.getRecordAdvertisements("b", 10, null);
+    	assertEquals(1, inB.size());
+    	checkContains(extractAdvNames(inB), "Peer3");
+    	
+    	List<Advertisement> found = cm.searchAdvertisements("a", "Name", "Peer*", 10, null);
+    	checkContains(extractAdvNames(found), "Peer2", "Peer4");
+    }
+    
+    private List<String> extractAdvNames(List<Advertisement> advs) {
+    	List<String> names = new ArrayList<String>();
+    	for(Advertisement anAdv : advs) {
+    		names.add(((PeerAdvertisement) anAdv).getName());
+    	}
+    	return names;
+    }
+    
     public void testGetDeltas_generatedBySave() throws Exception {
     	cm.setTrackDeltas(true);
     	assertNotNull(cm.getDeltas("a"));
@@ -0,0 +1,122 @@
+package net.jxta.impl.cm;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.jxta.document.Advertisement;
+import net.jxta.document.AdvertisementFactory;
+import net.jxta.id.IDFactory;
+import net.jxta.impl.cm.sql.DerbyAdvertisementCache;
+import net.jxta.impl.cm.sql.H2AdvertisementCache;
+import net.jxta.impl.util.threads.TaskManager;
+import net.jxta.peergroup.PeerGroupID;
+import net.jxta.protocol.PeerAdvertisement;
+import net.jxta.test.util.FileSystemTest;
+
+/**
+ * Compares the save and search throughput of the H2, Derby and XIndice advertisement
+ * caches, saving advertisements one at a time and through
+ * {@link AdvertisementCache#saveAll(String, Map, long, long)}.
+ * <p>
+ * Usage: <code>AdvertisementCacheBenchmark [advertisements] [batchSize] [searches]</code>
+ */
+public class AdvertisementCacheBenchmark {
+
+    private static final String DN = "Peers";
+    private static final long LIFETIME = 60 * 60 * 1000L;
+
+    private interface CacheFactory {
+        AdvertisementCache create(File storeRoot, String areaName) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int advertisements = (args.length > 0) ? Integer.parseInt(args[0]) : 5000;
+        int batchSize = (args.length > 1) ? Integer.parseInt(args[1]) : 100;
+        int searches = (args.length > 2) ? Integer.parseInt(args[2]) : 5000;
+
+        Map<String, CacheFactory> factories = new LinkedHashMap<String, CacheFactory>();
+        factories.put("H2", new CacheFactory() {
+            public AdvertisementCache create(File storeRoot, String areaName) throws Exception {
+                return new H2AdvertisementCache(storeRoot.toURI(), areaName);
+            }
+        });
+        factories.put("Derby", new CacheFactory() {
+            public AdvertisementCache create(File storeRoot, String areaName) throws Exception {
+                return new DerbyAdvertisementCache(storeRoot.toURI(), areaName);
+            }
+        });
+        factories.put("XIndice", new CacheFactory() {
+            public AdvertisementCache create(File storeRoot, String areaName) throws Exception {
+                return new XIndiceAdvertisementCache(storeRoot.toURI(), areaName);
+            }
+        });
+
+        PeerGroupID groupId = IDFactory.newPeerGroupID();
+        Map<String, Advertisement> advs = new LinkedHashMap<String, Advertisement>();
+        for (int i = 0; i < advertisements; i++) {
+            PeerAdvertisement adv = (PeerAdvertisement) AdvertisementFactory.newAdvertisement(PeerAdvertisement.getAdvertisementType());
+            adv.setPeerGroupID(groupId);
+            adv.setPeerID(IDFactory.newPeerID(groupId));
+            adv.setName("Peer" + i);
+            advs.put(adv.getPeerID().getUniqueValue().toString(), adv);
+        }
+
+        System.out.println(advertisements + " advertisements, saveAll batches of " + batchSize + ", " + searches + " searches");
+
+        for (Map.Entry<String, CacheFactory> factory : factories.entrySet()) {
+            File storeRoot = FileSystemTest.createTempDirectory("AdvertisementCacheBenchmark");
+            try {
+                run(factory.getKey(), factory.getValue(), storeRoot, advs, batchSize, searches);
+            } finally {
+                FileSystemTest.deleteDir(storeRoot);
+            }
+        }
+
+        // the XIndice cache starts the shared scheduled executor
+        TaskManager.getTaskManager().shutdown();
+    }
+
+    private static void run(String name, CacheFactory factory, File storeRoot, Map<String, Advertisement> advs, int batchSize, int searches) throws Exception {
+        AdvertisementCache single = factory.create(storeRoot, "single");
+        try {
+            long start = System.nanoTime();
+            for (Map.Entry<String, Advertisement> adv : advs.entrySet()) {
+                single.save(DN, adv.getKey(), adv.getValue(), LIFETIME, LIFETIME);
+            }
+            report(name, "save", advs.size(), System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < searches; i++) {
+                single.search(DN, "Name", "Peer" + (i % advs.size()), 1, null);
+            }
+            report(name, "search", searches, System.nanoTime() - start);
+        } finally {
+            single.stop();
+        }
+
+        AdvertisementCache batched = factory.create(storeRoot, "batched");
+        try {
+            long start = System.nanoTime();
+            Map<String, Advertisement> batch = new LinkedHashMap<String, Advertisement>();
+            for (Map.Entry<String, Advertisement> adv : advs.entrySet()) {
+                batch.put(adv.getKey(), adv.getValue());
+                if (batch.size() == batchSize) {
+                    batched.saveAll(DN, batch, LIFETIME, LIFETIME);
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                batched.saveAll(DN, batch, LIFETIME, LIFETIME);
+            }
+            report(name, "saveAll", advs.size(), System.nanoTime() - start);
+        } finally {
+            batched.stop();
+        }
+    }
+
+    private static void report(String name, String operation, int count, long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.println(String.format("%-8s %-8s %8d ops in %8.3f s  %10.1f ops/s", name, operation, count, seconds, count / seconds));
+    }
+}
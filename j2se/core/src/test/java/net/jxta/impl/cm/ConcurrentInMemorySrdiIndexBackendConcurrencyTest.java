@@ -0,0 +1,12 @@
+package net.jxta.impl.cm;
+
+import net.jxta.peergroup.PeerGroup;
+
+public class ConcurrentInMemorySrdiIndexBackendConcurrencyTest extends AbstractSrdiIndexBackendConcurrencyTest {
+
+	@Override
+	protected SrdiIndexBackend createBackend(PeerGroup group, String indexName) {
+		return new ConcurrentInMemorySrdiIndexBackend(group, indexName);
+	}
+
+}
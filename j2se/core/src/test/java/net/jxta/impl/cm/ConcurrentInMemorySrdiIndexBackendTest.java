@@ -0,0 +1,138 @@
+package net.jxta.impl.cm;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.jxta.id.IDFactory;
+import net.jxta.impl.cm.SrdiIndex.Entry;
+import net.jxta.peer.PeerID;
+import net.jxta.peergroup.PeerGroup;
+import net.jxta.peergroup.PeerGroupID;
+
+import org.jmock.Expectations;
+
+public class ConcurrentInMemorySrdiIndexBackendTest extends AbstractSrdiIndexBackendTest {
+
+	@Override
+	public Expectations createExpectationsForConstruction_withPeerGroup_IndexName(final PeerGroup mockGroup, final PeerGroupID groupId, String groupName) {
+		return new Expectations() {{
+			ignoring(mockGroup).getPeerGroupName(); will(returnValue("testGroup"));
+		}};
+	}
+
+	@Override
+	public String getBackendClassname() {
+		return ConcurrentInMemorySrdiIndexBackend.class.getName();
+	}
+
+	@Override
+	protected SrdiIndexBackend createBackend(PeerGroup group, String indexName) {
+		return new ConcurrentInMemorySrdiIndexBackend(group, indexName);
+	}
+
+	public void testAdd_removesExpiredEntries() throws Exception {
+		srdiIndex.add("a", "b", "c", PEER_ID, 10000L);
+		srdiIndex.add("a", "b", "c", PEER_ID_2, 5000L);
+		srdiIndex.add("a", "d", "x", PEER_ID_2, 5000L);
+
+		clock.currentTime = 8000L;
+		srdiIndex.add("a", "b", "c", PEER_ID_3, 12000L);
+
+		List<Entry> record = srdiIndex.getRecord("a", "b", "c");
+		assertNotNull(record);
+		assertEquals(2, record.size());
+		assertContains(record, new Entry(PEER_ID, 10000L), new Entry(PEER_ID_3, 20000L));
+	}
+
+	public void testQuery_multipleWildcards() throws Exception {
+		srdiIndex.add("a", "b", "one.two.three", PEER_ID, 1000L);
+		srdiIndex.add("a", "b", "one.three", PEER_ID_2, 1000L);
+		srdiIndex.add("a", "b", "onetwothree", PEER_ID_3, 1000L);
+
+		List<PeerID> results = srdiIndex.query("a", "b", "one.*.three*", -1);
+		assertEquals(1, results.size());
+		assertContains(results, PEER_ID);
+	}
+
+	public void testRemove_thenAddCancelsRemoval() throws Exception {
+		srdiIndex.add("a", "b", "c", PEER_ID, 1000L);
+		srdiIndex.remove(PEER_ID);
+		srdiIndex.add("a", "b", "c", PEER_ID, 2000L);
+		srdiIndex.garbageCollect();
+
+		assertContains(srdiIndex.query("a", "b", "c", -1), PEER_ID);
+	}
+
+	public void testConcurrentAddQueryAndGarbageCollect_onSharedIndex() throws Exception {
+		final int numWriters = 4;
+		final int opsPerThread = 500;
+		final CountDownLatch done = new CountDownLatch(numWriters + 1);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+		for (int t = 0; t < numWriters; t++) {
+			final String pkey = "pkey" + t;
+			new Thread(new Runnable() {
+				public void run() {
+					try {
+						for (int i = 0; i < opsPerThread; i++) {
+							PeerID peer = IDFactory.newPeerID(PeerGroupID.defaultNetPeerGroupID);
+							srdiIndex.add(pkey, "attr", "value" + i, peer, (i % 2 == 0) ? 0L : 100000L);
+							if (i % 10 == 0) {
+								srdiIndex.remove(peer);
+							}
+						}
+					} catch (Throwable e) {
+						failure.set(e);
+					} finally {
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+
+		new Thread(new Runnable() {
+			public void run() {
+				try {
+					for (int i = 0; i < opsPerThread; i++) {
+						srdiIndex.query("pkey0", "attr", "value*", -1);
+						srdiIndex.query("pkey1", null, null, -1);
+						srdiIndex.garbageCollect();
+					}
+				} catch (Throwable e) {
+					failure.set(e);
+				} finally {
+					done.countDown();
+				}
+			}
+		}).start();
+
+		assertTrue(done.await(60L, TimeUnit.SECONDS));
+		assertNull(failure.get());
+
+		clock.currentTime = 1L;
+		srdiIndex.garbageCollect();
+
+		// only the odd, long lived entries which were not removed survive
+		for (int t = 0; t < numWriters; t++) {
+			assertEquals(opsPerThread / 2, srdiIndex.query("pkey" + t, "attr", "value*", -1).size());
+		}
+	}
+
+	public void testDataSurvivesRestart() throws Exception {
+		// in-memory index does not survive a restart
+	}
+
+	public void testClearViaStatic_groupsWithSameStoreAreIsolated() {
+		srdiIndex.add("a", "b", "c", PEER_ID, 1000L);
+		srdiIndexForGroup2.add("a", "b", "c", PEER_ID, 1000L);
+
+		srdiIndex.stop();
+		SrdiIndex.clearSrdi(group1);
+
+		SrdiIndex group1IndexRestarted = new SrdiIndex(group1, "testIndex");
+		assertTrue(group1IndexRestarted.query("a", "b", "c", -1).isEmpty());
+		assertContains(srdiIndexForGroup2.query("a", "b", "c", -1), PEER_ID);
+	}
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2002-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+
+package net.jxta.impl.cm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import net.jxta.id.IDFactory;
+import net.jxta.peer.PeerID;
+import net.jxta.peergroup.PeerGroupID;
+
+public class ConsistentHashRingTest extends TestCase {
+
+    private static final int KEYS = 20000;
+
+    private List<PeerID> peers;
+
+    @Override
+    protected void setUp() throws Exception {
+        peers = new ArrayList<PeerID>();
+        for (int i = 0; i < 10; i++) {
+            peers.add(IDFactory.newPeerID(PeerGroupID.defaultNetPeerGroupID));
+        }
+    }
+
+    private static String key(int i) {
+        return "urn:jxta:cbid-" + i + "Name" + "Peer" + i;
+    }
+
+    private Map<String, PeerID> mapping(ConsistentHashRing ring) {
+        Map<String, PeerID> result = new HashMap<String, PeerID>();
+        for (int i = 0; i < KEYS; i++) {
+            result.put(key(i), ring.getPeer(key(i)));
+        }
+        return result;
+    }
+
+    public void testEmptyRingHasNoPeer() {
+        ConsistentHashRing ring = new ConsistentHashRing(16);
+
+        assertNull(ring.getPeer("anything"));
+        assertEquals(0, ring.size());
+    }
+
+    public void testKeysAreSpreadOverAllPeers() {
+        ConsistentHashRing ring = new ConsistentHashRing(64);
+        ring.setMembers(peers);
+
+        Map<PeerID, Integer> counts = new HashMap<PeerID, Integer>();
+        for (PeerID owner : mapping(ring).values()) {
+            Integer count = counts.get(owner);
+            counts.put(owner, (null == count) ? 1 : count + 1);
+        }
+
+        assertEquals(peers.size(), counts.size());
+        for (int count : counts.values()) {
+            assertTrue("unbalanced ring : " + counts.values(), count > KEYS / peers.size() / 3);
+            assertTrue("unbalanced ring : " + counts.values(), count < KEYS / peers.size() * 3);
+        }
+    }
+
+    public void testMappingDoesNotDependOnInsertionOrder() {
+        ConsistentHashRing one = new ConsistentHashRing(32);
+        ConsistentHashRing two = new ConsistentHashRing(32);
+
+        for (PeerID peer : peers) {
+            one.add(peer);
+        }
+
+        List<PeerID> shuffled = new ArrayList<PeerID>(peers);
+        Collections.shuffle(shuffled);
+        two.setMembers(shuffled);
+
+        assertEquals(mapping(one), mapping(two));
+    }
+
+    public void testAddingAPeerOnlyMovesKeysToIt() {
+        ConsistentHashRing ring = new ConsistentHashRing(64);
+        ring.setMembers(peers);
+        Map<String, PeerID> before = mapping(ring);
+
+        PeerID newcomer = IDFactory.newPeerID(PeerGroupID.defaultNetPeerGroupID);
+        assertTrue(ring.add(newcomer));
+        assertFalse(ring.add(newcomer));
+        Map<String, PeerID> after = mapping(ring);
+
+        int moved = 0;
+        for (String key : before.keySet()) {
+            if (!before.get(key).equals(after.get(key))) {
+                assertEquals(newcomer, after.get(key));
+                moved++;
+            }
+        }
+
+        double movedFraction = ((double) moved) / KEYS;
+
+        // about 1/11 of the keys should move, and the ring's own estimate should agree
+        assertTrue("moved " + movedFraction, movedFraction < 0.2);
+        assertTrue("moved " + movedFraction, movedFraction > 0.03);
+        assertEquals(movedFraction, ring.getLastMovedFraction(), 0.02);
+    }
+
+    public void testRemovingAPeerRestoresPreviousMapping() {
+        ConsistentHashRing ring = new ConsistentHashRing(64);
+        ring.setMembers(peers);
+        Map<String, PeerID> before = mapping(ring);
+
+        PeerID newcomer = IDFactory.newPeerID(PeerGroupID.defaultNetPeerGroupID);
+        ring.add(newcomer);
+        double added = ring.getLastMovedFraction();
+        assertTrue(ring.remove(newcomer));
+
+        assertEquals(before, mapping(ring));
+        assertEquals(added, ring.getLastMovedFraction(), 0.000001);
+        assertEquals(3, ring.getChangeCount());
+        assertFalse(ring.setMembers(peers));
+    }
+
+    public void testHashOfNonAsciiExpressionUsesUtf8() throws Exception {
+        String expression = "Nameé中";
+        ConsistentHashRing ring = new ConsistentHashRing(1);
+        ring.setMembers(peers);
+
+        assertEquals(ConsistentHashRing.hash(expression), ConsistentHashRing.hash(expression));
+        assertEquals(ring.getPeer(expression), ring.getPeer(new String(expression.getBytes("UTF-8"), "UTF-8")));
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2002-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+
+package net.jxta.impl.cm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import net.jxta.id.IDFactory;
+import net.jxta.peer.PeerID;
+import net.jxta.peergroup.PeerGroupID;
+import net.jxta.protocol.SrdiMessage;
+import net.jxta.protocol.SrdiMessage.Entry;
+
+public class SrdiBatcherTest extends TestCase {
+
+    private ScheduledExecutorService executor;
+    private List<SrdiMessage> sent;
+    private List<PeerID> destinations;
+    private SrdiBatcher.Sender sender;
+
+    private final PeerID source = IDFactory.newPeerID(PeerGroupID.defaultNetPeerGroupID);
+    private final PeerID rdv1 = IDFactory.newPeerID(PeerGroupID.defaultNetPeerGroupID);
+    private final PeerID rdv2 = IDFactory.newPeerID(PeerGroupID.defaultNetPeerGroupID);
+
+    @Override
+    protected void setUp() throws Exception {
+        executor = new ScheduledThreadPoolExecutor(1);
+        sent = Collections.synchronizedList(new ArrayList<SrdiMessage>());
+        destinations = Collections.synchronizedList(new ArrayList<PeerID>());
+        sender = new SrdiBatcher.Sender() {
+            public void send(PeerID destination, SrdiMessage message) {
+                destinations.add(destination);
+                sent.add(message);
+            }
+        };
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+    private Entry entry(int i) {
+        return new Entry("key", "value" + i, 10000);
+    }
+
+    public void testFullBatchesAreSentImmediately() {
+        SrdiBatcher batcher = new SrdiBatcher(sender, executor, 60000, 3);
+
+        for (int i = 0; i < 7; i++) {
+            batcher.add(rdv1, source, "Pipes", SrdiMessage.PERSISTONLY, entry(i));
+        }
+
+        assertEquals(2, sent.size());
+        assertEquals(3, sent.get(0).getEntries().size());
+        assertEquals(1, batcher.getPendingEntryCount());
+        assertEquals(2, batcher.getSizeFlushCount());
+
+        batcher.flush();
+        assertEquals(3, sent.size());
+        assertEquals(1, sent.get(2).getEntries().size());
+        assertEquals(source, sent.get(2).getPeerID());
+        assertEquals("Pipes", sent.get(2).getPrimaryKey());
+        assertEquals(7, batcher.getEntryCount());
+        assertEquals(7.0 / 3, batcher.getAverageEntriesPerMessage(), 0.0001);
+        assertEquals(1, batcher.getEventFlushCount());
+    }
+
+    public void testEntriesAreGroupedByDestinationAndPrimaryKey() {
+        SrdiBatcher batcher = new SrdiBatcher(sender, executor, 60000, 100);
+
+        batcher.add(rdv1, source, "Pipes", SrdiMessage.PERSISTONLY, entry(1));
+        batcher.add(rdv2, source, "Pipes", SrdiMessage.PERSISTONLY, entry(2));
+        batcher.add(rdv1, source, "Adv", SrdiMessage.PERSISTONLY, entry(3));
+        batcher.add(rdv1, source, "Pipes", SrdiMessage.PERSISTONLY, entry(4));
+        assertEquals(0, sent.size());
+
+        batcher.flush();
+        assertEquals(3, sent.size());
+        assertEquals(0, batcher.getPendingEntryCount());
+
+        for (int i = 0; i < sent.size(); i++) {
+            if (destinations.get(i).equals(rdv1) && "Pipes".equals(sent.get(i).getPrimaryKey())) {
+                assertEquals(2, sent.get(i).getEntries().size());
+            } else {
+                assertEquals(1, sent.get(i).getEntries().size());
+            }
+        }
+    }
+
+    public void testWindowExpirySendsBatch() throws Exception {
+        SrdiBatcher batcher = new SrdiBatcher(sender, executor, 50, 100);
+
+        batcher.add(rdv1, source, "Pipes", SrdiMessage.PERSISTONLY, entry(1));
+        batcher.add(rdv1, source, "Pipes", SrdiMessage.PERSISTONLY, entry(2));
+
+        long giveUp = System.currentTimeMillis() + 5000;
+        while (sent.isEmpty() && System.currentTimeMillis() < giveUp) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(1, sent.size());
+        assertEquals(2, sent.get(0).getEntries().size());
+        assertEquals(1, batcher.getWindowFlushCount());
+    }
+
+    public void testZeroWindowSendsEachEntry() {
+        SrdiBatcher batcher = new SrdiBatcher(sender, executor, 0, 100);
+
+        batcher.add(rdv1, source, "Pipes", SrdiMessage.PERSISTONLY, entry(1));
+        batcher.add(rdv1, source, "Pipes", SrdiMessage.PERSISTONLY, entry(2));
+
+        assertEquals(2, sent.size());
+        assertEquals(1.0, batcher.getAverageEntriesPerMessage(), 0.0001);
+    }
+
+    public void testDuplicateEntriesAreSentOnceWithLatestExpiration() {
+        SrdiBatcher batcher = new SrdiBatcher(sender, executor, 60000, 100);
+
+        batcher.add(rdv1, source, "Pipes", SrdiMessage.PERSISTONLY, new Entry("key", "value1", 10000));
+        batcher.add(rdv1, source, "Pipes", SrdiMessage.PERSISTONLY, new Entry("key", "value1", 20000));
+        batcher.flush();
+
+        assertEquals(1, sent.size());
+        assertEquals(1, sent.get(0).getEntries().size());
+        assertEquals(20000, sent.get(0).getEntries().iterator().next().expiration);
+        assertEquals(1, batcher.getEntryCount());
+    }
+
+    public void testPublishThenRemoveWithinWindowSendsRemoval() {
+        SrdiBatcher batcher = new SrdiBatcher(sender, executor, 60000, 100);
+
+        batcher.add(rdv1, source, "Pipes", SrdiMessage.PERSISTONLY, new Entry("key", "value1", 10000));
+        batcher.add(rdv1, source, "Pipes", SrdiMessage.PERSISTONLY, entry(2));
+        batcher.add(rdv1, source, "Pipes", SrdiMessage.PERSISTONLY, new Entry("key", "value1", 0));
+        batcher.flush();
+
+        assertEquals(1, sent.size());
+
+        List<Entry> entries = new ArrayList<Entry>(sent.get(0).getEntries());
+
+        assertEquals(2, entries.size());
+        assertEquals(entry(2), entries.get(0));
+        assertEquals("value1", entries.get(1).value);
+        assertEquals(0, entries.get(1).expiration);
+    }
+
+    public void testStopSendsPendingAndDisablesBatching() {
+        SrdiBatcher batcher = new SrdiBatcher(sender, executor, 60000, 100);
+
+        batcher.add(rdv1, source, "Pipes", SrdiMessage.PERSISTONLY, entry(1));
+        batcher.stop();
+        assertEquals(1, sent.size());
+
+        batcher.add(rdv1, source, "Pipes", SrdiMessage.PERSISTONLY, entry(2));
+        assertEquals(2, sent.size());
+    }
+
+    public void testConcurrentAddsLoseNoEntries() throws Exception {
+        final SrdiBatcher batcher = new SrdiBatcher(sender, executor, 5, 10);
+        final int threads = 8;
+        final int perThread = 2000;
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++) {
+            final PeerID dest = (t % 2 == 0) ? rdv1 : rdv2;
+            final int offset = t * perThread;
+            new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        batcher.add(dest, source, "Pipes", SrdiMessage.PERSISTONLY, entry(offset + i));
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        batcher.flush();
+
+        // let window flushes which were already running complete
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+        int total = 0;
+        synchronized (sent) {
+            for (SrdiMessage msg : sent) {
+                assertTrue(msg.getEntries().size() <= 10);
+                total += msg.getEntries().size();
+            }
+        }
+        assertEquals(threads * perThread, total);
+        assertEquals(threads * perThread, batcher.getEntryCount());
+    }
+}
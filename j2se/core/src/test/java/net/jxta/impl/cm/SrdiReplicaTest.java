@@ -116,6 +116,32 @@ public class SrdiReplicaTest extends TestCase {
         System.out.flush();
     }
 
+    public void testReplicaIndexMatchesBigIntegerMapping() {
+        int[] sizes = {1, 2, 3, 7, 100, 1000, Integer.MAX_VALUE};
+
+        for (int i = 0; i < 10000; i++) {
+            jxtaHash.update(TSTSTR + i);
+            byte[] digest = jxtaHash.getDigest();
+
+            for (int size : sizes) {
+                assertEquals(getReplica2(digest, size), Srdi.getReplicaIndex(digest.clone(), size));
+            }
+        }
+
+        byte[][] edges = new byte[5][20];
+        edges[1][0] = (byte) 0x80;
+        edges[2][1] = (byte) 0x80;
+        java.util.Arrays.fill(edges[3], (byte) 0xFF);
+        java.util.Arrays.fill(edges[4], (byte) 0xFF);
+        edges[4][0] = 0x7F;
+
+        for (byte[] digest : edges) {
+            for (int size : sizes) {
+                assertEquals(getReplica2(digest, size), Srdi.getReplicaIndex(digest.clone(), size));
+            }
+        }
+    }
+
     public void testOffBy() {
         for (int i = 0; i < OFFBY; i++) {
             offBy(i);
@@ -147,8 +173,12 @@ public class SrdiReplicaTest extends TestCase {
     /* Replica Function  contributed by Shinya*/
     private int getReplica2(String expression, int size) {
         jxtaHash.update(expression);
+        return getReplica2(jxtaHash.getDigest(), size);
+    }
+
+    private int getReplica2(byte[] hash, int size) {
         BigInteger sizeOfPeerView = java.math.BigInteger.valueOf(size);
-        BigInteger digest = jxtaHash.getDigestInteger().abs();
+        BigInteger digest = new BigInteger(hash).abs();
         BigInteger sizeOfHashSpace = BigInteger.ONE.shiftLeft(8 * digest.toByteArray().length);
 
         return (digest.multiply(sizeOfPeerView)).divide(sizeOfHashSpace).intValue();
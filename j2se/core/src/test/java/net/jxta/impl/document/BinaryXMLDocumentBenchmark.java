@@ -0,0 +1,138 @@
+package net.jxta.impl.document;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import net.jxta.document.AdvertisementFactory;
+import net.jxta.document.MimeMediaType;
+import net.jxta.document.StructuredDocumentFactory;
+import net.jxta.document.XMLDocument;
+import net.jxta.endpoint.EndpointAddress;
+import net.jxta.id.IDFactory;
+import net.jxta.impl.protocol.ResolverQuery;
+import net.jxta.impl.protocol.ResolverResponse;
+import net.jxta.impl.protocol.ResolverSrdiMsgImpl;
+import net.jxta.impl.protocol.SrdiMessageImpl;
+import net.jxta.peer.PeerID;
+import net.jxta.peergroup.PeerGroupID;
+import net.jxta.protocol.RouteAdvertisement;
+import net.jxta.protocol.SrdiMessage;
+
+/**
+ * Compares the size and the encode plus decode time of documents as XML and
+ * as {@link BinaryXMLDocument}s. Resolver queries and responses are compared
+ * uncompressed, SRDI messages are compared gzipped as XML against deflated as
+ * binary, as the resolver sends them.
+ * <p>
+ * Usage: <code>BinaryXMLDocumentBenchmark [iterations]</code>
+ */
+public class BinaryXMLDocumentBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+
+        PeerGroupID groupID = IDFactory.newPeerGroupID();
+        PeerID peerID = IDFactory.newPeerID(groupID);
+
+        RouteAdvertisement route = (RouteAdvertisement) AdvertisementFactory.newAdvertisement(RouteAdvertisement.getAdvertisementType());
+        route.setDestPeerID(peerID);
+        route.addDestEndpointAddress(new EndpointAddress("tcp", "192.168.1.1:9701", null, null));
+        route.addDestEndpointAddress(new EndpointAddress("http", "192.168.1.1:9700", null, null));
+
+        ResolverQuery query = new ResolverQuery();
+        query.setHandlerName("urn:jxta:uuid-DEADBEEFDEAFBABAFEEDBABE0000000305");
+        query.setQueryId(42);
+        query.setSrcPeer(peerID);
+        query.setSrcPeerRoute(route);
+        query.setQuery("<?xml version=\"1.0\"?>\n<jxta:DiscoveryQuery><Type>2</Type><Attr>Name</Attr><Value>a*</Value></jxta:DiscoveryQuery>");
+
+        ResolverResponse response = new ResolverResponse();
+        response.setHandlerName(query.getHandlerName());
+        response.setQueryId(42);
+        response.setResponse(query.getQuery());
+
+        List<SrdiMessage.Entry> entries = new ArrayList<SrdiMessage.Entry>();
+        for (int i = 0; i < 100; i++) {
+            entries.add(new SrdiMessage.Entry("Name", "Peer" + i, 60000));
+            entries.add(new SrdiMessage.Entry("PID", IDFactory.newPeerID(groupID).toString(), 60000));
+        }
+        SrdiMessageImpl srdiPayload = new SrdiMessageImpl(peerID, 1, "Adv", entries);
+        ResolverSrdiMsgImpl srdi = new ResolverSrdiMsgImpl("urn:jxta:uuid-DEADBEEFDEAFBABAFEEDBABE0000000305Srdi", null,
+                srdiPayload.getDocument(MimeMediaType.XMLUTF8).toString());
+
+        Map<String, XMLDocument> documents = new LinkedHashMap<String, XMLDocument>();
+        documents.put("query", (XMLDocument) query.getDocument(MimeMediaType.XMLUTF8));
+        documents.put("response", (XMLDocument) response.getDocument(MimeMediaType.XMLUTF8));
+        documents.put("route", (XMLDocument) route.getDocument(MimeMediaType.XMLUTF8));
+
+        List<String> corpus = LiteXMLDocumentTest.advertisementCorpus();
+        for (int i = 0; i < corpus.size(); i++) {
+            documents.put("corpus" + i, (XMLDocument) StructuredDocumentFactory.newStructuredDocument(MimeMediaType.XMLUTF8, new StringReader(corpus.get(i))));
+        }
+
+        System.out.println(String.format("%-10s %8s %8s %6s %10s %10s %6s", "document", "xml B", "bin B", "size", "xml us", "bin us", "speed"));
+
+        for (Map.Entry<String, XMLDocument> each : documents.entrySet()) {
+            run(each.getKey(), each.getValue(), BinaryXMLDocumentTest.toBinary(each.getValue()), false, iterations);
+        }
+
+        run("srdi", (XMLDocument) srdi.getDocument(MimeMediaType.XMLUTF8), (BinaryXMLDocument) srdi.getDocument(BinaryXMLDocument.MIME_TYPE), true, iterations / 10);
+    }
+
+    private static void run(String name, XMLDocument xml, BinaryXMLDocument binary, boolean compressed, int iterations) throws Exception {
+        byte[] xmlBytes = encodeXML(xml, compressed);
+        byte[] binaryBytes = binary.toByteArray(compressed);
+
+        long xmlNanos = 0;
+        long binaryNanos = 0;
+
+        // the first round warms up
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                decodeXML(encodeXML(xml, compressed), compressed);
+            }
+            xmlNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                BinaryXMLDocument.read(BinaryXMLDocument.MIME_TYPE, new ByteArrayInputStream(binary.toByteArray(compressed)));
+            }
+            binaryNanos = System.nanoTime() - start;
+        }
+
+        System.out.println(String.format("%-10s %8d %8d %5.0f%% %10.2f %10.2f %5.1fx", name, xmlBytes.length, binaryBytes.length,
+                100.0 * binaryBytes.length / xmlBytes.length, xmlNanos / 1e3 / iterations, binaryNanos / 1e3 / iterations,
+                (double) xmlNanos / binaryNanos));
+    }
+
+    private static byte[] encodeXML(XMLDocument xml, boolean compressed) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        if (compressed) {
+            GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+            xml.sendToStream(gzip);
+            gzip.finish();
+            gzip.close();
+        } else {
+            xml.sendToStream(bytes);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private static void decodeXML(byte[] encoded, boolean compressed) throws Exception {
+        if (compressed) {
+            StructuredDocumentFactory.newStructuredDocument(MimeMediaType.XMLUTF8, new GZIPInputStream(new ByteArrayInputStream(encoded)));
+        } else {
+            StructuredDocumentFactory.newStructuredDocument(MimeMediaType.XMLUTF8, new ByteArrayInputStream(encoded));
+        }
+    }
+}
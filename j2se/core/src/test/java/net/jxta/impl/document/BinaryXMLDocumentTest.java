@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2002-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+
+package net.jxta.impl.document;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Enumeration;
+
+import junit.framework.TestCase;
+import net.jxta.document.Attribute;
+import net.jxta.document.MimeMediaType;
+import net.jxta.document.StructuredDocument;
+import net.jxta.document.StructuredDocumentFactory;
+import net.jxta.document.StructuredDocumentUtils;
+import net.jxta.document.XMLDocument;
+import net.jxta.document.XMLElement;
+import net.jxta.endpoint.ByteArrayMessageElement;
+import net.jxta.endpoint.EndpointAddress;
+import net.jxta.document.AdvertisementFactory;
+import net.jxta.id.IDFactory;
+import net.jxta.impl.protocol.ResolverQuery;
+import net.jxta.impl.protocol.ResolverResponse;
+import net.jxta.impl.protocol.ResolverSrdiMsgImpl;
+import net.jxta.peer.PeerID;
+import net.jxta.peergroup.PeerGroupID;
+import net.jxta.protocol.RouteAdvertisement;
+
+public class BinaryXMLDocumentTest extends TestCase {
+
+    /**
+     * Returns a binary copy of an XML document.
+     */
+    static BinaryXMLDocument toBinary(XMLDocument<?> xml) {
+        BinaryXMLDocument binary = (BinaryXMLDocument) StructuredDocumentFactory.newStructuredDocument(BinaryXMLDocument.MIME_TYPE, xml.getName(), xml.getTextValue());
+
+        Enumeration<Attribute> attrs = xml.getAttributes();
+        while (attrs.hasMoreElements()) {
+            binary.addAttribute(attrs.nextElement());
+        }
+
+        StructuredDocumentUtils.copyChildren(binary, binary, xml);
+
+        return binary;
+    }
+
+    private static BinaryXMLDocument decode(byte[] encoded) throws IOException {
+        return (BinaryXMLDocument) StructuredDocumentFactory.newStructuredDocument(BinaryXMLDocument.MIME_TYPE, new ByteArrayInputStream(encoded));
+    }
+
+    private static XMLDocument parseXML(String xml) throws IOException {
+        return (XMLDocument) StructuredDocumentFactory.newStructuredDocument(MimeMediaType.XMLUTF8, new StringReader(xml));
+    }
+
+    private static RouteAdvertisement newRoute(PeerID peerID) {
+        RouteAdvertisement route = (RouteAdvertisement) AdvertisementFactory.newAdvertisement(RouteAdvertisement.getAdvertisementType());
+        route.setDestPeerID(peerID);
+        route.addDestEndpointAddress(new EndpointAddress("tcp", "192.168.1.1:9701", null, null));
+        route.addDestEndpointAddress(new EndpointAddress("http", "192.168.1.1:9700", null, null));
+        return route;
+    }
+
+    public void testRoundTrip() throws Exception {
+        PeerID peerID = IDFactory.newPeerID(PeerGroupID.defaultNetPeerGroupID);
+        String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<!DOCTYPE a>\n<a x=\"1\" y=\"&lt;2&gt;\">\n"
+                + "  <b>  padded  </b>\n  <c>" + peerID + "</c>\n  <c>urn:jxta:uuid-0a</c>\n  <c>urn:jxta:uuid-ABC</c>\n"
+                + "  <c>urn:jxta:jxta-NetGroup</c>\n  <d z=\"" + peerID + "\">café 日本 &amp; &lt;</d>\n"
+                + "  <e><f><g>deep</g></f></e>\n  <b/>\n</a>\n";
+
+        XMLDocument original = parseXML(xml);
+
+        for (boolean compressed : new boolean[] {false, true}) {
+            byte[] encoded = toBinary(original).toByteArray(compressed);
+            BinaryXMLDocument decoded = decode(encoded);
+
+            assertEquals(original.toString(), decoded.toString());
+            assertEquals(peerID.toString(), ((XMLElement) decoded.getChildren("c").nextElement()).getTextValue());
+            assertEquals("padded", ((XMLElement) decoded.getChildren("b").nextElement()).getTextValue());
+            assertEquals(original.getAttribute("y").getValue(), decoded.getAttribute("y").getValue());
+            assertTrue(Arrays.equals(encoded, decoded.toByteArray(compressed)));
+        }
+    }
+
+    public void testAdvertisementCorpus() throws Exception {
+        for (String xml : LiteXMLDocumentTest.advertisementCorpus()) {
+            XMLDocument original = parseXML(xml);
+            BinaryXMLDocument binary = toBinary(original);
+            byte[] encoded = binary.toByteArray(false);
+
+            assertEquals(original.toString(), decode(encoded).toString());
+            assertTrue(encoded.length < xml.getBytes("UTF-8").length);
+
+            ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+            binary.sendToStream(streamed);
+            assertTrue(Arrays.equals(encoded, streamed.toByteArray()));
+        }
+    }
+
+    public void testResolverMessages() throws Exception {
+        PeerID peerID = IDFactory.newPeerID(PeerGroupID.defaultNetPeerGroupID);
+
+        ResolverQuery query = new ResolverQuery();
+        query.setHandlerName("urn:jxta:uuid-DEADBEEFDEAFBABAFEEDBABE0000000305");
+        query.setQueryId(42);
+        query.setSrcPeer(peerID);
+        query.setQuery("<?xml version=\"1.0\"?>\n<jxta:DiscoveryQuery><Type>2</Type><Attr>Name</Attr><Value>a*</Value></jxta:DiscoveryQuery>");
+        query.setSrcPeerRoute(newRoute(peerID));
+
+        ResolverQuery readQuery = new ResolverQuery(decode(((BinaryXMLDocument) query.getDocument(BinaryXMLDocument.MIME_TYPE)).toByteArray(false)));
+
+        assertEquals(query.getDocument(MimeMediaType.XMLUTF8).toString(), readQuery.getDocument(MimeMediaType.XMLUTF8).toString());
+        assertEquals(query.getQuery(), readQuery.getQuery());
+        assertEquals(peerID, readQuery.getSrcPeerRoute().getDestPeerID());
+
+        ResolverResponse response = new ResolverResponse();
+        response.setHandlerName(query.getHandlerName());
+        response.setQueryId(42);
+        response.setResponse("<Response>value &amp; more</Response>");
+
+        ResolverResponse readResponse = new ResolverResponse(decode(((BinaryXMLDocument) response.getDocument(BinaryXMLDocument.MIME_TYPE)).toByteArray(false)));
+
+        assertEquals(response.getResponse(), readResponse.getResponse());
+        assertEquals(response.getDocument(MimeMediaType.XMLUTF8).toString(), readResponse.getDocument(MimeMediaType.XMLUTF8).toString());
+
+        ResolverSrdiMsgImpl srdi = new ResolverSrdiMsgImpl("urn:jxta:uuid-DEADBEEFDEAFBABAFEEDBABE0000000305Srdi", null, "<Srdi><Entry>x</Entry></Srdi>");
+        ResolverSrdiMsgImpl readSrdi = new ResolverSrdiMsgImpl(decode(((BinaryXMLDocument) srdi.getDocument(BinaryXMLDocument.MIME_TYPE)).toByteArray(true)), null);
+
+        assertEquals(srdi.getPayload(), readSrdi.getPayload());
+        assertEquals(srdi.getHandlerName(), readSrdi.getHandlerName());
+    }
+
+    public void testMessageElement() throws Exception {
+        XMLDocument original = parseXML("<?xml version=\"1.0\"?><!DOCTYPE a><a><b>1</b></a>");
+        ByteArrayMessageElement element = new ByteArrayMessageElement("e", BinaryXMLDocument.MIME_TYPE, toBinary(original).toByteArray(true), null);
+
+        StructuredDocument read = StructuredDocumentFactory.newStructuredDocument(element);
+
+        assertTrue(read instanceof BinaryXMLDocument);
+        assertEquals(original.toString(), read.toString());
+        assertEquals("bxml", ((BinaryXMLDocument) read).getFileExtension());
+    }
+
+    public void testMalformed() throws Exception {
+        byte[] good = toBinary(parseXML("<a x=\"1\"><b>1</b><b>urn:jxta:uuid-00</b></a>")).toByteArray(false);
+
+        // every truncation is refused
+        for (int length = 0; length < good.length; length++) {
+            assertMalformed(Arrays.copyOf(good, length));
+        }
+
+        // trailing data
+        byte[] longer = Arrays.copyOf(good, good.length + 1);
+        longer[4 + 1] = (byte) (good.length - 5 + 1);
+        assertMalformed(longer);
+
+        // bad magic and version
+        byte[] bad = good.clone();
+        bad[0] = 'X';
+        assertMalformed(bad);
+        bad = good.clone();
+        bad[3] = 2;
+        assertMalformed(bad);
+
+        // a reference to a name which has not been defined
+        bad = good.clone();
+        bad[6] = 5;
+        assertMalformed(bad);
+
+        // an enormous length
+        assertMalformed(new byte[] {'J', 'X', 'B', 1, 0, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0x7F});
+
+        // a deflated body which is not
+        assertMalformed(new byte[] {'J', 'X', 'B', 1, 1, 4, 4, 1, 2, 3, 4});
+
+        // elements nested too deeply
+        BinaryXMLDocument deep = new BinaryXMLDocument(BinaryXMLDocument.MIME_TYPE, "a", null);
+        BinaryXMLElement parent = deep;
+        for (int depth = 0; depth < 1000; depth++) {
+            BinaryXMLElement child = deep.createElement("a");
+            parent.appendChild(child);
+            parent = child;
+        }
+        assertMalformed(deep.toByteArray(true));
+    }
+
+    private static void assertMalformed(byte[] encoded) {
+        try {
+            decode(encoded);
+            fail("Decoded malformed document " + Arrays.toString(encoded));
+        } catch (IOException expected) {
+            // expected
+        }
+    }
+}
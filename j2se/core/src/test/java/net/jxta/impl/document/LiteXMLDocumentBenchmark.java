@@ -0,0 +1,84 @@
+package net.jxta.impl.document;
+
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.jxta.document.MimeMediaType;
+
+/**
+ * Compares the parsing throughput of the tag search parser and the single pass
+ * parser of {@link LiteXMLDocument} over a corpus of advertisement documents,
+ * parsing from a <code>Reader</code> and, for the single pass parser, from a
+ * <code>ByteBuffer</code> of UTF-8.
+ * <p>
+ * Usage: <code>LiteXMLDocumentBenchmark [iterations] [warmupIterations]</code>
+ */
+public class LiteXMLDocumentBenchmark {
+
+    private interface Parser {
+        void parse(String document, ByteBuffer encoded) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+        int warmup = (args.length > 1) ? Integer.parseInt(args[1]) : 500;
+
+        List<String> corpus = LiteXMLDocumentTest.advertisementCorpus();
+        List<ByteBuffer> encoded = new ArrayList<ByteBuffer>();
+        long chars = 0;
+        for (String document : corpus) {
+            encoded.add(ByteBuffer.wrap(document.getBytes("UTF-8")));
+            chars += document.length();
+        }
+
+        System.out.println(corpus.size() + " documents, " + chars + " chars, " + iterations + " iterations");
+
+        Parser legacy = new Parser() {
+            public void parse(String document, ByteBuffer bytes) throws Exception {
+                LiteXMLDocument.legacyParsing = true;
+                new LiteXMLDocument(MimeMediaType.XMLUTF8, new StringReader(document));
+            }
+        };
+        Parser singlePass = new Parser() {
+            public void parse(String document, ByteBuffer bytes) throws Exception {
+                LiteXMLDocument.legacyParsing = false;
+                new LiteXMLDocument(MimeMediaType.XMLUTF8, new StringReader(document));
+            }
+        };
+        Parser singlePassBytes = new Parser() {
+            public void parse(String document, ByteBuffer bytes) throws Exception {
+                LiteXMLDocument.legacyParsing = false;
+                LiteXMLDocument.newInstance(MimeMediaType.XMLUTF8, bytes.duplicate());
+            }
+        };
+
+        run("tagsearch", legacy, corpus, encoded, warmup, iterations);
+        run("1pass", singlePass, corpus, encoded, warmup, iterations);
+        run("1pass-nio", singlePassBytes, corpus, encoded, warmup, iterations);
+    }
+
+    private static void run(String name, Parser parser, List<String> corpus, List<ByteBuffer> encoded, int warmup, int iterations) throws Exception {
+        for (int i = 0; i < warmup; i++) {
+            parseAll(parser, corpus, encoded);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            parseAll(parser, corpus, encoded);
+        }
+        report(name, corpus.size() * iterations, System.nanoTime() - start);
+    }
+
+    private static void parseAll(Parser parser, List<String> corpus, List<ByteBuffer> encoded) throws Exception {
+        for (int each = 0; each < corpus.size(); each++) {
+            parser.parse(corpus.get(each), encoded.get(each));
+        }
+    }
+
+    private static void report(String name, int count, long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.println(String.format("%-10s %8d docs in %8.3f s  %10.1f docs/s", name, count, seconds, count / seconds));
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2002-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+
+package net.jxta.impl.document;
+
+import java.io.File;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import net.jxta.document.AdvertisementFactory;
+import net.jxta.document.MimeMediaType;
+import net.jxta.document.StructuredDocumentFactory;
+import net.jxta.document.XMLDocument;
+import net.jxta.endpoint.EndpointAddress;
+import net.jxta.id.IDFactory;
+import net.jxta.impl.peergroup.Platform;
+import net.jxta.peer.PeerID;
+import net.jxta.peergroup.PeerGroupID;
+import net.jxta.pipe.PipeService;
+import net.jxta.platform.NetworkConfigurator;
+import net.jxta.protocol.PeerAdvertisement;
+import net.jxta.protocol.PeerGroupAdvertisement;
+import net.jxta.protocol.PipeAdvertisement;
+import net.jxta.protocol.RouteAdvertisement;
+import net.jxta.test.util.FileSystemTest;
+
+public class LiteXMLDocumentTest extends TestCase {
+
+    private static final String[] DOCUMENTS = {
+        "<?xml version=\"1.0\"?><!DOCTYPE a><a>x</a>",
+        "<?xml version=\"1.0\"?><!DOCTYPE a><a></a>",
+        "<?xml version=\"1.0\"?><!DOCTYPE a><a/>",
+        "<?xml version=\"1.0\"?>\n<!DOCTYPE a>\n<a>\n  <b>1</b>\n  <b>2</b>\n</a>\n",
+        "<?xml version=\"1.0\"?><!DOCTYPE a><a>y<b>1</b>x<c/>z</a>",
+        "<?xml version=\"1.0\"?><!DOCTYPE a><a><a>in<a/></a><b><a>deep</a></b></a>",
+        "<?xml version=\"1.0\"?><!DOCTYPE a><a><b x=\"1\" y='2'>v</b><b x=\"1>2\">v</b><c z=\"/\"/></a>",
+        "<?xml version=\"1.0\"?><a><b>1</b></a>",
+        "<a><b>1</b></a>",
+        "<?xml version=\"1.0\"?><!DOCTYPE a><a><!-- c --><b>1</b></a>",
+        "<?xml version=\"1.0\"?><!DOCTYPE a><a><b>1</a>",
+        "<?xml version=\"1.0\"?><!DOCTYPE a><a><b>1</c></a>",
+        "<?xml version=\"1.0\"?><!DOCTYPE a><a><b>1</b></a>trailing",
+        "<?xml version=\"1.0\"?><!DOCTYPE a><b><a/></b><a>late</a>",
+        "<?xml version=\"1.0\" encoding=\"UTF-8\"?><!DOCTYPE a><a><b>café 日本</b></a>"
+    };
+
+    /**
+     * Returns the documents of advertisements like those exchanged by peers.
+     */
+    static List<String> advertisementCorpus() throws Exception {
+        List<String> corpus = new ArrayList<String>();
+        PeerGroupID groupID = IDFactory.newPeerGroupID();
+
+        File home = FileSystemTest.createTempDirectory("LiteXMLDocumentTest");
+        try {
+            NetworkConfigurator config = new NetworkConfigurator(NetworkConfigurator.EDGE_NODE, home.toURI());
+            config.setName("corpus");
+            corpus.add(config.getPlatformConfig().getDocument(MimeMediaType.XMLUTF8).toString());
+        } finally {
+            FileSystemTest.deleteDir(home);
+        }
+
+        corpus.add(Platform.getDefaultModuleImplAdvertisement().getDocument(MimeMediaType.XMLUTF8).toString());
+
+        PeerAdvertisement peerAdv = (PeerAdvertisement) AdvertisementFactory.newAdvertisement(PeerAdvertisement.getAdvertisementType());
+        PeerID peerID = IDFactory.newPeerID(groupID);
+        peerAdv.setPeerGroupID(groupID);
+        peerAdv.setPeerID(peerID);
+        peerAdv.setName("corpus peer");
+        peerAdv.setDescription("A peer & its <description>");
+        corpus.add(peerAdv.getDocument(MimeMediaType.XMLUTF8).toString());
+
+        PeerGroupAdvertisement groupAdv = (PeerGroupAdvertisement) AdvertisementFactory.newAdvertisement(PeerGroupAdvertisement.getAdvertisementType());
+        groupAdv.setPeerGroupID(groupID);
+        groupAdv.setModuleSpecID(Platform.getDefaultModuleImplAdvertisement().getModuleSpecID());
+        groupAdv.setName("corpus group");
+        corpus.add(groupAdv.getDocument(MimeMediaType.XMLUTF8).toString());
+
+        PipeAdvertisement pipeAdv = (PipeAdvertisement) AdvertisementFactory.newAdvertisement(PipeAdvertisement.getAdvertisementType());
+        pipeAdv.setPipeID(IDFactory.newPipeID(groupID));
+        pipeAdv.setType(PipeService.UnicastType);
+        pipeAdv.setName("corpus pipe");
+        corpus.add(pipeAdv.getDocument(MimeMediaType.XMLUTF8).toString());
+
+        RouteAdvertisement route = (RouteAdvertisement) AdvertisementFactory.newAdvertisement(RouteAdvertisement.getAdvertisementType());
+        route.setDestPeerID(peerID);
+        route.addDestEndpointAddress(new EndpointAddress("tcp", "192.168.1.1:9701", null, null));
+        route.addDestEndpointAddress(new EndpointAddress("http", "192.168.1.1:9700", null, null));
+        corpus.add(route.getDocument(MimeMediaType.XMLUTF8).toString());
+
+        return corpus;
+    }
+
+    private static LiteXMLDocument parse(String document, boolean legacy) throws Exception {
+        boolean was = LiteXMLDocument.legacyParsing;
+
+        LiteXMLDocument.legacyParsing = legacy;
+        try {
+            return new LiteXMLDocument(MimeMediaType.XMLUTF8, new StringReader(document));
+        } finally {
+            LiteXMLDocument.legacyParsing = was;
+        }
+    }
+
+    private static void assertSameStructure(String document, LiteXMLElement expected, LiteXMLElement actual) {
+        assertEquals(document, expected.loc, actual.loc);
+        assertEquals(document, expected.getName(), actual.getName());
+
+        int expectedCount = (null == expected.children) ? 0 : expected.children.size();
+        int actualCount = (null == actual.children) ? 0 : actual.children.size();
+
+        assertEquals(document, expectedCount, actualCount);
+
+        for (int eachChild = 0; eachChild < expectedCount; eachChild++) {
+            LiteXMLElement child = actual.children.get(eachChild);
+
+            assertSame(actual, child.parent);
+            assertSameStructure(document, expected.children.get(eachChild), child);
+        }
+    }
+
+    private static void assertParsersAgree(String document) throws Exception {
+        LiteXMLDocument legacy = parse(document, true);
+        LiteXMLDocument singlePass = parse(document, false);
+
+        assertSameStructure(document, legacy, singlePass);
+        assertEquals(legacy.toString(), singlePass.toString());
+    }
+
+    public void testParsersAgree() throws Exception {
+        for (String document : DOCUMENTS) {
+            assertParsersAgree(document);
+        }
+    }
+
+    public void testParsersAgreeOnAdvertisements() throws Exception {
+        for (String document : advertisementCorpus()) {
+            assertParsersAgree(document);
+        }
+    }
+
+    public void testParseErrorUnchanged() throws Exception {
+        String[] bad = {
+            "<?xml version=\"1.0\"?><!DOCTYPE a><b/>",
+            "<?xml version=\"1.0\"?><!DOCTYPE a><a>unterminated"
+        };
+
+        for (String document : bad) {
+            for (boolean legacy : new boolean[] {true, false}) {
+                try {
+                    parse(document, legacy);
+                    fail("Parse error expected for " + document);
+                } catch (RuntimeException expected) {
+                    assertEquals("Parsing error in source document.", expected.getMessage());
+                }
+            }
+        }
+    }
+
+    public void testModifiedAfterParse() throws Exception {
+        LiteXMLDocument doc = parse(DOCUMENTS[3], false);
+        LiteXMLElement b = doc.getChildren("b").nextElement();
+
+        b.appendChild(doc.createElement("c", "3"));
+        doc.appendChild(doc.createElement("d", "4"));
+
+        assertEquals("3", ((LiteXMLElement) b.getChildren("c").nextElement()).getTextValue());
+        assertEquals("4", ((LiteXMLElement) doc.getChildren("d").nextElement()).getTextValue());
+        assertParsersAgree(doc.toString());
+    }
+
+    public void testByteBufferSource() throws Exception {
+        for (String document : DOCUMENTS) {
+            if (document.startsWith("<?xml version=\"1.0\"?><!DOCTYPE a><b/>")) {
+                continue;
+            }
+
+            ByteBuffer bytes = ByteBuffer.wrap(document.getBytes("UTF-8"));
+            LiteXMLDocument fromBytes = LiteXMLDocument.newInstance(MimeMediaType.XMLUTF8, bytes);
+            LiteXMLDocument fromReader = parse(document, false);
+
+            assertFalse(bytes.hasRemaining());
+            assertSameStructure(document, fromReader, fromBytes);
+            assertEquals(fromReader.toString(), fromBytes.toString());
+        }
+
+        // buffers which do not start at the beginning of their array
+        byte[] padded = ("junk" + DOCUMENTS[3] + "junk").getBytes("UTF-8");
+        ByteBuffer slice = ByteBuffer.wrap(padded, 4, padded.length - 8).slice();
+
+        assertEquals(parse(DOCUMENTS[3], true).toString(), LiteXMLDocument.newInstance(MimeMediaType.XMLUTF8, slice).toString());
+
+        // direct buffers and the default encoding
+        String document = DOCUMENTS[DOCUMENTS.length - 1];
+        byte[] encoded = document.getBytes("UTF-8");
+        ByteBuffer direct = ByteBuffer.allocateDirect(encoded.length);
+
+        direct.put(encoded);
+        direct.flip();
+
+        XMLDocument expected = (XMLDocument) StructuredDocumentFactory.newStructuredDocument(MimeMediaType.XML_DEFAULTENCODING, new StringReader(document));
+
+        assertEquals(expected.toString(), LiteXMLDocument.newInstance(MimeMediaType.XML_DEFAULTENCODING, direct).toString());
+    }
+}
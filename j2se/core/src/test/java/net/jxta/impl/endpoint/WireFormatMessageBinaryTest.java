@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2002-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+
+package net.jxta.impl.endpoint;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import net.jxta.document.MimeMediaType;
+import net.jxta.endpoint.ByteArrayMessageElement;
+import net.jxta.endpoint.Message;
+import net.jxta.endpoint.MessageElement;
+import net.jxta.endpoint.StringMessageElement;
+import net.jxta.endpoint.WireFormatMessage;
+import net.jxta.endpoint.WireFormatMessageFactory;
+
+public class WireFormatMessageBinaryTest extends TestCase {
+
+    /**
+     * Counts the number of times the content of the element is retrieved.
+     */
+    private static class CountingElement extends ByteArrayMessageElement {
+        final AtomicInteger reads = new AtomicInteger();
+
+        CountingElement(String name, byte[] b) {
+            super(name, MimeMediaType.AOS, b, null);
+        }
+
+        @Override
+        public synchronized byte[] getBytes(boolean copy) {
+            reads.incrementAndGet();
+            return super.getBytes(copy);
+        }
+
+        @Override
+        public synchronized InputStream getStream() {
+            reads.incrementAndGet();
+            return super.getStream();
+        }
+
+        @Override
+        public void sendToStream(OutputStream sendTo) throws IOException {
+            reads.incrementAndGet();
+            super.sendToStream(sendTo);
+        }
+    }
+
+    private CountingElement payload;
+    private Message msg;
+
+    @Override
+    protected void setUp() throws Exception {
+        payload = new CountingElement("payload", new byte[] {1, 2, 3, 4, 5});
+        msg = new Message();
+        msg.addMessageElement("app", payload);
+        msg.addMessageElement("jxta", new StringMessageElement("header", "value", null));
+    }
+
+    private static byte[] serialize(Message msg) throws IOException {
+        WireFormatMessage wire = WireFormatMessageFactory.toWire(msg, WireFormatMessageFactory.DEFAULT_WIRE_MIME, null);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        wire.sendToStream(bytes);
+        assertEquals(wire.getByteLength(), bytes.size());
+        return bytes.toByteArray();
+    }
+
+    private static byte[] gather(ByteBuffer[] buffers) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        for (ByteBuffer buffer : buffers) {
+            byte[] part = new byte[buffer.remaining()];
+
+            buffer.get(part);
+            bytes.write(part, 0, part.length);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Returns a copy of the message with an element added for the destination.
+     */
+    private Message copyFor(String destination, WireFormatMessage shared) {
+        Message copy = msg.clone();
+
+        if (null != shared) {
+            copy.setMessageProperty(WireFormatMessageBinary.SHARED_WIRE_PROPERTY, shared);
+        }
+        copy.addMessageElement("dest", new StringMessageElement("to", destination, null));
+        return copy;
+    }
+
+    public void testSharedSerializationIsIdentical() throws IOException {
+        WireFormatMessage shared = WireFormatMessageBinary.toSharedWire(msg);
+
+        for (String destination : new String[] {"a", "b", "c"}) {
+            byte[] expected = serialize(copyFor(destination, null));
+            Message copy = copyFor(destination, shared);
+
+            assertTrue(Arrays.equals(expected, serialize(copy)));
+
+            WireFormatMessage wire = WireFormatMessageFactory.toWire(copy, WireFormatMessageFactory.DEFAULT_WIRE_MIME, null);
+            assertTrue(Arrays.equals(expected, gather(wire.getByteBuffers())));
+
+            Message received = WireFormatMessageFactory.fromWire(new ByteArrayInputStream(expected), WireFormatMessageFactory.DEFAULT_WIRE_MIME, null);
+            MessageElement element = received.getMessageElement("app", "payload");
+            assertTrue(Arrays.equals(new byte[] {1, 2, 3, 4, 5}, element.getBytes(false)));
+            assertEquals(destination, received.getMessageElement("dest", "to").toString());
+        }
+    }
+
+    public void testSharedContentIsEncodedOnce() throws IOException {
+        WireFormatMessage shared = WireFormatMessageBinary.toSharedWire(msg);
+        int afterEncoding = payload.reads.get();
+
+        for (int each = 0; each < 10; each++) {
+            Message copy = copyFor(Integer.toString(each), shared);
+
+            serialize(copy);
+            WireFormatMessageFactory.toWire(copy, WireFormatMessageFactory.DEFAULT_WIRE_MIME, null).getByteBuffers();
+        }
+
+        assertEquals(afterEncoding, payload.reads.get());
+    }
+
+    public void testModifiedMessageIsNotShared() throws IOException {
+        WireFormatMessage shared = WireFormatMessageBinary.toSharedWire(msg);
+        Message copy = copyFor("a", shared);
+
+        msg.addMessageElement("app", new StringMessageElement("extra", "value", null));
+
+        int before = payload.reads.get();
+        serialize(copy);
+        assertTrue(payload.reads.get() > before);
+
+        try {
+            shared.getByteLength();
+            fail("modification not detected");
+        } catch (IllegalStateException expected) {// expected
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2002-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+
+package net.jxta.impl.endpoint.cbjx;
+
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.KeyPair;
+
+import javax.security.auth.x500.X500Principal;
+
+import junit.framework.*;
+
+import net.jxta.endpoint.Message;
+import net.jxta.id.ID;
+import net.jxta.id.IDFactory;
+import net.jxta.impl.membership.pse.PSEUtils;
+import net.jxta.impl.membership.pse.PSEUtils.IssuerInfo;
+import net.jxta.peergroup.PeerGroup;
+import net.jxta.peergroup.PeerGroupID;
+
+
+public class CbJxTransportTest extends TestCase {
+    
+    /**
+     * CBJX only accepts peer ids derived from the peer's key.
+     */
+    private static final PeerGroupID GROUP_ID = IDFactory.newPeerGroupID("cbid");
+    
+    private CbJxTransport transport;
+    
+    public CbJxTransportTest(java.lang.String testName) {
+        super(testName);
+    }
+    
+    @Override
+    protected void setUp() throws Exception {
+        transport = new CbJxTransport();
+        transport.group = (PeerGroup) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] {PeerGroup.class}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if ("getPeerGroupID".equals(method.getName())) {
+                    return GROUP_ID;
+                }
+                
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+    
+    private static ID cbid(IssuerInfo info) {
+        return IDFactory.newPeerID(GROUP_ID, info.cert.getPublicKey().getEncoded());
+    }
+    
+    public void testRepeatCertificateHits() throws Exception {
+        IssuerInfo peer = PSEUtils.genCert("peer", null);
+        ID peerID = cbid(peer);
+        
+        assertTrue(transport.checkIdentity(new Message(), peerID, peer.cert));
+        assertEquals(0, transport.getIdentityCacheHits());
+        assertEquals(1, transport.getIdentityCacheMisses());
+        
+        assertTrue(transport.checkIdentity(new Message(), peerID, peer.cert));
+        assertEquals(1, transport.getIdentityCacheHits());
+        assertEquals(1, transport.getIdentityCacheMisses());
+    }
+    
+    public void testNewPeerMisses() throws Exception {
+        IssuerInfo first = PSEUtils.genCert("first", null);
+        IssuerInfo second = PSEUtils.genCert("second", null);
+        
+        assertTrue(transport.checkIdentity(new Message(), cbid(first), first.cert));
+        assertTrue(transport.checkIdentity(new Message(), cbid(second), second.cert));
+        
+        assertEquals(0, transport.getIdentityCacheHits());
+        assertEquals(2, transport.getIdentityCacheMisses());
+    }
+    
+    public void testDifferentCertificateForKnownPeerIsReverified() throws Exception {
+        IssuerInfo peer = PSEUtils.genCert("peer", null);
+        IssuerInfo impostor = PSEUtils.genCert("peer", null);
+        ID peerID = cbid(peer);
+        
+        assertTrue(transport.checkIdentity(new Message(), peerID, peer.cert));
+        
+        // A valid self signed certificate whose key does not match the peer id.
+        assertFalse(transport.checkIdentity(new Message(), peerID, impostor.cert));
+        assertEquals(0, transport.getIdentityCacheHits());
+        assertEquals(2, transport.getIdentityCacheMisses());
+        
+        // The rejected certificate must not displace the verified one.
+        assertTrue(transport.checkIdentity(new Message(), peerID, peer.cert));
+        assertEquals(1, transport.getIdentityCacheHits());
+        
+        // A re-issued certificate for the same key is verified again and accepted.
+        KeyPair keys = new KeyPair(peer.cert.getPublicKey(), peer.subjectPkey);
+        IssuerInfo reissued = PSEUtils.genCert(new X500Principal("CN=peer-CA"), keys, null);
+        
+        assertTrue(transport.checkIdentity(new Message(), peerID, reissued.cert));
+        assertEquals(1, transport.getIdentityCacheHits());
+        assertEquals(3, transport.getIdentityCacheMisses());
+        
+        assertTrue(transport.checkIdentity(new Message(), peerID, reissued.cert));
+        assertEquals(2, transport.getIdentityCacheHits());
+    }
+    
+    public static Test suite() {
+        TestSuite suite = new TestSuite(CbJxTransportTest.class);
+        
+        return suite;
+    }
+    
+    public static void main(java.lang.String[] args) {
+        junit.textui.TestRunner.run(suite());
+        
+        System.out.flush();
+        System.err.flush();
+    }
+}
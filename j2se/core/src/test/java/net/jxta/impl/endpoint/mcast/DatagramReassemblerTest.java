@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2002-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+
+package net.jxta.impl.endpoint.mcast;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class DatagramReassemblerTest extends TestCase {
+
+    private static final int DATAGRAM_SIZE = 116;
+
+    private final SocketAddress source1 = new InetSocketAddress("10.0.0.1", 1234);
+    private final SocketAddress source2 = new InetSocketAddress("10.0.0.2", 1234);
+
+    /**
+     * Splits a message into fragments as the transport does.
+     */
+    private static List<ByteBuffer> fragment(byte[] message, int messageId, int datagramSize) {
+        List<ByteBuffer> fragments = new ArrayList<ByteBuffer>();
+        int count = DatagramReassembler.fragmentCount(message.length, datagramSize);
+        int payload = datagramSize - DatagramReassembler.HEADER_SIZE;
+
+        for (int index = 0; index < count; index++) {
+            int length = Math.min(payload, message.length - index * payload);
+            byte[] datagram = new byte[DatagramReassembler.HEADER_SIZE + length];
+
+            DatagramReassembler.writeHeader(datagram, messageId, index, count, message.length);
+            System.arraycopy(message, index * payload, datagram, DatagramReassembler.HEADER_SIZE, length);
+            assertTrue(DatagramReassembler.isFragment(datagram, 0, datagram.length));
+            fragments.add(ByteBuffer.wrap(datagram));
+        }
+
+        return fragments;
+    }
+
+    private static byte[] message(int length, int seed) {
+        byte[] message = new byte[length];
+        new Random(seed).nextBytes(message);
+        return message;
+    }
+
+    public void testInOrder() throws Exception {
+        DatagramReassembler reassembler = new DatagramReassembler(1024 * 1024, 1024 * 1024, 5000);
+        byte[] message = message(1000, 1);
+        List<ByteBuffer> fragments = fragment(message, 7, DATAGRAM_SIZE);
+
+        assertEquals(10, fragments.size());
+
+        for (int index = 0; index < fragments.size() - 1; index++) {
+            assertNull(reassembler.add(source1, fragments.get(index), 0));
+        }
+        assertEquals(1, reassembler.getPendingCount());
+
+        assertTrue(Arrays.equals(message, reassembler.add(source1, fragments.get(fragments.size() - 1), 0)));
+        assertEquals(0, reassembler.getPendingCount());
+        assertEquals(0, reassembler.getPendingBytes());
+        assertEquals(1, reassembler.getReassembledCount());
+    }
+
+    public void testOutOfOrderAndDuplicates() throws Exception {
+        DatagramReassembler reassembler = new DatagramReassembler(1024 * 1024, 1024 * 1024, 5000);
+
+        // exact multiples and a last fragment arriving first
+        for (int length : new int[] {1000, 1001, 1100, 201}) {
+            byte[] message = message(length, length);
+            List<ByteBuffer> fragments = fragment(message, length, DATAGRAM_SIZE);
+
+            Collections.reverse(fragments);
+            byte[] result = null;
+
+            for (ByteBuffer aFragment : fragments) {
+                assertNull(result);
+                result = reassembler.add(source1, aFragment.duplicate(), 0);
+
+                // a duplicate of a fragment already received is ignored
+                if (null == result) {
+                    assertNull(reassembler.add(source1, aFragment.duplicate(), 0));
+                }
+            }
+
+            assertTrue(Arrays.equals(message, result));
+        }
+    }
+
+    public void testInterleavedSources() throws Exception {
+        DatagramReassembler reassembler = new DatagramReassembler(1024 * 1024, 1024 * 1024, 5000);
+        byte[] message1 = message(500, 1);
+        byte[] message2 = message(500, 2);
+        byte[] message3 = message(500, 3);
+
+        // the same message id from different sources are different messages
+        List<ByteBuffer> fragments1 = fragment(message1, 1, DATAGRAM_SIZE);
+        List<ByteBuffer> fragments2 = fragment(message2, 1, DATAGRAM_SIZE);
+        List<ByteBuffer> fragments3 = fragment(message3, 2, DATAGRAM_SIZE);
+
+        for (int index = 0; index < fragments1.size() - 1; index++) {
+            assertNull(reassembler.add(source1, fragments1.get(index), 0));
+            assertNull(reassembler.add(source2, fragments2.get(index), 0));
+            assertNull(reassembler.add(source1, fragments3.get(index), 0));
+        }
+        assertEquals(3, reassembler.getPendingCount());
+
+        assertTrue(Arrays.equals(message2, reassembler.add(source2, fragments2.get(fragments2.size() - 1), 0)));
+        assertTrue(Arrays.equals(message3, reassembler.add(source1, fragments3.get(fragments3.size() - 1), 0)));
+        assertTrue(Arrays.equals(message1, reassembler.add(source1, fragments1.get(fragments1.size() - 1), 0)));
+    }
+
+    public void testExpiry() throws Exception {
+        DatagramReassembler reassembler = new DatagramReassembler(1024 * 1024, 1024 * 1024, 5000);
+        List<ByteBuffer> fragments = fragment(message(500, 1), 1, DATAGRAM_SIZE);
+
+        assertNull(reassembler.add(source1, fragments.get(0), 1000));
+        reassembler.expire(5999);
+        assertEquals(1, reassembler.getPendingCount());
+
+        reassembler.expire(6000);
+        assertEquals(0, reassembler.getPendingCount());
+        assertEquals(1, reassembler.getExpiredCount());
+
+        // the late fragments start a new partial message which never completes
+        for (int index = 1; index < fragments.size(); index++) {
+            assertNull(reassembler.add(source1, fragments.get(index), 6000));
+        }
+        assertEquals(1, reassembler.getPendingCount());
+    }
+
+    public void testEvictionKeepsWithinPendingBytes() throws Exception {
+        DatagramReassembler reassembler = new DatagramReassembler(1000, 2500, 5000);
+
+        for (int id = 0; id < 5; id++) {
+            assertNull(reassembler.add(source1, fragment(message(1000, id), id, DATAGRAM_SIZE).get(0), 0));
+            assertTrue(reassembler.getPendingBytes() <= 2500);
+        }
+
+        assertEquals(2, reassembler.getPendingCount());
+        assertEquals(3, reassembler.getEvictedCount());
+
+        // the newest messages are the ones kept
+        byte[] message = message(1000, 4);
+        byte[] result = null;
+        for (ByteBuffer aFragment : fragment(message, 4, DATAGRAM_SIZE)) {
+            result = reassembler.add(source1, aFragment, 0);
+        }
+        assertTrue(Arrays.equals(message, result));
+    }
+
+    public void testMalformed() throws Exception {
+        DatagramReassembler reassembler = new DatagramReassembler(1000, 4000, 5000);
+
+        // too large
+        assertMalformed(reassembler, fragment(message(1001, 1), 1, DATAGRAM_SIZE).get(0));
+
+        // too short
+        assertMalformed(reassembler, ByteBuffer.wrap(new byte[DatagramReassembler.HEADER_SIZE]));
+
+        // a single fragment and an index beyond the count
+        byte[] datagram = new byte[DatagramReassembler.HEADER_SIZE + 10];
+        DatagramReassembler.writeHeader(datagram, 1, 0, 1, 10);
+        assertMalformed(reassembler, ByteBuffer.wrap(datagram));
+        DatagramReassembler.writeHeader(datagram, 1, 3, 2, 10);
+        assertMalformed(reassembler, ByteBuffer.wrap(datagram));
+
+        // a fragment length which is inconsistent with the earlier fragments
+        List<ByteBuffer> fragments = fragment(message(500, 1), 2, DATAGRAM_SIZE);
+        assertNull(reassembler.add(source1, fragments.get(0), 0));
+        ByteBuffer shortened = fragments.get(1).duplicate();
+        shortened.limit(shortened.limit() - 1);
+        assertMalformed(reassembler, shortened);
+        assertEquals(0, reassembler.getPendingCount());
+
+        // a last fragment which does not divide the remainder evenly
+        List<ByteBuffer> odd = fragment(message(500, 1), 3, DATAGRAM_SIZE);
+        ByteBuffer last = odd.get(odd.size() - 1);
+        ByteBuffer truncatedLast = ByteBuffer.wrap(Arrays.copyOf(last.array(), last.remaining() - 1));
+        assertMalformed(reassembler, truncatedLast);
+        assertEquals(0, reassembler.getPendingBytes());
+    }
+
+    private void assertMalformed(DatagramReassembler reassembler, ByteBuffer fragment) {
+        try {
+            reassembler.add(source1, fragment, 0);
+            fail("Accepted malformed fragment");
+        } catch (IOException expected) {
+            // expected
+        }
+    }
+}
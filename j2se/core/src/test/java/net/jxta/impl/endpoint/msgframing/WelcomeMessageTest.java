@@ -60,7 +60,12 @@ import java.io.*;
 
 import junit.framework.*;
 
+import net.jxta.document.MimeMediaType;
+import net.jxta.endpoint.EndpointAddress;
+import net.jxta.id.IDFactory;
 import net.jxta.impl.endpoint.msgframing.WelcomeMessage;
+import net.jxta.peer.PeerID;
+import net.jxta.peergroup.PeerGroupID;
 
 
 public class WelcomeMessageTest extends TestCase {
@@ -140,6 +145,55 @@ public class WelcomeMessageTest extends TestCase {
         }
     }
     
+    public void testContentEncodingsRoundTrip() throws IOException {
+        EndpointAddress dest = new EndpointAddress("tcp://209.128.126.120:9701");
+        EndpointAddress pub = new EndpointAddress("tcp://64.81.53.91:36815");
+        PeerID peer = IDFactory.newPeerID(PeerGroupID.defaultNetPeerGroupID);
+        MimeMediaType[] encodings = {new MimeMediaType("application/deflate"), new MimeMediaType("application/x-other")};
+        
+        WelcomeMessage sent = new WelcomeMessage(dest, pub, peer, false, 0, encodings);
+        
+        assertEquals("3.1", sent.getWelcomeVersion());
+        
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        
+        sent.sendToStream(out);
+        
+        WelcomeMessage received = new WelcomeMessage(new ByteArrayInputStream(out.toByteArray()));
+        
+        assertEquals("3.1", received.getWelcomeVersion());
+        assertEquals(peer, received.getPeerID());
+        assertEquals(pub, received.getPublicAddress());
+        assertEquals(dest, received.getDestinationAddress());
+        assertFalse(received.dontPropagate());
+        
+        MimeMediaType[] accepted = received.getContentEncodings();
+        
+        assertEquals(2, accepted.length);
+        assertEquals(encodings[0], accepted[0]);
+        assertEquals(encodings[1], accepted[1]);
+    }
+    
+    public void testNoContentEncodings() throws IOException {
+        EndpointAddress dest = new EndpointAddress("tcp://209.128.126.120:9701");
+        EndpointAddress pub = new EndpointAddress("tcp://64.81.53.91:36815");
+        PeerID peer = IDFactory.newPeerID(PeerGroupID.defaultNetPeerGroupID);
+        
+        WelcomeMessage sent = new WelcomeMessage(dest, pub, peer, true, 0, null);
+        
+        assertEquals("1.1", sent.getWelcomeVersion());
+        
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        
+        sent.sendToStream(out);
+        
+        WelcomeMessage received = new WelcomeMessage(new ByteArrayInputStream(out.toByteArray()));
+        
+        assertEquals("1.1", received.getWelcomeVersion());
+        assertTrue(received.dontPropagate());
+        assertEquals(0, received.getContentEncodings().length);
+    }
+    
     public static Test suite() {
         TestSuite suite = new TestSuite(WelcomeMessageTest.class);
 
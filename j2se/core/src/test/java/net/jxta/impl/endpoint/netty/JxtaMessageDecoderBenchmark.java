@@ -0,0 +1,132 @@
+package net.jxta.impl.endpoint.netty;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+import net.jxta.endpoint.ByteArrayMessageElement;
+import net.jxta.endpoint.Message;
+import net.jxta.endpoint.MessageElement;
+import net.jxta.endpoint.StringMessageElement;
+import net.jxta.endpoint.WireFormatMessage;
+import net.jxta.endpoint.WireFormatMessageFactory;
+import net.jxta.impl.endpoint.WireFormatMessageBinary;
+
+/**
+ * Compares the heap allocated per megabyte of received message data when messages are
+ * decoded by copying each element and when elements are backed by the receive buffer.
+ * <p>
+ * Usage: <code>JxtaMessageDecoderBenchmark [elementSize] [elementsPerMessage] [megabytes]</code>
+ * <p>
+ * Allocation is measured with the HotSpot per-thread allocation counter, when available.
+ */
+public class JxtaMessageDecoderBenchmark {
+
+    private static final double MB = 1024.0 * 1024.0;
+    
+    private interface Decoder {
+        Message decode(ByteBuffer contents) throws Exception;
+    }
+    
+    public static void main(String[] args) throws Exception {
+        int elementSize = (args.length > 0) ? Integer.parseInt(args[0]) : 64 * 1024;
+        int elementsPerMessage = (args.length > 1) ? Integer.parseInt(args[1]) : 4;
+        int megabytes = (args.length > 2) ? Integer.parseInt(args[2]) : 512;
+        
+        byte[] serialized = buildMessage(elementSize, elementsPerMessage);
+        int messages = (int) Math.max(1, (megabytes * MB) / serialized.length);
+        
+        Decoder copying = new Decoder() {
+            public Message decode(ByteBuffer contents) throws Exception {
+                return WireFormatMessageFactory.fromBuffer(contents, WireFormatMessageFactory.DEFAULT_WIRE_MIME, null);
+            }
+        };
+        
+        Decoder shared = new Decoder() {
+            public Message decode(ByteBuffer contents) throws Exception {
+                return WireFormatMessageBinary.fromSharedBuffer(contents);
+            }
+        };
+        
+        ByteBuffer heap = ByteBuffer.wrap(serialized);
+        ByteBuffer direct = ByteBuffer.allocateDirect(serialized.length);
+        direct.put(serialized);
+        direct.flip();
+        
+        System.out.println("message size " + serialized.length + " bytes, " + elementsPerMessage + " x " + elementSize + " byte elements, " + messages + " messages per run");
+        
+        // warm up
+        for(int run=0; run < 3; run++) {
+            run(copying, heap, messages / 4, false);
+            run(shared, heap, messages / 4, false);
+            run(shared, direct, messages / 4, false);
+        }
+        
+        run(copying, heap, messages, true, "copying / heap buffer");
+        run(copying, direct, messages, true, "copying / direct buffer");
+        run(shared, heap, messages, true, "shared  / heap buffer");
+        run(shared, direct, messages, true, "shared  / direct buffer");
+    }
+    
+    private static void run(Decoder decoder, ByteBuffer contents, int messages, boolean report) throws Exception {
+        run(decoder, contents, messages, report, null);
+    }
+    
+    private static void run(Decoder decoder, ByteBuffer contents, int messages, boolean report, String label) throws Exception {
+        long receivedBytes = 0;
+        long checksum = 0;
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        
+        for(int each=0; each < messages; each++) {
+            Message msg = decoder.decode(contents.duplicate());
+            receivedBytes += contents.remaining();
+            
+            Iterator<MessageElement> elements = msg.getMessageElements();
+            while(elements.hasNext()) {
+                checksum += elements.next().getByteLength();
+            }
+        }
+        
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+        
+        if(report) {
+            double receivedMB = receivedBytes / MB;
+            String allocation = (allocatedBefore < 0) ? "n/a" : String.format("%10.1f KB", (allocated / 1024.0) / receivedMB);
+            System.out.println(String.format("%-24s allocated per received MB : %s   throughput : %8.1f MB/s   (%d)", 
+                    label, allocation, receivedMB / (elapsed / 1e9), checksum));
+        }
+    }
+    
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        
+        if(threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        
+        return -1;
+    }
+    
+    private static byte[] buildMessage(int elementSize, int elementsPerMessage) throws Exception {
+        Message msg = new Message();
+        byte[] data = new byte[elementSize];
+        
+        for(int i=0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        
+        msg.addMessageElement("bench", new StringMessageElement("header", "benchmark", null));
+        for(int each=0; each < elementsPerMessage; each++) {
+            msg.addMessageElement("bench", new ByteArrayMessageElement("data" + each, null, data, null));
+        }
+        
+        WireFormatMessage wire = WireFormatMessageFactory.toWire(msg, WireFormatMessageFactory.DEFAULT_WIRE_MIME, null);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        wire.sendToStream(out);
+        return out.toByteArray();
+    }
+}
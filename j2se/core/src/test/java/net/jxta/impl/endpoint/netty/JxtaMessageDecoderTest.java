@@ -0,0 +1,147 @@
+package net.jxta.impl.endpoint.netty;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import net.jxta.endpoint.ByteArrayMessageElement;
+import net.jxta.endpoint.Message;
+import net.jxta.endpoint.MessageElement;
+import net.jxta.endpoint.StringMessageElement;
+import net.jxta.endpoint.WireFormatMessage;
+import net.jxta.endpoint.WireFormatMessageFactory;
+import net.jxta.impl.endpoint.ByteBufferMessageElement;
+import net.jxta.impl.endpoint.JxtaMessageMessageElement;
+import net.jxta.impl.endpoint.WireFormatMessageBinary;
+import net.jxta.impl.endpoint.msgframing.MessagePackageHeader;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JxtaMessageDecoderTest {
+
+    private static final int LARGE_ELEMENT_SIZE = 64 * 1024;
+    
+    private JxtaMessageDecoder decoder;
+    private Message original;
+    private byte[] payload;
+    private byte[] serialized;
+    
+    @Before
+    public void setUp() throws Exception {
+        decoder = new JxtaMessageDecoder();
+        
+        payload = new byte[LARGE_ELEMENT_SIZE];
+        for(int i=0; i < payload.length; i++) {
+            payload[i] = (byte)(i * 7);
+        }
+        
+        original = new Message();
+        original.addMessageElement("test", new StringMessageElement("small", "hello", null));
+        original.addMessageElement("test", new ByteArrayMessageElement("large", null, payload, null));
+        original.addMessageElement("test", new StringMessageElement("after", "still here", null));
+        
+        serialized = serialize(original);
+    }
+    
+    private static byte[] serialize(Message msg) throws IOException {
+        WireFormatMessage wire = WireFormatMessageFactory.toWire(msg, WireFormatMessageFactory.DEFAULT_WIRE_MIME, null);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        wire.sendToStream(out);
+        return out.toByteArray();
+    }
+    
+    private Message decode(ChannelBuffer contents) throws Exception {
+        MessagePackageHeader header = new MessagePackageHeader();
+        header.setContentTypeHeader(WireFormatMessageFactory.DEFAULT_WIRE_MIME);
+        header.setContentLengthHeader(contents.readableBytes());
+        
+        return (Message) decoder.decode(null, null, new SerializedMessage(header, contents));
+    }
+    
+    @Test
+    public void testDecodesHeapBufferWithoutCopying() throws Exception {
+        Message decoded = decode(ChannelBuffers.wrappedBuffer(serialized));
+        
+        MessageElement large = decoded.getMessageElement("test", "large");
+        assertTrue(large instanceof ByteBufferMessageElement);
+        assertArrayEquals(payload, large.getBytes(true));
+        assertEquals("hello", decoded.getMessageElement("test", "small").toString());
+        assertEquals("still here", decoded.getMessageElement("test", "after").toString());
+        
+        // the element shares the frame's bytes
+        serialized[indexOf(serialized, payload)] ^= 0xFF;
+        assertFalse(Arrays.equals(payload, large.getBytes(true)));
+    }
+    
+    @Test
+    public void testDecodesDirectBuffer() throws Exception {
+        ChannelBuffer direct = ChannelBuffers.directBuffer(serialized.length);
+        direct.writeBytes(serialized);
+        
+        Message decoded = decode(direct);
+        
+        MessageElement large = decoded.getMessageElement("test", "large");
+        assertTrue(large instanceof ByteBufferMessageElement);
+        assertEquals(payload.length, large.getByteLength());
+        assertArrayEquals(payload, large.getBytes(false));
+        
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        large.sendToStream(out);
+        assertArrayEquals(payload, out.toByteArray());
+        
+        assertEquals(new ByteArrayMessageElement("large", null, payload, null), large);
+        assertEquals(new ByteArrayMessageElement("large", null, payload, null).hashCode(), large.hashCode());
+    }
+    
+    @Test
+    public void testByteBufferIsReadOnlyView() throws Exception {
+        Message decoded = WireFormatMessageBinary.fromSharedBuffer(ByteBuffer.wrap(serialized));
+        
+        ByteBuffer view = ((ByteBufferMessageElement) decoded.getMessageElement("test", "large")).getByteBuffer();
+        assertTrue(view.isReadOnly());
+        assertEquals(ByteBuffer.wrap(payload), view);
+        
+        // reading the view does not consume the element data
+        view.get(new byte[view.remaining()]);
+        assertArrayEquals(payload, decoded.getMessageElement("test", "large").getBytes(true));
+    }
+    
+    @Test
+    public void testSmallElementsAreCopied() throws Exception {
+        Message decoded = WireFormatMessageBinary.fromSharedBuffer(ByteBuffer.wrap(serialized));
+        
+        assertFalse(decoded.getMessageElement("test", "small") instanceof ByteBufferMessageElement);
+    }
+    
+    @Test
+    public void testDecodesNestedMessage() throws Exception {
+        Message outer = new Message();
+        Message inner = new Message();
+        inner.addMessageElement("inner", new ByteArrayMessageElement("innerLarge", null, payload, null));
+        outer.addMessageElement("test", new JxtaMessageMessageElement("nested", WireFormatMessageFactory.DEFAULT_WIRE_MIME, inner, null));
+        outer.addMessageElement("test", new StringMessageElement("after", "still here", null));
+        
+        Message decoded = decode(ChannelBuffers.wrappedBuffer(serialize(outer)));
+        
+        assertEquals("still here", decoded.getMessageElement("test", "after").toString());
+    }
+    
+    private static int indexOf(byte[] haystack, byte[] needle) {
+        outer:
+        for(int i=0; i <= haystack.length - needle.length; i++) {
+            for(int j=0; j < needle.length; j++) {
+                if(haystack[i+j] != needle[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
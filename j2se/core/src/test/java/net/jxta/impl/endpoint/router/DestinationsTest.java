@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2002-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+
+package net.jxta.impl.endpoint.router;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import net.jxta.endpoint.AbstractMessenger;
+import net.jxta.endpoint.EndpointAddress;
+import net.jxta.endpoint.Message;
+import net.jxta.endpoint.Messenger;
+import net.jxta.peergroup.PeerGroupID;
+
+public class DestinationsTest extends TestCase {
+
+    private Destinations destinations;
+
+    private final EndpointAddress peer = new EndpointAddress("jxta", "uuid-peer", null, null);
+
+    @Override
+    protected void setUp() throws Exception {
+        // The endpoint is only used to renew outgoing messengers which were collected.
+        destinations = new Destinations(null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        destinations.close();
+    }
+
+    public void testIncomingMessengerIsPreferred() {
+        StubMessenger outgoing = new StubMessenger("tcp://10.0.0.1:9701");
+        StubMessenger incoming = new StubMessenger("tcp://10.0.0.1:9701");
+
+        assertTrue(destinations.addOutgoingMessenger(peer, outgoing));
+        assertSame(outgoing, destinations.getCurrentMessenger(peer));
+
+        assertTrue(destinations.addIncomingMessenger(peer, incoming));
+        assertSame(incoming, destinations.getCurrentMessenger(peer));
+
+        // lookups are made with the base address
+        assertSame(incoming, destinations.getCurrentMessenger(new EndpointAddress(peer, "EndpointRouter", null)));
+        assertEquals(1, destinations.allDestinations().size());
+    }
+
+    public void testBrokenIncomingFallsBackToOutgoing() {
+        StubMessenger outgoing = new StubMessenger("tcp://10.0.0.1:9701");
+        StubMessenger incoming = new StubMessenger("tcp://10.0.0.1:9701");
+
+        destinations.addOutgoingMessenger(peer, outgoing);
+        destinations.addIncomingMessenger(peer, incoming);
+
+        incoming.state = Messenger.BROKEN;
+        assertSame(outgoing, destinations.getCurrentMessenger(peer));
+        assertTrue(destinations.isNormallyReachable(peer));
+        assertTrue(destinations.isCurrentlyReachable(peer));
+    }
+
+    public void testNoOutgoingMessenger() {
+        destinations.addOutgoingMessenger(peer, new StubMessenger("tcp://10.0.0.1:9701"));
+        destinations.noOutgoingMessenger(peer);
+
+        assertNull(destinations.getCurrentMessenger(peer));
+        assertFalse(destinations.isNormallyReachable(peer));
+        assertFalse(destinations.isCurrentlyReachable(peer));
+    }
+
+    public void testUnknownDestination() {
+        assertNull(destinations.getCurrentMessenger(peer));
+        assertFalse(destinations.isCurrentlyReachable(peer));
+        assertFalse(destinations.isWelcomeNeeded(peer));
+    }
+
+    public void testWelcomeIsNeededOnce() {
+        destinations.addIncomingMessenger(peer, new StubMessenger("tcp://10.0.0.1:9701"));
+
+        assertTrue(destinations.isWelcomeNeeded(peer));
+        assertFalse(destinations.isWelcomeNeeded(peer));
+    }
+
+    public void testConcurrentAddsAndLookups() throws Exception {
+        final int threads = 8;
+        final int perThread = 500;
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicInteger missing = new AtomicInteger();
+
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < perThread; i++) {
+                            // half of the destinations are shared by two threads.
+                            int id = (i % 2 == 0) ? (thread / 2) * perThread + i : thread * perThread + i + threads * perThread;
+                            EndpointAddress dest = new EndpointAddress("jxta", "uuid-" + id, null, null);
+
+                            destinations.addIncomingMessenger(dest, new StubMessenger("tcp://10.0.0.1:9701"));
+                            if (destinations.getCurrentMessenger(dest) == null) {
+                                missing.incrementAndGet();
+                            }
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertEquals(0, missing.get());
+        assertEquals(threads * perThread * 3 / 4, destinations.allDestinations().size());
+    }
+
+    private static class StubMessenger extends AbstractMessenger {
+
+        volatile int state = Messenger.CONNECTED;
+
+        StubMessenger(String address) {
+            super(new EndpointAddress(address));
+        }
+
+        public int getState() {
+            return state;
+        }
+
+        public EndpointAddress getLogicalDestinationAddress() {
+            return getDestinationAddress();
+        }
+
+        public Messenger getChannelMessenger(PeerGroupID redirection, String service, String serviceParam) {
+            return null;
+        }
+
+        public void close() {
+            state = Messenger.CLOSED;
+        }
+
+        public void resolve() {
+        }
+
+        public void sendMessageB(Message msg, String service, String serviceParam) throws IOException {
+        }
+
+        public boolean sendMessageN(Message msg, String service, String serviceParam) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2002-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+
+package net.jxta.impl.endpoint.router;
+
+import junit.framework.TestCase;
+import net.jxta.endpoint.EndpointAddress;
+
+public class RouteLookupMetricsTest extends TestCase {
+
+    private final EndpointAddress dest = new EndpointAddress("jxta", "uuid-dest", null, null);
+    private final EndpointAddress hop = new EndpointAddress("jxta", "uuid-hop", null, null);
+
+    public void testEmpty() {
+        RouteLookupMetrics metrics = new RouteLookupMetrics();
+
+        assertEquals(0, metrics.getLookupCount());
+        assertEquals(0, metrics.getAverageNanos());
+        assertEquals(0, metrics.getPercentileNanos(0.99));
+    }
+
+    public void testOutcomes() {
+        RouteLookupMetrics metrics = new RouteLookupMetrics();
+
+        metrics.record(dest, dest, 100);
+        metrics.record(dest, hop, 300);
+        metrics.record(dest, null, 500);
+
+        assertEquals(3, metrics.getLookupCount());
+        assertEquals(1, metrics.getDirectCount());
+        assertEquals(1, metrics.getRoutedCount());
+        assertEquals(1, metrics.getFailedCount());
+        assertEquals(300, metrics.getAverageNanos());
+        assertEquals(500, metrics.getMaxNanos());
+    }
+
+    public void testPercentilesAreUpperBounds() {
+        RouteLookupMetrics metrics = new RouteLookupMetrics();
+
+        for (int i = 0; i < 99; i++) {
+            metrics.record(dest, dest, 1000);
+        }
+        metrics.record(dest, dest, 1000000);
+
+        long p50 = metrics.getPercentileNanos(0.5);
+        long p99 = metrics.getPercentileNanos(0.99);
+        long p100 = metrics.getPercentileNanos(1.0);
+
+        assertTrue(p50 >= 1000 && p50 < 2000);
+        assertEquals(p50, p99);
+        assertTrue(p100 >= 1000000 && p100 < 2000000);
+    }
+
+    public void testBadFraction() {
+        try {
+            new RouteLookupMetrics().getPercentileNanos(1.5);
+            fail("fraction > 1 accepted");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+    }
+}
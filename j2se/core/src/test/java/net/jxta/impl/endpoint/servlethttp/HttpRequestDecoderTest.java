@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2002-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+
+package net.jxta.impl.endpoint.servlethttp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+public class HttpRequestDecoderTest extends TestCase {
+
+    private static ByteBuffer bytes(String text) throws IOException {
+        return ByteBuffer.wrap(text.getBytes("ISO-8859-1"));
+    }
+
+    private static String string(ByteBuffer out) throws IOException {
+        out.flip();
+        byte[] content = new byte[out.remaining()];
+        out.get(content);
+        return new String(content, "ISO-8859-1");
+    }
+
+    public void testPingRequest() throws Exception {
+        HttpRequestDecoder decoder = new HttpRequestDecoder();
+
+        assertTrue(decoder.decodeHead(bytes("GET / HTTP/1.1\r\nHost: example\r\n\r\n")));
+        assertTrue(decoder.isComplete());
+        assertEquals("GET", decoder.getMethod());
+        assertEquals("/", decoder.getPath());
+        assertNull(decoder.getQuery());
+        assertEquals("example", decoder.getHeader("HOST"));
+        assertFalse(decoder.hasBody());
+        assertTrue(decoder.isKeepAlive());
+    }
+
+    public void testPollRequestSplitAcrossReads() throws Exception {
+        String request = "GET /uuid-1234/?120000,120000,jxta://uuid-5678/EndpointService:jxta-NetGroup HTTP/1.1\r\n"
+                + "X-JXTA-Stream: 1\r\n\r\n";
+        HttpRequestDecoder decoder = new HttpRequestDecoder();
+        ByteBuffer in = bytes(request);
+        boolean complete = false;
+
+        for (int end = 1; end <= request.length(); end++) {
+            in.limit(end);
+            complete = decoder.decodeHead(in);
+            assertEquals(end == request.length(), complete);
+        }
+
+        assertEquals("/uuid-1234/", decoder.getPath());
+        assertEquals("120000,120000,jxta://uuid-5678/EndpointService:jxta-NetGroup", decoder.getQuery());
+        assertEquals("1", decoder.getHeader(ServletHttpTransport.STREAM_HEADER));
+    }
+
+    public void testContentLengthBody() throws Exception {
+        HttpRequestDecoder decoder = new HttpRequestDecoder();
+        ByteBuffer in = bytes("POST / HTTP/1.0\r\nContent-Length: 5\r\n\r\nhelloGET");
+        ByteBuffer out = ByteBuffer.allocate(16);
+
+        assertTrue(decoder.decodeHead(in));
+        assertFalse(decoder.isComplete());
+        assertFalse(decoder.isKeepAlive());
+        assertEquals(5, decoder.getContentLength());
+        assertEquals(5, decoder.decodeBody(in, out));
+        assertTrue(decoder.isComplete());
+        assertEquals("hello", string(out));
+
+        // the next request is left unconsumed
+        assertEquals(3, in.remaining());
+    }
+
+    public void testChunkedBody() throws Exception {
+        String request = "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "5;ext=1\r\nhello\r\n" + "1\r\n \r\n" + "A\r\n0123456789\r\n" + "0\r\nTrailer: x\r\n\r\n";
+        HttpRequestDecoder decoder = new HttpRequestDecoder();
+        ByteBuffer in = bytes(request);
+
+        assertTrue(decoder.decodeHead(in));
+        assertTrue(decoder.isChunked());
+        assertTrue(decoder.hasBody());
+
+        // deliver the body a byte at a time into a small output buffer.
+        ByteBuffer out = ByteBuffer.allocate(64);
+        int bodyStart = in.position();
+
+        for (int end = bodyStart + 1; end <= request.length(); end++) {
+            in.limit(end);
+            decoder.decodeBody(in, out);
+            assertEquals(end == request.length(), decoder.isComplete());
+        }
+
+        assertEquals("hello 0123456789", string(out));
+    }
+
+    public void testChunkedBodyFullOutput() throws Exception {
+        HttpRequestDecoder decoder = new HttpRequestDecoder();
+        ByteBuffer in = bytes("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n8\r\n01234567\r\n0\r\n\r\n");
+
+        assertTrue(decoder.decodeHead(in));
+
+        ByteBuffer out = ByteBuffer.allocate(3);
+
+        assertEquals(3, decoder.decodeBody(in, out));
+        assertFalse(decoder.isComplete());
+
+        ByteBuffer larger = ByteBuffer.allocate(8);
+
+        out.flip();
+        larger.put(out);
+        assertEquals(5, decoder.decodeBody(in, larger));
+        assertTrue(decoder.isComplete());
+        assertEquals("01234567", string(larger));
+    }
+
+    public void testReset() throws Exception {
+        HttpRequestDecoder decoder = new HttpRequestDecoder();
+        ByteBuffer in = bytes("GET /a HTTP/1.1\r\nConnection: close\r\n\r\nGET /b?1 HTTP/1.1\r\n\r\n");
+
+        assertTrue(decoder.decodeHead(in));
+        assertEquals("/a", decoder.getPath());
+        assertFalse(decoder.isKeepAlive());
+
+        decoder.reset();
+
+        assertTrue(decoder.decodeHead(in));
+        assertEquals("/b", decoder.getPath());
+        assertEquals("1", decoder.getQuery());
+        assertTrue(decoder.isKeepAlive());
+        assertFalse(in.hasRemaining());
+    }
+
+    public void testMalformedRequests() throws Exception {
+        String[] bad = {
+            "GET\r\n\r\n",
+            "GET / SPDY/3\r\n\r\n",
+            "GET / HTTP/1.1\r\nNoColon\r\n\r\n",
+            "POST / HTTP/1.1\r\nContent-Length: -4\r\n\r\n",
+            "POST / HTTP/1.1\r\nTransfer-Encoding: gzip\r\n\r\n"
+        };
+
+        for (String request : bad) {
+            try {
+                new HttpRequestDecoder().decodeHead(bytes(request));
+                fail("Accepted " + request);
+            } catch (IOException expected) {
+                // expected
+            }
+        }
+
+        HttpRequestDecoder decoder = new HttpRequestDecoder();
+        ByteBuffer in = bytes("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\nzz\r\n");
+
+        assertTrue(decoder.decodeHead(in));
+        try {
+            decoder.decodeBody(in, ByteBuffer.allocate(16));
+            fail("Accepted bad chunk size");
+        } catch (IOException expected) {
+            // expected
+        }
+    }
+
+    public void testHeadTooLarge() throws Exception {
+        StringBuilder request = new StringBuilder("GET / HTTP/1.1\r\n");
+
+        while (request.length() <= HttpRequestDecoder.MAX_HEAD_SIZE) {
+            request.append("X-Filler: 0123456789012345678901234567890123456789\r\n");
+        }
+
+        try {
+            new HttpRequestDecoder().decodeHead(bytes(request.toString()));
+            fail("Accepted oversized head");
+        } catch (IOException expected) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,381 @@
+/*
+ * Copyright (c) 2002-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+
+package net.jxta.impl.endpoint.servlethttp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+import net.jxta.endpoint.EndpointAddress;
+import net.jxta.endpoint.EndpointService;
+import net.jxta.endpoint.Message;
+import net.jxta.endpoint.MessageElement;
+import net.jxta.endpoint.MessengerEvent;
+import net.jxta.endpoint.MessengerEventListener;
+import net.jxta.endpoint.StringMessageElement;
+import net.jxta.id.IDFactory;
+import net.jxta.impl.util.threads.TaskManager;
+import net.jxta.peer.PeerID;
+import net.jxta.peergroup.PeerGroup;
+import net.jxta.peergroup.PeerGroupID;
+
+/**
+ * Sends messages with an {@link HttpClientMessenger} to an
+ * {@link HttpStreamReceiver} over loopback, in streaming mode.
+ */
+public class HttpStreamLoopbackTest extends TestCase {
+
+    private static final String SEQUENCE_ELEMENT = "seq";
+
+    /**
+     * Forwards connections to the receiver. It may discard what the client
+     * or the receiver sends and break all of its connections.
+     */
+    private static class Relay implements Runnable {
+        final ServerSocket server;
+        final InetSocketAddress target;
+        final List<Socket> sockets = Collections.synchronizedList(new ArrayList<Socket>());
+        volatile boolean discard = false;
+        volatile boolean discardToClient = false;
+
+        Relay(InetSocketAddress target) throws IOException {
+            this.target = target;
+            server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+
+            Thread accepter = new Thread(this, "Relay to " + target);
+
+            accepter.setDaemon(true);
+            accepter.start();
+        }
+
+        public void run() {
+            while (!server.isClosed()) {
+                try {
+                    Socket client = server.accept();
+                    Socket upstream = new Socket(target.getAddress(), target.getPort());
+
+                    sockets.add(client);
+                    sockets.add(upstream);
+                    pump(client, upstream, true);
+                    pump(upstream, client, false);
+                } catch (IOException closed) {
+                    return;
+                }
+            }
+        }
+
+        private void pump(final Socket from, final Socket to, final boolean fromClient) {
+            Thread pump = new Thread(new Runnable() {
+                public void run() {
+                    byte[] buffer = new byte[4096];
+
+                    try {
+                        InputStream in = from.getInputStream();
+                        OutputStream out = to.getOutputStream();
+                        int count;
+
+                        while ((count = in.read(buffer)) >= 0) {
+                            if (!(fromClient ? discard : discardToClient)) {
+                                out.write(buffer, 0, count);
+                                out.flush();
+                            }
+                        }
+                    } catch (IOException broken) {// broken
+                    }
+
+                    close(from);
+                    close(to);
+                }
+            }, "Relay pump");
+
+            pump.setDaemon(true);
+            pump.start();
+        }
+
+        void breakConnections() {
+            List<Socket> breaking;
+
+            synchronized (sockets) {
+                breaking = new ArrayList<Socket>(sockets);
+                sockets.clear();
+            }
+            for (Socket socket : breaking) {
+                close(socket);
+            }
+        }
+
+        void close() {
+            try {
+                server.close();
+            } catch (IOException ignored) {// ignored
+            }
+            breakConnections();
+        }
+
+        private static void close(Socket socket) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {// ignored
+            }
+        }
+    }
+
+    private final List<Integer> received = Collections.synchronizedList(new ArrayList<Integer>());
+    private ServletHttpTransport transport;
+    private HttpStreamReceiver receiver;
+    private Relay relay;
+    private HttpClientMessenger messenger;
+
+    @Override
+    protected void setUp() throws Exception {
+        HttpClientMessenger.ackTimeout = 3000;
+
+        final PeerID serverPeer = IDFactory.newPeerID(PeerGroupID.defaultNetPeerGroupID);
+
+        final PeerGroup group = (PeerGroup) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] {PeerGroup.class}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if ("getPeerID".equals(method.getName())) {
+                    return serverPeer;
+                } else if ("getPeerGroupID".equals(method.getName())) {
+                    return PeerGroupID.defaultNetPeerGroupID;
+                } else if ("getHomeThreadGroup".equals(method.getName())) {
+                    return Thread.currentThread().getThreadGroup();
+                }
+
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+
+        final MessengerEventListener listener = new MessengerEventListener() {
+            public boolean messengerReady(MessengerEvent event) {
+                // Keep the back channel.
+                return true;
+            }
+        };
+
+        EndpointService endpoint = (EndpointService) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] {EndpointService.class}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if ("getGroup".equals(method.getName())) {
+                    return group;
+                } else if ("addMessageTransport".equals(method.getName())) {
+                    return listener;
+                } else if ("removeMessageTransport".equals(method.getName())) {
+                    return true;
+                } else if ("processIncomingMessage".equals(method.getName())) {
+                    MessageElement seq = ((Message) args[0]).getMessageElement(SEQUENCE_ELEMENT);
+
+                    if (null != seq) {
+                        received.add(Integer.valueOf(seq.toString()));
+                    }
+                    return null;
+                }
+
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+
+        transport = new ServletHttpTransport();
+        transport.group = group;
+        transport.executor = TaskManager.getTaskManager().getExecutorService();
+        transport.streaming = true;
+
+        Field endpointField = ServletHttpTransport.class.getDeclaredField("endpoint");
+
+        endpointField.setAccessible(true);
+        endpointField.set(transport, endpoint);
+
+        receiver = new HttpStreamReceiver(transport, Collections.<EndpointAddress>emptyList(), InetAddress.getByName("127.0.0.1"), 0);
+        receiver.start();
+        relay = new Relay(receiver.getLocalSocketAddress());
+
+        PeerID clientPeer = IDFactory.newPeerID(PeerGroupID.defaultNetPeerGroupID);
+        EndpointAddress srcAddr = new EndpointAddress("jxta", clientPeer.getUniqueValue().toString(), null, null);
+        EndpointAddress destAddr = new EndpointAddress("http", "127.0.0.1:" + relay.server.getLocalPort(), null, null);
+
+        messenger = new HttpClientMessenger(transport, srcAddr, destAddr);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        messenger.close();
+        relay.close();
+        receiver.stop();
+        HttpClientMessenger.ackTimeout = 15000;
+    }
+
+    private void send(int seq) throws IOException {
+        Message msg = new Message();
+
+        msg.addMessageElement(new StringMessageElement(SEQUENCE_ELEMENT, Integer.toString(seq), null));
+        messenger.sendMessageB(msg, "test", null);
+    }
+
+    private void awaitReceived(int count) throws InterruptedException {
+        long wait = System.currentTimeMillis() + 20000;
+
+        while (((received.size() < count) || (messenger.getUnacknowledgedCount() > 0)) && (System.currentTimeMillis() < wait)) {
+            Thread.sleep(50);
+        }
+    }
+
+    public void testMessagesAreReceivedOnce() throws Exception {
+        int count = 3 * HttpClientMessenger.MAX_UNACKNOWLEDGED + 5;
+
+        for (int seq = 0; seq < count; seq++) {
+            send(seq);
+        }
+
+        awaitReceived(count);
+
+        assertEquals(0, messenger.getUnacknowledgedCount());
+
+        // The receiver hands messages to the endpoint from the executor.
+        List<Integer> sorted = new ArrayList<Integer>(received);
+
+        Collections.sort(sorted);
+        assertEquals(count, sorted.size());
+        for (int seq = 0; seq < count; seq++) {
+            assertEquals(seq, sorted.get(seq).intValue());
+        }
+    }
+
+    public void testMessagesLostWithUpstreamAreResent() throws Exception {
+        send(0);
+        awaitReceived(1);
+        assertEquals(Collections.singletonList(0), received);
+
+        // The messages reach our socket but never the server.
+        relay.discard = true;
+        for (int seq = 1; seq <= 5; seq++) {
+            send(seq);
+        }
+        assertEquals(5, messenger.getUnacknowledgedCount());
+        relay.breakConnections();
+        relay.discard = false;
+
+        awaitReceived(6);
+
+        assertEquals(0, messenger.getUnacknowledgedCount());
+        assertEquals(6, received.size());
+        for (int seq = 0; seq <= 5; seq++) {
+            assertTrue("missing " + seq, received.contains(seq));
+        }
+    }
+
+    public void testMessagesWithLostAcknowledgementsAreNotDuplicated() throws Exception {
+        send(0);
+        awaitReceived(1);
+
+        // The server receives the messages but we never see its acknowledgements.
+        relay.discardToClient = true;
+        for (int seq = 1; seq <= 5; seq++) {
+            send(seq);
+        }
+
+        // Let the messages be sent again once.
+        Thread.sleep(HttpClientMessenger.ackTimeout + 2000);
+        assertEquals(5, messenger.getUnacknowledgedCount());
+        assertFalse(messenger.isClosed());
+
+        relay.breakConnections();
+        relay.discardToClient = false;
+
+        awaitReceived(6);
+
+        assertEquals(0, messenger.getUnacknowledgedCount());
+        assertEquals(6, received.size());
+        assertEquals(6, receiver.getMessagesReceived());
+    }
+
+    public void testUnacknowledgedMessagesFailTheMessenger() throws Exception {
+        send(0);
+        awaitReceived(1);
+
+        relay.discard = true;
+        for (int seq = 1; seq <= 3; seq++) {
+            send(seq);
+        }
+
+        long wait = System.currentTimeMillis() + 20000;
+
+        while (!messenger.isClosed() && (System.currentTimeMillis() < wait)) {
+            Thread.sleep(50);
+        }
+
+        assertTrue(messenger.isClosed());
+        assertEquals(3, messenger.getUnacknowledgedCount());
+
+        try {
+            send(4);
+            fail("Messenger should have been closed");
+        } catch (IOException expected) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,430 @@
+/*
+ * Copyright (c) 2002-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+
+package net.jxta.impl.endpoint.tcp;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.locks.ReentrantLock;
+
+import junit.framework.TestCase;
+import net.jxta.endpoint.ByteArrayMessageElement;
+import net.jxta.endpoint.EndpointAddress;
+import net.jxta.endpoint.Message;
+import net.jxta.endpoint.MessengerEvent;
+import net.jxta.endpoint.MessengerEventListener;
+import net.jxta.endpoint.StringMessageElement;
+import net.jxta.endpoint.WireFormatMessageFactory;
+import net.jxta.id.IDFactory;
+import net.jxta.impl.endpoint.msgframing.MessagePackageHeader;
+import net.jxta.impl.endpoint.msgframing.WelcomeMessage;
+import net.jxta.peer.PeerID;
+import net.jxta.peergroup.PeerGroup;
+import net.jxta.peergroup.PeerGroupID;
+
+/**
+ * Sends messages with a {@link TcpMessenger} over a loopback connection to
+ * check its gathering and coalesced writes.
+ */
+public class TcpMessengerWriteTest extends TestCase {
+
+    private static final String NAMESPACE = "test";
+    private static final String SENDER_ELEMENT = "sender";
+    private static final String SEQUENCE_ELEMENT = "seq";
+    private static final String PAYLOAD_ELEMENT = "payload";
+
+    private boolean coalesceWrites;
+    private boolean contentEncoding;
+    private ServerSocketChannel server;
+    private TcpTransport transport;
+    private TcpMessenger messenger;
+    private SocketChannel peer;
+    private DataInputStream peerIn;
+
+    @Override
+    protected void setUp() throws Exception {
+        coalesceWrites = TcpTransport.coalesceWrites;
+        contentEncoding = TcpTransport.contentEncoding;
+
+        final PeerID localPeer = IDFactory.newPeerID(PeerGroupID.defaultNetPeerGroupID);
+        final PeerID remotePeer = IDFactory.newPeerID(PeerGroupID.defaultNetPeerGroupID);
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+
+        // A small receive window makes large writes complete in several parts.
+        server = ServerSocketChannel.open();
+        server.socket().setReceiveBufferSize(4096);
+        server.socket().bind(new InetSocketAddress(loopback, 0));
+
+        transport = new TcpTransport();
+        TcpTransport.coalesceWrites = true;
+        TcpTransport.contentEncoding = false;
+        transport.group = (PeerGroup) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] {PeerGroup.class}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if ("getPeerID".equals(method.getName())) {
+                    return localPeer;
+                } else if ("getPeerGroupID".equals(method.getName())) {
+                    return PeerGroupID.defaultNetPeerGroupID;
+                }
+                return null;
+            }
+        });
+        transport.usingInterface = loopback;
+        transport.messengerSelector = Selector.open();
+        setField(transport, "publicAddress", new EndpointAddress("tcp", "127.0.0.1:9701", null, null));
+        setField(transport, "messengerEventListener", new MessengerEventListener() {
+            public boolean messengerReady(MessengerEvent event) {
+                return true;
+            }
+        });
+
+        // The peer answers the welcome as soon as it accepts the connection.
+        final EndpointAddress remoteAddress = new EndpointAddress("tcp", "127.0.0.1:" + server.socket().getLocalPort(), null, null);
+        final IOException[] acceptFailure = new IOException[1];
+        Thread accepter = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    peer = server.accept();
+                    ByteBuffer welcome = new WelcomeMessage(remoteAddress, remoteAddress, remotePeer, false).getByteBuffer();
+
+                    while (welcome.hasRemaining()) {
+                        peer.write(welcome);
+                    }
+                } catch (IOException failed) {
+                    acceptFailure[0] = failed;
+                }
+            }
+        }, "Accepter");
+
+        accepter.start();
+        messenger = new TcpMessenger(remoteAddress, transport, false);
+        accepter.join();
+        if (null != acceptFailure[0]) {
+            throw acceptFailure[0];
+        }
+
+        peerIn = new DataInputStream(new BufferedInputStream(peer.socket().getInputStream()));
+        // The messenger's own welcome.
+        new WelcomeMessage(peerIn);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        messenger.closeImpl();
+        if (null != peer) {
+            peer.close();
+        }
+        server.close();
+        transport.messengerSelector.close();
+        TcpTransport.coalesceWrites = coalesceWrites;
+        TcpTransport.contentEncoding = contentEncoding;
+    }
+
+    public void testConcurrentSmallSendersKeepFramesIntactAndOrdered() throws Exception {
+        final int senders = 8;
+        final int messages = 200;
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int sender = 0; sender < senders; sender++) {
+            threads.add(startSender(sender, messages, 1000, failures));
+        }
+
+        int[] next = new int[senders];
+
+        for (int each = 0; each < senders * messages; each++) {
+            checkMessage(readMessage(), next);
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(Collections.emptyList(), failures);
+        for (int sender = 0; sender < senders; sender++) {
+            assertEquals(messages, next[sender]);
+        }
+    }
+
+    public void testPartialWritesResumeAcrossBufferBoundaries() throws Exception {
+        final int senders = 4;
+        final int messages = 20;
+        final int elements = 5;
+        final int elementSize = 100003;
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> threads = new ArrayList<Thread>();
+
+        // Far more than the socket buffers hold, in buffers of an odd size,
+        // so that the writes stop part way through the buffers.
+        final Message large = new Message();
+
+        for (int element = 0; element < elements; element++) {
+            large.addMessageElement(NAMESPACE, new ByteArrayMessageElement("large" + element, null, payload(-1, element, elementSize), null));
+        }
+        threads.add(startThread(new Runnable() {
+            public void run() {
+                try {
+                    messenger.sendMessageBImpl(large, "service", null);
+                } catch (IOException failed) {
+                    throw new RuntimeException(failed);
+                }
+            }
+        }, failures));
+
+        for (int sender = 0; sender < senders; sender++) {
+            threads.add(startSender(sender, messages, 300, failures));
+        }
+
+        // Let the writers fill the socket buffers before reading anything.
+        Thread.sleep(500);
+
+        int[] next = new int[senders];
+        boolean sawLarge = false;
+
+        for (int each = 0; each < 1 + senders * messages; each++) {
+            Message received = readMessage();
+
+            if (null != received.getMessageElement(NAMESPACE, "large0")) {
+                assertFalse(sawLarge);
+                sawLarge = true;
+                for (int element = 0; element < elements; element++) {
+                    assertTrue(Arrays.equals(payload(-1, element, elementSize),
+                            received.getMessageElement(NAMESPACE, "large" + element).getBytes(false)));
+                }
+            } else {
+                checkMessage(received, next);
+            }
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(Collections.emptyList(), failures);
+        assertTrue(sawLarge);
+        for (int sender = 0; sender < senders; sender++) {
+            assertEquals(messages, next[sender]);
+        }
+    }
+
+    public void testWriteFailureReachesEveryMessageOfTheBatch() throws Exception {
+        final int senders = 6;
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+
+        // The peer never reads, so this write holds the write lock until the
+        // connection fails.
+        final Message large = new Message();
+
+        large.addMessageElement(NAMESPACE, new ByteArrayMessageElement("large", null, payload(-1, 0, 2 * 1024 * 1024), null));
+        Thread largeSender = startThread(new Runnable() {
+            public void run() {
+                try {
+                    messenger.sendMessageBImpl(large, "service", null);
+                } catch (IOException failed) {
+                    throw new RuntimeException(failed);
+                }
+            }
+        }, failures);
+
+        ReentrantLock writeLock = (ReentrantLock) getField(messenger, "writeLock");
+
+        while (!writeLock.isLocked()) {
+            Thread.sleep(10);
+        }
+
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int sender = 0; sender < senders; sender++) {
+            threads.add(startSender(sender, 1, 100, failures));
+        }
+
+        // Wait for all of the small messages to queue behind the write lock.
+        Queue<?> pendingWrites = (Queue<?>) getField(messenger, "pendingWrites");
+
+        while (pendingWrites.size() < senders) {
+            Thread.sleep(10);
+        }
+
+        // Reset the connection.
+        peer.socket().setSoLinger(true, 0);
+        peer.close();
+
+        largeSender.join();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(1 + senders, failures.size());
+        assertTrue(pendingWrites.isEmpty());
+
+        // Every small message was written in one batch and sees its failure.
+        List<Throwable> batchFailures = new ArrayList<Throwable>();
+
+        for (Throwable failure : failures) {
+            Throwable sendFailure = failure.getCause();
+
+            assertTrue(sendFailure instanceof IOException);
+            if ("Coalesced write failed".equals(sendFailure.getCause().getMessage())) {
+                batchFailures.add(sendFailure.getCause().getCause());
+            }
+        }
+
+        assertEquals(senders, batchFailures.size());
+        for (Throwable batchFailure : batchFailures) {
+            assertNotNull(batchFailure);
+            assertSame(batchFailures.get(0), batchFailure);
+        }
+    }
+
+    /**
+     * Starts a thread which sends small messages, numbered in order.
+     */
+    private Thread startSender(final int sender, final int messages, final int maxPayload, List<Throwable> failures) {
+        return startThread(new Runnable() {
+            public void run() {
+                for (int seq = 0; seq < messages; seq++) {
+                    Message msg = new Message();
+
+                    msg.addMessageElement(NAMESPACE, new StringMessageElement(SENDER_ELEMENT, Integer.toString(sender), null));
+                    msg.addMessageElement(NAMESPACE, new StringMessageElement(SEQUENCE_ELEMENT, Integer.toString(seq), null));
+                    msg.addMessageElement(NAMESPACE, new ByteArrayMessageElement(PAYLOAD_ELEMENT, null, payload(sender, seq, 1 + (seq * 37) % maxPayload), null));
+                    try {
+                        messenger.sendMessageBImpl(msg, "service", null);
+                    } catch (IOException failed) {
+                        throw new RuntimeException(failed);
+                    }
+                }
+            }
+        }, failures);
+    }
+
+    private static Thread startThread(final Runnable task, final List<Throwable> failures) {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    task.run();
+                } catch (Throwable failed) {
+                    failures.add(failed);
+                }
+            }
+        }, "Sender");
+
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Checks that a small message is intact and the next one of its sender.
+     */
+    private static void checkMessage(Message received, int[] next) {
+        int sender = Integer.parseInt(received.getMessageElement(NAMESPACE, SENDER_ELEMENT).toString());
+        int seq = Integer.parseInt(received.getMessageElement(NAMESPACE, SEQUENCE_ELEMENT).toString());
+        byte[] data = received.getMessageElement(NAMESPACE, PAYLOAD_ELEMENT).getBytes(false);
+
+        assertEquals(next[sender], seq);
+        assertTrue(Arrays.equals(payload(sender, seq, data.length), data));
+        next[sender]++;
+    }
+
+    private static byte[] payload(int sender, int seq, int length) {
+        byte[] data = new byte[length];
+
+        for (int each = 0; each < length; each++) {
+            data[each] = (byte) (sender * 31 + seq * 7 + each);
+        }
+        return data;
+    }
+
+    /**
+     * Reads the next framed message sent by the messenger.
+     */
+    private Message readMessage() throws IOException {
+        MessagePackageHeader header = new MessagePackageHeader(peerIn);
+        byte[] body = new byte[(int) header.getContentLengthHeader()];
+
+        peerIn.readFully(body);
+        return WireFormatMessageFactory.fromBuffer(ByteBuffer.wrap(body), header.getContentTypeHeader(), header.getContentCodingHeader());
+    }
+
+    private static void setField(Object target, String name, Object value) throws Exception {
+        Field field = target.getClass().getDeclaredField(name);
+
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+
+    private static Object getField(Object target, String name) throws Exception {
+        Field field = target.getClass().getDeclaredField(name);
+
+        field.setAccessible(true);
+        return field.get(target);
+    }
+}
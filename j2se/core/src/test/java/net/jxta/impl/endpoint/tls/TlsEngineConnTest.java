@@ -0,0 +1,390 @@
+/*
+ * Copyright (c) 2002-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+
+package net.jxta.impl.endpoint.tls;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import junit.framework.TestCase;
+import net.jxta.endpoint.ByteArrayMessageElement;
+import net.jxta.endpoint.EndpointAddress;
+import net.jxta.endpoint.Message;
+import net.jxta.endpoint.MessageElement;
+import net.jxta.endpoint.StringMessageElement;
+import net.jxta.impl.endpoint.tls.TlsConn.HandshakeState;
+import net.jxta.impl.membership.pse.PSEUtils;
+
+public class TlsEngineConnTest extends TestCase {
+
+    private static final char[] PASSWORD = "password".toCharArray();
+
+    private TestConn client;
+    private TestConn server;
+
+    /**
+     * A connection which hands its ciphertext and acknowledgements straight
+     * to its peer and collects the plaintext messages it receives.
+     */
+    private static class TestConn extends TlsEngineConn {
+
+        TestConn peer;
+        boolean shuffle = false;
+        volatile boolean blackhole = false;
+        final AtomicInteger dropCiphertext = new AtomicInteger();
+        final AtomicInteger dropAcks = new AtomicInteger();
+        final List<Message> held = new ArrayList<Message>();
+        final BlockingQueue<Message> received = new LinkedBlockingQueue<Message>();
+
+        TestConn(boolean client, SSLContext context) throws Exception {
+            super(new TlsTransport(), new EndpointAddress("jxta", client ? "client" : "server", null, null), client, context);
+        }
+
+        @Override
+        boolean sendToRemoteTls(Message msg) throws IOException {
+            if (blackhole) {
+                return true;
+            }
+
+            if (shuffle) {
+                synchronized (held) {
+                    held.add(msg);
+                }
+                return true;
+            }
+
+            transmit(msg);
+            return true;
+        }
+
+        /**
+         * Hands a message to the peer, as {@link TlsManager} would.
+         */
+        void transmit(Message msg) {
+            MessageElement ack = msg.getMessageElement(JTlsDefs.TLSNameSpace, JTlsDefs.ACKKEY);
+
+            if (null != ack) {
+                if (dropAcks.getAndDecrement() > 0) {
+                    return;
+                }
+
+                ByteBuffer acks = ByteBuffer.wrap(ack.getBytes(false));
+                int seqack = acks.getInt();
+                int[] sacks = new int[acks.remaining() / 4];
+
+                for (int each = 0; each < sacks.length; each++) {
+                    sacks[each] = acks.getInt();
+                }
+
+                peer.ackReceived(seqack, sacks);
+                return;
+            }
+
+            if (dropCiphertext.getAndDecrement() > 0) {
+                return;
+            }
+
+            peer.queueIncomingMessage(msg);
+        }
+
+        @Override
+        void deliver(Message msg) {
+            received.add(msg);
+        }
+
+        void releaseReversed() {
+            List<Message> msgs;
+
+            synchronized (held) {
+                msgs = new ArrayList<Message>(held);
+                held.clear();
+                shuffle = false;
+            }
+
+            Collections.reverse(msgs);
+            for (Message msg : msgs) {
+                transmit(msg);
+            }
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        PSEUtils.IssuerInfo clientCert = PSEUtils.genCert("client", null);
+        PSEUtils.IssuerInfo serverCert = PSEUtils.genCert("server", null);
+
+        client = new TestConn(true, newContext(clientCert, serverCert));
+        server = new TestConn(false, newContext(serverCert, clientCert));
+        client.peer = server;
+        server.peer = client;
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        client.close(HandshakeState.CONNECTIONDEAD);
+        server.close(HandshakeState.CONNECTIONDEAD);
+    }
+
+    private static SSLContext newContext(PSEUtils.IssuerInfo self, PSEUtils.IssuerInfo remote) throws Exception {
+        KeyStore keys = KeyStore.getInstance(KeyStore.getDefaultType());
+
+        keys.load(null, null);
+        keys.setKeyEntry("self", self.subjectPkey, PASSWORD, new Certificate[]{self.cert});
+        keys.setCertificateEntry("remote", remote.cert);
+
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keys, PASSWORD);
+
+        // as chosen by TlsConn, PSE root certificates are not CA certificates.
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance("SunX509", "SunJSSE");
+        tmf.init(keys);
+
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+
+        return context;
+    }
+
+    private void handshake() throws Exception {
+        server.finishHandshake();
+        client.finishHandshake();
+
+        waitFor(client, HandshakeState.HANDSHAKEFINISHED);
+        waitFor(server, HandshakeState.HANDSHAKEFINISHED);
+    }
+
+    private static void waitFor(TlsConn conn, HandshakeState state) throws InterruptedException {
+        long giveUp = System.currentTimeMillis() + 30000;
+
+        synchronized (conn) {
+            while ((conn.getHandshakeState() != state) && (System.currentTimeMillis() < giveUp)) {
+                conn.wait(100);
+            }
+        }
+
+        assertEquals(state, conn.getHandshakeState());
+    }
+
+    private static Message newMessage(int size, int fill) {
+        Message msg = new Message();
+        byte[] data = new byte[size];
+
+        Arrays.fill(data, (byte) fill);
+        msg.addMessageElement("test", new StringMessageElement("seq", Integer.toString(fill), null));
+        msg.addMessageElement("test", new ByteArrayMessageElement("data", null, data, null));
+        return msg;
+    }
+
+    private static void assertMessage(Message msg, int size, int fill) {
+        assertNotNull("message not received", msg);
+        assertEquals(Integer.toString(fill), msg.getMessageElement("test", "seq").toString());
+
+        MessageElement data = msg.getMessageElement("test", "data");
+        byte[] expected = new byte[size];
+
+        Arrays.fill(expected, (byte) fill);
+        assertTrue(Arrays.equals(expected, data.getBytes(false)));
+    }
+
+    public void testHandshake() throws Exception {
+        handshake();
+
+        assertEquals(HandshakeState.HANDSHAKEFINISHED, client.getHandshakeState());
+        assertEquals(client.engine.getSession().getCipherSuite(), server.engine.getSession().getCipherSuite());
+    }
+
+    public void testSendBeforeHandshakeFails() throws Exception {
+        try {
+            client.sendMessage(newMessage(10, 1));
+            fail("message sent before handshake");
+        } catch (IOException expected) {
+            // expected
+        }
+    }
+
+    public void testMessagesBothWays() throws Exception {
+        handshake();
+
+        for (int i = 0; i < 20; i++) {
+            client.sendMessage(newMessage(100 + i, i));
+            server.sendMessage(newMessage(200 + i, i));
+        }
+
+        for (int i = 0; i < 20; i++) {
+            assertMessage(server.received.poll(10, TimeUnit.SECONDS), 100 + i, i);
+            assertMessage(client.received.poll(10, TimeUnit.SECONDS), 200 + i, i);
+        }
+    }
+
+    public void testLargeMessage() throws Exception {
+        handshake();
+
+        int size = 5 * TlsEngineConn.MAX_CIPHERTEXT_MESSAGE + 17;
+
+        client.sendMessage(newMessage(size, 7));
+        assertMessage(server.received.poll(10, TimeUnit.SECONDS), size, 7);
+    }
+
+    public void testOutOfOrderCiphertext() throws Exception {
+        handshake();
+
+        client.shuffle = true;
+        for (int i = 0; i < 10; i++) {
+            client.sendMessage(newMessage(1000, i));
+        }
+
+        assertEquals(10, client.held.size());
+        assertTrue(server.received.isEmpty());
+
+        client.releaseReversed();
+
+        for (int i = 0; i < 10; i++) {
+            assertMessage(server.received.poll(10, TimeUnit.SECONDS), 1000, i);
+        }
+    }
+
+    public void testDuplicateCiphertextIgnored() throws Exception {
+        handshake();
+
+        client.shuffle = true;
+        client.sendMessage(newMessage(10, 3));
+        Message ciphertext = client.held.get(0);
+        client.releaseReversed();
+        server.queueIncomingMessage(ciphertext);
+
+        assertMessage(server.received.poll(10, TimeUnit.SECONDS), 10, 3);
+        assertNull(server.received.poll(200, TimeUnit.MILLISECONDS));
+        assertEquals(HandshakeState.HANDSHAKEFINISHED, server.getHandshakeState());
+    }
+
+    public void testCloseNotifiesPeer() throws Exception {
+        handshake();
+
+        client.close(HandshakeState.CONNECTIONDEAD);
+
+        waitFor(server, HandshakeState.CONNECTIONDEAD);
+    }
+
+    public void testLostCiphertextIsRetransmitted() throws Exception {
+        handshake();
+
+        client.dropCiphertext.set(1);
+        client.sendMessage(newMessage(100, 1));
+        assertNull(server.received.poll(100, TimeUnit.MILLISECONDS));
+
+        client.sendMessage(newMessage(100, 2));
+
+        assertMessage(server.received.poll(10, TimeUnit.SECONDS), 100, 1);
+        assertMessage(server.received.poll(10, TimeUnit.SECONDS), 100, 2);
+        waitForAcknowledgements(client);
+    }
+
+    public void testLostCiphertextIsRetransmittedAfterTimeout() throws Exception {
+        handshake();
+
+        // Nothing follows the lost message, so only the timer can recover it.
+        client.dropCiphertext.set(1);
+        client.sendMessage(newMessage(100, 1));
+
+        assertMessage(server.received.poll(10, TimeUnit.SECONDS), 100, 1);
+        waitForAcknowledgements(client);
+    }
+
+    public void testLostAcknowledgementIsRecovered() throws Exception {
+        handshake();
+
+        server.dropAcks.set(1);
+        client.sendMessage(newMessage(100, 1));
+
+        assertMessage(server.received.poll(10, TimeUnit.SECONDS), 100, 1);
+        waitForAcknowledgements(client);
+        assertNull(server.received.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    public void testUnacknowledgedCiphertextClosesConnection() throws Exception {
+        handshake();
+
+        client.transport.RETRMAXAGE = 500;
+        client.blackhole = true;
+        client.sendMessage(newMessage(100, 1));
+
+        waitFor(client, HandshakeState.CONNECTIONDEAD);
+    }
+
+    private static void waitForAcknowledgements(TlsEngineConn conn) throws InterruptedException {
+        long giveUp = System.currentTimeMillis() + 10000;
+
+        while ((conn.getUnackedCount() > 0) && (System.currentTimeMillis() < giveUp)) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(0, conn.getUnackedCount());
+    }
+}
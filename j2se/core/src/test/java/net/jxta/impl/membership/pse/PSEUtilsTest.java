@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2002-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+
+package net.jxta.impl.membership.pse;
+
+
+import java.io.ByteArrayInputStream;
+import java.security.PrivateKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.crypto.EncryptedPrivateKeyInfo;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import net.jxta.impl.membership.pse.PSEUtils.IssuerInfo;
+
+
+public class PSEUtilsTest extends TestCase {
+
+    private static final String ALGORITHM = "SHA1WITHRSA";
+
+    public PSEUtilsTest(java.lang.String testName) {
+        super(testName);
+    }
+
+    public static void main(java.lang.String[] args) {
+        junit.textui.TestRunner.run(suite());
+
+        System.err.flush();
+        System.out.flush();
+    }
+
+    public static Test suite() {
+        TestSuite suite = new TestSuite(PSEUtilsTest.class);
+
+        return suite;
+    }
+
+    public void testSignatureReuse() throws Exception {
+        final IssuerInfo signer = PSEUtils.genCert("signer", null);
+        final IssuerInfo other = PSEUtils.genCert("other", null);
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int t = 0; t < 3; t++) {
+            threads.add(new Thread("signer " + t) {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 20; i++) {
+                            byte[] data = (getName() + " message " + i).getBytes("UTF-8");
+                            byte[] signature = PSEUtils.computeSignature(ALGORITHM, signer.subjectPkey, new ByteArrayInputStream(data));
+
+                            assertTrue("valid signature rejected",
+                                    PSEUtils.verifySignature(ALGORITHM, signer.cert, signature, new ByteArrayInputStream(data)));
+                            assertFalse("signature verified with wrong certificate",
+                                    PSEUtils.verifySignature(ALGORITHM, other.cert, signature, new ByteArrayInputStream(data)));
+
+                            data[0]++;
+                            assertFalse("signature of modified data verified",
+                                    PSEUtils.verifySignature(ALGORITHM, signer.cert, signature, new ByteArrayInputStream(data)));
+                        }
+                    } catch (Throwable all) {
+                        synchronized (failures) {
+                            failures.add(all);
+                        }
+                    }
+                }
+            });
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertTrue("failures : " + failures, failures.isEmpty());
+    }
+
+    public void testPrivateKeyDecryptReuse() throws Exception {
+        IssuerInfo test = PSEUtils.genCert("test", null);
+
+        for (int i = 0; i < 3; i++) {
+            EncryptedPrivateKeyInfo encrypted = PSEUtils.pkcs5_Encrypt_pbePrivateKey("password".toCharArray(),
+                    test.subjectPkey, 500);
+
+            assertNotNull("Could not encrypt Private Key", encrypted);
+
+            PrivateKey decrypted = PSEUtils.pkcs5_Decrypt_pbePrivateKey("password".toCharArray(),
+                    test.subjectPkey.getAlgorithm(), encrypted);
+
+            assertNotNull("Could not decrypt Private Key", decrypted);
+            assertTrue(Arrays.equals(test.subjectPkey.getEncoded(), decrypted.getEncoded()));
+        }
+    }
+}
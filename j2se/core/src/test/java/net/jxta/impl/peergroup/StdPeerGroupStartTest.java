@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) 2002-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+
+package net.jxta.impl.peergroup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import net.jxta.document.Advertisement;
+import net.jxta.id.ID;
+import net.jxta.id.IDFactory;
+import net.jxta.peergroup.PeerGroup;
+import net.jxta.platform.Module;
+import net.jxta.platform.ModuleClassID;
+
+/**
+ * Tests the ordering of module starts by {@link StdPeerGroup}.
+ */
+public class StdPeerGroupStartTest extends TestCase {
+    
+    private StdPeerGroup group;
+    
+    /**
+     * The modules in the order in which they completed their start.
+     */
+    private final List<ModuleClassID> started = Collections.synchronizedList(new ArrayList<ModuleClassID>());
+    
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        group = new StdPeerGroup();
+        started.clear();
+    }
+    
+    public void testDeclaredDependenciesStartFirst() {
+        StubModule a = new DependentStubModule("a");
+        StubModule b = new DependentStubModule("b");
+        StubModule c = new StubModule("c");
+        
+        ((DependentStubModule) a).declare(b);
+        ((DependentStubModule) b).declare(c);
+        
+        assertEquals(Module.START_OK, group.startModules(modules(a, b, c), true));
+        
+        assertEquals(Arrays.asList(c.id, b.id, a.id), started);
+        
+        // Blocked modules are not attempted until their dependencies start.
+        assertEquals(1, a.getAttempts());
+        assertEquals(1, b.getAttempts());
+        assertEquals(1, c.getAttempts());
+        assertEquals(Collections.singleton(b.id), profile(a).getDependencies());
+    }
+    
+    public void testStalledModuleWaitsForProgressAndInfersDependency() {
+        StubModule x = new StubModule("x");
+        StubModule z = new StubModule("z");
+        StubModule w = new StubModule("w");
+        
+        x.needs(z);
+        z.progressSteps = 2;
+        
+        assertEquals(Module.START_OK, group.startModules(modules(x, z, w), false));
+        
+        assertEquals(Arrays.asList(w.id, z.id, x.id), started);
+        
+        // x stalls in the first round, is retried once w has started, stalls
+        // again and is then not retried until z has started.
+        assertEquals(3, x.getAttempts());
+        assertEquals(2, profile(x).getStalls());
+        assertEquals(3, z.getAttempts());
+        
+        // Only the module which started after x last stalled is inferred.
+        assertEquals(Collections.singleton(z.id), profile(x).getDependencies());
+        assertEquals(Module.START_OK, profile(x).getResult());
+    }
+    
+    public void testCircularDependenciesFallBackToTryingAll() {
+        DependentStubModule p = new DependentStubModule("p");
+        DependentStubModule q = new DependentStubModule("q");
+        
+        p.declare(q);
+        q.declare(p);
+        
+        assertEquals(Module.START_OK, group.startModules(modules(p, q), true));
+        
+        assertEquals(2, started.size());
+        assertEquals(1, p.getAttempts());
+        assertEquals(1, q.getAttempts());
+    }
+    
+    public void testNoProgressGivesUp() {
+        StubModule never = new StubModule("never");
+        StubModule ok = new StubModule("ok");
+        
+        never.needs(new StubModule("missing"));
+        
+        assertEquals(-1, group.startModules(modules(never, ok), false));
+        
+        assertEquals(Collections.singletonList(ok.id), started);
+        assertEquals(Module.START_AGAIN_STALLED, profile(never).getResult());
+    }
+    
+    public void testSerialStartUsesCallingThread() {
+        StubModule[] all = {new StubModule("s1"), new StubModule("s2"), new StubModule("s3")};
+        
+        assertEquals(Module.START_OK, group.startModules(modules(all), false));
+        
+        for (StubModule each : all) {
+            assertSame(Thread.currentThread(), each.getStartThread());
+        }
+    }
+    
+    public void testParallelStartRunsReadyModulesConcurrently() {
+        // Each module waits for all of the others to have begun their start.
+        CountDownLatch together = new CountDownLatch(3);
+        StubModule[] all = {new StubModule("p1"), new StubModule("p2"), new StubModule("p3")};
+        
+        for (StubModule each : all) {
+            each.together = together;
+        }
+        
+        assertEquals(Module.START_OK, group.startModules(modules(all), true));
+        
+        assertEquals(3, started.size());
+        assertSame(Thread.currentThread(), all[0].getStartThread());
+        assertNotSame(Thread.currentThread(), all[1].getStartThread());
+        assertNotSame(Thread.currentThread(), all[2].getStartThread());
+    }
+    
+    private Map<ModuleClassID, Module> modules(StubModule... modules) {
+        Map<ModuleClassID, Module> result = new LinkedHashMap<ModuleClassID, Module>();
+        
+        for (StubModule each : modules) {
+            result.put(each.id, each);
+        }
+        
+        return result;
+    }
+    
+    private ModuleStartProfile profile(StubModule module) {
+        for (ModuleStartProfile each : group.getStartProfile()) {
+            if (each.getClassID().equals(module.id)) {
+                return each;
+            }
+        }
+        
+        fail("No start profile for " + module);
+        return null;
+    }
+    
+    /**
+     * A module which completes its start once the modules it needs have
+     * started and it has made the requested number of progress steps.
+     */
+    private class StubModule implements Module {
+        final ModuleClassID id = IDFactory.newModuleClassID();
+        final String name;
+        final List<ModuleClassID> needs = new ArrayList<ModuleClassID>();
+        int progressSteps = 0;
+        CountDownLatch together = null;
+        
+        private int attempts = 0;
+        private Thread startThread = null;
+        
+        StubModule(String name) {
+            this.name = name;
+        }
+        
+        void needs(StubModule other) {
+            needs.add(other.id);
+        }
+        
+        synchronized int getAttempts() {
+            return attempts;
+        }
+        
+        synchronized Thread getStartThread() {
+            return startThread;
+        }
+        
+        public void init(PeerGroup group, ID assignedID, Advertisement implAdv) {
+        }
+        
+        public int startApp(String[] args) {
+            synchronized (this) {
+                attempts++;
+                startThread = Thread.currentThread();
+            }
+            
+            if (null != together) {
+                together.countDown();
+                try {
+                    if (!together.await(10, TimeUnit.SECONDS)) {
+                        return -1;
+                    }
+                } catch (InterruptedException woken) {
+                    Thread.currentThread().interrupt();
+                    return -1;
+                }
+            }
+            
+            for (ModuleClassID each : needs) {
+                if (!started.contains(each)) {
+                    return Module.START_AGAIN_STALLED;
+                }
+            }
+            
+            synchronized (this) {
+                if (progressSteps > 0) {
+                    progressSteps--;
+                    return Module.START_AGAIN_PROGRESS;
+                }
+            }
+            
+            started.add(id);
+            return Module.START_OK;
+        }
+        
+        public void stopApp() {
+        }
+        
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+    
+    /**
+     * A stub module which declares its start dependencies.
+     */
+    private class DependentStubModule extends StubModule implements DependentModule {
+        private final List<ModuleClassID> declared = new ArrayList<ModuleClassID>();
+        
+        DependentStubModule(String name) {
+            super(name);
+        }
+        
+        void declare(StubModule other) {
+            declared.add(other.id);
+        }
+        
+        public Collection<ModuleClassID> getStartDependencies() {
+            return declared;
+        }
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright (c) 2002-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+
+package net.jxta.impl.pipe;
+
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.*;
+
+import net.jxta.document.AdvertisementFactory;
+import net.jxta.endpoint.EndpointService;
+import net.jxta.endpoint.Message;
+import net.jxta.endpoint.MessageElement;
+import net.jxta.endpoint.Messenger;
+import net.jxta.endpoint.MessengerStateListener;
+import net.jxta.endpoint.OutgoingMessageEvent;
+import net.jxta.endpoint.StringMessageElement;
+import net.jxta.id.ID;
+import net.jxta.id.IDFactory;
+import net.jxta.peergroup.PeerGroup;
+import net.jxta.peergroup.PeerGroupID;
+import net.jxta.pipe.PipeService;
+import net.jxta.protocol.PipeAdvertisement;
+
+
+public class NonBlockingOutputPipeTest extends TestCase {
+    
+    private static final int PIPES = 40;
+    private static final int MESSAGES = 25;
+    
+    /**
+     * Messages received by the messenger, by pipe.
+     */
+    private final Map<String, List<Integer>> received = new ConcurrentHashMap<String, List<Integer>>();
+    
+    private final AtomicInteger concurrentSends = new AtomicInteger(0);
+    private final AtomicInteger maxConcurrentSends = new AtomicInteger(0);
+    private final AtomicInteger totalReceived = new AtomicInteger(0);
+    private final AtomicInteger messengersClosed = new AtomicInteger(0);
+    
+    private PeerGroup group;
+    
+    public NonBlockingOutputPipeTest(java.lang.String testName) {
+        super(testName);
+    }
+    
+    @Override
+    protected void setUp() throws Exception {
+        final Messenger messenger = (Messenger) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] {Messenger.class}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if ("sendMessageN".equals(method.getName())) {
+                    int sending = concurrentSends.incrementAndGet();
+                    
+                    while (true) {
+                        int max = maxConcurrentSends.get();
+                        
+                        if ((sending <= max) || maxConcurrentSends.compareAndSet(max, sending)) {
+                            break;
+                        }
+                    }
+                    
+                    Message msg = (Message) args[0];
+                    MessageElement pipe = msg.getMessageElement("test", "pipe");
+                    MessageElement seq = msg.getMessageElement("test", "seq");
+                    
+                    received.get(pipe.toString()).add(Integer.valueOf(seq.toString()));
+                    totalReceived.incrementAndGet();
+                    Thread.yield();
+                    concurrentSends.decrementAndGet();
+                    return Boolean.TRUE;
+                } else if ("getState".equals(method.getName())) {
+                    return Messenger.CONNECTED;
+                } else if ("isClosed".equals(method.getName())) {
+                    return Boolean.FALSE;
+                } else if ("close".equals(method.getName())) {
+                    messengersClosed.incrementAndGet();
+                    return null;
+                } else if ("addStateListener".equals(method.getName()) || "removeStateListener".equals(method.getName())
+                        || "resolve".equals(method.getName())) {
+                    return null;
+                }
+                
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+        
+        group = newGroup(messenger);
+    }
+    
+    private PeerGroup newGroup(final Messenger messenger) {
+        final EndpointService endpoint = (EndpointService) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] {EndpointService.class}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if ("getMessengerImmediate".equals(method.getName())) {
+                    return messenger;
+                }
+                
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+        
+        return (PeerGroup) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] {PeerGroup.class}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if ("getEndpointService".equals(method.getName())) {
+                    return endpoint;
+                }
+                
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+    
+    private NonBlockingOutputPipe newPipe() {
+        return newPipe(group);
+    }
+    
+    private NonBlockingOutputPipe newPipe(PeerGroup group) {
+        PipeAdvertisement adv = (PipeAdvertisement) AdvertisementFactory.newAdvertisement(PipeAdvertisement.getAdvertisementType());
+        
+        adv.setPipeID(IDFactory.newPipeID(PeerGroupID.defaultNetPeerGroupID));
+        adv.setType(PipeService.UnicastType);
+        received.put(adv.getPipeID().toString(), Collections.synchronizedList(new ArrayList<Integer>()));
+        
+        ID dest = IDFactory.newPeerID(PeerGroupID.defaultNetPeerGroupID);
+        
+        return new NonBlockingOutputPipe(group, null, adv, dest, Collections.singleton(dest));
+    }
+    
+    private static Message newMessage(NonBlockingOutputPipe pipe, int seq) {
+        Message msg = new Message();
+        
+        msg.addMessageElement("test", new StringMessageElement("pipe", pipe.getPipeID().toString(), null));
+        msg.addMessageElement("test", new StringMessageElement("seq", Integer.toString(seq), null));
+        
+        return msg;
+    }
+    
+    private static void waitFor(AtomicInteger counter, int expected) throws InterruptedException {
+        long giveUpAt = System.currentTimeMillis() + 10000;
+        
+        while ((counter.get() < expected) && (System.currentTimeMillis() < giveUpAt)) {
+            Thread.sleep(10);
+        }
+    }
+    
+    public void testPipesShareWorkers() throws Exception {
+        OutputPipeScheduler scheduler = OutputPipeScheduler.getScheduler();
+        int initialPipes = scheduler.getActivePipes();
+        List<NonBlockingOutputPipe> pipes = new ArrayList<NonBlockingOutputPipe>();
+        
+        for (int each = 0; each < PIPES; each++) {
+            pipes.add(newPipe());
+        }
+        
+        assertEquals(initialPipes + PIPES, scheduler.getActivePipes());
+        
+        for (int seq = 0; seq < MESSAGES; seq++) {
+            for (NonBlockingOutputPipe pipe : pipes) {
+                Message msg = newMessage(pipe, seq);
+                
+                while (!pipe.send(msg)) {
+                    Thread.yield();
+                }
+            }
+        }
+        
+        waitFor(totalReceived, PIPES * MESSAGES);
+        
+        assertEquals(PIPES * MESSAGES, totalReceived.get());
+        assertTrue("Too many concurrent senders : " + maxConcurrentSends.get(), maxConcurrentSends.get() <= scheduler.getMaxWorkers());
+        assertTrue(scheduler.getActiveWorkers() <= scheduler.getMaxWorkers());
+        
+        // Each pipe delivered its messages in order.
+        for (List<Integer> sequence : received.values()) {
+            assertEquals(MESSAGES, sequence.size());
+            
+            for (int seq = 0; seq < MESSAGES; seq++) {
+                assertEquals(seq, sequence.get(seq).intValue());
+            }
+        }
+        
+        for (NonBlockingOutputPipe pipe : pipes) {
+            pipe.close();
+        }
+        
+        waitFor(messengersClosed, PIPES);
+        
+        assertEquals(PIPES, messengersClosed.get());
+        assertEquals(initialPipes, scheduler.getActivePipes());
+    }
+    
+    public void testSaturatedMessengerDoesNotHoldWorkers() throws Exception {
+        final AtomicBoolean saturated = new AtomicBoolean(true);
+        final AtomicInteger saturatedReceived = new AtomicInteger(0);
+        final List<MessengerStateListener> listeners = new CopyOnWriteArrayList<MessengerStateListener>();
+        
+        Messenger slow = (Messenger) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] {Messenger.class}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if ("sendMessageN".equals(method.getName())) {
+                    if (saturated.get()) {
+                        ((Message) args[0]).setMessageProperty(Messenger.class, OutgoingMessageEvent.OVERFLOW);
+                        return Boolean.FALSE;
+                    }
+                    saturatedReceived.incrementAndGet();
+                    return Boolean.TRUE;
+                } else if ("getState".equals(method.getName())) {
+                    return saturated.get() ? Messenger.SENDINGSATURATED : Messenger.CONNECTED;
+                } else if ("isClosed".equals(method.getName())) {
+                    return Boolean.FALSE;
+                } else if ("addStateListener".equals(method.getName())) {
+                    listeners.add((MessengerStateListener) args[0]);
+                    return null;
+                } else if ("removeStateListener".equals(method.getName())) {
+                    listeners.remove(args[0]);
+                    return null;
+                } else if ("resolve".equals(method.getName()) || "close".equals(method.getName())) {
+                    return null;
+                }
+                
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+        
+        PeerGroup slowGroup = newGroup(slow);
+        int slowPipes = OutputPipeScheduler.getScheduler().getMaxWorkers() + 2;
+        List<NonBlockingOutputPipe> pipes = new ArrayList<NonBlockingOutputPipe>();
+        
+        for (int each = 0; each < slowPipes; each++) {
+            NonBlockingOutputPipe pipe = newPipe(slowGroup);
+            
+            pipes.add(pipe);
+            assertTrue(pipe.send(newMessage(pipe, 0)));
+        }
+        
+        // Every worker would be stuck if saturated pipes waited for their messenger.
+        NonBlockingOutputPipe fast = newPipe();
+        
+        pipes.add(fast);
+        assertTrue(fast.send(newMessage(fast, 0)));
+        waitFor(totalReceived, 1);
+        assertEquals(1, totalReceived.get());
+        assertEquals(0, saturatedReceived.get());
+        
+        // The saturated pipes are given another turn once the messenger drains.
+        saturated.set(false);
+        for (MessengerStateListener listener : listeners) {
+            listener.messengerStateChanged(Messenger.CONNECTED);
+        }
+        
+        waitFor(saturatedReceived, slowPipes);
+        assertEquals(slowPipes, saturatedReceived.get());
+        
+        for (NonBlockingOutputPipe pipe : pipes) {
+            pipe.close();
+        }
+    }
+    
+    public void testSendAfterCloseFails() throws Exception {
+        NonBlockingOutputPipe pipe = newPipe();
+        
+        pipe.close();
+        
+        try {
+            pipe.send(new Message());
+            fail("Send on closed pipe should have failed");
+        } catch (java.io.IOException expected) {
+            ;
+        }
+    }
+    
+    public static Test suite() {
+        TestSuite suite = new TestSuite(NonBlockingOutputPipeTest.class);
+        
+        return suite;
+    }
+    
+    public static void main(java.lang.String[] args) {
+        junit.textui.TestRunner.run(suite());
+        
+        System.out.flush();
+        System.err.flush();
+    }
+}
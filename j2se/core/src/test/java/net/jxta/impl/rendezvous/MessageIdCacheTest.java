@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2002-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+
+package net.jxta.impl.rendezvous;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import net.jxta.impl.id.UUID.UUID;
+import net.jxta.impl.id.UUID.UUIDFactory;
+import net.jxta.impl.util.FakeSystemClock;
+import net.jxta.impl.util.TimeUtils;
+
+public class MessageIdCacheTest extends TestCase {
+
+    private FakeSystemClock clock;
+
+    public MessageIdCacheTest(java.lang.String testName) {
+        super(testName);
+    }
+
+    public static void main(java.lang.String[] args) {
+        junit.textui.TestRunner.run(suite());
+
+        System.err.flush();
+        System.out.flush();
+    }
+
+    public static Test suite() {
+        return new TestSuite(MessageIdCacheTest.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        clock = new FakeSystemClock();
+        clock.currentTime = 10000L;
+        TimeUtils.setClock(clock);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TimeUtils.resetClock();
+    }
+
+    public void testDuplicateDetection() {
+        MessageIdCache cache = new MessageIdCache(100, TimeUtils.AMINUTE);
+        UUID id = UUIDFactory.newSeqUUID();
+
+        assertFalse(cache.contains(id));
+        assertTrue(cache.add(id));
+        assertTrue(cache.contains(id));
+        assertFalse(cache.add(id));
+
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(0, cache.getEvictions());
+    }
+
+    public void testExpiration() {
+        MessageIdCache cache = new MessageIdCache(100, TimeUtils.AMINUTE);
+        UUID id = UUIDFactory.newSeqUUID();
+
+        assertTrue(cache.add(id));
+
+        clock.currentTime += TimeUtils.AMINUTE - 1;
+        assertFalse(cache.add(id));
+
+        clock.currentTime += 1;
+        assertFalse(cache.contains(id));
+        assertTrue(cache.add(id));
+        assertEquals(1, cache.getEvictions());
+    }
+
+    public void testMemoryBound() {
+        MessageIdCache cache = new MessageIdCache(64, TimeUtils.ANHOUR);
+
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(cache.add(UUIDFactory.newSeqUUID()));
+        }
+
+        assertTrue(cache.size() <= 64);
+        assertEquals(1000, cache.getMisses());
+        assertEquals(1000 - cache.size(), cache.getEvictions());
+    }
+
+    public void testMostRecentRetained() {
+        MessageIdCache cache = new MessageIdCache(1, TimeUtils.ANHOUR);
+        UUID first = UUIDFactory.newSeqUUID();
+        UUID second = UUIDFactory.newSeqUUID();
+
+        assertTrue(cache.add(first));
+        assertTrue(cache.add(second));
+        assertFalse(cache.contains(first));
+        assertFalse(cache.add(second));
+    }
+}
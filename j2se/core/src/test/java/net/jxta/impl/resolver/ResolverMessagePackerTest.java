@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) 2002-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+
+package net.jxta.impl.resolver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import net.jxta.endpoint.ByteArrayMessageElement;
+import net.jxta.endpoint.Message;
+import net.jxta.endpoint.MessageElement;
+import net.jxta.endpoint.StringMessageElement;
+import net.jxta.id.ID;
+import net.jxta.id.IDFactory;
+import net.jxta.peergroup.PeerGroupID;
+import net.jxta.protocol.RouteAdvertisement;
+
+public class ResolverMessagePackerTest extends TestCase {
+
+    private ScheduledExecutorService executor;
+    private List<List<MessageElement>> sent;
+    private List<ID> destinations;
+    private List<String> params;
+    private ResolverMessagePacker.Sender sender;
+
+    private final ID peer1 = IDFactory.newPeerID(PeerGroupID.defaultNetPeerGroupID);
+    private final ID peer2 = IDFactory.newPeerID(PeerGroupID.defaultNetPeerGroupID);
+
+    @Override
+    protected void setUp() throws Exception {
+        executor = new ScheduledThreadPoolExecutor(1);
+        sent = Collections.synchronizedList(new ArrayList<List<MessageElement>>());
+        destinations = Collections.synchronizedList(new ArrayList<ID>());
+        params = Collections.synchronizedList(new ArrayList<String>());
+        sender = new ResolverMessagePacker.Sender() {
+            public void send(ID destination, RouteAdvertisement route, String serviceParam, List<MessageElement> elements) {
+                destinations.add(destination);
+                params.add(serviceParam);
+                sent.add(new ArrayList<MessageElement>(elements));
+            }
+        };
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+    private MessageElement element(int i) {
+        return new StringMessageElement("ORes", "query" + i, null);
+    }
+
+    public void testFullPacksAreSentImmediately() {
+        ResolverMessagePacker packer = new ResolverMessagePacker(sender, executor, 60000, 3, 100000, 1000);
+
+        for (int i = 0; i < 7; i++) {
+            packer.add(peer1, null, "ORes", element(i));
+        }
+
+        assertEquals(2, sent.size());
+        assertEquals(3, sent.get(0).size());
+        assertEquals(1, packer.getPendingElementCount());
+        assertEquals(2, packer.getSizeFlushCount());
+
+        packer.flush();
+        assertEquals(3, sent.size());
+        assertEquals(1, sent.get(2).size());
+        assertEquals("query6", sent.get(2).get(0).toString());
+        assertEquals(7, packer.getElementCount());
+        assertEquals(7.0 / 3, packer.getAverageElementsPerMessage(), 0.0001);
+        assertEquals(1, packer.getEventFlushCount());
+    }
+
+    public void testElementsKeepTheirOrder() {
+        ResolverMessagePacker packer = new ResolverMessagePacker(sender, executor, 60000, 100, 100000, 1000);
+
+        for (int i = 0; i < 5; i++) {
+            packer.add(peer1, null, "ORes", element(i));
+        }
+        packer.flush();
+
+        assertEquals(1, sent.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals("query" + i, sent.get(0).get(i).toString());
+        }
+    }
+
+    public void testByteLimitSendsPack() {
+        ResolverMessagePacker packer = new ResolverMessagePacker(sender, executor, 60000, 100, 250, 200);
+
+        packer.add(peer1, null, "ORes", new ByteArrayMessageElement("ORes", null, new byte[150], null));
+        assertEquals(0, sent.size());
+        packer.add(peer1, null, "ORes", new ByteArrayMessageElement("ORes", null, new byte[150], null));
+        assertEquals(1, sent.size());
+        assertEquals(2, sent.get(0).size());
+    }
+
+    public void testLargeElementsAreNotPacked() {
+        ResolverMessagePacker packer = new ResolverMessagePacker(sender, executor, 60000, 100, 100000, 100);
+
+        packer.add(peer1, null, "ORes", element(1));
+        packer.add(peer1, null, "ORes", new ByteArrayMessageElement("ORes", null, new byte[101], null));
+
+        assertEquals(1, sent.size());
+        assertEquals(101, sent.get(0).get(0).getByteLength());
+        assertEquals(1, packer.getPendingElementCount());
+    }
+
+    public void testElementsAreGroupedByDestinationAndListener() {
+        ResolverMessagePacker packer = new ResolverMessagePacker(sender, executor, 60000, 100, 100000, 1000);
+
+        packer.add(peer1, null, "ORes", element(1));
+        packer.add(peer2, null, "ORes", element(2));
+        packer.add(peer1, null, "IRes", element(3));
+        packer.add(peer1, null, "ORes", element(4));
+        assertEquals(0, sent.size());
+
+        packer.flush();
+        assertEquals(3, sent.size());
+        assertEquals(0, packer.getPendingElementCount());
+
+        for (int i = 0; i < sent.size(); i++) {
+            if (destinations.get(i).equals(peer1) && "ORes".equals(params.get(i))) {
+                assertEquals(2, sent.get(i).size());
+            } else {
+                assertEquals(1, sent.get(i).size());
+            }
+        }
+    }
+
+    public void testWindowExpirySendsPack() throws Exception {
+        ResolverMessagePacker packer = new ResolverMessagePacker(sender, executor, 50, 100, 100000, 1000);
+
+        packer.add(peer1, null, "ORes", element(1));
+        packer.add(peer1, null, "ORes", element(2));
+
+        long giveUp = System.currentTimeMillis() + 5000;
+        while (sent.isEmpty() && System.currentTimeMillis() < giveUp) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(1, sent.size());
+        assertEquals(2, sent.get(0).size());
+        assertEquals(1, packer.getWindowFlushCount());
+    }
+
+    public void testZeroWindowSendsEachElement() {
+        ResolverMessagePacker packer = new ResolverMessagePacker(sender, executor, 0, 100, 100000, 1000);
+
+        packer.add(peer1, null, "ORes", element(1));
+        packer.add(peer1, null, "ORes", element(2));
+
+        assertEquals(2, sent.size());
+        assertEquals(1.0, packer.getAverageElementsPerMessage(), 0.0001);
+    }
+
+    public void testStopSendsPendingAndDisablesPacking() {
+        ResolverMessagePacker packer = new ResolverMessagePacker(sender, executor, 60000, 100, 100000, 1000);
+
+        packer.add(peer1, null, "ORes", element(1));
+        packer.stop();
+        assertEquals(1, sent.size());
+
+        packer.add(peer1, null, "ORes", element(2));
+        assertEquals(2, sent.size());
+    }
+
+    public void testConcurrentAddsLoseNoElements() throws Exception {
+        final ResolverMessagePacker packer = new ResolverMessagePacker(sender, executor, 5, 10, 100000, 1000);
+        final int threads = 8;
+        final int perThread = 2000;
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++) {
+            final ID dest = (t % 2 == 0) ? peer1 : peer2;
+            final int offset = t * perThread;
+            new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        packer.add(dest, null, "ORes", element(offset + i));
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        packer.flush();
+
+        // let window flushes which were already running complete
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+        int total = 0;
+        synchronized (sent) {
+            for (List<MessageElement> elements : sent) {
+                assertTrue(elements.size() <= 10);
+                total += elements.size();
+            }
+        }
+        assertEquals(threads * perThread, total);
+        assertEquals(threads * perThread, packer.getElementCount());
+    }
+
+    public void testGetElementsReturnsAllPackedElements() {
+        Message msg = new Message();
+
+        assertTrue(ResolverServiceImpl.getElements(msg, "ORes").isEmpty());
+
+        msg.addMessageElement("jxta", element(1));
+        msg.addMessageElement("jxta", new StringMessageElement("IRes", "response", null));
+        assertEquals(1, ResolverServiceImpl.getElements(msg, "ORes").size());
+
+        msg.addMessageElement("jxta", element(2));
+        msg.addMessageElement("other", element(3));
+
+        List<MessageElement> elements = ResolverServiceImpl.getElements(msg, "ORes");
+
+        assertEquals(2, elements.size());
+        assertEquals("query1", elements.get(0).toString());
+        assertEquals("query2", elements.get(1).toString());
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2002-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+
+package net.jxta.impl.util.pipe.reliable;
+
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+
+public class CubicFlowControlTest extends TestCase {
+
+    public CubicFlowControlTest(String testName) {
+        super(testName);
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(suite());
+        System.err.flush();
+        System.out.flush();
+    }
+
+    public static Test suite() {
+        TestSuite suite = new TestSuite(CubicFlowControlTest.class);
+
+        return suite;
+    }
+
+    private static int ackEvent(CubicFlowControl fc, long now, int acked, int missing) {
+        fc.ackEventBegin();
+        for (int each = 0; each < acked; each++) {
+            fc.packetACKed(each);
+        }
+        for (int each = 0; each < missing; each++) {
+            fc.packetMissing(each);
+        }
+        return fc.ackEventEnd(now, 100);
+    }
+
+    public void testSlowStartAndLoss() {
+        CubicFlowControl fc = new CubicFlowControl(64);
+        long now = 1000;
+
+        assertEquals(CubicFlowControl.MIN_RWINDOW, fc.getRwindow());
+        assertEquals(0, fc.getPacingDelay());
+
+        int window = fc.getRwindow();
+
+        for (int each = 0; each < 4; each++) {
+            now += 100;
+            window = ackEvent(fc, now, window, 0);
+        }
+        assertEquals(32, window);
+        assertTrue(fc.getPacingDelay() > 0);
+
+        // A loss reduces the window by BETA.
+        now += 100;
+        window = ackEvent(fc, now, 0, 1);
+        assertEquals((int) (32 * CubicFlowControl.BETA), window);
+
+        // A further loss within the same round trip does not.
+        now += 10;
+        assertEquals(window, ackEvent(fc, now, 0, 1));
+    }
+
+    public void testCubicRegrowth() {
+        CubicFlowControl fc = new CubicFlowControl(100);
+        long now = 1000;
+        int window = fc.getRwindow();
+
+        while (window < 40) {
+            now += 100;
+            window = ackEvent(fc, now, window, 0);
+        }
+        now += 100;
+        window = ackEvent(fc, now, 0, 1);
+
+        int reduced = window;
+        int previous = window;
+
+        // Regrowth towards the previous maximum is monotonic and eventually
+        // passes it.
+        for (int each = 0; each < 200; each++) {
+            now += 100;
+            window = ackEvent(fc, now, window, 0);
+            assertTrue(window >= previous);
+            previous = window;
+        }
+        assertTrue(window > reduced);
+        assertTrue(window > 40);
+        assertTrue(window <= 100);
+    }
+
+    public void testFactory() {
+        assertTrue(FlowControl.newFlowControl(FlowControl.CUBIC, 10) instanceof CubicFlowControl);
+        assertTrue(FlowControl.newFlowControl("Adaptive", 10) instanceof AdaptiveFlowControl);
+        assertTrue(FlowControl.newFlowControl(FlowControl.FIXED, 10) instanceof FixedFlowControl);
+        assertTrue(FlowControl.newFlowControl(null, 10) instanceof FixedFlowControl);
+        assertFalse(FlowControl.isKnown("reno"));
+
+        try {
+            FlowControl.newFlowControl("reno", 10);
+            fail("unknown flow control accepted");
+        } catch (IllegalArgumentException expected) {// expected
+        }
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) 2002-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+
+package net.jxta.impl.util.pipe.reliable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import net.jxta.endpoint.ByteArrayMessageElement;
+import net.jxta.endpoint.Message;
+
+public class ReliableNonBlockingTest extends TestCase {
+
+    /**
+     * Holds the messages sent until they are delivered by the test.
+     */
+    private static class HeldOutgoing implements Outgoing {
+        final List<Message> held = new ArrayList<Message>();
+        Incoming target;
+
+        public synchronized boolean send(Message msg) {
+            if (null == target) {
+                held.add(msg.clone());
+            } else {
+                target.recv(msg.clone());
+            }
+            return true;
+        }
+
+        void deliver(Incoming to) {
+            List<Message> msgs;
+
+            synchronized (this) {
+                msgs = new ArrayList<Message>(held);
+                held.clear();
+            }
+            for (Message msg : msgs) {
+                to.recv(msg);
+            }
+        }
+
+        public void close() {}
+
+        public long getMinIdleReconnectTime() {
+            return 0;
+        }
+
+        public void setTimeout(int timeout) {}
+
+        public long getIdleTimeout() {
+            return 600000;
+        }
+
+        public long getMaxRetryAge() {
+            return 600000;
+        }
+
+        public long getLastAccessed() {
+            return System.currentTimeMillis();
+        }
+
+        public void setLastAccessed(long time) {}
+    }
+
+    private static class CountingListener implements ReadinessListener {
+        final AtomicInteger count = new AtomicInteger();
+
+        public void readinessChanged() {
+            count.incrementAndGet();
+        }
+    }
+
+    /**
+     * Paces every message by a fixed interval.
+     */
+    private static class PacedFlowControl extends FixedFlowControl {
+        final long delay;
+
+        PacedFlowControl(int rwindow, long delay) {
+            super(rwindow);
+            this.delay = delay;
+        }
+
+        @Override
+        public long getPacingDelay() {
+            return delay;
+        }
+    }
+
+    private HeldOutgoing toInput;
+    private HeldOutgoing toOutput;
+    private ReliableInputStream ris;
+    private ReliableOutputStream ros;
+
+    @Override
+    protected void setUp() throws Exception {
+        toInput = new HeldOutgoing();
+        toOutput = new HeldOutgoing();
+        ris = new ReliableInputStream(toOutput, 10000);
+        ros = new ReliableOutputStream(toInput, new FixedFlowControl(4));
+        toOutput.target = ros;
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        ros.hardClose();
+        ris.close();
+    }
+
+    private static Message block(int seqn, byte[] data) {
+        Message msg = new Message();
+
+        msg.addMessageElement(Defs.NAMESPACE, new ByteArrayMessageElement(Integer.toString(seqn), Defs.MIME_TYPE_BLOCK, data, null));
+        return msg;
+    }
+
+    public void testReadNonBlocking() throws IOException {
+        CountingListener listener = new CountingListener();
+        byte[] buf = new byte[16];
+
+        ris.setReadinessListener(listener);
+        assertFalse(ris.isReadable());
+        assertEquals(0, ris.readNonBlocking(buf, 0, buf.length));
+
+        ris.recv(block(1, new byte[] {1, 2, 3}));
+        assertEquals(1, listener.count.get());
+        assertTrue(ris.isReadable());
+        assertEquals(3, ris.available());
+        assertEquals(2, ris.readNonBlocking(buf, 0, 2));
+        assertTrue(ris.isReadable());
+        assertEquals(1, ris.readNonBlocking(buf, 2, buf.length - 2));
+        assertTrue(Arrays.equals(new byte[] {1, 2, 3}, Arrays.copyOf(buf, 3)));
+        assertFalse(ris.isReadable());
+        assertEquals(0, ris.readNonBlocking(buf, 0, buf.length));
+
+        ris.softClose();
+        assertEquals(2, listener.count.get());
+        assertTrue(ris.isReadable());
+        assertEquals(-1, ris.readNonBlocking(buf, 0, buf.length));
+    }
+
+    public void testOutOfOrderDataIsNotReadable() throws IOException {
+        byte[] buf = new byte[16];
+
+        ris.recv(block(2, new byte[] {2}));
+        assertFalse(ris.isReadable());
+        assertEquals(0, ris.readNonBlocking(buf, 0, buf.length));
+
+        ris.recv(block(1, new byte[] {1}));
+        assertTrue(ris.isReadable());
+        assertEquals(1, ris.readNonBlocking(buf, 0, buf.length));
+        assertEquals(1, buf[0]);
+        assertEquals(1, ris.readNonBlocking(buf, 0, buf.length));
+        assertEquals(2, buf[0]);
+    }
+
+    public void testWriteNonBlockingStopsWhenWindowIsFull() throws IOException {
+        CountingListener listener = new CountingListener();
+        byte[] data = new byte[100];
+
+        ros.setReadinessListener(listener);
+        ros.setSendBufferSize(10);
+        assertTrue(ros.isWritable());
+
+        // Nothing is acknowledged so the window fills part way through.
+        int written = ros.writeNonBlocking(data, 0, data.length);
+        assertTrue(written > 0);
+        assertTrue(written < data.length);
+        assertFalse(ros.isWritable());
+        assertEquals(0, ros.writeNonBlocking(data, written, data.length - written));
+
+        toInput.deliver(ris);
+        byte[] buf = new byte[100];
+        int read = 0;
+        int count;
+        while ((count = ris.readNonBlocking(buf, read, buf.length - read)) > 0) {
+            read += count;
+        }
+        assertEquals(written, read);
+
+        assertTrue(listener.count.get() > 0);
+        assertTrue(ros.isWritable());
+        assertTrue(ros.writeNonBlocking(data, written, data.length - written) > 0);
+    }
+
+    public void testWriteNonBlockingDoesNotWaitForPacing() throws Exception {
+        CountingListener listener = new CountingListener();
+        long delay = TimeUnit.MILLISECONDS.toNanos(500);
+        ReliableOutputStream paced = new ReliableOutputStream(toInput, new PacedFlowControl(20, delay));
+
+        try {
+            paced.setReadinessListener(listener);
+            paced.setSendBufferSize(10);
+
+            // The first message may go now, the next one must wait.
+            long start = System.nanoTime();
+            assertEquals(10, paced.writeNonBlocking(new byte[100], 0, 100));
+            assertEquals(0, paced.writeNonBlocking(new byte[100], 0, 100));
+            assertFalse(paced.isWritable());
+            assertTrue(System.nanoTime() - start < delay);
+            assertEquals(0, listener.count.get());
+
+            long wait = System.currentTimeMillis() + 10000;
+            while ((0 == listener.count.get()) && (System.currentTimeMillis() < wait)) {
+                Thread.sleep(20);
+            }
+            assertTrue(listener.count.get() > 0);
+            assertTrue(System.nanoTime() - start >= delay);
+            assertTrue(paced.isWritable());
+            assertEquals(10, paced.writeNonBlocking(new byte[100], 0, 100));
+        } finally {
+            paced.hardClose();
+        }
+    }
+
+    public void testBufferedWritesAreSentFirst() throws IOException {
+        byte[] buf = new byte[16];
+
+        toInput.target = ris;
+        ros.write(new byte[] {1, 2});
+        assertEquals(1, ros.writeNonBlocking(new byte[] {3}, 0, 1));
+
+        assertEquals(2, ris.readNonBlocking(buf, 0, buf.length));
+        assertEquals(1, ris.readNonBlocking(buf, 2, buf.length - 2));
+        assertTrue(Arrays.equals(new byte[] {1, 2, 3}, Arrays.copyOf(buf, 3)));
+    }
+
+    public void testClosedStreamIsWritableButFails() throws IOException {
+        CountingListener listener = new CountingListener();
+
+        ros.setReadinessListener(listener);
+        ros.hardClose();
+        assertEquals(1, listener.count.get());
+        assertTrue(ros.isWritable());
+        try {
+            ros.writeNonBlocking(new byte[1], 0, 1);
+            fail("write to closed stream");
+        } catch (IOException expected) {// expected
+        }
+    }
+}
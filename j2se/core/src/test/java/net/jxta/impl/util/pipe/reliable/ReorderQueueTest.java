@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2002-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+
+package net.jxta.impl.util.pipe.reliable;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import net.jxta.endpoint.ByteArrayMessageElement;
+import net.jxta.endpoint.Message;
+
+
+public class ReorderQueueTest extends TestCase {
+
+    public ReorderQueueTest(String testName) {
+        super(testName);
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(suite());
+        System.err.flush();
+        System.out.flush();
+    }
+
+    public static Test suite() {
+        TestSuite suite = new TestSuite(ReorderQueueTest.class);
+
+        return suite;
+    }
+
+    public void testOutOfOrder() {
+        ReorderQueue<String> queue = new ReorderQueue<String>(4, 0);
+
+        assertTrue(queue.offer(3, "3"));
+        assertTrue(queue.offer(2, "2"));
+        assertFalse("duplicate accepted", queue.offer(3, "3"));
+        assertEquals(2, queue.size());
+        assertEquals(2, queue.firstSeqnum());
+        assertNull("delivered out of order", queue.poll());
+
+        assertTrue(queue.offer(1, "1"));
+        assertEquals("1", queue.poll());
+        assertEquals("2", queue.poll());
+        assertEquals("3", queue.poll());
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+        assertEquals(3, queue.getBase());
+
+        assertFalse("already delivered accepted", queue.offer(2, "2"));
+        assertFalse(queue.offer(3 + ReorderQueue.MAX_CAPACITY + 1, "far"));
+    }
+
+    public void testGrowAndWrap() {
+        ReorderQueue<Integer> queue = new ReorderQueue<Integer>(4, 0);
+        int next = 1;
+
+        for (int round = 0; round < 10; round++) {
+            int span = 3 + round * 7;
+
+            // Offer a span of sequence numbers in reverse order.
+            for (int each = next + span - 1; each >= next; each--) {
+                assertTrue(queue.offer(each, each));
+            }
+            for (int each = 0; each < span; each++) {
+                assertEquals(Integer.valueOf(next++), queue.poll());
+            }
+            assertTrue(queue.isEmpty());
+        }
+
+        assertTrue(queue.capacity() >= 66);
+    }
+
+    public void testSelectUnacked() {
+        ReorderQueue<String> queue = new ReorderQueue<String>(8, 0);
+
+        queue.offer(3, "3");
+        queue.offer(5, "5");
+        queue.offer(6, "6");
+
+        List<Integer> sacks = new ArrayList<Integer>();
+
+        assertEquals(2, queue.selectUnacked(0, sacks, 2));
+        assertEquals(3, sacks.get(0).intValue());
+        assertEquals(5, sacks.get(1).intValue());
+
+        sacks.clear();
+        assertEquals(1, queue.selectUnacked(0, sacks, 10));
+        assertEquals(6, sacks.get(0).intValue());
+
+        queue.offer(4, "4");
+        sacks.clear();
+        assertEquals(1, queue.selectUnacked(0, sacks, 10));
+        assertEquals(4, sacks.get(0).intValue());
+
+        queue.clear();
+        assertTrue(queue.isEmpty());
+        assertEquals(-1, queue.firstSeqnum());
+        assertTrue(queue.offer(1, "1"));
+    }
+
+    /**
+     * Delivers blocks to a stream in scrambled order and checks that they are
+     * read back in sequence and acknowledged.
+     */
+    public void testInputStreamOrdering() throws IOException {
+        final List<Message> acks = new ArrayList<Message>();
+        Outgoing outgoing = new Outgoing() {
+            public boolean send(Message msg) {
+                synchronized (acks) {
+                    acks.add(msg);
+                }
+                return true;
+            }
+
+            public void close() {}
+
+            public long getMinIdleReconnectTime() {
+                return 0;
+            }
+
+            public void setTimeout(int timeout) {}
+
+            public long getIdleTimeout() {
+                return 0;
+            }
+
+            public long getMaxRetryAge() {
+                return 0;
+            }
+
+            public long getLastAccessed() {
+                return 0;
+            }
+
+            public void setLastAccessed(long time) {}
+        };
+
+        ReliableInputStream in = new ReliableInputStream(outgoing, 5000);
+        int blocks = 64;
+
+        for (int each = 0; each < blocks; each++) {
+            // 2, 1, 4, 3, ... with a duplicate of every block.
+            int seqn = (0 == each % 2) ? each + 2 : each;
+
+            for (int copy = 0; copy < 2; copy++) {
+                Message msg = new Message();
+
+                msg.addMessageElement(Defs.NAMESPACE,
+                        new ByteArrayMessageElement(Integer.toString(seqn), Defs.MIME_TYPE_BLOCK, new byte[] {(byte) seqn}, null));
+                in.recv(msg);
+            }
+        }
+
+        InputStream stream = in;
+
+        for (int each = 1; each <= blocks; each++) {
+            assertEquals(each, stream.read());
+        }
+        assertEquals(0, stream.available());
+        assertFalse(acks.isEmpty());
+        in.close();
+    }
+}
@@ -57,7 +57,12 @@
 package net.jxta.impl.xindice;
 
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.Test;
 import junit.framework.TestCase;
@@ -66,7 +71,9 @@ import junit.framework.TestSuite;
 import net.jxta.impl.xindice.core.data.Key;
 import net.jxta.impl.xindice.core.data.Value;
 import net.jxta.impl.xindice.core.DBException;
+import net.jxta.impl.xindice.core.filer.BTreeCallback;
 import net.jxta.impl.xindice.core.filer.BTreeFiler;
+import net.jxta.impl.xindice.core.indexer.IndexQuery;
 
 
 /**
@@ -269,4 +276,250 @@ public class XindiceTest extends TestCase {
             fail(ex.getMessage());
         }
     }
+
+    public void testConcurrentQuery() throws Exception {
+        final int records = 256;
+        final int readers = 4;
+        final int rounds = 32;
+
+        assertTrue("cannot open db", filer.open());
+        assertTrue("recordCount == 0", filer.getRecordCount() == 0);
+        filer.setSync(false);
+
+        for (int i = 0; i < records; i++) {
+            filer.writeRecord(new Key("k" + Integer.toString(i)), new Value("value " + i));
+        }
+
+        final IndexQuery query = new IndexQuery(IndexQuery.SW, new Value("k"));
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        final AtomicInteger mismatches = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int t = 0; t < readers; t++) {
+            threads.add(new Thread("reader " + t) {
+                @Override
+                public void run() {
+                    try {
+                        for (int r = 0; r < rounds; r++) {
+                            final AtomicInteger found = new AtomicInteger();
+
+                            filer.query(query, new BTreeCallback() {
+                                public boolean indexInfo(Value value, long pointer) {
+                                    found.incrementAndGet();
+                                    return true;
+                                }
+                            });
+                            if (found.get() != records) {
+                                mismatches.incrementAndGet();
+                            }
+                        }
+                    } catch (Throwable all) {
+                        synchronized (failures) {
+                            failures.add(all);
+                        }
+                    }
+                }
+            });
+        }
+
+        // A writer modifying keys outside of the queried range.
+        threads.add(new Thread("writer") {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < records; i++) {
+                        filer.writeRecord(new Key("w" + Integer.toString(i)), new Value("value " + i));
+                    }
+                    for (int i = 0; i < records; i++) {
+                        filer.deleteRecord(new Key("w" + Integer.toString(i)));
+                    }
+                } catch (Throwable all) {
+                    synchronized (failures) {
+                        failures.add(all);
+                    }
+                }
+            }
+        });
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertTrue("failures : " + failures, failures.isEmpty());
+        assertEquals("queries saw partial results", 0, mismatches.get());
+        assertEquals("recordCount == " + records, records, filer.getRecordCount());
+        assertTrue("no shared latch acquisitions", filer.getReadLockCount() >= readers * rounds);
+        assertTrue("no node cache hits", filer.getNodeCacheHitRatio() > 0.0);
+
+        for (int i = 0; i < records; i++) {
+            assertTrue("delete record", filer.deleteRecord(new Key("k" + Integer.toString(i))));
+        }
+        assertTrue("recordCount == 0", filer.getRecordCount() == 0);
+    }
+
+    public void testQueryCallbackModifiesTree() throws Exception {
+        final int records = 256;
+
+        assertTrue("cannot open db", filer.open());
+        assertTrue("recordCount == 0", filer.getRecordCount() == 0);
+        filer.setSync(false);
+
+        for (int i = 0; i < records; i++) {
+            filer.writeRecord(new Key("k" + Integer.toString(i)), new Value("value " + i));
+        }
+
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        final Set<String> seen = new HashSet<String>();
+
+        // A writer splitting and merging nodes while the callback below runs.
+        Thread writer = new Thread("writer") {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < records; i++) {
+                        filer.writeRecord(new Key("w" + Integer.toString(i)), new Value("value " + i));
+                    }
+                    for (int i = 0; i < records; i++) {
+                        filer.deleteRecord(new Key("w" + Integer.toString(i)));
+                    }
+                } catch (Throwable all) {
+                    synchronized (failures) {
+                        failures.add(all);
+                    }
+                }
+            }
+        };
+
+        writer.start();
+
+        // Each matched record is deleted from within the callback.
+        filer.query(new IndexQuery(IndexQuery.SW, new Value("k")), new BTreeCallback() {
+            public boolean indexInfo(Value value, long pointer) {
+                try {
+                    assertTrue("reported twice : " + value, seen.add(value.toString()));
+                    assertTrue("delete record", filer.deleteRecord(new Key(value)));
+                } catch (Throwable all) {
+                    synchronized (failures) {
+                        failures.add(all);
+                    }
+                }
+                return true;
+            }
+        });
+
+        writer.join();
+
+        assertTrue("failures : " + failures, failures.isEmpty());
+        assertEquals(records, seen.size());
+        assertEquals("recordCount == 0", 0, filer.getRecordCount());
+    }
+
+    public void testQueryCallbackCancels() throws Exception {
+        assertTrue("cannot open db", filer.open());
+        filer.setSync(false);
+
+        for (int i = 0; i < 64; i++) {
+            filer.writeRecord(new Key("k" + Integer.toString(i)), new Value("value " + i));
+        }
+
+        final AtomicInteger found = new AtomicInteger();
+
+        filer.query(null, new BTreeCallback() {
+            public boolean indexInfo(Value value, long pointer) {
+                return found.incrementAndGet() < 10;
+            }
+        });
+
+        assertEquals(10, found.get());
+
+        for (int i = 0; i < 64; i++) {
+            assertTrue("delete record", filer.deleteRecord(new Key("k" + Integer.toString(i))));
+        }
+    }
+
+    public void testPageCache() throws Exception {
+        final int records = 128;
+
+        assertTrue("cannot open db", filer.open());
+        assertTrue("recordCount == 0", filer.getRecordCount() == 0);
+        filer.setSync(false);
+        filer.setPageCacheSize(16);
+        assertEquals(16, filer.getPageCacheSize());
+
+        for (int i = 0; i < records; i++) {
+            filer.writeRecord(new Key("k" + Integer.toString(i)), new Value("value " + i));
+        }
+
+        // Re-reading a small working set must be served from the cache.
+        for (int round = 0; round < 8; round++) {
+            for (int i = 0; i < 4; i++) {
+                assertEquals(new Value("value " + i), filer.readRecord(new Key("k" + Integer.toString(i))).getValue());
+            }
+        }
+        long hits = filer.getPageCacheHits();
+        long misses = filer.getPageCacheMisses();
+
+        assertTrue("page cache never hit", hits > 0);
+
+        // Every record must still be readable with most of them evicted.
+        for (int i = 0; i < records; i++) {
+            assertEquals(new Value("value " + i), filer.readRecord(new Key("k" + Integer.toString(i))).getValue());
+        }
+        assertTrue("page cache never missed", filer.getPageCacheMisses() > misses);
+        assertTrue(filer.getPageCacheHitRatio() > 0.0 && filer.getPageCacheHitRatio() < 1.0);
+
+        for (int i = 0; i < records; i++) {
+            assertTrue("delete record", filer.deleteRecord(new Key("k" + Integer.toString(i))));
+        }
+        assertTrue("recordCount == 0", filer.getRecordCount() == 0);
+    }
+
+    public void testMemoryMapped() throws Exception {
+        final int records = 512;
+        Value[] values = new Value[records];
+
+        for (int i = 0; i < records; i++) {
+            byte[] val = new byte[random.nextInt(MAX_VALUE_SIZE / 2)];
+
+            random.nextBytes(val);
+            values[i] = new Value(val);
+        }
+
+        assertTrue("cannot open db", filer.open());
+        assertTrue("recordCount == 0", filer.getRecordCount() == 0);
+        filer.setSync(false);
+        filer.setMemoryMapped(true);
+        assertTrue(filer.isMemoryMapped());
+
+        // Enough records to grow the file, and the mapping, several times.
+        for (int i = 0; i < records; i++) {
+            filer.writeRecord(new Key("k" + Integer.toString(i)), values[i]);
+        }
+        for (int i = 0; i < records; i++) {
+            assertEquals("val != rval", values[i], filer.readRecord(new Key("k" + Integer.toString(i))).getValue());
+        }
+        filer.close();
+
+        // Everything written through the mapping must be readable with file I/O.
+        BTreeFiler reopened = new BTreeFiler();
+
+        reopened.setLocation(".", getName() + "-db");
+        reopened.setMemoryMapped(false);
+        assertTrue("cannot reopen db", reopened.open());
+        try {
+            assertEquals("recordCount == " + records, records, reopened.getRecordCount());
+            for (int i = 0; i < records; i++) {
+                assertEquals("val != rval", values[i], reopened.readRecord(new Key("k" + Integer.toString(i))).getValue());
+            }
+            for (int i = 0; i < records; i++) {
+                assertTrue("delete record", reopened.deleteRecord(new Key("k" + Integer.toString(i))));
+            }
+            assertTrue("recordCount == 0", reopened.getRecordCount() == 0);
+        } finally {
+            reopened.close();
+        }
+    }
 }
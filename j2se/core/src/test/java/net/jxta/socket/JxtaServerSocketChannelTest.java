@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2002-2007 Sun Microsystems, Inc.  All rights reserved.
+ *  
+ *  The Sun Project JXTA(TM) Software License
+ *  
+ *  Redistribution and use in source and binary forms, with or without 
+ *  modification, are permitted provided that the following conditions are met:
+ *  
+ *  1. Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *  
+ *  2. Redistributions in binary form must reproduce the above copyright notice, 
+ *     this list of conditions and the following disclaimer in the documentation 
+ *     and/or other materials provided with the distribution.
+ *  
+ *  3. The end-user documentation included with the redistribution, if any, must 
+ *     include the following acknowledgment: "This product includes software 
+ *     developed by Sun Microsystems, Inc. for JXTA(TM) technology." 
+ *     Alternately, this acknowledgment may appear in the software itself, if 
+ *     and wherever such third-party acknowledgments normally appear.
+ *  
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA" must 
+ *     not be used to endorse or promote products derived from this software 
+ *     without prior written permission. For written permission, please contact 
+ *     Project JXTA at http://www.jxta.org.
+ *  
+ *  5. Products derived from this software may not be called "JXTA", nor may 
+ *     "JXTA" appear in their name, without prior written permission of Sun.
+ *  
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED WARRANTIES,
+ *  INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND 
+ *  FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL SUN 
+ *  MICROSYSTEMS OR ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, 
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT 
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, 
+ *  OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF 
+ *  LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ *  NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ *  EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *  
+ *  JXTA is a registered trademark of Sun Microsystems, Inc. in the United 
+ *  States and other countries.
+ *  
+ *  Please see the license information page at :
+ *  <http://www.jxta.org/project/www/license.html> for instructions on use of 
+ *  the license in source files.
+ *  
+ *  ====================================================================
+ *  
+ *  This software consists of voluntary contributions made by many individuals 
+ *  on behalf of Project JXTA. For more information on Project JXTA, please see 
+ *  http://www.jxta.org.
+ *  
+ *  This license is based on the BSD license adopted by the Apache Foundation. 
+ */
+
+package net.jxta.socket;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+import net.jxta.credential.Credential;
+import net.jxta.document.AdvertisementFactory;
+import net.jxta.document.MimeMediaType;
+import net.jxta.document.XMLDocument;
+import net.jxta.endpoint.Message;
+import net.jxta.endpoint.TextDocumentMessageElement;
+import net.jxta.id.IDFactory;
+import net.jxta.peergroup.PeerGroup;
+import net.jxta.peergroup.PeerGroupID;
+import net.jxta.pipe.InputPipe;
+import net.jxta.pipe.PipeID;
+import net.jxta.pipe.PipeMsgEvent;
+import net.jxta.pipe.PipeService;
+import net.jxta.protocol.PeerAdvertisement;
+import net.jxta.protocol.PipeAdvertisement;
+import net.jxta.util.SimpleSelector;
+
+public class JxtaServerSocketChannelTest extends TestCase {
+
+    /**
+     * A connection which needs no remote peer.
+     */
+    private static class StubSocket extends JxtaSocket {
+        volatile boolean closed = false;
+
+        @Override
+        public synchronized void close() throws IOException {
+            closed = true;
+        }
+    }
+
+    /**
+     * Holds each handshake until it is released by the test.
+     */
+    private static class HeldServerSocket extends JxtaServerSocket {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicReference<Thread> handshakeThread = new AtomicReference<Thread>();
+        final StubSocket socket = new StubSocket();
+
+        HeldServerSocket(PeerGroup group, PipeAdvertisement pipeAdv) throws IOException {
+            super(group, pipeAdv);
+        }
+
+        @Override
+        protected JxtaSocket createEphemeralSocket(PeerGroup group, PipeAdvertisement pipeAdv, PipeAdvertisement remoteEphemeralPipeAdv, PeerAdvertisement remotePeerAdv, Credential localCredential, Credential credential, boolean isReliable) throws IOException {
+            handshakeThread.set(Thread.currentThread());
+            try {
+                release.await();
+            } catch (InterruptedException woken) {
+                Thread.interrupted();
+            }
+            return socket;
+        }
+    }
+
+    private PipeAdvertisement pipeAdv;
+    private HeldServerSocket serverSocket;
+    private JxtaServerSocketChannel channel;
+    private SimpleSelector selector;
+
+    @Override
+    protected void setUp() throws Exception {
+        final InputPipe inputPipe = (InputPipe) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] {InputPipe.class}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if ("close".equals(method.getName())) {
+                    return null;
+                }
+
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+
+        final PipeService pipeService = (PipeService) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] {PipeService.class}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if ("createInputPipe".equals(method.getName())) {
+                    return inputPipe;
+                }
+
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+
+        PeerGroup group = (PeerGroup) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] {PeerGroup.class}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if ("getPipeService".equals(method.getName())) {
+                    return pipeService;
+                }
+
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+
+        pipeAdv = (PipeAdvertisement) AdvertisementFactory.newAdvertisement(PipeAdvertisement.getAdvertisementType());
+        pipeAdv.setPipeID(IDFactory.newPipeID(PeerGroupID.defaultNetPeerGroupID));
+        pipeAdv.setType(PipeService.UnicastType);
+
+        serverSocket = new HeldServerSocket(group, pipeAdv);
+        channel = new JxtaServerSocketChannel(serverSocket);
+        selector = new SimpleSelector();
+        channel.register(selector);
+
+        // Registering reports a change.
+        assertTrue(selector.select().contains(channel));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        serverSocket.release.countDown();
+        channel.close();
+    }
+
+    private Message connectRequest() {
+        PipeAdvertisement remotePipeAdv = (PipeAdvertisement) AdvertisementFactory.newAdvertisement(PipeAdvertisement.getAdvertisementType());
+
+        remotePipeAdv.setPipeID(IDFactory.newPipeID(PeerGroupID.defaultNetPeerGroupID));
+        remotePipeAdv.setType(PipeService.UnicastType);
+
+        PeerAdvertisement remotePeerAdv = (PeerAdvertisement) AdvertisementFactory.newAdvertisement(PeerAdvertisement.getAdvertisementType());
+
+        remotePeerAdv.setPeerGroupID(PeerGroupID.defaultNetPeerGroupID);
+        remotePeerAdv.setPeerID(IDFactory.newPeerID(PeerGroupID.defaultNetPeerGroupID));
+        remotePeerAdv.setName("remote");
+
+        Message msg = new Message();
+
+        msg.addMessageElement(JxtaServerSocket.MSG_ELEMENT_NAMESPACE,
+                new TextDocumentMessageElement(JxtaServerSocket.reqPipeTag, (XMLDocument) remotePipeAdv.getDocument(MimeMediaType.XMLUTF8), null));
+        msg.addMessageElement(JxtaServerSocket.MSG_ELEMENT_NAMESPACE,
+                new TextDocumentMessageElement(JxtaServerSocket.remPeerTag, (XMLDocument) remotePeerAdv.getDocument(MimeMediaType.XMLUTF8), null));
+        return msg;
+    }
+
+    private void awaitAcceptable() throws InterruptedException {
+        long wait = System.currentTimeMillis() + 10000;
+
+        while (!channel.isAcceptable() && (System.currentTimeMillis() < wait)) {
+            Thread.sleep(20);
+        }
+    }
+
+    public void testHandshakeRunsOnExecutor() throws Exception {
+        serverSocket.pipeMsgEvent(new PipeMsgEvent(this, connectRequest(), (PipeID) pipeAdv.getPipeID()));
+
+        // The handshake is in progress but the caller is not held up by it.
+        assertFalse(channel.isAcceptable());
+        assertNull(channel.accept());
+
+        serverSocket.release.countDown();
+        awaitAcceptable();
+
+        assertTrue(channel.isAcceptable());
+        assertTrue(selector.select().contains(channel));
+        assertNotNull(serverSocket.handshakeThread.get());
+        assertNotSame(Thread.currentThread(), serverSocket.handshakeThread.get());
+        assertSame(serverSocket.socket, serverSocket.acceptNonBlocking());
+        assertFalse(channel.isAcceptable());
+    }
+
+    public void testCloseClosesUnacceptedConnections() throws Exception {
+        serverSocket.release.countDown();
+        serverSocket.pipeMsgEvent(new PipeMsgEvent(this, connectRequest(), (PipeID) pipeAdv.getPipeID()));
+        awaitAcceptable();
+        assertTrue(channel.isAcceptable());
+
+        channel.close();
+        assertTrue(channel.isAcceptable());
+        try {
+            channel.accept();
+            fail("accept on closed channel");
+        } catch (IOException expected) {// expected
+        }
+
+        long wait = System.currentTimeMillis() + 10000;
+        while (!serverSocket.socket.closed && (System.currentTimeMillis() < wait)) {
+            Thread.sleep(20);
+        }
+        assertTrue(serverSocket.socket.closed);
+    }
+}